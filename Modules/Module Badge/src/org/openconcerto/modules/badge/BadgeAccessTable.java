@@ -0,0 +1,328 @@
+package org.openconcerto.modules.badge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowListRSH;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.utils.ThreadFactory;
+
+/**
+ * Table des autorisations en mémoire : les cartes, les adhérents et leurs plages horaires sont
+ * chargés en une fois, puis rechargés à chaque modification des tables et périodiquement (les
+ * modifications faites par d'autres postes ne sont pas notifiées). Si la base n'est pas accessible,
+ * la dernière table chargée reste utilisée. Chaque table chargée est enregistrée dans un fichier
+ * local, relu au démarrage : les cartes sont contrôlées même si la base est inaccessible à ce
+ * moment.
+ */
+public class BadgeAccessTable {
+
+    // Calendar.DAY_OF_WEEK - 1 -> suffixe des colonnes de PLAGE_HORAIRE
+    private static final String[] DAYS = { "DIMANCHE", "LUNDI", "MARDI", "MERCREDI", "JEUDI", "VENDREDI", "SAMEDI" };
+    private static final int PLAGE_COUNT = 3;
+    private static final long RELOAD_PERIOD = 2 * 60;
+
+    /**
+     * Résultat du contrôle d'une carte.
+     */
+    public static final class Decision {
+        private final boolean allowed;
+        private final String motif;
+        private final String adherent;
+
+        Decision(boolean allowed, String motif, String adherent) {
+            this.allowed = allowed;
+            this.motif = motif;
+            this.adherent = adherent;
+        }
+
+        public final boolean isAllowed() {
+            return this.allowed;
+        }
+
+        public final String getMotif() {
+            return this.motif;
+        }
+
+        /**
+         * Le nom de l'adhérent.
+         * 
+         * @return le nom et le prénom, <code>null</code> si la carte n'est liée à aucun adhérent.
+         */
+        public final String getAdherent() {
+            return this.adherent;
+        }
+    }
+
+    private static final class Plage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String nom;
+        // par jour : début et fin de chaque plage en secondes depuis minuit, -1 si non renseigné
+        private final int[][] bounds;
+
+        Plage(SQLRow row) {
+            this.nom = row.getString("NOM");
+            this.bounds = new int[DAYS.length][2 * PLAGE_COUNT];
+            final Calendar cal = Calendar.getInstance();
+            for (int day = 0; day < DAYS.length; day++) {
+                for (int i = 0; i < PLAGE_COUNT; i++) {
+                    this.bounds[day][2 * i] = getSeconds(cal, (Date) row.getObject("DEBUT_" + (i + 1) + "_" + DAYS[day]));
+                    this.bounds[day][2 * i + 1] = getSeconds(cal, (Date) row.getObject("FIN_" + (i + 1) + "_" + DAYS[day]));
+                }
+            }
+        }
+
+        // le numéro de la plage contenant l'heure, 0 si aucune
+        final int getPlage(final int day, final int seconds) {
+            final int[] dayBounds = this.bounds[day];
+            for (int i = 0; i < PLAGE_COUNT; i++) {
+                final int debut = dayBounds[2 * i];
+                final int fin = dayBounds[2 * i + 1];
+                if (debut >= 0 && fin >= 0 && seconds > debut && seconds < fin) {
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static final class Adherent implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String nom;
+        private final boolean admin;
+        private final boolean actif;
+        // Long.MAX_VALUE si pas de date de validité
+        private final long validite;
+        private final Plage plage;
+
+        Adherent(SQLRow row, Plage plage) {
+            this.nom = row.getString("NOM") + " " + row.getString("PRENOM");
+            this.admin = Boolean.TRUE.equals(row.getBoolean("ADMIN"));
+            this.actif = Boolean.TRUE.equals(row.getBoolean("ACTIF"));
+            final Calendar dateValidite = row.getDate("DATE_VALIDITE_INSCRIPTION");
+            this.validite = dateValidite == null ? Long.MAX_VALUE : dateValidite.getTimeInMillis();
+            this.plage = plage;
+        }
+    }
+
+    static int getSeconds(final Calendar cal, final Date time) {
+        if (time == null)
+            return -1;
+        cal.setTime(time);
+        return getSeconds(cal);
+    }
+
+    static int getSeconds(final Calendar cal) {
+        return cal.get(Calendar.HOUR_OF_DAY) * 3600 + cal.get(Calendar.MINUTE) * 60 + cal.get(Calendar.SECOND);
+    }
+
+    private final SQLTable tableAdh, tablePlage;
+    private final File snapshotFile;
+    // immuable, remplacée à chaque chargement
+    private volatile Map<String, List<Adherent>> cartes;
+    private final ScheduledExecutorService exec;
+    private final AtomicBoolean reloadPending;
+    private final SQLTableModifiedListener listener;
+
+    public BadgeAccessTable(final DBRoot root) {
+        this(root, null);
+    }
+
+    /**
+     * Crée une table.
+     * 
+     * @param root la base.
+     * @param snapshotFile le fichier où enregistrer la table, <code>null</code> pour ne rien
+     *        enregistrer.
+     */
+    public BadgeAccessTable(final DBRoot root, final File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        this.tableAdh = root.findTable("ADHERENT");
+        this.tablePlage = root.findTable("PLAGE_HORAIRE");
+        this.cartes = Collections.emptyMap();
+        this.exec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory("Badge access table", true));
+        this.reloadPending = new AtomicBoolean(false);
+        this.listener = new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                reloadLater();
+            }
+        };
+    }
+
+    /**
+     * Charge la table puis la maintient à jour.
+     */
+    public void start() {
+        this.tableAdh.addTableModifiedListener(this.listener);
+        this.tablePlage.addTableModifiedListener(this.listener);
+        this.readSnapshot();
+        this.reload();
+        this.exec.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reload();
+            }
+        }, RELOAD_PERIOD, RELOAD_PERIOD, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        this.tableAdh.removeTableModifiedListener(this.listener);
+        this.tablePlage.removeTableModifiedListener(this.listener);
+        this.exec.shutdown();
+    }
+
+    // plusieurs modifications rapprochées ne provoquent qu'un chargement
+    private void reloadLater() {
+        if (this.reloadPending.compareAndSet(false, true)) {
+            this.exec.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reloadPending.set(false);
+                    reload();
+                }
+            }, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Recharge la table depuis la base, en cas d'erreur la table précédente est conservée.
+     * 
+     * @return <code>true</code> si la table a été rechargée.
+     */
+    public boolean reload() {
+        try {
+            final Map<Integer, Plage> plages = new HashMap<Integer, Plage>();
+            final SQLSelect selPlage = new SQLSelect();
+            selPlage.addSelectStar(this.tablePlage);
+            for (final SQLRow row : SQLRowListRSH.execute(selPlage)) {
+                plages.put(row.getID(), new Plage(row));
+            }
+
+            final Map<String, List<Adherent>> res = new HashMap<String, List<Adherent>>();
+            final SQLSelect selAdh = new SQLSelect();
+            selAdh.addSelectStar(this.tableAdh);
+            for (final SQLRow row : SQLRowListRSH.execute(selAdh)) {
+                final String carte = row.getString("NUMERO_CARTE");
+                if (carte == null || carte.trim().length() == 0)
+                    continue;
+                final Plage plage = row.isForeignEmpty("ID_PLAGE_HORAIRE") ? null : plages.get(row.getInt("ID_PLAGE_HORAIRE"));
+                List<Adherent> l = res.get(carte);
+                if (l == null) {
+                    l = new ArrayList<Adherent>(1);
+                    res.put(carte, l);
+                }
+                l.add(new Adherent(row, plage));
+            }
+            this.cartes = res;
+            this.writeSnapshot(res);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Impossible de charger la table des badges, utilisation de la précédente (" + this.cartes.size() + " cartes)");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void readSnapshot() {
+        if (this.snapshotFile == null || !this.snapshotFile.isFile())
+            return;
+        try {
+            final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(this.snapshotFile)));
+            try {
+                @SuppressWarnings("unchecked")
+                final Map<String, List<Adherent>> res = (Map<String, List<Adherent>>) in.readObject();
+                this.cartes = res;
+                System.out.println("Table des badges lue depuis " + this.snapshotFile + " : " + res.size() + " cartes");
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            // e.g. fichier d'une version précédente, il sera remplacé au prochain chargement
+            System.err.println("Impossible de lire la table des badges depuis " + this.snapshotFile);
+            e.printStackTrace();
+        }
+    }
+
+    // écrit dans un fichier temporaire, pour ne jamais laisser de fichier partiel
+    private void writeSnapshot(final Map<String, List<Adherent>> res) {
+        if (this.snapshotFile == null)
+            return;
+        final File tmp = new File(this.snapshotFile.getPath() + ".tmp");
+        try {
+            final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeObject(res);
+            } finally {
+                out.close();
+            }
+            this.snapshotFile.delete();
+            if (!tmp.renameTo(this.snapshotFile))
+                throw new IOException("Impossible de renommer " + tmp + " en " + this.snapshotFile);
+        } catch (IOException e) {
+            System.err.println("Impossible d'enregistrer la table des badges dans " + this.snapshotFile);
+            e.printStackTrace();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Contrôle une carte, sans accès à la base.
+     * 
+     * @param cardNumber le numéro de la carte.
+     * @param now la date du passage.
+     * @return la décision.
+     */
+    public Decision check(final String cardNumber, final Calendar now) {
+        final List<Adherent> list = this.cartes.get(cardNumber);
+        // Aucun adhérent assigné à cette carte
+        if (list == null) {
+            return new Decision(false, "Aucun adhérent associé à la carte " + cardNumber, null);
+        } else if (list.size() > 1) {
+            return new Decision(false, list.size() + " adhérents sont liés à la même carte " + cardNumber, null);
+        }
+        final Adherent adh = list.get(0);
+        // Admin toujours autorisé
+        if (adh.admin) {
+            return new Decision(true, "Administrateur toujours autorisé", adh.nom);
+        }
+        if (!adh.actif) {
+            return new Decision(false, "La carte de l'adhérent n'est pas active dans sa fiche", adh.nom);
+        }
+        if (adh.validite < now.getTimeInMillis()) {
+            return new Decision(false, "La date d'autorisation est expirée", adh.nom);
+        }
+        if (adh.plage == null) {
+            return new Decision(false, "Aucune plage horaire associée", adh.nom);
+        }
+        final int plage = adh.plage.getPlage(now.get(Calendar.DAY_OF_WEEK) - 1, getSeconds(now));
+        if (plage > 0) {
+            return new Decision(true, "Autorisé sur la plage " + adh.plage.nom + " " + plage, adh.nom);
+        } else {
+            return new Decision(false, "Non autorisé sur la plage horaire " + adh.plage.nom, adh.nom);
+        }
+    }
+}
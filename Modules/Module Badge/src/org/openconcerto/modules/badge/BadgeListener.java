@@ -14,11 +14,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.sql.SQLException;
-import java.sql.Time;
-import java.text.SimpleDateFormat;
+import java.net.SocketException;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 
@@ -32,25 +29,47 @@ import org.openconcerto.erp.config.ServerFinderPanel;
 import org.openconcerto.erp.modules.ModuleManager;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.element.SQLElement;
-import org.openconcerto.sql.model.SQLBase;
+import org.openconcerto.sql.model.DBRoot;
 import org.openconcerto.sql.model.SQLRow;
-import org.openconcerto.sql.model.SQLRowListRSH;
-import org.openconcerto.sql.model.SQLRowValues;
-import org.openconcerto.sql.model.SQLSelect;
-import org.openconcerto.sql.model.SQLTable;
-import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.preferences.SQLPreferences;
 import org.openconcerto.sql.preferences.UserProps;
 import org.openconcerto.sql.sqlobject.IComboSelectionItem;
 import org.openconcerto.utils.ExceptionHandler;
 
 public class BadgeListener implements Runnable {
-    private static final int UDP_PORT = 1470;
+    static final int UDP_PORT = 1470;
+    private static BadgeListener daemon;
+
+    /**
+     * Arrête le service démarré dans cette VM, e.g. à l'arrêt du module.
+     */
+    public static void stopCurrentDaemon() {
+        final BadgeListener l;
+        synchronized (BadgeListener.class) {
+            l = daemon;
+            daemon = null;
+        }
+        if (l != null)
+            l.stopDaemon();
+    }
+
     private String ip;
     private int relai;
+    private int port = UDP_PORT;
+    private BadgeAccessTable accessTable;
+    private EntreeLog entreeLog;
+    private volatile boolean stopped;
+    private DatagramSocket socket;
 
     protected TrayIcon trayIcon;
 
+    // sans configuration ni relai, pour les tests
+    BadgeListener(final int port, final BadgeAccessTable accessTable, final EntreeLog entreeLog) {
+        this.port = port;
+        this.accessTable = accessTable;
+        this.entreeLog = entreeLog;
+    }
+
     public BadgeListener() {
         final ComptaPropsConfiguration conf = ComptaPropsConfiguration.create(true);
         if (conf == null) {
@@ -139,13 +158,49 @@ public class BadgeListener implements Runnable {
         bl.readConfiguration();
         bl.initUI();
         bl.startDaemon();
-
+        // e.g. "Quitter" : écrire les dernières entrées
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopCurrentDaemon();
+            }
+        }, "Badge shutdown"));
     }
 
     public void startDaemon() {
-        Thread t = new Thread(this);
+        final DBRoot root = Configuration.getInstance().getRoot();
+        this.accessTable = new BadgeAccessTable(root, new File("badge-cartes.ser"));
+        this.accessTable.start();
+        this.entreeLog = new EntreeLog(root.findTable("ENTREE"));
+        this.entreeLog.start();
+        synchronized (BadgeListener.class) {
+            daemon = this;
+        }
+        this.startListening();
+    }
+
+    final Thread startListening() {
+        this.stopped = false;
+        final Thread t = new Thread(this);
         t.setName("UDP Listener");
         t.start();
+        return t;
+    }
+
+    /**
+     * Arrête l'écoute, la mise à jour de la table des badges et le journal (après l'écriture des
+     * entrées en attente).
+     */
+    public void stopDaemon() {
+        this.stopped = true;
+        synchronized (this) {
+            if (this.socket != null)
+                this.socket.close();
+        }
+        if (this.accessTable != null)
+            this.accessTable.stop();
+        if (this.entreeLog != null)
+            this.entreeLog.stop();
     }
 
     public void initUI() {
@@ -161,7 +216,7 @@ public class BadgeListener implements Runnable {
                     final SystemTray sysTray = SystemTray.getSystemTray();
                     trayIcon = createTrayIcon();
                     sysTray.add(trayIcon);
-                    trayIcon.displayMessage("Service de badge", "Ecoute sur port " + UDP_PORT, TrayIcon.MessageType.NONE);
+                    trayIcon.displayMessage("Service de badge", "Ecoute sur port " + port, TrayIcon.MessageType.NONE);
                 } catch (AWTException e) {
                     System.out.println("Unable to add icon to the system tray");
                     System.exit(1);
@@ -181,6 +236,7 @@ public class BadgeListener implements Runnable {
             props.load(inStream);
             this.ip = props.getProperty("ip");
             this.relai = Integer.parseInt(props.getProperty("relai", "1"));
+            this.port = Integer.parseInt(props.getProperty("port", String.valueOf(UDP_PORT)));
             inStream.close();
         } catch (FileNotFoundException e) {
             JOptionPane.showMessageDialog(new JFrame(), "Fichier manquant\n" + file.getAbsolutePath());
@@ -192,37 +248,51 @@ public class BadgeListener implements Runnable {
 
     @Override
     public void run() {
-        while (true) {
+        while (!this.stopped) {
             DatagramSocket serverSocket = null;
 
             try {
                 final byte[] receiveData = new byte[1024];
-                serverSocket = new DatagramSocket(UDP_PORT);
+                serverSocket = new DatagramSocket(this.port);
+                synchronized (this) {
+                    if (this.stopped) {
+                        serverSocket.close();
+                        return;
+                    }
+                    this.socket = serverSocket;
+                }
 
                 while (true) {
                     final DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
                     serverSocket.receive(receivePacket);
-                    final String sentence = new String(receivePacket.getData()).trim();
+                    final String sentence = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
                     System.out.println(sentence);
                     if (isBadgeAllowed(sentence)) {
-                        final Relai r = new Relai(ip, relai);
                         try {
-                            r.pulse(2);
+                            openDoor();
                         } catch (Throwable ex) {
-                            trayIcon.displayMessage("Erreur", ex.getMessage(), TrayIcon.MessageType.ERROR);
+                            displayMessage("Erreur", ex.getMessage(), TrayIcon.MessageType.ERROR);
                         }
                     } else {
-                        trayIcon.displayMessage("Carte refusée", "Carte " + sentence + " non acceptée", TrayIcon.MessageType.INFO);
+                        displayMessage("Carte refusée", "Carte " + sentence + " non acceptée", TrayIcon.MessageType.INFO);
                     }
                 }
+            } catch (SocketException e) {
+                // socket fermée par stopDaemon()
+                if (this.stopped)
+                    return;
+                e.printStackTrace();
+                displayMessage("Erreur", e.getMessage(), TrayIcon.MessageType.ERROR);
             } catch (Throwable e) {
                 e.printStackTrace();
-                trayIcon.displayMessage("Erreur", (e == null) ? "" : e.getMessage(), TrayIcon.MessageType.ERROR);
+                displayMessage("Erreur", (e == null) ? "" : e.getMessage(), TrayIcon.MessageType.ERROR);
             } finally {
                 if (serverSocket != null) {
                     serverSocket.close();
                 }
             }
+            if (this.stopped)
+                return;
             try {
                 System.out.println("Waiting 10s");
                 Thread.sleep(10 * 1000);
@@ -232,120 +302,28 @@ public class BadgeListener implements Runnable {
         }
     }
 
-    public boolean isBadgeAllowed(String cardNumber) {
-        SQLBase base = Configuration.getInstance().getBase();
-        SQLSelect sel = new SQLSelect(base);
-        SQLTable tableAdh = Configuration.getInstance().getRoot().findTable("ADHERENT");
-        sel.addSelectStar(tableAdh);
-        sel.setWhere(new Where(tableAdh.getField("NUMERO_CARTE"), "=", cardNumber));
-        List<SQLRow> list = (List<SQLRow>) base.getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel));
-
-        String motif = "";
-
-        boolean allow = false;
-        SQLRow adh = null;
-        // Aucun adhérent assigné à cette carte
-        if (list == null || list.isEmpty()) {
-            motif = "Aucun adhérent associé à la carte " + cardNumber;
-            System.err.println(motif);
-
-        } else if (list.size() > 1) {
-            motif = list.size() + " adhérents sont liés à la même carte " + cardNumber;
-            System.err.println(motif);
-            Thread.dumpStack();
-        } else {
-
-            for (SQLRow sqlRow : list) {
-
-                adh = sqlRow;
-
-                // Admin toujours autorisé
-                if (sqlRow.getBoolean("ADMIN")) {
-                    allow = true;
-                    motif = "Administrateur toujours autorisé";
-                    break;
-                }
-
-                if (!sqlRow.getBoolean("ACTIF")) {
-                    motif = "La carte de l'adhérent n'est pas active dans sa fiche";
-                    break;
-                }
-
-                Calendar cal = Calendar.getInstance();
-                final Date d = cal.getTime();
-                final Calendar dateValidite = sqlRow.getDate("DATE_VALIDITE_INSCRIPTION");
-
-                if (dateValidite != null && dateValidite.before(cal)) {
-                    motif = "La date d'autorisation est expirée";
-                    break;
-                }
-
-                SQLRow rowPlage = sqlRow.getForeignRow("ID_PLAGE_HORAIRE");
-
-                if (rowPlage != null) {
-                    Time time = new Time(cal.get(Calendar.HOUR_OF_DAY), cal.get(Calendar.MINUTE), cal.get(Calendar.SECOND));
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("EEEE");
-                    String day = dateFormat.format(d).toUpperCase();
-                    {
-                        Time d1 = (Time) rowPlage.getObject("DEBUT_1_" + day);
-                        Time f1 = (Time) rowPlage.getObject("FIN_1_" + day);
-                        if (d1 != null && f1 != null) {
-                            if (time.after(d1) && time.before(f1)) {
-                                allow = true;
-                                motif = "Autorisé sur la plage " + rowPlage.getString("NOM") + " 1";
-                                break;
-                            }
-                        }
-                    }
-                    {
-                        Time d1 = (Time) rowPlage.getObject("DEBUT_2_" + day);
-                        Time f1 = (Time) rowPlage.getObject("FIN_2_" + day);
-
-                        if (d1 != null && f1 != null) {
-                            if (time.after(d1) && time.before(f1)) {
-                                allow = true;
-                                motif = "Autorisé sur la plage " + rowPlage.getString("NOM") + " 2";
-                                break;
-                            }
-                        }
-                    }
-
-                    {
-                        Time d1 = (Time) rowPlage.getObject("DEBUT_3_" + day);
-                        Time f1 = (Time) rowPlage.getObject("FIN_3_" + day);
+    protected void openDoor() {
+        new Relai(this.ip, this.relai).pulse(2);
+    }
 
-                        if (d1 != null && f1 != null) {
-                            if (time.after(d1) && time.before(f1)) {
-                                allow = true;
-                                motif = "Autorisé sur la plage " + rowPlage.getString("NOM") + " 3";
-                                break;
-                            }
-                        }
-                    }
-                    motif = "Non autorisé sur la plage horaire " + rowPlage.getString("NOM");
-                } else {
-                    motif = "Aucune plage horaire associée";
-                }
-            }
+    // l'icône n'est pas encore créée au démarrage
+    private void displayMessage(String caption, String text, TrayIcon.MessageType type) {
+        final TrayIcon icon = this.trayIcon;
+        if (icon != null) {
+            icon.displayMessage(caption, text, type);
+        } else {
+            System.err.println(caption + " : " + text);
         }
+    }
 
-        // Création de l'entrée dans la table
-        SQLTable tableEntree = Configuration.getInstance().getRoot().findTable("ENTREE");
-        SQLRowValues rowVals = new SQLRowValues(tableEntree);
-        rowVals.put("DATE", new Date());
-        rowVals.put("NUMERO_CARTE", cardNumber);
-        rowVals.put("ACCEPTE", allow);
-        rowVals.put("MOTIF", motif);
-
-        if (adh != null) {
-            rowVals.put("ADHERENT", adh.getString("NOM") + " " + adh.getString("PRENOM"));
-        }
-        try {
-            rowVals.commit();
-        } catch (SQLException exn) {
-            exn.printStackTrace();
+    public boolean isBadgeAllowed(String cardNumber) {
+        // aucun accès à la base, l'entrée est écrite par le journal
+        final BadgeAccessTable.Decision decision = this.accessTable.check(cardNumber, Calendar.getInstance());
+        if (!decision.isAllowed()) {
+            System.err.println(decision.getMotif());
         }
-        return allow;
+        this.entreeLog.add(cardNumber, decision);
+        return decision.isAllowed();
     }
 
 }
@@ -0,0 +1,277 @@
+package org.openconcerto.modules.badge;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.DBSystemRoot;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowListRSH;
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLServer;
+import org.openconcerto.sql.model.SQLSystem;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.utils.SQLCreateTable;
+import org.openconcerto.utils.CompareUtils;
+import org.openconcerto.utils.cc.IClosure;
+
+/**
+ * Crée les tables du module dans une base H2 en mémoire et vérifie {@link BadgeAccessTable} :
+ * administrateur, carte inactive, expirée, sans plage, partagée, archivée ou inconnue, et les
+ * plages horaires par jour. Envoie ensuite des cartes à un {@link BadgeListener} local avec
+ * {@link BadgeSender} : chaque carte est reçue une fois, nettoyée, seules les cartes autorisées
+ * ouvrent la porte, chaque passage est écrit dans ENTREE, une modification d'un adhérent est prise
+ * en compte et {@link BadgeListener#stopDaemon()} arrête l'écoute.
+ * 
+ * <pre>
+ * java org.openconcerto.modules.badge.BadgeListenerTest
+ * </pre>
+ */
+public class BadgeListenerTest {
+
+    private static final String ROOT = "Test";
+    private static final long TIMEOUT = 5;
+    private static final String[] DAYS = { "LUNDI", "MARDI", "MERCREDI", "JEUDI", "VENDREDI", "SAMEDI", "DIMANCHE" };
+    private static final String[] REFUSED = { "INACTIF", "EXPIRE", "SANS_PLAGE", "DOUBLE", "ARCHIVE", "INCONNUE" };
+    // nom de l'adhérent de chaque carte, absent si la carte n'est liée à aucun adhérent (vide
+    // dans ENTREE)
+    private static final Map<String, String> ADHERENTS = new HashMap<String, String>();
+    static {
+        for (final String carte : new String[] { "ADMIN", "JOUR", "INACTIF", "EXPIRE", "VALIDE", "SANS_PLAGE", "SOIR" })
+            ADHERENTS.put(carte, carte + " Test");
+    }
+
+    public static void main(String[] args) throws Exception {
+        final DBSystemRoot sysRoot = new SQLServer(SQLSystem.H2, "mem", null, null, null, new IClosure<DBSystemRoot>() {
+            @Override
+            public void executeChecked(DBSystemRoot input) {
+                input.setRootsToMap(Collections.singleton(ROOT));
+                input.initUseCache(false);
+            }
+        }, null).getSystemRoot("");
+        try {
+            sysRoot.getDataSource().execute("CREATE SCHEMA \"" + ROOT + "\"");
+            final DBRoot root = sysRoot.addRoot(ROOT, false);
+            final SQLTable tableEntree = createTables(root);
+            final SQLTable tablePlage = root.getTable("PLAGE_HORAIRE");
+            final SQLTable tableAdh = root.getTable("ADHERENT");
+
+            // toute la journée, sauf le dimanche
+            final SQLRowValues journee = new SQLRowValues(tablePlage).put("NOM", "Journée");
+            for (int i = 0; i < DAYS.length - 1; i++) {
+                journee.put("DEBUT_1_" + DAYS[i], Time.valueOf("00:00:00"));
+                journee.put("FIN_1_" + DAYS[i], Time.valueOf("23:59:59"));
+            }
+            final SQLRow rowJournee = journee.insert();
+            // deuxième plage du lundi soir
+            final SQLRow rowSoir = new SQLRowValues(tablePlage).put("NOM", "Soir").put("DEBUT_2_LUNDI", Time.valueOf("20:00:00")).put("FIN_2_LUNDI", Time.valueOf("22:00:00")).insert();
+
+            insertAdherent(tableAdh, "ADMIN", true, false, null, null);
+            insertAdherent(tableAdh, "JOUR", false, true, null, rowJournee);
+            final SQLRow rowInactif = insertAdherent(tableAdh, "INACTIF", false, false, null, rowJournee);
+            insertAdherent(tableAdh, "EXPIRE", false, true, date(2000, Calendar.JANUARY, 1, 0), rowJournee);
+            insertAdherent(tableAdh, "VALIDE", false, true, date(2100, Calendar.JANUARY, 1, 0), rowJournee);
+            insertAdherent(tableAdh, "SANS_PLAGE", false, true, null, null);
+            insertAdherent(tableAdh, "SOIR", false, true, null, rowSoir);
+            insertAdherent(tableAdh, "DOUBLE", false, true, null, rowJournee);
+            insertAdherent(tableAdh, "DOUBLE", false, true, null, rowJournee);
+            insertAdherent(tableAdh, "ARCHIVE", true, true, null, null).createEmptyUpdateRow().put(tableAdh.getArchiveField().getName(), 1).update();
+
+            final BadgeAccessTable accessTable = new BadgeAccessTable(root);
+            accessTable.start();
+
+            // 1er janvier 2024 : lundi
+            final Calendar lundiMidi = date(2024, Calendar.JANUARY, 1, 12);
+            check(accessTable, "ADMIN", date(2024, Calendar.JANUARY, 7, 3), true);
+            check(accessTable, "JOUR", lundiMidi, true);
+            check(accessTable, "JOUR", date(2024, Calendar.JANUARY, 7, 12), false);
+            check(accessTable, "INACTIF", lundiMidi, false);
+            check(accessTable, "EXPIRE", lundiMidi, false);
+            check(accessTable, "VALIDE", lundiMidi, true);
+            check(accessTable, "SANS_PLAGE", lundiMidi, false);
+            check(accessTable, "SOIR", date(2024, Calendar.JANUARY, 1, 21), true);
+            check(accessTable, "SOIR", date(2024, Calendar.JANUARY, 1, 19), false);
+            check(accessTable, "SOIR", date(2024, Calendar.JANUARY, 2, 21), false);
+            check(accessTable, "DOUBLE", lundiMidi, false);
+            check(accessTable, "ARCHIVE", lundiMidi, false);
+            check(accessTable, "INCONNUE", lundiMidi, false);
+            check(accessTable.check("SOIR", date(2024, Calendar.JANUARY, 1, 21)).getMotif().endsWith("Soir 2"), "Wrong plage");
+
+            final int port = getFreePort();
+            final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+            final BlockingQueue<String> opened = new LinkedBlockingQueue<String>();
+            final EntreeLog entreeLog = new EntreeLog(tableEntree);
+            entreeLog.start();
+            final BadgeListener listener = new BadgeListener(port, accessTable, entreeLog) {
+                private String last;
+
+                @Override
+                public boolean isBadgeAllowed(String cardNumber) {
+                    this.last = cardNumber;
+                    received.add(cardNumber);
+                    return super.isBadgeAllowed(cardNumber);
+                }
+
+                @Override
+                protected void openDoor() {
+                    opened.add(this.last);
+                }
+            };
+            final Thread t = listener.startListening();
+            final BadgeSender sender = new BadgeSender(InetAddress.getByName("127.0.0.1"), port);
+            try {
+                // la socket n'est peut-être pas encore ouverte
+                String first = null;
+                for (int i = 0; i < 50 && first == null; i++) {
+                    sender.send("ADMIN");
+                    first = received.poll(100, TimeUnit.MILLISECONDS);
+                }
+                check("ADMIN", first);
+                check("ADMIN", opened.poll(TIMEOUT, TimeUnit.SECONDS));
+                // réessais en trop
+                Thread.sleep(200);
+                received.clear();
+                opened.clear();
+
+                sender.send("  ADMIN\r\n");
+                check("ADMIN", received.poll(TIMEOUT, TimeUnit.SECONDS));
+                check("ADMIN", opened.poll(TIMEOUT, TimeUnit.SECONDS));
+
+                for (final String carte : REFUSED)
+                    sender.send(carte);
+                for (final String carte : REFUSED)
+                    check(carte, received.poll(TIMEOUT, TimeUnit.SECONDS));
+                for (int i = 0; i < 10; i++)
+                    sender.send("ADMIN");
+                for (int i = 0; i < 10; i++)
+                    check("ADMIN", opened.poll(TIMEOUT, TimeUnit.SECONDS));
+                // les cartes refusées n'ont pas ouvert la porte
+                if (!opened.isEmpty())
+                    throw new IllegalStateException("Unexpected openings : " + opened);
+
+                // rechargée après la modification
+                rowInactif.createEmptyUpdateRow().put("ACTIF", Boolean.TRUE).update();
+                boolean reloaded = false;
+                for (int i = 0; i < 50 && !reloaded; i++) {
+                    Thread.sleep(100);
+                    reloaded = accessTable.check("INACTIF", lundiMidi).isAllowed();
+                }
+                check(reloaded, "Modification not loaded");
+            } finally {
+                listener.stopDaemon();
+            }
+            t.join(TIMEOUT * 1000);
+            if (t.isAlive())
+                throw new IllegalStateException("Listener not stopped");
+            // le port est libéré
+            new DatagramSocket(port).close();
+
+            // journal écrit à l'arrêt
+            final Map<String, Integer> entrees = new HashMap<String, Integer>();
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelectStar(tableEntree);
+            for (final SQLRow row : SQLRowListRSH.execute(sel)) {
+                final String carte = row.getString("NUMERO_CARTE");
+                check(row.getBoolean("ACCEPTE").booleanValue() == carte.equals("ADMIN"), "Wrong decision logged for " + carte);
+                check(row.getString("ADHERENT").equals(ADHERENTS.containsKey(carte) ? ADHERENTS.get(carte) : ""), "Wrong adherent logged for " + carte + " : " + row.getString("ADHERENT"));
+                final Integer count = entrees.get(carte);
+                entrees.put(carte, count == null ? 1 : count + 1);
+            }
+            check(entrees.remove("ADMIN") >= 12, "Missing entries");
+            check(entrees.keySet().equals(new HashSet<String>(Arrays.asList(REFUSED))), "Wrong entries : " + entrees);
+            check(!entrees.values().contains(2), "Duplicate entries : " + entrees);
+            System.out.println("OK");
+        } finally {
+            sysRoot.getServer().destroy();
+        }
+    }
+
+    // comme Module.install()
+    private static SQLTable createTables(final DBRoot root) throws SQLException {
+        final SQLCreateTable createTableEntree = new SQLCreateTable(root, "ENTREE");
+        createTableEntree.addDateAndTimeColumn("DATE");
+        createTableEntree.addVarCharColumn("NUMERO_CARTE", 256);
+        createTableEntree.addVarCharColumn("ADHERENT", 512);
+        createTableEntree.addVarCharColumn("MOTIF", 2048);
+        createTableEntree.addColumn("ACCEPTE", "boolean");
+        final SQLTable res = root.createTable(createTableEntree);
+
+        final SQLCreateTable createTablePlage = new SQLCreateTable(root, "PLAGE_HORAIRE");
+        createTablePlage.addVarCharColumn("NOM", 256);
+        for (int i = 1; i <= 3; i++) {
+            for (final String day : DAYS) {
+                createTablePlage.addColumn("DEBUT_" + i + "_" + day, "time");
+                createTablePlage.addColumn("FIN_" + i + "_" + day, "time");
+            }
+        }
+        final SQLTable tablePlage = root.createTable(createTablePlage);
+
+        final SQLCreateTable createTable = new SQLCreateTable(root, "ADHERENT");
+        createTable.addVarCharColumn("NUMERO_CARTE", 256);
+        createTable.addVarCharColumn("NOM", 256);
+        createTable.addVarCharColumn("PRENOM", 256);
+        createTable.addColumn("ACTIF", "boolean default false");
+        createTable.addColumn("ADMIN", "boolean default false");
+        createTable.addColumn("DATE_VALIDITE_INSCRIPTION", "date");
+        createTable.addForeignColumn("ID_PLAGE_HORAIRE", tablePlage);
+        root.createTable(createTable);
+        return res;
+    }
+
+    private static SQLRow insertAdherent(final SQLTable tableAdh, final String carte, final boolean admin, final boolean actif, final Calendar validite, final SQLRow plage) throws SQLException {
+        final SQLRowValues vals = new SQLRowValues(tableAdh);
+        vals.put("NUMERO_CARTE", carte);
+        vals.put("NOM", carte);
+        vals.put("PRENOM", "Test");
+        vals.put("ADMIN", admin);
+        vals.put("ACTIF", actif);
+        vals.put("DATE_VALIDITE_INSCRIPTION", validite == null ? null : new java.sql.Date(validite.getTimeInMillis()));
+        if (plage != null)
+            vals.put("ID_PLAGE_HORAIRE", plage.getID());
+        return vals.insert();
+    }
+
+    private static Calendar date(final int year, final int month, final int day, final int hour) {
+        final Calendar res = Calendar.getInstance();
+        res.clear();
+        res.set(year, month, day, hour, 0, 0);
+        return res;
+    }
+
+    private static int getFreePort() throws Exception {
+        final DatagramSocket s = new DatagramSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+    private static void check(final BadgeAccessTable accessTable, final String carte, final Calendar now, final boolean allowed) {
+        final BadgeAccessTable.Decision decision = accessTable.check(carte, now);
+        check(decision.isAllowed() == allowed, carte + " at " + now.getTime() + " : " + decision.getMotif());
+        check(CompareUtils.equals(ADHERENTS.get(carte), decision.getAdherent()), carte + " : wrong adherent " + decision.getAdherent());
+    }
+
+    private static void check(final String expected, final String actual) {
+        if (!expected.equals(actual))
+            throw new IllegalStateException("Expected " + expected + " but got " + actual);
+    }
+
+    private static void check(final boolean b, final String msg) {
+        if (!b)
+            throw new IllegalStateException(msg);
+    }
+}
@@ -0,0 +1,53 @@
+package org.openconcerto.modules.badge;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * Envoie des numéros de carte à {@link BadgeListener}, comme le lecteur de badge, pour tester sans
+ * lecteur.
+ * 
+ * <pre>
+ * java org.openconcerto.modules.badge.BadgeSender host port carte...
+ * </pre>
+ */
+public class BadgeSender {
+
+    private final InetAddress address;
+    private final int port;
+
+    public BadgeSender(final InetAddress address, final int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Envoie un numéro de carte, sans attendre de réponse.
+     * 
+     * @param cardNumber le numéro de la carte.
+     * @throws IOException si le paquet ne peut être envoyé.
+     */
+    public void send(final String cardNumber) throws IOException {
+        final byte[] data = cardNumber.getBytes("US-ASCII");
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.send(new DatagramPacket(data, data.length, this.address, this.port));
+        } finally {
+            socket.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage : " + BadgeSender.class.getName() + " host port carte...");
+            System.exit(1);
+        }
+        final BadgeSender sender = new BadgeSender(InetAddress.getByName(args[0]), Integer.parseInt(args[1]));
+        for (int i = 2; i < args.length; i++) {
+            sender.send(args[i]);
+            System.out.println("Carte " + args[i] + " envoyée");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.openconcerto.modules.badge;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLTable;
+
+/**
+ * Journal des passages, écrit dans ENTREE par un thread dédié et par lots, pour ne pas retarder
+ * l'ouverture de la porte. Si la base n'est pas accessible les entrées sont gardées en mémoire
+ * (dans la limite de {@link #CAPACITY}) et réessayées. {@link #stop()} écrit les entrées restantes.
+ */
+public class EntreeLog implements Runnable {
+
+    public static final int CAPACITY = 10000;
+    private static final int BATCH_SIZE = 100;
+    private static final long RETRY_DELAY = 10 * 1000;
+    private static final long STOP_TIMEOUT = 5 * 1000;
+
+    private final SQLTable tableEntree;
+    private final BlockingQueue<SQLRowValues> queue;
+    private Thread thread;
+
+    public EntreeLog(final SQLTable tableEntree) {
+        this.tableEntree = tableEntree;
+        this.queue = new LinkedBlockingQueue<SQLRowValues>(CAPACITY);
+    }
+
+    public synchronized void start() {
+        if (this.thread != null)
+            throw new IllegalStateException("Already started");
+        this.thread = new Thread(this);
+        this.thread.setName("Badge log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Arrête le thread d'écriture, après un dernier essai pour les entrées en attente.
+     */
+    public void stop() {
+        final Thread t;
+        synchronized (this) {
+            t = this.thread;
+            this.thread = null;
+        }
+        if (t == null)
+            return;
+        t.interrupt();
+        try {
+            t.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ajoute une entrée, sans attendre.
+     * 
+     * @param cardNumber le numéro de la carte.
+     * @param decision la décision.
+     */
+    public void add(final String cardNumber, final BadgeAccessTable.Decision decision) {
+        // Création de l'entrée dans la table
+        final SQLRowValues rowVals = new SQLRowValues(this.tableEntree);
+        rowVals.put("DATE", new Date());
+        rowVals.put("NUMERO_CARTE", cardNumber);
+        rowVals.put("ACCEPTE", decision.isAllowed());
+        rowVals.put("MOTIF", decision.getMotif());
+        // colonne non nulle, et toutes les lignes d'un lot doivent avoir les mêmes champs
+        rowVals.put("ADHERENT", decision.getAdherent() == null ? "" : decision.getAdherent());
+        if (!this.queue.offer(rowVals)) {
+            System.err.println("Journal plein, entrée perdue : " + rowVals);
+        }
+    }
+
+    @Override
+    public void run() {
+        final List<SQLRowValues> batch = new ArrayList<SQLRowValues>(BATCH_SIZE);
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(this.queue.take());
+                    this.queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+                SQLRowValues.insertBatch(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                this.flush(batch);
+                return;
+            } catch (SQLException e) {
+                // garde le lot pour le réessayer
+                System.err.println("Impossible d'écrire " + batch.size() + " entrées, nouvel essai dans " + RETRY_DELAY / 1000 + "s");
+                e.printStackTrace();
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException e1) {
+                    this.flush(batch);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                // lot invalide, inutile de réessayer
+                e.printStackTrace();
+                batch.clear();
+            }
+        }
+    }
+
+    // un seul essai, à l'arrêt
+    private void flush(final List<SQLRowValues> batch) {
+        this.queue.drainTo(batch);
+        if (batch.isEmpty())
+            return;
+        try {
+            // par lots, comme run()
+            for (int i = 0; i < batch.size(); i += BATCH_SIZE) {
+                SQLRowValues.insertBatch(batch.subList(i, Math.min(batch.size(), i + BATCH_SIZE)));
+            }
+        } catch (Exception e) {
+            System.err.println("Impossible d'écrire les entrées restantes, entrées perdues");
+            e.printStackTrace();
+        }
+    }
+}
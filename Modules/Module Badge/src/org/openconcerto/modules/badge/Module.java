@@ -289,6 +289,7 @@ public final class Module extends AbstractModule {
 
     @Override
     protected void stop() {
+        BadgeListener.stopCurrentDaemon();
     }
 
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,277 @@
+package org.openconcerto.modules.finance.payment.ebics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.openconcerto.utils.StreamUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for an EBICS bank server, to test {@link EbicsTransaction} without network. It serves
+ * one file for downloads (FDL) and keeps the uploaded files (FUL) after checking their A005
+ * signature. Authentication signatures aren't checked.
+ * 
+ * @see EbicsTransactionTest
+ */
+public class EbicsMockBank {
+
+    private static final class Transaction {
+        private final String type;
+        private final SecretKey key;
+        // download
+        private EbicsOrderData data;
+        // upload
+        private ByteArrayOutputStream received;
+        private OutputStream decryptor;
+        private byte[] signature;
+
+        Transaction(String type, SecretKey key) {
+            this.type = type;
+            this.key = key;
+        }
+    }
+
+    private final HttpServer server;
+    private final KeyPair authenticationKeys, encryptionKeys;
+    private final Map<String, Transaction> transactions;
+    private final List<byte[]> uploads;
+    private EbicsConfiguration client;
+    private byte[] download;
+    private int transactionCount;
+    private int requestCount;
+    private int receiptCount;
+
+    public EbicsMockBank() throws Exception {
+        final KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(2048);
+        this.authenticationKeys = gen.generateKeyPair();
+        this.encryptionKeys = gen.generateKeyPair();
+        this.transactions = new HashMap<String, Transaction>();
+        this.uploads = new ArrayList<byte[]>();
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        this.server.createContext("/ebics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                try {
+                    final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+                    StreamUtils.copy(ex.getRequestBody(), bOut);
+                    final byte[] res = EbicsMockBank.this.handle(bOut.toByteArray()).getBytes("UTF-8");
+                    ex.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+                    ex.sendResponseHeaders(200, res.length);
+                    ex.getResponseBody().write(res);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    ex.sendResponseHeaders(500, -1);
+                } finally {
+                    ex.close();
+                }
+            }
+        });
+    }
+
+    public final String getURL() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort() + "/ebics";
+    }
+
+    public final RSAPublicKey getAuthenticationKey() {
+        return (RSAPublicKey) this.authenticationKeys.getPublic();
+    }
+
+    public final RSAPublicKey getEncryptionKey() {
+        return (RSAPublicKey) this.encryptionKeys.getPublic();
+    }
+
+    /**
+     * Set the subscriber, its keys are used to encrypt downloads and check upload signatures.
+     * 
+     * @param client the configuration of the subscriber.
+     */
+    public synchronized final void setClient(EbicsConfiguration client) {
+        this.client = client;
+    }
+
+    public synchronized final void setDownload(byte[] download) {
+        this.download = download;
+    }
+
+    public synchronized final List<byte[]> getUploads() {
+        return new ArrayList<byte[]>(this.uploads);
+    }
+
+    public synchronized final int getRequestCount() {
+        return this.requestCount;
+    }
+
+    public synchronized final int getReceiptCount() {
+        return this.receiptCount;
+    }
+
+    /**
+     * The transactions not yet finished.
+     * 
+     * @return the number of transactions waiting for a segment or a receipt.
+     */
+    public synchronized final int getOpenTransactionCount() {
+        return this.transactions.size();
+    }
+
+    public final void start() {
+        this.server.start();
+    }
+
+    public final void stop() {
+        this.server.stop(0);
+    }
+
+    private static String getText(Document doc, String name) {
+        final Node n = doc.getElementsByTagName(name).item(0);
+        return n == null ? null : n.getTextContent().trim();
+    }
+
+    private synchronized String handle(byte[] request) throws Exception {
+        this.requestCount++;
+        final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(request));
+        final String phase = getText(doc, "TransactionPhase");
+        if ("Initialisation".equals(phase)) {
+            final String type = getText(doc, "OrderType");
+            final String transactionID = String.format("%032X", ++this.transactionCount);
+            if (OrderType.FDL.equals(type)) {
+                final Transaction t = new Transaction(type, EbicsOrderData.createTransactionKey());
+                t.data = EbicsOrderData.create(new ByteArrayInputStream(this.download), t.key, false);
+                this.transactions.put(transactionID, t);
+                return createSegmentResponse(transactionID, phase, t, 0);
+            } else if (OrderType.FUL.equals(type)) {
+                final Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+                cipher.init(Cipher.DECRYPT_MODE, this.encryptionKeys.getPrivate());
+                final Transaction t = new Transaction(type, new SecretKeySpec(cipher.doFinal(Base64.decode(getText(doc, "TransactionKey"))), "AES"));
+                final Document signature = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(decode(getText(doc, "SignatureData"), t.key)));
+                t.signature = Base64.decode(getText(signature, "SignatureValue"));
+                t.received = new ByteArrayOutputStream();
+                t.decryptor = EbicsOrderData.createDecryptor(t.received, t.key);
+                this.transactions.put(transactionID, t);
+                return createResponse(transactionID, phase, "", "000000");
+            } else {
+                return createResponse(null, phase, "", "091005");
+            }
+        }
+
+        final String transactionID = getText(doc, "TransactionID");
+        final Transaction t = this.transactions.get(transactionID);
+        if (t == null) {
+            // EBICS_TX_UNKNOWN_TXID
+            return createResponse(transactionID, phase, "", "091101");
+        }
+        final int segmentNumber = getText(doc, "SegmentNumber") == null ? 0 : Integer.parseInt(getText(doc, "SegmentNumber"));
+        if ("Transfer".equals(phase) && t.type.equals(OrderType.FDL)) {
+            return createSegmentResponse(transactionID, phase, t, segmentNumber - 1);
+        } else if ("Transfer".equals(phase)) {
+            final OutputStream segmentDecoder = EbicsOrderData.createSegmentDecoder(t.decryptor);
+            segmentDecoder.write(getText(doc, "OrderData").getBytes("US-ASCII"));
+            segmentDecoder.close();
+            if ("true".equals(((Element) doc.getElementsByTagName("SegmentNumber").item(0)).getAttribute("lastSegment"))) {
+                t.decryptor.close();
+                final byte[] data = t.received.toByteArray();
+                final Signature sig = Signature.getInstance("SHA256withRSA");
+                sig.initVerify(this.client.getSignatureCertificate().getPublicKey());
+                sig.update(data);
+                this.transactions.remove(transactionID);
+                if (!sig.verify(t.signature)) {
+                    // EBICS_INVALID_SIGNATURE_FILE_FORMAT
+                    return createResponse(transactionID, phase, "", "091008");
+                }
+                this.uploads.add(data);
+            }
+            return createResponse(transactionID, phase, "", "000000");
+        } else if ("Receipt".equals(phase)) {
+            this.transactions.remove(transactionID);
+            t.data.dispose();
+            if ("0".equals(getText(doc, "ReceiptCode")))
+                this.receiptCount++;
+            // EBICS_DOWNLOAD_POSTPROCESS_DONE
+            return createResponse(transactionID, phase, "", "011000");
+        } else {
+            return createResponse(transactionID, phase, "", "091005");
+        }
+    }
+
+    private byte[] decode(String encoded, SecretKey key) throws Exception {
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        final OutputStream out = EbicsOrderData.createDecoder(res, key);
+        out.write(encoded.getBytes("US-ASCII"));
+        out.close();
+        return res.toByteArray();
+    }
+
+    // segment from 0
+    private String createSegmentResponse(String transactionID, String phase, Transaction t, int segment) throws Exception {
+        final StringBuilder body = new StringBuilder(EbicsOrderData.SEGMENT_SIZE + 1024);
+        body.append("<DataTransfer>");
+        if (segment == 0) {
+            final PublicKey clientKey = this.client.getEncryptionCertificate().getPublicKey();
+            final Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, clientKey);
+            body.append("<DataEncryptionInfo authenticate=\"true\"><EncryptionPubKeyDigest Version=\"E002\" Algorithm=\"http://www.w3.org/2001/04/xmlenc#sha256\">");
+            body.append(new String(Base64.encode(EbicsUtil.getPublicKeyHash256((RSAPublicKey) clientKey))));
+            body.append("</EncryptionPubKeyDigest><TransactionKey>");
+            body.append(new String(Base64.encode(cipher.doFinal(t.key.getEncoded()))));
+            body.append("</TransactionKey></DataEncryptionInfo>");
+        }
+        body.append("<OrderData>");
+        final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        t.data.writeSegment(segment, bOut);
+        body.append(bOut.toString("US-ASCII"));
+        body.append("</OrderData></DataTransfer>");
+
+        final StringBuilder header = new StringBuilder();
+        if (segment == 0)
+            header.append("<NumSegments>").append(t.data.getSegmentCount()).append("</NumSegments>");
+        final String mutable = "<SegmentNumber lastSegment=\"" + (segment == t.data.getSegmentCount() - 1) + "\">" + (segment + 1) + "</SegmentNumber>";
+        return createResponse(transactionID, phase, header.toString(), mutable, body.toString(), "000000");
+    }
+
+    private String createResponse(String transactionID, String phase, String body, String returnCode) {
+        return createResponse(transactionID, phase, "", "", body, returnCode);
+    }
+
+    private String createResponse(String transactionID, String phase, String staticHeader, String mutableHeader, String body, String returnCode) {
+        final StringBuilder sb = new StringBuilder(body.length() + 1024);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<ebicsResponse xmlns=\"http://www.ebics.org/H003\" Version=\"H003\" Revision=\"1\">");
+        sb.append("<header authenticate=\"true\"><static>");
+        if (transactionID != null)
+            sb.append("<TransactionID>").append(transactionID).append("</TransactionID>");
+        sb.append(staticHeader);
+        sb.append("</static><mutable><TransactionPhase>").append(phase).append("</TransactionPhase>");
+        sb.append(mutableHeader);
+        sb.append("<ReturnCode>").append(returnCode).append("</ReturnCode>");
+        sb.append("<ReportText>").append(returnCode.equals("000000") ? "[EBICS_OK] OK" : "[" + returnCode + "]").append("</ReportText>");
+        sb.append("</mutable></header><body>");
+        sb.append(body);
+        sb.append("<ReturnCode authenticate=\"true\">000000</ReturnCode></body></ebicsResponse>");
+        return sb.toString();
+    }
+}
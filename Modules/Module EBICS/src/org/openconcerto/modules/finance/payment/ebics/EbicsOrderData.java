@@ -0,0 +1,324 @@
+package org.openconcerto.modules.finance.payment.ebics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.openconcerto.utils.Base64;
+import org.openconcerto.utils.StreamUtils;
+
+/**
+ * Order data of an upload, compressed, encrypted if needed and Base64 encoded as it is read. The
+ * result is kept in temporary files of at most {@link #SEGMENT_SIZE} bytes, one per transaction
+ * step, so memory use doesn't depend on the size of the data.
+ */
+public class EbicsOrderData {
+
+    /**
+     * The maximum size of a segment of Base64 encoded order data.
+     */
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // E002 : AES-128 in CBC mode with a null initialisation vector
+    private static Cipher createCipher(final int mode, final SecretKey key) throws GeneralSecurityException {
+        final Cipher res = Cipher.getInstance("AES/CBC/ISO10126Padding");
+        res.init(mode, key, new IvParameterSpec(new byte[res.getBlockSize()]));
+        return res;
+    }
+
+    /**
+     * Create a new key to encrypt the order data of one transaction.
+     * 
+     * @return a new AES-128 key.
+     * @throws GeneralSecurityException if AES isn't available.
+     */
+    public static SecretKey createTransactionKey() throws GeneralSecurityException {
+        final KeyGenerator gen = KeyGenerator.getInstance("AES");
+        gen.init(128);
+        return gen.generateKey();
+    }
+
+    /**
+     * Create a stream to encode order data.
+     * 
+     * @param out where to write the Base64 encoded data, closed with the returned stream.
+     * @param transactionKey the key to encrypt with, <code>null</code> to not encrypt.
+     * @return the stream in which to write the order data.
+     * @throws GeneralSecurityException if the cipher cannot be created.
+     */
+    public static OutputStream createEncoder(final OutputStream out, final SecretKey transactionKey) throws GeneralSecurityException {
+        OutputStream res = new Base64.OutputStream(out, Base64.ENCODE | Base64.DONT_BREAK_LINES);
+        if (transactionKey != null) {
+            res = new CipherOutputStream(res, createCipher(Cipher.ENCRYPT_MODE, transactionKey));
+        }
+        return new DeflaterOutputStream(res);
+    }
+
+    /**
+     * Create a stream to decode order data.
+     * 
+     * @param out where to write the decoded order data, closed with the returned stream.
+     * @param transactionKey the key to decrypt with, <code>null</code> if not encrypted.
+     * @return the stream in which to write the Base64 encoded data.
+     * @throws GeneralSecurityException if the cipher cannot be created.
+     */
+    public static OutputStream createDecoder(final OutputStream out, final SecretKey transactionKey) throws GeneralSecurityException {
+        return new Base64.OutputStream(createDecryptor(out, transactionKey), Base64.DECODE);
+    }
+
+    /**
+     * Create a stream to decrypt and decompress order data. Segments are Base64 encoded one by
+     * one, so a download in several segments writes each one with
+     * {@link #createSegmentDecoder(OutputStream)} into the same decryptor.
+     * 
+     * @param out where to write the decoded order data, closed with the returned stream.
+     * @param transactionKey the key to decrypt with, <code>null</code> if not encrypted.
+     * @return the stream in which to write the decoded Base64.
+     * @throws GeneralSecurityException if the cipher cannot be created.
+     */
+    public static OutputStream createDecryptor(final OutputStream out, final SecretKey transactionKey) throws GeneralSecurityException {
+        final OutputStream res = new InflaterOutputStream(out);
+        if (transactionKey != null) {
+            return new CipherOutputStream(res, createCipher(Cipher.DECRYPT_MODE, transactionKey));
+        }
+        return res;
+    }
+
+    /**
+     * Create a stream to decode the Base64 of one segment.
+     * 
+     * @param decryptor the stream returned by {@link #createDecryptor(OutputStream, SecretKey)},
+     *        <b>not</b> closed with the returned stream.
+     * @return the stream in which to write the Base64 encoded segment.
+     */
+    public static OutputStream createSegmentDecoder(final OutputStream decryptor) {
+        return new Base64.OutputStream(new FilterOutputStream(decryptor) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.flush();
+            }
+        }, Base64.DECODE);
+    }
+
+    /**
+     * Encode a file.
+     * 
+     * @param f the file to upload.
+     * @param transactionKey the key to encrypt with, <code>null</code> to not encrypt.
+     * @param unixToDos <code>true</code> to add a CR before each LF.
+     * @return the encoded data, {@link #dispose()} should be called once sent.
+     * @throws IOException if the file cannot be read.
+     * @throws GeneralSecurityException if the data cannot be encrypted.
+     */
+    public static EbicsOrderData create(final File f, final SecretKey transactionKey, final boolean unixToDos) throws IOException, GeneralSecurityException {
+        final InputStream in = new FileInputStream(f);
+        try {
+            return create(in, transactionKey, unixToDos);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Encode a stream.
+     * 
+     * @param in the data to upload, not closed.
+     * @param transactionKey the key to encrypt with, <code>null</code> to not encrypt.
+     * @param unixToDos <code>true</code> to add a CR before each LF.
+     * @return the encoded data, {@link #dispose()} should be called once sent.
+     * @throws IOException if the data cannot be read.
+     * @throws GeneralSecurityException if the data cannot be encrypted.
+     */
+    public static EbicsOrderData create(final InputStream in, final SecretKey transactionKey, final boolean unixToDos) throws IOException, GeneralSecurityException {
+        final EbicsOrderData res = new EbicsOrderData();
+        boolean ok = false;
+        try {
+            // the signature is computed on the sent data, i.e. after unixToDos
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            OutputStream out = new DigestOutputStream(createEncoder(res.new SegmentsOutputStream(), transactionKey), digest);
+            if (unixToDos) {
+                out = new UnixToDosOutputStream(out);
+            }
+            StreamUtils.copy(in, out, BUFFER_SIZE);
+            out.close();
+            res.digest = digest.digest();
+            ok = true;
+        } finally {
+            if (!ok) {
+                res.dispose();
+            }
+        }
+        return res;
+    }
+
+    private final List<File> segments;
+    private long length;
+    private byte[] digest;
+
+    private EbicsOrderData() {
+        this.segments = new ArrayList<File>();
+        this.length = 0;
+    }
+
+    /**
+     * The hash of the order data, e.g. for the electronic signature.
+     * 
+     * @return the SHA-256 of the data before compression.
+     */
+    public final byte[] getDigest() {
+        return this.digest.clone();
+    }
+
+    public final int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * The size of the Base64 encoded data.
+     * 
+     * @return the number of bytes of all segments.
+     */
+    public final long getLength() {
+        return this.length;
+    }
+
+    /**
+     * The size of a segment.
+     * 
+     * @param index the index of the segment, from 0.
+     * @return the number of Base64 encoded bytes in the segment.
+     */
+    public final long getSegmentLength(final int index) {
+        return this.segments.get(index).length();
+    }
+
+    /**
+     * Write a segment.
+     * 
+     * @param index the index of the segment, from 0.
+     * @param out where to write the Base64 encoded data.
+     * @throws IOException if the segment cannot be written.
+     */
+    public final void writeSegment(final int index, final OutputStream out) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(this.segments.get(index)), BUFFER_SIZE);
+        try {
+            StreamUtils.copy(in, out, BUFFER_SIZE);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete the temporary files.
+     */
+    public final void dispose() {
+        for (final File f : this.segments) {
+            f.delete();
+        }
+        this.segments.clear();
+    }
+
+    // split into files of SEGMENT_SIZE bytes
+    private final class SegmentsOutputStream extends OutputStream {
+        private OutputStream current = null;
+        private int currentSize = 0;
+
+        private OutputStream getCurrent() throws IOException {
+            if (this.current == null || this.currentSize == SEGMENT_SIZE) {
+                this.close();
+                final File f = File.createTempFile("ebicsSegment", ".b64");
+                f.deleteOnExit();
+                EbicsOrderData.this.segments.add(f);
+                this.current = new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE);
+                this.currentSize = 0;
+            }
+            return this.current;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.getCurrent().write(b);
+            this.currentSize++;
+            EbicsOrderData.this.length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final OutputStream out = this.getCurrent();
+                final int count = Math.min(len, SEGMENT_SIZE - this.currentSize);
+                out.write(b, off, count);
+                this.currentSize += count;
+                EbicsOrderData.this.length += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.current != null) {
+                this.current.close();
+                this.current = null;
+            }
+        }
+    }
+
+    /**
+     * Add a CR before each LF.
+     */
+    public static class UnixToDosOutputStream extends FilterOutputStream {
+
+        public UnixToDosOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                this.out.write('\r');
+            }
+            this.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final int end = off + len;
+            int start = off;
+            for (int i = off; i < end; i++) {
+                if (b[i] == '\n') {
+                    this.out.write(b, start, i - start);
+                    this.out.write('\r');
+                    start = i;
+                }
+            }
+            this.out.write(b, start, end - start);
+        }
+    }
+}
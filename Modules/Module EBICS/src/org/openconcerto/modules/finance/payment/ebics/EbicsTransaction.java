@@ -0,0 +1,92 @@
+package org.openconcerto.modules.finance.payment.ebics;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openconcerto.modules.finance.payment.ebics.request.EbicsRequest;
+import org.openconcerto.modules.finance.payment.ebics.request.FDLRequest;
+import org.openconcerto.modules.finance.payment.ebics.request.FULRequest;
+import org.openconcerto.modules.finance.payment.ebics.request.ReceiptRequest;
+import org.openconcerto.modules.finance.payment.ebics.request.TransferRequest;
+import org.openconcerto.modules.finance.payment.ebics.response.DataResponse;
+import org.openconcerto.modules.finance.payment.ebics.response.EbicsResponse;
+import org.openconcerto.modules.finance.payment.ebics.response.FDLResponse;
+
+/**
+ * The phases of a download or an upload : initialisation, transfer of the segments and receipt.
+ * The order data is streamed, one segment at a time.
+ */
+public class EbicsTransaction {
+
+    /**
+     * Download a file (FDL) directly to disk.
+     * 
+     * @param config the configuration.
+     * @param fileFormat the format, e.g. "camt.xxx.cfonb120.stm".
+     * @param dest where to write the file.
+     * @throws Exception if the file cannot be downloaded.
+     */
+    public static void download(EbicsConfiguration config, String fileFormat, File dest) throws Exception {
+        download(new FDLRequest(config, fileFormat), new FDLResponse(config, dest));
+    }
+
+    /**
+     * Download order data in as many segments as the bank sends, then acknowledge it.
+     * 
+     * @param init the initialisation request.
+     * @param response where to read the segments, {@link DataResponse#dataReceived()} is called
+     *        after the last one.
+     * @throws Exception if the data cannot be downloaded.
+     */
+    public static void download(EbicsRequest init, DataResponse response) throws Exception {
+        final EbicsConfiguration config = init.getConfiguration();
+        init.send(response);
+        final String transactionID = response.getTransactionID();
+        for (int segment = response.getSegmentNumber() + 1; !response.isLastSegment(); segment++) {
+            new TransferRequest(config, init.getType(), transactionID, segment, segment == response.getSegmentCount()).send(response);
+        }
+        if (transactionID != null) {
+            new ReceiptRequest(config, init.getType(), transactionID, true).send(new EbicsResponse(config));
+        }
+    }
+
+    /**
+     * Upload a file (FUL).
+     * 
+     * @param config the configuration.
+     * @param fileFormat the format, e.g. "pain.001.001.02.sct".
+     * @param f the file to upload.
+     * @param unixToDos <code>true</code> to add a CR before each LF.
+     * @return the ID of the transaction.
+     * @throws Exception if the file cannot be uploaded.
+     */
+    public static String upload(EbicsConfiguration config, String fileFormat, File f, boolean unixToDos) throws Exception {
+        return upload(new FULRequest(config, fileFormat, f, unixToDos));
+    }
+
+    /**
+     * Send the initialisation then each segment of the data.
+     * 
+     * @param init the initialisation request, its data is disposed once sent.
+     * @return the ID of the transaction.
+     * @throws Exception if the data cannot be uploaded.
+     */
+    public static String upload(FULRequest init) throws Exception {
+        final EbicsConfiguration config = init.getConfiguration();
+        final EbicsOrderData data = init.getData();
+        try {
+            final EbicsResponse response = new EbicsResponse(config);
+            init.send(response);
+            final String transactionID = response.getTransactionID();
+            if (transactionID == null) {
+                throw new IOException("No TransactionID in the response");
+            }
+            for (int segment = 0; segment < data.getSegmentCount(); segment++) {
+                new TransferRequest(config, init.getType(), transactionID, data, segment).send(response);
+            }
+            return transactionID;
+        } finally {
+            data.dispose();
+        }
+    }
+}
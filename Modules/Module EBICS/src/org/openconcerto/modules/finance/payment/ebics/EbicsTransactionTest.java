@@ -0,0 +1,111 @@
+package org.openconcerto.modules.finance.payment.ebics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.openconcerto.modules.finance.payment.ebics.crypto.KeyStoreGenerator;
+import org.openconcerto.modules.finance.payment.ebics.request.FDLRequest;
+import org.openconcerto.modules.finance.payment.ebics.request.TransferRequest;
+import org.openconcerto.modules.finance.payment.ebics.response.EbicsResponse;
+import org.openconcerto.modules.finance.payment.ebics.response.FDLResponse;
+import org.openconcerto.utils.FileUtils;
+
+/**
+ * Round trips of {@link EbicsTransaction} against {@link EbicsMockBank} : downloads and uploads in
+ * one and several segments, and an error returned by the bank.
+ */
+public class EbicsTransactionTest {
+
+    public static void main(String[] args) throws Exception {
+        final EbicsMockBank bank = new EbicsMockBank();
+        final EbicsConfiguration config = new EbicsConfiguration(new Host("MOCKBANK", bank.getURL()), new Partner("PARTNER1"), new User("USER1")) {
+            @Override
+            public RSAPublicKey loadBankPublicAuthenticationKey() throws Exception {
+                return bank.getAuthenticationKey();
+            }
+
+            @Override
+            public RSAPublicKey loadBankPublicEncryptionKey() throws Exception {
+                return bank.getEncryptionKey();
+            }
+        };
+        final KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(null, null);
+        KeyStoreGenerator.createKeys(ks, "test", "FR", "OpenConcerto", "Paris", "", "test@example.com");
+        config.setKeyStore(ks, "test");
+        bank.setClient(config);
+        bank.start();
+        final File dir = FileUtils.createTempDir("ebicsTest");
+        try {
+            final Random r = new Random(1);
+            // random data doesn't compress : 4 segments of Base64
+            final byte[] big = new byte[2500000];
+            r.nextBytes(big);
+            final byte[] small = "Relevé\nde\ncompte\n".getBytes("UTF-8");
+
+            // download
+            for (final byte[] content : Arrays.asList(small, big)) {
+                bank.setDownload(content);
+                final int requests = bank.getRequestCount();
+                final File dest = new File(dir, "download.bin");
+                EbicsTransaction.download(config, "camt.xxx.cfonb120.stm", dest);
+                check("download of " + content.length + " bytes", content, FileUtils.readBytes(dest));
+                System.out.println("download of " + content.length + " bytes in " + (bank.getRequestCount() - requests) + " requests");
+            }
+            if (bank.getReceiptCount() != 2)
+                throw new IllegalStateException("Missing receipts : " + bank.getReceiptCount());
+            // the response kept in memory
+            bank.setDownload(small);
+            final FDLResponse inMemory = new FDLResponse(config, (File) null);
+            EbicsTransaction.download(new FDLRequest(config, "camt.xxx.cfonb120.stm"), inMemory);
+
+            // upload
+            for (final byte[] content : Arrays.asList(small, big)) {
+                final File f = new File(dir, "upload.bin");
+                write(f, content);
+                final int requests = bank.getRequestCount();
+                EbicsTransaction.upload(config, "pain.001.001.02.sct", f, false);
+                check("upload of " + content.length + " bytes", content, bank.getUploads().get(bank.getUploads().size() - 1));
+                System.out.println("upload of " + content.length + " bytes in " + (bank.getRequestCount() - requests) + " requests");
+            }
+            final File text = new File(dir, "upload.txt");
+            write(text, small);
+            EbicsTransaction.upload(config, "pain.001.001.02.sct", text, true);
+            check("upload with CRLF", new String(small, "UTF-8").replace("\n", "\r\n").getBytes("UTF-8"), bank.getUploads().get(bank.getUploads().size() - 1));
+            if (bank.getOpenTransactionCount() != 0)
+                throw new IllegalStateException("Unfinished transactions : " + bank.getOpenTransactionCount());
+
+            // error
+            try {
+                new TransferRequest(config, OrderType.FDL, "0123456789ABCDEF0123456789ABCDEF", 2, true).send(new EbicsResponse(config));
+                throw new IllegalStateException("Unknown transaction accepted");
+            } catch (IOException e) {
+                if (!e.getMessage().contains("091101"))
+                    throw e;
+            }
+            System.out.println("OK");
+        } finally {
+            bank.stop();
+            FileUtils.rm_R(dir);
+        }
+    }
+
+    private static void write(final File f, final byte[] content) throws IOException {
+        final FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void check(final String name, final byte[] expected, final byte[] actual) {
+        if (!Arrays.equals(expected, actual))
+            throw new IllegalStateException(name + " : " + actual.length + " bytes instead of " + expected.length);
+    }
+}
@@ -1,15 +1,16 @@
 package org.openconcerto.modules.finance.payment.ebics;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.MessageDigest;
@@ -20,11 +21,13 @@ import java.security.cert.CertificateException;
 import java.security.interfaces.RSAKey;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
 
+import javax.crypto.Cipher;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
@@ -35,6 +38,7 @@ import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Base64Encoder;
 import org.bouncycastle.util.encoders.Hex;
 import org.bouncycastle.util.encoders.HexEncoder;
+import org.openconcerto.utils.StreamUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -46,49 +50,44 @@ public class EbicsUtil {
     public static final String END_CERT = "-----END CERTIFICATE-----";
 
     public static byte[] decodeData(String encodedData) {
-        InflaterInputStream zip = new InflaterInputStream(new ByteArrayInputStream(Base64.decode(encodedData)));
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        final byte[] buf = new byte[2048];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(encodedData.length());
         try {
-            while (zip.available() > 0) {
-                int len = zip.read(buf);
-                if (len > 0) {
-                    out.write(buf, 0, len);
-                }
-            }
-            out.close();
-            zip.close();
+            final OutputStream decoder = EbicsOrderData.createDecoder(out, null);
+            decoder.write(encodedData.getBytes("US-ASCII"));
+            decoder.close();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
         }
         return out.toByteArray();
     }
 
     public static String encodeData(byte[] data) throws UnsupportedEncodingException {
-        final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        final ByteArrayOutputStream bOut = new ByteArrayOutputStream(data.length / 2 + 16);
         try {
-            DeflaterOutputStream out = new DeflaterOutputStream(bOut);
+            final OutputStream out = EbicsOrderData.createEncoder(bOut, null);
             out.write(data);
             out.close();
-            bOut.close();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
         }
-        final byte[] zippedData = bOut.toByteArray();
-
-        return new String(Base64.encode(zippedData));
+        return bOut.toString("US-ASCII");
     }
 
+    /**
+     * Read a whole file, to be used for small files, see {@link EbicsOrderData} for uploads.
+     */
     public static byte[] getFileContent(final File f) throws Exception {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        final BufferedInputStream in = new BufferedInputStream(new FileInputStream(f));
-        final byte[] buffer = new byte[40960];
-        while (in.available() > 0) {
-            final int s = in.read(buffer);
-            out.write(buffer, 0, s);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) f.length());
+        final InputStream in = new FileInputStream(f);
+        try {
+            StreamUtils.copy(in, out, 40960);
+        } finally {
+            in.close();
         }
-        // dispose all the resources after using them.
-        in.close();
         return out.toByteArray();
     }
 
@@ -99,13 +98,12 @@ public class EbicsUtil {
     }
 
     public static byte[] unixToDos(byte[] fileContent) {
-        final ByteArrayOutputStream b = new ByteArrayOutputStream();
-        for (int i = 0; i < fileContent.length; i++) {
-            byte c = fileContent[i];
-            if (c == '\n') {
-                b.write('\r');
-            }
-            b.write(c);
+        final ByteArrayOutputStream b = new ByteArrayOutputStream(fileContent.length + fileContent.length / 32);
+        try {
+            new EbicsOrderData.UnixToDosOutputStream(b).write(fileContent);
+        } catch (IOException e) {
+            // ByteArrayOutputStream
+            throw new IllegalStateException(e);
         }
         return b.toByteArray();
     }
@@ -127,18 +125,8 @@ public class EbicsUtil {
      * */
     public static String getXML(Document doc) {
         try {
-
-            DOMSource domSource = new DOMSource(doc);
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer transformer = tf.newTransformer();
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
             StringWriter sw = new StringWriter();
-            StreamResult sr = new StreamResult(sw);
-            transformer.transform(domSource, sr);
+            createXMLTransformer().transform(new DOMSource(doc), new StreamResult(sw));
             String xml = sw.toString();
             return xml;
         } catch (Exception e) {
@@ -148,6 +136,28 @@ public class EbicsUtil {
 
     }
 
+    /**
+     * Write the Document in UTF-8 without creating a String.
+     * 
+     * @param doc the document.
+     * @param out where to write, not closed.
+     * @throws TransformerException if the document cannot be written.
+     */
+    public static void writeXML(Document doc, OutputStream out) throws TransformerException {
+        createXMLTransformer().transform(new DOMSource(doc), new StreamResult(out));
+    }
+
+    private static Transformer createXMLTransformer() throws TransformerConfigurationException {
+        TransformerFactory tf = TransformerFactory.newInstance();
+        Transformer transformer = tf.newTransformer();
+        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        return transformer;
+    }
+
     /**
      * Returns the keystore with the configured CA certificates.
      */
@@ -223,6 +233,25 @@ public class EbicsUtil {
         return new String(Base64.encode(result));
     }
 
+    // DER encoded DigestInfo of SHA-256, before the hash itself
+    private static final byte[] SHA256_DIGEST_INFO = { 0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20 };
+
+    /**
+     * A005 electronic signature, i.e. RSASSA-PKCS1-v1_5 of a SHA-256 hash already computed.
+     * 
+     * @param digest the SHA-256 of the signed data.
+     * @param key the private signature key.
+     * @return the signature, the same as <code>SHA256withRSA</code> on the data.
+     * @throws GeneralSecurityException if the signature cannot be computed.
+     */
+    public static byte[] signA005(byte[] digest, PrivateKey key) throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        // encrypting with the private key uses the signature padding
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        cipher.update(SHA256_DIGEST_INFO);
+        return cipher.doFinal(digest);
+    }
+
     public static byte[] getSHA256(byte[] toHash) {
         byte[] result;
         try {
@@ -263,9 +292,7 @@ public class EbicsUtil {
      * @return the array
      * */
     public static byte[] removeFirstByte(byte[] byteArray) {
-        byte[] b = new byte[byteArray.length - 1];
-        System.arraycopy(byteArray, 1, b, 0, b.length);
-        return b;
+        return Arrays.copyOfRange(byteArray, 1, byteArray.length);
     }
 
     /**
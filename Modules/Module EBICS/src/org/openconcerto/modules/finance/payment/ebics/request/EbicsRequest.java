@@ -1,12 +1,15 @@
 package org.openconcerto.modules.finance.payment.ebics.request;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -36,12 +39,14 @@ import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.HexEncoder;
 import org.bouncycastle.util.encoders.HexTranslator;
 import org.openconcerto.modules.finance.payment.ebics.EbicsConfiguration;
+import org.openconcerto.modules.finance.payment.ebics.EbicsOrderData;
 import org.openconcerto.modules.finance.payment.ebics.EbicsUtil;
 import org.openconcerto.modules.finance.payment.ebics.Host;
 import org.openconcerto.modules.finance.payment.ebics.OrderType;
 import org.openconcerto.modules.finance.payment.ebics.Partner;
 import org.openconcerto.modules.finance.payment.ebics.User;
 import org.openconcerto.modules.finance.payment.ebics.crypto.XMLSigner;
+import org.openconcerto.modules.finance.payment.ebics.response.EbicsResponse;
 import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -58,6 +63,9 @@ public class EbicsRequest {
     private EbicsConfiguration config;
     private String type;
     private String encodedData;
+    // streamed when sending
+    private EbicsOrderData orderData;
+    private int segment;
     private static SecureRandom random;
     private static SimpleDateFormat sdfIso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
     private String xml = null;
@@ -65,6 +73,9 @@ public class EbicsRequest {
 
     static final String W3C_XML_SCHEMA = "http://www.w3.org/2001/XMLSchema";
 
+    // replaced by the order data when sending, OrderData isn't part of the authentication signature
+    private static final String ORDER_DATA_PLACEHOLDER = "@@ORDER_DATA@@";
+
     public EbicsRequest(EbicsConfiguration config, String type) {
         this.config = config;
         this.type = type;
@@ -85,29 +96,121 @@ public class EbicsRequest {
         return encodedData;
     }
 
-    public Document getXMLDocument() {
+    /**
+     * Set the data to upload, streamed from its segments when sending.
+     * 
+     * @param data the encoded data.
+     * @param segment the index of the segment to send in this request, from 0.
+     */
+    public void setOrderData(EbicsOrderData data, int segment) {
+        if (segment < 0 || segment >= data.getSegmentCount())
+            throw new IllegalArgumentException("Segment " + segment + " not in [0, " + data.getSegmentCount() + "[");
+        this.orderData = data;
+        this.segment = segment;
+        this.encodedData = null;
+        this.xml = null;
+    }
+
+    protected final EbicsOrderData getOrderData() {
+        return this.orderData;
+    }
+
+    protected final int getSegment() {
+        return this.segment;
+    }
+
+    public final EbicsConfiguration getConfiguration() {
+        return this.config;
+    }
+
+    public final String getType() {
+        return this.type;
+    }
+
+    private static Document createDocument(String reqType) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        final DocumentBuilder builder = factory.newDocumentBuilder();
+        final DOMImplementation impl = builder.getDOMImplementation();
+
+        final Document doc = impl.createDocument(null, null, null);
+        final Element eRequest = doc.createElementNS("http://www.ebics.org/H003", reqType);
+
+        eRequest.setAttribute("xmlns:ds", "http://www.w3.org/2000/09/xmldsig#");
+        eRequest.setAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
+        eRequest.setAttribute("xsi:schemaLocation", "http://www.ebics.org/H003 http://www.ebics.org/H003/ebics_keymgmt_request.xsd");
+        eRequest.setAttribute("Version", "H003");
+        eRequest.setAttribute("Revision", "1");
+        doc.appendChild(eRequest);
+        return doc;
+    }
+
+    /**
+     * Create the document of the steps after the initialisation of a transaction, the static
+     * header only contains the host and the transaction.
+     * 
+     * @param transactionID the ID returned by the bank in the initialisation response.
+     * @param phase the transaction phase, i.e. "Transfer" or "Receipt".
+     * @return a document with an empty body.
+     */
+    protected Document createTransactionDocument(String transactionID, String phase) {
         try {
-            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            final DocumentBuilder builder = factory.newDocumentBuilder();
-            final DOMImplementation impl = builder.getDOMImplementation();
+            final Document doc = createDocument("ebicsRequest");
+            final Element eRequest = doc.getDocumentElement();
+            final Element eHeader = doc.createElement("header");
+            eHeader.setAttribute("authenticate", "true");
+            eRequest.appendChild(eHeader);
+            final Element eStatic = doc.createElement("static");
+            eHeader.appendChild(eStatic);
+            final Element eHostId = doc.createElement("HostID");
+            eHostId.setTextContent(this.config.getHost().getHostId());
+            eStatic.appendChild(eHostId);
+            final Element eTransactionID = doc.createElement("TransactionID");
+            eTransactionID.setTextContent(transactionID);
+            eStatic.appendChild(eTransactionID);
+
+            final Element eMutable = doc.createElement("mutable");
+            eHeader.appendChild(eMutable);
+            final Element eTransactionPhase = doc.createElement("TransactionPhase");
+            eTransactionPhase.setTextContent(phase);
+            eMutable.appendChild(eTransactionPhase);
 
-            final Document doc = impl.createDocument(null, null, null);
+            eRequest.appendChild(doc.createElement("body"));
+            return doc;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Add the order data, if any, at the end of <code>parent</code>.
+     * 
+     * @param doc the document.
+     * @param parent the body.
+     */
+    protected void appendOrderData(Document doc, Element parent) {
+        if (this.encodedData != null || this.orderData != null) {
+            final Element eDataTransfer = doc.createElement("DataTransfer");
+            parent.appendChild(eDataTransfer);
+
+            final Element eOrderData = doc.createElement("OrderData");
+            eDataTransfer.appendChild(eOrderData);
+
+            eOrderData.setTextContent(this.orderData != null ? ORDER_DATA_PLACEHOLDER : this.encodedData);
+        }
+    }
+
+    public Document getXMLDocument() {
+        try {
             String reqType = "ebicsNoPubKeyDigestsRequest";
             if (this.type.equals(OrderType.INI) || this.type.equals(OrderType.HIA)) {
                 reqType = "ebicsUnsecuredRequest";
             }
-            if (this.type.equals(OrderType.HPD) || this.type.equals(OrderType.FDL) || this.type.equals(OrderType.HAA)) {
+            if (this.type.equals(OrderType.HPD) || this.type.equals(OrderType.FDL) || this.type.equals(OrderType.FUL) || this.type.equals(OrderType.HAA)) {
                 reqType = "ebicsRequest";
             }
 
-            final Element eRequest = doc.createElementNS("http://www.ebics.org/H003", reqType);
-
-            eRequest.setAttribute("xmlns:ds", "http://www.w3.org/2000/09/xmldsig#");
-            eRequest.setAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
-            eRequest.setAttribute("xsi:schemaLocation", "http://www.ebics.org/H003 http://www.ebics.org/H003/ebics_keymgmt_request.xsd");
-            eRequest.setAttribute("Version", "H003");
-            eRequest.setAttribute("Revision", "1");
-            doc.appendChild(eRequest);
+            final Document doc = createDocument(reqType);
+            final Element eRequest = doc.getDocumentElement();
             // header
             final Element eHeader = doc.createElement("header");
             eHeader.setAttribute("authenticate", "true");
@@ -169,15 +272,7 @@ public class EbicsRequest {
             // body
             final Element eBody = doc.createElement("body");
             eRequest.appendChild(eBody);
-            if (this.encodedData != null) {
-                final Element eDataTransfer = doc.createElement("DataTransfer");
-                eBody.appendChild(eDataTransfer);
-
-                final Element eOrderData = doc.createElement("OrderData");
-                eDataTransfer.appendChild(eOrderData);
-
-                eOrderData.setTextContent(this.encodedData);
-            }
+            appendOrderData(doc, eBody);
             return doc;
         } catch (Exception e) {
             e.printStackTrace();
@@ -226,46 +321,110 @@ public class EbicsRequest {
         setEncodedData(EbicsUtil.encodeData(bytes));
     }
 
-    public String send() throws Exception {
+    /**
+     * Write the request, the order data is copied from its segment.
+     * 
+     * @param out where to write.
+     * @throws IOException if the request cannot be written.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        final String[] parts = getXMLParts();
+        out.write(parts[0].getBytes("UTF-8"));
+        if (parts.length > 1) {
+            this.orderData.writeSegment(this.segment, out);
+            out.write(parts[1].getBytes("UTF-8"));
+        }
+    }
+
+    // the XML before and after the order data
+    private String[] getXMLParts() {
+        final String s = getXML();
+        if (this.orderData == null)
+            return new String[] { s };
+        final int index = s.indexOf(ORDER_DATA_PLACEHOLDER);
+        return new String[] { s.substring(0, index), s.substring(index + ORDER_DATA_PLACEHOLDER.length()) };
+    }
+
+    /**
+     * Send the request.
+     * 
+     * @return the response, must be closed.
+     * @throws IOException if the request cannot be sent.
+     */
+    public InputStream open() throws IOException {
         URL url = new URL(config.getHost().getURL());
 
-        HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
 
         // connection.setSSLSocketFactory(fact);
 
-        connection.setHostnameVerifier(new HostnameVerifier() {
+        // plain HTTP for test servers
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setHostnameVerifier(new HostnameVerifier() {
 
-            @Override
-            public boolean verify(String hostname, SSLSession session) {
-                System.out.println(hostname);
-                return true;
-            }
-        });
+                @Override
+                public boolean verify(String hostname, SSLSession session) {
+                    System.out.println(hostname);
+                    return true;
+                }
+            });
+        }
 
         connection.setRequestMethod("POST");
         connection.setDoOutput(true);
         connection.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
         connection.setRequestProperty("Accept", "text/xml");
-        byte[] query = getXML().getBytes("UTF-8");
-        int queryLength = query.length;
-        connection.setRequestProperty("Content-length", String.valueOf(queryLength));
-        OutputStream out = connection.getOutputStream();
-        out.write(query);
+        // don't let the connection buffer the whole request
+        long queryLength = 0;
+        for (final String part : getXMLParts())
+            queryLength += part.getBytes("UTF-8").length;
+        if (this.orderData != null)
+            queryLength += this.orderData.getSegmentLength(this.segment);
+        connection.setFixedLengthStreamingMode((int) queryLength);
+        OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+        writeTo(out);
+        out.flush();
         System.out.println("Sending " + queryLength + " bytes");
         System.out.println("Resp Code:" + connection.getResponseCode());
         System.out.println("Resp Message:" + connection.getResponseMessage());
         System.out.println("====");
-        // out.close();
+        return connection.getInputStream();
+    }
+
+    /**
+     * Send the request and read the response as it is received.
+     * 
+     * @param response where to read the response.
+     * @throws Exception if the request cannot be sent or the response read.
+     */
+    public void send(EbicsResponse response) throws Exception {
+        final InputStream in = open();
+        try {
+            response.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public String send() throws Exception {
         // read the response
         ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        InputStream in = connection.getInputStream();
-        FileOutputStream fOut = new FileOutputStream("out.xml");
-        int ch = 0;
-        while ((ch = in.read()) >= 0) {
-            fOut.write(ch);
-            bOut.write(ch);
+        InputStream in = open();
+        try {
+            FileOutputStream fOut = new FileOutputStream("out.xml");
+            try {
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    fOut.write(buffer, 0, count);
+                    bOut.write(buffer, 0, count);
+                }
+            } finally {
+                fOut.close();
+            }
+        } finally {
+            in.close();
         }
-        fOut.close();
         bOut.close();
         return bOut.toString("UTF-8");
     }
@@ -0,0 +1,138 @@
+package org.openconcerto.modules.finance.payment.ebics.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.interfaces.RSAPublicKey;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.openconcerto.modules.finance.payment.ebics.EbicsConfiguration;
+import org.openconcerto.modules.finance.payment.ebics.EbicsOrderData;
+import org.openconcerto.modules.finance.payment.ebics.EbicsUtil;
+import org.openconcerto.modules.finance.payment.ebics.OrderType;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * File upload (FUL), initialisation phase. The file is encoded when this is created, the segments
+ * are then sent with {@link TransferRequest}.
+ */
+public class FULRequest extends EbicsRequest {
+
+    private final String fileFormat;
+    private final SecretKey transactionKey;
+    private final EbicsOrderData data;
+
+    /**
+     * Encode a file to upload.
+     * 
+     * @param config the configuration.
+     * @param fileFormat the format of the file, e.g. "pain.001.001.02.sct".
+     * @param f the file.
+     * @param unixToDos <code>true</code> to add a CR before each LF.
+     * @throws IOException if the file cannot be read.
+     * @throws GeneralSecurityException if the file cannot be encrypted.
+     */
+    public FULRequest(EbicsConfiguration config, String fileFormat, File f, boolean unixToDos) throws IOException, GeneralSecurityException {
+        super(config, OrderType.FUL);
+        this.fileFormat = fileFormat;
+        this.transactionKey = EbicsOrderData.createTransactionKey();
+        this.data = EbicsOrderData.create(f, this.transactionKey, unixToDos);
+    }
+
+    /**
+     * The encoded file.
+     * 
+     * @return the data to send with {@link TransferRequest}, must be disposed once sent.
+     */
+    public final EbicsOrderData getData() {
+        return this.data;
+    }
+
+    public Document getXMLDocument() {
+        final EbicsConfiguration config = getConfiguration();
+        Document d = super.getXMLDocument();
+        insertBankPubKeyDigest(d);
+
+        Node eDetail = d.getElementsByTagName("OrderDetails").item(0);
+        Element elementFULOrderParams = d.createElement("FULOrderParams");
+        Element elementFileFormat = d.createElement("FileFormat");
+        elementFileFormat.setAttribute("CountryCode", "FR");
+        elementFileFormat.setTextContent(this.fileFormat);
+        elementFULOrderParams.appendChild(elementFileFormat);
+        eDetail.appendChild(elementFULOrderParams);
+
+        // after SecurityMedium
+        Element elementNumSegments = d.createElement("NumSegments");
+        elementNumSegments.setTextContent(String.valueOf(this.data.getSegmentCount()));
+        d.getElementsByTagName("static").item(0).appendChild(elementNumSegments);
+
+        Element elementTransactionPhase = d.createElement("TransactionPhase");
+        elementTransactionPhase.setTextContent("Initialisation");
+        d.getElementsByTagName("mutable").item(0).appendChild(elementTransactionPhase);
+
+        // the transaction key encrypted for the bank and the signature of the file, the order data
+        // itself is sent in the transfer phase
+        try {
+            final RSAPublicKey bankKey = config.loadBankPublicEncryptionKey();
+            Element elementDataTransfer = d.createElement("DataTransfer");
+            Element elementDataEncryptionInfo = d.createElement("DataEncryptionInfo");
+            elementDataEncryptionInfo.setAttribute("authenticate", "true");
+            Element elementEncryptionPubKeyDigest = d.createElement("EncryptionPubKeyDigest");
+            elementEncryptionPubKeyDigest.setAttribute("Algorithm", "http://www.w3.org/2001/04/xmlenc#sha256");
+            elementEncryptionPubKeyDigest.setAttribute("Version", "E002");
+            elementEncryptionPubKeyDigest.setTextContent(new String(Base64.encode(EbicsUtil.getPublicKeyHash256(bankKey))));
+            elementDataEncryptionInfo.appendChild(elementEncryptionPubKeyDigest);
+            Element elementTransactionKey = d.createElement("TransactionKey");
+            final Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, bankKey);
+            elementTransactionKey.setTextContent(new String(Base64.encode(cipher.doFinal(this.transactionKey.getEncoded()))));
+            elementDataEncryptionInfo.appendChild(elementTransactionKey);
+            elementDataTransfer.appendChild(elementDataEncryptionInfo);
+
+            Element elementSignatureData = d.createElement("SignatureData");
+            elementSignatureData.setAttribute("authenticate", "true");
+            elementSignatureData.setTextContent(getSignatureData(config));
+            elementDataTransfer.appendChild(elementSignatureData);
+            d.getElementsByTagName("body").item(0).appendChild(elementDataTransfer);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return d;
+    }
+
+    // A005 signature of the file, compressed, encrypted and encoded like the order data
+    private String getSignatureData(final EbicsConfiguration config) throws Exception {
+        final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        final String ns = "http://www.ebics.org/S001";
+        final Element eUserSignatureData = doc.createElementNS(ns, "UserSignatureData");
+        doc.appendChild(eUserSignatureData);
+        final Element eOrderSignatureData = doc.createElementNS(ns, "OrderSignatureData");
+        eUserSignatureData.appendChild(eOrderSignatureData);
+        final Element eSignatureVersion = doc.createElementNS(ns, "SignatureVersion");
+        eSignatureVersion.setTextContent("A005");
+        eOrderSignatureData.appendChild(eSignatureVersion);
+        final Element eSignatureValue = doc.createElementNS(ns, "SignatureValue");
+        eSignatureValue.setTextContent(new String(Base64.encode(EbicsUtil.signA005(this.data.getDigest(), config.getSignaturePrivateKey()))));
+        eOrderSignatureData.appendChild(eSignatureValue);
+        final Element ePartnerID = doc.createElementNS(ns, "PartnerID");
+        ePartnerID.setTextContent(config.getPartner().getPartnerId());
+        eOrderSignatureData.appendChild(ePartnerID);
+        final Element eUserID = doc.createElementNS(ns, "UserID");
+        eUserID.setTextContent(config.getUser().getUserId());
+        eOrderSignatureData.appendChild(eUserID);
+
+        final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        final OutputStream out = EbicsOrderData.createEncoder(bOut, this.transactionKey);
+        EbicsUtil.writeXML(doc, out);
+        out.close();
+        return bOut.toString("US-ASCII");
+    }
+}
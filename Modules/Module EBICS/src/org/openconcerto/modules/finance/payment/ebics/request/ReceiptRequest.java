@@ -0,0 +1,39 @@
+package org.openconcerto.modules.finance.payment.ebics.request;
+
+import org.openconcerto.modules.finance.payment.ebics.EbicsConfiguration;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Receipt phase of a download : acknowledge the data so that the bank doesn't send it again.
+ */
+public class ReceiptRequest extends EbicsRequest {
+
+    private final String transactionID;
+    private final boolean received;
+
+    /**
+     * Acknowledge a download.
+     * 
+     * @param config the configuration.
+     * @param type the order type of the transaction.
+     * @param transactionID the ID returned by the initialisation.
+     * @param received <code>true</code> if all the data was received and decoded.
+     */
+    public ReceiptRequest(EbicsConfiguration config, String type, String transactionID, boolean received) {
+        super(config, type);
+        this.transactionID = transactionID;
+        this.received = received;
+    }
+
+    public Document getXMLDocument() {
+        final Document d = createTransactionDocument(this.transactionID, "Receipt");
+        final Element eTransferReceipt = d.createElement("TransferReceipt");
+        eTransferReceipt.setAttribute("authenticate", "true");
+        final Element eReceiptCode = d.createElement("ReceiptCode");
+        eReceiptCode.setTextContent(this.received ? "0" : "1");
+        eTransferReceipt.appendChild(eReceiptCode);
+        d.getElementsByTagName("body").item(0).appendChild(eTransferReceipt);
+        return d;
+    }
+}
@@ -0,0 +1,60 @@
+package org.openconcerto.modules.finance.payment.ebics.request;
+
+import org.openconcerto.modules.finance.payment.ebics.EbicsConfiguration;
+import org.openconcerto.modules.finance.payment.ebics.EbicsOrderData;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Transfer phase of a transaction : ask for the next segment of a download, or send a segment of
+ * an upload.
+ */
+public class TransferRequest extends EbicsRequest {
+
+    private final String transactionID;
+    private final int segmentNumber;
+    private final boolean lastSegment;
+
+    /**
+     * Ask for a segment of a download.
+     * 
+     * @param config the configuration.
+     * @param type the order type of the transaction.
+     * @param transactionID the ID returned by the initialisation.
+     * @param segmentNumber the number of the segment, from 2 since the first one is in the
+     *        initialisation response.
+     * @param lastSegment <code>true</code> if it's the last segment of the download.
+     */
+    public TransferRequest(EbicsConfiguration config, String type, String transactionID, int segmentNumber, boolean lastSegment) {
+        super(config, type);
+        this.transactionID = transactionID;
+        this.segmentNumber = segmentNumber;
+        this.lastSegment = lastSegment;
+    }
+
+    /**
+     * Send a segment of an upload.
+     * 
+     * @param config the configuration.
+     * @param type the order type of the transaction.
+     * @param transactionID the ID returned by the initialisation.
+     * @param data the data to upload.
+     * @param segment the index of the segment, from 0.
+     */
+    public TransferRequest(EbicsConfiguration config, String type, String transactionID, EbicsOrderData data, int segment) {
+        this(config, type, transactionID, segment + 1, segment == data.getSegmentCount() - 1);
+        setOrderData(data, segment);
+    }
+
+    public Document getXMLDocument() {
+        final Document d = createTransactionDocument(this.transactionID, "Transfer");
+        final Node eMutable = d.getElementsByTagName("mutable").item(0);
+        final Element eSegmentNumber = d.createElement("SegmentNumber");
+        eSegmentNumber.setAttribute("lastSegment", String.valueOf(this.lastSegment));
+        eSegmentNumber.setTextContent(String.valueOf(this.segmentNumber));
+        eMutable.appendChild(eSegmentNumber);
+        appendOrderData(d, (Element) d.getElementsByTagName("body").item(0));
+        return d;
+    }
+}
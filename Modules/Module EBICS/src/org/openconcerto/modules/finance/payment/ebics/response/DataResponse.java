@@ -3,86 +3,143 @@ package org.openconcerto.modules.finance.payment.ebics.response;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.PrivateKey;
 import java.security.interfaces.RSAPublicKey;
-import java.util.zip.InflaterInputStream;
 
 import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.poi.util.HexDump;
 import org.openconcerto.modules.finance.payment.ebics.EbicsConfiguration;
+import org.openconcerto.modules.finance.payment.ebics.EbicsOrderData;
 import org.openconcerto.modules.finance.payment.ebics.EbicsUtil;
 import org.openconcerto.utils.Base64;
-import org.openconcerto.utils.StringInputStream;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
-public abstract class DataResponse {
-    EbicsConfiguration config;
+public abstract class DataResponse extends EbicsResponse {
+    private ByteArrayOutputStream data;
+    private String rawDigest, rawTransactionKey;
+    // decrypts and inflates all the segments
+    private OutputStream decryptor;
+    // decodes the Base64 of the current segment
+    private OutputStream segmentDecoder;
+    private boolean orderDataFound;
+    private final char[] chars = new char[8192];
+    private final byte[] bytes = new byte[this.chars.length];
+
+    /**
+     * Create a response to be {@link #read(InputStream) read}.
+     * 
+     * @param config the configuration.
+     */
+    protected DataResponse(EbicsConfiguration config) {
+        super(config);
+    }
 
     public DataResponse(EbicsConfiguration config, String xmlResponse) {
-        this.config = config;
-
-        String rawOrderData = null, rawDigest = null, rawTransactionKey = null;
+        this(config);
 
         System.out.println(xmlResponse);
-        String rawDataTransfert = EbicsUtil.extractAndKeep(xmlResponse, "<DataTransfer>", "</DataTransfer>");
-        System.out.println(rawDataTransfert);
+        try {
+            read(new ByteArrayInputStream(xmlResponse.getBytes("UTF-8")));
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException("Unable to decode HPB response");
+        }
+    }
 
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
+    /**
+     * Read a response, the order data is decoded as it is parsed, so that it is never entirely in
+     * memory (as long as {@link #createDataOutput()} doesn't keep it). For a download in several
+     * segments, this method is called for each response : the segments are written to the same
+     * output, and {@link #dataReceived()} is called after the last one.
+     * 
+     * @param in the XML response, not closed.
+     * @throws Exception if the response cannot be read or decoded.
+     */
+    @Override
+    public void read(InputStream in) throws Exception {
+        this.orderDataFound = false;
+        boolean ok = false;
         try {
-            Document doc = dbf.newDocumentBuilder().parse(new StringInputStream(rawDataTransfert));
-            NodeList list = doc.getChildNodes().item(0).getChildNodes();
-            for (int i = 0; i < list.getLength(); i++) {
-                Node n = list.item(i);
-                String nName = n.getNodeName();
-                if (nName.equals("DataEncryptionInfo")) {
-                    NodeList list2 = n.getChildNodes();
-                    for (int j = 0; j < list2.getLength(); j++) {
-                        Node n2 = list2.item(j);
-                        String n2Name = n2.getNodeName();
-                        System.out.println("-" + n2Name);
-                        if (n2Name.equals("EncryptionPubKeyDigest")) {
-                            rawDigest = n2.getTextContent().trim();
-                        } else if (n2Name.equals("TransactionKey")) {
-                            rawTransactionKey = n2.getTextContent().trim();
-                        }
+            super.read(in);
+            if (!this.orderDataFound) {
+                throw new IllegalArgumentException("Unable to get OrderData");
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                this.segmentDecoder = null;
+                if (this.decryptor != null) {
+                    try {
+                        this.decryptor.close();
+                    } catch (IOException e) {
+                        // the data is incomplete, the original exception is more useful
                     }
-                } else if (nName.equals("OrderData")) {
-                    rawOrderData = n.getTextContent().trim();
+                    this.decryptor = null;
                 }
             }
-
-        } catch (Exception e) {
-            throw new IllegalArgumentException(e);
-        }
-        if (rawOrderData == null) {
-            throw new IllegalArgumentException("Unable to get OrderData");
         }
-        if (rawDigest == null) {
-            throw new IllegalArgumentException("Unable to get EncryptionPubKeyDigest");
+        if (this.isLastSegment()) {
+            this.decryptor.close();
+            this.decryptor = null;
+            dataReceived();
         }
-        if (rawTransactionKey == null) {
-            throw new IllegalArgumentException("Unable to get TransactionKey");
+    }
+
+    @Override
+    protected void startElement(XMLStreamReader reader) throws Exception {
+        final String name = reader.getLocalName();
+        if (name.equals("EncryptionPubKeyDigest")) {
+            this.rawDigest = reader.getElementText().trim();
+        } else if (name.equals("TransactionKey")) {
+            this.rawTransactionKey = reader.getElementText().trim();
+        } else if (name.equals("OrderData")) {
+            // the key is only in the first segment
+            if (this.decryptor == null) {
+                if (this.rawDigest == null) {
+                    throw new IllegalArgumentException("Unable to get EncryptionPubKeyDigest");
+                }
+                if (this.rawTransactionKey == null) {
+                    throw new IllegalArgumentException("Unable to get TransactionKey");
+                }
+                final SecretKeySpec skeySpec = new SecretKeySpec(decryptTransactionKey(this.rawTransactionKey), "AES");
+                this.decryptor = EbicsOrderData.createDecryptor(createDataOutput(), skeySpec);
+            }
+            this.segmentDecoder = EbicsOrderData.createSegmentDecoder(this.decryptor);
         }
+    }
 
-        try {
-            init(rawOrderData, rawDigest, rawTransactionKey);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new IllegalArgumentException("Unable to decode HPB response");
+    @Override
+    protected void characters(XMLStreamReader reader) throws Exception {
+        if (this.segmentDecoder != null) {
+            // Base64 is ASCII, white spaces are ignored by the decoder
+            int offset = 0;
+            int count;
+            while ((count = reader.getTextCharacters(offset, this.chars, 0, this.chars.length)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    this.bytes[i] = (byte) this.chars[i];
+                }
+                this.segmentDecoder.write(this.bytes, 0, count);
+                offset += count;
+            }
         }
+    }
 
+    @Override
+    protected void endElement(XMLStreamReader reader) throws Exception {
+        if (this.segmentDecoder != null) {
+            this.segmentDecoder.close();
+            this.segmentDecoder = null;
+            this.orderDataFound = true;
+        }
     }
 
-    private void init(String rawOrderData, String rawDigest, String rawTransactionKey) throws Exception {
-        System.out.println(rawOrderData);
-        System.out.println(rawDigest);
+    private byte[] decryptTransactionKey(String rawTransactionKey) throws Exception {
         System.out.println(rawTransactionKey);
 
         byte[] encryptedTransactionKey = Base64.decode(rawTransactionKey);
@@ -93,14 +150,6 @@ public abstract class DataResponse {
         System.out.println("Public Encryption key : " + EbicsUtil.getSHA256HashBase64(config.getEncryptionCertificate().getPublicKey().getEncoded()));
         RSAPublicKey rs = (RSAPublicKey) config.getEncryptionCertificate().getPublicKey();
         System.out.println(HexDump.toHex(rs.getModulus().toByteArray()));
-        System.out.println("Private Authentication key: " + EbicsUtil.getSHA256HashBase64(config.getAuthenticationPrivateKey().getEncoded()));
-        System.out.println("Public Authentication key : " + EbicsUtil.getSHA256HashBase64(config.getAuthenticationCertificate().getPublicKey().getEncoded()));
-        rs = (RSAPublicKey) config.getAuthenticationCertificate().getPublicKey();
-        System.out.println(HexDump.toHex(rs.getModulus().toByteArray()));
-        System.out.println("Private Signature key: " + EbicsUtil.getSHA256HashBase64(config.getSignaturePrivateKey().getEncoded()));
-        System.out.println("Public Signature key : " + EbicsUtil.getSHA256HashBase64(config.getSignatureCertificate().getPublicKey().getEncoded()));
-        rs = (RSAPublicKey) config.getSignatureCertificate().getPublicKey();
-        System.out.println(HexDump.toHex(rs.getModulus().toByteArray()));
         // Ok DE mais resultat avec le padding Cipher cipher =
         // Cipher.getInstance("RSA/ECB/NoPadding");
         // Ok DE Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
@@ -108,36 +157,31 @@ public abstract class DataResponse {
         cipher.init(Cipher.DECRYPT_MODE, pKey);
         byte[] transactionKey = cipher.doFinal(encryptedTransactionKey);
         System.out.println("Decoded transaction key:" + EbicsUtil.getSHA256HashBase64(transactionKey));
-        System.out.println(HexDump.toHex(transactionKey));
-
-        byte[] orderData = Base64.decode(rawOrderData);
-
-        SecretKeySpec skeySpec = new SecretKeySpec(transactionKey, "AES");
-        // skeySpec = new SecretKeySpec(realTransactionKey, "DESede");
-        Cipher cipher2 = Cipher.getInstance("AES/CBC/NoPadding", "BC");
-        // cipher2 = Cipher.getInstance("DESede/CBC/NoPadding", "BC");
-        cipher2.init(Cipher.DECRYPT_MODE, skeySpec, new IvParameterSpec(new byte[cipher2.getBlockSize()]));
-        byte[] data = cipher2.doFinal(orderData);
-        // data = orderData;
-        // EbicsUtil.saveToFile(data, new File("data.gz"));
-        InflaterInputStream zip = new InflaterInputStream(new ByteArrayInputStream(data));
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        final byte[] buf = new byte[32];
-        try {
-            while (zip.available() > 0) {
-                int len = zip.read(buf);
-                if (len > 0) {
-                    out.write(buf, 0, len);
-                }
-            }
-            out.close();
-            zip.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        System.out.println("Output hash:" + EbicsUtil.getSHA256HashBase64(out.toByteArray()));
+        return transactionKey;
+    }
+
+    /**
+     * Where to write the decoded order data, by default kept in memory and passed to
+     * {@link #extractData(String)}.
+     * 
+     * @return the stream for the order data, closed once all data is written.
+     * @throws IOException if the stream cannot be created.
+     */
+    protected OutputStream createDataOutput() throws IOException {
+        this.data = new ByteArrayOutputStream();
+        return this.data;
+    }
+
+    /**
+     * Called once all the order data is written to {@link #createDataOutput()}.
+     * 
+     * @throws Exception if the data cannot be used.
+     */
+    protected void dataReceived() throws Exception {
+        System.out.println("Output hash:" + EbicsUtil.getSHA256HashBase64(this.data.toByteArray()));
 
-        String xml = new String(out.toByteArray());
+        String xml = new String(this.data.toByteArray());
+        this.data = null;
         System.out.println(xml);
         extractData(xml);
     }
@@ -0,0 +1,151 @@
+package org.openconcerto.modules.finance.payment.ebics.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.openconcerto.modules.finance.payment.ebics.EbicsConfiguration;
+
+/**
+ * A response to a request of a transaction, read with StAX so that it is never entirely in memory.
+ * Only the transaction header and the return codes are kept, subclasses read the rest.
+ */
+public class EbicsResponse {
+
+    public static final String OK = "000000";
+
+    EbicsConfiguration config;
+    private String transactionID;
+    private int segmentCount;
+    private int segmentNumber;
+    private boolean lastSegment;
+    private String returnCode;
+    private String reportText;
+
+    public EbicsResponse(EbicsConfiguration config) {
+        this.config = config;
+        this.transactionID = null;
+        this.segmentCount = 0;
+    }
+
+    /**
+     * Whether the passed code is an error, i.e. not a success, a note or a warning.
+     * 
+     * @param code a return code, e.g. "091002".
+     * @return <code>true</code> if the transaction cannot go on.
+     */
+    public static boolean isError(String code) {
+        return code.length() != 6 || Integer.parseInt(code.substring(0, 2)) >= 6;
+    }
+
+    /**
+     * Read a response to one request of a transaction.
+     * 
+     * @param in the XML response, not closed.
+     * @throws IOException if the response is an error.
+     * @throws Exception if the response cannot be read.
+     */
+    public void read(InputStream in) throws Exception {
+        this.segmentNumber = 0;
+        this.lastSegment = true;
+        this.returnCode = OK;
+        this.reportText = null;
+        final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String name = reader.getLocalName();
+                    if (name.equals("TransactionID")) {
+                        this.transactionID = reader.getElementText().trim();
+                    } else if (name.equals("NumSegments")) {
+                        this.segmentCount = Integer.parseInt(reader.getElementText().trim());
+                    } else if (name.equals("SegmentNumber")) {
+                        this.lastSegment = Boolean.parseBoolean(reader.getAttributeValue(null, "lastSegment"));
+                        this.segmentNumber = Integer.parseInt(reader.getElementText().trim());
+                    } else if (name.equals("ReturnCode")) {
+                        final String code = reader.getElementText().trim();
+                        // keep the first error, technical (header) or business (body)
+                        if (!isError(this.returnCode)) {
+                            this.returnCode = code;
+                        }
+                    } else if (name.equals("ReportText")) {
+                        final String text = reader.getElementText().trim();
+                        // the header one comes first
+                        if (this.reportText == null) {
+                            this.reportText = text;
+                        }
+                    } else {
+                        startElement(reader);
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                    characters(reader);
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    endElement(reader);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (isError(this.returnCode)) {
+            throw new IOException("EBICS error " + this.returnCode + (this.reportText == null ? "" : " : " + this.reportText));
+        }
+    }
+
+    /**
+     * Called for the elements not read by this class.
+     * 
+     * @param reader the reader, positioned on the start of the element.
+     * @throws Exception if the element cannot be read.
+     */
+    protected void startElement(XMLStreamReader reader) throws Exception {
+    }
+
+    protected void characters(XMLStreamReader reader) throws Exception {
+    }
+
+    protected void endElement(XMLStreamReader reader) throws Exception {
+    }
+
+    /**
+     * The ID of the transaction, returned by the bank in the initialisation response.
+     * 
+     * @return the ID, <code>null</code> if none was received.
+     */
+    public final String getTransactionID() {
+        return this.transactionID;
+    }
+
+    /**
+     * The number of segments of the order data, returned with the first segment of a download.
+     * 
+     * @return the number of segments, 0 if not received.
+     */
+    public final int getSegmentCount() {
+        return this.segmentCount;
+    }
+
+    /**
+     * The number of the last read segment.
+     * 
+     * @return the number of the segment, from 1, 0 if the response wasn't segmented.
+     */
+    public final int getSegmentNumber() {
+        return this.segmentNumber;
+    }
+
+    public final boolean isLastSegment() {
+        return this.lastSegment;
+    }
+
+    public final String getReturnCode() {
+        return this.returnCode;
+    }
+
+    public final String getReportText() {
+        return this.reportText;
+    }
+}
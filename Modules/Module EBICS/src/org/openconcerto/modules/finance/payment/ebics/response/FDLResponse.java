@@ -1,5 +1,10 @@
 package org.openconcerto.modules.finance.payment.ebics.response;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.security.interfaces.RSAPublicKey;
 
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -8,8 +13,36 @@ import org.openconcerto.modules.finance.payment.ebics.EbicsConfiguration;
 
 public class FDLResponse extends DataResponse {
 
+    private final File dest;
+
     public FDLResponse(EbicsConfiguration config, String xmlResponse) {
         super(config, xmlResponse);
+        this.dest = null;
+    }
+
+    /**
+     * Create a response whose downloaded file is written to <code>dest</code> as it is
+     * {@link #read(java.io.InputStream) read}.
+     * 
+     * @param config the configuration.
+     * @param dest where to write the downloaded file.
+     */
+    public FDLResponse(EbicsConfiguration config, File dest) {
+        super(config);
+        this.dest = dest;
+    }
+
+    @Override
+    protected OutputStream createDataOutput() throws IOException {
+        if (this.dest == null)
+            return super.createDataOutput();
+        return new BufferedOutputStream(new FileOutputStream(this.dest), 64 * 1024);
+    }
+
+    @Override
+    protected void dataReceived() throws Exception {
+        if (this.dest == null)
+            super.dataReceived();
     }
 
     public void extractData(String xml) throws Exception {
@@ -15,6 +15,16 @@ import com.google.gdata.util.AuthenticationException;
 public class GoogleDocsStorageEngine implements StorageEngine {
     private GoogleDocsUtils gUtils;
 
+    @Override
+    public String getID() {
+        return "googledocs";
+    }
+
+    @Override
+    public String getName() {
+        return "Google Docs";
+    }
+
     @Override
     public boolean isConfigured() {
         try {
@@ -30,6 +30,16 @@ public class CloudNASStorageEngine implements StorageEngine {
         this.baseUrl = "https://cloud.ovh.fr/" + account;
     }
 
+    @Override
+    public String getID() {
+        return "ovh-cloudnas";
+    }
+
+    @Override
+    public String getName() {
+        return "Cloud NAS OVH";
+    }
+
     @Override
     public boolean isConfigured() {
         try {
@@ -42,6 +42,17 @@ public final class Module extends AbstractModule {
 
     public static final String TABLE_NAME = "VOIP_RECORD";
 
+    private static volatile PhoneIndex phoneIndex;
+
+    /**
+     * L'index des numéros des clients, contacts et fournisseurs.
+     * 
+     * @return l'index, <code>null</code> si le module n'est pas démarré.
+     */
+    static PhoneIndex getPhoneIndex() {
+        return phoneIndex;
+    }
+
     public Module(ModuleFactory f) throws IOException {
         super(f);
 
@@ -92,6 +103,14 @@ public final class Module extends AbstractModule {
 
             @Override
             public void run() {
+                try {
+                    final ComptaPropsConfiguration conf = (ComptaPropsConfiguration) ComptaPropsConfiguration.getInstance();
+                    final PhoneIndex index = new PhoneIndex(conf.getRootSociete());
+                    index.start();
+                    phoneIndex = index;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
                 try {
                     List<TelephonyCallStruct> history = OVHApi.getCallHistory();
                     List<SQLRowValues> ovhRowValues = convert(history);
@@ -126,19 +145,6 @@ public final class Module extends AbstractModule {
 
     }
 
-    static String extractTelNumber(String n) {
-        final int length = n.length();
-        StringBuffer b = new StringBuffer(length);
-        for (int i = 0; i < length; i++) {
-            char c = n.charAt(i);
-            if (Character.isDigit(c)) {
-                b.append(c);
-            }
-        }
-        return b.toString();
-
-    }
-
     private List<SQLRowValues> convert(List<TelephonyCallStruct> history) {
         final ComptaPropsConfiguration conf = (ComptaPropsConfiguration) ComptaPropsConfiguration.getInstance();
         final SQLTable tableVoipRecord = conf.getRootSociete().getTable(TABLE_NAME);
@@ -153,9 +159,22 @@ public final class Module extends AbstractModule {
         final List<SQLRowValues> commerciauxRows = fetcher.fetch();
         final Map<String, String> mapTelCommerciaux = new HashMap<String, String>();
         for (SQLRowValues sqlRowValues : commerciauxRows) {
-            mapTelCommerciaux.put(extractTelNumber(sqlRowValues.getString("TEL_DIRECT")), (sqlRowValues.getString("PRENOM") + " " + sqlRowValues.getString("NOM")).trim());
+            final String tel = PhoneIndex.normalize(sqlRowValues.getString("TEL_DIRECT"));
+            if (tel != null) {
+                mapTelCommerciaux.put(tel, (sqlRowValues.getString("PRENOM") + " " + sqlRowValues.getString("NOM")).trim());
+            }
         }
 
+        // Résolution des autres numéros en une passe
+        final Set<String> numbers = new HashSet<String>();
+        for (TelephonyCallStruct h : history) {
+            numbers.add(h.getNumber());
+            numbers.add(h.getCallingNumber());
+        }
+        numbers.remove(null);
+        final PhoneIndex index = getPhoneIndex();
+        final Map<String, String> resolved = index == null ? new HashMap<String, String>() : index.resolve(numbers);
+
         final List<SQLRowValues> result = new ArrayList<SQLRowValues>(history.size());
         for (TelephonyCallStruct h : history) {
             SQLRowValues row = new SQLRowValues(tableVoipRecord);
@@ -210,20 +229,17 @@ public final class Module extends AbstractModule {
             // ID OVH
             row.put("OVHID", h.getIdkey());
 
-            // Résolution des téléphones depuis les commerciaux
-            if (mapTelCommerciaux.containsKey(row.getString("NUMBER_FROM"))) {
-                String value = mapTelCommerciaux.get("NUMBER_FROM");
+            // Résolution des téléphones depuis les commerciaux, puis les clients, contacts et
+            // fournisseurs
+            for (final String field : Arrays.asList("FROM", "TO")) {
+                final String number = row.getString("NUMBER_" + field);
+                String value = mapTelCommerciaux.get(PhoneIndex.normalize(number));
                 if (value == null) {
-                    value = "";
+                    value = resolved.get(number);
                 }
-                row.put("FROM", value);
-            }
-            if (mapTelCommerciaux.containsKey(row.getString("NUMBER_TO"))) {
-                String value = mapTelCommerciaux.get("NUMBER_TO");
-                if (value == null) {
-                    value = "";
+                if (value != null) {
+                    row.put(field, value);
                 }
-                row.put("TO", value);
             }
             result.add(row);
         }
@@ -243,6 +259,11 @@ public final class Module extends AbstractModule {
 
     @Override
     protected void stop() {
+        final PhoneIndex index = phoneIndex;
+        if (index != null) {
+            index.stop();
+            phoneIndex = null;
+        }
     }
 
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,360 @@
+package org.openconcerto.modules.customerrelationship.call.ovh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowAccessor;
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLRowValuesListFetcher;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableEvent.Mode;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.utils.ThreadFactory;
+
+/**
+ * Index des numéros de téléphone des clients, contacts et fournisseurs. Les numéros sont normalisés
+ * une fois au format E.164 (+33123456789) pour que toutes les écritures d'un même numéro (+33,
+ * 0033, espaces, points...) soient trouvées par une seule recherche. L'index est tenu à jour par
+ * les évènements des tables : les lectures de la base et les modifications de l'index sont faites
+ * dans l'ordre des évènements par un thread dédié, jamais par le thread qui a modifié la table.
+ */
+public class PhoneIndex {
+
+    private static final String[] TABLES = { "CLIENT", "CONTACT", "FOURNISSEUR" };
+    private static final String[] PHONE_FIELDS = { "TEL", "TEL_P", "TEL_STANDARD", "TEL_DIRECT", "TEL_MOBILE", "TEL_PERSONEL", "FAX" };
+    private static final String[] NAME_FIELDS = { "PRENOM", "NOM" };
+
+    /**
+     * Normalise un numéro, les numéros nationaux étant considérés comme français.
+     * 
+     * @param tel un numéro, e.g. "01.23.45.67.89", "0033 1 23 45 67 89", "+33 (0)1 23 45 67 89" ou
+     *        "0033 (0)1 23 45 67 89".
+     * @return le numéro au format E.164, e.g. "+33123456789", <code>null</code> si
+     *         <code>tel</code> ne contient pas de chiffre.
+     */
+    public static String normalize(final String tel) {
+        if (tel == null)
+            return null;
+        final int length = tel.length();
+        final StringBuilder digits = new StringBuilder(length);
+        boolean plus = false;
+        for (int i = 0; i < length; i++) {
+            final char c = tel.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if (c == '+' && digits.length() == 0) {
+                plus = true;
+            } else if (c == '(' && tel.startsWith("(0)", i) && (plus ? digits.length() > 0 : digits.length() > 2 && digits.charAt(0) == '0' && digits.charAt(1) == '0')) {
+                // préfixe national après l'indicatif, e.g. +33 (0)1... ou 0033 (0)1...
+                i += 2;
+            }
+        }
+        if (digits.length() == 0)
+            return null;
+        final String d = digits.toString();
+        if (plus)
+            return "+" + d;
+        else if (d.startsWith("00"))
+            return "+" + d.substring(2);
+        else if (d.length() == 10 && d.charAt(0) == '0')
+            return "+33" + d.substring(1);
+        else if (d.length() == 11 && d.startsWith("33"))
+            return "+" + d;
+        else if (d.length() == 9 && d.charAt(0) != '0')
+            return "+33" + d;
+        else
+            // numéro court ou inconnu
+            return d;
+    }
+
+    /**
+     * Ce à quoi correspond un numéro.
+     */
+    public static final class Match {
+        private final String table;
+        private final int id;
+        private final String label;
+
+        Match(String table, int id, String label) {
+            this.table = table;
+            this.id = id;
+            this.label = label;
+        }
+
+        public final String getTableName() {
+            return this.table;
+        }
+
+        public final int getID() {
+            return this.id;
+        }
+
+        public final String getLabel() {
+            return this.label;
+        }
+
+        @Override
+        public String toString() {
+            return this.label;
+        }
+    }
+
+    private final Map<SQLTable, List<String>> phoneFields;
+    private final Map<SQLTable, List<String>> nameFields;
+    // lecture sans verrou, tableaux immuables
+    private final ConcurrentHashMap<String, Match[]> byNumber;
+    // TABLE:ID -> numéros indexés pour la ligne, seulement utilisé par exec
+    private final Map<String, Set<String>> byRow;
+    private final ExecutorService exec;
+    // incrémenté à chaque rechargement demandé, les tâches plus anciennes sont inutiles
+    private final Map<SQLTable, AtomicInteger> generations;
+    private final SQLTableModifiedListener listener;
+
+    public PhoneIndex(final DBRoot root) {
+        this.phoneFields = new HashMap<SQLTable, List<String>>();
+        this.nameFields = new HashMap<SQLTable, List<String>>();
+        this.generations = new HashMap<SQLTable, AtomicInteger>();
+        for (final String tableName : TABLES) {
+            if (root.contains(tableName)) {
+                final SQLTable t = root.getTable(tableName);
+                this.phoneFields.put(t, getExistingFields(t, PHONE_FIELDS));
+                this.nameFields.put(t, getExistingFields(t, NAME_FIELDS));
+                this.generations.put(t, new AtomicInteger(0));
+            }
+        }
+        this.byNumber = new ConcurrentHashMap<String, Match[]>();
+        this.byRow = new HashMap<String, Set<String>>();
+        this.exec = Executors.newSingleThreadExecutor(new ThreadFactory("Phone index", true));
+        this.listener = new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                rowModified(evt);
+            }
+        };
+    }
+
+    private static List<String> getExistingFields(final SQLTable t, final String[] names) {
+        final List<String> res = new ArrayList<String>(names.length);
+        for (final String name : names) {
+            if (t.contains(name))
+                res.add(name);
+        }
+        return res;
+    }
+
+    /**
+     * Charge l'index, en attendant la fin du chargement, puis écoute les modifications des tables.
+     */
+    public void start() {
+        final List<Future<?>> loads = new ArrayList<Future<?>>();
+        for (final SQLTable t : this.phoneFields.keySet()) {
+            // avant le chargement, pour ne manquer aucune modification
+            t.addTableModifiedListener(this.listener);
+            loads.add(this.loadLater(t));
+        }
+        try {
+            for (final Future<?> f : loads)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Impossible de charger les numéros de téléphone", e.getCause());
+        }
+    }
+
+    public void stop() {
+        for (final SQLTable t : this.phoneFields.keySet()) {
+            t.removeTableModifiedListener(this.listener);
+        }
+        this.exec.shutdown();
+    }
+
+    private Future<?> loadLater(final SQLTable t) {
+        final AtomicInteger generation = this.generations.get(t);
+        final int gen = generation.incrementAndGet();
+        return this.exec.submit(new Runnable() {
+            @Override
+            public void run() {
+                // un rechargement plus récent est déjà prévu
+                if (generation.get() == gen)
+                    load(t);
+            }
+        });
+    }
+
+    private void updateLater(final SQLRow row, final boolean deleted) {
+        final AtomicInteger generation = this.generations.get(row.getTable());
+        final int gen = generation.get();
+        this.exec.execute(new Runnable() {
+            @Override
+            public void run() {
+                // la table sera rechargée, ligne comprise
+                if (generation.get() != gen)
+                    return;
+                if (deleted || !row.exists() || row.isArchived()) {
+                    remove(row.getTable().getName(), row.getID());
+                } else {
+                    index(row);
+                }
+            }
+        });
+    }
+
+    // remplace toutes les lignes de la table dans l'index
+    private void load(final SQLTable t) {
+        final SQLRowValues vals = new SQLRowValues(t);
+        for (final String f : this.phoneFields.get(t))
+            vals.put(f, null);
+        for (final String f : this.nameFields.get(t))
+            vals.put(f, null);
+        final List<SQLRowValues> rows = new SQLRowValuesListFetcher(vals).fetch();
+        final String prefix = t.getName() + ":";
+        final Iterator<String> iter = this.byRow.keySet().iterator();
+        final List<Integer> ids = new ArrayList<Integer>();
+        while (iter.hasNext()) {
+            final String key = iter.next();
+            if (key.startsWith(prefix))
+                ids.add(Integer.valueOf(key.substring(prefix.length())));
+        }
+        for (final Integer id : ids)
+            this.remove(t.getName(), id.intValue());
+        for (final SQLRowValues r : rows) {
+            this.index(r);
+        }
+    }
+
+    // pas d'accès à la base, appelée par le thread qui a modifié la table
+    private void rowModified(final SQLTableEvent evt) {
+        final SQLRow row = evt.getRow();
+        final SQLTable t = evt.getTable();
+        // toute la table a changé, e.g. après une insertion par lots
+        if (row == null) {
+            this.loadLater(t);
+            return;
+        }
+        // ne pas recharger la ligne si les numéros et le nom n'ont pas changé
+        final List<String> fields = new ArrayList<String>(this.phoneFields.get(t));
+        fields.addAll(this.nameFields.get(t));
+        if (t.getArchiveField() != null)
+            fields.add(t.getArchiveField().getName());
+        if (evt.getMode() != Mode.ROW_DELETED && Collections.disjoint(evt.getFieldNames(), fields))
+            return;
+
+        this.updateLater(row, evt.getMode() == Mode.ROW_DELETED);
+    }
+
+    private String getLabel(final SQLRowAccessor r) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String f : this.nameFields.get(r.getTable())) {
+            final String v = r.getString(f);
+            if (v != null && v.trim().length() > 0) {
+                if (sb.length() > 0)
+                    sb.append(' ');
+                sb.append(v.trim());
+            }
+        }
+        return sb.toString();
+    }
+
+    private void index(final SQLRowAccessor r) {
+        final String tableName = r.getTable().getName();
+        this.remove(tableName, r.getID());
+        final Set<String> numbers = new LinkedHashSet<String>();
+        for (final String f : this.phoneFields.get(r.getTable())) {
+            final String n = normalize(r.getString(f));
+            if (n != null)
+                numbers.add(n);
+        }
+        if (numbers.isEmpty())
+            return;
+        final Match m = new Match(tableName, r.getID(), getLabel(r));
+        for (final String n : numbers) {
+            final Match[] old = this.byNumber.get(n);
+            final Match[] matches;
+            if (old == null) {
+                matches = new Match[] { m };
+            } else {
+                matches = Arrays.copyOf(old, old.length + 1);
+                matches[old.length] = m;
+            }
+            this.byNumber.put(n, matches);
+        }
+        this.byRow.put(tableName + ":" + r.getID(), numbers);
+    }
+
+    private void remove(final String tableName, final int id) {
+        final Set<String> numbers = this.byRow.remove(tableName + ":" + id);
+        if (numbers == null)
+            return;
+        for (final String n : numbers) {
+            final Match[] old = this.byNumber.get(n);
+            final List<Match> matches = new ArrayList<Match>(old.length);
+            for (final Match m : old) {
+                if (m.id != id || !m.table.equals(tableName))
+                    matches.add(m);
+            }
+            if (matches.isEmpty())
+                this.byNumber.remove(n);
+            else
+                this.byNumber.put(n, matches.toArray(new Match[matches.size()]));
+        }
+    }
+
+    /**
+     * Cherche un numéro.
+     * 
+     * @param tel le numéro, sous n'importe quelle forme.
+     * @return les lignes ayant ce numéro, jamais <code>null</code>.
+     */
+    public List<Match> getMatches(final String tel) {
+        final String n = normalize(tel);
+        final Match[] res = n == null ? null : this.byNumber.get(n);
+        return res == null ? Collections.<Match> emptyList() : Arrays.asList(res);
+    }
+
+    /**
+     * Cherche un numéro.
+     * 
+     * @param tel le numéro, sous n'importe quelle forme.
+     * @return le nom du client, contact ou fournisseur ayant ce numéro, <code>null</code> si aucun.
+     */
+    public String resolve(final String tel) {
+        final List<Match> matches = getMatches(tel);
+        return matches.isEmpty() ? null : matches.get(0).getLabel();
+    }
+
+    /**
+     * Cherche plusieurs numéros en une fois.
+     * 
+     * @param tels des numéros, sous n'importe quelle forme.
+     * @return pour chaque numéro trouvé, le nom du client, contact ou fournisseur.
+     */
+    public Map<String, String> resolve(final Collection<String> tels) {
+        final Map<String, String> res = new HashMap<String, String>();
+        for (final String tel : tels) {
+            if (!res.containsKey(tel)) {
+                final String label = resolve(tel);
+                if (label != null)
+                    res.put(tel, label);
+            }
+        }
+        return res;
+    }
+}
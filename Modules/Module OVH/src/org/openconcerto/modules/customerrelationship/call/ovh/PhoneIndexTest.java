@@ -0,0 +1,54 @@
+package org.openconcerto.modules.customerrelationship.call.ovh;
+
+/**
+ * Vérifie que {@link PhoneIndex#normalize(String)} donne le même numéro pour toutes les écritures
+ * courantes : +33, 0033, préfixe national (0), espaces et points.
+ * 
+ * <pre>
+ * java org.openconcerto.modules.customerrelationship.call.ovh.PhoneIndexTest
+ * </pre>
+ */
+public class PhoneIndexTest {
+
+    public static void main(String[] args) {
+        final String fr = "+33123456789";
+        check(fr, "0123456789");
+        check(fr, "01 23 45 67 89");
+        check(fr, "01.23.45.67.89");
+        check(fr, " 01-23-45-67-89 ");
+        check(fr, "+33123456789");
+        check(fr, "+33 1 23 45 67 89");
+        check(fr, "+33.1.23.45.67.89");
+        check(fr, "+33 (0)1 23 45 67 89");
+        check(fr, "+33(0)123456789");
+        check(fr, "0033 1 23 45 67 89");
+        check(fr, "0033.1.23.45.67.89");
+        check(fr, "0033 (0)1 23 45 67 89");
+        check(fr, "33 1 23 45 67 89");
+        check(fr, "1 23 45 67 89");
+        // pas d'indicatif avant, le 0 est le préfixe national
+        check(fr, "(0)1 23 45 67 89");
+
+        final String uk = "+442079460958";
+        check(uk, "+44 20 7946 0958");
+        check(uk, "+44 (0)20 7946 0958");
+        check(uk, "0044 20 7946 0958");
+        check(uk, "0044 (0)20 7946 0958");
+
+        // numéros courts
+        check("3615", "3615");
+        check("112", "112");
+
+        check(null, null);
+        check(null, "");
+        check(null, " - ");
+        check(null, "inconnu");
+        System.out.println("OK");
+    }
+
+    private static void check(final String expected, final String tel) {
+        final String actual = PhoneIndex.normalize(tel);
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new IllegalStateException("Expected " + expected + " for '" + tel + "' but got " + actual);
+    }
+}
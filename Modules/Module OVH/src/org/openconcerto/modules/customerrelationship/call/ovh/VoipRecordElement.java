@@ -62,6 +62,13 @@ public class VoipRecordElement extends ComptaSQLConfElement {
         return res;
     }
 
+    // d'abord les clients, contacts et fournisseurs, puis Google
+    static String resolve(final String tel) {
+        final PhoneIndex index = Module.getPhoneIndex();
+        final String res = index == null ? null : index.resolve(tel);
+        return res != null ? res : PhoneResolver.getInfoFromGoogle(tel);
+    }
+
     @Override
     public SQLComponent createComponent() {
         return new BaseSQLComponent(this) {
@@ -92,7 +99,7 @@ public class VoipRecordElement extends ComptaSQLConfElement {
                         final SwingWorker<String, String> worker = new SwingWorker<String, String>() {
                             @Override
                             protected String doInBackground() throws Exception {
-                                return PhoneResolver.getInfoFromGoogle(text);
+                                return resolve(text);
                             }
 
                             protected void done() {
@@ -128,11 +135,11 @@ public class VoipRecordElement extends ComptaSQLConfElement {
 
                     @Override
                     public void actionPerformed(ActionEvent e) {
-                        final String text = textVers.getText();
+                        final String text = telVers.getText();
                         final SwingWorker<String, String> worker = new SwingWorker<String, String>() {
                             @Override
                             protected String doInBackground() throws Exception {
-                                return PhoneResolver.getInfoFromGoogle(text);
+                                return resolve(text);
                             }
 
                             protected void done() {
@@ -0,0 +1,34 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.action;
+
+import org.openconcerto.erp.core.common.ui.PanelFrame;
+import org.openconcerto.erp.storage.StorageQueuePanel;
+
+import javax.swing.Action;
+import javax.swing.JFrame;
+
+public class StorageQueueAction extends CreateFrameAbstractAction {
+
+    private static final long serialVersionUID = -7428489544304974597L;
+
+    public StorageQueueAction() {
+        super("Envois de documents");
+    }
+
+    @Override
+    public JFrame createFrame() {
+        return new PanelFrame(new StorageQueuePanel(), (String) getValue(Action.NAME));
+    }
+}
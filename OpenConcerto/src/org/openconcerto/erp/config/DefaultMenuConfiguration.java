@@ -19,6 +19,7 @@ import org.openconcerto.erp.action.GestionDroitsAction;
 import org.openconcerto.erp.action.NouvelleSocieteAction;
 import org.openconcerto.erp.action.PreferencesAction;
 import org.openconcerto.erp.action.SauvegardeBaseAction;
+import org.openconcerto.erp.action.StorageQueueAction;
 import org.openconcerto.erp.action.TaskAdminAction;
 import org.openconcerto.erp.action.list.ListeDesSocietesCommonsAction;
 import org.openconcerto.erp.action.list.ListeDesUsersCommonAction;
@@ -177,6 +178,7 @@ public class DefaultMenuConfiguration {
     private Group createFilesMenuGroup() {
         Group group = new Group("menu.file");
         group.addItem("backup");
+        group.addItem("storage.queue");
         group.addItem("export.accounting");
         group.addItem("modules");
         group.addItem("preferences");
@@ -415,6 +417,7 @@ public class DefaultMenuConfiguration {
     private void registerFilesMenuActions() {
         final MenuManager mManager = MenuManager.getInstance();
         mManager.registerAction("backup", new SauvegardeBaseAction());
+        mManager.registerAction("storage.queue", new StorageQueueAction());
         mManager.registerAction("export.accounting", new ExportRelationExpertAction());
         mManager.registerAction("modules", new AbstractAction() {
             @Override
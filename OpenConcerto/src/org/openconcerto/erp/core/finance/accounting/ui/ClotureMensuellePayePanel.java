@@ -15,15 +15,20 @@
 
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
 import org.openconcerto.erp.core.common.element.MoisSQLElement;
+import org.openconcerto.erp.core.humanresources.payroll.batch.FichePayeCalcul;
+import org.openconcerto.erp.core.humanresources.payroll.batch.PayeBatch;
+import org.openconcerto.erp.core.humanresources.payroll.batch.PayeBatchData;
 import org.openconcerto.erp.core.humanresources.payroll.element.FichePayeSQLElement;
 import org.openconcerto.erp.generationEcritures.GenerationMvtFichePaye;
 import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.Log;
 import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLSelect;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.sqlobject.ElementComboBox;
+import org.openconcerto.utils.ExceptionHandler;
 
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
@@ -34,7 +39,10 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
 
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -42,6 +50,7 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
 
@@ -50,6 +59,8 @@ import org.apache.commons.dbutils.handlers.ArrayListHandler;
 public class ClotureMensuellePayePanel extends JPanel {
 
     private final SQLBase base = ((ComptaPropsConfiguration) Configuration.getInstance()).getSQLBaseSociete();
+    private final JProgressBar bar = new JProgressBar();
+    private PayeBatch batch = null;
 
     public ClotureMensuellePayePanel() {
 
@@ -88,19 +99,30 @@ public class ClotureMensuellePayePanel extends JPanel {
 
         c.gridy++;
         c.gridx = 0;
+        final JCheckBox boxCalcul = new JCheckBox("Recalculer les payes non validées du mois");
         final JCheckBox boxValid = new JCheckBox("Valider toutes les payes du mois");
         final JCheckBox boxCompta = new JCheckBox("Générer les écritures comptables associées");
         c.gridwidth = GridBagConstraints.REMAINDER;
+        this.add(boxCalcul, c);
+        c.gridy++;
         this.add(boxValid, c);
         boxValid.setSelected(true);
         c.gridy++;
         this.add(boxCompta, c);
 
-        JButton buttonClot = new JButton("Cloturer");
-        JButton buttonFermer = new JButton("Fermer");
+        c.gridy++;
+        this.bar.setStringPainted(true);
+        this.bar.setVisible(false);
+        this.add(this.bar, c);
+
+        final JButton buttonClot = new JButton("Cloturer");
+        final JButton buttonFermer = new JButton("Fermer");
+        final JButton buttonAnnuler = new JButton("Annuler");
+        buttonAnnuler.setEnabled(false);
 
         JPanel panelButton = new JPanel();
         panelButton.add(buttonClot);
+        panelButton.add(buttonAnnuler);
         panelButton.add(buttonFermer);
 
         c.gridy++;
@@ -108,11 +130,21 @@ public class ClotureMensuellePayePanel extends JPanel {
 
         buttonFermer.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
+                if (ClotureMensuellePayePanel.this.batch != null)
+                    ClotureMensuellePayePanel.this.batch.cancel();
                 ((JFrame) SwingUtilities.getRoot(ClotureMensuellePayePanel.this)).dispose();
             }
         });
 
-        buttonClot.addActionListener(new ActionListener() {
+        buttonAnnuler.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (ClotureMensuellePayePanel.this.batch != null)
+                    ClotureMensuellePayePanel.this.batch.cancel();
+            }
+        });
+
+        // cloture du mois, une fois les payes recalculées
+        final ActionListener clotureListener = new ActionListener() {
             public void actionPerformed(ActionEvent e) {
 
                 // if (selMois.getSelectedId() <= 1 || textAnnee.getText().trim().length() == 0) {
@@ -190,7 +222,91 @@ public class ClotureMensuellePayePanel extends JPanel {
                 System.err.println("ClotureMensuellePayePanel.ClotureMensuellePayePanel().new ActionListener() {...}.actionPerformed()");
                 JOptionPane.showMessageDialog(null, "Clôture terminée");
             }
+        };
+
+        buttonClot.addActionListener(new ActionListener() {
+            public void actionPerformed(final ActionEvent e) {
+                if (!boxCalcul.isSelected()) {
+                    clotureListener.actionPerformed(e);
+                    return;
+                }
+                final int idMois = selMois.getSelectedId();
+                final int annee = Integer.parseInt(textAnnee.getText());
+                buttonClot.setEnabled(false);
+                buttonAnnuler.setEnabled(true);
+                ClotureMensuellePayePanel.this.bar.setValue(0);
+                ClotureMensuellePayePanel.this.bar.setString("Chargement des payes");
+                ClotureMensuellePayePanel.this.bar.setVisible(true);
+                new Thread(new Runnable() {
+                    public void run() {
+                        boolean ok = false;
+                        try {
+                            ok = calculPayes(idMois, annee);
+                        } catch (Exception exn) {
+                            ExceptionHandler.handle(ClotureMensuellePayePanel.this, "Erreur lors du calcul des payes", exn);
+                        }
+                        final boolean resume = ok;
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                ClotureMensuellePayePanel.this.batch = null;
+                                ClotureMensuellePayePanel.this.bar.setVisible(false);
+                                buttonClot.setEnabled(true);
+                                buttonAnnuler.setEnabled(false);
+                                if (resume)
+                                    clotureListener.actionPerformed(e);
+                            }
+                        });
+                    }
+                }, "Calcul des payes").start();
+            }
+        });
+    }
+
+    /**
+     * Recalcule les payes non validées de la période.
+     * 
+     * @param idMois la période.
+     * @param annee l'année.
+     * @return <code>false</code> si le calcul a été annulé ou si une fiche n'a pu être calculée,
+     *         la clôture validerait sinon des fiches non recalculées.
+     * @throws Exception si le calcul n'a pu se faire.
+     */
+    private boolean calculPayes(final int idMois, final int annee) throws Exception {
+        final PayeBatch b = new PayeBatch(PayeBatchData.load(this.base, idMois, annee, null));
+        final JProgressBar bar = this.bar;
+        // une seule erreur affichée pour toutes les fiches
+        final Map<Integer, Throwable> errors = new LinkedHashMap<Integer, Throwable>();
+        b.addListener(new PayeBatch.Listener() {
+            public void progress(final int done, final int total, final FichePayeCalcul.Result res) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        bar.setMaximum(total);
+                        bar.setValue(done);
+                        bar.setString(done + " / " + total);
+                    }
+                });
+            }
+
+            public void error(SQLRow fiche, Throwable e) {
+                Log.get().log(Level.WARNING, "Impossible de calculer la fiche de paye " + fiche.getID(), e);
+                synchronized (errors) {
+                    errors.put(fiche.getID(), e);
+                }
+            }
         });
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                ClotureMensuellePayePanel.this.batch = b;
+            }
+        });
+        b.run();
+        synchronized (errors) {
+            if (!errors.isEmpty()) {
+                ExceptionHandler.handle(this, "Impossible de calculer " + errors.size() + " fiche(s) de paye : " + errors.keySet(), errors.values().iterator().next());
+                return false;
+            }
+        }
+        return !b.isCancelled();
     }
 
 }
@@ -0,0 +1,309 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.humanresources.payroll.batch;
+
+import org.openconcerto.erp.core.humanresources.payroll.element.PeriodeValiditeSQLElement;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowAccessor;
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLTable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calcul d'une fiche de paye à partir de données préchargées. Reprend les règles de
+ * {@link org.openconcerto.erp.model.FichePayeModel} (brut, cotisations, net et commentaires) mais
+ * sans accès à la base : les cumuls de la fiche sont tenus en mémoire et exposés aux formules.
+ * 
+ * @see PayeBatchData
+ */
+public final class FichePayeCalcul {
+
+    static private final Map<Integer, String> MOIS = PeriodeValiditeSQLElement.mapTranslate();
+
+    /**
+     * Le résultat du calcul d'une fiche.
+     */
+    public static final class Result {
+        private final SQLRow fiche;
+        private final List<SQLRowValues> elements;
+        private final SQLRowValues totals;
+
+        Result(SQLRow fiche, List<SQLRowValues> elements, SQLRowValues totals) {
+            this.fiche = fiche;
+            this.elements = Collections.unmodifiableList(elements);
+            this.totals = totals;
+        }
+
+        public final SQLRow getFiche() {
+            return this.fiche;
+        }
+
+        /**
+         * Les éléments calculés, dans l'ordre de la fiche, sans ID ni ID_FICHE_PAYE.
+         * 
+         * @return les lignes de FICHE_PAYE_ELEMENT à insérer.
+         */
+        public final List<SQLRowValues> getElements() {
+            return this.elements;
+        }
+
+        /**
+         * Les montants à mettre à jour dans la fiche (SAL_BRUT, NET_IMP, NET_A_PAYER, COT_SAL,
+         * COT_PAT, CSG).
+         * 
+         * @return les valeurs de FICHE_PAYE.
+         */
+        public final SQLRowValues getTotals() {
+            return this.totals;
+        }
+
+        public final float getSalaireBrut() {
+            return this.totals.getFloat("SAL_BRUT");
+        }
+
+        public final float getNetAPayer() {
+            return this.totals.getFloat("NET_A_PAYER");
+        }
+    }
+
+    private final PayeBatchData data;
+    private final PayeFormuleEvaluator evaluator;
+    private final SQLTable tableFicheElt;
+
+    // per fiche
+    private float salBrut, cotPat, cotSal, netImp, netAPayer, csg;
+    private String moisName;
+    private SQLRowValues ficheValues;
+
+    public FichePayeCalcul(final PayeBatchData data) {
+        this.data = data;
+        this.evaluator = new PayeFormuleEvaluator(data.getMapTree());
+        this.tableFicheElt = data.getTableFicheElement();
+    }
+
+    /**
+     * Calcule une fiche. Les éléments existants de la fiche sont recalculés (en conservant les
+     * valeurs des éléments validés), à défaut ceux du profil de paye de la fiche sont utilisés.
+     * 
+     * @param fiche la fiche de paye, doit faire partie de <code>data</code>.
+     * @return les éléments et les totaux de la fiche.
+     */
+    public Result calcul(final SQLRow fiche) {
+        this.salBrut = 0.0F;
+        this.cotPat = 0.0F;
+        this.cotSal = 0.0F;
+        this.netAPayer = 0.0F;
+        this.netImp = 0.0F;
+        this.csg = 0.0F;
+        this.moisName = MOIS.get(Integer.valueOf(fiche.getInt("ID_MOIS") - 1));
+
+        // les formules voient les cumuls courants de la fiche
+        this.ficheValues = new SQLRowValues(fiche.getTable());
+        this.ficheValues.loadAllSafe(fiche);
+        final Map<String, SQLRowAccessor> rows = new HashMap<String, SQLRowAccessor>(this.data.getSalarieRows(fiche.getInt("ID_SALARIE")));
+        rows.put(fiche.getTable().getName(), this.ficheValues);
+        this.evaluator.setRows(rows);
+
+        final List<SQLRowValues> res = new ArrayList<SQLRowValues>();
+        final List<SQLRow> existing = this.data.getElements(fiche.getID());
+        final boolean fromProfil = existing.isEmpty();
+        final List<SQLRow> sources = fromProfil ? this.data.getProfilElements(fiche.getInt("ID_PROFIL_PAYE")) : existing;
+        for (final SQLRow src : sources) {
+            final String source = src.getString("SOURCE");
+            if (source.trim().length() == 0)
+                continue;
+            final SQLRow rowSource = this.data.getRubrique(source, src.getInt("IDSOURCE"));
+            if (rowSource == null) {
+                System.err.println("FichePayeCalcul : rubrique " + source + " " + src.getInt("IDSOURCE") + " introuvable pour la fiche " + fiche.getID());
+                continue;
+            }
+            final SQLRowValues rowVals = this.load(rowSource, fromProfil ? null : src);
+            rowVals.put("POSITION", res.size());
+            res.add(rowVals);
+        }
+
+        return new Result(fiche, res, this.getTotals());
+    }
+
+    private SQLRowValues getTotals() {
+        final SQLRowValues rowValsFiche = new SQLRowValues(this.ficheValues.getTable());
+        rowValsFiche.put("SAL_BRUT", Float.valueOf(this.salBrut));
+        rowValsFiche.put("NET_IMP", Float.valueOf(this.netImp + this.salBrut));
+        rowValsFiche.put("NET_A_PAYER", Float.valueOf(this.netAPayer + this.salBrut));
+        rowValsFiche.put("COT_SAL", Float.valueOf(this.cotSal));
+        rowValsFiche.put("COT_PAT", Float.valueOf(this.cotPat));
+        rowValsFiche.put("CSG", Float.valueOf((this.salBrut + this.csg) * 0.97F));
+        return rowValsFiche;
+    }
+
+    // equivalent of FichePayeModel.updateValueFiche()
+    private void updateValueFiche() {
+        this.ficheValues.putAll(this.getTotals().getAbsolutelyAll());
+        this.evaluator.valuesChanged();
+    }
+
+    private SQLRowValues load(final SQLRow rowSource, final SQLRow row) {
+        final String tableName = rowSource.getTable().getName();
+        final SQLRowValues rowVals = new SQLRowValues(this.tableFicheElt);
+        if (row != null) {
+            rowVals.loadAllSafe(row);
+            rowVals.remove(this.tableFicheElt.getKey().getName());
+        }
+        rowVals.put("IN_PERIODE", Boolean.valueOf(this.isEltInPeriod(rowSource)));
+        rowVals.put("SOURCE", tableName);
+        rowVals.put("IDSOURCE", rowSource.getID());
+        final Object ob = rowVals.getObject("VALIDE");
+        final boolean valide = ob == null ? false : Boolean.valueOf(ob.toString()).booleanValue();
+
+        if (tableName.equalsIgnoreCase("RUBRIQUE_COMM")) {
+            if (!valide)
+                this.loadComm(rowSource, rowVals);
+        } else {
+            if (!valide) {
+                final boolean cotisation = tableName.equalsIgnoreCase("RUBRIQUE_COTISATION");
+                rowVals.put("NOM", rowSource.getString("NOM"));
+                rowVals.put("NB_BASE", round(this.evaluator.eval(rowSource.getString("BASE"), "BASE")));
+                rowVals.put("TAUX_SAL", toFloat(this.evaluator.eval(rowSource.getString(cotisation ? "TX_SAL" : "TAUX"), cotisation ? "TX_SAL" : "TAUX")));
+                if (cotisation)
+                    rowVals.put("TAUX_PAT", toFloat(this.evaluator.eval(rowSource.getString("TX_PAT"), "TX_PAT")));
+            }
+            if (((Boolean) rowVals.getObject("IN_PERIODE")).booleanValue()) {
+                if (tableName.equalsIgnoreCase("RUBRIQUE_BRUT"))
+                    this.calculBrut(rowSource, rowVals);
+                else if (tableName.equalsIgnoreCase("RUBRIQUE_NET"))
+                    this.calculNet(rowSource, rowVals);
+                else
+                    this.calculCotisation(rowSource, rowVals);
+                this.updateValueFiche();
+            }
+        }
+        rowVals.put("IMPRESSION", Boolean.valueOf(isEltImprimable(rowSource, rowVals)));
+        return rowVals;
+    }
+
+    private void loadComm(final SQLRow rowSource, final SQLRowValues rowVals) {
+        rowVals.put("NOM", rowSource.getBoolean("NOM_VISIBLE") ? rowSource.getString("NOM") : "");
+        rowVals.put("NB_BASE", toFloat(this.evaluator.eval(rowSource.getString("NB_BASE"), "BASE")));
+        rowVals.put("TAUX_SAL", toFloat(this.evaluator.eval(rowSource.getString("TAUX_SAL"), "SAL")));
+        rowVals.put("TAUX_PAT", toFloat(this.evaluator.eval(rowSource.getString("TAUX_PAT"), "PAT")));
+        rowVals.put("MONTANT_PAT", toFloat(this.evaluator.eval(rowSource.getString("MONTANT_PAT"), "MONTANT")));
+        rowVals.put("MONTANT_SAL_AJ", toFloat(this.evaluator.eval(rowSource.getString("MONTANT_SAL_AJ"), "MONTANT")));
+        rowVals.put("MONTANT_SAL_DED", toFloat(this.evaluator.eval(rowSource.getString("MONTANT_SAL_DED"), "MONTANT")));
+    }
+
+    private float getMontant(final SQLRow rowSource, final SQLRowValues rowVals) {
+        final String formuleMontant = rowSource.getString("MONTANT");
+        if (formuleMontant.trim().length() == 0) {
+            return Math.round(getFloat(rowVals, "NB_BASE") * getFloat(rowVals, "TAUX_SAL") * 100.0F) / 100.0F;
+        } else {
+            final Float montant = toFloat(this.evaluator.eval(formuleMontant, "MONTANT"));
+            return montant == null ? 0.0F : Math.round(montant.floatValue() * 100.0F) / 100.0F;
+        }
+    }
+
+    private void calculBrut(final SQLRow rowSource, final SQLRowValues rowVals) {
+        final float montant = this.getMontant(rowSource, rowVals);
+        // Retenue
+        if (rowSource.getInt("ID_TYPE_RUBRIQUE_BRUT") == 3) {
+            rowVals.put("MONTANT_SAL_DED", Float.valueOf(montant));
+            this.salBrut -= montant;
+        } else {
+            rowVals.put("MONTANT_SAL_AJ", Float.valueOf(montant));
+            this.salBrut += montant;
+        }
+    }
+
+    private void calculNet(final SQLRow rowSource, final SQLRowValues rowVals) {
+        final float montant = this.getMontant(rowSource, rowVals);
+        final boolean imposable = rowSource.getBoolean("IMPOSABLE");
+        // Retenue
+        if (rowSource.getInt("ID_TYPE_RUBRIQUE_NET") == 3) {
+            rowVals.put("MONTANT_SAL_DED", Float.valueOf(montant));
+            this.netAPayer -= montant;
+            if (!imposable)
+                this.netImp -= montant;
+        } else {
+            rowVals.put("MONTANT_SAL_AJ", Float.valueOf(montant));
+            this.netAPayer += montant;
+            if (!imposable)
+                this.netImp += montant;
+        }
+    }
+
+    private void calculCotisation(final SQLRow rowSource, final SQLRowValues rowVals) {
+        final float base = getFloat(rowVals, "NB_BASE");
+        final float tauxSal = getFloat(rowVals, "TAUX_SAL") / 100.0F;
+        final float tauxPat = getFloat(rowVals, "TAUX_PAT") / 100.0F;
+
+        final float montantSal = Math.round(base * tauxSal * 100.0F) / 100.0F;
+        final float montantPat = Math.round(base * tauxPat * 100.0F) / 100.0F;
+        rowVals.put("MONTANT_SAL_DED", Float.valueOf(montantSal));
+        rowVals.put("MONTANT_PAT", Float.valueOf(montantPat));
+
+        this.netAPayer -= montantSal;
+        if (!rowSource.getBoolean("IMPOSABLE"))
+            this.netImp -= montantSal;
+        if (rowSource.getBoolean("PART_CSG"))
+            this.csg += montantPat;
+        this.cotSal += montantSal;
+        this.cotPat += montantPat;
+    }
+
+    private boolean isEltInPeriod(final SQLRow rowSource) {
+        if (this.moisName == null)
+            return false;
+        final SQLRow rowPeriodeValid = this.data.getPeriodeValidite(rowSource.getInt("ID_PERIODE_VALIDITE"));
+        return rowPeriodeValid != null && rowPeriodeValid.getBoolean(this.moisName).booleanValue();
+    }
+
+    static private boolean isEltImprimable(final SQLRow rowSource, final SQLRowValues row) {
+        final int impression = rowSource.getInt("ID_IMPRESSION_RUBRIQUE");
+        if (impression == 4) {
+            return false;
+        } else if (impression == 2) {
+            return getFloat(row, "MONTANT_SAL_AJ") != 0 || getFloat(row, "MONTANT_SAL_DED") != 0 || getFloat(row, "MONTANT_PAT") != 0;
+        } else {
+            return true;
+        }
+    }
+
+    static private float getFloat(final SQLRowValues rowVals, final String field) {
+        final Float f = toFloat(rowVals.getObject(field));
+        return f == null ? 0.0F : f.floatValue();
+    }
+
+    static private Float toFloat(final Object o) {
+        if (o == null || o.toString().trim().length() == 0)
+            return null;
+        else if (o instanceof Float)
+            return (Float) o;
+        else if (o instanceof Number)
+            return Float.valueOf(((Number) o).floatValue());
+        try {
+            return Float.valueOf(o.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static private Float round(final Object o) {
+        final Float f = toFloat(o);
+        return f == null ? null : Float.valueOf(Math.round(f.floatValue() * 100.0F) / 100.0F);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.humanresources.payroll.batch;
+
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.element.SQLElement;
+import org.openconcerto.sql.model.ConnectionHandlerNoSetup;
+import org.openconcerto.sql.model.SQLDataSource;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.utils.SQLUtils;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calcul des fiches de paye d'une période, sans interface graphique. Les fiches sont calculées en
+ * parallèle (chaque thread a son propre {@link FichePayeCalcul}) puis enregistrées par lots, chaque
+ * lot dans une transaction.
+ * 
+ * <pre>
+ * final PayeBatch batch = new PayeBatch(PayeBatchData.load(base, idMois, annee, null));
+ * batch.addListener(l);
+ * batch.run();
+ * </pre>
+ * 
+ * @see #cancel()
+ */
+public final class PayeBatch {
+
+    /**
+     * Suivi du calcul. Les méthodes sont appelées par le thread de {@link PayeBatch#run()}.
+     */
+    public static interface Listener {
+        /**
+         * Une fiche a été calculée et enregistrée.
+         * 
+         * @param done le nombre de fiches traitées.
+         * @param total le nombre de fiches à traiter.
+         * @param res la dernière fiche enregistrée.
+         */
+        void progress(int done, int total, FichePayeCalcul.Result res);
+
+        /**
+         * Le calcul d'une fiche a échoué, la fiche est laissée telle quelle.
+         * 
+         * @param fiche la fiche.
+         * @param e l'erreur.
+         */
+        void error(SQLRow fiche, Throwable e);
+    }
+
+    static private final List<String> ELEMENT_FIELDS = Arrays.asList("ID_FICHE_PAYE", "POSITION", "SOURCE", "IDSOURCE", "NOM", "NB_BASE", "TAUX_SAL", "TAUX_PAT", "MONTANT_SAL_AJ", "MONTANT_SAL_DED",
+            "MONTANT_PAT", "IMPRESSION", "IN_PERIODE", "VALIDE");
+    // max rows per JDBC batch
+    static private final int INSERT_MAX_ROWS = 500;
+
+    private final PayeBatchData data;
+    private final List<Listener> listeners;
+    private int threadCount;
+    private int batchSize;
+    private volatile boolean cancelled;
+
+    public PayeBatch(final PayeBatchData data) {
+        this.data = data;
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+        this.batchSize = 50;
+        this.cancelled = false;
+    }
+
+    public final void addListener(final Listener l) {
+        this.listeners.add(l);
+    }
+
+    public final void removeListener(final Listener l) {
+        this.listeners.remove(l);
+    }
+
+    /**
+     * Le nombre de threads de calcul, par défaut le nombre de processeurs.
+     * 
+     * @param threadCount le nombre de threads.
+     */
+    public final void setThreadCount(final int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("Invalid thread count : " + threadCount);
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Le nombre de fiches enregistrées par transaction, par défaut 50.
+     * 
+     * @param batchSize le nombre de fiches.
+     */
+    public final void setBatchSize(final int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Invalid batch size : " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Arrête le calcul dès que possible. Les lots déjà enregistrés sont conservés, les autres
+     * fiches sont laissées telles quelles. Peut être appelée depuis n'importe quel thread.
+     */
+    public final void cancel() {
+        this.cancelled = true;
+    }
+
+    public final boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Calcule et enregistre toutes les fiches.
+     * 
+     * @return les fiches enregistrées.
+     * @throws SQLException si un lot n'a pu être enregistré, les lots précédents sont conservés.
+     * @throws InterruptedException si le thread courant est interrompu.
+     */
+    public List<FichePayeCalcul.Result> run() throws SQLException, InterruptedException {
+        final List<SQLRow> fiches = this.data.getFiches();
+        final int total = fiches.size();
+        final List<FichePayeCalcul.Result> res = new ArrayList<FichePayeCalcul.Result>(total);
+        if (total == 0)
+            return res;
+
+        final int poolSize = Math.min(this.threadCount, total);
+        final ExecutorService exec = new ThreadPoolExecutor(poolSize, poolSize, 1L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(PayeBatch.class.getSimpleName() + " ", true));
+        // FichePayeCalcul isn't thread-safe
+        final ThreadLocal<FichePayeCalcul> calculs = new ThreadLocal<FichePayeCalcul>() {
+            @Override
+            protected FichePayeCalcul initialValue() {
+                return new FichePayeCalcul(PayeBatch.this.data);
+            }
+        };
+        try {
+            final CompletionService<FichePayeCalcul.Result> completion = new ExecutorCompletionService<FichePayeCalcul.Result>(exec);
+            final Map<Future<FichePayeCalcul.Result>, SQLRow> futures = new HashMap<Future<FichePayeCalcul.Result>, SQLRow>(total * 2);
+            for (final SQLRow fiche : fiches) {
+                futures.put(completion.submit(new Callable<FichePayeCalcul.Result>() {
+                    @Override
+                    public FichePayeCalcul.Result call() throws Exception {
+                        if (PayeBatch.this.cancelled)
+                            return null;
+                        return calculs.get().calcul(fiche);
+                    }
+                }), fiche);
+            }
+
+            final List<FichePayeCalcul.Result> pending = new ArrayList<FichePayeCalcul.Result>(this.batchSize);
+            int done = 0;
+            for (int i = 0; i < total && !this.cancelled; i++) {
+                final Future<FichePayeCalcul.Result> f = completion.take();
+                try {
+                    final FichePayeCalcul.Result r = f.get();
+                    if (r != null)
+                        pending.add(r);
+                } catch (ExecutionException e) {
+                    done++;
+                    for (final Listener l : this.listeners)
+                        l.error(futures.get(f), e.getCause());
+                }
+                if (pending.size() >= this.batchSize || i == total - 1) {
+                    done = this.persist(pending, done, total);
+                    res.addAll(pending);
+                    pending.clear();
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+        return res;
+    }
+
+    private int persist(final List<FichePayeCalcul.Result> results, final int done, final int total) throws SQLException {
+        if (results.isEmpty())
+            return done;
+
+        final SQLTable tableElt = this.data.getTableFicheElement();
+        final SQLElement eltElement = Configuration.getInstance().getDirectory().getElement(tableElt);
+        SQLUtils.executeAtomic(tableElt.getDBSystemRoot().getDataSource(), new ConnectionHandlerNoSetup<Object, SQLException>() {
+            @Override
+            public Object handle(SQLDataSource ds) throws SQLException {
+                // replace all elements at once
+                final List<SQLRow> old = new ArrayList<SQLRow>();
+                for (final FichePayeCalcul.Result r : results)
+                    old.addAll(PayeBatch.this.data.getElements(r.getFiche().getID()));
+                eltElement.archive(old);
+                insertElements(tableElt, results);
+                for (final FichePayeCalcul.Result r : results) {
+                    r.getTotals().update(r.getFiche().getID());
+                }
+                return null;
+            }
+        });
+
+        int res = done;
+        for (final FichePayeCalcul.Result r : results) {
+            res++;
+            for (final Listener l : this.listeners)
+                l.progress(res, total, r);
+        }
+        return res;
+    }
+
+    static private void insertElements(final SQLTable tableElt, final List<FichePayeCalcul.Result> results) throws SQLException {
+        final List<String> fields = new ArrayList<String>(ELEMENT_FIELDS.size());
+        for (final String name : ELEMENT_FIELDS) {
+            if (tableElt.contains(name))
+                fields.add(name);
+        }
+
+        // insertBatch() needs the same fields for every row
+        final List<SQLRowValues> rows = new ArrayList<SQLRowValues>(INSERT_MAX_ROWS);
+        for (final FichePayeCalcul.Result r : results) {
+            for (final SQLRowValues elt : r.getElements()) {
+                elt.put("ID_FICHE_PAYE", r.getFiche().getID());
+                if (elt.getObject("VALIDE") == null)
+                    elt.put("VALIDE", Boolean.FALSE);
+                final SQLRowValues row = new SQLRowValues(tableElt);
+                for (final String f : fields)
+                    row.put(f, elt.getObject(f));
+                rows.add(row);
+                if (rows.size() == INSERT_MAX_ROWS) {
+                    SQLRowValues.insertBatch(rows);
+                    rows.clear();
+                }
+            }
+        }
+        if (!rows.isEmpty())
+            SQLRowValues.insertBatch(rows);
+    }
+
+    /**
+     * Les fiches traitées par ce calcul.
+     * 
+     * @return les fiches.
+     */
+    public final List<SQLRow> getFiches() {
+        return Collections.unmodifiableList(this.data.getFiches());
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.humanresources.payroll.batch;
+
+import org.openconcerto.erp.core.humanresources.payroll.element.VariablePayeSQLElement;
+import org.openconcerto.sql.model.SQLBase;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowAccessor;
+import org.openconcerto.sql.model.SQLRowListRSH;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.utils.ListMapOfInt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Toutes les données nécessaires au calcul des fiches de paye d'une période, chargées avec une
+ * requête par table. Une fois créée cette classe est en lecture seule et peut donc être partagée
+ * par les threads de calcul.
+ * 
+ * @see FichePayeCalcul
+ */
+public final class PayeBatchData {
+
+    // tables of SALARIE whose fields can be used in formulas
+    static private final List<String> SALARIE_FOREIGN_TABLES = Arrays.asList("INFOS_SALARIE_PAYE", "VARIABLE_SALARIE", "CUMULS_CONGES", "CUMULS_PAYE");
+    static private final List<String> RUBRIQUE_TABLES = Arrays.asList("RUBRIQUE_BRUT", "RUBRIQUE_COTISATION", "RUBRIQUE_NET", "RUBRIQUE_COMM");
+
+    @SuppressWarnings("unchecked")
+    static List<SQLRow> fetch(final SQLTable t, final Where w, final String orderField) {
+        final SQLSelect sel = new SQLSelect(t.getBase());
+        sel.addSelectStar(t);
+        sel.setWhere(w);
+        if (orderField != null)
+            sel.addFieldOrder(t.getField(orderField));
+        return (List<SQLRow>) t.getBase().getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel));
+    }
+
+    static private Map<Integer, SQLRow> fetchByID(final SQLTable t, final Collection<Integer> ids) {
+        final Map<Integer, SQLRow> res = new HashMap<Integer, SQLRow>(ids.size() * 2);
+        if (!ids.isEmpty()) {
+            for (final SQLRow r : fetch(t, new Where(t.getKey(), ids), null))
+                res.put(r.getID(), r);
+        }
+        return res;
+    }
+
+    static private ListMapOfInt<SQLRow> groupBy(final List<SQLRow> rows, final String field) {
+        final ListMapOfInt<SQLRow> res = new ListMapOfInt<SQLRow>();
+        for (final SQLRow r : rows) {
+            res.add(r.getInt(field), r);
+        }
+        return res;
+    }
+
+    static private Set<Integer> getIDs(final Collection<SQLRow> rows, final String field) {
+        final Set<Integer> res = new HashSet<Integer>();
+        for (final SQLRow r : rows)
+            res.add(r.getInt(field));
+        return res;
+    }
+
+    /**
+     * Charge les fiches non validées d'une période.
+     * 
+     * @param base la base société.
+     * @param idMois la période, cf. table MOIS.
+     * @param annee l'année.
+     * @param salaries les ID des salariés, <code>null</code> pour tous.
+     * @return les données des fiches.
+     */
+    public static PayeBatchData load(final SQLBase base, final int idMois, final int annee, final Collection<Integer> salaries) {
+        final SQLTable tableFiche = base.getTable("FICHE_PAYE");
+        Where w = new Where(tableFiche.getField("VALIDE"), "=", Boolean.FALSE);
+        w = w.and(new Where(tableFiche.getField("ID_MOIS"), "=", idMois));
+        w = w.and(new Where(tableFiche.getField("ANNEE"), "=", annee));
+        if (salaries != null)
+            w = w.and(new Where(tableFiche.getField("ID_SALARIE"), salaries));
+        return new PayeBatchData(base, fetch(tableFiche, w, null));
+    }
+
+    private final SQLTable tableFicheElt;
+    private final List<SQLRow> fiches;
+    private final Map<String, List<?>> mapTree;
+    // ID_SALARIE -> table name -> row
+    private final Map<Integer, Map<String, SQLRow>> salarieRows;
+    private final ListMapOfInt<SQLRow> profilElements;
+    private final ListMapOfInt<SQLRow> ficheElements;
+    private final Map<String, Map<Integer, SQLRow>> rubriques;
+    private final Map<Integer, SQLRow> periodes;
+
+    PayeBatchData(final SQLBase base, final List<SQLRow> fiches) {
+        this.fiches = Collections.unmodifiableList(new ArrayList<SQLRow>(fiches));
+        this.tableFicheElt = base.getTable("FICHE_PAYE_ELEMENT");
+        this.mapTree = VariablePayeSQLElement.getMapTree();
+
+        // salariés et leurs lignes liées
+        final SQLTable tableSal = base.getTable("SALARIE");
+        final Map<Integer, SQLRow> salaries = fetchByID(tableSal, getIDs(fiches, "ID_SALARIE"));
+        final Map<String, Map<Integer, SQLRow>> foreigns = new HashMap<String, Map<Integer, SQLRow>>();
+        for (final String t : SALARIE_FOREIGN_TABLES) {
+            foreigns.put(t, fetchByID(base.getTable(t), getIDs(salaries.values(), "ID_" + t)));
+        }
+        this.salarieRows = new HashMap<Integer, Map<String, SQLRow>>(salaries.size() * 2);
+        for (final SQLRow sal : salaries.values()) {
+            final Map<String, SQLRow> m = new HashMap<String, SQLRow>();
+            m.put(tableSal.getName(), sal);
+            for (final String t : SALARIE_FOREIGN_TABLES) {
+                final SQLRow r = foreigns.get(t).get(sal.getInt("ID_" + t));
+                if (r != null)
+                    m.put(t, r);
+            }
+            this.salarieRows.put(sal.getID(), Collections.unmodifiableMap(m));
+        }
+
+        // éléments des fiches et des profils
+        final SQLTable tableProfilElt = base.getTable("PROFIL_PAYE_ELEMENT");
+        if (fiches.isEmpty()) {
+            this.ficheElements = new ListMapOfInt<SQLRow>(0);
+            this.profilElements = new ListMapOfInt<SQLRow>(0);
+        } else {
+            this.ficheElements = groupBy(fetch(this.tableFicheElt, new Where(this.tableFicheElt.getField("ID_FICHE_PAYE"), getIDs(fiches, "ID")), "POSITION"), "ID_FICHE_PAYE");
+            this.profilElements = groupBy(fetch(tableProfilElt, new Where(tableProfilElt.getField("ID_PROFIL_PAYE"), getIDs(fiches, "ID_PROFIL_PAYE")), "POSITION"), "ID_PROFIL_PAYE");
+        }
+
+        // rubriques utilisées
+        final Map<String, Set<Integer>> rubriquesIDs = new HashMap<String, Set<Integer>>();
+        for (final String t : RUBRIQUE_TABLES)
+            rubriquesIDs.put(t, new HashSet<Integer>());
+        for (final ListMapOfInt<SQLRow> m : Arrays.asList(this.ficheElements, this.profilElements)) {
+            for (final int key : m.keys()) {
+                for (final SQLRow elt : m.getReadOnly(key)) {
+                    final Set<Integer> ids = rubriquesIDs.get(elt.getString("SOURCE"));
+                    if (ids != null)
+                        ids.add(elt.getInt("IDSOURCE"));
+                }
+            }
+        }
+        this.rubriques = new HashMap<String, Map<Integer, SQLRow>>();
+        final Set<Integer> periodesIDs = new HashSet<Integer>();
+        for (final String t : RUBRIQUE_TABLES) {
+            final Map<Integer, SQLRow> rows = fetchByID(base.getTable(t), rubriquesIDs.get(t));
+            this.rubriques.put(t, rows);
+            if (!t.equals("RUBRIQUE_COMM"))
+                periodesIDs.addAll(getIDs(rows.values(), "ID_PERIODE_VALIDITE"));
+        }
+        this.periodes = fetchByID(base.getTable("PERIODE_VALIDITE"), periodesIDs);
+    }
+
+    public final List<SQLRow> getFiches() {
+        return this.fiches;
+    }
+
+    public final SQLTable getTableFicheElement() {
+        return this.tableFicheElt;
+    }
+
+    final Map<String, List<?>> getMapTree() {
+        return this.mapTree;
+    }
+
+    /**
+     * Les lignes d'un salarié utilisables dans les formules.
+     * 
+     * @param idSal l'ID du salarié.
+     * @return nom de table vers ligne, e.g. "INFOS_SALARIE_PAYE".
+     */
+    public final Map<String, ? extends SQLRowAccessor> getSalarieRows(final int idSal) {
+        final Map<String, SQLRow> res = this.salarieRows.get(idSal);
+        return res == null ? Collections.<String, SQLRow> emptyMap() : res;
+    }
+
+    public final List<SQLRow> getElements(final int idFiche) {
+        return this.ficheElements.getReadOnly(idFiche);
+    }
+
+    public final List<SQLRow> getProfilElements(final int idProfil) {
+        return this.profilElements.getReadOnly(idProfil);
+    }
+
+    public final SQLRow getRubrique(final String table, final int id) {
+        final Map<Integer, SQLRow> m = this.rubriques.get(table);
+        return m == null ? null : m.get(id);
+    }
+
+    public final SQLRow getPeriodeValidite(final int id) {
+        return this.periodes.get(id);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.humanresources.payroll.batch;
+
+import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowAccessor;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import koala.dynamicjava.interpreter.Interpreter;
+import koala.dynamicjava.interpreter.TreeInterpreter;
+import koala.dynamicjava.parser.wrapper.JavaCCParserFactory;
+
+/**
+ * Evaluation des formules de paye sans interface graphique. Contrairement à
+ * {@link org.openconcerto.erp.core.common.ui.SQLJavaEditor} aucun fichier temporaire n'est utilisé
+ * et les valeurs du salarié sont fournies par l'appelant, il n'y a donc aucun accès à la base.
+ * <p>
+ * Une instance n'est pas thread-safe, chaque thread de calcul doit avoir la sienne.
+ * </p>
+ * 
+ * @see #setRows(Map)
+ */
+public final class PayeFormuleEvaluator {
+
+    private static final Float UNDEFINED_VALUE = Float.valueOf(1.0F);
+
+    private final List<SQLField> fields;
+    private final List<SQLRow> variables;
+
+    // table name -> row of the employee
+    private Map<String, ? extends SQLRowAccessor> rows;
+    // VARIABLE_PAYE.NOM -> value, cleared when the rows change
+    private final Map<String, Object> cacheVariables;
+    private final Set<String> evaluating;
+
+    /**
+     * Crée un évaluateur.
+     * 
+     * @param mapTree les variables, cf.
+     *        {@link org.openconcerto.erp.core.humanresources.payroll.element.VariablePayeSQLElement#getMapTree()}
+     */
+    public PayeFormuleEvaluator(final Map<String, List<?>> mapTree) {
+        this.fields = new ArrayList<SQLField>();
+        this.variables = new ArrayList<SQLRow>();
+        for (final List<?> l : mapTree.values()) {
+            for (final Object o : l) {
+                if (o instanceof SQLRow) {
+                    this.variables.add((SQLRow) o);
+                } else if (o instanceof SQLField) {
+                    this.fields.add((SQLField) o);
+                }
+            }
+        }
+        this.rows = Collections.emptyMap();
+        this.cacheVariables = new HashMap<String, Object>();
+        this.evaluating = new HashSet<String>();
+    }
+
+    /**
+     * Les lignes utilisées pour valoriser les champs des formules.
+     * 
+     * @param rows nom de table (e.g. "INFOS_SALARIE_PAYE", "FICHE_PAYE") vers la ligne du salarié.
+     */
+    public void setRows(final Map<String, ? extends SQLRowAccessor> rows) {
+        this.rows = rows;
+        this.valuesChanged();
+    }
+
+    /**
+     * Doit être appelée quand une des lignes passées à {@link #setRows(Map)} a été modifiée (e.g.
+     * le cumul du brut de la fiche).
+     */
+    public void valuesChanged() {
+        this.cacheVariables.clear();
+    }
+
+    /**
+     * Evalue une formule.
+     * 
+     * @param formule la formule, e.g. "SALAIRE_MOIS / 151.67F".
+     * @param varCallName la variable qui reçoit la formule.
+     * @return la valeur de la formule, <code>null</code> si elle est vide ou incorrecte.
+     */
+    public Object eval(final String formule, final String varCallName) {
+        if (formule == null || formule.trim().length() == 0)
+            return null;
+
+        final Interpreter interpreter = new TreeInterpreter(new JavaCCParserFactory());
+        final StringBuilder code = new StringBuilder(formule.length() + 256);
+        for (final SQLField field : this.fields) {
+            if (formule.indexOf(field.getName()) >= 0) {
+                final SQLRowAccessor r = this.rows.get(field.getTable().getName());
+                defineVariable(interpreter, code, field.getName(), r == null ? null : r.getObject(field.getName()));
+            }
+        }
+        for (final SQLRow var : this.variables) {
+            final String name = var.getString("NOM");
+            if (formule.indexOf(name) >= 0 && !name.equalsIgnoreCase(varCallName)) {
+                defineVariable(interpreter, code, name, this.getVariable(var));
+            }
+        }
+        code.append(formule);
+
+        try {
+            final Object res = interpreter.interpret(new StringReader(code.toString()), varCallName);
+            try {
+                return interpreter.getVariable(varCallName);
+            } catch (IllegalStateException e) {
+                return res;
+            }
+        } catch (Exception e) {
+            // same behaviour as SQLJavaEditor : an incorrect formula has no value
+            System.err.println("PayeFormuleEvaluator : formule incorrecte pour " + varCallName + " : " + formule + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    private Object getVariable(final SQLRow var) {
+        final String name = var.getString("NOM");
+        if (this.cacheVariables.containsKey(name))
+            return this.cacheVariables.get(name);
+
+        final Object res;
+        final String formule = var.getString("FORMULE");
+        if (formule.trim().length() == 0) {
+            res = var.getObject("VALEUR");
+        } else if (!this.evaluating.add(name)) {
+            // cyclic definition
+            res = UNDEFINED_VALUE;
+        } else {
+            try {
+                final Object o = this.eval(formule, name);
+                res = o == null ? UNDEFINED_VALUE : o;
+            } finally {
+                this.evaluating.remove(name);
+            }
+        }
+        this.cacheVariables.put(name, res);
+        return res;
+    }
+
+    // same declarations as JavaEditor.defineVariable()
+    private static void defineVariable(final Interpreter interpret, final StringBuilder b, final String varName, final Object value) {
+        if (value == null) {
+            b.append("float ").append(varName).append(" = 1.0F;\n");
+        } else if (value instanceof Integer) {
+            b.append("int ").append(varName).append(" = ").append(value).append(";\n");
+        } else if (value instanceof Float) {
+            b.append("float ").append(varName).append(" = ").append(value).append("F;\n");
+        } else if (value instanceof Double) {
+            b.append("double ").append(varName).append(" = ").append(value).append(";\n");
+        } else {
+            interpret.defineVariable(varName, value);
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLField;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowAccessor;
+import org.openconcerto.sql.model.SQLRowListRSH;
 import org.openconcerto.sql.model.SQLSelect;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.Where;
@@ -238,19 +239,13 @@ public class VariablePayeSQLElement extends ConfSQLElement {
          * lEtat);
          */
 
-        SQLSelect selAllVarID = new SQLSelect(tableVar.getBase());
+        // toutes les variables en une seule requête
+        SQLSelect selAllVar = new SQLSelect(tableVar.getBase());
+        selAllVar.addSelectStar(tableVar);
+        selAllVar.addRawOrder("LENGTH(\"VARIABLE_PAYE\".\"NOM\") DESC");
 
-        selAllVarID.addSelect(tableVar.getField("ID"));
-        selAllVarID.addRawOrder("LENGTH(\"VARIABLE_PAYE\".\"NOM\") DESC");
-
-        String reqAllVarID = selAllVarID.asString();
-        Object[] objKeysRowVar = ((List) tableVar.getBase().getDataSource().execute(reqAllVarID, new ArrayListHandler())).toArray();
-
-        List<SQLRow> lVar = new ArrayList<SQLRow>();
-        for (int i = 0; i < objKeysRowVar.length; i++) {
-            Object[] tmp = (Object[]) objKeysRowVar[i];
-            lVar.add(tableVar.getRow(Integer.parseInt(tmp[0].toString())));
-        }
+        @SuppressWarnings("unchecked")
+        List<SQLRow> lVar = (List<SQLRow>) tableVar.getBase().getDataSource().execute(selAllVar.asString(), SQLRowListRSH.createFromSelect(selAllVar));
 
         if (lVar.size() > 0) {
             mapTree.put("Variables", lVar);
@@ -26,6 +26,7 @@ import org.openconcerto.erp.core.sales.pos.io.TicketPrinter;
 import org.openconcerto.erp.core.sales.pos.model.Article;
 import org.openconcerto.erp.core.sales.pos.model.Paiement;
 import org.openconcerto.erp.core.sales.pos.model.Ticket;
+import org.openconcerto.erp.core.sales.pos.model.TicketJournal;
 import org.openconcerto.erp.core.sales.pos.model.TicketLine;
 import org.openconcerto.erp.core.supplychain.stock.element.MouvementStockSQLElement;
 import org.openconcerto.erp.core.supplychain.stock.element.StockLabel;
@@ -36,6 +37,7 @@ import org.openconcerto.erp.model.PrixTTC;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.element.SQLElement;
 import org.openconcerto.sql.model.SQLBase;
+import org.openconcerto.sql.model.SQLField;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowListRSH;
 import org.openconcerto.sql.model.SQLRowValues;
@@ -51,14 +53,19 @@ import org.openconcerto.utils.i18n.TranslationManager;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
@@ -143,146 +150,260 @@ public class Caisse {
         }
     }
 
+    /**
+     * Suivi de la clôture.
+     */
+    public static interface CommitListener {
+        /**
+         * Un lot de tickets a été enregistré dans la base.
+         * 
+         * @param done le nombre de tickets traités, y compris ceux déjà présents dans la base.
+         * @param total le nombre de tickets.
+         */
+        void progress(int done, int total);
+    }
+
+    // tickets par transaction
+    private static final int COMMIT_BATCH_SIZE = 100;
+    // valeurs par requête IN
+    private static final int SELECT_BATCH_SIZE = 1000;
+
     public static void commitAll(final List<Ticket> tickets) {
-        // createConnexion();
+        commitAll(tickets, null);
+    }
+
+    /**
+     * Enregistre les tickets dans la base par lots, chaque lot dans sa propre transaction. Si la
+     * clôture échoue, les lots déjà enregistrés le restent et une nouvelle clôture ne traite que
+     * les tickets manquants.
+     * 
+     * @param tickets les tickets de la caisse.
+     * @param l pour suivre l'avancement, peut être <code>null</code>.
+     * @return <code>true</code> si tous les tickets sont dans la base.
+     */
+    public static boolean commitAll(final List<Ticket> tickets, final CommitListener l) {
         try {
-            SQLUtils.executeAtomic(Configuration.getInstance().getSystemRoot().getDataSource(), new SQLUtils.SQLFactory<Object>() {
-                @Override
-                public Object create() throws SQLException {
-                    SQLElement elt = Configuration.getInstance().getDirectory().getElement("TICKET_CAISSE");
-                    SQLElement eltFact = Configuration.getInstance().getDirectory().getElement("SAISIE_VENTE_FACTURE_ELEMENT");
-                    SQLElement eltEnc = Configuration.getInstance().getDirectory().getElement("ENCAISSER_MONTANT");
-                    SQLElement eltMode = Configuration.getInstance().getDirectory().getElement("MODE_REGLEMENT");
-                    SQLElement eltTaxe = Configuration.getInstance().getDirectory().getElement("TAXE");
-                    SQLElement eltArticle = Configuration.getInstance().getDirectory().getElement("ARTICLE");
-                    for (Ticket ticket : tickets) {
-                        SQLSelect sel = new SQLSelect(Configuration.getInstance().getBase());
-                        sel.addSelect(elt.getTable().getField("NUMERO"));
-                        sel.setWhere(new Where(elt.getTable().getField("NUMERO"), "=", ticket.getCode()));
-                        List<?> l = Configuration.getInstance().getBase().getDataSource().executeCol(sel.asString());
-                        if (l != null && l.size() == 0) {
-
-                            SQLRowValues rowVals = new SQLRowValues(elt.getTable());
-                            rowVals.put("NUMERO", ticket.getCode());
-                            rowVals.put("DATE", ticket.getCreationDate());
-                            rowVals.put("ID_CAISSE", getID());
-
-                            TotalCalculator calc = new TotalCalculator("T_PA_HT", "T_PV_HT", null);
-
-                            // Articles
-                            for (Pair<Article, Integer> item : ticket.getArticles()) {
-                                SQLRowValues rowValsElt = new SQLRowValues(eltFact.getTable());
-                                final Article article = item.getFirst();
-                                final Integer nb = item.getSecond();
-                                rowValsElt.put("QTE", nb);
-                                rowValsElt.put("PV_HT", article.getPriceHTInCents());
-                                Float tauxFromId = TaxeCache.getCache().getTauxFromId(article.getIdTaxe());
-                                BigDecimal tauxTVA = new BigDecimal(tauxFromId).movePointLeft(2).add(BigDecimal.ONE);
-
-                                final BigDecimal valueHT = article.getPriceHTInCents().multiply(new BigDecimal(nb), MathContext.DECIMAL128);
-                                // total = total.add(value);
-                                // totalHT = totalHT.add(valueHT);
-                                rowValsElt.put("T_PV_HT", valueHT);
-                                rowValsElt.put("T_PV_TTC", valueHT.multiply(tauxTVA, MathContext.DECIMAL128));
-                                rowValsElt.put("ID_TAXE", article.getIdTaxe());
-                                rowValsElt.put("CODE", article.getCode());
-                                rowValsElt.put("NOM", article.getName());
-                                rowValsElt.put("ID_TICKET_CAISSE", rowVals);
-                                rowValsElt.put("ID_ARTICLE", article.getId());
-                                calc.addLine(rowValsElt, eltArticle.getTable().getRow(article.getId()), 0, false);
-                            }
-                            calc.checkResult();
-                            long longValueTotalHT = calc.getTotalHT().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
-                            rowVals.put("TOTAL_HT", longValueTotalHT);
-
-                            long longValueTotal = calc.getTotalTTC().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
-                            rowVals.put("TOTAL_TTC", longValueTotal);
-                            long longValueTotalTVA = calc.getTotalTVA().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
-                            rowVals.put("TOTAL_TVA", longValueTotalTVA);
-
-                            // Paiements
-                            for (Paiement paiement : ticket.getPaiements()) {
-                                if (paiement.getMontantInCents() > 0) {
-                                    SQLRowValues rowValsElt = new SQLRowValues(eltEnc.getTable());
-                                    SQLRowValues rowValsEltMode = new SQLRowValues(eltMode.getTable());
-                                    if (paiement.getType() == Paiement.CB) {
-                                        rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.CB);
-                                    } else if (paiement.getType() == Paiement.CHEQUE) {
-                                        rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.CHEQUE);
-                                    } else if (paiement.getType() == Paiement.ESPECES) {
-                                        rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.ESPECE);
-                                    }
-
-                                    rowValsElt.put("ID_MODE_REGLEMENT", rowValsEltMode);
-                                    try {
-                                        rowValsElt.put("ID_CLIENT", getClientCaisse().getID());
-                                    } catch (SQLException e) {
-                                        e.printStackTrace();
-                                    }
-                                    long montant = Long.valueOf(paiement.getMontantInCents());
-                                    if (ticket.getPaiements().size() == 1 && paiement.getType() == Paiement.ESPECES) {
-                                        montant = longValueTotal;
-                                    }
-                                    rowValsElt.put("MONTANT", montant);
-                                    rowValsElt.put("NOM", "Ticket " + ticket.getCode());
-                                    rowValsElt.put("DATE", ticket.getCreationDate());
-                                    rowValsElt.put("ID_TICKET_CAISSE", rowVals);
-                                }
-                            }
-
-                            SQLRow rowFinal = rowVals.insert();
-                            GenerationMvtTicketCaisse mvt = new GenerationMvtTicketCaisse(rowFinal);
-                            final Integer idMvt;
-                            try {
-                                idMvt = mvt.genereMouvement().call();
-                            } catch (Exception exn) {
-                                exn.printStackTrace();
-                                throw new SQLException(exn);
-                            }
-
-                            SQLRowValues valTicket = rowFinal.asRowValues();
-                            valTicket.put("ID_MOUVEMENT", Integer.valueOf(idMvt));
-                            rowFinal = valTicket.update();
-
-                            // msie à jour du mouvement
-                            List<SQLRow> rowsEnc = rowFinal.getReferentRows(eltEnc.getTable());
-                            long totalEnc = 0;
-                            for (SQLRow sqlRow : rowsEnc) {
-                                long montant = sqlRow.getLong("MONTANT");
-                                PrixTTC ttc = new PrixTTC(montant);
-                                totalEnc += montant;
-                                new GenerationReglementVenteNG("Règlement " + sqlRow.getForeignRow("ID_MODE_REGLEMENT").getForeignRow("ID_TYPE_REGLEMENT").getString("NOM") + " Ticket "
-                                        + rowFinal.getString("NUMERO"), getClientCaisse(), ttc, sqlRow.getDate("DATE").getTime(), sqlRow.getForeignRow("ID_MODE_REGLEMENT"), rowFinal, rowFinal
-                                        .getForeignRow("ID_MOUVEMENT"), false);
-                            }
-                            if (totalEnc > longValueTotal) {
-                                final SQLTable table = Configuration.getInstance().getDirectory().getElement("TYPE_REGLEMENT").getTable();
-                                int idComptePceCaisse = table.getRow(TypeReglementSQLElement.ESPECE).getInt("ID_COMPTE_PCE_CLIENT");
-                                if (idComptePceCaisse == table.getUndefinedID()) {
-                                    idComptePceCaisse = ComptePCESQLElement.getId(ComptePCESQLElement.getComptePceDefault("VenteEspece"));
-                                }
-                                new GenerationMvtVirement(idComptePceCaisse, getClientCaisse().getInt("ID_COMPTE_PCE"), 0, totalEnc - longValueTotal, "Rendu sur règlement " + " Ticket "
-                                        + rowFinal.getString("NUMERO"), new Date(), JournalSQLElement.CAISSES, " Ticket " + rowFinal.getString("NUMERO")).genereMouvement();
-                            }
-
-                            updateStock(rowFinal.getID());
-
-                        }
+            final SQLTable tableTicket = Configuration.getInstance().getDirectory().getElement("TICKET_CAISSE").getTable();
+            final Set<String> existing = getExistingCodes(tableTicket, tickets);
+            final List<Ticket> toCommit = new ArrayList<Ticket>(tickets.size());
+            for (final Ticket ticket : tickets) {
+                if (!existing.contains(ticket.getCode()))
+                    toCommit.add(ticket);
+            }
+            final int total = tickets.size();
+            int done = total - toCommit.size();
+            if (l != null)
+                l.progress(done, total);
+
+            final Map<Integer, SQLRow> articles = getArticles(toCommit);
+            for (int i = 0; i < toCommit.size(); i += COMMIT_BATCH_SIZE) {
+                final List<Ticket> batch = toCommit.subList(i, Math.min(toCommit.size(), i + COMMIT_BATCH_SIZE));
+                SQLUtils.executeAtomic(Configuration.getInstance().getSystemRoot().getDataSource(), new SQLUtils.SQLFactory<Object>() {
+                    @Override
+                    public Object create() throws SQLException {
+                        commitBatch(batch, articles);
+                        return null;
                     }
-                    SwingUtilities.invokeLater(new Runnable() {
-
-                        @Override
-                        public void run() {
-                            JOptionPane.showMessageDialog(null, "Clôture de la caisse terminée.");
-                        }
-                    });
-                    return null;
+                });
+                done += batch.size();
+                if (l != null)
+                    l.progress(done, total);
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    JOptionPane.showMessageDialog(null, "Clôture de la caisse terminée.");
                 }
             });
+            return true;
         } catch (Exception exn) {
-            ExceptionHandler.handle("Une erreur est survenue pendant la clôture.", exn);
+            ExceptionHandler.handle("Une erreur est survenue pendant la clôture.\nLes tickets déjà enregistrés ne le seront pas à nouveau lors de la prochaine clôture.", exn);
+            return false;
+        }
+    }
+
+    // les codes des tickets déjà enregistrés, une requête pour SELECT_BATCH_SIZE tickets
+    private static Set<String> getExistingCodes(final SQLTable tableTicket, final List<Ticket> tickets) {
+        final Set<String> res = new HashSet<String>();
+        final SQLField f = tableTicket.getField("NUMERO");
+        for (int i = 0; i < tickets.size(); i += SELECT_BATCH_SIZE) {
+            final List<String> codes = new ArrayList<String>(SELECT_BATCH_SIZE);
+            for (final Ticket ticket : tickets.subList(i, Math.min(tickets.size(), i + SELECT_BATCH_SIZE))) {
+                codes.add(ticket.getCode());
+            }
+            final SQLSelect sel = new SQLSelect(tableTicket.getBase());
+            sel.addSelect(f);
+            sel.setWhere(new Where(f, codes));
+            for (final Object code : tableTicket.getBase().getDataSource().executeCol(sel.asString())) {
+                res.add(String.valueOf(code));
+            }
+        }
+        return res;
+    }
+
+    // les articles des tickets, au lieu d'une requête par ligne
+    @SuppressWarnings("unchecked")
+    private static Map<Integer, SQLRow> getArticles(final List<Ticket> tickets) {
+        final SQLTable tableArticle = Configuration.getInstance().getDirectory().getElement("ARTICLE").getTable();
+        final Set<Integer> ids = new HashSet<Integer>();
+        for (final Ticket ticket : tickets) {
+            for (Pair<Article, Integer> item : ticket.getArticles()) {
+                ids.add(item.getFirst().getId());
+            }
+        }
+        final Map<Integer, SQLRow> res = new HashMap<Integer, SQLRow>(ids.size());
+        final List<Integer> l = new ArrayList<Integer>(ids);
+        for (int i = 0; i < l.size(); i += SELECT_BATCH_SIZE) {
+            final SQLSelect sel = new SQLSelect(tableArticle.getBase());
+            sel.addSelectStar(tableArticle);
+            sel.setWhere(new Where(tableArticle.getKey(), l.subList(i, Math.min(l.size(), i + SELECT_BATCH_SIZE))));
+            for (final SQLRow row : (List<SQLRow>) tableArticle.getBase().getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel))) {
+                res.put(row.getID(), row);
+            }
+        }
+        return res;
+    }
+
+    private static void commitBatch(final List<Ticket> tickets, final Map<Integer, SQLRow> articles) throws SQLException {
+        SQLElement elt = Configuration.getInstance().getDirectory().getElement("TICKET_CAISSE");
+        SQLElement eltFact = Configuration.getInstance().getDirectory().getElement("SAISIE_VENTE_FACTURE_ELEMENT");
+        SQLElement eltEnc = Configuration.getInstance().getDirectory().getElement("ENCAISSER_MONTANT");
+        SQLElement eltMode = Configuration.getInstance().getDirectory().getElement("MODE_REGLEMENT");
+        SQLElement eltArticle = Configuration.getInstance().getDirectory().getElement("ARTICLE");
+        final List<SQLRowValues> lines = new ArrayList<SQLRowValues>();
+        final List<SQLRow> rows = new ArrayList<SQLRow>(tickets.size());
+        final List<Long> totals = new ArrayList<Long>(tickets.size());
+        for (Ticket ticket : tickets) {
+            SQLRowValues rowVals = new SQLRowValues(elt.getTable());
+            rowVals.put("NUMERO", ticket.getCode());
+            rowVals.put("DATE", ticket.getCreationDate());
+            rowVals.put("ID_CAISSE", getID());
+
+            TotalCalculator calc = new TotalCalculator("T_PA_HT", "T_PV_HT", null);
+
+            // Articles
+            final List<SQLRowValues> ticketLines = new ArrayList<SQLRowValues>(ticket.getArticles().size());
+            for (Pair<Article, Integer> item : ticket.getArticles()) {
+                SQLRowValues rowValsElt = new SQLRowValues(eltFact.getTable());
+                final Article article = item.getFirst();
+                final Integer nb = item.getSecond();
+                rowValsElt.put("QTE", nb);
+                rowValsElt.put("PV_HT", article.getPriceHTInCents());
+                Float tauxFromId = TaxeCache.getCache().getTauxFromId(article.getIdTaxe());
+                BigDecimal tauxTVA = new BigDecimal(tauxFromId).movePointLeft(2).add(BigDecimal.ONE);
+
+                final BigDecimal valueHT = article.getPriceHTInCents().multiply(new BigDecimal(nb), MathContext.DECIMAL128);
+                rowValsElt.put("T_PV_HT", valueHT);
+                rowValsElt.put("T_PV_TTC", valueHT.multiply(tauxTVA, MathContext.DECIMAL128));
+                rowValsElt.put("ID_TAXE", article.getIdTaxe());
+                rowValsElt.put("CODE", article.getCode());
+                rowValsElt.put("NOM", article.getName());
+                rowValsElt.put("ID_ARTICLE", article.getId());
+                SQLRow rowArticle = articles.get(article.getId());
+                if (rowArticle == null) {
+                    // indéfini ou archivé
+                    rowArticle = eltArticle.getTable().getRow(article.getId());
+                    articles.put(article.getId(), rowArticle);
+                }
+                calc.addLine(rowValsElt, rowArticle, 0, false);
+                ticketLines.add(rowValsElt);
+            }
+            calc.checkResult();
+            long longValueTotalHT = calc.getTotalHT().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
+            rowVals.put("TOTAL_HT", longValueTotalHT);
+
+            long longValueTotal = calc.getTotalTTC().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
+            rowVals.put("TOTAL_TTC", longValueTotal);
+            long longValueTotalTVA = calc.getTotalTVA().movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
+            rowVals.put("TOTAL_TVA", longValueTotalTVA);
+
+            // Paiements
+            for (Paiement paiement : ticket.getPaiements()) {
+                if (paiement.getMontantInCents() > 0) {
+                    SQLRowValues rowValsElt = new SQLRowValues(eltEnc.getTable());
+                    SQLRowValues rowValsEltMode = new SQLRowValues(eltMode.getTable());
+                    if (paiement.getType() == Paiement.CB) {
+                        rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.CB);
+                    } else if (paiement.getType() == Paiement.CHEQUE) {
+                        rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.CHEQUE);
+                    } else if (paiement.getType() == Paiement.ESPECES) {
+                        rowValsEltMode.put("ID_TYPE_REGLEMENT", TypeReglementSQLElement.ESPECE);
+                    }
+
+                    rowValsElt.put("ID_MODE_REGLEMENT", rowValsEltMode);
+                    try {
+                        rowValsElt.put("ID_CLIENT", getClientCaisse().getID());
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+                    long montant = Long.valueOf(paiement.getMontantInCents());
+                    if (ticket.getPaiements().size() == 1 && paiement.getType() == Paiement.ESPECES) {
+                        montant = longValueTotal;
+                    }
+                    rowValsElt.put("MONTANT", montant);
+                    rowValsElt.put("NOM", "Ticket " + ticket.getCode());
+                    rowValsElt.put("DATE", ticket.getCreationDate());
+                    rowValsElt.put("ID_TICKET_CAISSE", rowVals);
+                }
+            }
+
+            SQLRow rowFinal = rowVals.insert();
+            for (SQLRowValues rowValsElt : ticketLines) {
+                rowValsElt.put("ID_TICKET_CAISSE", rowFinal.getID());
+            }
+            lines.addAll(ticketLines);
+            rows.add(rowFinal);
+            totals.add(longValueTotal);
+        }
+        // les lignes de tous les tickets du lot en une fois
+        SQLRowValues.insertBatch(lines);
+
+        long rendu = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            SQLRow rowFinal = rows.get(i);
+            final long longValueTotal = totals.get(i);
+            GenerationMvtTicketCaisse mvt = new GenerationMvtTicketCaisse(rowFinal);
+            final Integer idMvt;
+            try {
+                idMvt = mvt.genereMouvement().call();
+            } catch (Exception exn) {
+                exn.printStackTrace();
+                throw new SQLException(exn);
+            }
+
+            SQLRowValues valTicket = rowFinal.asRowValues();
+            valTicket.put("ID_MOUVEMENT", Integer.valueOf(idMvt));
+            rowFinal = valTicket.update();
+
+            // msie à jour du mouvement
+            List<SQLRow> rowsEnc = rowFinal.getReferentRows(eltEnc.getTable());
+            long totalEnc = 0;
+            for (SQLRow sqlRow : rowsEnc) {
+                long montant = sqlRow.getLong("MONTANT");
+                PrixTTC ttc = new PrixTTC(montant);
+                totalEnc += montant;
+                new GenerationReglementVenteNG("Règlement " + sqlRow.getForeignRow("ID_MODE_REGLEMENT").getForeignRow("ID_TYPE_REGLEMENT").getString("NOM") + " Ticket "
+                        + rowFinal.getString("NUMERO"), getClientCaisse(), ttc, sqlRow.getDate("DATE").getTime(), sqlRow.getForeignRow("ID_MODE_REGLEMENT"), rowFinal, rowFinal
+                        .getForeignRow("ID_MOUVEMENT"), false);
+            }
+            if (totalEnc > longValueTotal) {
+                rendu += totalEnc - longValueTotal;
+            }
+
+            updateStock(rowFinal.getID());
         }
 
+        // un seul virement pour la monnaie rendue sur les tickets du lot
+        if (rendu > 0) {
+            final SQLTable table = Configuration.getInstance().getDirectory().getElement("TYPE_REGLEMENT").getTable();
+            int idComptePceCaisse = table.getRow(TypeReglementSQLElement.ESPECE).getInt("ID_COMPTE_PCE_CLIENT");
+            if (idComptePceCaisse == table.getUndefinedID()) {
+                idComptePceCaisse = ComptePCESQLElement.getId(ComptePCESQLElement.getComptePceDefault("VenteEspece"));
+            }
+            final String label = tickets.size() == 1 ? " Ticket " + tickets.get(0).getCode() : " Tickets " + tickets.get(0).getCode() + " à " + tickets.get(tickets.size() - 1).getCode();
+            new GenerationMvtVirement(idComptePceCaisse, getClientCaisse().getInt("ID_COMPTE_PCE"), 0, rendu, "Rendu sur règlement " + label, new Date(), JournalSQLElement.CAISSES, label).genereMouvement();
+        }
     }
 
     private static SQLRow rowClient = null;
@@ -349,23 +470,23 @@ public class Caisse {
     }
 
     public static List<Ticket> allTickets() {
-        final List<Ticket> l = new ArrayList<Ticket>();
-        final Ticket t = new Ticket(Caisse.getID());
-        final String[] names = t.getCompatibleFileNames();
-
-        for (int i = 0; i < names.length; i++) {
-            String code = names[i];
-            int indexExtension = code.indexOf(".xml");
-            if (indexExtension > 0) {
-                code = code.substring(0, indexExtension);
-            }
-            final Ticket ticket = Ticket.getTicketFromCode(code);
-
-            if (ticket != null) {
-                l.add(ticket);
-            }
+        try {
+            return TicketJournal.get(Caisse.getID(), new Date()).getTickets();
+        } catch (IOException e) {
+            ExceptionHandler.handle("Impossible de lire le journal des tickets.", e);
+            return new ArrayList<Ticket>();
         }
-        return l;
+    }
+
+    /**
+     * Ecrit les tickets du jour au format XML dans le dossier des tickets, pour les outils qui
+     * lisent ces fichiers.
+     * 
+     * @return le nombre de tickets écrits.
+     * @throws IOException si les tickets ne peuvent être écrits.
+     */
+    public static int exportTickets() throws IOException {
+        return TicketJournal.get(Caisse.getID(), new Date()).exportXML();
     }
 
     public static int getUserID() {
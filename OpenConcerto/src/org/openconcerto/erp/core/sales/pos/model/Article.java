@@ -14,8 +14,6 @@
  package org.openconcerto.erp.core.sales.pos.model;
 
 import java.math.BigDecimal;
-import java.util.HashMap;
-import java.util.Map;
 
 public class Article {
     private Categorie s;
@@ -26,7 +24,6 @@ public class Article {
     String barCode = "empty barcode";
     String code = "";
     private final int id;
-    private static Map<String, Article> codes = new HashMap<String, Article>();
 
     public Article(Categorie s1, String string, int id) {
         this.s = s1;
@@ -57,7 +54,6 @@ public class Article {
 
     public void setBarCode(String bar) {
         this.barCode = bar;
-        codes.put(bar, this);
     }
 
     public void setPriceInCents(BigDecimal priceInCents) {
@@ -72,6 +68,11 @@ public class Article {
         return this.name;
     }
 
+    void setName(String name) {
+        this.name = name;
+        this.s.invalidate();
+    }
+
     public void setCode(String code) {
         this.code = code;
     }
@@ -88,6 +89,14 @@ public class Article {
         return this.s;
     }
 
+    void setCategorie(Categorie c) {
+        if (c != this.s) {
+            this.s.removeArticle(this);
+            this.s = c;
+            c.addArticle(this);
+        }
+    }
+
     @Override
     public String toString() {
 
@@ -95,6 +104,6 @@ public class Article {
     }
 
     public static Article getArticleFromBarcode(String code) {
-        return codes.get(code);
+        return Catalogue.getInstance().getArticleFromBarcode(code);
     }
 }
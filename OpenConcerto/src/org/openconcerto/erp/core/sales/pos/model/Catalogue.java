@@ -0,0 +1,655 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.sales.pos.model;
+
+import org.openconcerto.erp.core.finance.tax.model.TaxeCache;
+import org.openconcerto.erp.core.sales.pos.Caisse;
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.AliasedField;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.Log;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.swing.SwingUtilities;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+/**
+ * Le catalogue de la caisse : familles, articles et taux de TVA chargés en une seule requête et
+ * indexés par code barre, code et début des mots du nom. Les modifications des articles sont
+ * appliquées au fur et à mesure et le catalogue est enregistré localement, ainsi la caisse démarre
+ * sans attendre le serveur et continue de fonctionner s'il est lent. Doit être utilisé depuis l'EDT.
+ */
+public final class Catalogue {
+
+    private static final int MAGIC = 0x4F43434C;
+    private static final int VERSION = 1;
+
+    private static Catalogue instance;
+
+    public static synchronized Catalogue getInstance() {
+        if (instance == null) {
+            instance = new Catalogue();
+        }
+        return instance;
+    }
+
+    private static final class FamilleRow {
+        private final int id;
+        private final String nom;
+        private final int idPere;
+
+        FamilleRow(int id, String nom, int idPere) {
+            this.id = id;
+            this.nom = nom;
+            this.idPere = idPere;
+        }
+    }
+
+    private static final class ArticleRow {
+        private final int id;
+        private final int idFamille;
+        private final String nom;
+        private final String code;
+        private final String codeBarre;
+        private final int idTaxe;
+        private final BigDecimal pvHT;
+        private final BigDecimal pvTTC;
+
+        ArticleRow(int id, int idFamille, String nom, String code, String codeBarre, int idTaxe, BigDecimal pvHT, BigDecimal pvTTC) {
+            this.id = id;
+            this.idFamille = idFamille;
+            this.nom = nom == null ? "" : nom;
+            this.code = code;
+            this.codeBarre = codeBarre;
+            this.idTaxe = idTaxe;
+            this.pvHT = pvHT;
+            this.pvTTC = pvTTC;
+        }
+    }
+
+    // le résultat d'une requête ou d'une lecture de l'enregistrement local
+    private static final class Data {
+        private final Map<Integer, FamilleRow> familles = new LinkedHashMap<Integer, FamilleRow>();
+        private final Map<Integer, ArticleRow> articles = new LinkedHashMap<Integer, ArticleRow>();
+        private final Map<Integer, Float> taux = new HashMap<Integer, Float>();
+    }
+
+    private Data data;
+    private final Map<Integer, Categorie> categories = new HashMap<Integer, Categorie>();
+    private final Map<Categorie, Integer> categorieIds = new HashMap<Categorie, Integer>();
+    private final Map<Integer, Article> articles = new HashMap<Integer, Article>();
+    private final Map<String, Article> barcodes = new HashMap<String, Article>();
+    private final Map<String, Article> codes = new HashMap<String, Article>();
+    // mot normalisé -> articles dont le nom contient ce mot
+    private final SortedMap<String, Set<Article>> words = new TreeMap<String, Set<Article>>();
+    private final Map<Article, String[]> articleWords = new HashMap<Article, String[]>();
+    private final List<CatalogueListener> listeners = new ArrayList<CatalogueListener>();
+
+    // requêtes et écriture de l'enregistrement local, dans l'ordre
+    private final ExecutorService exec;
+    private boolean refreshPending;
+    private boolean listening;
+
+    private Catalogue() {
+        this.data = new Data();
+        this.exec = new ThreadPoolExecutor(0, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(Catalogue.class.getSimpleName() + " ", true));
+        this.refreshPending = false;
+        this.listening = false;
+    }
+
+    public void addCatalogueListener(CatalogueListener l) {
+        this.listeners.add(l);
+    }
+
+    public void removeCatalogueListener(CatalogueListener l) {
+        this.listeners.remove(l);
+    }
+
+    private void fire() {
+        for (CatalogueListener l : new ArrayList<CatalogueListener>(this.listeners)) {
+            l.catalogueChanged();
+        }
+    }
+
+    private static File getSnapshotFile() {
+        return new File(Caisse.getConfigFile().getParentFile(), "Catalogue_" + Caisse.getSocieteID() + ".bin");
+    }
+
+    private static SQLTable getTable(final String name) {
+        return Configuration.getInstance().getDirectory().getElement(name).getTable();
+    }
+
+    /**
+     * Charge le catalogue. S'il a été enregistré localement il est lu et le serveur interrogé en
+     * arrière-plan, sinon il est chargé directement depuis le serveur. Ensuite les modifications
+     * des articles sont suivies.
+     */
+    public void load() {
+        final File f = getSnapshotFile();
+        Data snapshot = null;
+        if (f.exists()) {
+            try {
+                snapshot = read(f);
+            } catch (IOException e) {
+                Log.get().log(Level.WARNING, "Impossible de lire le catalogue " + f, e);
+            }
+        }
+        if (snapshot != null) {
+            this.setData(snapshot);
+            this.refresh();
+        } else {
+            this.setData(fetch(null));
+            this.save();
+        }
+        this.listen();
+    }
+
+    private synchronized void listen() {
+        if (this.listening) {
+            return;
+        }
+        this.listening = true;
+        final SQLTable tableArticle = getTable("ARTICLE");
+        final SQLTableModifiedListener l = new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                if (evt.getTable() == tableArticle && evt.getId() != SQLRow.NONEXISTANT_ID) {
+                    update(evt.getId());
+                } else {
+                    refresh();
+                }
+            }
+        };
+        tableArticle.addTableModifiedListener(l);
+        getTable("FAMILLE_ARTICLE").addTableModifiedListener(l);
+        getTable("TAXE").addTableModifiedListener(l);
+    }
+
+    /**
+     * Recharge tout le catalogue depuis le serveur, en arrière-plan.
+     */
+    public void refresh() {
+        synchronized (this) {
+            if (this.refreshPending) {
+                return;
+            }
+            this.refreshPending = true;
+        }
+        this.exec.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Catalogue.this) {
+                    Catalogue.this.refreshPending = false;
+                }
+                final Data d;
+                try {
+                    d = fetch(null);
+                } catch (Exception e) {
+                    Log.get().log(Level.WARNING, "Impossible de charger le catalogue, utilisation de la copie locale", e);
+                    return;
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        setData(d);
+                        save();
+                    }
+                });
+            }
+        });
+    }
+
+    private void update(final int idArticle) {
+        this.exec.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Data d;
+                try {
+                    d = fetch(idArticle);
+                } catch (Exception e) {
+                    Log.get().log(Level.WARNING, "Impossible de charger l'article " + idArticle, e);
+                    return;
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateArticle(idArticle, d);
+                        save();
+                    }
+                });
+            }
+        });
+    }
+
+    // FAMILLE_ARTICLE LEFT JOIN ARTICLE LEFT JOIN TAXE, les familles sans article sont aussi
+    // chargées
+    private static Data fetch(final Integer idArticle) {
+        final SQLTable tableFamille = getTable("FAMILLE_ARTICLE");
+        final SQLTable tableArticle = getTable("ARTICLE");
+        final SQLTable tableTaxe = getTable("TAXE");
+
+        final SQLSelect sel = new SQLSelect(Configuration.getInstance().getBase());
+        sel.addSelect(tableFamille.getKey());
+        sel.addSelect(tableFamille.getField("NOM"));
+        sel.addSelect(tableFamille.getField("ID_FAMILLE_ARTICLE_PERE"));
+        sel.addBackwardJoin("LEFT", "a", tableArticle.getField("ID_FAMILLE_ARTICLE"), null);
+        sel.addSelect(new AliasedField(tableArticle.getKey(), "a"));
+        sel.addSelect(new AliasedField(tableArticle.getField("NOM"), "a"));
+        sel.addSelect(new AliasedField(tableArticle.getField("CODE"), "a"));
+        sel.addSelect(new AliasedField(tableArticle.getField("CODE_BARRE"), "a"));
+        sel.addSelect(new AliasedField(tableArticle.getField("ID_TAXE"), "a"));
+        sel.addSelect(new AliasedField(tableArticle.getField("PV_HT"), "a"));
+        sel.addSelect(new AliasedField(tableArticle.getField("PV_TTC"), "a"));
+        sel.addJoin("LEFT", new AliasedField(tableArticle.getField("ID_TAXE"), "a"), "t");
+        sel.addSelect(new AliasedField(tableTaxe.getField("TAUX"), "t"));
+        if (idArticle != null) {
+            sel.setWhere(new Where(new AliasedField(tableArticle.getKey(), "a"), "=", idArticle.intValue()));
+        }
+        sel.addFieldOrder(tableFamille.getField("CODE"));
+
+        final Data res = new Data();
+        Configuration.getInstance().getBase().getDataSource().execute(sel.asString(), new ResultSetHandler() {
+            @Override
+            public Object handle(ResultSet rs) throws SQLException {
+                while (rs.next()) {
+                    final int idFamille = rs.getInt(1);
+                    if (!res.familles.containsKey(idFamille)) {
+                        res.familles.put(idFamille, new FamilleRow(idFamille, rs.getString(2), rs.getInt(3)));
+                    }
+                    final int id = rs.getInt(4);
+                    if (!rs.wasNull()) {
+                        final int idTaxe = rs.getInt(8);
+                        res.articles.put(id, new ArticleRow(id, idFamille, rs.getString(5), rs.getString(6), rs.getString(7), idTaxe, rs.getBigDecimal(9), rs.getBigDecimal(10)));
+                        final float taux = rs.getFloat(11);
+                        if (!rs.wasNull()) {
+                            res.taux.put(idTaxe, taux);
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+        return res;
+    }
+
+    private void setData(final Data d) {
+        this.data = d;
+        Categorie.clearTopLevelCategories();
+        this.categories.clear();
+        this.categorieIds.clear();
+        for (final Integer id : d.familles.keySet()) {
+            this.getCategorie(id, new HashSet<Integer>());
+        }
+        // garder les mêmes instances, elles peuvent être dans le ticket en cours
+        final Map<Integer, Article> previous = new HashMap<Integer, Article>(this.articles);
+        this.articles.clear();
+        this.barcodes.clear();
+        this.codes.clear();
+        this.words.clear();
+        this.articleWords.clear();
+        for (final ArticleRow r : d.articles.values()) {
+            this.putArticle(r, previous.remove(r.id));
+        }
+        for (final Article a : previous.values()) {
+            a.getCategorie().removeArticle(a);
+        }
+        this.fire();
+    }
+
+    private Categorie getCategorie(final Integer id, final Set<Integer> path) {
+        Categorie res = this.categories.get(id);
+        if (res == null) {
+            final FamilleRow r = this.data.familles.get(id);
+            if (r == null) {
+                return null;
+            }
+            path.add(id);
+            final Categorie parent = path.contains(r.idPere) ? null : this.getCategorie(r.idPere, path);
+            if (parent == null) {
+                res = new Categorie(r.nom, true);
+            } else {
+                res = new Categorie(r.nom);
+                parent.add(res);
+            }
+            this.categories.put(id, res);
+            this.categorieIds.put(res, id);
+        }
+        return res;
+    }
+
+    private void updateArticle(final int id, final Data d) {
+        this.data.taux.putAll(d.taux);
+        final ArticleRow r = d.articles.get(id);
+        final Article existing = this.articles.remove(id);
+        if (existing != null) {
+            this.unindex(existing);
+        }
+        if (r == null || !this.categories.containsKey(r.idFamille)) {
+            // archivé, supprimé ou dans une famille inconnue
+            this.data.articles.remove(id);
+            if (existing != null) {
+                existing.getCategorie().removeArticle(existing);
+            }
+        } else {
+            this.data.articles.put(id, r);
+            this.putArticle(r, existing);
+        }
+        this.fire();
+    }
+
+    private void putArticle(final ArticleRow r, final Article existing) {
+        final Categorie c = this.categories.get(r.idFamille);
+        if (c == null) {
+            if (existing != null) {
+                existing.getCategorie().removeArticle(existing);
+            }
+            return;
+        }
+        final Article a;
+        if (existing == null) {
+            a = new Article(c, r.nom, r.id);
+        } else {
+            a = existing;
+            a.setCategorie(c);
+            if (!a.getName().equals(r.nom)) {
+                a.setName(r.nom);
+            }
+        }
+        a.setBarCode(r.codeBarre);
+        a.setCode(r.code);
+        a.setIdTaxe(r.idTaxe);
+        a.setPriceHTInCents(r.pvHT);
+        a.setPriceInCents(r.pvTTC);
+        this.articles.put(r.id, a);
+        this.index(a);
+    }
+
+    private void index(final Article a) {
+        if (a.getBarCode() != null && a.getBarCode().length() > 0) {
+            this.barcodes.put(a.getBarCode(), a);
+        }
+        if (a.getCode() != null && a.getCode().length() > 0) {
+            this.codes.put(a.getCode(), a);
+        }
+        final String[] w = getWords(a.getName());
+        this.articleWords.put(a, w);
+        for (final String word : w) {
+            Set<Article> s = this.words.get(word);
+            if (s == null) {
+                s = new HashSet<Article>(4);
+                this.words.put(word, s);
+            }
+            s.add(a);
+        }
+    }
+
+    private void unindex(final Article a) {
+        if (this.barcodes.get(a.getBarCode()) == a) {
+            this.barcodes.remove(a.getBarCode());
+        }
+        if (this.codes.get(a.getCode()) == a) {
+            this.codes.remove(a.getCode());
+        }
+        final String[] w = this.articleWords.remove(a);
+        if (w != null) {
+            for (final String word : w) {
+                final Set<Article> s = this.words.get(word);
+                if (s != null && s.remove(a) && s.isEmpty()) {
+                    this.words.remove(word);
+                }
+            }
+        }
+    }
+
+    static String normalize(final String s) {
+        // sans accent, en minuscules, la ponctuation remplacée par des espaces
+        final String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        final StringBuilder sb = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            sb.append(Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : ' ');
+        }
+        return sb.toString().trim();
+    }
+
+    private static String[] getWords(final String s) {
+        final String n = s == null ? "" : normalize(s);
+        if (n.length() == 0) {
+            return new String[0];
+        }
+        return n.split(" +");
+    }
+
+    public Article getArticle(int id) {
+        return this.articles.get(id);
+    }
+
+    public Article getArticleFromBarcode(String barcode) {
+        return this.barcodes.get(barcode);
+    }
+
+    public Article getArticleFromCode(String code) {
+        return this.codes.get(code);
+    }
+
+    public boolean contains(Categorie c) {
+        return this.categorieIds.containsKey(c);
+    }
+
+    /**
+     * Le taux de TVA, sans interroger le serveur si la taxe est utilisée par un article du
+     * catalogue.
+     * 
+     * @param idTaxe l'id de la taxe.
+     * @return le taux, <code>null</code> si la taxe n'existe pas.
+     */
+    public Float getTauxFromId(int idTaxe) {
+        final Float res = this.data.taux.get(idTaxe);
+        return res != null ? res : TaxeCache.getCache().getTauxFromId(idTaxe);
+    }
+
+    /**
+     * Recherche les articles dont le nom contient des mots commençant par chacun des mots
+     * recherchés, sans tenir compte des accents ni de la casse. Par exemple "bai som" trouve
+     * "Carte Baie de Somme".
+     * 
+     * @param text le texte recherché.
+     * @return les articles trouvés, triés par nom.
+     */
+    public List<Article> search(String text) {
+        final String[] query = getWords(text);
+        if (query.length == 0) {
+            return Collections.emptyList();
+        }
+        // le mot le plus long est le plus sélectif
+        String longest = query[0];
+        for (final String q : query) {
+            if (q.length() > longest.length()) {
+                longest = q;
+            }
+        }
+        final Set<Article> candidates = new HashSet<Article>();
+        for (final Set<Article> s : this.words.subMap(longest, longest + Character.MAX_VALUE).values()) {
+            candidates.addAll(s);
+        }
+        final List<Article> res = new ArrayList<Article>();
+        for (final Article a : candidates) {
+            if (matches(this.articleWords.get(a), query)) {
+                res.add(a);
+            }
+        }
+        Collections.sort(res, Categorie.NAME_COMPARATOR);
+        return res;
+    }
+
+    private static boolean matches(final String[] words, final String[] query) {
+        for (final String q : query) {
+            boolean found = false;
+            for (int i = 0; i < words.length && !found; i++) {
+                found = words[i].startsWith(q);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // l'enregistrement local
+
+    private void save() {
+        final byte[] bytes;
+        try {
+            bytes = this.toBytes();
+        } catch (IOException e) {
+            // pas d'entrée-sortie
+            throw new IllegalStateException(e);
+        }
+        this.exec.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File f = getSnapshotFile();
+                final File tmp = new File(f.getPath() + ".tmp");
+                try {
+                    final FileOutputStream out = new FileOutputStream(tmp);
+                    try {
+                        out.write(bytes);
+                    } finally {
+                        out.close();
+                    }
+                    FileUtils.rm(f);
+                    if (!tmp.renameTo(f)) {
+                        throw new IOException("Impossible de renommer " + tmp + " en " + f);
+                    }
+                } catch (IOException e) {
+                    Log.get().log(Level.WARNING, "Impossible d'enregistrer le catalogue " + f, e);
+                }
+            }
+        });
+    }
+
+    private byte[] toBytes() throws IOException {
+        final ByteArrayOutputStream bOut = new ByteArrayOutputStream(64 * 1024);
+        final DataOutputStream out = new DataOutputStream(bOut);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(this.data.taux.size());
+        for (final Map.Entry<Integer, Float> e : this.data.taux.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeFloat(e.getValue());
+        }
+        out.writeInt(this.data.familles.size());
+        for (final FamilleRow r : this.data.familles.values()) {
+            out.writeInt(r.id);
+            writeString(out, r.nom);
+            out.writeInt(r.idPere);
+        }
+        out.writeInt(this.data.articles.size());
+        for (final ArticleRow r : this.data.articles.values()) {
+            out.writeInt(r.id);
+            out.writeInt(r.idFamille);
+            writeString(out, r.nom);
+            writeString(out, r.code);
+            writeString(out, r.codeBarre);
+            out.writeInt(r.idTaxe);
+            writeString(out, r.pvHT == null ? null : r.pvHT.toString());
+            writeString(out, r.pvTTC == null ? null : r.pvTTC.toString());
+        }
+        out.close();
+        return bOut.toByteArray();
+    }
+
+    private static Data read(final File f) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Format inconnu");
+            }
+            final Data res = new Data();
+            final int tauxCount = in.readInt();
+            for (int i = 0; i < tauxCount; i++) {
+                res.taux.put(in.readInt(), in.readFloat());
+            }
+            final int familleCount = in.readInt();
+            for (int i = 0; i < familleCount; i++) {
+                final FamilleRow r = new FamilleRow(in.readInt(), readString(in), in.readInt());
+                res.familles.put(r.id, r);
+            }
+            final int articleCount = in.readInt();
+            for (int i = 0; i < articleCount; i++) {
+                final int id = in.readInt();
+                final int idFamille = in.readInt();
+                final String nom = readString(in);
+                final String code = readString(in);
+                final String codeBarre = readString(in);
+                final int idTaxe = in.readInt();
+                final String pvHT = readString(in);
+                final String pvTTC = readString(in);
+                res.articles.put(id, new ArticleRow(id, idFamille, nom, code, codeBarre, idTaxe, pvHT == null ? null : new BigDecimal(pvHT), pvTTC == null ? null : new BigDecimal(pvTTC)));
+            }
+            return res;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
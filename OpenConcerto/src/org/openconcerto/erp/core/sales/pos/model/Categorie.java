@@ -17,15 +17,25 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class Categorie {
+    static final Comparator<Article> NAME_COMPARATOR = new Comparator<Article>() {
+        @Override
+        public int compare(Article o1, Article o2) {
+            return o1.getName().compareTo(o2.getName());
+        }
+    };
     private static List<Categorie> topLevelCategories = new ArrayList<Categorie>();
     private String name;
     // Sous catégories
     private List<Categorie> l = new ArrayList<Categorie>();
     // Articles dans cette categorie
-    private List<Article> articles = new ArrayList<Article>();
+    private Set<Article> articles = new LinkedHashSet<Article>();
+    // Articles de cette categorie et des sous catégories, triés
+    private List<Article> sortedArticles;
     private Categorie parent;
 
     public Categorie(String string) {
@@ -47,6 +57,7 @@ public class Categorie {
     public void add(Categorie s) {
         l.add(s);
         s.setParentCategorie(this);
+        invalidate();
     }
 
     private void setParentCategorie(Categorie categorie) {
@@ -59,12 +70,29 @@ public class Categorie {
 
     void addArticle(Article a) {
         this.articles.add(a);
+        invalidate();
+    }
+
+    void removeArticle(Article a) {
+        if (this.articles.remove(a)) {
+            invalidate();
+        }
+    }
+
+    void invalidate() {
+        for (Categorie c = this; c != null; c = c.parent) {
+            c.sortedArticles = null;
+        }
     }
 
     public static List<Categorie> getTopLevelCategories() {
         return topLevelCategories;
     }
 
+    static void clearTopLevelCategories() {
+        topLevelCategories.clear();
+    }
+
     public List<Categorie> getSubCategories() {
         return l;
     }
@@ -74,17 +102,15 @@ public class Categorie {
     }
 
     public List<Article> getArticles() {
-        final List<Article> result = new ArrayList<Article>();
-        result.addAll(articles);
-        for (Categorie c : l) {
-            result.addAll(c.getArticles());
-        }
-        Collections.sort(result, new Comparator<Article>() {
-            @Override
-            public int compare(Article o1, Article o2) {
-                return o1.getName().compareTo(o2.getName());
+        if (this.sortedArticles == null) {
+            final List<Article> result = new ArrayList<Article>();
+            result.addAll(articles);
+            for (Categorie c : l) {
+                result.addAll(c.getArticles());
             }
-        });
-        return result;
+            Collections.sort(result, NAME_COMPARATOR);
+            this.sortedArticles = Collections.unmodifiableList(result);
+        }
+        return this.sortedArticles;
     }
 }
@@ -27,9 +27,9 @@ import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.utils.ExceptionHandler;
 import org.openconcerto.utils.Pair;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.MathContext;
@@ -42,11 +42,7 @@ import java.util.List;
 import java.util.Locale;
 
 import org.jdom.Attribute;
-import org.jdom.Document;
 import org.jdom.Element;
-import org.jdom.input.SAXBuilder;
-import org.jdom.output.Format;
-import org.jdom.output.XMLOutputter;
 
 public class Ticket {
     private static boolean inited = false;
@@ -77,7 +73,6 @@ public class Ticket {
         // date jour mois année JJMMAAAA
         // numero de ticket formaté sur 5 caractères
 
-        final Ticket t = new Ticket(-1);
         Calendar c = Calendar.getInstance();
         try {
             int nCaisse = Integer.parseInt(code.substring(0, 2));
@@ -88,85 +83,123 @@ public class Ticket {
 
             c.setTimeInMillis(0);
             c.set(nA, nM - 1, nJ, 0, 0, 0);
-
-            // Set fields
-            t.caisseNumber = nCaisse;
-            t.date.setTime(c.getTimeInMillis());
-            t.number = nNumber;
-
-            // Loading file
-            File dir = t.getOutputDir();
-            File file = new File(dir, getFileName(code));
-            if (!file.exists()) {
-                return null;
-            }
-            // XML Reading
-
-            final SAXBuilder sxb = new SAXBuilder();
-            final Document document = sxb.build(file);
-            final Element root = document.getRootElement();
-            final String h = root.getAttributeValue("hour");
-            final String m = root.getAttributeValue("minute");
-            c.set(nA, nM - 1, nJ, Integer.parseInt(h), Integer.parseInt(m), 0);
-            t.date.setTime(c.getTimeInMillis());
-            // article
-            List<Element> children = root.getChildren("article");
-            for (Element element : children) {
-                int qte = Integer.parseInt(element.getAttributeValue("qte"));
-                BigDecimal prix_unitaire_cents_ht = new BigDecimal(element.getAttributeValue("prixHT"));
-                int idTaxe = Integer.parseInt(element.getAttributeValue("idTaxe"));
-                BigDecimal prix_unitaire_cents = new BigDecimal(element.getAttributeValue("prix"));
-                String categorie = element.getAttributeValue("categorie");
-                String name = element.getValue();
-                String codebarre = element.getAttributeValue("codebarre");
-                String codeArt = element.getAttributeValue("code");
-                Categorie cat = new Categorie(categorie);
-
-                String valueID = element.getAttributeValue("id");
-
-                int id = valueID == null || valueID.trim().length() == 0 ? tableArticle.getUndefinedID() : Integer.parseInt(valueID);
-                Article art = new Article(cat, name, id);
-                art.setPriceInCents(prix_unitaire_cents);
-                art.setCode(codeArt);
-                art.setPriceHTInCents(prix_unitaire_cents_ht);
-                art.setIdTaxe(idTaxe);
-                art.barCode = codebarre;
-                Pair<Article, Integer> line = new Pair<Article, Integer>(art, qte);
-                t.items.add(line);
-
-            }
-            // paiement
-            children = root.getChildren("paiement");
-            for (Element element : children) {
-
-                String type = element.getAttributeValue("type");
-                int montant_cents = Integer.parseInt(element.getAttributeValue("montant"));
-                if (montant_cents > 0) {
-                    int tp = Paiement.ESPECES;
-                    if (type.equals("CB")) {
-                        tp = Paiement.CB;
-                    } else if (type.equals("CHEQUE")) {
-                        tp = Paiement.CHEQUE;
-                    } else if (type.equals("ESPECES")) {
-                        tp = Paiement.ESPECES;
-                    }
-                    Paiement p = new Paiement(tp);
-                    p.setMontantInCents(montant_cents);
-                    t.paiements.add(p);
-                }
-            }
-
+            return TicketJournal.get(nCaisse, c.getTime()).getTicket(nNumber);
         } catch (Exception e) {
             System.err.println("Error with ticket code : " + code);
             e.printStackTrace();
             return null;
         }
+    }
 
+    /**
+     * Lit un ticket au format XML (un fichier par ticket, format des versions précédentes).
+     * 
+     * @param root l'élément "ticket".
+     * @param caisse le numéro de la caisse.
+     * @param number le numéro du ticket dans la journée.
+     * @param day le jour du ticket.
+     * @return le ticket.
+     */
+    static Ticket fromXML(final Element root, final int caisse, final int number, final Date day) {
+        final Calendar c = Calendar.getInstance();
+        c.setTime(day);
+        c.set(Calendar.HOUR_OF_DAY, Integer.parseInt(root.getAttributeValue("hour")));
+        c.set(Calendar.MINUTE, Integer.parseInt(root.getAttributeValue("minute")));
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        final Ticket t = new Ticket(caisse, number, c.getTime());
+        // article
+        List<Element> children = root.getChildren("article");
+        for (Element element : children) {
+            int qte = Integer.parseInt(element.getAttributeValue("qte"));
+            BigDecimal prix_unitaire_cents_ht = new BigDecimal(element.getAttributeValue("prixHT"));
+            int idTaxe = Integer.parseInt(element.getAttributeValue("idTaxe"));
+            BigDecimal prix_unitaire_cents = new BigDecimal(element.getAttributeValue("prix"));
+            String categorie = element.getAttributeValue("categorie");
+            String name = element.getValue();
+            String codebarre = element.getAttributeValue("codebarre");
+            String codeArt = element.getAttributeValue("code");
+            String valueID = element.getAttributeValue("id");
+            t.addLine(categorie, name, valueID == null || valueID.trim().length() == 0 ? -1 : Integer.parseInt(valueID), prix_unitaire_cents, prix_unitaire_cents_ht, idTaxe, codeArt, codebarre, qte);
+        }
+        // paiement
+        children = root.getChildren("paiement");
+        for (Element element : children) {
+
+            String type = element.getAttributeValue("type");
+            int montant_cents = Integer.parseInt(element.getAttributeValue("montant"));
+            if (montant_cents > 0) {
+                int tp = Paiement.ESPECES;
+                if (type.equals("CB")) {
+                    tp = Paiement.CB;
+                } else if (type.equals("CHEQUE")) {
+                    tp = Paiement.CHEQUE;
+                } else if (type.equals("ESPECES")) {
+                    tp = Paiement.ESPECES;
+                }
+                Paiement p = new Paiement(tp);
+                p.setMontantInCents(montant_cents);
+                t.paiements.add(p);
+            }
+        }
         return t;
+    }
 
+    /**
+     * Lit un ticket écrit par {@link #write(DataOutputStream)}.
+     * 
+     * @param in le flux à lire.
+     * @param caisse le numéro de la caisse.
+     * @return le ticket.
+     * @throws IOException si le flux ne peut être lu.
+     */
+    static Ticket read(final DataInputStream in, final int caisse) throws IOException {
+        final int number = in.readInt();
+        final Ticket t = new Ticket(caisse, number, new Date(in.readLong()));
+        final int itemCount = in.readInt();
+        for (int i = 0; i < itemCount; i++) {
+            final int qte = in.readInt();
+            final String categorie = readString(in);
+            final String name = readString(in);
+            final int id = in.readInt();
+            final String prix = readString(in);
+            final String prixHT = readString(in);
+            final int idTaxe = in.readInt();
+            final String codeArt = readString(in);
+            final String codebarre = readString(in);
+            t.addLine(categorie, name, id, prix == null ? null : new BigDecimal(prix), prixHT == null ? null : new BigDecimal(prixHT), idTaxe, codeArt, codebarre, qte);
+        }
+        final int paiementCount = in.readInt();
+        for (int i = 0; i < paiementCount; i++) {
+            final Paiement p = new Paiement(in.readInt());
+            p.setMontantInCents(in.readInt());
+            t.paiements.add(p);
+        }
+        return t;
+    }
+
+    private void addLine(final String categorie, final String name, final int id, final BigDecimal prix, final BigDecimal prixHT, final int idTaxe, final String codeArt, final String codebarre,
+            final int qte) {
+        final Article art = new Article(new Categorie(categorie), name, id < 0 ? tableArticle.getUndefinedID() : id);
+        art.setPriceInCents(prix);
+        art.setCode(codeArt);
+        art.setPriceHTInCents(prixHT);
+        art.setIdTaxe(idTaxe);
+        art.barCode = codebarre;
+        this.items.add(new Pair<Article, Integer>(art, qte));
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
     }
 
-    private static String getFileName(String code) {
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    static String getFileName(String code) {
         return code.replace(' ', '_') + ".xml";
     }
 
@@ -177,6 +210,12 @@ public class Ticket {
 
     }
 
+    private Ticket(final int caisse, final int number, final Date date) {
+        this.caisseNumber = caisse;
+        this.number = number;
+        this.date = date;
+    }
+
     public void setNumber(int i) {
         this.number = i;
     }
@@ -187,40 +226,27 @@ public class Ticket {
 
     private void initNumber() {
         if (!inited) {
-            this.number = 1;
-            String[] files = getCompatibleFileNames();
-            for (int i = 0; i < files.length; i++) {
-                String name = files[i];
-                String nb = name.substring(8, 13);
-                System.out.println("Found:" + nb);
-                int n = Integer.parseInt(nb);
-                if (n >= this.number) {
-                    this.number = n + 1;
-                }
+            try {
+                this.number = TicketJournal.get(this.caisseNumber, this.date).getNextNumber();
+            } catch (IOException e) {
+                ExceptionHandler.handle("Impossible de lire le journal des tickets.", e);
+                this.number = 1;
             }
         }
     }
 
-    public String[] getCompatibleFileNames() {
-        final File dir = getOutputDir();
-        final String codeStart = getPrefixCode();
-        final String[] files = dir.list(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.startsWith(codeStart) && name.endsWith(".xml");
-            }
-        });
-        return files;
+    String getPrefixCode() {
+        return getPrefixCode(this.getCaisseNumber(), this.date);
     }
 
-    String getPrefixCode() {
+    static String getPrefixCode(final int caisse, final Date day) {
         Calendar cal = Calendar.getInstance();
-        cal.setTime(this.date);
+        cal.setTime(day);
         int j = cal.get(Calendar.DAY_OF_MONTH);
         int m = cal.get(Calendar.MONTH) + 1;
         int a = cal.get(Calendar.YEAR) - 2000;
         String code = "";
-        code += format(2, this.getCaisseNumber());
+        code += format(2, caisse);
         code += format(2, j) + format(2, m) + format(2, a);
         return code;
     }
@@ -247,16 +273,68 @@ public class Ticket {
 
     public void save() {
         // Update Hour & Minute
-        int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
-        int minute = Calendar.getInstance().get(Calendar.MINUTE);
+        final Calendar now = Calendar.getInstance();
+        final Calendar cal = Calendar.getInstance();
+        cal.setTime(this.date);
+        cal.set(Calendar.HOUR_OF_DAY, now.get(Calendar.HOUR_OF_DAY));
+        cal.set(Calendar.MINUTE, now.get(Calendar.MINUTE));
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        try {
+            TicketJournal.get(this.caisseNumber, this.date).save(this, cal.getTime());
+        } catch (IOException e) {
+            ExceptionHandler.handle("Impossible d'enregistrer le ticket " + getCode() + ".", e);
+        }
+    }
+
+    /**
+     * Ecrit ce ticket, relu par {@link #read(DataInputStream, int)}.
+     * 
+     * @param out le flux où écrire.
+     * @param savedDate la date d'enregistrement du ticket.
+     * @throws IOException si le flux ne peut être écrit.
+     */
+    void write(final DataOutputStream out, final Date savedDate) throws IOException {
+        out.writeInt(this.number);
+        out.writeLong(savedDate.getTime());
+        out.writeInt(this.items.size());
+        for (Pair<Article, Integer> item : this.items) {
+            final Article article = item.getFirst();
+            out.writeInt(item.getSecond());
+            writeString(out, article.getCategorie().getName());
+            writeString(out, article.getName());
+            out.writeInt(article.getId());
+            writeString(out, article.getPriceInCents() == null ? null : article.getPriceInCents().toString());
+            writeString(out, article.getPriceHTInCents() == null ? null : article.getPriceHTInCents().toString());
+            out.writeInt(article.getIdTaxe());
+            writeString(out, article.getCode());
+            writeString(out, article.getBarCode());
+        }
+        final List<Paiement> paid = new ArrayList<Paiement>(this.paiements.size());
+        for (Paiement paiement : this.paiements) {
+            if (paiement.getMontantInCents() > 0)
+                paid.add(paiement);
+        }
+        out.writeInt(paid.size());
+        for (Paiement paiement : paid) {
+            out.writeInt(paiement.getType());
+            out.writeInt(paiement.getMontantInCents());
+        }
+    }
 
+    /**
+     * Ce ticket au format XML des versions précédentes, l'heure est celle de la date du ticket.
+     * 
+     * @return l'élément "ticket".
+     */
+    Element toXML() {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTime(this.date);
         // Hierarchie: 2010/04/05/01_05042010_00002.xml
-        File dir = getOutputDir();
-        File f = new File(dir, getFileName(getCode()));
         Element topLevel = new Element("ticket");
         topLevel.setAttribute(new Attribute("code", this.getCode()));
-        topLevel.setAttribute("hour", String.valueOf(hour));
-        topLevel.setAttribute("minute", String.valueOf(minute));
+        topLevel.setAttribute("hour", String.valueOf(cal.get(Calendar.HOUR_OF_DAY)));
+        topLevel.setAttribute("minute", String.valueOf(cal.get(Calendar.MINUTE)));
         // Articles
         for (Pair<Article, Integer> item : this.items) {
             Element e = new Element("article");
@@ -291,15 +369,7 @@ public class Ticket {
             }
 
         }
-        try {
-            final XMLOutputter out = new XMLOutputter(Format.getPrettyFormat());
-            final FileOutputStream fileOutputStream = new FileOutputStream(f);
-            out.output(topLevel, fileOutputStream);
-            fileOutputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
+        return topLevel;
     }
 
     public void print(TicketPrinter prt) {
@@ -392,9 +462,15 @@ public class Ticket {
         }
     }
 
-    private File getOutputDir() {
+    /**
+     * Le dossier des tickets d'un jour, créé si besoin.
+     * 
+     * @param day le jour.
+     * @return le dossier, eg Tickets/2010/04/05.
+     */
+    static File getOutputDir(final Date day) {
         Calendar cal = Calendar.getInstance();
-        cal.setTime(this.date);
+        cal.setTime(day);
         int j = cal.get(Calendar.DAY_OF_MONTH);
         int m = cal.get(Calendar.MONTH) + 1;
         int a = cal.get(Calendar.YEAR);
@@ -613,9 +689,10 @@ public class Ticket {
     }
 
     public void deleteTicket() {
-        File dir = this.getOutputDir();
-        String name = getFileName(this.getCode());
-        File f = new File(dir, name);
-        f.renameTo(new File(dir, name + "_deleted"));
+        try {
+            TicketJournal.get(this.caisseNumber, this.date).delete(this.number);
+        } catch (IOException e) {
+            ExceptionHandler.handle("Impossible de supprimer le ticket " + getCode() + ".", e);
+        }
     }
 }
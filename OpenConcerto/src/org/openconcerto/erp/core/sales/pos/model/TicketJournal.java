@@ -0,0 +1,577 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.core.sales.pos.model;
+
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import org.jdom.input.SAXBuilder;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+
+/**
+ * Journal des tickets d'une caisse pour une journée. Chaque enregistrement ou suppression de ticket
+ * est ajouté à la fin d'un seul fichier (eg Tickets/2011/04/05/01050411.journal) puis synchronisé
+ * sur le disque avant de rendre la main, les écritures simultanées partageant la même
+ * synchronisation. Les tickets sont gardés en mémoire, indexés par numéro.
+ * <p>
+ * Chaque enregistrement est précédé de sa longueur et de son CRC : au chargement un enregistrement
+ * incomplet (arrêt brutal pendant une écriture) est ignoré et retiré du fichier. Quand le journal
+ * contient trop d'enregistrements remplacés, il est réécrit. Les tickets d'un jour enregistrés au
+ * format XML par les versions précédentes sont importés à la première ouverture, et
+ * {@link #exportXML(File)} permet de produire ce format.
+ * </p>
+ */
+public final class TicketJournal {
+
+    static final String EXTENSION = ".journal";
+    private static final String XML_DELETED_SUFFIX = "_deleted";
+
+    private static final int MAGIC = 0x4F43544A;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // longueur et CRC
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private static final byte SAVE = 1;
+    private static final byte DELETE = 2;
+
+    // seulement les journaux du jour
+    private static final Map<String, TicketJournal> journals = new HashMap<String, TicketJournal>();
+
+    /**
+     * Le journal d'une caisse pour un jour. Seuls les journaux du jour sont gardés en mémoire, ceux
+     * des autres jours sont lus à chaque appel et ne gardent pas leur fichier ouvert.
+     * 
+     * @param caisse le numéro de la caisse.
+     * @param day le jour, l'heure est ignorée.
+     * @return le journal.
+     * @throws IOException si le journal ne peut être lu.
+     */
+    public static TicketJournal get(final int caisse, final Date day) throws IOException {
+        final String prefix = Ticket.getPrefixCode(caisse, day);
+        if (!prefix.equals(Ticket.getPrefixCode(caisse, new Date())))
+            return new TicketJournal(caisse, day, prefix, false);
+        synchronized (journals) {
+            TicketJournal res = journals.get(prefix);
+            if (res == null) {
+                res = new TicketJournal(caisse, day, prefix, true);
+                // un nouveau jour, les journaux des jours précédents ne sont plus modifiés
+                final Iterator<TicketJournal> iter = journals.values().iterator();
+                while (iter.hasNext()) {
+                    final TicketJournal j = iter.next();
+                    if (!j.day.equals(res.day)) {
+                        j.close();
+                        iter.remove();
+                    }
+                }
+                journals.put(prefix, res);
+            }
+            return res;
+        }
+    }
+
+    private final int caisse;
+    private final Date day;
+    private final File file;
+    private final String prefix;
+    // sinon le fichier est fermé après chaque écriture
+    private final boolean keepOpen;
+    // numéro -> ticket écrit par Ticket.write()
+    private final SortedMap<Integer, byte[]> tickets;
+    private final Set<Integer> deleted;
+    // nombre d'enregistrements dans le fichier
+    private int records;
+
+    private FileChannel channel;
+    private long end;
+    // numéro de la dernière écriture et de la dernière écriture synchronisée
+    private long written;
+    private long synced;
+    private final Object syncLock = new Object();
+
+    private TicketJournal(final int caisse, final Date day, final String prefix, final boolean keepOpen) throws IOException {
+        this.caisse = caisse;
+        this.keepOpen = keepOpen;
+        final Calendar cal = Calendar.getInstance();
+        cal.setTime(day);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        this.day = cal.getTime();
+        this.prefix = prefix;
+        this.file = new File(Ticket.getOutputDir(day), prefix + EXTENSION);
+        this.tickets = new TreeMap<Integer, byte[]>();
+        this.deleted = new HashSet<Integer>();
+        this.records = 0;
+        this.channel = null;
+        this.written = 0;
+        this.synced = 0;
+        this.load();
+    }
+
+    public final File getFile() {
+        return this.file;
+    }
+
+    private File getTempFile() {
+        return new File(this.file.getParentFile(), this.file.getName() + ".tmp");
+    }
+
+    private void load() throws IOException {
+        final File tmp = this.getTempFile();
+        if (this.file.exists()) {
+            // réécriture interrompue avant le remplacement
+            tmp.delete();
+        } else if (tmp.exists()) {
+            // réécriture interrompue après la suppression de l'ancien journal
+            if (!tmp.renameTo(this.file))
+                throw new IOException("Impossible de renommer " + tmp + " en " + this.file);
+        } else {
+            this.importXML();
+            return;
+        }
+
+        final long length = this.file.length();
+        long pos = 0;
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Pas un journal de tickets : " + this.file);
+            final int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Version " + version + " du journal non supportée : " + this.file);
+            pos = HEADER_SIZE;
+            final CRC32 crc = new CRC32();
+            while (pos + RECORD_HEADER_SIZE <= length) {
+                final int size = in.readInt();
+                final int sum = in.readInt();
+                if (size <= 0 || size > MAX_RECORD_SIZE || pos + RECORD_HEADER_SIZE + size > length)
+                    break;
+                final byte[] data = new byte[size];
+                in.readFully(data);
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != sum)
+                    break;
+                this.apply(data);
+                pos += RECORD_HEADER_SIZE + size;
+            }
+        } catch (EOFException e) {
+            // fichier tronqué
+        } finally {
+            in.close();
+        }
+
+        if (pos < HEADER_SIZE) {
+            // en-tête incomplet, rien n'a pu être enregistré
+            this.tickets.clear();
+            this.deleted.clear();
+            this.records = 0;
+            FileUtils.rm(this.file);
+        } else if (pos < length) {
+            Log.get().log(Level.WARNING, "Enregistrement incomplet retiré du journal " + this.file + " (" + (length - pos) + " octets)");
+            final RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                raf.setLength(pos);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+        this.end = pos;
+
+        if (this.needsCompaction())
+            this.compact();
+    }
+
+    // plus d'enregistrements remplacés que de tickets
+    private boolean needsCompaction() {
+        return this.records - this.tickets.size() - this.deleted.size() > Math.max(16, this.tickets.size());
+    }
+
+    private void compactIfNeeded() throws IOException {
+        synchronized (this) {
+            if (!this.needsCompaction())
+                return;
+        }
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                // une autre écriture a pu réécrire le journal entre-temps
+                if (this.needsCompaction())
+                    this.compact();
+            }
+        }
+    }
+
+    private void apply(final byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final byte type = in.readByte();
+        final int number = in.readInt();
+        if (type == SAVE) {
+            final byte[] ticket = new byte[data.length - 5];
+            System.arraycopy(data, 5, ticket, 0, ticket.length);
+            this.tickets.put(number, ticket);
+            this.deleted.remove(number);
+        } else if (type == DELETE) {
+            if (this.tickets.containsKey(number))
+                this.deleted.add(number);
+        } else {
+            throw new IOException("Type d'enregistrement inconnu : " + type);
+        }
+        this.records++;
+    }
+
+    // tickets au format XML des versions précédentes
+    private void importXML() throws IOException {
+        final File dir = this.file.getParentFile();
+        final String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(TicketJournal.this.prefix) && (name.endsWith(".xml") || name.endsWith(".xml" + XML_DELETED_SUFFIX));
+            }
+        });
+        if (names == null || names.length == 0)
+            return;
+
+        final SAXBuilder sxb = new SAXBuilder();
+        for (final String name : names) {
+            final File f = new File(dir, name);
+            try {
+                final int number = Integer.parseInt(name.substring(8, 13));
+                final Ticket t = Ticket.fromXML(sxb.build(f).getRootElement(), this.caisse, number, this.day);
+                final byte[] data = encode(t, t.getCreationDate());
+                final boolean isDeleted = name.endsWith(XML_DELETED_SUFFIX);
+                // si les deux existent, le ticket a été enregistré à nouveau après suppression
+                if (!isDeleted || !this.tickets.containsKey(number)) {
+                    this.tickets.put(number, data);
+                    if (isDeleted)
+                        this.deleted.add(number);
+                    else
+                        this.deleted.remove(number);
+                }
+            } catch (Exception e) {
+                Log.get().log(Level.WARNING, "Ticket illisible : " + f, e);
+            }
+        }
+        if (!this.tickets.isEmpty())
+            this.compact();
+    }
+
+    /**
+     * Réécrit le journal avec seulement la dernière version de chaque ticket.
+     * 
+     * @throws IOException si le journal ne peut être écrit.
+     */
+    public void compact() throws IOException {
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                final File tmp = this.getTempFile();
+                final FileOutputStream fos = new FileOutputStream(tmp);
+                long size = HEADER_SIZE;
+                try {
+                    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    for (final Map.Entry<Integer, byte[]> e : this.tickets.entrySet()) {
+                        final byte[] rec = createRecord(SAVE, e.getKey(), e.getValue());
+                        out.write(rec);
+                        size += rec.length;
+                        if (this.deleted.contains(e.getKey())) {
+                            final byte[] del = createRecord(DELETE, e.getKey(), null);
+                            out.write(del);
+                            size += del.length;
+                        }
+                    }
+                    out.flush();
+                    fos.getFD().sync();
+                } finally {
+                    fos.close();
+                }
+                this.close();
+                FileUtils.rm(this.file);
+                if (!tmp.renameTo(this.file))
+                    throw new IOException("Impossible de renommer " + tmp + " en " + this.file);
+                this.end = size;
+                this.records = this.tickets.size() + this.deleted.size();
+                this.synced = this.written;
+            }
+        }
+    }
+
+    private static byte[] encode(final Ticket t, final Date savedDate) throws IOException {
+        final ByteArrayOutputStream bOut = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bOut);
+        t.write(out, savedDate);
+        out.close();
+        return bOut.toByteArray();
+    }
+
+    private static byte[] createRecord(final byte type, final int number, final byte[] ticket) throws IOException {
+        final int size = 5 + (ticket == null ? 0 : ticket.length);
+        final ByteArrayOutputStream bOut = new ByteArrayOutputStream(RECORD_HEADER_SIZE + size);
+        final DataOutputStream out = new DataOutputStream(bOut);
+        out.writeInt(size);
+        // CRC rempli ensuite
+        out.writeInt(0);
+        out.writeByte(type);
+        out.writeInt(number);
+        if (ticket != null)
+            out.write(ticket);
+        out.close();
+        final byte[] res = bOut.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(res, RECORD_HEADER_SIZE, size);
+        ByteBuffer.wrap(res).putInt(4, (int) crc.getValue());
+        return res;
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (this.channel == null) {
+            final boolean create = !this.file.exists();
+            this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+            if (create) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                this.write(this.channel, header, 0);
+                this.end = HEADER_SIZE;
+                this.records = 0;
+            } else {
+                // un autre journal du même jour (pas gardé en mémoire) a pu écrire depuis
+                this.end = this.channel.size();
+            }
+        }
+        return this.channel;
+    }
+
+    private void write(final FileChannel c, final ByteBuffer bb, final long pos) throws IOException {
+        long p = pos;
+        while (bb.hasRemaining())
+            p += c.write(bb, p);
+    }
+
+    // ajoute un enregistrement et attend qu'il soit sur le disque
+    private void append(final byte type, final int number, final byte[] ticket) throws IOException {
+        final byte[] rec = createRecord(type, number, ticket);
+        final long seq;
+        synchronized (this) {
+            final FileChannel c = this.getChannel();
+            try {
+                this.write(c, ByteBuffer.wrap(rec), this.end);
+            } catch (IOException e) {
+                // ne pas laisser un enregistrement partiel avant le suivant
+                c.truncate(this.end);
+                throw e;
+            }
+            this.end += rec.length;
+            this.records++;
+            if (type == SAVE) {
+                this.tickets.put(number, ticket);
+                this.deleted.remove(number);
+            } else {
+                this.deleted.add(number);
+            }
+            seq = ++this.written;
+        }
+        this.sync(seq);
+        // pour que le journal du jour ne grossisse pas indéfiniment avec les tickets modifiés
+        this.compactIfNeeded();
+        if (!this.keepOpen)
+            this.close();
+    }
+
+    private void sync(final long seq) throws IOException {
+        synchronized (this.syncLock) {
+            // une autre écriture a déjà synchronisé la nôtre
+            if (this.synced >= seq)
+                return;
+            final long target;
+            final FileChannel c;
+            synchronized (this) {
+                target = this.written;
+                c = this.getChannel();
+            }
+            c.force(false);
+            this.synced = target;
+        }
+    }
+
+    /**
+     * Enregistre un ticket, remplaçant le ticket de même numéro.
+     * 
+     * @param t le ticket.
+     * @param savedDate la date d'enregistrement.
+     * @throws IOException si le ticket ne peut être écrit sur le disque.
+     */
+    public void save(final Ticket t, final Date savedDate) throws IOException {
+        this.append(SAVE, t.getNumber(), encode(t, savedDate));
+    }
+
+    /**
+     * Supprime un ticket, il reste dans le journal.
+     * 
+     * @param number le numéro du ticket.
+     * @throws IOException si la suppression ne peut être écrite sur le disque.
+     */
+    public void delete(final int number) throws IOException {
+        synchronized (this) {
+            if (!this.tickets.containsKey(number) || this.deleted.contains(number))
+                return;
+        }
+        this.append(DELETE, number, null);
+    }
+
+    private Ticket decode(final byte[] data) {
+        try {
+            return Ticket.read(new DataInputStream(new ByteArrayInputStream(data)), this.caisse);
+        } catch (IOException e) {
+            // les données ont été vérifiées
+            throw new IllegalStateException("Ticket illisible dans " + this.file, e);
+        }
+    }
+
+    /**
+     * Un ticket.
+     * 
+     * @param number le numéro du ticket.
+     * @return une nouvelle instance du ticket, <code>null</code> s'il n'existe pas ou a été
+     *         supprimé.
+     */
+    public synchronized Ticket getTicket(final int number) {
+        final byte[] data = this.tickets.get(number);
+        if (data == null || this.deleted.contains(number))
+            return null;
+        return this.decode(data);
+    }
+
+    /**
+     * Les tickets non supprimés.
+     * 
+     * @return les tickets par numéro croissant.
+     */
+    public synchronized List<Ticket> getTickets() {
+        final List<Ticket> res = new ArrayList<Ticket>(this.tickets.size());
+        for (final Map.Entry<Integer, byte[]> e : this.tickets.entrySet()) {
+            if (!this.deleted.contains(e.getKey()))
+                res.add(this.decode(e.getValue()));
+        }
+        return res;
+    }
+
+    /**
+     * Le numéro du prochain ticket, les numéros des tickets supprimés ne sont pas réutilisés.
+     * 
+     * @return le numéro du prochain ticket.
+     */
+    public synchronized int getNextNumber() {
+        return this.tickets.isEmpty() ? 1 : this.tickets.lastKey() + 1;
+    }
+
+    /**
+     * Ecrit les tickets au format XML des versions précédentes, un fichier par ticket, les tickets
+     * supprimés avec le suffixe "_deleted".
+     * 
+     * @param dir le dossier où écrire.
+     * @return le nombre de fichiers écrits.
+     * @throws IOException si un fichier ne peut être écrit.
+     */
+    public int exportXML(final File dir) throws IOException {
+        final Map<Integer, byte[]> toExport;
+        final Set<Integer> del;
+        synchronized (this) {
+            toExport = new TreeMap<Integer, byte[]>(this.tickets);
+            del = new HashSet<Integer>(this.deleted);
+        }
+        FileUtils.mkdir_p(dir);
+        final XMLOutputter out = new XMLOutputter(Format.getPrettyFormat());
+        for (final Map.Entry<Integer, byte[]> e : toExport.entrySet()) {
+            final Ticket t = this.decode(e.getValue());
+            final String name = Ticket.getFileName(t.getCode());
+            final boolean isDeleted = del.contains(e.getKey());
+            final File f = new File(dir, isDeleted ? name + XML_DELETED_SUFFIX : name);
+            final FileOutputStream fileOutputStream = new FileOutputStream(f);
+            try {
+                out.output(t.toXML(), fileOutputStream);
+            } finally {
+                fileOutputStream.close();
+            }
+            // ne pas laisser l'autre version
+            new File(dir, isDeleted ? name : name + XML_DELETED_SUFFIX).delete();
+        }
+        return toExport.size();
+    }
+
+    /**
+     * Ecrit les tickets au format XML dans le dossier du jour, comme les versions précédentes.
+     * 
+     * @return le nombre de fichiers écrits.
+     * @throws IOException si un fichier ne peut être écrit.
+     * @see #exportXML(File)
+     */
+    public int exportXML() throws IOException {
+        return this.exportXML(this.file.getParentFile());
+    }
+
+    /**
+     * Ferme le fichier, il sera rouvert à la prochaine écriture.
+     */
+    public void close() {
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                if (this.channel != null) {
+                    try {
+                        if (this.synced < this.written)
+                            this.channel.force(false);
+                        this.synced = this.written;
+                        this.channel.close();
+                    } catch (IOException e) {
+                        Log.get().log(Level.WARNING, "Impossible de fermer " + this.file, e);
+                    }
+                    this.channel = null;
+                }
+            }
+        }
+    }
+}
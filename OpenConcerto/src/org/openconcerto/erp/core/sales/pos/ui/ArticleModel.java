@@ -59,6 +59,13 @@ public class ArticleModel implements ListModel {
         fire();
     }
 
+    public void setArticles(List<Article> l) {
+        this.categorie = null;
+        this.items.clear();
+        this.items.addAll(l);
+        fire();
+    }
+
     private void fire() {
         for (ListDataListener l : listeners) {
             l.contentsChanged(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, 0, this.listeners.size()));
@@ -14,6 +14,8 @@
  package org.openconcerto.erp.core.sales.pos.ui;
 
 import org.openconcerto.erp.core.sales.pos.model.Article;
+import org.openconcerto.erp.core.sales.pos.model.Catalogue;
+import org.openconcerto.erp.core.sales.pos.model.CatalogueListener;
 import org.openconcerto.erp.core.sales.pos.model.Categorie;
 import org.openconcerto.ui.touch.ScrollableList;
 
@@ -24,15 +26,17 @@ import java.awt.Graphics2D;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.RenderingHints;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.math.RoundingMode;
+import java.util.List;
 
 import javax.swing.JPanel;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
-public class ArticleSelector extends JPanel implements ListSelectionListener, CaisseListener {
+public class ArticleSelector extends JPanel implements ListSelectionListener, CaisseListener, BarcodeListener, CatalogueListener {
     private ArticleModel model;
     private ScrollableList list;
     private StatusBar comp;
@@ -41,6 +45,8 @@ public class ArticleSelector extends JPanel implements ListSelectionListener, Ca
     ArticleSelector(final CaisseControler controller) {
         this.controller = controller;
         this.controller.addCaisseListener(this);
+        this.controller.addBarcodeListener(this);
+        Catalogue.getInstance().addCatalogueListener(this);
 
         this.setLayout(new GridBagLayout());
         GridBagConstraints c = new GridBagConstraints();
@@ -174,8 +180,39 @@ public class ArticleSelector extends JPanel implements ListSelectionListener, Ca
             Categorie c = articleSelected.getCategorie();
             model.setCategorie(c);
             list.setSelectedValue(articleSelected, true);
+            comp.setTitle("Articles");
         }
 
     }
 
+    @Override
+    public void barcodeRead(String code) {
+        final Catalogue catalogue = Catalogue.getInstance();
+        if (catalogue.getArticleFromBarcode(code) != null || catalogue.getArticleFromCode(code) != null) {
+            return;
+        }
+        // recherche par nom
+        final List<Article> found = catalogue.search(code);
+        if (!found.isEmpty()) {
+            model.setArticles(found);
+            comp.setTitle("Recherche : " + code);
+        }
+    }
+
+    @Override
+    public void keyReceived(KeyEvent ee) {
+    }
+
+    @Override
+    public void catalogueChanged() {
+        final Categorie c = model.getRoot();
+        if (c == null || Catalogue.getInstance().contains(c)) {
+            // prix ou noms modifiés
+            model.setCategorie(c);
+        } else {
+            model.setCategorie(null);
+        }
+        list.repaint();
+    }
+
 }
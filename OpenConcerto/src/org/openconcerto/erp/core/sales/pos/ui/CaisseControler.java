@@ -17,6 +17,7 @@ import org.openconcerto.erp.core.sales.pos.Caisse;
 import org.openconcerto.erp.core.sales.pos.io.BarcodeReader;
 import org.openconcerto.erp.core.sales.pos.io.TicketPrinter;
 import org.openconcerto.erp.core.sales.pos.model.Article;
+import org.openconcerto.erp.core.sales.pos.model.Catalogue;
 import org.openconcerto.erp.core.sales.pos.model.Paiement;
 import org.openconcerto.erp.core.sales.pos.model.Ticket;
 import org.openconcerto.utils.Pair;
@@ -184,6 +185,9 @@ public class CaisseControler implements BarcodeListener {
 
         } else {
             Article a = Article.getArticleFromBarcode(code);
+            if (a == null) {
+                a = Catalogue.getInstance().getArticleFromCode(code);
+            }
             if (a != null) {
                 this.incrementArticle(a);
                 this.setArticleSelected(a);
@@ -14,6 +14,7 @@
  package org.openconcerto.erp.core.sales.pos.ui;
 
 import org.openconcerto.erp.core.sales.pos.Caisse;
+import org.openconcerto.erp.core.sales.pos.model.Ticket;
 import org.openconcerto.utils.ExceptionHandler;
 
 import java.awt.Color;
@@ -27,20 +28,25 @@ import java.awt.GridBagLayout;
 import java.awt.Image;
 import java.awt.RenderingHints;
 import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.util.List;
 import java.util.Set;
 
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.ListCellRenderer;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 public class CaisseMenuPanel extends JPanel implements ListSelectionListener {
 
     private JList l;
+    private final JProgressBar progress;
     private CaisseFrame frame;
     private Image bg;
 
@@ -82,6 +88,16 @@ public class CaisseMenuPanel extends JPanel implements ListSelectionListener {
 
         l.setFixedCellHeight(80);
         this.add(l, c);
+
+        // avancement de la clôture
+        c.gridy++;
+        c.weighty = 0;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        this.progress = new JProgressBar();
+        this.progress.setStringPainted(true);
+        this.progress.setFont(new Font("Arial", Font.PLAIN, 24));
+        this.progress.setVisible(false);
+        this.add(this.progress, c);
         bg = new ImageIcon(TicketPanel.class.getResource("toolbar.png")).getImage();
         setFont(new Font("Arial", Font.BOLD, 24));
     }
@@ -104,7 +120,7 @@ public class CaisseMenuPanel extends JPanel implements ListSelectionListener {
                 break;
             case 3:
                 // Clôture
-                Caisse.commitAll(Caisse.allTickets());
+                cloture();
                 break;
             case 5:
                 // Fermeture
@@ -129,6 +145,47 @@ public class CaisseMenuPanel extends JPanel implements ListSelectionListener {
         }
     }
 
+    private void cloture() throws IOException {
+        Caisse.exportTickets();
+        final List<Ticket> tickets = Caisse.allTickets();
+        this.l.setEnabled(false);
+        this.progress.setMaximum(tickets.size());
+        this.progress.setValue(0);
+        this.progress.setString("Clôture en cours");
+        this.progress.setVisible(true);
+        this.revalidate();
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Caisse.commitAll(tickets, new Caisse.CommitListener() {
+                        @Override
+                        public void progress(final int done, final int total) {
+                            SwingUtilities.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    CaisseMenuPanel.this.progress.setValue(done);
+                                    CaisseMenuPanel.this.progress.setString(done + " / " + total + " tickets");
+                                }
+                            });
+                        }
+                    });
+                } finally {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            CaisseMenuPanel.this.progress.setVisible(false);
+                            CaisseMenuPanel.this.l.setEnabled(true);
+                            // pour pouvoir relancer la clôture
+                            CaisseMenuPanel.this.l.clearSelection();
+                        }
+                    });
+                }
+            }
+        }, "Clôture de la caisse");
+        t.start();
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
@@ -14,12 +14,8 @@
  package org.openconcerto.erp.core.sales.pos.ui;
 
 import org.openconcerto.erp.core.sales.pos.model.Article;
+import org.openconcerto.erp.core.sales.pos.model.Catalogue;
 import org.openconcerto.erp.core.sales.pos.model.Categorie;
-import org.openconcerto.sql.Configuration;
-import org.openconcerto.sql.element.SQLElement;
-import org.openconcerto.sql.model.SQLRow;
-import org.openconcerto.sql.model.SQLRowListRSH;
-import org.openconcerto.sql.model.SQLSelect;
 import org.openconcerto.utils.ExceptionHandler;
 
 import java.awt.Color;
@@ -34,9 +30,6 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.geom.Rectangle2D;
 import java.math.BigDecimal;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 import javax.swing.JPanel;
 
@@ -116,50 +109,7 @@ public class CaissePanel extends JPanel implements CaisseListener {
     }
 
     private void loadArticles() {
-
-        Map<Integer, Categorie> m = new HashMap<Integer, Categorie>();
-
-        SQLElement eltFam = Configuration.getInstance().getDirectory().getElement("FAMILLE_ARTICLE");
-        SQLElement eltArticle = Configuration.getInstance().getDirectory().getElement("ARTICLE");
-
-        SQLSelect selFamille = new SQLSelect(Configuration.getInstance().getBase());
-
-        selFamille.addSelectStar(eltFam.getTable());
-        selFamille.addRawOrder(eltFam.getTable().getField("CODE").getFieldRef());
-        List<SQLRow> l = (List<SQLRow>) Configuration.getInstance().getBase().getDataSource().execute(selFamille.asString(), SQLRowListRSH.createFromSelect(selFamille, eltFam.getTable()));
-
-        for (SQLRow row : l) {
-
-            final Categorie cP = m.get(row.getInt("ID_FAMILLE_ARTICLE_PERE"));
-            Categorie c;
-            if (cP != null) {
-                c = new Categorie(row.getString("NOM"));
-                cP.add(c);
-            } else {
-                c = new Categorie(row.getString("NOM"), true);
-            }
-
-            m.put(row.getID(), c);
-        }
-
-        SQLSelect selArticle = new SQLSelect(Configuration.getInstance().getBase());
-        selArticle.addSelectStar(eltArticle.getTable());
-        List<SQLRow> l2 = (List<SQLRow>) Configuration.getInstance().getBase().getDataSource().execute(selArticle.asString(), SQLRowListRSH.createFromSelect(selArticle, eltArticle.getTable()));
-
-        for (SQLRow row : l2) {
-
-            final Categorie s1 = m.get(row.getInt("ID_FAMILLE_ARTICLE"));
-            if (s1 != null) {
-                Article a = new Article(s1, row.getString("NOM"), row.getID());
-                a.setBarCode(row.getString("CODE_BARRE"));
-                a.setCode(row.getString("CODE"));
-                a.setIdTaxe(row.getInt("ID_TAXE"));
-                a.setPriceHTInCents((BigDecimal) row.getObject("PV_HT"));
-                a.setPriceInCents((BigDecimal) row.getObject("PV_TTC"));
-
-            }
-        }
-
+        Catalogue.getInstance().load();
     }
 
     private void fillExampleArticle() {
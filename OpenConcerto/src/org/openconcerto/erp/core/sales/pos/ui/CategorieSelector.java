@@ -14,6 +14,8 @@
  package org.openconcerto.erp.core.sales.pos.ui;
 
 import org.openconcerto.erp.core.sales.pos.model.Article;
+import org.openconcerto.erp.core.sales.pos.model.Catalogue;
+import org.openconcerto.erp.core.sales.pos.model.CatalogueListener;
 import org.openconcerto.erp.core.sales.pos.model.Categorie;
 
 import java.awt.GridBagConstraints;
@@ -27,7 +29,7 @@ import javax.swing.ListSelectionModel;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
-public class CategorieSelector extends JPanel implements ListSelectionListener, CaisseListener {
+public class CategorieSelector extends JPanel implements ListSelectionListener, CaisseListener, CatalogueListener {
     private CategorieModel model;
     private JList list;
     private StatusBar comp;
@@ -40,6 +42,7 @@ public class CategorieSelector extends JPanel implements ListSelectionListener,
         this.controller = controller;
 
         controller.addCaisseListener(this);
+        Catalogue.getInstance().addCatalogueListener(this);
 
         this.setLayout(new GridBagLayout());
         GridBagConstraints c = new GridBagConstraints();
@@ -118,4 +121,18 @@ public class CategorieSelector extends JPanel implements ListSelectionListener,
         }
 
     }
+
+    @Override
+    public void catalogueChanged() {
+        final Categorie root = this.model.getRoot();
+        if (root == null || Catalogue.getInstance().contains(root)) {
+            this.model.setRoot(root);
+        } else {
+            // familles rechargées
+            this.model.setRoot(null);
+            this.comp.setTitle("Catégories");
+            this.comp.setPrevious(false);
+            this.previous = null;
+        }
+    }
 }
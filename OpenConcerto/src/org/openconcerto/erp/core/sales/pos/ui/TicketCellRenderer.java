@@ -13,8 +13,8 @@
  
  package org.openconcerto.erp.core.sales.pos.ui;
 
-import org.openconcerto.erp.core.finance.tax.model.TaxeCache;
 import org.openconcerto.erp.core.sales.pos.model.Article;
+import org.openconcerto.erp.core.sales.pos.model.Catalogue;
 import org.openconcerto.ui.touch.ScrollableList;
 import org.openconcerto.utils.Pair;
 
@@ -58,7 +58,7 @@ public class TicketCellRenderer implements ListCellRenderer {
         c.gridx++;
         c.weightx = 0;
 
-        Float tauxFromId = TaxeCache.getCache().getTauxFromId(article.getIdTaxe());
+        Float tauxFromId = Catalogue.getInstance().getTauxFromId(article.getIdTaxe());
         BigDecimal tauxTVA = new BigDecimal(tauxFromId).movePointLeft(2).add(BigDecimal.ONE);
 
         BigDecimal multiply = article.getPriceHTInCents().multiply(new BigDecimal(item.getSecond()), MathContext.DECIMAL128).multiply(tauxTVA, MathContext.DECIMAL128);
@@ -109,7 +109,7 @@ public class TicketCellRenderer implements ListCellRenderer {
             s2 = s2.substring(0, maxLength + 1) + '…';
         g.drawString(s2, width1 + inset, height);
 
-        Float tauxFromId = TaxeCache.getCache().getTauxFromId(article.getIdTaxe());
+        Float tauxFromId = Catalogue.getInstance().getTauxFromId(article.getIdTaxe());
         BigDecimal tauxTVA = new BigDecimal(tauxFromId).movePointLeft(2).add(BigDecimal.ONE);
 
         BigDecimal multiply = article.getPriceHTInCents().multiply(new BigDecimal(item.getSecond()), MathContext.DECIMAL128).multiply(tauxTVA, MathContext.DECIMAL128);
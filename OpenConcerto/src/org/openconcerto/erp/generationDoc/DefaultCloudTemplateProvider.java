@@ -157,6 +157,7 @@ public class DefaultCloudTemplateProvider extends AbstractLocalTemplateProvider
                 throw new IllegalStateException("Copie impossible", e);
             }
         }
+        TemplateManager.getInstance().templateChanged(templateId);
     }
 
     @Override
@@ -184,6 +185,7 @@ public class DefaultCloudTemplateProvider extends AbstractLocalTemplateProvider
                 throw new IllegalStateException("Synchronisation impossible", e);
             }
         }
+        TemplateManager.getInstance().templateChanged(templateId);
     }
 
     @Override
@@ -195,6 +197,7 @@ public class DefaultCloudTemplateProvider extends AbstractLocalTemplateProvider
                 ensureDelete(local);
             }
         }
+        TemplateManager.getInstance().templateChanged(templateId);
     }
 
 }
@@ -116,6 +116,7 @@ public class DefaultLocalTemplateProvider extends AbstractLocalTemplateProvider
                 throw new IllegalStateException("Copie impossible", e);
             }
         }
+        TemplateManager.getInstance().templateChanged(templateId);
     }
 
     @Override
@@ -133,6 +134,7 @@ public class DefaultLocalTemplateProvider extends AbstractLocalTemplateProvider
                 throw new IllegalStateException("Synchronisation impossible", e);
             }
         }
+        TemplateManager.getInstance().templateChanged(templateId);
     }
 
     @Override
@@ -145,5 +147,6 @@ public class DefaultLocalTemplateProvider extends AbstractLocalTemplateProvider
                 ensureDelete(local);
             }
         }
+        TemplateManager.getInstance().templateChanged(templateId);
     }
 }
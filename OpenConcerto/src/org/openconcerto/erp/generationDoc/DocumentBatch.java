@@ -0,0 +1,451 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.generationDoc;
+
+import org.openconcerto.sql.Configuration;
+import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowAccessor;
+import org.openconcerto.sql.model.SQLRowListRSH;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.sql.model.graph.Link;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom.Document;
+import org.jdom.Element;
+
+/**
+ * Génération d'un lot de documents, e.g. toutes les factures d'un mois. Les lignes des documents,
+ * les lignes pointées et les lignes des tableaux sont chargées avec une requête par table pour tout
+ * le lot, puis les documents sont remplis en parallèle, chacun avec son propre
+ * {@link OOgenerationXML}. Les documents existants sont régénérés sans confirmation.
+ * 
+ * <pre>
+ * final DocumentBatch batch = DocumentGeneratorManager.getInstance().createBatch(sheets);
+ * batch.addListener(l);
+ * batch.run();
+ * </pre>
+ * 
+ * @see DocumentGeneratorManager#createBatch(List)
+ */
+public class DocumentBatch {
+
+    /**
+     * Suivi de la génération. Les méthodes sont appelées par le thread de
+     * {@link DocumentBatch#run()}.
+     */
+    public static interface Listener {
+        /**
+         * Un document a été généré.
+         * 
+         * @param done le nombre de documents traités.
+         * @param total le nombre de documents à traiter.
+         * @param sheet le document.
+         * @param f le fichier créé.
+         */
+        void documentCreated(int done, int total, AbstractSheetXml sheet, File f);
+
+        /**
+         * La génération d'un document a échoué.
+         * 
+         * @param done le nombre de documents traités.
+         * @param total le nombre de documents à traiter.
+         * @param sheet le document.
+         * @param e l'erreur.
+         */
+        void documentFailed(int done, int total, AbstractSheetXml sheet, Throwable e);
+    }
+
+    // keys of the context passed to a DocumentGenerator registered for a template
+    public static final String CONTEXT_ROW = "row";
+    public static final String CONTEXT_TEMPLATE_ID = "templateId";
+    public static final String CONTEXT_TYPE = "type";
+    public static final String CONTEXT_OUTPUT_DIRECTORY = "outputDirectory";
+    public static final String CONTEXT_FILE_NAME = "fileName";
+    public static final String CONTEXT_LANGUAGE = "rowLanguage";
+
+    // max ids per IN ()
+    private static final int FETCH_MAX_IDS = 1000;
+
+    // what's needed to generate one document, computed before generation
+    private static final class Job {
+        private final AbstractSheetXml sheet;
+        private final String templateId;
+        private final String type;
+        private final SQLRow rowLanguage;
+        private final File outputDirectory;
+        private final String fileName;
+        private SQLRow row;
+        private final Map<SQLField, SQLRowAccessor> foreigns;
+        private final Map<SQLTable, List<SQLRowAccessor>> referents;
+
+        Job(final AbstractSheetXml sheet, final String templateId) {
+            this.sheet = sheet;
+            this.templateId = templateId;
+            this.type = sheet.getType();
+            this.rowLanguage = sheet.getRowLanguage();
+            this.outputDirectory = sheet.getDocumentOutputDirectory();
+            this.fileName = SheetXml.getValidFileName(sheet.getName());
+            this.row = sheet.getSQLRow();
+            this.foreigns = new HashMap<SQLField, SQLRowAccessor>();
+            this.referents = new HashMap<SQLTable, List<SQLRowAccessor>>();
+        }
+
+        final String getLanguage() {
+            return this.rowLanguage != null ? this.rowLanguage.getString("CHEMIN") : null;
+        }
+    }
+
+    private final DocumentGeneratorManager manager;
+    private final List<AbstractSheetXml> sheets;
+    private final List<Listener> listeners;
+    private int threadCount;
+    private volatile boolean cancelled;
+
+    DocumentBatch(final DocumentGeneratorManager manager, final List<? extends AbstractSheetXml> sheets) {
+        this.manager = manager;
+        this.sheets = Collections.unmodifiableList(new ArrayList<AbstractSheetXml>(sheets));
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+        this.cancelled = false;
+    }
+
+    public final List<AbstractSheetXml> getSheets() {
+        return this.sheets;
+    }
+
+    public final void addListener(final Listener l) {
+        this.listeners.add(l);
+    }
+
+    public final void removeListener(final Listener l) {
+        this.listeners.remove(l);
+    }
+
+    /**
+     * Le nombre de documents remplis en même temps, par défaut le nombre de processeurs.
+     * 
+     * @param threadCount le nombre de threads.
+     */
+    public final void setThreadCount(final int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("Invalid thread count : " + threadCount);
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Arrête la génération dès que possible, les documents déjà générés sont conservés. Peut être
+     * appelée depuis n'importe quel thread.
+     */
+    public final void cancel() {
+        this.cancelled = true;
+    }
+
+    public final boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Génère tous les documents.
+     * 
+     * @return les fichiers générés, dans l'ordre des documents.
+     * @throws InterruptedException si le thread courant est interrompu.
+     */
+    public Map<AbstractSheetXml, File> run() throws InterruptedException {
+        final int total = this.sheets.size();
+        final Map<AbstractSheetXml, File> created = new HashMap<AbstractSheetXml, File>(total * 2);
+        if (total == 0)
+            return created;
+
+        // everything touching the sheets and the DB before going parallel
+        final List<Job> jobs = new ArrayList<Job>(total);
+        int done = 0;
+        for (final AbstractSheetXml sheet : this.sheets) {
+            try {
+                final Job job = new Job(sheet, getTemplateId(sheet));
+                // fetch now, rows are shared by the threads
+                job.getLanguage();
+                jobs.add(job);
+            } catch (Exception e) {
+                done++;
+                for (final Listener l : this.listeners)
+                    l.documentFailed(done, total, sheet, e);
+            }
+        }
+        prefetch(jobs);
+
+        final int poolSize = Math.max(1, Math.min(this.threadCount, jobs.size()));
+        final ExecutorService exec = new ThreadPoolExecutor(poolSize, poolSize, 1L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(DocumentBatch.class.getSimpleName() + " ", true));
+        try {
+            final CompletionService<File> completion = new ExecutorCompletionService<File>(exec);
+            final Map<Future<File>, Job> futures = new HashMap<Future<File>, Job>(jobs.size() * 2);
+            for (final Job job : jobs) {
+                futures.put(completion.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        if (DocumentBatch.this.cancelled)
+                            return null;
+                        return generate(job);
+                    }
+                }), job);
+            }
+
+            for (int i = 0; i < jobs.size() && !this.cancelled; i++) {
+                final Future<File> f = completion.take();
+                final Job job = futures.get(f);
+                try {
+                    final File res = f.get();
+                    if (res != null) {
+                        done++;
+                        created.put(job.sheet, res);
+                        for (final Listener l : this.listeners)
+                            l.documentCreated(done, total, job.sheet, res);
+                    }
+                } catch (ExecutionException e) {
+                    done++;
+                    for (final Listener l : this.listeners)
+                        l.documentFailed(done, total, job.sheet, e.getCause());
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+
+        final Map<AbstractSheetXml, File> res = new LinkedHashMap<AbstractSheetXml, File>(total * 2);
+        for (final AbstractSheetXml sheet : this.sheets) {
+            if (created.containsKey(sheet))
+                res.put(sheet, created.get(sheet));
+        }
+        return res;
+    }
+
+    // same as AbstractSheetXml.createDocumentAsynchronous() without the dialog
+    private static String getTemplateId(final AbstractSheetXml sheet) throws Exception {
+        final String templateId = sheet.getTemplateId();
+        final String langage = sheet.getRowLanguage() != null ? sheet.getRowLanguage().getString("CHEMIN") : null;
+        if (TemplateManager.getInstance().getCachedTemplate(templateId, langage, sheet.getType()) != null)
+            return templateId;
+        final InputStream templateStream = TemplateManager.getInstance().getTemplate(templateId, langage, sheet.getType());
+        if (templateStream == null) {
+            System.err.println("DocumentBatch: no template " + templateId + ", using " + sheet.getDefaultTemplateId());
+            return sheet.getDefaultTemplateId();
+        }
+        templateStream.close();
+        return templateId;
+    }
+
+    private File generate(final Job job) throws Exception {
+        final DocumentGenerator generator = this.manager.getGenerator(job.templateId);
+        if (generator != null) {
+            final Map<String, Object> context = new HashMap<String, Object>();
+            context.put(CONTEXT_ROW, job.row);
+            context.put(CONTEXT_TEMPLATE_ID, job.templateId);
+            context.put(CONTEXT_TYPE, job.type);
+            context.put(CONTEXT_OUTPUT_DIRECTORY, job.outputDirectory);
+            context.put(CONTEXT_FILE_NAME, job.fileName);
+            context.put(CONTEXT_LANGUAGE, job.rowLanguage);
+            // a registered generator is a single instance
+            synchronized (generator) {
+                generator.setContext(context);
+                generator.createDocument();
+            }
+            return new File(job.outputDirectory, job.fileName + ".ods");
+        }
+        // all state is per OOgenerationXML
+        final OOgenerationXML oXML = new OOgenerationXML(job.row);
+        oXML.setPrefetchedRows(job.foreigns, job.referents);
+        return oXML.generate(job.templateId, job.type, job.outputDirectory, job.fileName, job.rowLanguage, false);
+    }
+
+    // * prefetch
+
+    private static void prefetch(final List<Job> jobs) {
+        // group by table of document
+        final Map<SQLTable, List<Job>> byTable = new LinkedHashMap<SQLTable, List<Job>>();
+        for (final Job job : jobs) {
+            List<Job> l = byTable.get(job.row.getTable());
+            if (l == null) {
+                l = new ArrayList<Job>();
+                byTable.put(job.row.getTable(), l);
+            }
+            l.add(job);
+        }
+        for (final Map.Entry<SQLTable, List<Job>> e : byTable.entrySet()) {
+            prefetch(e.getKey(), e.getValue());
+        }
+    }
+
+    private static void prefetch(final SQLTable t, final List<Job> jobs) {
+        final Set<Integer> ids = new HashSet<Integer>();
+        for (final Job job : jobs)
+            ids.add(job.row.getID());
+
+        // the rows themselves
+        final Map<Integer, SQLRow> rows = fetchByID(t, ids);
+        for (final Job job : jobs) {
+            final SQLRow r = rows.get(job.row.getID());
+            // else let the generation fail
+            if (r != null)
+                job.row = r;
+        }
+
+        // foreign rows
+        final Map<SQLTable, Set<Integer>> foreignIDs = new HashMap<SQLTable, Set<Integer>>();
+        for (final SQLField ff : t.getForeignKeys()) {
+            final SQLTable foreignT = t.getForeignTable(ff.getName());
+            Set<Integer> s = foreignIDs.get(foreignT);
+            if (s == null) {
+                s = new HashSet<Integer>();
+                foreignIDs.put(foreignT, s);
+            }
+            for (final SQLRow r : rows.values()) {
+                if (r.getObject(ff.getName()) != null)
+                    s.add(r.getInt(ff.getName()));
+            }
+        }
+        final Map<SQLTable, Map<Integer, SQLRow>> foreigns = new HashMap<SQLTable, Map<Integer, SQLRow>>();
+        for (final Map.Entry<SQLTable, Set<Integer>> e : foreignIDs.entrySet()) {
+            foreigns.put(e.getKey(), fetchByID(e.getKey(), e.getValue()));
+        }
+        for (final Job job : jobs) {
+            for (final SQLField ff : t.getForeignKeys()) {
+                if (job.row.getObject(ff.getName()) != null) {
+                    final SQLRow foreign = foreigns.get(t.getForeignTable(ff.getName())).get(job.row.getInt(ff.getName()));
+                    if (foreign != null)
+                        job.foreigns.put(ff, foreign);
+                }
+            }
+        }
+
+        // rows of the tables in the documents
+        for (final SQLTable eltTable : getTablesToPrefetch(t, jobs)) {
+            final Set<Link> links = new HashSet<Link>();
+            for (final Link l : t.getDBSystemRoot().getGraph().getReferentLinks(t)) {
+                if (l.getSource() == eltTable)
+                    links.add(l);
+            }
+            // SQLRow.getReferentRows() concatenates links in no particular order
+            if (links.size() != 1)
+                continue;
+            final SQLField refField = links.iterator().next().getLabel();
+            final Map<Integer, List<SQLRowAccessor>> referents = new HashMap<Integer, List<SQLRowAccessor>>();
+            for (final List<Integer> chunk : split(ids)) {
+                // same request as SQLRow.getReferentRows()
+                final SQLSelect sel = new SQLSelect(t.getBase());
+                sel.addSelectStar(eltTable);
+                sel.setWhere(new Where(refField, chunk));
+                sel.setArchivedPolicy(SQLSelect.UNARCHIVED);
+                sel.addOrderSilent(eltTable.getName());
+                for (final SQLRow r : execute(eltTable, sel)) {
+                    final Integer key = r.getInt(refField.getName());
+                    List<SQLRowAccessor> l = referents.get(key);
+                    if (l == null) {
+                        l = new ArrayList<SQLRowAccessor>();
+                        referents.put(key, l);
+                    }
+                    l.add(r);
+                }
+            }
+            for (final Job job : jobs) {
+                final List<SQLRowAccessor> l = referents.get(job.row.getID());
+                job.referents.put(eltTable, l == null ? new ArrayList<SQLRowAccessor>() : l);
+            }
+        }
+    }
+
+    // tables filled directly from the document row, cf. OOXMLTableElement
+    private static Set<SQLTable> getTablesToPrefetch(final SQLTable t, final List<Job> jobs) {
+        final Set<SQLTable> res = new HashSet<SQLTable>();
+        final Set<List<String>> templates = new HashSet<List<String>>();
+        for (final Job job : jobs) {
+            final String langage = job.getLanguage();
+            if (!templates.add(Arrays.asList(job.templateId, langage, job.type)))
+                continue;
+            try {
+                final TemplateCache.Template template = TemplateManager.getInstance().getCachedTemplate(job.templateId, langage, job.type);
+                final Document doc = template == null ? null : template.getConfiguration();
+                if (doc == null)
+                    continue;
+                @SuppressWarnings("unchecked")
+                final List<Element> tables = doc.getRootElement().getChildren("table");
+                for (final Element tableau : tables) {
+                    if (isEmpty(tableau.getAttributeValue("field")) && isEmpty(tableau.getAttributeValue("groupBy"))) {
+                        final SQLTable eltTable = Configuration.getInstance().getRoot().findTable(tableau.getAttributeValue("table"));
+                        if (eltTable != null)
+                            res.add(eltTable);
+                    }
+                }
+            } catch (Exception e) {
+                // the generation will report it
+                e.printStackTrace();
+            }
+        }
+        return res;
+    }
+
+    private static boolean isEmpty(final String s) {
+        return s == null || s.trim().length() == 0;
+    }
+
+    private static Map<Integer, SQLRow> fetchByID(final SQLTable t, final Collection<Integer> ids) {
+        final Map<Integer, SQLRow> res = new HashMap<Integer, SQLRow>(ids.size() * 2);
+        for (final List<Integer> chunk : split(ids)) {
+            final SQLSelect sel = new SQLSelect(t.getBase());
+            sel.addSelectStar(t);
+            sel.setWhere(new Where(t.getKey(), chunk));
+            for (final SQLRow r : execute(t, sel))
+                res.put(r.getID(), r);
+        }
+        return res;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<SQLRow> execute(final SQLTable t, final SQLSelect sel) {
+        return (List<SQLRow>) t.getBase().getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel));
+    }
+
+    private static List<List<Integer>> split(final Collection<Integer> ids) {
+        final List<Integer> l = new ArrayList<Integer>(ids);
+        final List<List<Integer>> res = new ArrayList<List<Integer>>();
+        for (int i = 0; i < l.size(); i += FETCH_MAX_IDS) {
+            res.add(l.subList(i, Math.min(l.size(), i + FETCH_MAX_IDS)));
+        }
+        return res;
+    }
+}
@@ -14,6 +14,7 @@
  package org.openconcerto.erp.generationDoc;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -54,6 +55,17 @@ public class DocumentGeneratorManager {
         return generator;
     }
 
+    /**
+     * Create a batch to generate many documents at once, see {@link DocumentBatch}. Documents
+     * whose template has a registered generator are created by it, one at a time.
+     * 
+     * @param sheets the documents to generate.
+     * @return a new batch, not yet started.
+     */
+    public DocumentBatch createBatch(List<? extends AbstractSheetXml> sheets) {
+        return new DocumentBatch(this, sheets);
+    }
+
     public void dump() {
         System.out.println(this.getClass().getCanonicalName());
         System.out.println("Default generator:" + this.defautGenerator);
@@ -153,6 +153,37 @@ public class OOXMLCache {
         }
     }
 
+    /**
+     * Ajoute une ligne déjà chargée, e.g. par {@link DocumentBatch}.
+     * 
+     * @param field le champ.
+     * @param foreign la ligne pointée par <code>field</code>.
+     */
+    void putForeignRow(SQLField field, SQLRowAccessor foreign) {
+        Map<Integer, SQLRowAccessor> c = cacheForeign.get(field.getName());
+        if (c == null) {
+            c = new HashMap<Integer, SQLRowAccessor>();
+            cacheForeign.put(field.getName(), c);
+        }
+        c.put(foreign.getID(), foreign);
+    }
+
+    /**
+     * Ajoute des lignes déjà chargées, e.g. par {@link DocumentBatch}.
+     * 
+     * @param row la ligne pointée.
+     * @param tableForeign la table des lignes.
+     * @param rows les lignes de <code>tableForeign</code> pointant sur <code>row</code>.
+     */
+    void putReferentRows(SQLRowAccessor row, SQLTable tableForeign, List<SQLRowAccessor> rows) {
+        Map<SQLTable, List<SQLRowAccessor>> c = cacheReferent.get(row);
+        if (c == null) {
+            c = new HashMap<SQLTable, List<SQLRowAccessor>>();
+            cacheReferent.put(row, c);
+        }
+        c.put(tableForeign, rows);
+    }
+
     public Map<SQLRowAccessor, Map<SQLTable, List<SQLRowAccessor>>> getCacheReferent() {
         return cacheReferent;
     }
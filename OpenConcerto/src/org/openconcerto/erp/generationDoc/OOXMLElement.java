@@ -119,11 +119,21 @@ public class OOXMLElement {
     }
 
 
-    public static DateFormat format = new SimpleDateFormat("dd/MM/yyyy");
+    // SimpleDateFormat isn't thread-safe and documents can be generated in parallel
+    private static final ThreadLocal<DateFormat> format = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("dd/MM/yyyy");
+        }
+    };
+
+    protected static final DateFormat getDateFormat() {
+        return format.get();
+    }
 
     protected String getStringProposition(SQLRowAccessor rowProp) {
 
-        return "Notre proposition " + rowProp.getString("NUMERO") + " du " + format.format(rowProp.getObject("DATE"));
+        return "Notre proposition " + rowProp.getString("NUMERO") + " du " + getDateFormat().format(rowProp.getObject("DATE"));
     }
 
 
@@ -162,9 +162,9 @@ public class OOXMLTableField extends OOXMLField {
         Object date = row.getObject("DATE");
         Object dateFin = row.getObject("DATE_FIN");
         if (date != null) {
-            String stringDate = format.format((Date) date);
+            String stringDate = getDateFormat().format((Date) date);
             if (dateFin != null) {
-                String stringDateFin = format.format((Date) dateFin);
+                String stringDateFin = getDateFormat().format((Date) dateFin);
                 string.append(" du " + stringDate + " au " + stringDateFin);
             } else {
                 string.append(" le " + stringDate);
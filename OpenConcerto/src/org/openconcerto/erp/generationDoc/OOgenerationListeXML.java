@@ -19,20 +19,26 @@ import org.openconcerto.openoffice.ODPackage;
 import org.openconcerto.openoffice.spreadsheet.MutableCell;
 import org.openconcerto.openoffice.spreadsheet.Sheet;
 import org.openconcerto.openoffice.spreadsheet.SpreadSheet;
+import org.openconcerto.openoffice.spreadsheet.SpreadSheetWriter;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.utils.ExceptionHandler;
 import org.openconcerto.utils.StreamUtils;
 
 import java.awt.Point;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -44,6 +50,13 @@ import org.jdom.input.SAXBuilder;
 
 public class OOgenerationListeXML {
 
+    /**
+     * A partir de ce nombre de lignes, les listes sont écrites directement dans le fichier (cf.
+     * {@link SpreadSheetWriter}), page par page, la duplication des pages en mémoire devenant trop
+     * coûteuse.
+     */
+    public static final int STREAMING_MIN_ROWS = 2000;
+
     // Cache pour la recherche des styles
     private static Map<Sheet, Map<String, Map<Integer, String>>> cacheStyle = new HashMap<Sheet, Map<String, Map<Integer, String>>>();
 
@@ -75,6 +88,7 @@ public class OOgenerationListeXML {
                 spreadSheet.getSheet(0).setName(sheetName.get(0));
             }
 
+            final boolean streaming = getRowCount(liste) >= STREAMING_MIN_ROWS;
             for (Integer i : liste.keySet()) {
                 final Sheet sheet = spreadSheet.getSheet(i);
                 List children = racine.getChildren("element" + i);
@@ -82,13 +96,14 @@ public class OOgenerationListeXML {
                     children = racine.getChildren("element");
                 }
                 parseElementsXML(children, sheet, values.get(i));
-                Element child = racine.getChild("table" + i);
-                if (child == null) {
-                    child = racine.getChild("table");
+                if (!streaming) {
+                    parseListeXML(getTableElement(racine, i), liste.get(i), sheet, mapStyle.get(i));
                 }
-                parseListeXML(child, liste.get(i), sheet, mapStyle.get(i));
             }
             // Sauvegarde du fichier
+            if (streaming) {
+                return saveStreamedSpreadSheet(spreadSheet, racine, liste, mapStyle, pathDest, fileDest, templateId, rowLanguage);
+            }
             return saveSpreadSheet(spreadSheet, pathDest, fileDest, templateId, rowLanguage);
 
         } catch (JDOMException e) {
@@ -99,6 +114,24 @@ public class OOgenerationListeXML {
         return null;
     }
 
+    private static int getRowCount(Map<Integer, List<Map<String, Object>>> liste) {
+        int res = 0;
+        for (final List<Map<String, Object>> l : liste.values()) {
+            if (l != null) {
+                res += l.size();
+            }
+        }
+        return res;
+    }
+
+    private static Element getTableElement(Element racine, int sheetIndex) {
+        Element child = racine.getChild("table" + sheetIndex);
+        if (child == null) {
+            child = racine.getChild("table");
+        }
+        return child;
+    }
+
     private static void parseElementsXML(List<Element> elts, Sheet sheet, Map<String, Object> values) {
         if (values == null) {
             return;
@@ -112,7 +145,7 @@ public class OOgenerationListeXML {
                 boolean controlLine = elt.getAttributeValue("controleMultiline") == null ? true : !elt.getAttributeValue("controleMultiline").equalsIgnoreCase("false");
                 boolean replace = elt.getAttributeValue("type").equalsIgnoreCase("Replace");
                 String replacePattern = elt.getAttributeValue("replacePattern");
-                fill(elt.getAttributeValue("location"), result, sheet, replace, replacePattern, null, false, controlLine);
+                fill(elt.getAttributeValue("location"), result, sheet, replace, replacePattern, null, controlLine);
             }
         }
     }
@@ -125,47 +158,21 @@ public class OOgenerationListeXML {
      * @param id
      * @param sheet
      */
-    private static void parseListeXML(Element tableau, List<Map<String, Object>> liste, Sheet sheet, Map<Integer, String> style) {
+    private static void parseListeXML(Element tableau, List<Map<String, Object>> liste, Sheet sheet, Map<Integer, String> style) throws IOException {
 
         if (liste == null || tableau == null) {
             return;
         }
-        Object oLastColTmp = tableau.getAttributeValue("lastColumn");
-        int lastColumn = -1;
         int endPageLine = Integer.valueOf(tableau.getAttributeValue("endPageLine"));
-        if (oLastColTmp != null) {
-            lastColumn = sheet.resolveHint(oLastColTmp.toString() + 1).x + 1;
-        }
-        Map<String, Map<Integer, String>> mapStyle = searchStyle(sheet, lastColumn, endPageLine);
+        Map<String, Map<Integer, String>> mapStyle = searchStyle(sheet, getLastColumn(tableau, sheet), endPageLine);
 
-        int nbPage = fillTable(tableau, liste, sheet, mapStyle, true, style);
+        int nbPage = fillTable(tableau, liste, sheet, mapStyle, style, PAGE_COUNT);
         int firstLine = Integer.valueOf(tableau.getAttributeValue("firstLine"));
         int endLine = Integer.valueOf(tableau.getAttributeValue("endLine"));
-        Object printRangeObj = sheet.getPrintRanges();
 
         System.err.println("Nombre de page == " + nbPage);
-        if (nbPage == 1) {
-            fillTable(tableau, liste, sheet, mapStyle, false, style);
-        } else {
-
-            if (printRangeObj != null) {
-                String s = printRangeObj.toString();
-                String[] range = s.split(":");
-
-                for (int i = 0; i < range.length; i++) {
-                    String string = range[i];
-                    range[i] = string.subSequence(string.indexOf('.') + 1, string.length()).toString();
-                }
-
-                int rowEnd = -1;
-                if (range.length > 1) {
-                    rowEnd = sheet.resolveHint(range[1]).y + 1;
-                    int rowEndNew = rowEnd * (nbPage + 1);
-                    String sNew = s.replaceAll(String.valueOf(rowEnd), String.valueOf(rowEndNew));
-                    sheet.setPrintRanges(sNew);
-                    System.err.println(" ******  Replace print ranges; Old:" + rowEnd + "--" + s + " New:" + rowEndNew + "--" + sNew);
-                }
-            }
+        if (nbPage > 1) {
+            setPrintRanges(sheet, nbPage);
 
             // le nombre d'éléments ne tient pas dans le tableau du modéle
             sheet.duplicateFirstRows(endLine, 1);
@@ -178,16 +185,230 @@ public class OOgenerationListeXML {
             if (nbPage > 2) {
                 sheet.duplicateFirstRows(endPageLine, nbPage - 2);
             }
-            String pageRef = tableau.getAttributeValue("pageRef");
-            if (pageRef != null && pageRef.trim().length() > 0) {
-                MutableCell<SpreadSheet> cell = sheet.getCellAt(pageRef);
-                cell.setValue("Page 1/" + nbPage);
-                for (int i = 1; i < nbPage; i++) {
-                    MutableCell<SpreadSheet> cell2 = sheet.getCellAt(cell.getX(), cell.getY() + (endPageLine * i));
-                    cell2.setValue("Page " + (i + 1) + "/" + nbPage);
+            final Point pageRef = getPageRef(tableau, sheet);
+            if (pageRef != null) {
+                for (int i = 0; i < nbPage; i++) {
+                    sheet.getCellAt(pageRef.x, pageRef.y + (endPageLine * i)).setValue(getPageLabel(i, nbPage));
+                }
+            }
+        }
+        fillTable(tableau, liste, sheet, mapStyle, style, new SheetOutput(sheet));
+    }
+
+    private static int getLastColumn(Element tableau, Sheet sheet) {
+        final Object oLastColTmp = tableau.getAttributeValue("lastColumn");
+        return oLastColTmp == null ? -1 : sheet.resolveHint(oLastColTmp.toString() + 1).x + 1;
+    }
+
+    private static Point getPageRef(Element tableau, Sheet sheet) {
+        final String pageRef = tableau.getAttributeValue("pageRef");
+        return pageRef == null || pageRef.trim().length() == 0 ? null : sheet.resolveHint(pageRef);
+    }
+
+    private static String getPageLabel(int page, int nbPage) {
+        return "Page " + (page + 1) + "/" + nbPage;
+    }
+
+    /**
+     * Etend la zone d'impression aux pages ajoutées.
+     * 
+     * @param sheet la feuille du modèle
+     * @param nbPage le nombre de pages du tableau
+     */
+    private static void setPrintRanges(Sheet sheet, int nbPage) {
+        Object printRangeObj = sheet.getPrintRanges();
+        if (printRangeObj != null) {
+            String s = printRangeObj.toString();
+            String[] range = s.split(":");
+
+            for (int i = 0; i < range.length; i++) {
+                String string = range[i];
+                range[i] = string.subSequence(string.indexOf('.') + 1, string.length()).toString();
+            }
+
+            int rowEnd = -1;
+            if (range.length > 1) {
+                rowEnd = sheet.resolveHint(range[1]).y + 1;
+                int rowEndNew = rowEnd * (nbPage + 1);
+                String sNew = s.replaceAll(String.valueOf(rowEnd), String.valueOf(rowEndNew));
+                sheet.setPrintRanges(sNew);
+                System.err.println(" ******  Replace print ranges; Old:" + rowEnd + "--" + s + " New:" + rowEndNew + "--" + sNew);
+            }
+        }
+    }
+
+    /**
+     * Destination des cellules d'un tableau : rien (pour compter les pages), la feuille du modèle
+     * ou le fichier en cours d'écriture.
+     */
+    private static interface TableOutput {
+        /**
+         * Remplit une cellule.
+         * 
+         * @param x la colonne
+         * @param y la ligne, à partir de 0
+         * @param value valeur à insérer dans la cellule
+         * @param styleOO style à appliquer, <code>null</code> pour garder celui du modèle
+         * @param replace efface ou non le contenu original de la cellule
+         * @param controlLine si la valeur doit être divisée sur 2 lignes en cas de retour à la
+         *        ligne
+         * @return le nombre de lignes occupées
+         * @throws IOException if an error occurs while writing.
+         */
+        int fill(int x, int y, Object value, String styleOO, boolean replace, boolean controlLine) throws IOException;
+    }
+
+    private static final TableOutput PAGE_COUNT = new TableOutput() {
+        @Override
+        public int fill(int x, int y, Object value, String styleOO, boolean replace, boolean controlLine) {
+            return isSplit(value, controlLine) ? 2 : 1;
+        }
+    };
+
+    private static final class SheetOutput implements TableOutput {
+        private final Sheet sheet;
+
+        public SheetOutput(Sheet sheet) {
+            this.sheet = sheet;
+        }
+
+        @Override
+        public int fill(int x, int y, Object value, String styleOO, boolean replace, boolean controlLine) {
+            if (!this.sheet.isCellValid(x, y)) {
+                System.err.println("Cell not valid at " + x + ", " + y);
+                return 1;
+            }
+            return OOgenerationListeXML.fill(x, y, value, this.sheet, replace, null, styleOO, controlLine);
+        }
+    }
+
+    /**
+     * Ecrit les lignes du fichier dans l'ordre, en reprenant les pages créées en mémoire par
+     * {@link OOgenerationListeXML#parseListeXML(Element, List, Sheet, Map)} : les lignes sans
+     * valeur sont copiées du modèle, les autres sont écrites à partir des cellules remplies. Seules
+     * les lignes encore modifiables sont gardées en mémoire.
+     */
+    private static final class StreamedTable implements TableOutput {
+        private final SpreadSheetWriter w;
+        private final Sheet sheet;
+        private final Element table;
+        private final int firstLine, endPageLine, lineToAdd, nbPage;
+        private final Point pageRef;
+        // lignes remplies pas encore écrites
+        private final SortedMap<Integer, Object[]> values = new TreeMap<Integer, Object[]>();
+        private final Map<Integer, String[]> styles = new HashMap<Integer, String[]>();
+        private final Map<Integer, String[]> templateStyles = new HashMap<Integer, String[]>();
+        private int width;
+        // nombre de lignes écrites
+        private int written;
+
+        public StreamedTable(SpreadSheetWriter w, Element tableau, Sheet sheet, int nbPage) {
+            this.w = w;
+            this.sheet = sheet;
+            this.table = sheet.getElement();
+            this.firstLine = Integer.valueOf(tableau.getAttributeValue("firstLine"));
+            this.endPageLine = Integer.valueOf(tableau.getAttributeValue("endPageLine"));
+            this.lineToAdd = this.endPageLine - Integer.valueOf(tableau.getAttributeValue("endLine"));
+            this.nbPage = nbPage;
+            this.pageRef = nbPage > 1 ? getPageRef(tableau, sheet) : null;
+            this.width = 1;
+            for (final Object o : tableau.getChildren("element")) {
+                this.width = Math.max(this.width, sheet.resolveHint(((Element) o).getAttributeValue("location").trim() + 1).x + 1);
+            }
+            this.written = 0;
+        }
+
+        public void start() throws IOException {
+            this.w.startTable(this.table);
+        }
+
+        @Override
+        public int fill(int x, int y, Object value, String styleOO, boolean replace, boolean controlLine) throws IOException {
+            // les cellules sont remplies ligne par ligne, seule la valeur divisée d'une cellule
+            // précédente peut se trouver sur la ligne suivante
+            this.flush(y - 1);
+            if (isSplit(value, controlLine)) {
+                final String s = value.toString();
+                this.set(x, y, s.substring(0, s.indexOf('\n')), styleOO);
+                this.set(x, y + 1, s.substring(s.indexOf('\n') + 1).replace('\n', ','), null);
+                return 2;
+            } else {
+                this.set(x, y, value, styleOO);
+                return 1;
+            }
+        }
+
+        private void set(int x, int y, Object value, String styleOO) {
+            if (x >= this.width) {
+                this.width = x + 1;
+            }
+            Object[] rowValues = this.values.get(y);
+            if (rowValues == null) {
+                rowValues = new Object[this.width];
+                this.values.put(y, rowValues);
+                this.styles.put(y, this.getTemplateStyles(this.getTemplateRow(y)).clone());
+            } else if (x >= rowValues.length) {
+                rowValues = Arrays.copyOf(rowValues, this.width);
+                this.values.put(y, rowValues);
+                this.styles.put(y, Arrays.copyOf(this.styles.get(y), this.width));
+            }
+            rowValues[x] = value;
+            if (styleOO != null) {
+                this.styles.get(y)[x] = styleOO;
+            }
+        }
+
+        // ligne du modèle correspondant à la ligne y du fichier
+        private int getTemplateRow(int y) {
+            final int page = y / this.endPageLine;
+            final int row = y % this.endPageLine;
+            if (page >= this.nbPage) {
+                // après la dernière page
+                return y - (this.nbPage - 1) * this.endPageLine;
+            } else if (page == this.nbPage - 1 || row <= this.firstLine) {
+                return row;
+            } else if (row <= this.firstLine + this.lineToAdd) {
+                // lignes ajoutées aux pages pleines
+                return this.firstLine;
+            } else {
+                return row - this.lineToAdd;
+            }
+        }
+
+        private String[] getTemplateStyles(int templateRow) {
+            String[] res = this.templateStyles.get(templateRow);
+            if (res == null || res.length < this.width) {
+                res = new String[this.width];
+                for (int x = 0; x < this.width && x < this.sheet.getColumnCount(); x++) {
+                    res[x] = this.sheet.getStyleNameAt(x, templateRow);
+                }
+                this.templateStyles.put(templateRow, res);
+            }
+            return res;
+        }
+
+        // écrit les lignes avant la ligne y
+        private void flush(int y) throws IOException {
+            while (this.written < y) {
+                final Object[] rowValues = this.values.remove(this.written);
+                if (rowValues == null) {
+                    final int templateRow = this.getTemplateRow(this.written);
+                    if (this.pageRef != null && templateRow == this.pageRef.y) {
+                        this.sheet.getCellAt(this.pageRef.x, this.pageRef.y).setValue(getPageLabel(this.written / this.endPageLine, this.nbPage));
+                    }
+                    this.w.writeRows(this.table, templateRow, templateRow + 1);
+                } else {
+                    this.w.writeRow(Arrays.asList(rowValues), Arrays.asList(this.styles.remove(this.written)));
                 }
+                this.written++;
             }
-            fillTable(tableau, liste, sheet, mapStyle, false, style);
+        }
+
+        public void end() throws IOException {
+            this.flush(Math.max(this.nbPage * this.endPageLine, this.values.isEmpty() ? 0 : this.values.lastKey() + 1));
+            // lignes du modèle après la dernière page
+            this.w.writeRows(this.table, this.getTemplateRow(this.written), this.sheet.getRowCount());
+            this.w.endTable();
         }
     }
 
@@ -195,21 +416,23 @@ public class OOgenerationListeXML {
      * Remplit le tableau d'éléments avec les données
      * 
      * @param tableau Element Xml contenant les informations sur le tableau
-     * @param elt SQLElement (ex : Bon de livraison)
-     * @param id id de l'élément de la table
-     * @param sheet feuille calc à remplir
+     * @param liste les valeurs des lignes
+     * @param sheet feuille calc du modèle
      * @param mapStyle styles trouvés dans la page
-     * @param test remplir ou non avec les valeurs
+     * @param style le style de chaque ligne
+     * @param out où remplir les cellules
      * @return le nombre de page
+     * @throws IOException if an error occurs while writing.
      */
-    private static int fillTable(Element tableau, List<Map<String, Object>> liste, Sheet sheet, Map<String, Map<Integer, String>> mapStyle, boolean test, Map<Integer, String> style) {
+    private static int fillTable(Element tableau, List<Map<String, Object>> liste, Sheet sheet, Map<String, Map<Integer, String>> mapStyle, Map<Integer, String> style, TableOutput out)
+            throws IOException {
 
         int nbPage = 1;
         int currentLineTmp = Integer.valueOf(tableau.getAttributeValue("firstLine"));
         int currentLine = Integer.valueOf(tableau.getAttributeValue("firstLine"));
         int endPageLine = Integer.valueOf(tableau.getAttributeValue("endPageLine"));
 
-        List listElts = tableau.getChildren("element");
+        List<Element> listElts = tableau.getChildren("element");
 
         Object o = null;
         String columnSousTotal = tableau.getAttributeValue("groupSousTotalColumn");
@@ -221,56 +444,32 @@ public class OOgenerationListeXML {
 
         for (int i = 0; i < liste.size(); i++) {
             Map<String, Object> mValues = liste.get(i);
-            // System.err.println(mValues);
 
-            String styleName = null;
+            String styleName = style == null ? null : style.get(i);
+            Map<Integer, String> mTmp = styleName == null ? null : mapStyle.get(styleName);
             int nbCellule = 1;
             // on remplit chaque cellule de la ligne
-            for (Iterator j = listElts.iterator(); j.hasNext();) {
+            for (Element e : listElts) {
 
-                if ((currentLine - 1 + fill("A1", "test", sheet, false, null, null, true)) > (endPageLine * nbPage)) {
+                if (currentLine > (endPageLine * nbPage)) {
                     currentLine = currentLineTmp + endPageLine;
                     currentLineTmp = currentLine;
                     nbPage++;
                 }
 
-                Element e = (Element) j.next();
-                String loc = e.getAttributeValue("location").trim() + currentLine;
+                final String location = e.getAttributeValue("location").trim();
                 boolean controlLine = e.getAttributeValue("controleMultiline") == null ? true : !e.getAttributeValue("controleMultiline").equalsIgnoreCase("false");
                 // Type normaux fill ou replace
                 if (e.getAttributeValue("type").equalsIgnoreCase("fill") || e.getAttributeValue("type").equalsIgnoreCase("replace")) {
 
                     Object value = getElementValue(e, mValues);
-                    if (e.getAttributeValue("location").trim().equals(columnSousTotal)) {
-                        if (o != null) {
-                            if (!o.equals(value)) {
-                                for (String object : mapSousTotal.keySet()) {
-                                    System.err.println(object + " = " + mapSousTotal.get(object));
-                                    String styleSousTotalName = "Titre 1";
-                                    if (style != null && style.get(i) != null) {
-                                        styleSousTotalName = style.get(i);
-                                    }
-                                    Map<Integer, String> mTmp = mapStyle.get(styleSousTotalName);
-                                    String styleOO = null;
-                                    String styleOOA = null;
-                                    if (mTmp != null) {
-
-                                        Object oTmp = mTmp.get(Integer.valueOf(sheet.resolveHint(loc).x));
-                                        styleOO = oTmp == null ? null : oTmp.toString();
-                                        Object oTmpA = mTmp.get(Integer.valueOf(0));
-                                        styleOOA = oTmpA == null ? null : oTmpA.toString();
-                                    }
-                                    fill(test ? "A1" : "A" + currentLine, "Sous total", sheet, false, null, styleOOA, test, controlLine);
-                                    fill(test ? "A1" : object + "" + currentLine, mapSousTotal.get(object), sheet, false, null, styleOO, test, controlLine);
-                                }
-                                mapSousTotal.clear();
-                                currentLine++;
-                                loc = e.getAttributeValue("location").trim() + currentLine;
-                                o = value;
-                            }
-                        } else {
-                            o = value;
+                    if (location.equals(columnSousTotal)) {
+                        if (o != null && !o.equals(value)) {
+                            fillTotal(out, sheet, "Sous total", mapSousTotal, styleName != null ? styleName : "Titre 1", mapStyle, currentLine);
+                            mapSousTotal.clear();
+                            currentLine++;
                         }
+                        o = value;
                     }
                     if (value instanceof Double) {
                         final String attributeValue = e.getAttributeValue("total");
@@ -285,61 +484,56 @@ public class OOgenerationListeXML {
                     }
                     boolean replace = e.getAttributeValue("type").equalsIgnoreCase("replace");
 
-                    if (test || sheet.isCellValid(sheet.resolveHint(loc).x, sheet.resolveHint(loc).y)) {
-                        if (style != null) {
-                            styleName = style.get(i);
-                        }
-                        Map mTmp = styleName == null ? null : (Map) mapStyle.get(styleName);
-                        String styleOO = null;
-                        if (mTmp != null) {
-
-                            Object oTmp = mTmp.get(new Integer(sheet.resolveHint(loc).x));
-                            styleOO = oTmp == null ? null : oTmp.toString();
-                            // System.err.println("Set style " + styleOO);
-                        }
-
-                        int tmpCelluleAffect = fill(test ? "A1" : loc, value, sheet, replace, null, styleOO, test, controlLine);
-                        nbCellule = Math.max(nbCellule, tmpCelluleAffect);
-                    } else {
-                        System.err.println("Cell not valid at " + loc);
-                    }
+                    final int x = sheet.resolveHint(location + 1).x;
+                    String styleOO = mTmp == null ? null : mTmp.get(x);
+                    int tmpCelluleAffect = out.fill(x, currentLine - 1, value, styleOO, replace, controlLine);
+                    nbCellule = Math.max(nbCellule, tmpCelluleAffect);
                 }
             }
             currentLine += nbCellule;
 
         }
-        for (String object : mapSousTotal.keySet()) {
-            System.err.println(object + " = " + mapSousTotal.get(object));
-            Map<Integer, String> mTmp = mapStyle.get("Titre 1");
-            String styleOO = null;
-            String styleOOA = null;
-            if (mTmp != null) {
-
-                Object oTmp = mTmp.get(Integer.valueOf(sheet.resolveHint(object + "" + currentLine).x));
-                styleOO = oTmp == null ? null : oTmp.toString();
-                Object oTmpA = mTmp.get(Integer.valueOf(0));
-                styleOOA = oTmpA == null ? null : oTmpA.toString();
-            }
+        fillTotal(out, sheet, "Sous total", mapSousTotal, "Titre 1", mapStyle, currentLine);
+        fillTotal(out, sheet, "Total", mapTotal, "Titre 1", mapStyle, currentLine + 1);
+        return nbPage;
+    }
 
-            fill(test ? "A1" : "A" + currentLine, "Sous total", sheet, false, null, styleOOA, test);
-            fill(test ? "A1" : object + "" + currentLine, mapSousTotal.get(object), sheet, false, null, styleOO, test);
+    private static void fillTotal(TableOutput out, Sheet sheet, String label, Map<String, Double> totals, String styleName, Map<String, Map<Integer, String>> mapStyle, int line)
+            throws IOException {
+        if (totals.isEmpty()) {
+            return;
+        }
+        final Map<Integer, String> mTmp = mapStyle.get(styleName);
+        out.fill(0, line - 1, label, mTmp == null ? null : mTmp.get(0), false, true);
+        for (String object : totals.keySet()) {
+            System.err.println(object + " = " + totals.get(object));
+            final int x = sheet.resolveHint(object.trim() + 1).x;
+            out.fill(x, line - 1, totals.get(object), mTmp == null ? null : mTmp.get(x), false, true);
         }
-        for (String object : mapTotal.keySet()) {
-            System.err.println(object + " = " + mapTotal.get(object));
-            Map<Integer, String> mTmp = mapStyle.get("Titre 1");
-            String styleOO = null;
-            String styleOOA = null;
-            if (mTmp != null) {
+    }
 
-                Object oTmp = mTmp.get(Integer.valueOf(sheet.resolveHint(object + "" + (currentLine + 1)).x));
-                styleOO = oTmp == null ? null : oTmp.toString();
-                Object oTmpA = mTmp.get(Integer.valueOf(0));
-                styleOOA = oTmpA == null ? null : oTmpA.toString();
-            }
-            fill(test ? "A1" : "A" + (currentLine + 1), "Total", sheet, false, null, styleOOA, test);
-            fill(test ? "A1" : object + "" + (currentLine + 1), mapTotal.get(object), sheet, false, null, styleOO, test);
+    /**
+     * Ecrit le tableau directement dans le fichier, page par page comme
+     * {@link #parseListeXML(Element, List, Sheet, Map)} mais sans créer les pages en mémoire.
+     * 
+     * @param w le fichier en cours d'écriture
+     * @param tableau Element Xml contenant les informations sur le tableau
+     * @param liste les valeurs des lignes
+     * @param sheet la feuille du modèle, déjà remplie hors tableau
+     * @param mapStyle styles trouvés dans la page
+     * @param style le style de chaque ligne
+     */
+    private static void writeTable(SpreadSheetWriter w, Element tableau, List<Map<String, Object>> liste, Sheet sheet, Map<String, Map<Integer, String>> mapStyle, Map<Integer, String> style)
+            throws IOException {
+        final int nbPage = fillTable(tableau, liste, sheet, mapStyle, style, PAGE_COUNT);
+        System.err.println("Nombre de page == " + nbPage);
+        if (nbPage > 1) {
+            setPrintRanges(sheet, nbPage);
         }
-        return nbPage;
+        final StreamedTable out = new StreamedTable(w, tableau, sheet, nbPage);
+        out.start();
+        fillTable(tableau, liste, sheet, mapStyle, style, out);
+        out.end();
     }
 
     private static void incrementTotal(String field, Double value, Map<String, Double> map) {
@@ -396,58 +590,58 @@ public class OOgenerationListeXML {
         return mValues.get(field);
     }
 
-    private static int fill(String location, Object value, Sheet sheet, boolean replace, String replacePattern, String styleOO, boolean test) {
-        return fill(location, value, sheet, replace, replacePattern, styleOO, test, true);
+    private static int fill(String location, Object value, Sheet sheet, boolean replace, String replacePattern, String styleOO, boolean controlLine) {
+        final Point p = sheet.resolveHint(location);
+        // est ce que la cellule est valide
+        if (!sheet.isCellValid(p.x, p.y)) {
+            return 1;
+        }
+        return fill(p.x, p.y, value, sheet, replace, replacePattern, styleOO, controlLine);
+    }
+
+    private static boolean isSplit(Object value, boolean controlLine) {
+        return controlLine && value != null && value.toString().indexOf('\n') >= 0;
     }
 
     /**
      * Permet de remplir une cellule
      * 
-     * @param location position de la cellule exemple : A3
+     * @param x colonne de la cellule
+     * @param y ligne de la cellule
      * @param value valeur à insérer dans la cellule
      * @param sheet feuille sur laquelle on travaille
      * @param replace efface ou non le contenu original de la cellule
      * @param styleOO style à appliquer
      */
-    private static int fill(String location, Object value, Sheet sheet, boolean replace, String replacePattern, String styleOO, boolean test, boolean controlLine) {
+    private static int fill(int x, int y, Object value, Sheet sheet, boolean replace, String replacePattern, String styleOO, boolean controlLine) {
 
         int nbCellule = 1;
-        // est ce que la cellule est valide
-        if (test || sheet.isCellValid(sheet.resolveHint(location).x, sheet.resolveHint(location).y)) {
-
-            // on divise en 2 cellules si il y a des retours à la ligne
-            if (controlLine && (value != null && value.toString().indexOf('\n') >= 0)) {
-
-                if (!test) {
-                    MutableCell cell = sheet.getCellAt(location);
-                    String firstPart = value.toString().substring(0, value.toString().indexOf('\n'));
-                    String secondPart = value.toString().substring(value.toString().indexOf('\n') + 1, value.toString().length());
-                    secondPart = secondPart.replace('\n', ',');
-                    setCellValue(cell, firstPart, replace, replacePattern);
-                    if (styleOO != null) {
-                        cell.setStyleName(styleOO);
-                    }
+        MutableCell cell = sheet.getCellAt(x, y);
+        // on divise en 2 cellules si il y a des retours à la ligne
+        if (isSplit(value, controlLine)) {
+
+            String firstPart = value.toString().substring(0, value.toString().indexOf('\n'));
+            String secondPart = value.toString().substring(value.toString().indexOf('\n') + 1, value.toString().length());
+            secondPart = secondPart.replace('\n', ',');
+            setCellValue(cell, firstPart, replace, replacePattern);
+            if (styleOO != null) {
+                cell.setStyleName(styleOO);
+            }
 
-                    Point p = sheet.resolveHint(location);
-                    try {
-                        MutableCell cellSec = sheet.getCellAt(p.x, p.y + 1);
-                        setCellValue(cellSec, secondPart, replace, replacePattern);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
-                }
-                nbCellule = 2;
-            } else {
-                if (!test) {
-                    MutableCell cell = sheet.getCellAt(location);
-                    // application de la valeur
-                    setCellValue(cell, value, replace, replacePattern);
-
-                    // Application du style
-                    if (styleOO != null) {
-                        cell.setStyleName(styleOO);
-                    }
-                }
+            try {
+                MutableCell cellSec = sheet.getCellAt(x, y + 1);
+                setCellValue(cellSec, secondPart, replace, replacePattern);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+            nbCellule = 2;
+        } else {
+            // application de la valeur
+            setCellValue(cell, value, replace, replacePattern);
+
+            // Application du style
+            if (styleOO != null) {
+                cell.setStyleName(styleOO);
             }
         }
         return nbCellule;
@@ -493,6 +687,77 @@ public class OOgenerationListeXML {
             throw new IllegalArgumentException();
         }
 
+        final File fDest = getDestination(pathDest, fileName);
+
+        // Sauvegarde
+        try {
+            ssheet.saveAs(fDest);
+        } catch (FileNotFoundException e) {
+            showNotCreated(fDest);
+            e.printStackTrace();
+        }
+
+        copyPrintConfiguration(pathDest, fileName, templateId, rowLanguage);
+        return fDest;
+    }
+
+    /**
+     * Sauver le document en écrivant les tableaux directement dans le fichier, sans les créer en
+     * mémoire.
+     * 
+     * @param ssheet le modèle, déjà rempli hors tableaux
+     * @param racine la configuration du modèle
+     * @param liste les valeurs des tableaux
+     * @param mapStyle le style des lignes des tableaux
+     * @param pathDest répertoire de destination du fichier
+     * @param fileName nom du fichier à créer
+     * @return un File pointant sur le fichier créé
+     * @throws IOException
+     */
+    private static File saveStreamedSpreadSheet(SpreadSheet ssheet, Element racine, Map<Integer, List<Map<String, Object>>> liste, Map<Integer, Map<Integer, String>> mapStyle, File pathDest,
+            String fileName, String templateId, SQLRow rowLanguage) throws IOException {
+
+        // Test des arguments
+        if (ssheet == null || pathDest == null || fileName.trim().length() == 0) {
+            throw new IllegalArgumentException();
+        }
+
+        // la recherche modifie le modèle, elle doit donc être faite avant l'écriture
+        final Map<Integer, Map<String, Map<Integer, String>>> sheetsStyles = new HashMap<Integer, Map<String, Map<Integer, String>>>();
+        for (Integer i : liste.keySet()) {
+            final Element tableau = getTableElement(racine, i);
+            if (tableau != null && liste.get(i) != null) {
+                final Sheet sheet = ssheet.getSheet(i);
+                sheetsStyles.put(i, searchStyle(sheet, getLastColumn(tableau, sheet), Integer.valueOf(tableau.getAttributeValue("endPageLine"))));
+            }
+        }
+
+        final File fDest = getDestination(pathDest, fileName);
+        try {
+            final SpreadSheetWriter w = new SpreadSheetWriter(new BufferedOutputStream(new FileOutputStream(fDest), 512 * 1024), ssheet.getPackage());
+            try {
+                for (int i = 0; i < ssheet.getSheetCount(); i++) {
+                    final Sheet sheet = ssheet.getSheet(i);
+                    final Map<String, Map<Integer, String>> styles = sheetsStyles.get(i);
+                    if (styles == null) {
+                        w.writeElement(sheet.getElement());
+                    } else {
+                        writeTable(w, getTableElement(racine, i), liste.get(i), sheet, styles, mapStyle.get(i));
+                    }
+                }
+            } finally {
+                w.close();
+            }
+        } catch (FileNotFoundException e) {
+            showNotCreated(fDest);
+            e.printStackTrace();
+        }
+
+        copyPrintConfiguration(pathDest, fileName, templateId, rowLanguage);
+        return fDest;
+    }
+
+    private static File getDestination(File pathDest, String fileName) {
         // Renommage du fichier si il existe déja
         File fDest = new File(pathDest, fileName + ".ods");
 
@@ -501,25 +766,22 @@ public class OOgenerationListeXML {
         }
 
         SheetUtils.convertToOldFile(((ComptaPropsConfiguration) Configuration.getInstance()).getRootSociete(), fileName, pathDest, fDest);
+        return fDest;
+    }
 
-        // Sauvegarde
-        try {
-            ssheet.saveAs(fDest);
-        } catch (FileNotFoundException e) {
-            final File F = fDest;
-            SwingUtilities.invokeLater(new Runnable() {
-                public void run() {
-                    try {
-                        JOptionPane.showMessageDialog(null, "Le fichier " + F.getCanonicalPath() + " n'a pu être créé. \n Vérifiez qu'il n'est pas déjà ouvert.");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    private static void showNotCreated(final File f) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                try {
+                    JOptionPane.showMessageDialog(null, "Le fichier " + f.getCanonicalPath() + " n'a pu être créé. \n Vérifiez qu'il n'est pas déjà ouvert.");
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            });
-
-            e.printStackTrace();
-        }
+            }
+        });
+    }
 
+    private static void copyPrintConfiguration(File pathDest, String fileName, String templateId, SQLRow rowLanguage) throws IOException {
         // Copie de l'odsp
         try {
             File odspOut = new File(pathDest, fileName + ".odsp");
@@ -530,8 +792,6 @@ public class OOgenerationListeXML {
         } catch (FileNotFoundException e) {
             System.err.println("Le fichier odsp n'existe pas.");
         }
-
-        return fDest;
     }
 
     /**
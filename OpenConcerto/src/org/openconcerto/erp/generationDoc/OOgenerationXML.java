@@ -39,9 +39,10 @@ import java.math.BigDecimal;
 import java.math.MathContext;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -76,21 +77,29 @@ public class OOgenerationXML {
     // Cache pour les SQLRow du tableau
     private Map<String, List<? extends SQLRowAccessor>> rowsEltCache = new HashMap<String, List<? extends SQLRowAccessor>>();
     private final OOXMLCache rowRefCache = new OOXMLCache();
+    // modèle en cours de génération, null s'il n'est pas en cache
+    private TemplateCache.Template template;
+    // lignes chargées par DocumentBatch
+    private Map<SQLField, SQLRowAccessor> prefetchedForeigns = null;
+    private Map<SQLTable, List<SQLRowAccessor>> prefetchedReferents = null;
     private final SQLRow row;
 
     public OOgenerationXML(SQLRow row) {
         this.row = row;
     }
 
-    public synchronized File createDocument(String templateId, String typeTemplate, File outputDirectory, final String expectedFileName, SQLRow rowLanguage) {
-        final String langage = rowLanguage != null ? rowLanguage.getString("CHEMIN") : null;
-
-        cacheStyle.clear();
-        rowRefCache.clearCache();
-        rowsEltCache.clear();
-        taxe.clear();
-        cacheForeign.clear();
+    /**
+     * Lignes déjà chargées, pour éviter une requête par document.
+     * 
+     * @param foreigns les lignes pointées par {@link #row}.
+     * @param referents les lignes des tableaux pointant sur {@link #row}.
+     */
+    void setPrefetchedRows(Map<SQLField, SQLRowAccessor> foreigns, Map<SQLTable, List<SQLRowAccessor>> referents) {
+        this.prefetchedForeigns = foreigns;
+        this.prefetchedReferents = referents;
+    }
 
+    public synchronized File createDocument(String templateId, String typeTemplate, File outputDirectory, final String expectedFileName, SQLRow rowLanguage) {
         File fDest = new File(outputDirectory, expectedFileName);
 
         if (fDest.exists()) {
@@ -118,52 +127,8 @@ public class OOgenerationXML {
             }
         }
 
-        Date d = new Date();
-        SAXBuilder builder = new SAXBuilder();
         try {
-
-            if (needAnnexe(templateId, typeTemplate, row, rowLanguage)) {
-                // check if it exists
-                final String annexeTemplateId = templateId + "_annexe";
-                InputStream annexeStream = TemplateManager.getInstance().getTemplate(annexeTemplateId, langage, typeTemplate);
-                if (annexeStream != null) {
-                    templateId = annexeTemplateId;
-                    System.err.println("modele With annexe " + templateId);
-                }
-            }
-
-            System.err.println("Using template id: " + templateId);
-            final InputStream xmlConfiguration = TemplateManager.getInstance().getTemplateConfiguration(templateId, langage, typeTemplate);
-
-            Document doc = builder.build(xmlConfiguration);
-
-            // On initialise un nouvel élément racine avec l'élément racine du document.
-            Element racine = doc.getRootElement();
-
-            // Liste des <element>
-            List<Element> listElts = racine.getChildren("element");
-
-            // Création et génération du fichier OO
-            final InputStream template = TemplateManager.getInstance().getTemplate(templateId, langage, typeTemplate);
-
-            final SpreadSheet spreadSheet = new ODPackage(template).getSpreadSheet();
-            try {
-                // On remplit les cellules de la feuille
-                parseElementsXML(listElts, row, spreadSheet);
-
-                // Liste des <element>
-                List<Element> listTable = racine.getChildren("table");
-
-                for (Element tableChild : listTable) {
-                    // On remplit les cellules du tableau
-                    parseTableauXML(tableChild, spreadSheet, rowLanguage);
-                }
-            } catch (Exception e) {
-                ExceptionHandler.handle("Impossible de remplir le document " + templateId + " " + ((rowLanguage == null) ? "" : rowLanguage.getString("CHEMIN")), e);
-            }
-            // Sauvegarde du fichier
-            return saveSpreadSheet(spreadSheet, outputDirectory, expectedFileName, templateId, rowLanguage);
-
+            return generate(templateId, typeTemplate, outputDirectory, expectedFileName, rowLanguage, true);
         } catch (final JDOMException e) {
 
             e.printStackTrace();
@@ -184,6 +149,110 @@ public class OOgenerationXML {
         return null;
     }
 
+    /**
+     * Génère le document sans demander de confirmation, l'ancien document est archivé.
+     * 
+     * @param interactive <code>false</code> pour que les erreurs soient remontées au lieu d'être
+     *        affichées.
+     * @return le fichier créé.
+     * @throws IOException si le document n'a pu être créé.
+     * @throws JDOMException si la configuration du modèle est incorrecte.
+     */
+    synchronized File generate(String templateId, String typeTemplate, File outputDirectory, final String expectedFileName, SQLRow rowLanguage, boolean interactive) throws IOException,
+            JDOMException {
+        final String langage = rowLanguage != null ? rowLanguage.getString("CHEMIN") : null;
+
+        cacheStyle.clear();
+        rowRefCache.clearCache();
+        rowsEltCache.clear();
+        taxe.clear();
+        cacheForeign.clear();
+        if (this.prefetchedForeigns != null) {
+            for (final Map.Entry<SQLField, SQLRowAccessor> e : this.prefetchedForeigns.entrySet()) {
+                rowRefCache.putForeignRow(e.getKey(), e.getValue());
+            }
+        }
+        if (this.prefetchedReferents != null) {
+            for (final Map.Entry<SQLTable, List<SQLRowAccessor>> e : this.prefetchedReferents.entrySet()) {
+                rowRefCache.putReferentRows(row, e.getKey(), e.getValue());
+            }
+        }
+
+        if (needAnnexe(templateId, typeTemplate, row, rowLanguage)) {
+            // check if it exists
+            final String annexeTemplateId = templateId + "_annexe";
+            final boolean annexeExists;
+            if (TemplateManager.getInstance().getCachedTemplate(annexeTemplateId, langage, typeTemplate) != null) {
+                annexeExists = true;
+            } else {
+                final InputStream annexeStream = TemplateManager.getInstance().getTemplate(annexeTemplateId, langage, typeTemplate);
+                annexeExists = annexeStream != null;
+                if (annexeExists) {
+                    annexeStream.close();
+                }
+            }
+            if (annexeExists) {
+                templateId = annexeTemplateId;
+                System.err.println("modele With annexe " + templateId);
+            }
+        }
+
+        System.err.println("Using template id: " + templateId);
+        this.template = getCachedTemplate(templateId, langage, typeTemplate);
+        final Document doc = getConfiguration(templateId, langage, typeTemplate);
+
+        // On initialise un nouvel élément racine avec l'élément racine du document.
+        Element racine = doc.getRootElement();
+
+        // Liste des <element>
+        List<Element> listElts = racine.getChildren("element");
+
+        // Création et génération du fichier OO
+        final SpreadSheet spreadSheet = getSpreadSheet(templateId, langage, typeTemplate);
+        try {
+            // On remplit les cellules de la feuille
+            parseElementsXML(listElts, row, spreadSheet);
+
+            // Liste des <element>
+            List<Element> listTable = racine.getChildren("table");
+
+            for (Element tableChild : listTable) {
+                // On remplit les cellules du tableau
+                parseTableauXML(tableChild, spreadSheet, rowLanguage);
+            }
+        } catch (Exception e) {
+            final String msg = "Impossible de remplir le document " + templateId + " " + ((rowLanguage == null) ? "" : rowLanguage.getString("CHEMIN"));
+            if (!interactive) {
+                throw new IllegalStateException(msg, e);
+            }
+            ExceptionHandler.handle(msg, e);
+        }
+        // Sauvegarde du fichier
+        return saveSpreadSheet(spreadSheet, outputDirectory, expectedFileName, templateId, rowLanguage, interactive);
+    }
+
+    private static TemplateCache.Template getCachedTemplate(String templateId, String langage, String typeTemplate) throws IOException, JDOMException {
+        final TemplateCache.Template res = TemplateManager.getInstance().getCachedTemplate(templateId, langage, typeTemplate);
+        // sans configuration, laisse la lecture classique signaler l'erreur
+        return res == null || res.getConfiguration() == null ? null : res;
+    }
+
+    private Document getConfiguration(String templateId, String langage, String typeTemplate) throws IOException, JDOMException {
+        if (this.template != null) {
+            return this.template.getConfiguration();
+        }
+        final InputStream xmlConfiguration = TemplateManager.getInstance().getTemplateConfiguration(templateId, langage, typeTemplate);
+        return new SAXBuilder().build(xmlConfiguration);
+    }
+
+    private SpreadSheet getSpreadSheet(String templateId, String langage, String typeTemplate) throws IOException {
+        if (this.template != null) {
+            return this.template.createSpreadSheet();
+        }
+        final InputStream template = TemplateManager.getInstance().getTemplate(templateId, langage, typeTemplate);
+        return new ODPackage(template).getSpreadSheet();
+    }
+
     /**
      * Remplit le tableau
      * 
@@ -718,7 +787,7 @@ public class OOgenerationXML {
      * @throws IOException
      */
 
-    private static File saveSpreadSheet(SpreadSheet ssheet, File pathDest, String fileName, String templateId, SQLRow rowLanguage) throws IOException {
+    private static File saveSpreadSheet(SpreadSheet ssheet, File pathDest, String fileName, String templateId, SQLRow rowLanguage, boolean interactive) throws IOException {
         final String langage = rowLanguage != null ? rowLanguage.getString("CHEMIN") : null;
         // Test des arguments
         if (ssheet == null || pathDest == null || fileName.trim().length() == 0) {
@@ -738,6 +807,9 @@ public class OOgenerationXML {
         try {
             ssheet.saveAs(fDest);
         } catch (FileNotFoundException e) {
+            if (!interactive) {
+                throw e;
+            }
             final File file = fDest;
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
@@ -776,6 +848,24 @@ public class OOgenerationXML {
 
         Map<String, Map<Integer, String>> mapStyleDef = StyleSQLElement.getMapAllStyle();
 
+        if (this.template == null) {
+            searchStyle(sheet, mapStyleDef, colEnd, rowEnd, null);
+        } else {
+            // La recherche ne dépend que du modèle, on ne la fait qu'une fois sur une copie vierge
+            final List<?> key = Arrays.asList(OOgenerationXML.class, sheet.getName(), colEnd, rowEnd, new HashSet<String>(mapStyleDef.keySet()));
+            TemplateCache.StyleScan scan = this.template.getStyleScan(key);
+            if (scan == null) {
+                scan = new TemplateCache.StyleScan(mapStyleDef);
+                searchStyle(this.template.createSpreadSheet().getSheet(sheet.getName()), mapStyleDef, colEnd, rowEnd, scan);
+                scan = this.template.putStyleScan(key, scan);
+            }
+            mapStyleDef = scan.apply(sheet);
+        }
+        cacheStyle.put(sheet, mapStyleDef);
+        return mapStyleDef;
+    }
+
+    private static void searchStyle(Sheet sheet, Map<String, Map<Integer, String>> mapStyleDef, int colEnd, int rowEnd, TemplateCache.StyleScan scan) {
         // on parcourt chaque ligne de la feuille pour recuperer les styles
         int columnCount = (colEnd == -1) ? sheet.getColumnCount() : (colEnd + 1);
         System.err.println("End column search : " + columnCount);
@@ -805,12 +895,17 @@ public class OOgenerationXML {
                         mapCellStyle.put(Integer.valueOf(x), cellStyle);
                         if (style.trim().length() != 0) {
                             c.clearValue();
+                            String newStyle = null;
                             if (!style.trim().equalsIgnoreCase("Normal") && mapStyleDef.get("Normal") != null) {
                                 String styleCell = mapStyleDef.get("Normal").get(Integer.valueOf(x));
                                 if (styleCell != null && styleCell.length() != 0) {
                                     c.setStyleName(styleCell);
+                                    newStyle = styleCell;
                                 }
                             }
+                            if (scan != null) {
+                                scan.addClearedCell(j, i, newStyle);
+                            }
                         }
                     }
                 } catch (IndexOutOfBoundsException e) {
@@ -823,19 +918,15 @@ public class OOgenerationXML {
                 mapStyleDef.put(style, mapCellStyle);
             }
         }
-        cacheStyle.put(sheet, mapStyleDef);
-        return mapStyleDef;
     }
 
     public boolean needAnnexe(String templateId, String typeTemplate, SQLRow row, SQLRow rowLanguage) {
         final String langage = rowLanguage != null ? rowLanguage.getString("CHEMIN") : null;
-        final SAXBuilder builder = new SAXBuilder();
         try {
-            final InputStream xmlConfiguration = TemplateManager.getInstance().getTemplateConfiguration(templateId, langage, typeTemplate);
-            final Document doc = builder.build(xmlConfiguration);
-            final InputStream template = TemplateManager.getInstance().getTemplate(templateId, langage, typeTemplate);
+            this.template = getCachedTemplate(templateId, langage, typeTemplate);
+            final Document doc = getConfiguration(templateId, langage, typeTemplate);
 
-            final SpreadSheet spreadSheet = new ODPackage(template).getSpreadSheet();
+            final SpreadSheet spreadSheet = getSpreadSheet(templateId, langage, typeTemplate);
 
             // On initialise un nouvel élément racine avec l'élément racine du document.
             Element racine = doc.getRootElement();
@@ -20,6 +20,7 @@ import org.openconcerto.erp.generationDoc.element.TypeModeleSQLElement;
 import org.openconcerto.erp.storage.CloudStorageEngine;
 import org.openconcerto.erp.storage.StorageEngine;
 import org.openconcerto.erp.storage.StorageEngines;
+import org.openconcerto.erp.storage.StorageQueue;
 import org.openconcerto.openoffice.OOUtils;
 import org.jopendocument.link.Component;
 import org.openconcerto.sql.Configuration;
@@ -28,9 +29,7 @@ import org.openconcerto.sql.model.SQLBase;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.utils.ExceptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.HashMap;
@@ -189,27 +188,20 @@ public abstract class SheetXml {
         } catch (Throwable e) {
             ExceptionHandler.handle("Impossible de créer le PDF.", e);
         }
+        // copiés dans la file d'envoi puis envoyés en arrière-plan, un service lent ou injoignable
+        // ne bloque pas la validation
         List<StorageEngine> engines = StorageEngines.getInstance().getActiveEngines();
         for (StorageEngine storageEngine : engines) {
             if (storageEngine.isConfigured() && storageEngine.allowAutoStorage()) {
+                final StorageQueue queue = StorageQueue.getInstance();
                 try {
-                    storageEngine.connect();
-                    final BufferedInputStream inStream = new BufferedInputStream(new FileInputStream(pdfFile));
-                    final String path = storagePath;
-                    storageEngine.store(inStream, path, pdfFile.getName(), true);
-                    inStream.close();
-                    storageEngine.disconnect();
+                    queue.add(storageEngine, pdfFile, storagePath, pdfFile.getName());
                 } catch (IOException e) {
                     ExceptionHandler.handle("Impossible de sauvegarder le PDF", e);
                 }
                 if (storageEngine instanceof CloudStorageEngine) {
                     try {
-                        storageEngine.connect();
-                        final BufferedInputStream inStream = new BufferedInputStream(new FileInputStream(generatedFile));
-                        final String path = storagePath;
-                        storageEngine.store(inStream, path, generatedFile.getName(), true);
-                        inStream.close();
-                        storageEngine.disconnect();
+                        queue.add(storageEngine, generatedFile, storagePath, generatedFile.getName());
                     } catch (IOException e) {
                         ExceptionHandler.handle("Impossible de sauvegarder le fichier généré", e);
                     }
@@ -32,7 +32,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -40,6 +42,7 @@ import java.util.Map;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
+import org.jdom.JDOMException;
 import org.jopendocument.model.OpenDocument;
 
 public abstract class SpreadSheetGenerator implements Runnable {
@@ -55,6 +58,9 @@ public abstract class SpreadSheetGenerator implements Runnable {
     private boolean exportPDF;
     private Map mapReplaceText;
     private String fODSP = null;
+    // modèle en cours de génération, null s'il n'est pas en cache
+    private TemplateCache.Template template = null;
+    private static final TemplateCache cache = new TemplateCache();
 
     protected static final String defaultLocationTemplate = "/Configuration/Template/Default/";
 
@@ -72,6 +78,23 @@ public abstract class SpreadSheetGenerator implements Runnable {
     }
 
     protected void searchStyle(Sheet sheet, Map<String, Map<Integer, String>> mapStyleDef, int colEnd, int rowEnd) {
+        if (this.template == null) {
+            searchStyle(sheet, mapStyleDef, colEnd, rowEnd, null);
+        } else {
+            // La recherche ne dépend que du modèle, on ne la fait qu'une fois sur une copie vierge
+            final List<?> key = Arrays.asList(SpreadSheetGenerator.class, sheet.getName(), colEnd, rowEnd, new HashSet<String>(mapStyleDef.keySet()));
+            TemplateCache.StyleScan scan = this.template.getStyleScan(key);
+            if (scan == null) {
+                final Map<String, Map<Integer, String>> m = new HashMap<String, Map<Integer, String>>(mapStyleDef);
+                scan = new TemplateCache.StyleScan(m);
+                searchStyle(this.template.createSpreadSheet().getSheet(sheet.getName()), m, colEnd, rowEnd, scan);
+                scan = this.template.putStyleScan(key, scan);
+            }
+            mapStyleDef.putAll(scan.apply(sheet));
+        }
+    }
+
+    private static void searchStyle(Sheet sheet, Map<String, Map<Integer, String>> mapStyleDef, int colEnd, int rowEnd, TemplateCache.StyleScan scan) {
 
         // on parcourt chaque ligne de la feuille pour recuperer les styles
         int columnCount = (colEnd == -1) ? sheet.getColumnCount() : (colEnd + 1);
@@ -98,6 +121,9 @@ public abstract class SpreadSheetGenerator implements Runnable {
                     mapCellStyle.put(new Integer(x), cellStyle);
                     if (style.trim().length() != 0) {
                         c.clearValue();
+                        if (scan != null) {
+                            scan.addClearedCell(j, i, null);
+                        }
                     }
                 }
                 x++;
@@ -181,10 +207,13 @@ public abstract class SpreadSheetGenerator implements Runnable {
     }
 
     protected SpreadSheet loadTemplate() throws IOException {
-        InputStream f = getStreamStatic(modelDir + File.separator + this.modele);
+        this.template = null;
+        String path = modelDir + File.separator + this.modele;
+        InputStream f = getStreamStatic(path);
         fODSP = modelDir + File.separator + this.modele + "p";
         if (f == null) {
-            f = getStreamStatic(defaultLocationTemplate + File.separator + this.modele);
+            path = defaultLocationTemplate + File.separator + this.modele;
+            f = getStreamStatic(path);
             fODSP = defaultLocationTemplate + File.separator + this.modele + "p";
             if (f == null) {
                 ExceptionHandler.handle("Modele " + this.modele + " introuvable. Impossible de générer le document.");
@@ -193,6 +222,18 @@ public abstract class SpreadSheetGenerator implements Runnable {
                 return null;
             }
         }
+        // même résolution que getStreamStatic(), seuls les fichiers peuvent être mis en cache
+        final File file = new File(path.startsWith("/") ? path.substring(1) : path);
+        if (file.exists()) {
+            f.close();
+            try {
+                this.template = cache.get(file.getPath(), null, null, file, null);
+            } catch (JDOMException e) {
+                // pas de configuration
+                throw new IllegalStateException(e);
+            }
+            return this.template.createSpreadSheet();
+        }
         final SpreadSheet res = new ODPackage(f).getSpreadSheet();
         f.close();
         return res;
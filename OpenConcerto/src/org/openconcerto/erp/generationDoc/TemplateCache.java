@@ -0,0 +1,272 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.generationDoc;
+
+import org.openconcerto.openoffice.ODPackage;
+import org.openconcerto.openoffice.spreadsheet.MutableCell;
+import org.openconcerto.openoffice.spreadsheet.Sheet;
+import org.openconcerto.openoffice.spreadsheet.SpreadSheet;
+
+import java.awt.Point;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom.Document;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+
+/**
+ * Cache des modèles déjà lus : le fichier de configuration XML parsé, le modèle ODS chargé en
+ * mémoire et les styles trouvés dans ses feuilles. Une entrée est identifiée par (templateId,
+ * langage, type) et n'est réutilisée que si les fichiers n'ont pas été modifiés depuis leur
+ * lecture.
+ * 
+ * @see TemplateManager#getCachedTemplate(String, String, String)
+ */
+public class TemplateCache {
+
+    // a template is a few hundreds KB in memory
+    private static final int MAX_SIZE = 32;
+
+    /**
+     * Les styles d'une feuille et les cellules qui les définissent, cf. les différentes méthodes
+     * searchStyle().
+     */
+    public static final class StyleScan {
+        private final Map<String, Map<Integer, String>> styles;
+        private final List<Point> cells;
+        private final List<String> cellStyles;
+
+        /**
+         * Crée une recherche.
+         * 
+         * @param styles la définition des styles, remplie par la recherche.
+         */
+        public StyleScan(final Map<String, Map<Integer, String>> styles) {
+            this.styles = styles;
+            this.cells = new ArrayList<Point>();
+            this.cellStyles = new ArrayList<String>();
+        }
+
+        /**
+         * Enregistre une cellule vidée par la recherche.
+         * 
+         * @param x la colonne.
+         * @param y la ligne.
+         * @param style le nouveau style de la cellule, <code>null</code> pour le laisser tel quel.
+         */
+        public final void addClearedCell(final int x, final int y, final String style) {
+            this.cells.add(new Point(x, y));
+            this.cellStyles.add(style);
+        }
+
+        /**
+         * Modifie la feuille comme l'aurait fait la recherche, sans parcourir toutes ses cellules.
+         * 
+         * @param sheet une feuille du même modèle.
+         * @return une copie de la définition des styles.
+         */
+        public final Map<String, Map<Integer, String>> apply(final Sheet sheet) {
+            final int size = this.cells.size();
+            for (int i = 0; i < size; i++) {
+                final Point p = this.cells.get(i);
+                final MutableCell<SpreadSheet> c = sheet.getCellAt(p.x, p.y);
+                c.clearValue();
+                final String style = this.cellStyles.get(i);
+                if (style != null)
+                    c.setStyleName(style);
+            }
+            return new HashMap<String, Map<Integer, String>>(this.styles);
+        }
+    }
+
+    /**
+     * Un modèle en mémoire. Thread-safe, le modèle d'origine n'est jamais modifié.
+     */
+    public static final class Template {
+        private final File templateFile;
+        private final long templateModified;
+        private final File configurationFile;
+        private final long configurationModified;
+
+        private final Document configuration;
+        private final ODPackage pristine;
+        private final Map<List<?>, StyleScan> styleScans;
+
+        Template(final File templateFile, final File configurationFile) throws IOException, JDOMException {
+            this.templateFile = templateFile;
+            this.templateModified = templateFile.lastModified();
+            this.configurationFile = configurationFile != null && configurationFile.exists() ? configurationFile : null;
+            this.configurationModified = this.configurationFile == null ? 0 : this.configurationFile.lastModified();
+
+            if (this.configurationFile == null) {
+                this.configuration = null;
+            } else {
+                final InputStream ins = new BufferedInputStream(new FileInputStream(this.configurationFile));
+                try {
+                    this.configuration = new SAXBuilder().build(ins);
+                } finally {
+                    ins.close();
+                }
+            }
+            // not ODPackage(File) : copies mustn't be saved over the template
+            this.pristine = new ODPackage(new BufferedInputStream(new FileInputStream(this.templateFile), 512 * 1024));
+            this.styleScans = new HashMap<List<?>, StyleScan>();
+        }
+
+        final boolean isValid(final File templateFile, final File configurationFile) {
+            if (!this.templateFile.equals(templateFile) || this.templateFile.lastModified() != this.templateModified)
+                return false;
+            final File conf = configurationFile != null && configurationFile.exists() ? configurationFile : null;
+            if (this.configurationFile == null)
+                return conf == null;
+            else
+                return this.configurationFile.equals(conf) && conf.lastModified() == this.configurationModified;
+        }
+
+        public final File getTemplateFile() {
+            return this.templateFile;
+        }
+
+        /**
+         * Le fichier de configuration parsé. Partagé entre tous les utilisateurs du cache, il ne
+         * doit pas être modifié.
+         * 
+         * @return la configuration, <code>null</code> si le modèle n'en a pas.
+         */
+        public final Document getConfiguration() {
+            return this.configuration;
+        }
+
+        /**
+         * Crée une copie modifiable du modèle, sans relire le fichier.
+         * 
+         * @return une nouvelle copie.
+         */
+        public final ODPackage createPackage() {
+            // the copy constructor only reads the original, but ODPackage isn't thread-safe
+            synchronized (this.pristine) {
+                return new ODPackage(this.pristine);
+            }
+        }
+
+        public final SpreadSheet createSpreadSheet() {
+            return this.createPackage().getSpreadSheet();
+        }
+
+        /**
+         * Une recherche de styles déjà faite sur ce modèle.
+         * 
+         * @param key les paramètres de la recherche, e.g. la feuille et la liste des styles.
+         * @return la recherche, <code>null</code> si elle n'a pas encore été faite.
+         */
+        public final StyleScan getStyleScan(final List<?> key) {
+            synchronized (this.styleScans) {
+                return this.styleScans.get(key);
+            }
+        }
+
+        /**
+         * Enregistre une recherche, si une autre n'a pas été enregistrée entre temps.
+         * 
+         * @param key les paramètres de la recherche.
+         * @param scan la recherche faite sur une copie du modèle.
+         * @return la recherche enregistrée pour <code>key</code>.
+         */
+        public final StyleScan putStyleScan(final List<?> key, final StyleScan scan) {
+            synchronized (this.styleScans) {
+                final StyleScan existing = this.styleScans.get(key);
+                if (existing != null)
+                    return existing;
+                this.styleScans.put(key, scan);
+                return scan;
+            }
+        }
+    }
+
+    private final Map<List<String>, Template> templates;
+
+    public TemplateCache() {
+        this.templates = new LinkedHashMap<List<String>, Template>(MAX_SIZE * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, Template> eldest) {
+                return size() > MAX_SIZE;
+            }
+        };
+    }
+
+    /**
+     * Retourne le modèle, en le lisant si nécessaire.
+     * 
+     * @param templateId l'identifiant du modèle.
+     * @param language le langage, peut être <code>null</code>.
+     * @param type le type, peut être <code>null</code>.
+     * @param templateFile le fichier ODS.
+     * @param configurationFile le fichier XML de configuration, peut être <code>null</code>.
+     * @return le modèle.
+     * @throws IOException si le modèle n'a pu être lu.
+     * @throws JDOMException si la configuration n'a pu être parsée.
+     */
+    public Template get(final String templateId, final String language, final String type, final File templateFile, final File configurationFile) throws IOException, JDOMException {
+        final List<String> key = Arrays.asList(templateId, language, type);
+        synchronized (this.templates) {
+            final Template res = this.templates.get(key);
+            if (res != null && res.isValid(templateFile, configurationFile))
+                return res;
+        }
+        // read outside the lock, concurrent reads of the same template are harmless
+        final Template res = new Template(templateFile, configurationFile);
+        synchronized (this.templates) {
+            this.templates.put(key, res);
+        }
+        return res;
+    }
+
+    /**
+     * Oublie un modèle, quels que soient son langage et son type.
+     * 
+     * @param templateId l'identifiant du modèle.
+     */
+    public void invalidate(final String templateId) {
+        synchronized (this.templates) {
+            this.templates.keySet().removeAll(this.getKeys(templateId));
+        }
+    }
+
+    private List<List<String>> getKeys(final String templateId) {
+        final List<List<String>> res = new ArrayList<List<String>>();
+        for (final List<String> key : this.templates.keySet()) {
+            final String id = key.get(0);
+            // annexes are stored under their own id
+            if (id.equals(templateId) || id.equals(templateId + "_annexe"))
+                res.add(key);
+        }
+        return res;
+    }
+
+    public void clear() {
+        synchronized (this.templates) {
+            this.templates.clear();
+        }
+    }
+}
@@ -13,6 +13,8 @@
  
  package org.openconcerto.erp.generationDoc;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -20,12 +22,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.jdom.JDOMException;
+
 public class TemplateManager {
     private static TemplateManager instance = new TemplateManager();
     private List<TemplateProvider> providers = new ArrayList<TemplateProvider>();
     private Map<String, TemplateProvider> defaultMap = new HashMap<String, TemplateProvider>();
     private TemplateProvider defautProvider;
     private List<String> knownTemplateIds = new ArrayList<String>();
+    private final TemplateCache cache = new TemplateCache();
 
     public static TemplateManager getInstance() {
         return instance;
@@ -33,6 +38,7 @@ public class TemplateManager {
 
     public void add(TemplateProvider provider) {
         this.providers.add(provider);
+        this.cache.clear();
     }
 
     public void remove(TemplateProvider provider) {
@@ -43,15 +49,69 @@ public class TemplateManager {
                 defaultMap.remove(key);
             }
         }
+        this.cache.clear();
     }
 
     public void setDefaultProvider(String templateId, TemplateProvider provider) {
         defaultMap.put(templateId, provider);
         register(templateId);
+        this.cache.invalidate(templateId);
     }
 
     public void setDefaultProvider(TemplateProvider provider) {
         this.defautProvider = provider;
+        this.cache.clear();
+    }
+
+    /**
+     * Must be called by providers when the files of a template have been changed (e.g. synced).
+     * 
+     * @param templateId the changed template.
+     */
+    public void templateChanged(String templateId) {
+        this.cache.invalidate(templateId);
+    }
+
+    /**
+     * Get the parsed template using first the default template providers, see
+     * {@link #getTemplate(String, String, String)}. The template and its configuration are only
+     * read once as long as their files aren't modified.
+     * 
+     * @return the template, <code>null</code> if it's not found or not provided by a local file
+     * @throws IOException if the template cannot be read
+     * @throws JDOMException if the configuration cannot be parsed
+     */
+    public TemplateCache.Template getCachedTemplate(String templateId, String language, String type) throws IOException, JDOMException {
+        TemplateProvider provider = defaultMap.get(templateId);
+        if (provider == null) {
+            for (TemplateProvider pr : providers) {
+                if (pr instanceof AbstractLocalTemplateProvider) {
+                    if (((AbstractLocalTemplateProvider) pr).getFileTemplate(templateId, language, type) != null) {
+                        provider = pr;
+                        break;
+                    }
+                } else {
+                    final InputStream stream = pr.getTemplate(templateId, language, type);
+                    if (stream != null) {
+                        // cannot know if it has changed
+                        stream.close();
+                        return null;
+                    }
+                }
+            }
+            if (provider == null) {
+                provider = defautProvider;
+            }
+        }
+        if (!(provider instanceof AbstractLocalTemplateProvider)) {
+            return null;
+        }
+        final AbstractLocalTemplateProvider localProvider = (AbstractLocalTemplateProvider) provider;
+        final File templateFile = localProvider.getFileTemplate(templateId, language, type);
+        if (templateFile == null) {
+            return null;
+        }
+        return this.cache.get(templateId, language, type, templateFile, localProvider.getFileTemplateConfiguration(templateId, language, type));
     }
 
     /**
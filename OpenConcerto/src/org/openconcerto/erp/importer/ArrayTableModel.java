@@ -23,11 +23,8 @@ public class ArrayTableModel {
     private List<Class<?>> columnTypes;
 
     public ArrayTableModel(List<List<Object>> data) {
-        if (data.isEmpty()) {
-            throw new IllegalArgumentException("Empty data");
-        }
-
-        int colCount = data.get(0).size();
+        // no columns for an empty source
+        int colCount = data.isEmpty() ? 0 : data.get(0).size();
         List<Class<?>> types = new ArrayList<Class<?>>();
         for (int i = 0; i < colCount; i++) {
             types.add(Object.class);
@@ -41,11 +38,7 @@ public class ArrayTableModel {
     }
 
     private void init(List<List<Object>> data, List<Class<?>> types) {
-        if (data.isEmpty()) {
-            throw new IllegalArgumentException("Empty data");
-        }
-        int colCount = data.get(0).size();
-        if (colCount != types.size()) {
+        if (!data.isEmpty() && data.get(0).size() != types.size()) {
             throw new IllegalArgumentException("Data raw count doesn't match types count");
         }
         this.dataVector = data;
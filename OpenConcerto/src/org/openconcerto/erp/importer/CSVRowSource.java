@@ -0,0 +1,100 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.importer;
+
+import org.openconcerto.utils.text.CSVReader;
+import org.openconcerto.utils.text.CharsetHelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Les lignes d'un fichier CSV, lues au fur et à mesure. Le séparateur (virgule ou point-virgule)
+ * et l'encodage sont devinés, le nombre de colonnes est celui de la première ligne.
+ */
+public class CSVRowSource implements RowSource {
+
+    private final CSVReader reader;
+    private final int columnCount;
+    private String[] first;
+
+    public CSVRowSource(final File csvFile, final boolean skipFirstLine) throws IOException {
+        final Charset cs = CharsetHelper.guessEncoding(csvFile, 4096, Charset.forName("Cp1252"));
+
+        final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), cs));
+        final String l;
+        try {
+            l = r.readLine();
+        } finally {
+            r.close();
+        }
+        char separator = ',';
+        int cCount = 0;
+        int scCount = 0;
+        if (l != null) {
+            for (int i = 0; i < l.length(); i++) {
+                final char c = l.charAt(i);
+                if (c == ',') {
+                    cCount++;
+                } else if (c == ';') {
+                    scCount++;
+                }
+            }
+        }
+        if (scCount > cCount) {
+            separator = ';';
+        }
+
+        this.reader = new CSVReader(new InputStreamReader(new FileInputStream(csvFile), cs), separator);
+        this.first = this.reader.readNext();
+        this.columnCount = this.first == null ? 0 : this.first.length;
+        if (skipFirstLine)
+            this.first = null;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return this.columnCount;
+    }
+
+    @Override
+    public List<Object> nextRow() throws IOException {
+        final String[] values;
+        if (this.first != null) {
+            values = this.first;
+            this.first = null;
+        } else {
+            values = this.reader.readNext();
+        }
+        if (values == null)
+            return null;
+        final List<Object> row = new ArrayList<Object>(this.columnCount);
+        for (int j = 0; j < this.columnCount; j++) {
+            // lignes incomplètes
+            row.add(j < values.length ? values[j] : "");
+        }
+        return row;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
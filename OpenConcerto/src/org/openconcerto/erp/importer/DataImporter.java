@@ -14,43 +14,106 @@
  package org.openconcerto.erp.importer;
 
 import org.openconcerto.erp.config.ComptaPropsConfiguration;
-import org.openconcerto.openoffice.spreadsheet.Sheet;
-import org.openconcerto.openoffice.spreadsheet.SpreadSheet;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.model.SQLField;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowListRSH;
 import org.openconcerto.sql.model.SQLRowValues;
-import org.openconcerto.sql.model.SQLRowValuesListFetcher;
+import org.openconcerto.sql.model.SQLSelect;
 import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.users.UserManager;
-import org.openconcerto.utils.text.CSVReader;
-import org.openconcerto.utils.text.CharsetHelper;
+import org.openconcerto.sql.utils.SQLUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+/**
+ * Import de lignes dans une table. Les lignes sont lues au fur et à mesure depuis une
+ * {@link RowSource}, converties avec les {@link ValueConverter}, filtrées par les
+ * {@link Constraint}, puis rapprochées des lignes existantes grâce aux champs uniques : une seule
+ * requête charge les champs uniques et les identifiants de la table dans des index en mémoire.
+ * Les lignes sont enfin insérées ou mises à jour par lots, chaque lot dans sa propre transaction.
+ * Seul un lot est gardé en mémoire, un catalogue de plusieurs millions de lignes peut donc être
+ * importé.
+ * 
+ * <pre>
+ * final DataImporter importer = new DataImporter(table);
+ * importer.map(0, table.getField(&quot;CODE&quot;));
+ * importer.addUniqueField(table.getField(&quot;CODE&quot;));
+ * importer.addListener(l);
+ * importer.importFrom(file);
+ * </pre>
+ */
+public class DataImporter {
 
-import org.apache.poi.hssf.usermodel.HSSFSheet;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.poifs.filesystem.POIFSFileSystem;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellValue;
-import org.apache.poi.ss.usermodel.FormulaEvaluator;
-import org.apache.poi.ss.usermodel.Row;
+    /**
+     * Suivi de l'import. Les méthodes sont appelées par le thread de l'import.
+     */
+    public static interface Listener {
+        /**
+         * Une ligne ne respecte pas une contrainte, elle est ignorée.
+         * 
+         * @param line l'index de la ligne dans la source, à partir de 0.
+         * @param values les valeurs lues.
+         */
+        void lineRejected(int line, List<Object> values);
+
+        /**
+         * Un lot a été enregistré.
+         * 
+         * @param lineCount le nombre de lignes lues depuis le début.
+         * @param insertedCount le nombre de lignes insérées depuis le début.
+         * @param updatedCount le nombre de lignes mises à jour depuis le début.
+         */
+        void batchCommitted(int lineCount, int insertedCount, int updatedCount);
+
+        /**
+         * L'enregistrement d'un lot a échoué, aucune de ses lignes n'a été enregistrée. L'import
+         * continue avec le lot suivant.
+         * 
+         * @param lineCount le nombre de lignes lues depuis le début.
+         * @param e l'erreur.
+         */
+        void batchFailed(int lineCount, SQLException e);
+    }
+
+    // lignes par transaction
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    // max ids per IN ()
+    private static final int FETCH_MAX_IDS = 1000;
+
+    // une ligne à insérer ou à mettre à jour
+    private static final class PendingRow {
+        // null pour une insertion
+        private final Number id;
+        private final Map<String, Object> values;
+        // la valeur de chaque champ unique
+        private final Object[] keys;
+
+        PendingRow(final Number id, final Map<String, Object> values, final Object[] keys) {
+            this.id = id;
+            this.values = values;
+            this.keys = keys;
+        }
+
+        final void merge(final Map<String, Object> newValues) {
+            this.values.putAll(newValues);
+        }
+    }
 
-public class DataImporter {
     private boolean skipFirstLine = true;
     private final SQLTable table;
     private final Map<Integer, ValueConverter> map = new HashMap<Integer, ValueConverter>();
@@ -60,6 +123,16 @@ public class DataImporter {
     private List<SQLRowValues> valuesToUpdate = new ArrayList<SQLRowValues>();
     private List<SQLRowValues> valuesToInsert = new ArrayList<SQLRowValues>();
     private Map<ValueConverter, SQLField> foreignMap = new HashMap<ValueConverter, SQLField>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile boolean cancelled = false;
+
+    // état d'un import : pour chaque champ unique, valeur -> ID
+    private Map<SQLField, Map<Object, Number>> index;
+    // pour chaque champ unique, valeur -> ligne du lot courant
+    private Map<SQLField, Map<Object, PendingRow>> pendingByKey;
+    private List<PendingRow> pending;
+    private int lineCount, insertedCount, updatedCount;
 
     public DataImporter(SQLTable table) {
         this.table = table;
@@ -103,15 +176,41 @@ public class DataImporter {
         System.out.println(importer.getValuesToInsert().size() + " rows to insert");
         System.out.println(importer.getValuesToUpdate().size() + " rows to update");
         // importer.commit();
-
+        // or without loading the whole file :
+        // importer.importFrom(new File("c:/products-en.xls"));
     }
 
+    /**
+     * Enregistre les lignes calculées par {@link #importFromModel(ArrayTableModel)}, par lots.
+     * 
+     * @throws SQLException si un lot n'a pu être enregistré, les lots précédents restent
+     *         enregistrés.
+     */
     public void commit() throws SQLException {
-        for (SQLRowValues row : this.valuesToInsert) {
-            row.insert();
-        }
-        for (SQLRowValues row : this.valuesToUpdate) {
-            row.update();
+        final List<SQLRowValues> all = new ArrayList<SQLRowValues>(this.valuesToInsert.size() + this.valuesToUpdate.size());
+        all.addAll(this.valuesToInsert);
+        all.addAll(this.valuesToUpdate);
+        final int insertCount = this.valuesToInsert.size();
+        final int size = all.size();
+        for (int i = 0; i < size; i += this.batchSize) {
+            final int end = Math.min(size, i + this.batchSize);
+            final List<SQLRowValues> batch = all.subList(i, end);
+            final int startIndex = i;
+            SQLUtils.executeAtomic(this.table.getDBSystemRoot().getDataSource(), new SQLUtils.SQLFactory<Object>() {
+                @Override
+                public Object create() throws SQLException {
+                    for (int j = 0; j < batch.size(); j++) {
+                        if (startIndex + j < insertCount)
+                            batch.get(j).insert();
+                        else
+                            batch.get(j).update();
+                    }
+                    return null;
+                }
+            });
+            // seules les lignes enregistrées
+            for (final Listener l : this.listeners)
+                l.batchCommitted(end, Math.min(end, insertCount), Math.max(0, end - insertCount));
         }
     }
 
@@ -166,186 +265,113 @@ public class DataImporter {
         l.add(value);
     }
 
-    public ArrayTableModel createModelFromODS(File odsFile) throws IOException {
-        final SpreadSheet spreadSheet = SpreadSheet.createFromFile(odsFile);
-        if (spreadSheet.getSheetCount() < 1) {
-            return null;
-        }
-        final Sheet sheet = spreadSheet.getSheet(0);
-        final int rowCount = sheet.getRowCount();
-        int columnCount = 0;
-        if (rowCount > 0) {
-            final int maxColumnCount = sheet.getColumnCount();
-            for (int j = 0; j < maxColumnCount; j++) {
-                final Object valueAt = sheet.getValueAt(j, 0);
-                if (valueAt == null || valueAt.toString().trim().isEmpty()) {
-                    break;
-                }
-                columnCount++;
-            }
-        }
-        int start = 0;
-        if (skipFirstLine) {
-            start = 1;
-        }
-        final List<List<Object>> rows = new ArrayList<List<Object>>(rowCount - start);
-        for (int i = start; i < rowCount; i++) {
-            List<Object> row = new ArrayList<Object>();
-            for (int j = 0; j < columnCount; j++) {
-                row.add(sheet.getValueAt(j, i));
-            }
-            rows.add(row);
-        }
-
-        return new ArrayTableModel(rows);
+    public final void addListener(final Listener l) {
+        this.listeners.add(l);
     }
 
-    public ArrayTableModel createModelFromXLS(File xlsFile) throws IOException {
-        final InputStream inputStream = new FileInputStream(xlsFile);
-        final POIFSFileSystem fileSystem = new POIFSFileSystem(new BufferedInputStream(inputStream));
-        final HSSFWorkbook workBook = new HSSFWorkbook(fileSystem);
-        final HSSFSheet sheet = workBook.getSheetAt(0);
-        Iterator<Row> rowsIterator = sheet.rowIterator();
-        int columnCount = 0;
-        int rowCount = 0;
-        while (rowsIterator.hasNext()) {
-            Row row = rowsIterator.next();
-            int i = row.getPhysicalNumberOfCells();
-            if (i > columnCount) {
-                columnCount = i;
-            }
-            rowCount++;
-        }
-        // Extract data
-        rowsIterator = sheet.rowIterator();
-        int start = 0;
-        if (skipFirstLine) {
-            start = 1;
-            rowsIterator.next();
-        }
-        final List<List<Object>> rows = new ArrayList<List<Object>>(rowCount - start);
-        FormulaEvaluator evaluator = workBook.getCreationHelper().createFormulaEvaluator();
-
-        while (rowsIterator.hasNext()) {
-            final Row row = rowsIterator.next();
-            final List<Object> rowData = new ArrayList<Object>();
-            for (int i = 0; i < columnCount; i++) {
-                final Cell cell = row.getCell(i);
-
-                if (cell == null) {
-                    rowData.add("");
-                } else {
-                    CellValue cellValue = evaluator.evaluate(cell);
-                    if (cellValue == null) {
-                        rowData.add("");
-                    } else {
-                        switch (cellValue.getCellType()) {
-                        case Cell.CELL_TYPE_BOOLEAN:
-                            rowData.add(Boolean.valueOf(cellValue.getBooleanValue()));
-                            break;
-                        case Cell.CELL_TYPE_NUMERIC:
-                            rowData.add(Double.valueOf(cellValue.getNumberValue()));
-                            break;
-                        case Cell.CELL_TYPE_STRING:
-                            rowData.add(cellValue.getStringValue());
-                            break;
-                        case Cell.CELL_TYPE_FORMULA:
-                            rowData.add(cell.getCellFormula());
-                            break;
-                        case Cell.CELL_TYPE_BLANK:
-                            rowData.add("");
-                            break;
-                        default:
-                            rowData.add(cellValue.getStringValue());
-                            break;
-
-                        }
-                    }
-                }
-            }
-
-            rows.add(rowData);
+    public final void removeListener(final Listener l) {
+        this.listeners.remove(l);
+    }
 
-        }
-        inputStream.close();
-        return new ArrayTableModel(rows);
+    /**
+     * Le nombre de lignes enregistrées par transaction, par défaut {@value #DEFAULT_BATCH_SIZE}.
+     * 
+     * @param batchSize le nombre de lignes.
+     */
+    public final void setBatchSize(final int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Invalid batch size : " + batchSize);
+        this.batchSize = batchSize;
+    }
 
+    /**
+     * Arrête l'import dès que possible, les lots déjà enregistrés le restent. Peut être appelée
+     * depuis n'importe quel thread.
+     */
+    public final void cancel() {
+        this.cancelled = true;
     }
 
-    public ArrayTableModel createModelFromCSV(File csvFile) throws IOException {
-        Charset cs = CharsetHelper.guessEncoding(csvFile, 4096, Charset.forName("Cp1252"));
+    public final boolean isCancelled() {
+        return this.cancelled;
+    }
 
-        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), cs));
-        String l = r.readLine();
-        if (l == null) {
-            return null;
-        }
-        char separator = ',';
-        int cCount = 0;
-        int scCount = 0;
-        for (int i = 0; i < l.length(); i++) {
-            char c = l.charAt(i);
-            if (c == ',') {
-                cCount++;
-            } else if (c == ';') {
-                scCount++;
+    private static ArrayTableModel readAll(final RowSource src) throws IOException {
+        try {
+            final List<List<Object>> rows = new ArrayList<List<Object>>();
+            List<Object> row;
+            while ((row = src.nextRow()) != null) {
+                rows.add(row);
             }
+            if (rows.isEmpty())
+                // modèle vide plutôt que null, avec les colonnes de la source
+                return new ArrayTableModel(rows, Collections.<Class<?>> nCopies(src.getColumnCount(), Object.class));
+            return new ArrayTableModel(rows);
+        } finally {
+            src.close();
         }
-        r.close();
-        if (scCount > cCount) {
-            separator = ';';
+    }
+
+    public ArrayTableModel createModelFromODS(File odsFile) throws IOException {
+        final ODSRowSource src = new ODSRowSource(odsFile, this.skipFirstLine);
+        if (!src.hasSheet()) {
+            return null;
         }
+        return readAll(src);
+    }
 
-        CSVReader csvReader = new CSVReader(new InputStreamReader(new FileInputStream(csvFile), cs), separator);
-        List<String[]> lines = csvReader.readAll();
-        final int rowCount = lines.size();
-        final int columnCount = lines.get(0).length;
+    public ArrayTableModel createModelFromXLS(File xlsFile) throws IOException {
+        return readAll(new XLSRowSource(xlsFile, this.skipFirstLine));
+    }
 
-        int start = 0;
-        if (skipFirstLine) {
-            start = 1;
-        }
-        final List<List<Object>> rows = new ArrayList<List<Object>>(rowCount - start);
-        for (int i = start; i < rowCount; i++) {
-            List<Object> row = new ArrayList<Object>();
-            String[] values = lines.get(i);
-            for (int j = 0; j < columnCount; j++) {
-                row.add(values[j]);
+    public ArrayTableModel createModelFromCSV(File csvFile) throws IOException {
+        return readAll(new CSVRowSource(csvFile, this.skipFirstLine));
+    }
+
+    private int getConvertedColumnCount() {
+        final ArrayList<Integer> colsUsed = new ArrayList<Integer>(map.keySet());
+        colsUsed.addAll(constraints.keySet());
+        return 1 + Collections.max(colsUsed);
+    }
+
+    /**
+     * Convertit une ligne lue.
+     * 
+     * @param line les valeurs lues.
+     * @param columnCount le nombre de colonnes utilisées.
+     * @return les valeurs converties, <code>null</code> si une contrainte n'est pas respectée.
+     */
+    private List<Object> convert(final List<Object> line, final int columnCount) {
+        final List<Object> row = new ArrayList<Object>(columnCount);
+        for (int j = 0; j < columnCount; j++) {
+            Object value = j < line.size() ? line.get(j) : null;
+            ValueConverter converter = map.get(j);
+            if (converter != null) {
+                value = converter.convertFrom(value);
+            }
+            final Constraint constraint = constraints.get(j);
+            // Verification de la validité de la valeur à importer
+            if (constraint != null && !constraint.isValid(value)) {
+                return null;
             }
-            rows.add(row);
+            row.add(value);
         }
-        csvReader.close();
-        return new ArrayTableModel(rows);
-
+        return row;
     }
 
     public ArrayTableModel createConvertedModel(ArrayTableModel model) {
         final int rowCount = model.getRowCount();
-        final ArrayList<Integer> colsUsed = new ArrayList<Integer>(map.keySet());
-        colsUsed.addAll(constraints.keySet());
-
-        final int columnCount = 1 + Collections.max(colsUsed);
+        final int columnCount = this.getConvertedColumnCount();
 
         final List<List<Object>> rows = new ArrayList<List<Object>>(rowCount);
-
+        final List<Object> line = new ArrayList<Object>(columnCount);
         for (int i = 0; i < rowCount; i++) {
-            boolean validRow = true;
-            final List<Object> row = new ArrayList<Object>();
+            line.clear();
             for (int j = 0; j < columnCount; j++) {
-                Object value = model.getValueAt(i, j);
-                ValueConverter converter = map.get(j);
-                if (converter != null) {
-                    value = converter.convertFrom(value);
-                }
-                final Constraint constraint = constraints.get(j);
-                // Verification de la validité de la valeur à importer
-                if (constraint != null && !constraint.isValid(value)) {
-                    validRow = false;
-                    break;
-                }
-                row.add(value);
+                line.add(model.getValueAt(i, j));
             }
-            if (validRow) {
+            final List<Object> row = this.convert(line, columnCount);
+            if (row != null) {
                 rows.add(row);
             }
         }
@@ -353,122 +379,356 @@ public class DataImporter {
         return new ArrayTableModel(rows);
     }
 
-    public void importFromModel(ArrayTableModel model) throws IOException {
+    /**
+     * Calcule les lignes à insérer et à mettre à jour, sans rien enregistrer.
+     * 
+     * @param model les lignes déjà converties, cf. {@link #createConvertedModel(ArrayTableModel)}.
+     * @throws IOException si les lignes existantes n'ont pu être lues.
+     * @see #getValuesToInsert()
+     * @see #getValuesToUpdate()
+     * @see #commit()
+     */
+    public void importFromModel(final ArrayTableModel model) throws IOException {
         final int rowCount = model.getRowCount();
-        // Load existing data for duplication check
-        final SQLRowValues vals = new SQLRowValues(table);
+        final int columnCount = model.getColumnCount();
+        this.start();
+        for (int i = 0; i < rowCount; i++) {
+            final List<Object> row = new ArrayList<Object>(columnCount);
+            for (int j = 0; j < columnCount; j++) {
+                row.add(model.getValueAt(i, j));
+            }
+            this.add(row);
+        }
+        // tout le modèle est déjà en mémoire, un seul lot
+        try {
+            this.flush(false);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            this.end();
+        }
+    }
 
-        for (SQLField field : this.fieldMap.keySet()) {
-            if (field.getTable().equals(table)) {
-                vals.put(field.getName(), null);
-            } else {
-                final Set<SQLField> foreignKeys = table.getForeignKeys(field.getTable());
-                for (SQLField sqlField : foreignKeys) {
-                    vals.put(sqlField.getName(), null);
+    /**
+     * Importe un fichier ODS, CSV ou XLS sans le charger entièrement en mémoire.
+     * 
+     * @param file le fichier.
+     * @throws IOException si le fichier n'a pu être lu.
+     * @see #importFrom(RowSource)
+     */
+    public void importFrom(final File file) throws IOException {
+        final RowSource src = this.createRowSource(file);
+        try {
+            this.importFrom(src);
+        } finally {
+            src.close();
+        }
+    }
+
+    /**
+     * Importe des lignes. Elles sont lues, converties et enregistrées au fur et à mesure, par lots
+     * de {@link #setBatchSize(int) batchSize} lignes. Une ligne dont un champ unique a la même
+     * valeur qu'une ligne existante (ou déjà importée) la met à jour.
+     * 
+     * @param src les lignes à importer, non converties.
+     * @throws IOException si les lignes n'ont pu être lues.
+     */
+    public void importFrom(final RowSource src) throws IOException {
+        this.start();
+        try {
+            final int columnCount = this.getConvertedColumnCount();
+            List<Object> line;
+            while (!this.cancelled && (line = src.nextRow()) != null) {
+                final List<Object> row = this.convert(line, columnCount);
+                if (row == null) {
+                    for (final Listener l : this.listeners)
+                        l.lineRejected(this.lineCount, line);
+                } else {
+                    this.add(row);
                 }
+                this.lineCount++;
+                if (this.pending.size() >= this.batchSize)
+                    this.commitPending();
             }
+            if (!this.cancelled)
+                this.commitPending();
+        } finally {
+            this.end();
         }
+    }
 
-        System.out.println("Fetching values");
-        SQLRowValuesListFetcher fetcher = new SQLRowValuesListFetcher(vals);
-        List<SQLRowValues> existingRows = fetcher.fetch();
-        System.out.println("Computing cache");
-        final int existingRowsCount = existingRows.size();
-        final ValueConverter[] converters = map.values().toArray(new ValueConverter[map.size()]);
-
-        // Une map <Object(valeur),SQLRowValues> pour chaque champs unique
-        Map<SQLField, Map<Object, SQLRowValues>> cache = new HashMap<SQLField, Map<Object, SQLRowValues>>();
-        for (SQLField field : this.uniqueField) {
-            Map<Object, SQLRowValues> m = new HashMap<Object, SQLRowValues>();
-            cache.put(field, m);
-            final String fieldName = field.getName();
-            for (int j = 0; j < existingRowsCount; j++) {
-                SQLRowValues row = existingRows.get(j);
-                m.put(row.getObject(fieldName), row);
-            }
+    private void commitPending() throws IOException {
+        try {
+            this.flush(true);
+            for (final Listener l : this.listeners)
+                l.batchCommitted(this.lineCount, this.insertedCount, this.updatedCount);
+        } catch (SQLException e) {
+            for (final Listener l : this.listeners)
+                l.batchFailed(this.lineCount, e);
         }
+        this.pending.clear();
+        for (final Map<Object, PendingRow> m : this.pendingByKey.values())
+            m.clear();
+    }
 
-        // Parcours des lignes des données à importer
-        for (int i = 0; i < rowCount; i++) {
+    // * pipeline
 
-            // Recherche d'existant
-            SQLRowValues existingRow = null;
-            for (SQLField field : this.uniqueField) {
-                List<Integer> cols = fieldMap.get(field);
-                Object objectToInsert = null;
-                for (Integer col : cols) {
-                    Object v = model.getValueAt(i, col);
-                    if (objectToInsert == null) {
-                        objectToInsert = v;
-                    } else if (v instanceof String) {
-                        objectToInsert = objectToInsert.toString() + "\n" + (String) v;
-                    }
+    private void start() throws IOException {
+        this.index = new HashMap<SQLField, Map<Object, Number>>();
+        this.pendingByKey = new HashMap<SQLField, Map<Object, PendingRow>>();
+        for (final SQLField field : this.uniqueField) {
+            this.index.put(field, new HashMap<Object, Number>());
+            this.pendingByKey.put(field, new HashMap<Object, PendingRow>());
+        }
+        this.pending = new ArrayList<PendingRow>();
+        this.lineCount = 0;
+        this.insertedCount = 0;
+        this.updatedCount = 0;
+        try {
+            this.loadIndex();
+        } catch (RuntimeException e) {
+            this.end();
+            throw new IOException("Couldn't load existing rows of " + this.table, e);
+        }
+    }
 
-                }
+    private void end() {
+        this.index = null;
+        this.pendingByKey = null;
+        this.pending = null;
+    }
 
-                existingRow = cache.get(field).get(objectToInsert);
-                if (existingRow != null) {
-                    break;
+    // a single request for the unique fields of all existing rows
+    private void loadIndex() {
+        final List<SQLField> fields = new ArrayList<SQLField>();
+        for (final SQLField field : this.uniqueField) {
+            if (field.getTable().equals(this.table))
+                fields.add(field);
+        }
+        if (fields.isEmpty())
+            return;
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelect(this.table.getKey());
+        for (final SQLField field : fields)
+            sel.addSelect(field);
+        sel.setArchivedPolicy(SQLSelect.UNARCHIVED);
+        this.table.getBase().getDataSource().execute(sel.asString(), new ResultSetHandler() {
+            @Override
+            public Object handle(ResultSet rs) throws SQLException {
+                final int size = fields.size();
+                while (rs.next()) {
+                    final Number id = (Number) rs.getObject(1);
+                    for (int i = 0; i < size; i++) {
+                        final Object key = rs.getObject(i + 2);
+                        if (key != null)
+                            DataImporter.this.index.get(fields.get(i)).put(key, id);
+                    }
                 }
+                return null;
             }
+        });
+    }
 
-            updateOrInsert(model, converters, i, existingRow);
+    private Object getValue(final List<Object> row, final SQLField field) {
+        final List<Integer> cols = fieldMap.get(field);
+        if (cols == null)
+            return null;
+        Object objectToInsert = null;
+        for (Integer col : cols) {
+            Object v = row.get(col);
+            if (objectToInsert == null) {
+                objectToInsert = v;
+            } else if (v instanceof String) {
+                objectToInsert = objectToInsert.toString() + "\n" + (String) v;
+            }
         }
+        return objectToInsert;
+    }
 
+    // rapproche une ligne convertie des lignes existantes et de celles du lot
+    private void add(final List<Object> row) {
+        final Map<String, Object> newValues = this.getNewValues(row);
+        final int keyCount = this.uniqueField.size();
+        final Object[] keys = new Object[keyCount];
+        // Recherche d'existant
+        for (int i = 0; i < keyCount; i++) {
+            final SQLField field = this.uniqueField.get(i);
+            keys[i] = this.getValue(row, field);
+            if (keys[i] == null)
+                continue;
+            final PendingRow p = this.pendingByKey.get(field).get(keys[i]);
+            if (p != null) {
+                p.merge(newValues);
+                return;
+            }
+            final Number id = this.index.get(field).get(keys[i]);
+            if (id != null) {
+                this.addPending(new PendingRow(id, newValues, keys));
+                return;
+            }
+        }
+        this.addPending(new PendingRow(null, newValues, keys));
     }
 
-    private void updateOrInsert(ArrayTableModel model, final ValueConverter[] converters, int i, SQLRowValues existingRow) {
+    private void addPending(final PendingRow p) {
+        this.pending.add(p);
+        for (int i = 0; i < p.keys.length; i++) {
+            final Object key = p.keys[i];
+            if (key != null) {
+                final Map<Object, PendingRow> m = this.pendingByKey.get(this.uniqueField.get(i));
+                if (!m.containsKey(key))
+                    m.put(key, p);
+            }
+        }
+    }
 
+    private Map<String, Object> getNewValues(final List<Object> row) {
         final Map<String, Object> newValues = new HashMap<String, Object>();
-        if (existingRow != null) {
-            // Préremplissage de la map avec la row existante
-            newValues.putAll(existingRow.getAbsolutelyAll());
-        }
-        for (int j = 0; j < converters.length; j++) {
-            ValueConverter valueConverter = converters[j];
-
-            List<Integer> cols = fieldMap.get(valueConverter.getField());
-            Object objectToInsert = null;
-            for (Integer col : cols) {
-                Object v = model.getValueAt(i, col);
-                if (objectToInsert == null) {
-                    objectToInsert = v;
-                } else if (v instanceof String) {
-                    objectToInsert = objectToInsert.toString() + "\n" + (String) v;
-                }
-
-            }
+        for (final ValueConverter valueConverter : this.map.values()) {
+            final Object objectToInsert = this.getValue(row, valueConverter.getField());
 
             final String fieldName = valueConverter.getFieldName();
             if (valueConverter.getField().getTable().equals(table)) {
                 newValues.put(fieldName, objectToInsert);
             } else {
-
                 final SQLField sqlField = foreignMap.get(valueConverter);
-
-                final Object value = newValues.get(sqlField.getName());
-                if (value == null || value instanceof SQLRowValues) {
-                    SQLRowValues fRowValues = (SQLRowValues) value;
-                    if (fRowValues == null) {
-                        fRowValues = new SQLRowValues(valueConverter.getField().getTable());
-                        newValues.put(sqlField.getName(), fRowValues);
-                    }
-                    fRowValues.put(valueConverter.getField().getName(), objectToInsert);
+                SQLRowValues fRowValues = (SQLRowValues) newValues.get(sqlField.getName());
+                if (fRowValues == null) {
+                    fRowValues = new SQLRowValues(valueConverter.getField().getTable());
+                    newValues.put(sqlField.getName(), fRowValues);
                 }
+                fRowValues.put(valueConverter.getField().getName(), objectToInsert);
+            }
+        }
+        return newValues;
+    }
 
+    // fields filled by this importer
+    private Set<SQLField> getFetchedFields() {
+        final Set<SQLField> res = new LinkedHashSet<SQLField>();
+        for (final SQLField field : this.fieldMap.keySet()) {
+            if (field.getTable().equals(this.table)) {
+                res.add(field);
+            } else {
+                res.addAll(this.table.getForeignKeys(field.getTable()));
             }
         }
-        if (existingRow == null) {
-            this.valuesToInsert.add(new SQLRowValues(table, newValues));
-        } else if (!newValues.equals(existingRow.getAbsolutelyAll())) {
-            this.valuesToUpdate.add(new SQLRowValues(table, newValues));
+        return res;
+    }
+
+    private Map<Number, SQLRow> fetchExisting() {
+        final List<Number> ids = new ArrayList<Number>();
+        for (final PendingRow p : this.pending) {
+            if (p.id != null)
+                ids.add(p.id);
+        }
+        final Map<Number, SQLRow> res = new HashMap<Number, SQLRow>(ids.size() * 2);
+        if (ids.isEmpty())
+            return res;
+        final Set<SQLField> fields = this.getFetchedFields();
+        for (int i = 0; i < ids.size(); i += FETCH_MAX_IDS) {
+            final SQLSelect sel = new SQLSelect();
+            sel.addSelect(this.table.getKey());
+            for (final SQLField field : fields)
+                sel.addSelect(field);
+            sel.setWhere(new Where(this.table.getKey(), ids.subList(i, Math.min(ids.size(), i + FETCH_MAX_IDS))));
+            @SuppressWarnings("unchecked")
+            final List<SQLRow> rows = (List<SQLRow>) this.table.getBase().getDataSource().execute(sel.asString(), SQLRowListRSH.createFromSelect(sel));
+            for (final SQLRow r : rows)
+                res.put(r.getIDNumber(), r);
         }
+        return res;
+    }
+
+    /**
+     * Compute the rows of the current batch, then either save them in one transaction or add
+     * them to {@link #getValuesToInsert()} and {@link #getValuesToUpdate()}.
+     */
+    private void flush(final boolean save) throws SQLException {
+        final Map<Number, SQLRow> existing = this.fetchExisting();
+        final List<SQLRowValues> toInsert = new ArrayList<SQLRowValues>();
+        final List<PendingRow> inserted = new ArrayList<PendingRow>();
+        final List<SQLRowValues> toUpdate = new ArrayList<SQLRowValues>();
+        for (final PendingRow p : this.pending) {
+            if (p.id == null) {
+                toInsert.add(new SQLRowValues(this.table, p.values));
+                inserted.add(p);
+            } else {
+                final SQLRow existingRow = existing.get(p.id);
+                // archived since loadIndex()
+                if (existingRow == null)
+                    continue;
+                // Préremplissage de la map avec la row existante
+                final Map<String, Object> newValues = new HashMap<String, Object>(existingRow.getAbsolutelyAll());
+                for (final Map.Entry<String, Object> e : p.values.entrySet()) {
+                    // les lignes existantes pointent déjà sur une ligne étrangère
+                    if (e.getValue() instanceof SQLRowValues && newValues.get(e.getKey()) != null)
+                        continue;
+                    newValues.put(e.getKey(), e.getValue());
+                }
+                if (!newValues.equals(existingRow.getAbsolutelyAll()))
+                    toUpdate.add(new SQLRowValues(this.table, newValues));
+            }
+        }
+        if (!save) {
+            this.valuesToInsert.addAll(toInsert);
+            this.valuesToUpdate.addAll(toUpdate);
+            return;
+        }
+        if (toInsert.isEmpty() && toUpdate.isEmpty())
+            return;
+
+        final List<Number> ids = SQLUtils.executeAtomic(this.table.getDBSystemRoot().getDataSource(), new SQLUtils.SQLFactory<List<Number>>() {
+            @Override
+            public List<Number> create() throws SQLException {
+                final List<Number> res = new ArrayList<Number>(toInsert.size());
+                for (final SQLRowValues row : toInsert) {
+                    res.add(row.insert().getIDNumber());
+                }
+                for (final SQLRowValues row : toUpdate) {
+                    row.update();
+                }
+                return res;
+            }
+        });
+        // only now that they're committed, the next lines can update them
+        for (int i = 0; i < inserted.size(); i++) {
+            final PendingRow p = inserted.get(i);
+            for (int j = 0; j < p.keys.length; j++) {
+                if (p.keys[j] != null)
+                    this.index.get(this.uniqueField.get(j)).put(p.keys[j], ids.get(i));
+            }
+        }
+        this.insertedCount += toInsert.size();
+        this.updatedCount += toUpdate.size();
     }
 
     public void setSkipFirstLine(boolean skipFirstLine) {
         this.skipFirstLine = skipFirstLine;
     }
 
+    /**
+     * Crée une source pour un fichier ODS, CSV ou XLS.
+     * 
+     * @param file le fichier.
+     * @return une nouvelle source, à fermer.
+     * @throws IOException si le fichier n'a pu être ouvert.
+     */
+    public RowSource createRowSource(File file) throws IOException {
+        if (!file.exists()) {
+            throw new IllegalArgumentException(file.getAbsolutePath() + " does not exist");
+        }
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".ods")) {
+            return new ODSRowSource(file, this.skipFirstLine);
+        } else if (name.endsWith(".csv")) {
+            return new CSVRowSource(file, this.skipFirstLine);
+        } else if (name.endsWith(".xls")) {
+            return new XLSRowSource(file, this.skipFirstLine);
+        }
+        throw new IllegalArgumentException("File format not supported");
+    }
+
     public ArrayTableModel createModelFrom(File file) throws IOException {
         if (!file.exists()) {
             throw new IllegalArgumentException(file.getAbsolutePath() + " does not exist");
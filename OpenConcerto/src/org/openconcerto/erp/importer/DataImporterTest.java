@@ -0,0 +1,181 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.importer;
+
+import org.openconcerto.sql.model.DBRoot;
+import org.openconcerto.sql.model.DBSystemRoot;
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLServer;
+import org.openconcerto.sql.model.SQLSystem;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.utils.SQLCreateTable;
+import org.openconcerto.utils.cc.IClosure;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Importe des lignes dans une base H2 en mémoire et vérifie le rapprochement par champ unique :
+ * mise à jour des lignes existantes, des lignes insérées par un lot précédent et fusion des
+ * lignes d'un même lot, insertion si la seule ligne correspondante est archivée, lignes rejetées
+ * par une contrainte et lignes inchangées non mises à jour. Vérifie aussi que
+ * {@link DataImporter#importFromModel(ArrayTableModel)} n'enregistre rien.
+ * 
+ * <pre>
+ * java org.openconcerto.erp.importer.DataImporterTest
+ * </pre>
+ */
+public class DataImporterTest {
+
+    private static final String ROOT = "Test";
+
+    public static void main(String[] args) throws Exception {
+        final DBSystemRoot sysRoot = new SQLServer(SQLSystem.H2, "mem", null, null, null, new IClosure<DBSystemRoot>() {
+            @Override
+            public void executeChecked(DBSystemRoot input) {
+                input.setRootsToMap(Collections.singleton(ROOT));
+                input.initUseCache(false);
+            }
+        }, null).getSystemRoot("");
+        try {
+            sysRoot.getDataSource().execute("CREATE SCHEMA \"" + ROOT + "\"");
+            final DBRoot root = sysRoot.addRoot(ROOT, false);
+            final SQLCreateTable createTable = new SQLCreateTable(root, "ARTICLE");
+            createTable.addVarCharColumn("CODE", 32);
+            createTable.addVarCharColumn("NOM", 128);
+            final SQLTable table = root.createTable(createTable);
+            new SQLRowValues(table).put("CODE", "A1").put("NOM", "ancien").insert();
+            new SQLRowValues(table).put("CODE", "A2").put("NOM", "archivé").put(table.getArchiveField().getName(), 1).insert();
+            new SQLRowValues(table).put("CODE", "U1").put("NOM", "inchangé").insert();
+
+            final DataImporter importer = createImporter(table);
+            importer.setBatchSize(2);
+            final List<Integer> rejected = new ArrayList<Integer>();
+            final int[] counts = new int[3];
+            importer.addListener(new DataImporter.Listener() {
+                @Override
+                public void lineRejected(int line, List<Object> values) {
+                    rejected.add(line);
+                }
+
+                @Override
+                public void batchCommitted(int lineCount, int insertedCount, int updatedCount) {
+                    counts[0] = lineCount;
+                    counts[1] = insertedCount;
+                    counts[2] = updatedCount;
+                }
+
+                @Override
+                public void batchFailed(int lineCount, SQLException e) {
+                    throw new IllegalStateException("Batch failed at " + lineCount, e);
+                }
+            });
+            importer.importFrom(new ListRowSource(
+                    // existante
+                    "A1", "nouveau",
+                    // insérée puis mise à jour par le lot suivant
+                    "B1", "b", "", "vide", "B1", "b bis",
+                    // insérée
+                    "D1", "d",
+                    // fusionnées dans le même lot
+                    "E1", "e", "E1", "e bis",
+                    // seule la ligne archivée existe
+                    "A2", "a2",
+                    // pas de mise à jour
+                    "U1", "inchangé"));
+            check(rejected.equals(Arrays.asList(2)), "rejected : " + rejected);
+            check(Arrays.equals(counts, new int[] { 9, 4, 2 }), "counts : " + Arrays.toString(counts));
+            final Map<String, String> expected = new HashMap<String, String>();
+            expected.put("A1", "nouveau");
+            expected.put("A2", "a2");
+            expected.put("B1", "b bis");
+            expected.put("D1", "d");
+            expected.put("E1", "e bis");
+            expected.put("U1", "inchangé");
+            check(getRows(table).equals(expected), "rows : " + getRows(table));
+
+            // simulation
+            final DataImporter dryRun = createImporter(table);
+            dryRun.importFromModel(new ArrayTableModel(Arrays.asList(Arrays.<Object> asList("A1", "nouveau"), Arrays.<Object> asList("Z1", "z"), Arrays.<Object> asList("B1", "b ter"))));
+            check(dryRun.getValuesToInsert().size() == 1 && dryRun.getValuesToInsert().get(0).getString("CODE").equals("Z1"), "to insert : " + dryRun.getValuesToInsert());
+            check(dryRun.getValuesToUpdate().size() == 1 && dryRun.getValuesToUpdate().get(0).getString("NOM").equals("b ter"), "to update : " + dryRun.getValuesToUpdate());
+            check(getRows(table).equals(expected), "rows after simulation : " + getRows(table));
+
+            System.out.println("OK");
+        } finally {
+            sysRoot.getServer().destroy();
+        }
+    }
+
+    private static DataImporter createImporter(final SQLTable table) {
+        final DataImporter res = new DataImporter(table);
+        res.map(0, table.getField("CODE"));
+        res.map(1, table.getField("NOM"));
+        res.addContraint(0, new NotEmptyConstraint());
+        res.addUniqueField(table.getField("CODE"));
+        return res;
+    }
+
+    // CODE -> NOM des lignes non archivées
+    private static Map<String, String> getRows(final SQLTable table) {
+        final SQLSelect sel = new SQLSelect();
+        sel.addSelect(table.getField("CODE"));
+        sel.addSelect(table.getField("NOM"));
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> rows = table.getDBSystemRoot().getDataSource().execute(sel.asString());
+        final Map<String, String> res = new HashMap<String, String>();
+        for (final Map<String, Object> row : rows) {
+            if (res.put((String) row.get("CODE"), (String) row.get("NOM")) != null)
+                throw new IllegalStateException("Duplicate " + row);
+        }
+        return res;
+    }
+
+    static private void check(final boolean b, final String msg) {
+        if (!b)
+            throw new IllegalStateException(msg);
+    }
+
+    private static final class ListRowSource implements RowSource {
+        private final Iterator<String> values;
+
+        ListRowSource(final String... values) {
+            this.values = Arrays.asList(values).iterator();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return 2;
+        }
+
+        @Override
+        public List<Object> nextRow() throws IOException {
+            if (!this.values.hasNext())
+                return null;
+            return Arrays.<Object> asList(this.values.next(), this.values.next());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.importer;
+
+import org.openconcerto.openoffice.spreadsheet.Sheet;
+import org.openconcerto.openoffice.spreadsheet.SpreadSheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Les lignes de la première feuille d'un fichier ODS. Le nombre de colonnes est celui des
+ * premières cellules non vides de la première ligne. Le document est chargé en mémoire, mais ses
+ * valeurs ne sont lues que par blocs de lignes.
+ */
+public class ODSRowSource implements RowSource {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private final Sheet sheet;
+    private final int rowCount;
+    private final int columnCount;
+    private int y;
+    private Object[][] chunk;
+    private int chunkStart;
+
+    public ODSRowSource(final File odsFile, final boolean skipFirstLine) throws IOException {
+        final SpreadSheet spreadSheet = SpreadSheet.createFromFile(odsFile);
+        this.sheet = spreadSheet.getSheetCount() < 1 ? null : spreadSheet.getSheet(0);
+        this.rowCount = this.sheet == null ? 0 : this.sheet.getRowCount();
+        int columnCount = 0;
+        if (this.rowCount > 0) {
+            final int maxColumnCount = this.sheet.getColumnCount();
+            for (int j = 0; j < maxColumnCount; j++) {
+                final Object valueAt = this.sheet.getValueAt(j, 0);
+                if (valueAt == null || valueAt.toString().trim().isEmpty()) {
+                    break;
+                }
+                columnCount++;
+            }
+        }
+        this.columnCount = columnCount;
+        this.y = skipFirstLine ? 1 : 0;
+        this.chunk = null;
+        this.chunkStart = -1;
+    }
+
+    /**
+     * Si le fichier contient au moins une feuille.
+     * 
+     * @return <code>false</code> si le fichier n'a aucune feuille.
+     */
+    final boolean hasSheet() {
+        return this.sheet != null;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return this.columnCount;
+    }
+
+    @Override
+    public List<Object> nextRow() {
+        if (this.y >= this.rowCount)
+            return null;
+        if (this.chunk == null || this.y >= this.chunkStart + this.chunk.length) {
+            this.chunkStart = this.y;
+            // les lignes répétées ne sont lues qu'une fois
+            this.chunk = this.sheet.getValues(0, this.chunkStart, this.columnCount, Math.min(CHUNK_SIZE, this.rowCount - this.chunkStart));
+        }
+        final Object[] values = this.chunk[this.y - this.chunkStart];
+        this.y++;
+        return new ArrayList<Object>(Arrays.asList(values));
+    }
+
+    @Override
+    public void close() {
+        this.chunk = null;
+    }
+}
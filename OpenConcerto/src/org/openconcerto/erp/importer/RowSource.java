@@ -0,0 +1,41 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.importer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Des lignes à importer, lues une à une pour ne pas avoir tout le fichier en mémoire.
+ * 
+ * @see DataImporter#importFrom(RowSource)
+ */
+public interface RowSource extends Closeable {
+
+    /**
+     * Le nombre de colonnes, toutes les lignes retournées ont cette taille.
+     * 
+     * @return le nombre de colonnes.
+     */
+    int getColumnCount();
+
+    /**
+     * Lit la ligne suivante.
+     * 
+     * @return les valeurs de la ligne, <code>null</code> s'il n'y en a plus.
+     * @throws IOException si la ligne n'a pu être lue.
+     */
+    List<Object> nextRow() throws IOException;
+}
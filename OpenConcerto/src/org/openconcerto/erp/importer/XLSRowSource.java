@@ -0,0 +1,123 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.importer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+
+/**
+ * Les lignes de la première feuille d'un fichier XLS, les formules sont évaluées ligne par ligne.
+ * Le nombre de colonnes est le plus grand nombre de cellules d'une ligne.
+ */
+public class XLSRowSource implements RowSource {
+
+    private final Iterator<Row> rowsIterator;
+    private final FormulaEvaluator evaluator;
+    private final int columnCount;
+
+    public XLSRowSource(final File xlsFile, final boolean skipFirstLine) throws IOException {
+        final InputStream inputStream = new FileInputStream(xlsFile);
+        final HSSFWorkbook workBook;
+        try {
+            final POIFSFileSystem fileSystem = new POIFSFileSystem(new BufferedInputStream(inputStream));
+            workBook = new HSSFWorkbook(fileSystem);
+        } finally {
+            inputStream.close();
+        }
+        final HSSFSheet sheet = workBook.getSheetAt(0);
+        Iterator<Row> rowsIterator = sheet.rowIterator();
+        int columnCount = 0;
+        while (rowsIterator.hasNext()) {
+            final Row row = rowsIterator.next();
+            final int i = row.getPhysicalNumberOfCells();
+            if (i > columnCount) {
+                columnCount = i;
+            }
+        }
+        this.columnCount = columnCount;
+        rowsIterator = sheet.rowIterator();
+        if (skipFirstLine && rowsIterator.hasNext()) {
+            rowsIterator.next();
+        }
+        this.rowsIterator = rowsIterator;
+        this.evaluator = workBook.getCreationHelper().createFormulaEvaluator();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return this.columnCount;
+    }
+
+    @Override
+    public List<Object> nextRow() {
+        if (!this.rowsIterator.hasNext())
+            return null;
+        final Row row = this.rowsIterator.next();
+        final List<Object> rowData = new ArrayList<Object>(this.columnCount);
+        for (int i = 0; i < this.columnCount; i++) {
+            final Cell cell = row.getCell(i);
+
+            if (cell == null) {
+                rowData.add("");
+            } else {
+                final CellValue cellValue = this.evaluator.evaluate(cell);
+                if (cellValue == null) {
+                    rowData.add("");
+                } else {
+                    switch (cellValue.getCellType()) {
+                    case Cell.CELL_TYPE_BOOLEAN:
+                        rowData.add(Boolean.valueOf(cellValue.getBooleanValue()));
+                        break;
+                    case Cell.CELL_TYPE_NUMERIC:
+                        rowData.add(Double.valueOf(cellValue.getNumberValue()));
+                        break;
+                    case Cell.CELL_TYPE_STRING:
+                        rowData.add(cellValue.getStringValue());
+                        break;
+                    case Cell.CELL_TYPE_FORMULA:
+                        rowData.add(cell.getCellFormula());
+                        break;
+                    case Cell.CELL_TYPE_BLANK:
+                        rowData.add("");
+                        break;
+                    default:
+                        rowData.add(cellValue.getStringValue());
+                        break;
+
+                    }
+                }
+            }
+        }
+        return rowData;
+    }
+
+    @Override
+    public void close() {
+        // le classeur a été lu par le constructeur
+    }
+}
@@ -85,6 +85,12 @@ public class ISQLCompteSelector extends ElementComboBox {
                         public boolean match(String item) {
                             return item.startsWith(this.getSearch());
                         }
+
+                        @Override
+                        public boolean refines(ComboMatcher previous) {
+                            // not for the matcher of MODE_CONTAINS, e.g. "41 cli" then "41"
+                            return previous.getClass() == this.getClass() && this.getSearch().startsWith(previous.getSearch());
+                        }
                     };
                 else
                     return ISearchableCombo.MODE_CONTAINS.matcher(search);
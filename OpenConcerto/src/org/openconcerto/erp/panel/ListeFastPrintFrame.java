@@ -14,6 +14,8 @@
  package org.openconcerto.erp.panel;
 
 import org.openconcerto.erp.generationDoc.AbstractSheetXml;
+import org.openconcerto.erp.generationDoc.DocumentBatch;
+import org.openconcerto.erp.generationDoc.DocumentGeneratorManager;
 import org.openconcerto.sql.model.SQLRow;
 import org.openconcerto.sql.model.SQLRowAccessor;
 import org.openconcerto.ui.DefaultGridBagConstraints;
@@ -24,8 +26,10 @@ import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.JButton;
@@ -50,7 +54,8 @@ public class ListeFastPrintFrame extends JFrame {
     private final JProgressBar bar = new JProgressBar();
     private final JSpinner spin;
     Thread thread;
-    private boolean cancelOp = false;
+    private volatile boolean cancelOp = false;
+    private DocumentBatch batch = null;
 
     private final JButton valid, cancel;
 
@@ -121,6 +126,10 @@ public class ListeFastPrintFrame extends JFrame {
 
                 if (ListeFastPrintFrame.this.thread != null && ListeFastPrintFrame.this.thread.isAlive()) {
                     ListeFastPrintFrame.this.cancelOp = true;
+                    final DocumentBatch b = ListeFastPrintFrame.this.batch;
+                    if (b != null) {
+                        b.cancel();
+                    }
                 } else {
                     ListeFastPrintFrame.this.dispose();
                 }
@@ -157,22 +166,48 @@ public class ListeFastPrintFrame extends JFrame {
                         ListeFastPrintFrame.this.bar.setString("0/" + ListeFastPrintFrame.this.liste.size());
                     }
                 });
+                // Création en parallèle des documents manquants
+                final List<AbstractSheetXml> sheets = new ArrayList<AbstractSheetXml>(ListeFastPrintFrame.this.liste.size());
+                final List<AbstractSheetXml> toCreate = new ArrayList<AbstractSheetXml>();
                 for (final SQLRowAccessor rowAt : ListeFastPrintFrame.this.liste) {
-
                     final AbstractSheetXml bSheet = ListeFastPrintFrame.this.createAbstractSheet(rowAt.asRow());
+                    sheets.add(bSheet);
                     if (!bSheet.getGeneratedFile().exists()) {
-
-                        try {
+                        toCreate.add(bSheet);
+                    }
+                }
+                if (!toCreate.isEmpty()) {
+                    ListeFastPrintFrame.this.batch = DocumentGeneratorManager.getInstance().createBatch(toCreate);
+                    ListeFastPrintFrame.this.batch.addListener(new DocumentBatch.Listener() {
+                        @Override
+                        public void documentCreated(final int done, final int total, AbstractSheetXml sheet, File f) {
+                            sheet.showPrintAndExportAsynchronous(false, false, true);
                             SwingUtilities.invokeLater(new Runnable() {
                                 public void run() {
-                                    ListeFastPrintFrame.this.operation.setText("Création du document " + bSheet.getGeneratedFile());
+                                    ListeFastPrintFrame.this.operation.setText("Création des documents " + done + "/" + total);
                                 }
                             });
-                            bSheet.createDocument();
-                            bSheet.showPrintAndExportAsynchronous(false, false, true);
-                        } catch (Exception e) {
-                            ExceptionHandler.handle("Erreur lors de l'impression du document " + bSheet.getGeneratedFile());
                         }
+
+                        @Override
+                        public void documentFailed(int done, int total, AbstractSheetXml sheet, Throwable e) {
+                            ExceptionHandler.handle("Erreur lors de la création du document " + sheet.getGeneratedFile(), e);
+                        }
+                    });
+                    try {
+                        ListeFastPrintFrame.this.batch.run();
+                    } catch (InterruptedException e) {
+                        ListeFastPrintFrame.this.cancelOp = true;
+                    }
+                }
+
+                for (final AbstractSheetXml bSheet : sheets) {
+                    if (ListeFastPrintFrame.this.cancelOp) {
+                        break;
+                    }
+                    if (!bSheet.getGeneratedFile().exists()) {
+                        // Erreur déjà signalée
+                        continue;
                     }
 
                     SwingUtilities.invokeLater(new Runnable() {
@@ -23,6 +23,16 @@ import java.io.InputStream;
 
 public class CloudStorageEngine implements StorageEngine {
 
+    @Override
+    public String getID() {
+        return "cloud";
+    }
+
+    @Override
+    public String getName() {
+        return "Cloud OpenConcerto";
+    }
+
     @Override
     public boolean isConfigured() {
         return true;
@@ -0,0 +1,85 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.storage;
+
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.StreamUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stockage dans un répertoire, e.g. un partage réseau monté localement. Permet aussi de tester
+ * {@link StorageQueue} sans serveur.
+ */
+public class DirectoryStorageEngine implements StorageEngine {
+
+    private final File root;
+
+    public DirectoryStorageEngine(final File root) {
+        this.root = root;
+    }
+
+    public final File getRoot() {
+        return this.root;
+    }
+
+    // plusieurs répertoires peuvent être enregistrés
+    @Override
+    public String getID() {
+        return "directory:" + this.root.getAbsolutePath();
+    }
+
+    @Override
+    public String getName() {
+        return "Répertoire " + this.root.getAbsolutePath();
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return this.root.isDirectory();
+    }
+
+    @Override
+    public boolean allowAutoStorage() {
+        return true;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (!this.root.isDirectory())
+            throw new IOException("Répertoire inaccessible : " + this.root);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+    }
+
+    @Override
+    public void store(InputStream inStream, String remotePath, String title, boolean synchronous) throws IOException {
+        final File dir = FileUtils.mkdir_p(new File(this.root, remotePath.replace('\\', '/')));
+        final File dest = new File(dir, title);
+        // pas de fichier partiel en cas d'erreur
+        final File tmp = File.createTempFile("upload", ".tmp", dir);
+        try {
+            StreamUtils.copy(inStream, tmp);
+            FileUtils.rm(dest);
+            if (!tmp.renameTo(dest))
+                throw new IOException("Impossible de renommer " + tmp + " en " + dest);
+        } finally {
+            tmp.delete();
+        }
+    }
+}
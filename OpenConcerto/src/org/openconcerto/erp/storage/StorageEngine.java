@@ -17,6 +17,21 @@ import java.io.IOException;
 import java.io.InputStream;
 
 public interface StorageEngine {
+    /**
+     * Identifie ce service, e.g. dans les envois en attente de {@link StorageQueue}. Doit être
+     * unique parmi les services enregistrés et rester le même d'une session à l'autre.
+     * 
+     * @return l'identifiant, e.g. "cloud".
+     */
+    public String getID();
+
+    /**
+     * Le nom affiché à l'utilisateur.
+     * 
+     * @return le nom, e.g. "Cloud OpenConcerto".
+     */
+    public String getName();
+
     public boolean isConfigured();
 
     public boolean allowAutoStorage();
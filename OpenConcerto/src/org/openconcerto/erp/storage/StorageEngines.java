@@ -13,8 +13,8 @@
  
  package org.openconcerto.erp.storage;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class StorageEngines {
     private static final StorageEngines instance = new StorageEngines();
@@ -23,7 +23,8 @@ public class StorageEngines {
         return instance;
     }
 
-    private List<StorageEngine> engines = new ArrayList<StorageEngine>();
+    // also read by the threads of StorageQueue
+    private final List<StorageEngine> engines = new CopyOnWriteArrayList<StorageEngine>();
 
     public List<StorageEngine> getActiveEngines() {
         // TODO use a map to store active engines;
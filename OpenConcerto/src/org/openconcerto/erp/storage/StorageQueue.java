@@ -0,0 +1,627 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.storage;
+
+import org.openconcerto.erp.config.ComptaPropsConfiguration;
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.ThreadFactory;
+import org.openconcerto.utils.sync.HashWriter;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * File d'envoi des documents vers les {@link StorageEngine}. Le document est d'abord copié dans un
+ * répertoire local, {@link #add(StorageEngine, File, String, String)} rend la main tout de suite,
+ * puis il est envoyé en arrière-plan par un nombre limité de threads. Un envoi qui échoue est
+ * réessayé de plus en plus tard, et la file est conservée d'une session à l'autre.
+ * <p>
+ * Un même contenu n'est copié qu'une fois quel que soit le nombre de services. Un document ajouté
+ * alors qu'une version précédente n'est pas encore partie la remplace. Chaque service a une limite
+ * d'envois simultanés, 1 par défaut car les services gardent leur connexion dans des attributs.
+ * </p>
+ * 
+ * @see StorageQueuePanel
+ */
+public class StorageQueue {
+
+    public static final String UPLOADS_PROPERTY = "uploads";
+
+    private static final String DATA_EXT = ".data";
+    private static final String UPLOAD_EXT = ".properties";
+    private static final int POOL_SIZE = 4;
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long RETRY_DELAY = 30 * 1000;
+    private static final long MAX_RETRY_DELAY = 60 * 60 * 1000;
+    private static final long CHECK_PERIOD = 15;
+
+    private static StorageQueue instance;
+
+    public static synchronized StorageQueue getInstance() {
+        if (instance == null) {
+            instance = new StorageQueue(new File(ComptaPropsConfiguration.getInstanceCompta().getConfDir(), "StorageQueue"), StorageEngines.getInstance());
+            instance.start();
+        }
+        return instance;
+    }
+
+    static Logger getLogger() {
+        return Logger.getLogger(StorageQueue.class.getName());
+    }
+
+    public static enum State {
+        PENDING("En attente"), RUNNING("En cours"), FAILED("Échec");
+
+        private final String label;
+
+        private State(final String label) {
+            this.label = label;
+        }
+
+        public final String getLabel() {
+            return this.label;
+        }
+    }
+
+    /**
+     * Un document à envoyer. Immuable, chaque changement crée une nouvelle instance.
+     */
+    public static final class Upload {
+        private final String id;
+        private final String engine;
+        private final String remotePath;
+        private final String title;
+        private final String data;
+        private final long size;
+        private final long created;
+        private final State state;
+        private final int attempts;
+        private final long nextAttempt;
+        private final String error;
+
+        Upload(String id, String engine, String remotePath, String title, String data, long size, long created, State state, int attempts, long nextAttempt, String error) {
+            this.id = id;
+            this.engine = engine;
+            this.remotePath = remotePath;
+            this.title = title;
+            this.data = data;
+            this.size = size;
+            this.created = created;
+            this.state = state;
+            this.attempts = attempts;
+            this.nextAttempt = nextAttempt;
+            this.error = error;
+        }
+
+        final Upload setState(final State state, final int attempts, final long nextAttempt, final String error) {
+            return new Upload(this.id, this.engine, this.remotePath, this.title, this.data, this.size, this.created, state, attempts, nextAttempt, error);
+        }
+
+        public final String getID() {
+            return this.id;
+        }
+
+        /**
+         * Le service de destination.
+         * 
+         * @return l'identifiant du service.
+         * @see StorageEngine#getID()
+         */
+        public final String getEngine() {
+            return this.engine;
+        }
+
+        public final String getRemotePath() {
+            return this.remotePath;
+        }
+
+        public final String getTitle() {
+            return this.title;
+        }
+
+        public final long getSize() {
+            return this.size;
+        }
+
+        public final long getCreated() {
+            return this.created;
+        }
+
+        public final State getState() {
+            return this.state;
+        }
+
+        public final int getAttempts() {
+            return this.attempts;
+        }
+
+        public final long getNextAttempt() {
+            return this.nextAttempt;
+        }
+
+        public final String getError() {
+            return this.error;
+        }
+
+        // les envois d'un même fichier vers un même service
+        final String getKey() {
+            return this.engine + '\0' + this.remotePath + '\0' + this.title;
+        }
+
+        @Override
+        public String toString() {
+            return this.getClass().getSimpleName() + " " + this.title + " to " + this.engine + " " + this.state;
+        }
+    }
+
+    private final File dir;
+    private final StorageEngines engines;
+    // par ordre d'ajout
+    private final Map<String, Upload> uploads;
+    private final Set<String> runningKeys;
+    private final Map<String, Integer> runningByEngine;
+    private final Map<String, Integer> maxByEngine;
+    private final PropertyChangeSupport supp;
+    private int idCount;
+    private ExecutorService exec;
+    private ScheduledExecutorService timer;
+
+    /**
+     * Crée une file.
+     * 
+     * @param dir le répertoire où sont conservés les documents à envoyer.
+     * @param engines les services, l'envoi vers un service absent attend qu'il soit ajouté.
+     */
+    public StorageQueue(final File dir, final StorageEngines engines) {
+        this.dir = dir;
+        this.engines = engines;
+        this.uploads = new LinkedHashMap<String, Upload>();
+        this.runningKeys = new HashSet<String>();
+        this.runningByEngine = new HashMap<String, Integer>();
+        this.maxByEngine = new HashMap<String, Integer>();
+        this.supp = new PropertyChangeSupport(this);
+        this.idCount = 0;
+        this.exec = null;
+        this.timer = null;
+    }
+
+    /**
+     * Charge les envois de la session précédente et commence à envoyer.
+     */
+    public synchronized void start() {
+        if (this.exec != null)
+            return;
+        try {
+            FileUtils.mkdir_p(this.dir);
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Impossible de créer " + this.dir, e);
+        }
+        this.load();
+        this.exec = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(StorageQueue.class.getSimpleName() + " ", true));
+        ((ThreadPoolExecutor) this.exec).allowCoreThreadTimeOut(true);
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory(StorageQueue.class.getSimpleName() + " timer ", true));
+        // les nouvelles tentatives et les services ajoutés après le démarrage
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                schedule();
+            }
+        }, CHECK_PERIOD, CHECK_PERIOD, TimeUnit.SECONDS);
+        this.timer = timer;
+        this.schedule();
+    }
+
+    /**
+     * Arrête d'envoyer, les envois en cours se terminent et les autres seront faits à la prochaine
+     * session.
+     */
+    public synchronized void stop() {
+        if (this.exec == null)
+            return;
+        this.timer.shutdown();
+        this.timer = null;
+        this.exec.shutdown();
+        this.exec = null;
+    }
+
+    /**
+     * Limite le nombre d'envois simultanés vers un service.
+     * 
+     * @param engine le service.
+     * @param max le nombre maximum d'envois simultanés.
+     */
+    public synchronized void setMaxConcurrency(final StorageEngine engine, final int max) {
+        if (max < 1)
+            throw new IllegalArgumentException("Maximum must be positive : " + max);
+        this.maxByEngine.put(engine.getID(), max);
+        this.schedule();
+    }
+
+    private synchronized int getMaxConcurrency(final String engine) {
+        final Integer res = this.maxByEngine.get(engine);
+        return res == null ? 1 : res.intValue();
+    }
+
+    // ** add
+
+    /**
+     * Ajoute un fichier à envoyer. Le fichier est copié, il peut donc être modifié ou supprimé
+     * dès le retour de cette méthode.
+     * 
+     * @param engine le service de destination.
+     * @param f le fichier.
+     * @param remotePath le répertoire de destination, e.g. "Factures/2014".
+     * @param title le nom du fichier une fois envoyé.
+     * @return l'envoi.
+     * @throws IOException si le fichier n'a pu être copié.
+     */
+    public Upload add(final StorageEngine engine, final File f, final String remotePath, final String title) throws IOException {
+        final InputStream in = new FileInputStream(f);
+        try {
+            return this.add(engine, in, remotePath, title);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Ajoute un contenu à envoyer.
+     * 
+     * @param engine le service de destination.
+     * @param in le contenu, lu entièrement avant le retour de cette méthode mais pas fermé.
+     * @param remotePath le répertoire de destination, e.g. "Factures/2014".
+     * @param title le nom du fichier une fois envoyé.
+     * @return l'envoi.
+     * @throws IOException si le contenu n'a pu être copié.
+     */
+    public Upload add(final StorageEngine engine, final InputStream in, final String remotePath, final String title) throws IOException {
+        final String engineID = engine.getID();
+        FileUtils.mkdir_p(this.dir);
+        // copie hors du verrou, le nom du fichier étant l'empreinte du contenu
+        final File tmp = File.createTempFile("spool", ".tmp", this.dir);
+        final String hash;
+        final long size;
+        try {
+            final MessageDigest digest = HashWriter.createDigest("SHA-256");
+            final OutputStream out = new FileOutputStream(tmp);
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                long total = 0;
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                    digest.update(buffer, 0, count);
+                    total += count;
+                }
+                size = total;
+            } finally {
+                out.close();
+            }
+            hash = toHex(digest.digest());
+            synchronized (this) {
+                final File dataFile = this.getDataFile(hash);
+                if (!dataFile.exists() && !tmp.renameTo(dataFile))
+                    throw new IOException("Impossible de renommer " + tmp + " en " + dataFile);
+
+                final long now = System.currentTimeMillis();
+                final Upload res = new Upload(String.format("%013d-%04d", now, this.idCount++ % 10000), engineID, remotePath.replace('\\', '/'), title, hash, size, now, State.PENDING, 0, now, null);
+                this.save(res);
+                this.uploads.put(res.id, res);
+                // remplace la version précédente qui n'est pas encore partie (après l'ajout de res
+                // pour garder le contenu s'il est identique)
+                for (final Upload u : new ArrayList<Upload>(this.uploads.values())) {
+                    if (u != res && u.state != State.RUNNING && u.getKey().equals(res.getKey()))
+                        this.remove(u);
+                }
+                this.fireChange();
+                this.schedule();
+                return res;
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Les envois en attente, en cours ou en échec.
+     * 
+     * @return les envois, par ordre d'ajout.
+     */
+    public synchronized List<Upload> getUploads() {
+        return new ArrayList<Upload>(this.uploads.values());
+    }
+
+    /**
+     * Réessaye immédiatement des envois, même ceux abandonnés.
+     * 
+     * @param ids les identifiants des envois.
+     */
+    public synchronized void retry(final Collection<String> ids) {
+        final long now = System.currentTimeMillis();
+        for (final String id : ids) {
+            final Upload u = this.uploads.get(id);
+            if (u != null && u.state != State.RUNNING) {
+                this.update(u.setState(State.PENDING, 0, now, u.error));
+            }
+        }
+        this.fireChange();
+        this.schedule();
+    }
+
+    /**
+     * Annule des envois, ceux en cours ne peuvent être annulés.
+     * 
+     * @param ids les identifiants des envois.
+     */
+    public synchronized void cancel(final Collection<String> ids) {
+        for (final String id : ids) {
+            final Upload u = this.uploads.get(id);
+            if (u != null && u.state != State.RUNNING)
+                this.remove(u);
+        }
+        this.fireChange();
+    }
+
+    // ** upload
+
+    private StorageEngine findEngine(final String engineID) {
+        for (final StorageEngine e : this.engines.getActiveEngines()) {
+            if (e.getID().equals(engineID))
+                return e;
+        }
+        return null;
+    }
+
+    /**
+     * Le nom du service de destination d'un envoi.
+     * 
+     * @param u un envoi.
+     * @return le nom du service, ou son identifiant s'il n'est pas enregistré.
+     */
+    public String getEngineName(final Upload u) {
+        final StorageEngine engine = this.findEngine(u.engine);
+        return engine == null ? u.engine : engine.getName();
+    }
+
+    private synchronized void schedule() {
+        if (this.exec == null)
+            return;
+        final long now = System.currentTimeMillis();
+        int running = this.runningKeys.size();
+        for (final Upload u : new ArrayList<Upload>(this.uploads.values())) {
+            if (running >= POOL_SIZE)
+                break;
+            if (u.state != State.PENDING || u.nextAttempt > now || this.runningKeys.contains(u.getKey()))
+                continue;
+            final Integer engineCount = this.runningByEngine.get(u.engine);
+            final int count = engineCount == null ? 0 : engineCount.intValue();
+            if (count >= this.getMaxConcurrency(u.engine))
+                continue;
+            final StorageEngine engine = this.findEngine(u.engine);
+            if (engine == null || !engine.isConfigured())
+                continue;
+
+            final Upload runningUpload = u.setState(State.RUNNING, u.attempts, u.nextAttempt, u.error);
+            this.uploads.put(u.id, runningUpload);
+            this.runningKeys.add(u.getKey());
+            this.runningByEngine.put(u.engine, count + 1);
+            running++;
+            this.exec.execute(new Runnable() {
+                @Override
+                public void run() {
+                    finished(runningUpload, upload(engine, runningUpload));
+                }
+            });
+            this.fireChange();
+        }
+    }
+
+    private Exception upload(final StorageEngine engine, final Upload u) {
+        try {
+            engine.connect();
+            try {
+                final InputStream in = new BufferedInputStream(new FileInputStream(this.getDataFile(u.data)));
+                try {
+                    engine.store(in, u.remotePath, u.title, true);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                engine.disconnect();
+            }
+            return null;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    private synchronized void finished(final Upload u, final Exception error) {
+        this.runningKeys.remove(u.getKey());
+        final int count = this.runningByEngine.get(u.engine).intValue() - 1;
+        if (count == 0)
+            this.runningByEngine.remove(u.engine);
+        else
+            this.runningByEngine.put(u.engine, count);
+
+        if (error == null) {
+            getLogger().log(Level.INFO, "Envoyé : " + u.title + " vers " + u.engine);
+            this.remove(u);
+        } else {
+            final int attempts = u.attempts + 1;
+            final boolean abandon = attempts >= MAX_ATTEMPTS;
+            getLogger().log(abandon ? Level.SEVERE : Level.WARNING, "Échec de l'envoi de " + u.title + " vers " + u.engine + " (essai " + attempts + ")", error);
+            final long delay = Math.min(RETRY_DELAY << Math.min(attempts - 1, 20), MAX_RETRY_DELAY);
+            final String msg = error.getMessage() == null ? error.getClass().getSimpleName() : error.getMessage();
+            this.update(u.setState(abandon ? State.FAILED : State.PENDING, attempts, System.currentTimeMillis() + delay, msg));
+        }
+        this.fireChange();
+        this.schedule();
+    }
+
+    // ** persistence
+
+    private File getDataFile(final String hash) {
+        return new File(this.dir, hash + DATA_EXT);
+    }
+
+    private File getUploadFile(final String id) {
+        return new File(this.dir, id + UPLOAD_EXT);
+    }
+
+    private void update(final Upload u) {
+        this.uploads.put(u.id, u);
+        try {
+            this.save(u);
+        } catch (IOException e) {
+            // sera réessayé depuis le début à la prochaine session
+            getLogger().log(Level.WARNING, "Impossible d'enregistrer " + u, e);
+        }
+    }
+
+    private void save(final Upload u) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty("engine", u.engine);
+        props.setProperty("remotePath", u.remotePath);
+        props.setProperty("title", u.title);
+        props.setProperty("data", u.data);
+        props.setProperty("size", String.valueOf(u.size));
+        props.setProperty("created", String.valueOf(u.created));
+        // un envoi interrompu est à refaire
+        props.setProperty("state", (u.state == State.FAILED ? State.FAILED : State.PENDING).name());
+        props.setProperty("attempts", String.valueOf(u.attempts));
+        props.setProperty("nextAttempt", String.valueOf(u.nextAttempt));
+        if (u.error != null)
+            props.setProperty("error", u.error);
+        final File f = this.getUploadFile(u.id);
+        final File tmp = new File(this.dir, u.id + UPLOAD_EXT + ".tmp");
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, null);
+        } finally {
+            out.close();
+        }
+        FileUtils.rm(f);
+        if (!tmp.renameTo(f))
+            throw new IOException("Impossible de renommer " + tmp + " en " + f);
+    }
+
+    private void remove(final Upload u) {
+        this.uploads.remove(u.id);
+        this.getUploadFile(u.id).delete();
+        for (final Upload other : this.uploads.values()) {
+            if (other.data.equals(u.data))
+                return;
+        }
+        this.getDataFile(u.data).delete();
+    }
+
+    private synchronized void load() {
+        final String[] names = this.dir.list();
+        if (names == null)
+            return;
+        Arrays.sort(names);
+        final Set<String> usedData = new HashSet<String>();
+        for (final String name : names) {
+            if (!name.endsWith(UPLOAD_EXT))
+                continue;
+            final String id = name.substring(0, name.length() - UPLOAD_EXT.length());
+            if (this.uploads.containsKey(id))
+                continue;
+            final File f = new File(this.dir, name);
+            try {
+                final Properties props = new Properties();
+                final InputStream in = new FileInputStream(f);
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+                final String data = props.getProperty("data");
+                if (data == null || !this.getDataFile(data).exists()) {
+                    getLogger().log(Level.WARNING, "Contenu manquant pour " + f);
+                    f.delete();
+                    continue;
+                }
+                final Upload u = new Upload(id, props.getProperty("engine"), props.getProperty("remotePath"), props.getProperty("title"), data, Long.parseLong(props.getProperty("size")),
+                        Long.parseLong(props.getProperty("created")), State.valueOf(props.getProperty("state")), Integer.parseInt(props.getProperty("attempts")), Long.parseLong(props
+                                .getProperty("nextAttempt")), props.getProperty("error"));
+                this.uploads.put(id, u);
+                usedData.add(data);
+            } catch (Exception e) {
+                getLogger().log(Level.WARNING, "Envoi illisible " + f, e);
+            }
+        }
+        // contenus copiés mais dont l'envoi n'a pas été enregistré
+        for (final String name : names) {
+            if (name.endsWith(DATA_EXT) && !usedData.contains(name.substring(0, name.length() - DATA_EXT.length())) || name.endsWith(".tmp"))
+                new File(this.dir, name).delete();
+        }
+        if (!this.uploads.isEmpty())
+            getLogger().log(Level.INFO, this.uploads.size() + " envoi(s) en attente dans " + this.dir);
+    }
+
+    private static String toHex(final byte[] hash) {
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (final byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // ** listeners
+
+    private void fireChange() {
+        this.supp.firePropertyChange(UPLOADS_PROPERTY, null, null);
+    }
+
+    /**
+     * Écoute les changements de la file. Attention, les évènements ne sont pas envoyés dans l'EDT.
+     * 
+     * @param l l'écouteur.
+     */
+    public void addPropertyChangeListener(final PropertyChangeListener l) {
+        this.supp.addPropertyChangeListener(UPLOADS_PROPERTY, l);
+    }
+
+    public void removePropertyChangeListener(final PropertyChangeListener l) {
+        this.supp.removePropertyChangeListener(UPLOADS_PROPERTY, l);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.storage;
+
+import org.openconcerto.erp.storage.StorageQueue.Upload;
+import org.openconcerto.ui.DefaultGridBagConstraints;
+
+import java.awt.FlowLayout;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Affiche les envois de {@link StorageQueue} en attente, en cours ou en échec.
+ */
+public class StorageQueuePanel extends JPanel {
+
+    private static final String[] COLUMNS = { "Document", "Dossier", "Service", "État", "Essais", "Prochain essai", "Erreur" };
+
+    private final StorageQueue queue;
+    private final UploadTableModel model;
+    private final JTable table;
+    private final JLabel summary;
+    private final PropertyChangeListener listener;
+
+    public StorageQueuePanel() {
+        this(StorageQueue.getInstance());
+    }
+
+    public StorageQueuePanel(final StorageQueue queue) {
+        super(new GridBagLayout());
+        this.queue = queue;
+        this.model = new UploadTableModel();
+        this.table = new JTable(this.model);
+        this.summary = new JLabel(" ");
+
+        final GridBagConstraints c = new DefaultGridBagConstraints();
+        c.gridwidth = 2;
+        this.add(this.summary, c);
+        c.gridy++;
+        c.weightx = 1;
+        c.weighty = 1;
+        c.fill = GridBagConstraints.BOTH;
+        this.add(new JScrollPane(this.table), c);
+
+        final JButton retryButton = new JButton("Réessayer");
+        retryButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                StorageQueuePanel.this.queue.retry(getSelectedIDs());
+            }
+        });
+        final JButton cancelButton = new JButton("Annuler l'envoi");
+        cancelButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                StorageQueuePanel.this.queue.cancel(getSelectedIDs());
+            }
+        });
+        final JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(retryButton);
+        buttons.add(cancelButton);
+        c.gridy++;
+        c.weighty = 0;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        this.add(buttons, c);
+
+        this.listener = new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh();
+                    }
+                });
+            }
+        };
+        // n'écouter que lorsque le panneau est affiché
+        this.addHierarchyListener(new HierarchyListener() {
+            @Override
+            public void hierarchyChanged(HierarchyEvent e) {
+                if ((e.getChangeFlags() & HierarchyEvent.DISPLAYABILITY_CHANGED) != 0) {
+                    if (isDisplayable()) {
+                        StorageQueuePanel.this.queue.addPropertyChangeListener(StorageQueuePanel.this.listener);
+                        refresh();
+                    } else {
+                        StorageQueuePanel.this.queue.removePropertyChangeListener(StorageQueuePanel.this.listener);
+                    }
+                }
+            }
+        });
+        this.refresh();
+    }
+
+    private List<String> getSelectedIDs() {
+        final int[] rows = this.table.getSelectedRows();
+        if (rows.length == 0)
+            return Collections.emptyList();
+        final List<String> res = new ArrayList<String>(rows.length);
+        for (final int row : rows)
+            res.add(this.model.getUpload(this.table.convertRowIndexToModel(row)).getID());
+        return res;
+    }
+
+    private void refresh() {
+        final List<String> selected = this.getSelectedIDs();
+        final List<Upload> uploads = this.queue.getUploads();
+        this.model.setUploads(uploads);
+        for (int i = 0; i < uploads.size(); i++) {
+            if (selected.contains(uploads.get(i).getID())) {
+                final int row = this.table.convertRowIndexToView(i);
+                this.table.addRowSelectionInterval(row, row);
+            }
+        }
+        int failed = 0;
+        for (final Upload u : uploads) {
+            if (u.getState() == StorageQueue.State.FAILED || u.getAttempts() > 0)
+                failed++;
+        }
+        if (uploads.isEmpty())
+            this.summary.setText("Aucun document en attente d'envoi");
+        else
+            this.summary.setText(uploads.size() + " document(s) en attente d'envoi, dont " + failed + " en erreur");
+    }
+
+    private final class UploadTableModel extends AbstractTableModel {
+
+        private final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
+        private List<Upload> uploads = Collections.emptyList();
+
+        final void setUploads(final List<Upload> uploads) {
+            this.uploads = uploads;
+            this.fireTableDataChanged();
+        }
+
+        final Upload getUpload(final int row) {
+            return this.uploads.get(row);
+        }
+
+        @Override
+        public int getRowCount() {
+            return this.uploads.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            final Upload u = this.uploads.get(rowIndex);
+            switch (columnIndex) {
+            case 0:
+                return u.getTitle();
+            case 1:
+                return u.getRemotePath();
+            case 2:
+                return StorageQueuePanel.this.queue.getEngineName(u);
+            case 3:
+                return u.getState().getLabel();
+            case 4:
+                return u.getAttempts();
+            case 5:
+                return u.getState() == StorageQueue.State.PENDING && u.getAttempts() > 0 ? this.dateFormat.format(new Date(u.getNextAttempt())) : "";
+            case 6:
+                return u.getError() == null ? "" : u.getError();
+            default:
+                throw new IllegalArgumentException("Unknown column " + columnIndex);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.erp.storage;
+
+import org.openconcerto.erp.storage.StorageQueue.Upload;
+import org.openconcerto.utils.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Envoie des documents avec {@link StorageQueue} vers des {@link DirectoryStorageEngine} : deux
+ * services de même classe ont chacun leur file et leur limite, un service non configuré puis
+ * réessayé, un échec, un document remplacé avant son envoi et une file rechargée à la session
+ * suivante.
+ * 
+ * <pre>
+ * java org.openconcerto.erp.storage.StorageQueueTest
+ * </pre>
+ */
+public class StorageQueueTest {
+
+    // compte les envois simultanés, pour ce service et pour tous
+    private static final class SlowEngine extends DirectoryStorageEngine {
+
+        private static final AtomicInteger allRunning = new AtomicInteger();
+        private static final AtomicInteger allMax = new AtomicInteger();
+
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger max = new AtomicInteger();
+        private volatile boolean failing = false;
+
+        public SlowEngine(final File root) {
+            super(root);
+        }
+
+        @Override
+        public void store(InputStream inStream, String remotePath, String title, boolean synchronous) throws IOException {
+            updateMax(this.max, this.running.incrementAndGet());
+            updateMax(allMax, allRunning.incrementAndGet());
+            try {
+                Thread.sleep(200);
+                if (this.failing)
+                    throw new IOException("Service indisponible");
+                super.store(inStream, remotePath, title, synchronous);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                this.running.decrementAndGet();
+                allRunning.decrementAndGet();
+            }
+        }
+
+        static private void updateMax(final AtomicInteger max, final int value) {
+            int current;
+            while ((current = max.get()) < value && !max.compareAndSet(current, value))
+                ;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final File base = FileUtils.createTempDir("storageQueueTest");
+        try {
+            final File spool = new File(base, "spool");
+            final SlowEngine e1 = new SlowEngine(FileUtils.mkdir_p(new File(base, "e1")));
+            final SlowEngine e2 = new SlowEngine(FileUtils.mkdir_p(new File(base, "e2")));
+            check(!e1.getID().equals(e2.getID()), "same ID for different directories");
+            final StorageEngines engines = new StorageEngines();
+            engines.addEngine(e1);
+            engines.addEngine(e2);
+
+            // même classe, mais chaque service a sa limite (1 par défaut)
+            StorageQueue queue = new StorageQueue(spool, engines);
+            queue.start();
+            for (int i = 0; i < 3; i++) {
+                queue.add(e1, content("doc" + i), "Factures/2014", "doc" + i + ".pdf");
+                queue.add(e2, content("doc" + i), "Factures/2014", "doc" + i + ".pdf");
+            }
+            waitEmpty(queue);
+            for (final SlowEngine e : Arrays.asList(e1, e2)) {
+                for (int i = 0; i < 3; i++)
+                    checkContent(new File(e.getRoot(), "Factures/2014/doc" + i + ".pdf"), "doc" + i);
+                check(e.max.get() == 1, "limit not respected for " + e.getID() + " : " + e.max.get());
+            }
+            check(SlowEngine.allMax.get() == 2, "engines of the same class not run in parallel : " + SlowEngine.allMax.get());
+            // un même contenu n'est conservé qu'une fois
+            check(spool.list().length == 0, "spool not empty : " + Arrays.asList(spool.list()));
+
+            // service non configuré : l'envoi attend
+            final SlowEngine e3 = new SlowEngine(new File(base, "e3"));
+            engines.addEngine(e3);
+            final Upload waiting = queue.add(e3, content("late"), "Devis", "late.pdf");
+            Thread.sleep(500);
+            check(queue.getUploads().size() == 1 && queue.getUploads().get(0).getState() == StorageQueue.State.PENDING, "upload not waiting : " + queue.getUploads());
+            check(queue.getEngineName(waiting).equals(e3.getName()), "wrong name : " + queue.getEngineName(waiting));
+            FileUtils.mkdir_p(e3.getRoot());
+            queue.retry(Arrays.asList(waiting.getID()));
+            waitEmpty(queue);
+            checkContent(new File(e3.getRoot(), "Devis/late.pdf"), "late");
+
+            // échec : réessayé plus tard
+            e1.failing = true;
+            queue.add(e1, content("failed"), "Devis", "failed.pdf");
+            waitFor(queue, 1);
+            final Upload failed = queue.getUploads().get(0);
+            check(failed.getState() == StorageQueue.State.PENDING && failed.getError().equals("Service indisponible") && failed.getNextAttempt() > System.currentTimeMillis(), "failure not recorded : " + failed);
+            e1.failing = false;
+            queue.retry(Arrays.asList(failed.getID()));
+            waitEmpty(queue);
+            checkContent(new File(e1.getRoot(), "Devis/failed.pdf"), "failed");
+
+            // service absent : une version plus récente remplace la précédente, et la file est
+            // rechargée à la session suivante
+            queue.stop();
+            final SlowEngine e4 = new SlowEngine(FileUtils.mkdir_p(new File(base, "e4")));
+            queue = new StorageQueue(spool, engines);
+            queue.start();
+            queue.add(e4, content("v1"), "Avoirs", "avoir.pdf");
+            queue.add(e4, content("v2"), "Avoirs", "avoir.pdf");
+            final List<Upload> pending = queue.getUploads();
+            check(pending.size() == 1 && pending.get(0).getEngine().equals(e4.getID()), "not replaced : " + pending);
+            check(queue.getEngineName(pending.get(0)).equals(e4.getID()), "name of an absent engine : " + queue.getEngineName(pending.get(0)));
+            queue.stop();
+
+            engines.addEngine(e4);
+            queue = new StorageQueue(spool, engines);
+            check(queue.getUploads().isEmpty(), "loaded before start");
+            queue.start();
+            waitEmpty(queue);
+            checkContent(new File(e4.getRoot(), "Avoirs/avoir.pdf"), "v2");
+            queue.stop();
+
+            System.out.println("OK");
+        } finally {
+            FileUtils.rm_R(base);
+        }
+    }
+
+    static private InputStream content(final String s) throws IOException {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+
+    static private void check(final boolean b, final String msg) {
+        if (!b)
+            throw new IllegalStateException(msg);
+    }
+
+    static private void checkContent(final File f, final String expected) throws IOException {
+        check(f.isFile() && new String(FileUtils.readBytes(f), "UTF-8").equals(expected), "wrong content for " + f);
+    }
+
+    static private void waitEmpty(final StorageQueue queue) throws InterruptedException {
+        waitFor(queue, 0);
+    }
+
+    // attend qu'il ne reste que count envois, aucun en cours
+    static private void waitFor(final StorageQueue queue, final int count) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10000;
+        while (true) {
+            final List<Upload> uploads = queue.getUploads();
+            boolean running = false;
+            for (final Upload u : uploads)
+                running |= u.getState() == StorageQueue.State.RUNNING;
+            if (uploads.size() == count && !running)
+                return;
+            if (System.currentTimeMillis() > end)
+                throw new IllegalStateException("Timeout, remaining : " + uploads);
+            Thread.sleep(50);
+        }
+    }
+}
@@ -47,6 +47,10 @@ public class Ville {
     private final static List<PropertyChangeListener> listeners = new ArrayList<PropertyChangeListener>();
     private static Thread init = null;
     private static boolean loaded = false;
+    // built when needed, reset when the list changes
+    private static volatile VilleGrid grid = null;
+    // built when needed, then updated
+    private static volatile VilleIndex index = null;
     private int nbMatch = 0;
 
     public synchronized static void init(final DatabaseAccessor d) {
@@ -65,6 +69,8 @@ public class Ville {
                     init = null;
                     Ville.class.notifyAll();
                 }
+                // the first search shouldn't wait
+                getIndex();
 
             }
         });
@@ -144,6 +150,10 @@ public class Ville {
     }
 
     private static synchronized void addVilleSilently(final Ville v) {
+        grid = null;
+        if (index != null) {
+            index = index.add(v);
+        }
         villes.add(v);
         final String villeEtCode = v.getVilleEtCode();
         villesNames.add(villeEtCode);
@@ -161,6 +171,10 @@ public class Ville {
     }
 
     public static synchronized void removeVille(final Ville v) {
+        grid = null;
+        if (index != null) {
+            index = index.remove(v);
+        }
         villes.remove(v);
         final String villeEtCode = v.getVilleEtCode();
         villesNames.remove(villeEtCode);
@@ -192,75 +206,106 @@ public class Ville {
         return villesNames;
     }
 
+    /**
+     * The spatial index of the cities, doesn't need the lock once built.
+     * 
+     * @return the index of the current cities.
+     */
+    public static VilleGrid getGrid() {
+        VilleGrid res = grid;
+        if (res == null) {
+            synchronized (Ville.class) {
+                await();
+                res = grid;
+                if (res == null) {
+                    res = VilleGrid.create(villes);
+                    grid = res;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The index of the names and postal codes of the cities, doesn't need the lock once built.
+     * 
+     * @return the index of the current cities.
+     */
+    public static VilleIndex getIndex() {
+        VilleIndex res = index;
+        if (res == null) {
+            synchronized (Ville.class) {
+                await();
+                res = index;
+                if (res == null) {
+                    res = VilleIndex.create(villes);
+                    index = res;
+                }
+            }
+        }
+        return res;
+    }
+
     public static synchronized Ville getVilleFromVilleEtCode(final String s) {
         await();
         return map.get(s);
     }
 
-    public static synchronized Ville getVilleContaining(String string) {
-        string = string.trim().toLowerCase();
-        final List<Ville> l = getVilles();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getName().toLowerCase().indexOf(string) >= 0) {
-                return v;
-            }
-        }
-        return null;
-    }
-
-    public static synchronized List<Ville> getVillesContaining(String string) {
-        string = string.trim().toLowerCase();
-        List<Ville> list = new ArrayList<Ville>();
-        final List<Ville> l = getVilles();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getName().toLowerCase().indexOf(string) >= 0) {
-                list.add(v);
-            }
-        }
-        return list;
+    /**
+     * The biggest city whose name contains the passed string, ignoring case and accents.
+     * 
+     * @param string the searched string.
+     * @return the matching city, <code>null</code> if none.
+     */
+    public static Ville getVilleContaining(String string) {
+        final List<Ville> l = getIndex().getVillesContaining(string, 1);
+        return l.isEmpty() ? null : l.get(0);
     }
 
-    public static synchronized Ville getVilleContaining(String string, int codepostal) {
+    /**
+     * The cities whose name contains the passed string, ignoring case and accents.
+     * 
+     * @param string the searched string.
+     * @return the matching cities, biggest first.
+     */
+    public static List<Ville> getVillesContaining(String string) {
+        return getIndex().getVillesContaining(string, -1);
+    }
+
+    public static Ville getVilleContaining(String string, int codepostal) {
         if (codepostal <= 0 && string.length() <= 2) {
             return null;
         }
 
-        List<Ville> l = getVillesFromCode(codepostal);
+        List<Ville> l = getVillesFromCode(codepostal, null);
         if (l.size() == 0) {
             return null;
         }
         if (l.size() == 1) {
             return l.get(0);
         }
-        string = string.trim().toLowerCase();
-
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getName().toLowerCase().indexOf(string) >= 0) {
-                return v;
+        // the index has the normalized names
+        l = getVillesFromCode(codepostal, string);
+        return l.isEmpty() ? null : l.get(0);
+    }
+
+    private static List<Ville> getVillesFromCode(int cp, final String contained) {
+        final VilleIndex index = getIndex();
+        final String prefix = String.valueOf(cp);
+        final List<Ville> res = index.getVillesFromCode(prefix, contained);
+        // the leading 0 of departments 01 to 09 is lost in the int, e.g. 1234 is either 1234x or
+        // 01234
+        if (prefix.length() < 5) {
+            final List<Ville> withZero = index.getVillesFromCode("0" + prefix, contained);
+            if (!withZero.isEmpty()) {
+                final List<Ville> merged = new ArrayList<Ville>(res.size() + withZero.size());
+                merged.addAll(res);
+                merged.addAll(withZero);
+                Collections.sort(merged, VilleGrid.POPULATION_COMPARATOR);
+                return merged;
             }
         }
-
-        return null;
-    }
-
-    private static List<Ville> getVillesFromCode(int cp) {
-        String string = String.valueOf(cp);
-        List<Ville> list = new ArrayList<Ville>();
-        final List<Ville> l = getVilles();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            final Ville v = l.get(i);
-            if (v.getCodepostal().toLowerCase().indexOf(string) >= 0) {
-                list.add(v);
-            }
-        }
-        return list;
+        return res;
     }
 
     /**
@@ -270,7 +315,7 @@ public class Ville {
      * @return the cities, or <code>null</code> si l'integralité des villes ou si la selection
      *         comporte moins de 3 points.
      */
-    public synchronized static List<Ville> getVilleIn(final MapPointSelection sel) {
+    public static List<Ville> getVilleIn(final MapPointSelection sel) {
         ArrayList<Ville> r = null;
         if (sel == null) {
             return null;
@@ -286,28 +331,13 @@ public class Ville {
 
                 p.addPoint((int) x, (int) y);
             }
-            final long minX = sel.getMinX();
-            final long maxX = sel.getMaxX();
-            final long minY = sel.getMinY();
-            final long maxY = sel.getMaxY();
-            final List<Ville> allVilles = Ville.getVilles();
+            final List<Ville> inBounds = getGrid().getVilles(sel.getMinX(), sel.getMinY(), sel.getMaxX(), sel.getMaxY(), 0);
             // don't use for loop it generates an iterator which uses 25% of the time for this
             // method
-            final int stop = allVilles.size();
+            final int stop = inBounds.size();
             for (int i = 0; i < stop; i++) {
-                final Ville v = allVilles.get(i);
-                // both get() took another 25%
-                final long x = v.getXLambert();
-                if (x > maxX)
-                    continue;
-                if (x < minX)
-                    continue;
-                final long y = v.getYLambert();
-                if (y > maxY)
-                    continue;
-                if (y < minY)
-                    continue;
-                if (!p.contains(x, y))
+                final Ville v = inBounds.get(i);
+                if (!p.contains(v.getXLambert(), v.getYLambert()))
                     continue;
                 r.add(v);
                 // System.out.println("match:" + v);
@@ -338,63 +368,20 @@ public class Ville {
         return value;
     }
 
-    public static synchronized long getMinXLambert() {
-        final List<Ville> l = getVilles();
-        if (l.size() > 0) {
-            long min = l.get(0).xLambert;
-            for (int i = 0; i < l.size(); i++) {
-                final Ville v = l.get(i);
-
-                if (v.xLambert < min) {
-                    min = v.xLambert;
-                }
-
-            }
-            return min;
-        } else {
-            return 0;
-        }
-
+    public static long getMinXLambert() {
+        return getGrid().getMinX();
     }
 
-    static synchronized long getMaxXLambert() {
-        final List<Ville> l = getVilles();
-        if (l.size() > 0) {
-            long max = l.get(0).xLambert;
-            for (int i = 0; i < l.size(); i++) {
-                final Ville v = l.get(i);
-                if (v.xLambert > max) {
-                    max = v.xLambert;
-                }
-            }
-            return max;
-        } else {
-            return 0;
-        }
+    static long getMaxXLambert() {
+        return getGrid().getMaxX();
     }
 
-    public static synchronized long getMinYLambert() {
-        final List<Ville> l = getVilles();
-        long min = l.get(0).yLambert;
-        for (int i = 0; i < l.size(); i++) {
-            final Ville v = l.get(i);
-            if (v.yLambert < min) {
-                min = v.yLambert;
-            }
-        }
-        return min;
+    public static long getMinYLambert() {
+        return getGrid().getMinY();
     }
 
-    static synchronized long getMaxYLambert() {
-        final List<Ville> l = getVilles();
-        long max = l.get(0).yLambert;
-        for (int i = 0; i < l.size(); i++) {
-            final Ville v = l.get(i);
-            if (v.yLambert > max) {
-                max = v.yLambert;
-            }
-        }
-        return max;
+    static long getMaxYLambert() {
+        return getGrid().getMaxY();
     }
 
     // *** instance
@@ -0,0 +1,175 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.map.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A spatial index of cities : a grid over Lambert coordinates whose cells are sorted by decreasing
+ * population, so that a query only reads the cities of the area big enough for the zoom. Immutable,
+ * thus can be used by any thread.
+ * 
+ * @see Ville#getGrid()
+ */
+public final class VilleGrid {
+
+    // average number of cities per cell
+    private static final int CELL_CAPACITY = 16;
+
+    public static final Comparator<Ville> POPULATION_COMPARATOR = new Comparator<Ville>() {
+        @Override
+        public int compare(Ville v1, Ville v2) {
+            // biggest first
+            final long p1 = v1.getPopulation();
+            final long p2 = v2.getPopulation();
+            return p1 < p2 ? 1 : (p1 == p2 ? 0 : -1);
+        }
+    };
+
+    static VilleGrid create(final List<Ville> villes) {
+        final int size = villes.size();
+        long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            final Ville v = villes.get(i);
+            minX = Math.min(minX, v.getXLambert());
+            maxX = Math.max(maxX, v.getXLambert());
+            minY = Math.min(minY, v.getYLambert());
+            maxY = Math.max(maxY, v.getYLambert());
+        }
+        if (size == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        // square cells
+        final double area = (double) (maxX - minX + 1) * (maxY - minY + 1);
+        final long cellSize = Math.max(1, (long) Math.ceil(Math.sqrt(area / Math.max(1, size / CELL_CAPACITY))));
+        final int columns = (int) ((maxX - minX) / cellSize) + 1;
+        final int rows = (int) ((maxY - minY) / cellSize) + 1;
+
+        final int[] counts = new int[columns * rows];
+        final int[] cellOf = new int[size];
+        for (int i = 0; i < size; i++) {
+            final Ville v = villes.get(i);
+            cellOf[i] = (int) ((v.getYLambert() - minY) / cellSize) * columns + (int) ((v.getXLambert() - minX) / cellSize);
+            counts[cellOf[i]]++;
+        }
+        final Ville[][] cells = new Ville[counts.length][];
+        for (int c = 0; c < cells.length; c++) {
+            cells[c] = new Ville[counts[c]];
+            counts[c] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            final Ville[] cell = cells[cellOf[i]];
+            cell[counts[cellOf[i]]++] = villes.get(i);
+        }
+        for (final Ville[] cell : cells) {
+            Arrays.sort(cell, POPULATION_COMPARATOR);
+        }
+        return new VilleGrid(minX, minY, maxX, maxY, cellSize, columns, rows, cells, size);
+    }
+
+    private final long minX, minY, maxX, maxY;
+    private final long cellSize;
+    private final int columns, rows;
+    private final Ville[][] cells;
+    private final int size;
+
+    private VilleGrid(long minX, long minY, long maxX, long maxY, long cellSize, int columns, int rows, Ville[][] cells, int size) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.cellSize = cellSize;
+        this.columns = columns;
+        this.rows = rows;
+        this.cells = cells;
+        this.size = size;
+    }
+
+    public final long getMinX() {
+        return this.minX;
+    }
+
+    public final long getMinY() {
+        return this.minY;
+    }
+
+    public final long getMaxX() {
+        return this.maxX;
+    }
+
+    public final long getMaxY() {
+        return this.maxY;
+    }
+
+    public final int size() {
+        return this.size;
+    }
+
+    /**
+     * The cities in a rectangle.
+     * 
+     * @param minX the minimum x (Lambert), inclusive.
+     * @param minY the minimum y (Lambert), inclusive.
+     * @param maxX the maximum x (Lambert), inclusive.
+     * @param maxY the maximum y (Lambert), inclusive.
+     * @param minPopulation the minimum population, inclusive.
+     * @return the matching cities, biggest first.
+     */
+    public final List<Ville> getVilles(final long minX, final long minY, final long maxX, final long maxY, final long minPopulation) {
+        if (maxX < this.minX || minX > this.maxX || maxY < this.minY || minY > this.maxY) {
+            return Collections.emptyList();
+        }
+        final int minCol = this.getIndex(minX, this.minX, this.columns);
+        final int maxCol = this.getIndex(maxX, this.minX, this.columns);
+        final int minRow = this.getIndex(minY, this.minY, this.rows);
+        final int maxRow = this.getIndex(maxY, this.minY, this.rows);
+        final List<Ville> res = new ArrayList<Ville>();
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                final Ville[] cell = this.cells[row * this.columns + col];
+                // inner cells need no coordinate check
+                final boolean inside = col > minCol && col < maxCol && row > minRow && row < maxRow;
+                for (final Ville v : cell) {
+                    if (v.getPopulation() < minPopulation) {
+                        break;
+                    }
+                    if (inside || (v.getXLambert() >= minX && v.getXLambert() <= maxX && v.getYLambert() >= minY && v.getYLambert() <= maxY)) {
+                        res.add(v);
+                    }
+                }
+            }
+        }
+        Collections.sort(res, POPULATION_COMPARATOR);
+        return res;
+    }
+
+    /**
+     * The cities with at least the passed population.
+     * 
+     * @param minPopulation the minimum population, inclusive.
+     * @return the matching cities, biggest first.
+     */
+    public final List<Ville> getVilles(final long minPopulation) {
+        return this.getVilles(this.minX, this.minY, this.maxX, this.maxY, minPopulation);
+    }
+
+    private int getIndex(final long coord, final long min, final int count) {
+        final long res = (coord - min) / this.cellSize;
+        return (int) Math.max(0, Math.min(count - 1, res));
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.map.model;
+
+import org.openconcerto.utils.ArrayListOfInt;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the names and postal codes of cities. Names are lower-cased and without accents, and
+ * indexed by all their substrings of 1 to 3 characters, longer searches intersect the lists of
+ * their 3 characters substrings. Immutable, thus can be read by any thread without lock : adding
+ * or removing a city returns a modified copy. All results are sorted by decreasing population.
+ * 
+ * @see Ville#getIndex()
+ */
+public final class VilleIndex {
+
+    private static final int GRAM = 3;
+
+    /**
+     * Lower-case and remove accents.
+     * 
+     * @param s a string, e.g. " Orléans ".
+     * @return the normalized string, e.g. "orleans".
+     */
+    public static String normalize(final String s) {
+        final String decomposed = Normalizer.normalize(s.trim(), Normalizer.Form.NFD);
+        final StringBuilder sb = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    static VilleIndex create(final List<Ville> villes) {
+        final Ville[] byPopulation = villes.toArray(new Ville[villes.size()]);
+        // stable : same order as the file for the same population
+        Arrays.sort(byPopulation, VilleGrid.POPULATION_COMPARATOR);
+        final int size = byPopulation.length;
+
+        final String[] names = new String[size];
+        final Map<String, ArrayListOfInt> grams = new HashMap<String, ArrayListOfInt>();
+        for (int rank = 0; rank < size; rank++) {
+            final Ville v = byPopulation[rank];
+            final String name = normalize(v.getName());
+            names[rank] = name;
+            for (final String gram : getGrams(name)) {
+                ArrayListOfInt l = grams.get(gram);
+                if (l == null) {
+                    l = new ArrayListOfInt(4);
+                    grams.put(gram, l);
+                }
+                l.add(rank);
+            }
+        }
+        final Map<String, int[]> postings = new HashMap<String, int[]>(grams.size() * 4 / 3 + 1);
+        for (final Map.Entry<String, ArrayListOfInt> e : grams.entrySet()) {
+            postings.put(e.getKey(), e.getValue().toArray());
+        }
+
+        // postal codes, then population
+        final Integer[] codeOrder = new Integer[size];
+        for (int rank = 0; rank < size; rank++) {
+            codeOrder[rank] = rank;
+        }
+        Arrays.sort(codeOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer r1, Integer r2) {
+                final int res = byPopulation[r1].getCodepostal().compareTo(byPopulation[r2].getCodepostal());
+                return res != 0 ? res : r1.compareTo(r2);
+            }
+        });
+        final String[] codes = new String[size];
+        final int[] codeRanks = new int[size];
+        for (int i = 0; i < size; i++) {
+            codeRanks[i] = codeOrder[i];
+            codes[i] = byPopulation[codeRanks[i]].getCodepostal();
+        }
+
+        return new VilleIndex(byPopulation, names, postings, codes, codeRanks);
+    }
+
+    // a gram can be several times in a name
+    private static Set<String> getGrams(final String name) {
+        final Set<String> res = new HashSet<String>();
+        for (int length = 1; length <= GRAM; length++) {
+            for (int i = 0; i + length <= name.length(); i++) {
+                res.add(name.substring(i, i + length));
+            }
+        }
+        return res;
+    }
+
+    // the ranks greater or equal to rank are incremented, rank itself is inserted if add is true
+    private static int[] insert(final int[] l, final int rank, final boolean add) {
+        final int index = Arrays.binarySearch(l, rank);
+        final int start = index < 0 ? -index - 1 : index;
+        if (start == l.length && !add) {
+            return l;
+        }
+        final int[] res = new int[add ? l.length + 1 : l.length];
+        System.arraycopy(l, 0, res, 0, start);
+        int j = start;
+        if (add) {
+            res[j++] = rank;
+        }
+        for (int i = start; i < l.length; i++) {
+            res[j++] = l[i] + 1;
+        }
+        return res;
+    }
+
+    // rank is removed and the greater ranks are decremented
+    private static int[] remove(final int[] l, final int rank) {
+        final int index = Arrays.binarySearch(l, rank);
+        final int start = index < 0 ? -index - 1 : index;
+        if (start == l.length) {
+            return l;
+        }
+        final int[] res = new int[index < 0 ? l.length : l.length - 1];
+        System.arraycopy(l, 0, res, 0, start);
+        int j = start;
+        for (int i = index < 0 ? start : start + 1; i < l.length; i++) {
+            res[j++] = l[i] - 1;
+        }
+        return res;
+    }
+
+    private final Ville[] byPopulation;
+    private final String[] names;
+    private final Map<String, int[]> grams;
+    private final String[] codes;
+    private final int[] codeRanks;
+
+    private VilleIndex(Ville[] byPopulation, String[] names, Map<String, int[]> grams, String[] codes, int[] codeRanks) {
+        this.byPopulation = byPopulation;
+        this.names = names;
+        this.grams = grams;
+        this.codes = codes;
+        this.codeRanks = codeRanks;
+    }
+
+    /**
+     * A copy of this index with one more city. Cheaper than {@link #create(List)} since only the
+     * new name is normalized and split.
+     * 
+     * @param v the added city.
+     * @return a new index.
+     */
+    final VilleIndex add(final Ville v) {
+        final int size = this.byPopulation.length;
+        // after the cities of the same population, like the stable sort of create()
+        int rank = 0;
+        int high = size;
+        while (rank < high) {
+            final int mid = (rank + high) >>> 1;
+            if (VilleGrid.POPULATION_COMPARATOR.compare(this.byPopulation[mid], v) <= 0) {
+                rank = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        final Ville[] byPopulation = new Ville[size + 1];
+        System.arraycopy(this.byPopulation, 0, byPopulation, 0, rank);
+        byPopulation[rank] = v;
+        System.arraycopy(this.byPopulation, rank, byPopulation, rank + 1, size - rank);
+        final String name = normalize(v.getName());
+        final String[] names = new String[size + 1];
+        System.arraycopy(this.names, 0, names, 0, rank);
+        names[rank] = name;
+        System.arraycopy(this.names, rank, names, rank + 1, size - rank);
+
+        final Set<String> nameGrams = getGrams(name);
+        final Map<String, int[]> grams = new HashMap<String, int[]>((this.grams.size() + nameGrams.size()) * 4 / 3 + 1);
+        for (final Map.Entry<String, int[]> e : this.grams.entrySet()) {
+            grams.put(e.getKey(), insert(e.getValue(), rank, nameGrams.contains(e.getKey())));
+        }
+        for (final String gram : nameGrams) {
+            if (!grams.containsKey(gram)) {
+                grams.put(gram, new int[] { rank });
+            }
+        }
+
+        // postal codes, then population
+        final String code = v.getCodepostal();
+        int pos = 0;
+        high = size;
+        while (pos < high) {
+            final int mid = (pos + high) >>> 1;
+            final int res = this.codes[mid].compareTo(code);
+            if (res < 0 || res == 0 && this.codeRanks[mid] < rank) {
+                pos = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        final String[] codes = new String[size + 1];
+        final int[] codeRanks = new int[size + 1];
+        for (int i = 0, j = 0; i <= size; i++) {
+            if (i == pos) {
+                codes[i] = code;
+                codeRanks[i] = rank;
+            } else {
+                codes[i] = this.codes[j];
+                codeRanks[i] = this.codeRanks[j] >= rank ? this.codeRanks[j] + 1 : this.codeRanks[j];
+                j++;
+            }
+        }
+
+        return new VilleIndex(byPopulation, names, grams, codes, codeRanks);
+    }
+
+    /**
+     * A copy of this index without the passed city.
+     * 
+     * @param v the removed city.
+     * @return a new index, or this if <code>v</code> isn't indexed.
+     */
+    final VilleIndex remove(final Ville v) {
+        final int size = this.byPopulation.length;
+        int rank = -1;
+        for (int i = 0; i < size && rank < 0; i++) {
+            if (this.byPopulation[i] == v) {
+                rank = i;
+            }
+        }
+        if (rank < 0) {
+            return this;
+        }
+
+        final Ville[] byPopulation = new Ville[size - 1];
+        System.arraycopy(this.byPopulation, 0, byPopulation, 0, rank);
+        System.arraycopy(this.byPopulation, rank + 1, byPopulation, rank, size - rank - 1);
+        final String[] names = new String[size - 1];
+        System.arraycopy(this.names, 0, names, 0, rank);
+        System.arraycopy(this.names, rank + 1, names, rank, size - rank - 1);
+
+        final Map<String, int[]> grams = new HashMap<String, int[]>(this.grams.size() * 4 / 3 + 1);
+        for (final Map.Entry<String, int[]> e : this.grams.entrySet()) {
+            final int[] l = remove(e.getValue(), rank);
+            if (l.length > 0) {
+                grams.put(e.getKey(), l);
+            }
+        }
+
+        final String[] codes = new String[size - 1];
+        final int[] codeRanks = new int[size - 1];
+        for (int i = 0, j = 0; i < size; i++) {
+            final int r = this.codeRanks[i];
+            if (r != rank) {
+                codes[j] = this.codes[i];
+                codeRanks[j] = r > rank ? r - 1 : r;
+                j++;
+            }
+        }
+
+        return new VilleIndex(byPopulation, names, grams, codes, codeRanks);
+    }
+
+    public final int size() {
+        return this.byPopulation.length;
+    }
+
+    /**
+     * The cities whose name contains the passed string, ignoring case and accents.
+     * 
+     * @param s the searched string, e.g. "orlean".
+     * @param max the maximum number of cities returned, -1 for no limit.
+     * @return the matching cities, biggest first.
+     */
+    public final List<Ville> getVillesContaining(final String s, final int max) {
+        final String searched = normalize(s);
+        final int limit = max < 0 ? this.byPopulation.length : max;
+        final List<Ville> res = new ArrayList<Ville>(Math.min(limit, 64));
+        if (limit == 0) {
+            return res;
+        }
+        if (searched.length() == 0) {
+            for (int rank = 0; rank < limit && rank < this.byPopulation.length; rank++) {
+                res.add(this.byPopulation[rank]);
+            }
+            return res;
+        }
+        if (searched.length() <= GRAM) {
+            // exact
+            final int[] l = this.grams.get(searched);
+            if (l != null) {
+                for (int i = 0; i < l.length && res.size() < limit; i++) {
+                    res.add(this.byPopulation[l[i]]);
+                }
+            }
+            return res;
+        }
+
+        // every 3 characters substring of the searched string must be in the name
+        final int gramCount = searched.length() - GRAM + 1;
+        final int[][] lists = new int[gramCount][];
+        for (int i = 0; i < gramCount; i++) {
+            lists[i] = this.grams.get(searched.substring(i, i + GRAM));
+            if (lists[i] == null) {
+                return res;
+            }
+        }
+        Arrays.sort(lists, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] o1, int[] o2) {
+                return o1.length - o2.length;
+            }
+        });
+        final int[] shortest = lists[0];
+        for (int i = 0; i < shortest.length && res.size() < limit; i++) {
+            final int rank = shortest[i];
+            boolean candidate = true;
+            for (int j = 1; j < lists.length && candidate; j++) {
+                candidate = Arrays.binarySearch(lists[j], rank) >= 0;
+            }
+            // the substrings might not be contiguous
+            if (candidate && this.names[rank].indexOf(searched) >= 0) {
+                res.add(this.byPopulation[rank]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The cities whose postal code starts with the passed string.
+     * 
+     * @param prefix the beginning of the postal code, e.g. "801".
+     * @return the matching cities, biggest first.
+     */
+    public final List<Ville> getVillesFromCode(final String prefix) {
+        return this.getVillesFromCode(prefix, null);
+    }
+
+    /**
+     * The cities whose postal code starts with the passed string and whose name contains the other
+     * one, ignoring case and accents.
+     * 
+     * @param prefix the beginning of the postal code, e.g. "801".
+     * @param contained the searched string, e.g. "amien", <code>null</code> for any name.
+     * @return the matching cities, biggest first.
+     */
+    public final List<Ville> getVillesFromCode(final String prefix, final String contained) {
+        final String searched = contained == null ? null : normalize(contained);
+        // first code greater or equal to prefix
+        int low = 0;
+        int high = this.codes.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (this.codes[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        final ArrayListOfInt ranks = new ArrayListOfInt();
+        for (int i = low; i < this.codes.length && this.codes[i].startsWith(prefix); i++) {
+            ranks.add(this.codeRanks[i]);
+        }
+        final int[] sorted = ranks.toArray();
+        Arrays.sort(sorted);
+        if (sorted.length == 0) {
+            return Collections.emptyList();
+        }
+        final List<Ville> res = new ArrayList<Ville>(sorted.length);
+        for (final int rank : sorted) {
+            if (searched == null || this.names[rank].indexOf(searched) >= 0) {
+                res.add(this.byPopulation[rank]);
+            }
+        }
+        return res;
+    }
+}
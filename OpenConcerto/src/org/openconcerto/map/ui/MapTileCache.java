@@ -0,0 +1,406 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.map.ui;
+
+import org.openconcerto.map.model.Region;
+import org.openconcerto.map.model.Ville;
+import org.openconcerto.map.model.VilleGrid;
+import org.openconcerto.utils.Log;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * The tiles of the map : the regions and the cities that fit for each zoom, rendered in the
+ * background. A tile is identified by its zoom and its coordinates in absolute pixels (Lambert
+ * divided by the zoom value, y going down). The cities of a zoom are chosen once for the whole
+ * map, so that labels don't overlap between tiles nor change when moving.
+ */
+final class MapTileCache {
+
+    static final int TILE_SIZE = 256;
+    // 256 KB each
+    private static final int MAX_TILES = 128;
+
+    static final Color BG_COLOR = new Color(154, 178, 204);
+    static final Color COLOR_POINT_VILLE = new Color(220, 80, 80);
+    private static final Color COLOR_REGION = new Color(242, 240, 232);
+    private static final Color COLOR_LABEL = new Color(255, 255, 255, 200);
+    private static final BasicStroke STROKE_CONTOUR = new BasicStroke(1f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    private static final BasicStroke STROKE_VILLE = new BasicStroke(1.2f);
+    private static final BasicStroke BASIC_STROKE = new BasicStroke();
+
+    // a city drawn in the tiles, in absolute pixels
+    private static final class Label {
+        private final Ville ville;
+        private final int x, y;
+        private final int ovalSize;
+        private final Rectangle2D rect;
+
+        Label(Ville ville, int x, int y, int ovalSize, Rectangle2D rect) {
+            this.ville = ville;
+            this.x = x;
+            this.y = y;
+            this.ovalSize = ovalSize;
+            this.rect = rect;
+        }
+    }
+
+    static int getTileIndex(final double pixel) {
+        return (int) Math.floor(pixel / TILE_SIZE);
+    }
+
+    private static Long getKey(final int zoom, final int tx, final int ty) {
+        return Long.valueOf(((long) zoom << 56) | ((tx & 0xFFFFFFFL) << 28) | (ty & 0xFFFFFFFL));
+    }
+
+    static int getOvalSize(final long population, final int zoomIndex) {
+        if (population < 1000) {
+            return 4;
+        } else if (population < 10000) {
+            return 6;
+        } else if (population < 100000) {
+            return 10;
+        } else if (population < 250000) {
+            return zoomIndex > 2 ? 20 : 12;
+        } else {
+            return zoomIndex > 2 ? 24 : 18;
+        }
+    }
+
+    private final List<Double> zoomValues;
+    private final Font font;
+    private final Runnable tileListener;
+    private final Map<Long, Image> tiles;
+    private final Set<Long> pending;
+    private int generation;
+    private final ExecutorService exec;
+
+    // only used by the rendering thread
+    private final Map<Integer, List<RegionPointsCache>> regions;
+    private final Map<Integer, Map<Long, List<Label>>> labels;
+    private int labelsGeneration;
+
+    /**
+     * Create a new cache.
+     * 
+     * @param zoomValues the Lambert units per pixel of each zoom.
+     * @param font the font of the labels.
+     * @param tileListener called in the EDT when a tile has been rendered.
+     */
+    MapTileCache(final List<Double> zoomValues, final Font font, final Runnable tileListener) {
+        this.zoomValues = zoomValues;
+        this.font = font;
+        this.tileListener = tileListener;
+        this.tiles = new LinkedHashMap<Long, Image>(MAX_TILES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Image> eldest) {
+                return this.size() > MAX_TILES;
+            }
+        };
+        this.pending = new HashSet<Long>();
+        this.generation = 0;
+        this.exec = new ThreadPoolExecutor(0, 1, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(MapTileCache.class.getSimpleName() + " ", true));
+        this.regions = new HashMap<Integer, List<RegionPointsCache>>();
+        this.labels = new HashMap<Integer, Map<Long, List<Label>>>();
+        this.labelsGeneration = -1;
+    }
+
+    /**
+     * Return a tile, and render it in the background if needed.
+     * 
+     * @param zoom the zoom index.
+     * @param tx the x index of the tile.
+     * @param ty the y index of the tile.
+     * @return the tile, <code>null</code> if not yet rendered.
+     */
+    synchronized Image getTile(final int zoom, final int tx, final int ty) {
+        final Long key = getKey(zoom, tx, ty);
+        final Image res = this.tiles.get(key);
+        if (res == null && this.pending.add(key)) {
+            final int gen = this.generation;
+            this.exec.execute(new Runnable() {
+                @Override
+                public void run() {
+                    render(key, zoom, tx, ty, gen);
+                }
+            });
+        }
+        return res;
+    }
+
+    /**
+     * Forget all tiles, e.g. when cities are added or removed.
+     */
+    synchronized void invalidate() {
+        this.generation++;
+        this.tiles.clear();
+        this.pending.clear();
+    }
+
+    private synchronized boolean isCurrent(final int gen) {
+        return gen == this.generation;
+    }
+
+    private void render(final Long key, final int zoom, final int tx, final int ty, final int gen) {
+        if (!this.isCurrent(gen)) {
+            return;
+        }
+        BufferedImage img = null;
+        try {
+            img = this.createTile(zoom, tx, ty, gen);
+        } catch (RuntimeException e) {
+            Log.get().log(Level.WARNING, "Couldn't render tile " + tx + ", " + ty + " of zoom " + zoom, e);
+        }
+        synchronized (this) {
+            if (gen != this.generation) {
+                return;
+            }
+            this.pending.remove(key);
+            if (img == null) {
+                return;
+            }
+            this.tiles.put(key, img);
+        }
+        SwingUtilities.invokeLater(this.tileListener);
+    }
+
+    private BufferedImage createTile(final int zoom, final int tx, final int ty, final int gen) {
+        final BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = img.createGraphics();
+        try {
+            g.setColor(BG_COLOR);
+            g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+            g.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+            this.drawRegions(g, zoom, tx, ty);
+            this.drawVilles(g, this.getLabels(zoom, gen).get(getKey(0, tx, ty)));
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+
+    private List<RegionPointsCache> getRegions(final int zoom) {
+        List<RegionPointsCache> res = this.regions.get(zoom);
+        if (res == null) {
+            res = new ArrayList<RegionPointsCache>();
+            final List<Region> l = Region.getRegions();
+            final double zoomValue = this.zoomValues.get(zoom);
+            final int size = l.size();
+            for (int i = 0; i < size; i++) {
+                if (i == 138 || i == 147 || i == 148 || i == 149) {
+                    continue;
+                }
+                final RegionPointsCache r = new RegionPointsCache(l.get(i), zoomValue);
+                // Ne pas tracer les regions minuscules
+                if (r.size() >= 50) {
+                    res.add(r);
+                }
+            }
+            this.regions.put(zoom, res);
+        }
+        return res;
+    }
+
+    private void drawRegions(final Graphics2D g2, final int zoom, final int tx, final int ty) {
+        final double zoomValue = this.zoomValues.get(zoom);
+        // the Lambert bounds of the tile, with one pixel more for the contour
+        final double minX = (tx * TILE_SIZE - 1) * zoomValue;
+        final double maxX = ((tx + 1) * TILE_SIZE + 1) * zoomValue;
+        final double minY = -((ty + 1) * TILE_SIZE + 1) * zoomValue;
+        final double maxY = -(ty * TILE_SIZE - 1) * zoomValue;
+
+        for (final RegionPointsCache r : this.getRegions(zoom)) {
+            // Ne pas tracer les regions nons visibles
+            if (r.getMaxX() < minX || r.getMinX() > maxX || r.getMaxY() < minY || r.getMinY() > maxY)
+                continue;
+
+            final int pointCount = r.size();
+            final int[] x = new int[pointCount];
+            final int[] y = new int[pointCount];
+            System.arraycopy(r.absX, 0, x, 0, pointCount);
+            for (int j = 0; j < pointCount; j++) {
+                y[j] = -r.absY[j];
+            }
+            // Remplissage de la regions
+            g2.setStroke(BASIC_STROKE);
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+            g2.setColor(COLOR_REGION);
+            g2.fillPolygon(x, y, pointCount - 1);
+            // Contour
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setColor(Color.LIGHT_GRAY);
+            g2.setStroke(STROKE_CONTOUR);
+            g2.drawPolygon(x, y, pointCount - 1);
+        }
+    }
+
+    private void drawVilles(final Graphics2D g2, final List<Label> l) {
+        if (l == null) {
+            return;
+        }
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setStroke(STROKE_VILLE);
+        for (final Label label : l) {
+            final int demiOvale = label.ovalSize / 2;
+            g2.setColor(COLOR_POINT_VILLE);
+            g2.fillOval(label.x - demiOvale, label.y - demiOvale, label.ovalSize, label.ovalSize);
+            g2.setColor(Color.DARK_GRAY);
+            g2.drawOval(label.x - demiOvale, label.y - demiOvale, label.ovalSize, label.ovalSize);
+        }
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g2.setFont(this.font);
+        for (final Label label : l) {
+            final Rectangle2D rect = label.rect;
+            g2.setColor(COLOR_LABEL);
+            g2.fillRect((int) rect.getX(), (int) rect.getY(), (int) rect.getWidth(), (int) rect.getHeight());
+            g2.setColor(Color.BLACK);
+            g2.drawString(label.ville.getName(), (int) (rect.getX() + 4), (int) (rect.getY() + rect.getHeight() - 4));
+        }
+    }
+
+    // the cities of a zoom, by tile
+    private Map<Long, List<Label>> getLabels(final int zoom, final int gen) {
+        if (this.labelsGeneration != gen) {
+            this.labels.clear();
+            this.labelsGeneration = gen;
+        }
+        Map<Long, List<Label>> res = this.labels.get(zoom);
+        if (res == null) {
+            res = this.createLabels(zoom);
+            this.labels.put(zoom, res);
+        }
+        return res;
+    }
+
+    private Map<Long, List<Label>> createLabels(final int zoom) {
+        final double zoomValue = this.zoomValues.get(zoom);
+        final BufferedImage tmp = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = tmp.createGraphics();
+        final FontRenderContext frc = g.getFontRenderContext();
+        g.dispose();
+
+        // Retires les villes en superposition, les plus grandes en premier
+        final Map<Long, List<Rectangle2D>> placed = new HashMap<Long, List<Rectangle2D>>();
+        final Map<Long, List<Label>> res = new HashMap<Long, List<Label>>();
+        for (final Ville v : getVilles(zoom)) {
+            final int x = (int) Math.round(v.getXLambert() / zoomValue);
+            final int y = (int) Math.round(-v.getYLambert() / zoomValue);
+            final Rectangle2D rect = this.font.getStringBounds(v.getName(), frc);
+            rect.setRect(x + rect.getX() - 4 - rect.getWidth() / 2, y - rect.getHeight() - 4, rect.getWidth() + 8, rect.getHeight());
+            if (intersects(placed, rect))
+                continue;
+            add(placed, new Rectangle2D.Double(rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight() * 2), rect);
+
+            final int ovalSize = getOvalSize(v.getPopulation(), zoom);
+            final Rectangle2D bounds = rect.createUnion(new Rectangle2D.Double(x - ovalSize, y - ovalSize, ovalSize * 2, ovalSize * 2));
+            add(res, bounds, new Label(v, x, y, ovalSize, rect));
+        }
+        return res;
+    }
+
+    private static boolean intersects(final Map<Long, List<Rectangle2D>> placed, final Rectangle2D rect) {
+        for (int ty = getTileIndex(rect.getMinY()); ty <= getTileIndex(rect.getMaxY()); ty++) {
+            for (int tx = getTileIndex(rect.getMinX()); tx <= getTileIndex(rect.getMaxX()); tx++) {
+                final List<Rectangle2D> l = placed.get(getKey(0, tx, ty));
+                if (l != null) {
+                    for (final Rectangle2D r : l) {
+                        if (rect.intersects(r))
+                            return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static <T> void add(final Map<Long, List<T>> m, final Rectangle2D bounds, final T item) {
+        for (int ty = getTileIndex(bounds.getMinY()); ty <= getTileIndex(bounds.getMaxY()); ty++) {
+            for (int tx = getTileIndex(bounds.getMinX()); tx <= getTileIndex(bounds.getMaxX()); tx++) {
+                final Long key = getKey(0, tx, ty);
+                List<T> l = m.get(key);
+                if (l == null) {
+                    l = new ArrayList<T>();
+                    m.put(key, l);
+                }
+                l.add(item);
+            }
+        }
+    }
+
+    // the cities to draw at a zoom, biggest first
+    private static List<Ville> getVilles(final int zoom) {
+        if (zoom == 0) {
+            final List<Ville> res = new ArrayList<Ville>();
+            for (final String s : new String[] { "Paris (75000)", "Lille (59800)", "Marseille (13000)", "Lyon (69000)", "Bordeaux (33300)", "Nantes (44200)", "Toulouse (31500)", "Le Havre (76620)",
+                    "Strasbourg (67000)", "Limoges (87280)", "Dijon (21000)", "Reims (51100)", "Rennes (35000)", "Orléans (45100)", "Pau (64000)" }) {
+                final Ville v = Ville.getVilleFromVilleEtCode(s);
+                if (v != null)
+                    res.add(v);
+            }
+            Collections.sort(res, VilleGrid.POPULATION_COMPARATOR);
+            return res;
+        }
+        int popMin = 0;
+        if (zoom == 1) {
+            popMin = 100000;
+        } else if (zoom == 2) {
+            popMin = 50000;
+        } else if (zoom == 3) {
+            popMin = 20000;
+        } else if (zoom == 4) {
+            popMin = 4000;
+        } else {
+            popMin = 1000;
+        }
+        // Ajoutes les villes dont la population correspond au zoom
+        final List<Ville> res = Ville.getGrid().getVilles(popMin);
+        final String[] hidden;
+        if (zoom == 1) {
+            hidden = new String[] { "Villeurbanne (69100)", "Aix-en-provence (13100)" };
+        } else if (zoom == 2) {
+            hidden = new String[] { "Villeurbanne (69100)", "Villeneuve-d'ascq (59491)", "Sartrouville (78500)", "Versailles (78000)", "Vénissieux (69200)", "Pessac (33600)", "Antibes (06160)",
+                    "La Seyne-sur-mer (83500)", "Mérignac (33700)", "Tourcoing (59200)", "Roubaix (59100)" };
+        } else {
+            hidden = new String[0];
+        }
+        for (final String s : hidden) {
+            res.remove(Ville.getVilleFromVilleEtCode(s));
+        }
+        return res;
+    }
+}
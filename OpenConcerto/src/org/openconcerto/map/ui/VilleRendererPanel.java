@@ -15,8 +15,8 @@
 
 import org.openconcerto.map.model.MapPoint;
 import org.openconcerto.map.model.MapPointSelection;
-import org.openconcerto.map.model.Region;
 import org.openconcerto.map.model.Ville;
+import org.openconcerto.map.model.VilleGrid;
 import org.openconcerto.utils.ArrayListOfInt;
 import org.openconcerto.utils.checks.MutableValueObject;
 
@@ -37,11 +37,14 @@ import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.geom.Rectangle2D;
+import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,6 +52,7 @@ import java.util.Vector;
 
 import javax.swing.ImageIcon;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 
 public class VilleRendererPanel extends JPanel implements MutableValueObject<String> {
@@ -57,10 +61,6 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
      */
     private static final long serialVersionUID = -6477685676332334863L;
 
-    private static final Color COLOR_POINT_VILLE = new Color(220, 80, 80);
-
-    private static final BasicStroke STROKE_CONTOUR = new BasicStroke(1f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
-
     private static final BasicStroke BASIC_STROKE = new BasicStroke();
 
     double dx, dy;
@@ -84,8 +84,9 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
 
     private boolean gridActicvated;
 
-    private List<RegionPointsCache> cacheRegions = new ArrayList<RegionPointsCache>();
-    private List<Ville> cacheVilles = new ArrayList<Ville>();
+    // the regions and the cities that fit the zoom
+    private final MapTileCache tiles;
+    private final PropertyChangeListener villesListener;
 
     // MODE
     public static final int MODE_MOVE = 0;
@@ -119,6 +120,22 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
 
         imgMarker = new ImageIcon(StatusPanel.class.getResource("marker.png")).getImage();
 
+        this.tiles = new MapTileCache(this.zoomValues, this.getFont(), new Runnable() {
+            public void run() {
+                repaint();
+            }
+        });
+        this.villesListener = new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent evt) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        VilleRendererPanel.this.tiles.invalidate();
+                        repaint();
+                    }
+                });
+            }
+        };
+
         this.supp = new PropertyChangeSupport(this);
         this.setBackground(Color.white);
 
@@ -247,9 +264,18 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
             public void keyTyped(KeyEvent e) {
             }
         });
+    }
 
-        rebuildCacheRegions();
-        rebuildVisibleVilleCache();
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        Ville.addListener(this.villesListener);
+    }
+
+    @Override
+    public void removeNotify() {
+        Ville.removeListener(this.villesListener);
+        super.removeNotify();
     }
 
     @Override
@@ -296,7 +322,6 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
 
     public void setAlwayVisible(Ville v) {
         this.alwayVisible.add(v);
-        rebuildVisibleVilleCache();
         repaint();
     }
 
@@ -305,7 +330,6 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
             this.colors.remove(element);
         }
         this.alwayVisible.clear();
-        rebuildVisibleVilleCache();
         repaint();
     }
 
@@ -314,8 +338,6 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
             long xCenter = XToLongitude(getWidth() / 2);
             long yCenter = YTolatitude(getHeight() / 2);
             this.currentZoomIndex = index;
-            rebuildCacheRegions();
-            rebuildVisibleVilleCache();
             centerScreenXYLambert(xCenter, yCenter);
             this.zoomListener.zoomChanged(index);
         }
@@ -328,23 +350,6 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
         System.out.println("VilleRendererPanel.repaint()");
     }
 
-    /**
-	 *
-	 */
-    private void rebuildCacheRegions() {
-        this.cacheRegions.clear();
-        final List<Region> l = Region.getRegions();
-        final double currentZoomValue = getCurrentZoomValue();
-        final int size = l.size();
-        for (int i = 0; i < size; i++) {
-            Region region = l.get(i);
-            if (i == 138 || i == 147 || i == 148 || i == 149) {
-                continue;
-            }
-            this.cacheRegions.add(new RegionPointsCache(region, currentZoomValue));
-        }
-    }
-
     public void centerScreenXYLambert(long xLambert, long yLambert) {
         if (xLambert == Long.MAX_VALUE) {
             xLambert = 664843;
@@ -372,8 +377,6 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
         // System.out.println(this.offsetX);
     }
 
-    final Color BG_COLOR = new Color(154, 178, 204);
-
     private Image imgMarker;
 
     private ZoomListener zoomListener;
@@ -382,19 +385,16 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
         super.paintComponent(g);
         //
 
-        g.setColor(BG_COLOR);
+        g.setColor(MapTileCache.BG_COLOR);
         g.fillRect(0, 0, this.getWidth(), this.getHeight());
 
-        // Image img=new ImageIcon("zoom/"+(this.currentZoomIndex+5)+".png").getImage();
-        // g.drawImage(img, -60, -200, null);
-        // 
         Graphics2D g2 = (Graphics2D) g;
         Stroke oStroke = g2.getStroke();
-        g.setColor(Color.BLACK);
-        drawRegion(g2);
-
-        List<Ville> onScreenVille = this.getOnScreenVille();
-        drawVille(g2, onScreenVille);
+        // from absolute pixels of the tiles to the panel
+        final int moveX = (int) (this.dx - this.offsetX / getCurrentZoomValue());
+        final int moveY = (int) (this.dy + this.getHeight() + this.offsetY / getCurrentZoomValue());
+        drawTiles(g2, moveX, moveY);
+        drawVille(g2, moveX, moveY);
 
         drawPaintedArea(g2);
 
@@ -410,29 +410,6 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
 
     }
 
-    private List<Ville> getOnScreenVille() {
-        final List<Ville> l = new ArrayList<Ville>();
-        final long minXLambertViewable = XToLongitude(0);
-        final long minYLambertViewable = YTolatitude(0);
-        final long maxXLambertViewable = XToLongitude(this.getWidth());
-        final long maxYLambertViewable = YTolatitude(this.getHeight());
-        final int vCount = this.cacheVilles.size();
-        for (int i = 0; i < vCount; i++) {
-            final Ville v = this.cacheVilles.get(i);
-            if (v.getXLambert() < minXLambertViewable)
-                continue;
-            if (v.getXLambert() > maxXLambertViewable)
-                continue;
-            if (v.getYLambert() > minYLambertViewable)
-                continue;
-            if (v.getYLambert() < maxYLambertViewable)
-                continue;
-            l.add(v);
-        }
-
-        return l;
-    }
-
     private void drawPaintedArea(Graphics2D g2) {
 
         if (this.drawX.size() > 2) {
@@ -527,89 +504,39 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
         return this.gridActicvated;
     }
 
-    /**
-     * Ajoute sauf si doublon
-     * */
-    private void addToCachedVille(Ville v) {
-        if (!this.cacheVilles.contains(v))
-            this.cacheVilles.add(v);
-    }
-
-    private void rebuildVisibleVilleCache() {
-
-        final int zoom = this.currentZoomIndex;
-        this.cacheVilles.clear();
-        final List<Ville> villes = Ville.getVilles();
-        this.cacheVilles.addAll(this.alwayVisible);
-
-        if (zoom == 0) {
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Paris (75000)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Lille (59800)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Marseille (13000)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Lyon (69000)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Bordeaux (33300)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Nantes (44200)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Toulouse (31500)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Le Havre (76620)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Strasbourg (67000)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Limoges (87280)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Dijon (21000)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Reims (51100)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Rennes (35000)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Orléans (45100)"));
-            addToCachedVille(Ville.getVilleFromVilleEtCode("Pau (64000)"));
-            Ville.sortByPopulation(this.cacheVilles);
-            return;
-        }
-        int popMin = 0;
-        if (zoom == 1) {
-            popMin = 100000;
-        } else if (zoom == 2) {
-            popMin = 50000;
-        } else if (zoom == 3) {
-            popMin = 20000;
-        } else if (zoom == 4) {
-            popMin = 4000;
-        } else {
-            popMin = 1000;
-        }
-        // 5
-
-        // Ajoutes les villes dont la population correspond au zoom
-
-        final int vCount = villes.size();
-        for (int i = 0; i < vCount; i++) {
-            final Ville v = villes.get(i);
-            if (v.getPopulation() >= popMin)
-                addToCachedVille(v);
-        }
-
-        // Retires les villes en superposition
-        if (zoom == 1) {
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Villeurbanne (69100)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Aix-en-provence (13100)"));
-        } else if (zoom == 2) {
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Villeurbanne (69100)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Villeneuve-d'ascq (59491)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Sartrouville (78500)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Versailles (78000)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Vénissieux (69200)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Pessac (33600)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Antibes (06160)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("La Seyne-sur-mer (83500)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Mérignac (33700)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Tourcoing (59200)"));
-            removeIfNotAlwaysVisible(Ville.getVilleFromVilleEtCode("Roubaix (59100)"));
+    private void drawTiles(Graphics2D g2, int moveX, int moveY) {
+        final int size = MapTileCache.TILE_SIZE;
+        final int maxTX = MapTileCache.getTileIndex(this.getWidth() - 1 - moveX);
+        final int maxTY = MapTileCache.getTileIndex(this.getHeight() - 1 - moveY);
+        for (int ty = MapTileCache.getTileIndex(-moveY); ty <= maxTY; ty++) {
+            for (int tx = MapTileCache.getTileIndex(-moveX); tx <= maxTX; tx++) {
+                final Image tile = this.tiles.getTile(this.currentZoomIndex, tx, ty);
+                if (tile != null) {
+                    g2.drawImage(tile, tx * size + moveX, ty * size + moveY, null);
+                }
+            }
         }
-        Ville.sortByPopulation(this.cacheVilles);
     }
 
-    private void removeIfNotAlwaysVisible(Ville v) {
-        if (!this.alwayVisible.contains(v))
-            this.cacheVilles.remove(v);
-    }
+    /**
+     * Draw the cities that are not in the tiles : always visible and highlighted.
+     */
+    private void drawVille(Graphics2D g2, int moveX, int moveY) {
+        final double zoomValue = getCurrentZoomValue();
+        final Set<Ville> all = new LinkedHashSet<Ville>(this.alwayVisible);
+        all.addAll(this.hightlightVisible);
+        all.remove(null);
+        final List<Ville> villes = new ArrayList<Ville>(all.size());
+        for (Ville v : all) {
+            final int x = (int) Math.round(v.getXLambert() / zoomValue) + moveX;
+            final int y = (int) Math.round(-v.getYLambert() / zoomValue) + moveY;
+            // with the label
+            if (x > -200 && x < this.getWidth() + 200 && y > -50 && y < this.getHeight() + 50) {
+                villes.add(v);
+            }
+        }
+        Collections.sort(villes, VilleGrid.POPULATION_COMPARATOR);
 
-    private void drawVille(Graphics2D g2, List<Ville> villes) {
         List<Rectangle2D> rectangles = new ArrayList<Rectangle2D>();
         final int vCount = villes.size();
         final Font font = this.getFont();
@@ -619,8 +546,8 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
         g2.setStroke(new BasicStroke(1.2f));
         for (int i = 0; i < vCount; i++) {
             final Ville v = villes.get(i);
-            final int roundedX = (int) Math.round(longitudeToX(v.getXLambert()));
-            final int roundedY = (int) Math.round(latitudeToY(v.getYLambert()));
+            final int roundedX = (int) Math.round(v.getXLambert() / zoomValue) + moveX;
+            final int roundedY = (int) Math.round(-v.getYLambert() / zoomValue) + moveY;
 
             // Label
             final String label = v.getName();
@@ -642,34 +569,14 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
 
             }
 
-            if (this.alwayVisible.contains(v) || !overlap) {
+            if (this.alwayVisible.contains(v)) {
                 // Rond
                 Color c = this.colors.get(v);
                 if (c == null)
-                    c = COLOR_POINT_VILLE;
+                    c = MapTileCache.COLOR_POINT_VILLE;
                 g2.setColor(c);
 
-                int tailleOvale = 12;
-                final long population = v.getPopulation();
-                if (population < 1000) {
-                    tailleOvale = 4;
-                } else if (population < 10000) {
-                    tailleOvale = 6;
-                } else if (population < 100000) {
-                    tailleOvale = 10;
-                } else if (population < 250000) {
-                    tailleOvale = 12;
-                    if (this.currentZoomIndex > 2) {
-                        tailleOvale = 20;
-                    }
-                } else {
-                    tailleOvale = 18;
-                    if (this.currentZoomIndex > 2) {
-                        tailleOvale = 24;
-                    }
-
-                }
-
+                final int tailleOvale = MapTileCache.getOvalSize(v.getPopulation(), this.currentZoomIndex);
                 final int demiOvale = tailleOvale / 2;
                 g2.fillOval(roundedX - demiOvale, roundedY - demiOvale, tailleOvale, tailleOvale);
 
@@ -685,10 +592,8 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
 
         for (Ville v : this.hightlightVisible) {
             if (v != null) {
-                double x1 = longitudeToX(v.getXLambert());
-                double y1 = latitudeToY(v.getYLambert());
-                int roundedX = (int) Math.round(x1);
-                int roundedY = (int) Math.round(y1);
+                int roundedX = (int) Math.round(v.getXLambert() / zoomValue) + moveX;
+                int roundedY = (int) Math.round(-v.getYLambert() / zoomValue) + moveY;
                 roundedX -= 7;
                 roundedY -= 34;
                 g2.drawImage(imgMarker, roundedX, roundedY, null);
@@ -705,8 +610,8 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
                     g2.setColor(new Color(255, 255, 255, 200));
                 }
             }
-            final int roundedX = (int) Math.round(longitudeToX(v.getXLambert()));
-            final int roundedY = (int) Math.round(latitudeToY(v.getYLambert()));
+            final int roundedX = (int) Math.round(v.getXLambert() / zoomValue) + moveX;
+            final int roundedY = (int) Math.round(-v.getYLambert() / zoomValue) + moveY;
 
             // Label
             String label = v.getName();
@@ -757,101 +662,6 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
         return (long) (getCurrentZoomValue() * (this.dy - y + this.getHeight()) + this.offsetY);
     }
 
-    private void drawRegion(Graphics2D g2) {
-        int regionP = 0;
-
-        int rCount = this.cacheRegions.size();
-
-        long minXLambertViewable = XToLongitude(0);
-        long minYLambertViewable = YTolatitude(0);
-        long maxXLambertViewable = XToLongitude(this.getWidth());
-        final int finalHeight = this.getHeight();
-        long maxYLambertViewable = YTolatitude(finalHeight);
-
-        g2.setColor(Color.BLACK);
-
-        int moveX = (int) (this.dx - this.offsetX / getCurrentZoomValue());
-        int moveY = (int) (this.dy + this.getHeight() + this.offsetY / getCurrentZoomValue());
-        for (int i = 0; i < rCount; i++) {
-
-            RegionPointsCache r = this.cacheRegions.get(i);
-            int regionPoints = r.size();
-            if (regionPoints < 50)
-                continue;
-            // Ne pas tracer les regions nons visibles
-            // Max
-            if (r.getMaxX() < minXLambertViewable)
-                continue;
-            if (r.getMaxY() < maxYLambertViewable)
-                continue;
-            // Min
-            if (r.getMinX() > maxXLambertViewable)
-                continue;
-            if (r.getMinY() > minYLambertViewable)
-                continue;
-
-            // final ArrayList<MapPoint> points = r.getPoints();
-            // Ne pas tracers les regions minuscules
-
-            int[] x = new int[regionPoints];
-            int[] y = new int[regionPoints];
-            System.arraycopy(r.absX, 0, x, 0, regionPoints);
-            System.arraycopy(r.absY, 0, y, 0, regionPoints);
-
-            regionToPoly(moveX, moveY, x, y);
-            int pointCount = x.length;
-            /*
-             * for (int index = 0; index < pointCount; index++) { System.err.println(x[index] + ","
-             * + y[index]); }
-             */
-            regionP += pointCount;
-            if (pointCount > 3) {
-                // Remplissage de la regions
-                g2.setStroke(BASIC_STROKE);
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
-
-                g2.setColor(new Color(242, 240, 232));
-                // g2.setColor(new Color(135 + (50 + 12 * i) % 80, 45 + (50 + 36
-                // * i) % 30, 120 +
-                // (50 + 35 * i) % 40));
-
-                g2.fillPolygon(x, y, pointCount - 1);
-
-                // Contour
-                if (!this.quickdraw)
-                    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2.setColor(Color.LIGHT_GRAY);
-                g2.setStroke(STROKE_CONTOUR);
-                // for (int ii = 0; ii < pointCount; ii++) {
-                // g2.drawRect(x[ii], y[ii], 3, 3);
-                // }
-                g2.drawPolygon(x, y, pointCount - 1);
-            }
-
-            // int xx = (longitudeToX(r.getMaxX()) + longitudeToX(r.getMinX()))
-            // / 2;
-            // int yy = (latitudeToY(r.getMaxY()) + latitudeToY(r.getMinY())) /
-            // 2;
-            // g2.setColor(Color.white);
-            // g2.drawString(r.getRegion().toString(), xx, yy);
-
-        }
-
-    }
-
-    private void regionToPoly(int moveX, int moveY, int[] x, int[] y) {
-        int stop = x.length;
-        for (int j = 0; j < stop; j++) {
-
-            // double x1 = longitudeToX(p.getX());
-            x[j] += moveX;
-
-            // double y1 = latitudeToY(p.getY());
-            y[j] = moveY - y[j];
-
-        }
-    }
-
     public String getStatus() {
         String s = "Zoom:" + getCurrentZoomValue() + " dx:" + this.dx + ",dy" + this.dy + " Mouse:" + this.getCurrentMouseX() + "," + this.getCurrentMouseY();
         s += " Long: " + this.XToLongitude(getCurrentMouseX()) + ", " + this.YTolatitude(getCurrentMouseY());
@@ -917,7 +727,6 @@ public class VilleRendererPanel extends JPanel implements MutableValueObject<Str
             incrementMacthing(ville);
         }
 
-        rebuildVisibleVilleCache();
         repaint();
     }
 
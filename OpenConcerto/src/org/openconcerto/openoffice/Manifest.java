@@ -31,7 +31,7 @@ import org.jdom.Namespace;
  * 
  * @author Sylvain CUAZ
  */
-final class Manifest {
+public final class Manifest {
 
     public static final String ENTRY_NAME = "META-INF/manifest.xml";
     private static final DocType DOC_TYPE = new DocType("manifest:manifest", "-//OpenOffice.org//DTD Manifest 1.0//EN", "Manifest.dtd");
@@ -24,12 +24,12 @@ import org.openconcerto.utils.ExceptionUtils;
 import org.openconcerto.utils.FileUtils;
 import org.openconcerto.utils.ProductInfo;
 import org.openconcerto.utils.PropertiesUtils;
+import org.openconcerto.utils.RawZipFile;
+import org.openconcerto.utils.RawZipWriter;
 import org.openconcerto.utils.StreamUtils;
-import org.openconcerto.utils.StringInputStream;
 import org.openconcerto.utils.StringUtils;
 import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.Tuple3;
-import org.openconcerto.utils.Zip;
 import org.openconcerto.utils.ZippedFilesProcessor;
 import org.openconcerto.utils.cc.ITransformer;
 import org.openconcerto.utils.io.DataInputStream;
@@ -59,6 +59,7 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
 import org.jdom.Attribute;
 import org.jdom.DocType;
@@ -76,7 +77,7 @@ import org.jdom.output.XMLOutputter;
  */
 public class ODPackage {
 
-    static final String MIMETYPE_ENTRY = "mimetype";
+    public static final String MIMETYPE_ENTRY = "mimetype";
     /** Normally mimetype contains only ASCII characters */
     static final Charset MIMETYPE_ENC = Charset.forName("UTF-8");
 
@@ -356,7 +357,8 @@ public class ODPackage {
     }
 
     /**
-     * Read from the input stream into memory and close it.
+     * Read from the input stream into memory and close it. The entries are only inflated and
+     * parsed when first used, and those left untouched are saved without being recompressed.
      * 
      * @param ins the package.
      * @throws IOException if <code>ins</code> couldn't be read.
@@ -364,6 +366,53 @@ public class ODPackage {
     public ODPackage(InputStream ins) throws IOException {
         this();
 
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        try {
+            StreamUtils.copy(ins, bytes);
+        } finally {
+            ins.close();
+        }
+        RawZipFile zip;
+        try {
+            zip = new RawZipFile(bytes.toByteArray());
+        } catch (ZipException e) {
+            // not a zip or unsupported features, let the JRE read what it can
+            zip = null;
+        }
+        if (zip == null) {
+            this.readEntries(new ByteArrayInputStream(bytes.toByteArray()));
+        } else {
+            for (final RawZipFile.Entry entry : zip.getEntries()) {
+                final String name = entry.getName();
+                // the mime type is needed right away and the manifest is removed below
+                if (name.equals(MIMETYPE_ENTRY) || name.equals(Manifest.ENTRY_NAME))
+                    putFile(name, entry.getBytes(), null, entry.isCompressed());
+                else
+                    this.files.put(name, new ODPackageEntry(this, FileUtils.findMimeType(name), entry));
+            }
+        }
+        // fill in the missing types from the manifest, if any
+        final ODPackageEntry me = this.files.remove(Manifest.ENTRY_NAME);
+        if (me != null) {
+            final byte[] m = (byte[]) me.getData();
+            try {
+                final Map<String, String> manifestEntries = Manifest.parse(new ByteArrayInputStream(m));
+                for (final Map.Entry<String, String> e : manifestEntries.entrySet()) {
+                    final String path = e.getKey();
+                    final ODPackageEntry entry = this.files.get(path);
+                    // eg directory
+                    if (entry == null)
+                        this.files.put(path, new ODPackageEntry(path, e.getValue(), null));
+                    else
+                        entry.setType(e.getValue());
+                }
+            } catch (JDOMException e) {
+                throw new IllegalArgumentException("bad manifest " + new String(m), e);
+            }
+        }
+    }
+
+    private void readEntries(final InputStream ins) throws IOException {
         final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
         new ZippedFilesProcessor() {
             @Override
@@ -386,24 +435,25 @@ public class ODPackage {
                 putFile(name, res, null, entry.getMethod() == ZipEntry.DEFLATED);
             }
         }.process(ins);
-        // fill in the missing types from the manifest, if any
-        final ODPackageEntry me = this.files.remove(Manifest.ENTRY_NAME);
-        if (me != null) {
-            final byte[] m = (byte[]) me.getData();
-            try {
-                final Map<String, String> manifestEntries = Manifest.parse(new ByteArrayInputStream(m));
-                for (final Map.Entry<String, String> e : manifestEntries.entrySet()) {
-                    final String path = e.getKey();
-                    final ODPackageEntry entry = this.files.get(path);
-                    // eg directory
-                    if (entry == null)
-                        this.files.put(path, new ODPackageEntry(path, e.getValue(), null));
-                    else
-                        entry.setType(e.getValue());
-                }
-            } catch (JDOMException e) {
-                throw new IllegalArgumentException("bad manifest " + new String(m), e);
+    }
+
+    // called by ODPackageEntry.getData() for entries not yet read
+    final Object read(final RawZipFile.Entry entry) {
+        final String name = entry.getName();
+        try {
+            if (subdocNames.contains(name)) {
+                final ODXMLDocument res = ODXMLDocument.create(OOUtils.getBuilder().build(entry.getInputStream()));
+                // same check as putFile(), against the mimetype and the documents already read
+                this.updateTypeAndVersion(name, res);
+                return res;
+            } else {
+                return entry.getBytes();
             }
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't read " + name, e);
+        } catch (JDOMException e) {
+            // always correct
+            throw new IllegalStateException("parse error", e);
         }
     }
 
@@ -414,9 +464,14 @@ public class ODPackage {
 
     public ODPackage(ODPackage o) {
         this();
-        // ATTN this works because, all files are read upfront
         for (final String name : o.getEntries()) {
             final ODPackageEntry entry = o.getEntry(name);
+            // no need to read (let alone copy) entries that the original hasn't used yet
+            final ODPackageEntry unread = entry.copyUnread(this);
+            if (unread != null) {
+                this.files.put(name, unread);
+                continue;
+            }
             final Object data = entry.getData();
             final Object myData;
             if (data instanceof byte[])
@@ -455,10 +510,21 @@ public class ODPackage {
      * @return the version of this package, can be <code>null</code>.
      */
     public final XMLVersion getVersion() {
-        return getVersion(this.version, this.type);
+        return getVersion(this.type == null ? this.getFormatVersion() : this.version, this.type);
     }
 
     public final XMLFormatVersion getFormatVersion() {
+        if (this.version == null) {
+            // read the documents until one sets our version
+            for (final RootElement r : RootElement.getPackageElements()) {
+                final ODPackageEntry entry = this.files.get(r.getZipEntry());
+                if (entry != null && !entry.isRead()) {
+                    entry.getData();
+                    if (this.version != null)
+                        break;
+                }
+            }
+        }
         return this.version;
     }
 
@@ -468,6 +534,12 @@ public class ODPackage {
      * @return the type of this package, can be <code>null</code>.
      */
     public final ContentTypeVersioned getContentType() {
+        if (this.type == null) {
+            // no mimetype entry, read the content
+            final ODPackageEntry content = this.files.get(CONTENT.getZipEntry());
+            if (content != null && !content.isRead())
+                content.getData();
+        }
         return this.type;
     }
 
@@ -513,7 +585,8 @@ public class ODPackage {
         XMLFormatVersion fv = null;
         final Map<String, Object> versionFiles = new HashMap<String, Object>();
         for (final String e : subdocNames) {
-            if (this.files.containsKey(e) && !e.equals(entryToIgnore)) {
+            // don't read documents just for checking : they were checked when read
+            if (this.files.containsKey(e) && !e.equals(entryToIgnore) && this.files.get(e).isRead()) {
                 final ODXMLDocument xmlFile = this.getXMLFile(e);
                 versionFiles.put(e, xmlFile);
                 if (fv == null)
@@ -624,6 +697,13 @@ public class ODPackage {
         return e == null ? null : e.getData();
     }
 
+    /**
+     * The content of a binary entry. The array isn't copied and must not be modified, see
+     * {@link ODPackageEntry#getData()}.
+     * 
+     * @param entry the name of the entry, e.g. "Pictures/logo.png".
+     * @return its content, <code>null</code> if there's no such entry.
+     */
     public final byte[] getBinaryFile(String entry) {
         return (byte[]) this.getData(entry);
     }
@@ -911,7 +991,9 @@ public class ODPackage {
     }
 
     public final boolean isSingle() {
-        return this.getContent() instanceof ODSingleXMLDocument;
+        final ODPackageEntry content = this.files.get(CONTENT.getZipEntry());
+        // a document read from a zip can't be single
+        return content != null && content.isRead() && content.getData() instanceof ODSingleXMLDocument;
     }
 
     /**
@@ -970,10 +1052,10 @@ public class ODPackage {
             generator = productInfo.getName() + "/" + productInfo.getVersion();
         this.getMeta(true).setGenerator(generator);
 
-        final Zip z = new Zip(out);
+        final RawZipWriter z = new RawZipWriter(out);
 
         // magic number, see section 17.4
-        z.zipNonCompressed(MIMETYPE_ENTRY, this.getMimeType().getBytes(MIMETYPE_ENC));
+        z.zip(MIMETYPE_ENTRY, this.getMimeType().getBytes(MIMETYPE_ENC), false);
 
         final Manifest manifest = new Manifest(this.getVersion(), this.getMimeType());
         final XMLOutputter outputter = createOutputter();
@@ -983,8 +1065,12 @@ public class ODPackage {
                 continue;
 
             final ODPackageEntry entry = this.files.get(name);
-            final Object val = entry.getData();
-            if (val != null) {
+            final RawZipFile.Entry unmodified = entry.getUnmodifiedSource();
+            // unchanged entries are copied without being inflated and deflated
+            final Object val = unmodified == null ? entry.getData() : null;
+            if (unmodified != null) {
+                z.zipRaw(name, unmodified);
+            } else if (val != null) {
                 if (val instanceof ODXMLDocument) {
                     final OutputStream o = z.createEntry(name);
                     outputter.output(((ODXMLDocument) val).getDocument(), o);
@@ -997,7 +1083,7 @@ public class ODPackage {
             manifest.addEntry(name, mediaType == null ? "" : mediaType);
         }
 
-        z.zip(Manifest.ENTRY_NAME, new StringInputStream(manifest.asString()));
+        z.zip(Manifest.ENTRY_NAME, manifest.asString().getBytes("UTF-8"), true);
         z.close();
     }
 
@@ -13,16 +13,23 @@
  
  package org.openconcerto.openoffice;
 
+import org.openconcerto.utils.RawZipFile;
+
 /**
- * An OpenDocument package entry, ie a file or folder inside a zip.
+ * An OpenDocument package entry, ie a file or folder inside a zip. An entry read from a zip is
+ * lazy : its data is only inflated (and parsed for XML documents) when first asked for, and if it
+ * wasn't modified it can be copied as is when saving.
  */
 public class ODPackageEntry {
 
     private final String name;
     private String type;
-    // either byte[] or OOXMLDocument
-    private final Object data;
+    // either byte[] or OOXMLDocument, null if not yet read from source
+    private Object data;
     private boolean compressed;
+    // the entry in the zip this was read from, null if created in memory
+    private final RawZipFile.Entry source;
+    private final ODPackage pkg;
 
     public ODPackageEntry(String name, String type, Object data) {
         this(name, type, data, true);
@@ -34,6 +41,32 @@ public class ODPackageEntry {
         this.type = type;
         this.data = data;
         this.compressed = compressed;
+        this.source = null;
+        this.pkg = null;
+    }
+
+    ODPackageEntry(final ODPackage pkg, final String type, final RawZipFile.Entry source) {
+        super();
+        this.name = source.getName();
+        this.type = type;
+        this.data = null;
+        this.compressed = source.isCompressed();
+        this.source = source;
+        this.pkg = pkg;
+    }
+
+    /**
+     * Create a lazy copy of this entry.
+     * 
+     * @param pkg the package of the new entry.
+     * @return a new entry sharing our source, or <code>null</code> if this was already read.
+     */
+    synchronized final ODPackageEntry copyUnread(final ODPackage pkg) {
+        if (this.source == null || this.data != null)
+            return null;
+        final ODPackageEntry res = new ODPackageEntry(pkg, this.type, this.source);
+        res.compressed = this.compressed;
+        return res;
     }
 
     public final String getName() {
@@ -48,10 +81,41 @@ public class ODPackageEntry {
         this.type = type;
     }
 
-    public final Object getData() {
+    /**
+     * The data of this entry, read from the zip if needed. The returned <code>byte[]</code> is
+     * shared, not copied, so it must not be modified : to change a binary entry pass a new array
+     * to {@link ODPackage#putFile(String, Object)}.
+     * 
+     * @return either a <code>byte[]</code> or an {@link ODXMLDocument}, can be <code>null</code>.
+     */
+    public synchronized final Object getData() {
+        if (this.data == null && this.source != null)
+            this.data = this.pkg.read(this.source);
         return this.data;
     }
 
+    /**
+     * Whether the data has been read from the zip.
+     * 
+     * @return <code>false</code> if {@link #getData()} will have to read the zip.
+     */
+    public synchronized final boolean isRead() {
+        return this.data != null || this.source == null;
+    }
+
+    /**
+     * The entry this was read from, if it can be copied without recompression.
+     * 
+     * @return the unmodified entry in the zip, <code>null</code> if this must be written from
+     *         {@link #getData()}.
+     */
+    synchronized final RawZipFile.Entry getUnmodifiedSource() {
+        if (this.source == null || this.source.isCompressed() != this.compressed)
+            return null;
+        // byte[] are never modified (see getData()), but XML documents may have been changed
+        return this.data == null || this.data instanceof byte[] ? this.source : null;
+    }
+
     public final boolean isCompressed() {
         return this.compressed;
     }
@@ -62,7 +126,7 @@ public class ODPackageEntry {
 
     @Override
     public String toString() {
-        return this.getClass().getSimpleName() + " " + getName() + "[" + this.getType() + "]" + getData();
+        return this.getClass().getSimpleName() + " " + getName() + "[" + this.getType() + "]" + (this.isRead() ? getData() : "<not read>");
     }
 
 }
@@ -24,7 +24,9 @@ import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.datatype.Duration;
 
@@ -193,7 +195,17 @@ public enum ODValueType {
      * @throws IllegalArgumentException if <code>name</code> isn't a valid type.
      */
     public static ODValueType get(String name) {
-        return ODValueType.valueOf(name.toUpperCase());
+        // called for each cell, avoid toUpperCase()
+        final ODValueType res = BY_NAME.get(name);
+        return res != null ? res : ODValueType.valueOf(name.toUpperCase());
+    }
+
+    private static final Map<String, ODValueType> BY_NAME;
+    static {
+        final ODValueType[] values = values();
+        BY_NAME = new HashMap<String, ODValueType>(values.length * 2);
+        for (final ODValueType t : values)
+            BY_NAME.put(t.getName(), t);
     }
 
     /**
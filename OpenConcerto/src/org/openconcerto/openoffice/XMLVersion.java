@@ -96,9 +96,11 @@ public enum XMLVersion {
     }
 
     public final Namespace getNS(String prefix) {
-        if (!this.nss.containsKey(prefix))
+        // called for each attribute access, so only one lookup
+        final Namespace res = this.nss.get(prefix);
+        if (res == null)
             throw new IllegalStateException("unknown " + prefix + " : " + this.nss.keySet());
-        return this.nss.get(prefix);
+        return res;
     }
 
     public final String getName() {
@@ -0,0 +1,107 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.openoffice.spreadsheet;
+
+import org.openconcerto.openoffice.XMLFormatVersion;
+import org.openconcerto.xml.JDOMUtils;
+
+import java.io.File;
+import java.util.List;
+
+import javax.swing.table.DefaultTableModel;
+
+import org.jdom.Element;
+import org.jdom.Namespace;
+
+/**
+ * Time {@link Table#duplicateRows(int, int, int)} the way list templates are paginated : the first
+ * page is copied, some rows are inserted in it, it is duplicated once per page and then a few rows
+ * are inserted at the end (e.g. totals). Each row has a style and the first page has a shape
+ * anchored to a cell, so both the rows and the anchors must be updated. The hash of the resulting
+ * XML allows to check that another implementation gives the same table.
+ * 
+ * <pre>
+ * java org.openconcerto.openoffice.spreadsheet.DuplicateRowsBenchmark [pages...]
+ * </pre>
+ */
+public class DuplicateRowsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int[] pages;
+        if (args.length == 0) {
+            // the first ones warm up the JVM
+            pages = new int[] { 40, 40, 40, 80, 160, 320 };
+        } else {
+            pages = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                pages[i] = Integer.parseInt(args[i]);
+        }
+
+        final Object[][] data = new Object[60][12];
+        for (int i = 0; i < data.length; i++)
+            for (int j = 0; j < data[i].length; j++)
+                data[i][j] = j % 2 == 0 ? "v" + i : (Object) Double.valueOf(i * j);
+        final File template = SpreadSheetWriter.export(new DefaultTableModel(data, new Object[12]), File.createTempFile("duplicateRows", ".ods"), XMLFormatVersion.getDefault());
+        try {
+            for (final int pageCount : pages) {
+                final Sheet sheet = createSheet(template);
+                final long start = System.nanoTime();
+                sheet.duplicateFirstRows(20, 1);
+                sheet.insertDuplicatedRows(12, 30);
+                sheet.duplicateFirstRows(50, pageCount);
+                final long inserts = System.nanoTime();
+                for (int k = 0; k < 10; k++)
+                    sheet.insertDuplicatedRows(sheet.getRowCount() - 3, 2);
+                final long end = System.nanoTime();
+                // the rows must still be usable
+                for (int y = 0; y < sheet.getRowCount(); y += 7)
+                    sheet.setValueAt("x", 0, y);
+                System.out.println(pageCount + " pages, " + sheet.getRowCount() + " rows : " + (end - start) / 1000000 + " ms, 10 small inserts " + (end - inserts) / 1000000 + " ms, hash "
+                        + JDOMUtils.output(sheet.getElement()).hashCode());
+            }
+        } finally {
+            template.delete();
+        }
+    }
+
+    private static Sheet createSheet(final File f) throws Exception {
+        final SpreadSheet spreadSheet = SpreadSheet.createFromFile(f);
+        final Sheet sheet = spreadSheet.getSheet(0);
+        sheet.setName("Sheet1");
+        final Namespace draw = spreadSheet.getVersion().getNS("draw");
+        final Namespace table = spreadSheet.getVersion().getTABLE();
+        final Namespace svg = spreadSheet.getVersion().getNS("svg");
+        final Namespace style = spreadSheet.getVersion().getSTYLE();
+
+        // a frame anchored in row 5 and ending in row 8, like a logo
+        @SuppressWarnings("unchecked")
+        final List<Element> rows = sheet.getElement().getChildren("table-row", table);
+        final Element frame = new Element("frame", draw);
+        frame.setAttribute("end-cell-address", "Sheet1.B8", table);
+        frame.setAttribute("end-x", "1cm", table);
+        frame.setAttribute("end-y", "0.2cm", table);
+        frame.setAttribute("width", "2cm", svg);
+        frame.setAttribute("height", "1cm", svg);
+        frame.setAttribute("x", "0cm", svg);
+        frame.setAttribute("y", "0cm", svg);
+        ((Element) rows.get(5).getChildren().get(0)).addContent(frame);
+
+        final Element rowStyle = new Element("style", style).setAttribute("name", "ro1", style).setAttribute("family", "table-row", style);
+        rowStyle.addContent(new Element("table-row-properties", style).setAttribute("row-height", "0.5cm", style));
+        spreadSheet.getPackage().getContent().getDocument().getRootElement().getChild("automatic-styles", spreadSheet.getVersion().getOFFICE()).addContent(rowStyle);
+        for (final Element row : rows)
+            row.setAttribute("style-name", "ro1", table);
+        return sheet;
+    }
+}
@@ -15,6 +15,7 @@
 
 import org.openconcerto.openoffice.Log;
 import org.openconcerto.openoffice.ODDocument;
+import org.openconcerto.openoffice.ODEpoch;
 import org.openconcerto.openoffice.ODFrame;
 import org.openconcerto.openoffice.ODValueType;
 import org.openconcerto.openoffice.OOXML;
@@ -206,32 +207,10 @@ public class MutableCell<D extends ODDocument> extends Cell<D> {
             text = formatted.get0();
         } else {
             // either there were no format or formatting failed
-            if (vt == ODValueType.FLOAT) {
-                text = formatNumber((Number) obj, getDefaultStyle());
-            } else if (vt == ODValueType.PERCENTAGE) {
-                text = formatPercent((Number) obj, getDefaultStyle());
-            } else if (vt == ODValueType.CURRENCY) {
-                text = formatCurrency((Number) obj, getDefaultStyle());
-            } else if (vt == ODValueType.DATE) {
-                final Date d;
-                if (obj instanceof Calendar) {
-                    d = ((Calendar) obj).getTime();
-                } else {
-                    d = (Date) obj;
-                }
-                text = TextPDateFormat.format(d);
-            } else if (vt == ODValueType.TIME) {
-                if (obj instanceof Duration) {
-                    final Duration normalized = getODDocument().getEpoch().normalizeToHours((Duration) obj);
-                    text = "" + normalized.getHours() + ':' + TextPMinuteSecondFormat.format(normalized.getMinutes()) + ':'
-                            + TextPMinuteSecondFormat.format(normalized.getField(DatatypeConstants.SECONDS));
-                } else {
-                    text = TextPTimeFormat.format(((Calendar) obj).getTime());
-                }
-            } else if (vt == ODValueType.BOOLEAN) {
-                // LO do not use the the document language but the system language
-                // http://help.libreoffice.org/Common/Selecting_the_Document_Language
-                Locale l = Locale.getDefault();
+            // LO do not use the the document language but the system language
+            // http://help.libreoffice.org/Common/Selecting_the_Document_Language
+            Locale l = Locale.getDefault();
+            if (vt == ODValueType.BOOLEAN) {
                 // except of course if there's a data style
                 final CellStyle s = getStyle();
                 if (s != null) {
@@ -239,16 +218,63 @@ public class MutableCell<D extends ODDocument> extends Cell<D> {
                     if (ds != null)
                         l = DateStyle.getLocale(ds.getElement());
                 }
-                text = BooleanStyle.toString((Boolean) obj, l, lenient);
-            } else if (vt == ODValueType.STRING) {
-                text = obj.toString();
-            } else {
-                throw new IllegalStateException(vt + " unknown");
             }
+            text = formatTextP(vt, obj, getDefaultStyle(), getODDocument().getEpoch(), l, lenient);
         }
         this.setValue(vt, obj, text);
     }
 
+    /**
+     * The text displayed for a value without data style.
+     * 
+     * @param vt the value type.
+     * @param obj the value, must be formattable by <code>vt</code>.
+     * @param defaultStyle the default cell style of the document, can be <code>null</code>.
+     * @param epoch the epoch of the document, used for durations.
+     * @param booleanLocale the locale for booleans.
+     * @param lenient <code>true</code> to try best-effort.
+     * @return the text for the text:p of the cell.
+     */
+    static String formatTextP(final ODValueType vt, final Object obj, final CellStyle defaultStyle, final ODEpoch epoch, final Locale booleanLocale, final boolean lenient) {
+        final String text;
+        if (vt == ODValueType.FLOAT) {
+            text = formatNumber((Number) obj, defaultStyle);
+        } else if (vt == ODValueType.PERCENTAGE) {
+            text = formatPercent((Number) obj, defaultStyle);
+        } else if (vt == ODValueType.CURRENCY) {
+            text = formatCurrency((Number) obj, defaultStyle);
+        } else if (vt == ODValueType.DATE) {
+            final Date d;
+            if (obj instanceof Calendar) {
+                d = ((Calendar) obj).getTime();
+            } else {
+                d = (Date) obj;
+            }
+            synchronized (TextPDateFormat) {
+                text = TextPDateFormat.format(d);
+            }
+        } else if (vt == ODValueType.TIME) {
+            if (obj instanceof Duration) {
+                final Duration normalized = epoch.normalizeToHours((Duration) obj);
+                synchronized (TextPMinuteSecondFormat) {
+                    text = "" + normalized.getHours() + ':' + TextPMinuteSecondFormat.format(normalized.getMinutes()) + ':'
+                            + TextPMinuteSecondFormat.format(normalized.getField(DatatypeConstants.SECONDS));
+                }
+            } else {
+                synchronized (TextPTimeFormat) {
+                    text = TextPTimeFormat.format(((Calendar) obj).getTime());
+                }
+            }
+        } else if (vt == ODValueType.BOOLEAN) {
+            text = BooleanStyle.toString((Boolean) obj, booleanLocale, lenient);
+        } else if (vt == ODValueType.STRING) {
+            text = obj.toString();
+        } else {
+            throw new IllegalStateException(vt + " unknown");
+        }
+        return text;
+    }
+
     // return null String if no data style exists, or if one exists but we couldn't use it
     private Tuple3<String, ODValueType, Object> format(Object obj, ODValueType valueType, boolean onlyCast, boolean lenient) {
         String res = null;
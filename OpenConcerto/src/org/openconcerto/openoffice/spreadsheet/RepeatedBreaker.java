@@ -79,7 +79,10 @@ abstract class RepeatedBreaker<P, C extends ODNode> {
         final String repeatedS = element.getAttributeValue(this.attrName, element.getNamespace());
         if (repeatedS != null) {
             final int repeated = Integer.parseInt(repeatedS);
-            final int firstIndex = children.indexOf(c);
+            // don't use indexOf() : it's linear in col
+            int firstIndex = col;
+            while (firstIndex > 0 && children.get(firstIndex - 1) == c)
+                firstIndex--;
             final int lastIndex = firstIndex + repeated - 1;
 
             final int preRepeated = col - firstIndex;
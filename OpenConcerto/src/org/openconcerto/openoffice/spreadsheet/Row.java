@@ -41,7 +41,7 @@ public class Row<D extends ODDocument> extends TableCalcNode<RowStyle, D> {
     }
 
     private final Table<D> parent;
-    private final int index;
+    private int index;
     private int repeated;
     // the same immutable cell instance is repeated, but each MutableCell is only once
     // ATTN MutableCell have their index as attribute
@@ -79,6 +79,11 @@ public class Row<D extends ODDocument> extends TableCalcNode<RowStyle, D> {
         return this.index;
     }
 
+    // when rows are inserted before this one
+    final void setY(final int index) {
+        this.index = index;
+    }
+
     // inclusive
     final int getLastY() {
         return this.getY() + this.getRepeated() - 1;
@@ -84,7 +84,7 @@ public class SpreadSheet extends ODDocument {
     }
 
     /**
-     * Export the passed data to file.
+     * Export the passed data to file. The data is streamed, i.e. no document is created in memory.
      * 
      * @param t the data to export.
      * @param f where to export, if the extension is missing (or wrong) the correct one will be
@@ -92,9 +92,10 @@ public class SpreadSheet extends ODDocument {
      * @param ns the version of XML.
      * @return the saved file, eg "dir/data.ods".
      * @throws IOException if the file can't be saved.
+     * @see SpreadSheetWriter#export(TableModel, File, XMLFormatVersion)
      */
     public static File export(TableModel t, File f, XMLFormatVersion ns) throws IOException {
-        return SpreadSheet.createEmpty(t, ns).saveAs(f);
+        return SpreadSheetWriter.export(t, f, ns);
     }
 
     private final Map<Element, Sheet> sheets;
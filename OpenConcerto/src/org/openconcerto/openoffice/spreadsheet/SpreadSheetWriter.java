@@ -0,0 +1,894 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.openoffice.spreadsheet;
+
+import org.openconcerto.openoffice.ContentType;
+import org.openconcerto.openoffice.ContentTypeVersioned;
+import org.openconcerto.openoffice.Manifest;
+import org.openconcerto.openoffice.ODEpoch;
+import org.openconcerto.openoffice.ODPackage;
+import org.openconcerto.openoffice.ODPackage.RootElement;
+import org.openconcerto.openoffice.ODPackageEntry;
+import org.openconcerto.openoffice.ODValueType;
+import org.openconcerto.openoffice.ODXMLDocument;
+import org.openconcerto.openoffice.OOXML;
+import org.openconcerto.openoffice.XMLFormatVersion;
+import org.openconcerto.openoffice.XMLVersion;
+import org.openconcerto.utils.StringInputStream;
+import org.openconcerto.utils.Zip;
+import org.openconcerto.xml.JDOMUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.table.TableModel;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jdom.Attribute;
+import org.jdom.Comment;
+import org.jdom.Content;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.Text;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+
+/**
+ * Write a spreadsheet directly to a stream, without building the content in memory. Rows are
+ * written one at a time with StAX in <code>content.xml</code>, thus there's no limit on the number
+ * of rows. Automatic styles must be known before the first table is started, see
+ * {@link #getStyles()}.
+ * 
+ * <pre>
+ * final SpreadSheetWriter w = new SpreadSheetWriter(out, XMLFormatVersion.getDefault());
+ * try {
+ *     w.startTable(&quot;Data&quot;, 2);
+ *     w.writeRow(Arrays.asList(&quot;a&quot;, 1));
+ *     w.endTable();
+ * } finally {
+ *     w.close();
+ * }
+ * </pre>
+ * 
+ * A writer can also use an existing package as template, in that case every entry except the
+ * content is copied and the tables of the template can be partially copied, see
+ * {@link #startTable(Element)} and {@link #writeRows(Element, int, int)}.
+ */
+public class SpreadSheetWriter {
+
+    /**
+     * Export the passed data to file.
+     * 
+     * @param t the data to export.
+     * @param f where to export, if the extension is missing (or wrong) the correct one will be
+     *        added, eg "dir/data".
+     * @param ns the version of XML.
+     * @return the saved file, eg "dir/data.ods".
+     * @throws IOException if the file can't be saved.
+     */
+    public static File export(final TableModel t, final File f, final XMLFormatVersion ns) throws IOException {
+        final String ext = '.' + ContentType.SPREADSHEET.getVersioned(ns.getXMLVersion()).getExtension();
+        final File res = f.getName().endsWith(ext) ? f : new File(f.getParentFile(), f.getName() + ext);
+        if (res.getParentFile() != null)
+            res.getParentFile().mkdirs();
+        final SpreadSheetWriter w = new SpreadSheetWriter(new BufferedOutputStream(new FileOutputStream(res), 512 * 1024), ns);
+        try {
+            w.writeTable(null, t, true);
+        } finally {
+            w.close();
+        }
+        return res;
+    }
+
+    /**
+     * Automatic styles shared by the cells. Identical styles are only written once.
+     */
+    public static final class StyleDictionary {
+
+        private final XMLVersion version;
+        private final String prefix;
+        // style without name -> name
+        private final Map<String, String> names;
+        private final List<Element> styles;
+        private final Map<ODValueType, String> defaultStyles;
+        private boolean frozen;
+
+        StyleDictionary(final XMLVersion version, final String prefix) {
+            this.version = version;
+            this.prefix = prefix;
+            this.names = new HashMap<String, String>();
+            this.styles = new ArrayList<Element>();
+            this.defaultStyles = new EnumMap<ODValueType, String>(ODValueType.class);
+            this.frozen = false;
+        }
+
+        /**
+         * Add a style to this dictionary.
+         * 
+         * @param style an automatic style, e.g. style:style or number:date-style, its name is
+         *        ignored.
+         * @return the name of the style, equal for equal styles.
+         * @throws IllegalStateException if the automatic styles have already been written.
+         */
+        public final synchronized String getStyle(final Element style) {
+            final Element copy = (Element) style.clone();
+            copy.removeAttribute("name", this.version.getSTYLE());
+            final String key = JDOMUtils.output(copy);
+            final String existing = this.names.get(key);
+            if (existing != null)
+                return existing;
+            if (this.frozen)
+                throw new IllegalStateException("Automatic styles already written");
+
+            final String name = this.prefix + (this.styles.size() + 1);
+            copy.setAttribute("name", name, this.version.getSTYLE());
+            this.styles.add(copy);
+            this.names.put(key, name);
+            return name;
+        }
+
+        /**
+         * Create a cell style.
+         * 
+         * @param parentName the parent, can be <code>null</code>.
+         * @param dataStyle the data style, can be <code>null</code>.
+         * @return the name of the style.
+         */
+        public final String getCellStyle(final String parentName, final Element dataStyle) {
+            final Element res = new Element("style", this.version.getSTYLE());
+            res.setAttribute("family", "table-cell", this.version.getSTYLE());
+            if (parentName != null)
+                res.setAttribute("parent-style-name", parentName, this.version.getSTYLE());
+            if (dataStyle != null)
+                res.setAttribute("data-style-name", this.getStyle(dataStyle), this.version.getSTYLE());
+            return this.getStyle(res);
+        }
+
+        /**
+         * The style used for cells of the passed type without explicit style.
+         * 
+         * @param vt the type of value.
+         * @return the name of the style, <code>null</code> if none is needed.
+         */
+        public final synchronized String getDefaultStyle(final ODValueType vt) {
+            if (this.defaultStyles.containsKey(vt))
+                return this.defaultStyles.get(vt);
+            final Element dataStyle;
+            // no data style for dates, like MutableCell.setValue() : the default format of the application
+            if (vt == ODValueType.TIME) {
+                dataStyle = this.createDataStyle("time-style", "long", "hours", ":", "minutes", ":", "seconds");
+                // durations can be more than 24 hours
+                if (this.version == XMLVersion.OD)
+                    dataStyle.setAttribute("truncate-on-overflow", "false", this.version.getNS("number"));
+            } else {
+                dataStyle = null;
+            }
+            // not frozen or we would have added the default styles
+            final String res = dataStyle == null ? null : this.getCellStyle(null, dataStyle);
+            this.defaultStyles.put(vt, res);
+            return res;
+        }
+
+        private Element createDataStyle(final String name, final String partStyle, final String... parts) {
+            final Namespace numberNS = this.version.getNS("number");
+            final Element res = new Element(name, numberNS);
+            for (int i = 0; i < parts.length; i++) {
+                final Element part;
+                if (i % 2 == 0) {
+                    part = new Element(parts[i], numberNS);
+                    if (partStyle != null && i > 0)
+                        part.setAttribute("style", partStyle, numberNS);
+                } else {
+                    part = new Element("text", numberNS).setText(parts[i]);
+                }
+                res.addContent(part);
+            }
+            return res;
+        }
+
+        synchronized final List<Element> freeze() {
+            if (!this.frozen) {
+                // so that cells can use them without changing the dictionary
+                for (final ODValueType vt : ODValueType.values())
+                    this.getDefaultStyle(vt);
+                this.frozen = true;
+            }
+            return this.styles;
+        }
+    }
+
+    private static enum State {
+        NEW, TABLES, TABLE, ROW, CLOSED
+    }
+
+    private final Zip zip;
+    private final XMLFormatVersion version;
+    private final XMLVersion ns;
+    private final ContentTypeVersioned type;
+    private final ODPackage template;
+    private final Element templateRoot;
+    private final StyleDictionary styles;
+    private final OutputStream contentOut;
+    private final XMLStreamWriter xml;
+    private final Namespace valueNS;
+    private final Set<String> declaredPrefixes;
+    private final ODEpoch epoch;
+    private State state;
+    // index in the template body of the next child to copy
+    private int templateBodyIndex;
+    private int rowCount;
+    private int columnCount;
+
+    /**
+     * Create a writer for a new document.
+     * 
+     * @param out where to write, closed by {@link #close()}.
+     * @param version the version of the document.
+     * @throws IOException if an error occurs while writing.
+     */
+    public SpreadSheetWriter(final OutputStream out, final XMLFormatVersion version) throws IOException {
+        this(out, version, null);
+    }
+
+    /**
+     * Create a writer using a template. The content of the template is only read, so the same
+     * template can be reused for multiple writers (not concurrently).
+     * 
+     * @param out where to write, closed by {@link #close()}.
+     * @param template the template, e.g. to copy styles, settings and the beginning of tables.
+     * @throws IOException if an error occurs while writing.
+     */
+    public SpreadSheetWriter(final OutputStream out, final ODPackage template) throws IOException {
+        this(out, template.getFormatVersion(), template);
+    }
+
+    private SpreadSheetWriter(final OutputStream out, final XMLFormatVersion version, final ODPackage template) throws IOException {
+        this.version = version;
+        this.ns = version.getXMLVersion();
+        this.template = template;
+        if (template == null) {
+            this.type = ContentType.SPREADSHEET.getVersioned(this.ns);
+            this.templateRoot = null;
+            this.epoch = ODEpoch.getDefaultEpoch();
+        } else {
+            if (template.getContentType().getType() != ContentType.SPREADSHEET)
+                throw new IllegalArgumentException("Not a spreadsheet : " + template.getContentType());
+            if (template.isSingle())
+                throw new IllegalArgumentException("Single XML document");
+            this.type = template.getContentType();
+            this.templateRoot = template.getContent().getDocument().getRootElement();
+            this.epoch = template.getSpreadSheet().getEpoch();
+        }
+        // don't collide with the automatic styles of the template
+        this.styles = new StyleDictionary(this.ns, "stream");
+        this.valueNS = this.ns == XMLVersion.OD ? this.ns.getOFFICE() : this.ns.getTABLE();
+        this.declaredPrefixes = new HashSet<String>();
+        this.state = State.NEW;
+        this.templateBodyIndex = 0;
+        this.rowCount = 0;
+
+        this.zip = new Zip(out);
+        // magic number, see section 17.4
+        this.zip.zipNonCompressed(ODPackage.MIMETYPE_ENTRY, this.type.getMimeType().getBytes("UTF-8"));
+        this.contentOut = this.zip.createEntry(RootElement.CONTENT.getZipEntry());
+        try {
+            this.xml = XMLOutputFactory.newInstance().createXMLStreamWriter(this.contentOut, "UTF-8");
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public final XMLFormatVersion getFormatVersion() {
+        return this.version;
+    }
+
+    /**
+     * The automatic styles of the content. Styles can only be added before the first table.
+     * 
+     * @return the styles.
+     */
+    public final StyleDictionary getStyles() {
+        return this.styles;
+    }
+
+    /**
+     * The number of rows written in the current table.
+     * 
+     * @return the number of rows, including copied template rows.
+     */
+    public final int getRowCount() {
+        return this.rowCount;
+    }
+
+    private void checkState(final State... states) {
+        for (final State s : states)
+            if (this.state == s)
+                return;
+        throw new IllegalStateException("Invalid state " + this.state);
+    }
+
+    private final Element getTemplateBody() {
+        return this.type.getBody(this.templateRoot.getDocument());
+    }
+
+    private void writeStart() throws IOException {
+        checkState(State.NEW);
+        try {
+            this.xml.writeStartDocument("UTF-8", "1.0");
+            final List<Element> autoStyles = this.styles.freeze();
+            final Namespace officeNS = this.ns.getOFFICE();
+            if (this.templateRoot == null) {
+                final Element root = RootElement.CONTENT.createDocument(this.version).getRootElement();
+                if (this.ns == XMLVersion.OOo)
+                    root.setAttribute("class", this.type.getShortName(), officeNS);
+                this.writeStartElement(root, true);
+                this.xml.writeStartElement(officeNS.getPrefix(), "automatic-styles", officeNS.getURI());
+                for (final Element style : autoStyles)
+                    this.write(style);
+                this.xml.writeEndElement();
+                this.xml.writeStartElement(officeNS.getPrefix(), "body", officeNS.getURI());
+                if (this.ns == XMLVersion.OD)
+                    this.xml.writeStartElement(officeNS.getPrefix(), this.type.getShortName(), officeNS.getURI());
+            } else {
+                this.writeStartElement(this.templateRoot, true);
+                boolean autoStylesWritten = false;
+                for (final Object o : this.templateRoot.getChildren()) {
+                    final Element child = (Element) o;
+                    if (child.getName().equals("body") && child.getNamespace().equals(officeNS)) {
+                        if (!autoStylesWritten) {
+                            this.writeStartElement(new Element("automatic-styles", officeNS), false);
+                            for (final Element style : autoStyles)
+                                this.write(style);
+                            this.xml.writeEndElement();
+                        }
+                        this.writeStartElement(child, false);
+                        final Element body = this.getTemplateBody();
+                        if (body != child)
+                            this.writeStartElement(body, false);
+                        // copy everything before the first table, e.g. calculation-settings
+                        final List<?> content = body.getContent();
+                        while (this.templateBodyIndex < content.size() && !isTable(content.get(this.templateBodyIndex))) {
+                            this.write(content.get(this.templateBodyIndex));
+                            this.templateBodyIndex++;
+                        }
+                        break;
+                    } else if (child.getName().equals("automatic-styles") && child.getNamespace().equals(officeNS)) {
+                        this.writeStartElement(child, false);
+                        for (final Object c : child.getContent())
+                            this.write(c);
+                        for (final Element style : autoStyles)
+                            this.write(style);
+                        this.xml.writeEndElement();
+                        autoStylesWritten = true;
+                    } else {
+                        this.write(child);
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        this.state = State.TABLES;
+    }
+
+    private final boolean isTable(final Object o) {
+        return o instanceof Element && ((Element) o).getName().equals("table") && ((Element) o).getNamespace().equals(this.ns.getTABLE());
+    }
+
+    /**
+     * Start a new empty table.
+     * 
+     * @param name the name of the table, can be <code>null</code>.
+     * @param columnCount the number of columns.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void startTable(final String name, final int columnCount) throws IOException {
+        if (this.state == State.NEW)
+            this.writeStart();
+        checkState(State.TABLES);
+        final Namespace tableNS = this.ns.getTABLE();
+        try {
+            this.xml.writeStartElement(tableNS.getPrefix(), "table", tableNS.getURI());
+            if (name != null)
+                this.xml.writeAttribute(tableNS.getPrefix(), tableNS.getURI(), "name", name);
+            if (columnCount > 0) {
+                this.xml.writeEmptyElement(tableNS.getPrefix(), "table-column", tableNS.getURI());
+                if (columnCount > 1)
+                    this.xml.writeAttribute(tableNS.getPrefix(), tableNS.getURI(), Axis.COLUMN.getRepeatedAttrName(), String.valueOf(columnCount));
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        this.rowCount = 0;
+        this.columnCount = columnCount;
+        this.state = State.TABLE;
+    }
+
+    /**
+     * Start a table copied from a template. The attributes, the columns and the elements before
+     * them (e.g. shapes) are copied, rows are not (see {@link #writeRows(Element, int, int)}) nor
+     * the elements after them.
+     * 
+     * @param templateTable a table:table, e.g. {@link Table#getElement()}.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void startTable(final Element templateTable) throws IOException {
+        if (this.state == State.NEW)
+            this.writeStart();
+        checkState(State.TABLES);
+        try {
+            this.writeStartElement(templateTable, false);
+            for (final Object o : templateTable.getContent()) {
+                if (o instanceof Element && isAxisElement((Element) o, Axis.ROW))
+                    break;
+                this.write(o);
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        this.rowCount = 0;
+        this.columnCount = this.getColumnCount(templateTable);
+        this.state = State.TABLE;
+    }
+
+    // the number of table:table-column, possibly in groups
+    private final int getColumnCount(final Element parent) {
+        int res = 0;
+        for (final Object o : parent.getChildren()) {
+            final Element child = (Element) o;
+            if (child.getName().equals(Axis.COLUMN.getElemName()) && child.getNamespace().equals(this.ns.getTABLE()))
+                res += Axis.COLUMN.getRepeated(child);
+            else if (isAxisElement(child, Axis.COLUMN))
+                res += this.getColumnCount(child);
+        }
+        return res;
+    }
+
+    private final boolean isAxisElement(final Element elem, final Axis axis) {
+        if (!elem.getNamespace().equals(this.ns.getTABLE()))
+            return false;
+        final String name = elem.getName();
+        return name.equals(axis.getElemName()) || name.equals(axis.getHeaderName()) || name.equals(axis.getGroupName()) || name.equals(axis.getPluralName());
+    }
+
+    /**
+     * Copy rows of a template table. Row groups and header rows are flattened, repeated rows are
+     * cut if needed.
+     * 
+     * @param templateTable a table:table.
+     * @param from the index of the first row to copy.
+     * @param to the index of the last row to copy, exclusive.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeRows(final Element templateTable, final int from, final int to) throws IOException {
+        checkState(State.TABLE);
+        if (from >= to)
+            return;
+        final List<Element> rows = new ArrayList<Element>();
+        this.flattenRows(templateTable, rows);
+        try {
+            int index = 0;
+            for (final Element row : rows) {
+                final int repeated = Axis.ROW.getRepeated(row);
+                final int start = Math.max(index, from);
+                final int end = Math.min(index + repeated, to);
+                if (start < end) {
+                    final Element toWrite;
+                    if (end - start == repeated) {
+                        toWrite = row;
+                    } else {
+                        toWrite = (Element) row.clone();
+                        Axis.ROW.setRepeated(toWrite, end - start);
+                    }
+                    this.write(toWrite);
+                    this.rowCount += end - start;
+                }
+                index += repeated;
+                if (index >= to)
+                    break;
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void flattenRows(final Element parent, final List<Element> res) {
+        for (final Object o : parent.getChildren()) {
+            final Element child = (Element) o;
+            if (isAxisElement(child, Axis.ROW)) {
+                if (child.getName().equals(Axis.ROW.getElemName()))
+                    res.add(child);
+                else
+                    this.flattenRows(child, res);
+            }
+        }
+    }
+
+    /**
+     * Write a row of cells.
+     * 
+     * @param values the values of the cells, <code>null</code> for an empty cell.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeRow(final List<?> values) throws IOException {
+        this.writeRow(values, null);
+    }
+
+    /**
+     * Write a row of cells. The row is padded with empty cells up to the column count of the table.
+     * 
+     * @param values the values of the cells, <code>null</code> for an empty cell.
+     * @param styleNames the names of the cell styles, can be <code>null</code>, as can its items.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeRow(final List<?> values, final List<String> styleNames) throws IOException {
+        this.startRow(null);
+        final int size = values.size();
+        int empty = 0;
+        String emptyStyle = null;
+        boolean written = false;
+        for (int i = 0; i < size; i++) {
+            final Object value = values.get(i);
+            final String style = styleNames == null ? null : styleNames.get(i);
+            if (value == null || "".equals(value)) {
+                if (empty > 0 && !equals(style, emptyStyle)) {
+                    this.writeEmptyCells(empty, emptyStyle);
+                    written = true;
+                    empty = 0;
+                }
+                empty++;
+                emptyStyle = style;
+            } else {
+                if (empty > 0) {
+                    this.writeEmptyCells(empty, emptyStyle);
+                    empty = 0;
+                }
+                this.writeCell(value, style);
+                written = true;
+            }
+        }
+        // every row has all the columns (like Table expects) : trailing unstyled cells and the
+        // missing ones are written as one repeated cell
+        int padding = Math.max(0, this.columnCount - size);
+        if (empty > 0 && emptyStyle != null) {
+            this.writeEmptyCells(empty, emptyStyle);
+            written = true;
+        } else {
+            padding += empty;
+        }
+        if (padding > 0 || !written)
+            this.writeEmptyCells(Math.max(1, padding), null);
+        this.endRow();
+    }
+
+    static private boolean equals(final Object o1, final Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    /**
+     * Start a row, must be followed by cells and {@link #endRow()}.
+     * 
+     * @param styleName the row style, can be <code>null</code>.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void startRow(final String styleName) throws IOException {
+        checkState(State.TABLE);
+        final Namespace tableNS = this.ns.getTABLE();
+        try {
+            this.xml.writeStartElement(tableNS.getPrefix(), Axis.ROW.getElemName(), tableNS.getURI());
+            if (styleName != null)
+                this.xml.writeAttribute(tableNS.getPrefix(), tableNS.getURI(), "style-name", styleName);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        this.state = State.ROW;
+    }
+
+    public final void endRow() throws IOException {
+        checkState(State.ROW);
+        try {
+            this.xml.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        this.rowCount++;
+        this.state = State.TABLE;
+    }
+
+    /**
+     * Write empty cells.
+     * 
+     * @param count the number of cells.
+     * @param styleName the cell style, can be <code>null</code>.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeEmptyCells(final int count, final String styleName) throws IOException {
+        checkState(State.ROW);
+        final Namespace tableNS = this.ns.getTABLE();
+        try {
+            this.xml.writeEmptyElement(tableNS.getPrefix(), "table-cell", tableNS.getURI());
+            if (styleName != null)
+                this.xml.writeAttribute(tableNS.getPrefix(), tableNS.getURI(), "style-name", styleName);
+            if (count > 1)
+                this.xml.writeAttribute(tableNS.getPrefix(), tableNS.getURI(), "number-columns-repeated", String.valueOf(count));
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Write a cell. The type of the value is inferred like {@link MutableCell#setValue(Object)}.
+     * 
+     * @param value the value, <code>null</code> for an empty cell.
+     * @param styleName the cell style, <code>null</code> for the default style of the value type,
+     *        see {@link StyleDictionary#getDefaultStyle(ODValueType)}.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeCell(Object value, final String styleName) throws IOException {
+        if (value == null) {
+            this.writeEmptyCells(1, styleName);
+            return;
+        }
+        ODValueType vt = ODValueType.forObject(value);
+        if (vt == null) {
+            vt = ODValueType.STRING;
+            value = String.valueOf(value);
+        }
+        this.writeCell(value, vt, styleName == null ? this.styles.getDefaultStyle(vt) : styleName);
+    }
+
+    /**
+     * Write a cell.
+     * 
+     * @param value the value, not <code>null</code>.
+     * @param vt the type of the value.
+     * @param styleName the cell style, can be <code>null</code>.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeCell(final Object value, final ODValueType vt, final String styleName) throws IOException {
+        checkState(State.ROW);
+        final Namespace tableNS = this.ns.getTABLE();
+        final Namespace textNS = this.ns.getTEXT();
+        // like MutableCell without data style
+        final String text = MutableCell.formatTextP(vt, value, null, this.epoch, Locale.getDefault(), true);
+        try {
+            this.xml.writeStartElement(tableNS.getPrefix(), "table-cell", tableNS.getURI());
+            if (styleName != null)
+                this.xml.writeAttribute(tableNS.getPrefix(), tableNS.getURI(), "style-name", styleName);
+            this.xml.writeAttribute(this.valueNS.getPrefix(), this.valueNS.getURI(), "value-type", vt.getName());
+            if (vt != ODValueType.STRING)
+                this.xml.writeAttribute(this.valueNS.getPrefix(), this.valueNS.getURI(), vt.getValueAttribute(), vt.format(value));
+            this.xml.writeStartElement(textNS.getPrefix(), "p", textNS.getURI());
+            this.writeText(text);
+            this.xml.writeEndElement();
+            this.xml.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void writeText(final String text) throws XMLStreamException {
+        boolean plain = true;
+        final int length = text.length();
+        for (int i = 0; i < length && plain; i++) {
+            final char c = text.charAt(i);
+            plain = c != '\n' && c != '\t' && !(c == ' ' && i + 1 < length && text.charAt(i + 1) == ' ');
+        }
+        if (plain) {
+            this.xml.writeCharacters(text);
+        } else {
+            for (final Content c : OOXML.get(this.version).encodeWSasList(text))
+                this.write(c);
+        }
+    }
+
+    public final void endTable() throws IOException {
+        if (this.state == State.ROW)
+            this.endRow();
+        checkState(State.TABLE);
+        try {
+            this.xml.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        this.state = State.TABLES;
+        if (this.templateRoot != null) {
+            // skip the matching table of the template
+            final List<?> content = this.getTemplateBody().getContent();
+            if (this.templateBodyIndex < content.size() && isTable(content.get(this.templateBodyIndex)))
+                this.templateBodyIndex++;
+        }
+    }
+
+    /**
+     * Write a whole table.
+     * 
+     * @param name the name of the table, can be <code>null</code>.
+     * @param t the data.
+     * @param includeColNames if <code>true</code> the first row will contain the column names.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeTable(final String name, final TableModel t, final boolean includeColNames) throws IOException {
+        final int colCount = t.getColumnCount();
+        this.startTable(name, Math.max(1, colCount));
+        final List<Object> row = new ArrayList<Object>(colCount);
+        if (includeColNames) {
+            for (int x = 0; x < colCount; x++)
+                row.add(t.getColumnName(x));
+            this.writeRow(row);
+        }
+        final int rowCount = t.getRowCount();
+        for (int y = 0; y < rowCount; y++) {
+            row.clear();
+            for (int x = 0; x < colCount; x++)
+                row.add(t.getValueAt(y, x));
+            this.writeRow(row);
+        }
+        // a table must have at least one cell
+        if (this.rowCount == 0)
+            this.writeRow(row);
+        this.endTable();
+    }
+
+    /**
+     * Finish the content, add the other entries (from the template if any) and close the stream.
+     * 
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void close() throws IOException {
+        if (this.state == State.CLOSED)
+            return;
+        try {
+            if (this.state == State.NEW)
+                this.writeStart();
+            if (this.state != State.TABLES)
+                this.endTable();
+            if (this.templateRoot != null) {
+                // copy the rest of the body, e.g. named-expressions
+                final List<?> content = this.getTemplateBody().getContent();
+                for (int i = this.templateBodyIndex; i < content.size(); i++) {
+                    if (!isTable(content.get(i)))
+                        this.write(content.get(i));
+                }
+            }
+            this.xml.writeEndDocument();
+            this.xml.close();
+            this.contentOut.close();
+
+            final Manifest manifest = new Manifest(this.ns, this.type.getMimeType());
+            manifest.addEntry(RootElement.CONTENT.getZipEntry(), "text/xml");
+            if (this.template == null) {
+                this.writeXML(RootElement.STYLES.getZipEntry(), this.type.createStyles(this.version).getRootElement());
+                manifest.addEntry(RootElement.STYLES.getZipEntry(), "text/xml");
+            } else {
+                for (final String name : this.template.getEntries()) {
+                    if (name.equals(ODPackage.MIMETYPE_ENTRY) || name.equals(Manifest.ENTRY_NAME) || name.equals(RootElement.CONTENT.getZipEntry()))
+                        continue;
+                    final ODPackageEntry entry = this.template.getEntry(name);
+                    final Object data = entry.getData();
+                    if (data instanceof ODXMLDocument) {
+                        this.writeXML(name, ((ODXMLDocument) data).getDocument().getRootElement());
+                    } else if (data != null) {
+                        this.zip.zip(name, (byte[]) data, entry.isCompressed());
+                    }
+                    manifest.addEntry(name, entry.getType() == null ? "" : entry.getType());
+                }
+            }
+            this.zip.zip(Manifest.ENTRY_NAME, new StringInputStream(manifest.asString()));
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            this.state = State.CLOSED;
+            this.zip.close();
+        }
+    }
+
+    private void writeXML(final String entry, final Element root) throws IOException {
+        final OutputStream o = this.zip.createEntry(entry);
+        new XMLOutputter(Format.getRawFormat()).output(root.getDocument(), o);
+        o.close();
+    }
+
+    // *** copy JDOM
+
+    /**
+     * Copy an element, e.g. a row from another document. Its styles must be present in this
+     * document.
+     * 
+     * @param elem the element to copy.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void writeElement(final Element elem) throws IOException {
+        if (this.state == State.NEW || this.state == State.CLOSED)
+            throw new IllegalStateException("Invalid state " + this.state);
+        try {
+            this.write(elem);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        if (this.state == State.TABLE && elem.getName().equals(Axis.ROW.getElemName()))
+            this.rowCount += Axis.ROW.getRepeated(elem);
+    }
+
+    private void write(final Object content) throws XMLStreamException {
+        if (content instanceof Element) {
+            final Element elem = (Element) content;
+            if (elem.getContent().isEmpty()) {
+                this.xml.writeEmptyElement(elem.getNamespacePrefix(), elem.getName(), elem.getNamespaceURI());
+                this.writeAttributes(elem, false);
+            } else {
+                this.writeStartElement(elem, false);
+                for (final Object child : elem.getContent())
+                    this.write(child);
+                this.xml.writeEndElement();
+            }
+        } else if (content instanceof Text) {
+            // also CDATA
+            this.xml.writeCharacters(((Text) content).getText());
+        } else if (content instanceof Comment) {
+            this.xml.writeComment(((Comment) content).getText());
+        }
+        // ignore processing instructions and entity references
+    }
+
+    private void writeStartElement(final Element elem, final boolean root) throws XMLStreamException {
+        this.xml.writeStartElement(elem.getNamespacePrefix(), elem.getName(), elem.getNamespaceURI());
+        this.writeAttributes(elem, root);
+    }
+
+    private void writeAttributes(final Element elem, final boolean root) throws XMLStreamException {
+        if (root) {
+            this.declare(elem.getNamespace());
+            for (final Object o : elem.getAdditionalNamespaces())
+                this.declare((Namespace) o);
+        } else {
+            // the root element declares the namespaces of the template, only declare new ones
+            this.declareIfNeeded(elem.getNamespace());
+            for (final Object o : elem.getAdditionalNamespaces())
+                this.declareIfNeeded((Namespace) o);
+            for (final Object o : elem.getAttributes())
+                this.declareIfNeeded(((Attribute) o).getNamespace());
+        }
+        for (final Object o : elem.getAttributes()) {
+            final Attribute attr = (Attribute) o;
+            if (attr.getNamespace() == Namespace.NO_NAMESPACE)
+                this.xml.writeAttribute(attr.getName(), attr.getValue());
+            else
+                this.xml.writeAttribute(attr.getNamespacePrefix(), attr.getNamespaceURI(), attr.getName(), attr.getValue());
+        }
+    }
+
+    private void declare(final Namespace ns) throws XMLStreamException {
+        if (ns.getPrefix().length() > 0 && this.declaredPrefixes.add(ns.getPrefix()))
+            this.xml.writeNamespace(ns.getPrefix(), ns.getURI());
+    }
+
+    private void declareIfNeeded(final Namespace ns) throws XMLStreamException {
+        if (ns.getPrefix().length() > 0 && !this.declaredPrefixes.contains(ns.getPrefix()))
+            this.xml.writeNamespace(ns.getPrefix(), ns.getURI());
+    }
+}
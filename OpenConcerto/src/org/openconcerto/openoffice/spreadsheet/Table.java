@@ -23,22 +23,25 @@ import org.openconcerto.openoffice.spreadsheet.SheetTableModel.MutableTableModel
 import org.openconcerto.utils.CollectionUtils;
 import org.openconcerto.utils.Tuple2;
 import org.openconcerto.xml.JDOMUtils;
-import org.openconcerto.xml.SimpleXMLPath;
 
 import java.awt.Point;
+import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 
 import javax.swing.table.TableModel;
 
 import org.jdom.Attribute;
 import org.jdom.Element;
+import org.jdom.Namespace;
 
 /**
  * A single sheet in a spreadsheet.
@@ -67,6 +70,11 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
         return elem.getAttributeValue("name", elem.getNamespace("table"));
     }
 
+    // generators use the same few addresses over and over
+    private static final int REF_CACHE_SIZE = 4096;
+    private static final Map<String, Point> REF_CACHE = new ConcurrentHashMap<String, Point>(REF_CACHE_SIZE * 2);
+    private static final String[] COLUMN_NAMES = new String[1024];
+
     // ATTN Row have their index as attribute
     private final ArrayList<Row<D>> rows;
     private TableGroup rowGroup;
@@ -89,10 +97,15 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
     }
 
     private final void readRows() {
-        this.read(Axis.ROW);
+        this.read(Axis.ROW, null);
     }
 
     private final void read(final Axis axis) {
+        this.read(axis, null);
+    }
+
+    // existingRows : rows whose XML hasn't changed, they will be re-indexed instead of re-created
+    private final void read(final Axis axis, final Map<Element, Row<D>> existingRows) {
         final boolean col = axis == Axis.COLUMN;
         final Tuple2<TableGroup, List<Element>> r = TableGroup.createRoot(this, axis);
         final ArrayList<?> l = col ? this.cols : this.rows;
@@ -108,8 +121,13 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
         } else {
             final StyleStyleDesc<RowStyle> rowStyleDesc = getRowStyleDesc();
             final StyleStyleDesc<CellStyle> cellStyleDesc = getCellStyleDesc();
-            for (final Element clone : r.get1())
-                this.addRow(clone, rowStyleDesc, cellStyleDesc);
+            for (final Element clone : r.get1()) {
+                final Row<D> existing = existingRows == null ? null : existingRows.get(clone);
+                if (existing != null && existing.getRepeated() == Axis.ROW.getRepeated(clone))
+                    this.addRow(existing);
+                else
+                    this.addRow(clone, rowStyleDesc, cellStyleDesc);
+            }
             this.rowGroup = r.get0();
         }
         // this always copy the array, so make sure we reclaim enough memory (~ 64k)
@@ -201,7 +219,9 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
 
     /**
      * Clone a range of rows. Eg if you want to copy once rows 2 through 5, you call
-     * <code>duplicateRows(2, 4, 1)</code>.
+     * <code>duplicateRows(2, 4, 1)</code>. All copies are made in one pass and the table is
+     * re-indexed once, so the time is linear in <code>count * copies</code> plus the size of the
+     * table : it is much faster to make all copies at once than to call this method repeatedly.
      * 
      * @param start the first row to clone.
      * @param count the number of rows after <code>start</code> to clone.
@@ -290,15 +310,22 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
             coveringCell.setRowsSpanned(coveringCell.getRowsSpanned() + count * copies);
         }
 
-        // synchronize our rows with our new tree (rows' index have changed)
-        this.readRows();
+        // synchronize our rows with our new tree (rows' index have changed), the existing rows
+        // haven't changed so don't re-read their cells
+        final Map<Element, Row<D>> existingRows = new IdentityHashMap<Element, Row<D>>(this.getRowCount());
+        for (final Row<D> r : this.rows)
+            existingRows.put(r.getElement(), r);
+        this.read(Axis.ROW, existingRows);
 
         // 19.627 in OpenDocument-v1.2-cs01-part1 : The table:end-cell-address attribute specifies
         // end position of the shape if it is included in a spreadsheet document.
         if (updateCellAddresses && getODDocument() instanceof SpreadSheet) {
             final SpreadSheet ssheet = (SpreadSheet) getODDocument();
-            final SimpleXMLPath<Attribute> descAttrs = SimpleXMLPath.allAttributes("end-cell-address", "table");
-            for (final Attribute endCellAttr : descAttrs.selectNodes(getElement())) {
+            final List<Attribute> endCellAttrs = new ArrayList<Attribute>();
+            findAttributes(getElement(), "end-cell-address", getTABLE(), endCellAttrs);
+            // row element -> index, filled on demand
+            final Map<Element, Integer> rowIndexes = new IdentityHashMap<Element, Integer>();
+            for (final Attribute endCellAttr : endCellAttrs) {
                 final Tuple2<Sheet, Point> resolved = ssheet.resolve(endCellAttr.getValue());
                 final Sheet endCellSheet = resolved.get0();
                 if (endCellSheet != this)
@@ -312,16 +339,15 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
                     final Element rowElem = JDOMUtils.getAncestor(endCellParentElem, "table-row", getTABLE());
                     if (rowElem == null)
                         throw new IllegalStateException("Not in a row : " + JDOMUtils.output(endCellParentElem));
-                    int startRowIndex = -1;
-                    final int rowCount = getRowCount();
-                    for (int i = 0; i < rowCount; i++) {
-                        if (getRow(i).getElement() == rowElem) {
-                            startRowIndex = i;
-                            break;
-                        }
+                    if (rowIndexes.isEmpty()) {
+                        final int rowCount = getRowCount();
+                        for (int i = 0; i < rowCount; i += getRow(i).getRepeated())
+                            rowIndexes.put(getRow(i).getElement(), i);
                     }
-                    if (startRowIndex < 0)
+                    final Integer anchorRow = rowIndexes.get(rowElem);
+                    if (anchorRow == null)
                         throw new IllegalStateException("Row not found for " + JDOMUtils.output(endCellParentElem));
+                    final int startRowIndex = anchorRow.intValue();
                     final int newEndY;
                     if (startRowIndex >= start + (copies + 1) * count) {
                         // if the shape doesn't span over the copied rows, only need to offset
@@ -364,6 +390,29 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
         }
     }
 
+    // much faster than SimpleXMLPath.allAttributes() on big tables
+    static private void findAttributes(final Element elem, final String name, final Namespace ns, final List<Attribute> res) {
+        final Attribute attr = elem.getAttribute(name, ns);
+        if (attr != null)
+            res.add(attr);
+        // don't use getChildren() : creating its filtering iterator is costly for every cell
+        final List<?> content = elem.getContent();
+        final int size = content.size();
+        for (int i = 0; i < size; i++) {
+            final Object child = content.get(i);
+            if (child instanceof Element)
+                findAttributes((Element) child, name, ns, res);
+        }
+    }
+
+    private synchronized void addRow(final Row<D> row) {
+        row.setY(this.rows.size());
+        final int toRepeat = row.getRepeated();
+        for (int i = 0; i < toRepeat; i++) {
+            this.rows.add(row);
+        }
+    }
+
     private synchronized void addRow(Element child, StyleDesc<RowStyle> styleDesc, StyleDesc<CellStyle> cellStyleDesc) {
         final Row<D> row = new Row<D>(this, child, this.rows.size(), styleDesc, cellStyleDesc);
         final int toRepeat = row.getRepeated();
@@ -500,6 +549,66 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
         return this.getImmutableCellAt(column, row).getValue();
     }
 
+    /**
+     * Return the values of a region. This is much faster than calling
+     * {@link #getValueAt(int, int)} for each cell since repeated rows and cells are only read
+     * once. ATTN thus repeated cells share the same value instance.
+     * 
+     * @param x the first column.
+     * @param y the first row.
+     * @param width the number of columns.
+     * @param height the number of rows.
+     * @return the values indexed by row then column.
+     */
+    public final Object[][] getValues(final int x, final int y, final int width, final int height) {
+        return this.getValues(x, y, width, height, Object.class);
+    }
+
+    /**
+     * Return the values of a region.
+     * 
+     * @param <T> type of values.
+     * @param x the first column.
+     * @param y the first row.
+     * @param width the number of columns.
+     * @param height the number of rows.
+     * @param clazz the class of all values, e.g. String.
+     * @return the values indexed by row then column.
+     * @throws ClassCastException if a value isn't an instance of <code>clazz</code>.
+     * @see #getValues(int, int, int, int)
+     */
+    public final <T> T[][] getValues(final int x, final int y, final int width, final int height, final Class<T> clazz) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 || x + width > this.getColumnCount() || y + height > this.getRowCount())
+            throw new IndexOutOfBoundsException("Invalid region " + x + ", " + y + " " + width + "x" + height + " for " + this.getColumnCount() + "x" + this.getRowCount());
+        @SuppressWarnings("unchecked")
+        final T[][] res = (T[][]) Array.newInstance(clazz, height, 0);
+        Row<D> lastRow = null;
+        T[] lastValues = null;
+        for (int i = 0; i < height; i++) {
+            final Row<D> row = this.getRow(y + i);
+            if (row != lastRow) {
+                @SuppressWarnings("unchecked")
+                final T[] values = (T[]) Array.newInstance(clazz, width);
+                Cell<D> lastCell = null;
+                T lastValue = null;
+                for (int j = 0; j < width; j++) {
+                    final Cell<D> cell = row.getCellAt(x + j);
+                    if (cell != lastCell) {
+                        lastCell = cell;
+                        lastValue = clazz.cast(cell.getValue());
+                    }
+                    values[j] = lastValue;
+                }
+                lastRow = row;
+                lastValues = values;
+                res[i] = values;
+            } else {
+                res[i] = lastValues.clone();
+            }
+        }
+        return res;
+    }
+
     /**
      * Find the style name for the specified cell.
      * 
@@ -981,6 +1090,8 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
      *         blank.
      */
     public final Range getUsedRange(boolean checkStyle) {
+        if (!checkStyle)
+            return this.getUsedContentRange();
         int minX = -1, minY = -1, maxX = -1, maxY = -1;
         final int colCount = this.getColumnCount();
         final int rowCount = this.getRowCount();
@@ -1002,6 +1113,39 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
         return minX < 0 ? null : new Range(getName(), new Point(minX, minY), new Point(maxX, maxY));
     }
 
+    // same as getUsedRange(false) but only check each repeated row or cell once, this matters
+    // since a sheet often ends with thousands of empty rows
+    private final Range getUsedContentRange() {
+        int minX = -1, minY = -1, maxX = -1, maxY = -1;
+        final int colCount = this.getColumnCount();
+        final int rowCount = this.getRowCount();
+        for (int y = 0; y < rowCount;) {
+            final Row<D> row = this.getRow(y);
+            assert row.getY() == y;
+            final int lastY = row.getLastY();
+            for (int x = 0; x < colCount;) {
+                final Cell<D> cell = row.getCellAt(x);
+                int lastX = x;
+                while (lastX + 1 < colCount && row.getCellAt(lastX + 1) == cell)
+                    lastX++;
+                if (!cell.isEmpty()) {
+                    if (minX < 0 || x < minX)
+                        minX = x;
+                    if (minY < 0 || y < minY)
+                        minY = y;
+
+                    if (maxX < 0 || lastX > maxX)
+                        maxX = lastX;
+                    if (maxY < 0 || lastY > maxY)
+                        maxY = lastY;
+                }
+                x = lastX + 1;
+            }
+            y = lastY + 1;
+        }
+        return minX < 0 ? null : new Range(getName(), new Point(minX, minY), new Point(maxX, maxY));
+    }
+
     protected final boolean isCellBlank(final int x, int y, boolean checkStyle) {
         if (!getImmutableCellAt(x, y).isEmpty())
             return false;
@@ -1131,10 +1275,19 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
      *         {26, 33}.
      */
     static final Point resolve(String ref) {
+        final Point cached = REF_CACHE.get(ref);
+        // Point is mutable
+        if (cached != null)
+            return new Point(cached);
         final Matcher matcher = SpreadSheet.minCellPattern.matcher(ref);
         if (!matcher.matches())
             return null;
-        return resolve(matcher.group(1), matcher.group(2));
+        final Point res = resolve(matcher.group(1), matcher.group(2));
+        // unlikely to be reached in practice, so no need for LRU
+        if (REF_CACHE.size() >= REF_CACHE_SIZE)
+            REF_CACHE.clear();
+        REF_CACHE.put(ref, new Point(res));
+        return res;
     }
 
     /**
@@ -1166,6 +1319,19 @@ public class Table<D extends ODDocument> extends TableCalcNode<TableStyle, D> {
     public static final String toStr(int col) {
         if (col < 0)
             throw new IllegalArgumentException("negative column : " + col);
+        if (col < COLUMN_NAMES.length) {
+            // strings are immutable so no need to synchronize
+            String res = COLUMN_NAMES[col];
+            if (res == null) {
+                res = computeStr(col);
+                COLUMN_NAMES[col] = res;
+            }
+            return res;
+        }
+        return computeStr(col);
+    }
+
+    private static final String computeStr(int col) {
         // one based (i.e. 0 is A)
         col++;
 
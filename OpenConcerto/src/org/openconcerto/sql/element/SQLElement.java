@@ -535,6 +535,18 @@ public abstract class SQLElement {
         this.archive(row, true);
     }
 
+    /**
+     * Archive les lignes demandées et tous leurs descendants en une seule transaction, les
+     * descendants et les références étant cherchés pour toutes les lignes à la fois.
+     * 
+     * @param rows les lignes voulues.
+     * @throws SQLException if pb while archiving.
+     */
+    public final void archive(final Collection<SQLRow> rows) throws SQLException {
+        if (!rows.isEmpty())
+            this.archive(new TreesOfSQLRows(this, rows), true);
+    }
+
     /**
      * Archive la ligne demandée et tous ses descendants mais ne cherche pas à couper les références
      * pointant sur ceux-ci. ATTN peut donc laisser la base dans un état inconsistent, à n'utiliser
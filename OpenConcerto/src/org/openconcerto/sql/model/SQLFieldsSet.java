@@ -16,7 +16,7 @@
  */
 package org.openconcerto.sql.model;
 
-import org.openconcerto.utils.CollectionMap;
+import org.openconcerto.utils.SetMap;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -35,7 +35,7 @@ import java.util.Set;
 public class SQLFieldsSet {
 
     // SQLTable => {SQLField}
-    private final CollectionMap<SQLTable, SQLField> tables;
+    private final SetMap<SQLTable, SQLField> tables;
     private String name;
 
     /**
@@ -51,7 +51,12 @@ public class SQLFieldsSet {
      * @param fields un ensemble de SQLField, l'ensemble n'est pas modifié.
      */
     public SQLFieldsSet(final Collection<SQLField> fields) {
-        this.tables = new CollectionMap<SQLTable, SQLField>(LinkedHashSet.class);
+        this.tables = new SetMap<SQLTable, SQLField>() {
+            @Override
+            protected Set<SQLField> createCollection(Collection<? extends SQLField> v) {
+                return new LinkedHashSet<SQLField>(v);
+            }
+        };
         this.setFields(fields);
     }
 
@@ -68,7 +73,7 @@ public class SQLFieldsSet {
      * @param field le champ a ajouté.
      */
     public final void add(final SQLField field) {
-        this.tables.put(field.getTable(), field);
+        this.tables.add(field.getTable(), field);
     }
 
     public final void retain(final SQLTable t) {
@@ -82,7 +87,7 @@ public class SQLFieldsSet {
      * @return l'ensemble des champs appartenant à la table.
      */
     public final Set<SQLField> getFields(final SQLTable table) {
-        return (Set<SQLField>) this.tables.getNonNull(table);
+        return this.tables.getNonNull(table);
     }
 
     public final Set<SQLField> getFields(final String table) {
@@ -115,7 +120,10 @@ public class SQLFieldsSet {
      * @return l'ensemble des SQLField.
      */
     public final Set<SQLField> asSet() {
-        return new HashSet<SQLField>(this.tables.values());
+        final Set<SQLField> res = new HashSet<SQLField>();
+        for (final Set<SQLField> fields : this.tables.values())
+            res.addAll(fields);
+        return res;
     }
 
     public final void setName(final String string) {
@@ -26,14 +26,15 @@ import org.openconcerto.sql.model.graph.Step;
 import org.openconcerto.sql.users.UserManager;
 import org.openconcerto.sql.utils.ReOrder;
 import org.openconcerto.sql.utils.SQLUtils;
-import org.openconcerto.utils.CollectionMap;
 import org.openconcerto.utils.CollectionUtils;
-import org.openconcerto.utils.CopyUtils;
 import org.openconcerto.utils.ExceptionUtils;
+import org.openconcerto.utils.ListMap;
 import org.openconcerto.utils.NumberUtils;
 import org.openconcerto.utils.RecursionType;
+import org.openconcerto.utils.SetMap;
 import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.cc.IClosure;
+import org.openconcerto.utils.cc.IFactory;
 import org.openconcerto.utils.cc.ITransformer;
 import org.openconcerto.utils.cc.LinkedIdentitySet;
 import org.openconcerto.utils.cc.TransformedMap;
@@ -146,11 +147,21 @@ public final class SQLRowValues extends SQLRowAccessor {
         return checkValidity;
     }
 
+    // use LinkedHashSet so that the order is preserved, eg we can iterate over LOCALs pointing to a
+    // BATIMENT with consistent and predictable (insertion-based) order.
+    // use IdentitySet to be able to put two equal instances
+    private static final IFactory<Set<SQLRowValues>> REFERENTS_FACTORY = new IFactory<Set<SQLRowValues>>() {
+        @Override
+        public Set<SQLRowValues> createChecked() {
+            return new LinkedIdentitySet<SQLRowValues>();
+        }
+    };
+
     private final Map<String, Object> values;
     private final Map<String, SQLRowValues> foreigns;
-    private final CollectionMap<SQLField, SQLRowValues> referents;
+    private final SetMap<SQLField, SQLRowValues> referents;
     private SQLRowValuesCluster graph;
-    private CollectionMap<SQLField, ReferentChangeListener> referentsListener;
+    private ListMap<SQLField, ReferentChangeListener> referentsListener;
 
     public SQLRowValues(SQLTable t) {
         super(t);
@@ -158,18 +169,8 @@ public final class SQLRowValues extends SQLRowAccessor {
         // don't use value too low for initialCapacity otherwise rehash operations
         this.values = new LinkedHashMap<String, Object>(8);
         this.foreigns = new HashMap<String, SQLRowValues>(4);
-        // extend (rather than use another constructor) for performance
-        // eg 20% gained when fetching 45000 rows
-        this.referents = new CollectionMap<SQLField, SQLRowValues>(4) {
-            @SuppressWarnings("unchecked")
-            @Override
-            public Collection<SQLRowValues> createCollection(Collection coll) {
-                // use LinkedHashSet so that the order is preserved, eg we can iterate over LOCALs
-                // pointing to a BATIMENT with consistent and predictable (insertion-based) order.
-                // use IdentitySet to be able to put two equal instances
-                return coll == null ? new LinkedIdentitySet<SQLRowValues>() : new LinkedIdentitySet<SQLRowValues>(coll);
-            }
-        };
+        // no reflection (eg 20% gained when fetching 45000 rows)
+        this.referents = SetMap.create(4, REFERENTS_FACTORY);
         // no used much so lazy init
         this.referentsListener = null;
         this.graph = new SQLRowValuesCluster(this);
@@ -229,7 +230,7 @@ public final class SQLRowValues extends SQLRowAccessor {
 
         if (oldRowVals) {
             final SQLRowValues vals = (SQLRowValues) old;
-            vals.referents.remove(f, this);
+            vals.referents.removeOne(f, this);
             this.foreigns.remove(fieldName);
             assert this.graph == vals.graph;
             this.graph.remove(this, f, vals);
@@ -237,7 +238,7 @@ public final class SQLRowValues extends SQLRowAccessor {
         }
         if (newRowVals) {
             final SQLRowValues vals = (SQLRowValues) value;
-            vals.referents.put(f, this);
+            vals.referents.add(f, this);
             this.foreigns.put(fieldName, vals);
             this.graph.add(this, f, vals);
             assert this.graph == vals.graph;
@@ -339,7 +340,7 @@ public final class SQLRowValues extends SQLRowAccessor {
         });
     }
 
-    final CollectionMap<SQLField, SQLRowValues> getReferents() {
+    final SetMap<SQLField, SQLRowValues> getReferents() {
         return this.referents;
     }
 
@@ -348,20 +349,22 @@ public final class SQLRowValues extends SQLRowAccessor {
         // remove the backdoor since values() returns a view
         // remove duplicates (e.g. this is a CONTACT referenced by ID_CONTACT_RAPPORT &
         // ID_CONTACT_RDV from the same site)
-        return this.referents.createCollection(this.referents.values());
+        final Set<SQLRowValues> res = REFERENTS_FACTORY.createChecked();
+        for (final Set<SQLRowValues> s : this.referents.values())
+            res.addAll(s);
+        return res;
     }
 
     @Override
     public Set<SQLRowValues> getReferentRows(SQLField refField) {
-        return (Set<SQLRowValues>) this.referents.getNonNull(refField);
+        return this.referents.getNonNull(refField);
     }
 
     @Override
     public Collection<SQLRowValues> getReferentRows(SQLTable refTable) {
         // remove duplicates
-        final Collection<SQLRowValues> res = this.referents.createCollection(null);
-        assert res.isEmpty();
-        for (final Map.Entry<SQLField, Collection<SQLRowValues>> e : this.referents.entrySet()) {
+        final Set<SQLRowValues> res = REFERENTS_FACTORY.createChecked();
+        for (final Map.Entry<SQLField, Set<SQLRowValues>> e : this.referents.entrySet()) {
             if (e.getKey().getTable().equals(refTable))
                 res.addAll(e.getValue());
         }
@@ -392,7 +395,7 @@ public final class SQLRowValues extends SQLRowAccessor {
     private final SQLRowValues changeReferents(final SQLField f, final boolean retain) {
         if (f != null || !retain) {
             // copy otherwise ConcurrentModificationException
-            for (final Entry<SQLField, Collection<SQLRowValues>> e : CopyUtils.copy(this.getReferents()).entrySet()) {
+            for (final Entry<SQLField, List<SQLRowValues>> e : new ListMap<SQLField, SQLRowValues>(this.getReferents()).entrySet()) {
                 if (f == null || e.getKey().equals(f) != retain) {
                     for (final SQLRowValues ref : e.getValue()) {
                         ref.put(e.getKey().getName(), null);
@@ -410,7 +413,7 @@ public final class SQLRowValues extends SQLRowAccessor {
     public SQLRowValues retainReferents(Collection<SQLRowValues> toRetain) {
         toRetain = CollectionUtils.toIdentitySet(toRetain);
         // copy otherwise ConcurrentModificationException
-        for (final Entry<SQLField, Collection<SQLRowValues>> e : CopyUtils.copy(this.getReferents()).entrySet()) {
+        for (final Entry<SQLField, List<SQLRowValues>> e : new ListMap<SQLField, SQLRowValues>(this.getReferents()).entrySet()) {
             for (final SQLRowValues ref : e.getValue()) {
                 if (!toRetain.contains(ref))
                     ref.put(e.getKey().getName(), null);
@@ -920,13 +923,13 @@ public final class SQLRowValues extends SQLRowAccessor {
      */
     public final void addReferentListener(SQLField field, ReferentChangeListener l) {
         if (this.referentsListener == null)
-            this.referentsListener = new CollectionMap<SQLField, ReferentChangeListener>(new ArrayList<ReferentChangeListener>());
-        this.referentsListener.put(field, l);
+            this.referentsListener = new ListMap<SQLField, ReferentChangeListener>(4);
+        this.referentsListener.add(field, l);
     }
 
     public final void removeReferentListener(SQLField field, ReferentChangeListener l) {
         if (this.referentsListener != null) {
-            this.referentsListener.remove(field, l);
+            this.referentsListener.removeOne(field, l);
         }
     }
 
@@ -935,9 +938,9 @@ public final class SQLRowValues extends SQLRowAccessor {
         if (this.referentsListener != null || this.getGraph().referentFireNeeded(put)) {
             final ReferentChangeEvent evt = new ReferentChangeEvent(f, put, vals);
             if (this.referentsListener != null) {
-                for (final ReferentChangeListener l : this.referentsListener.getNonNull(f))
+                for (final ReferentChangeListener l : this.referentsListener.getReadOnly(f))
                     l.referentChange(evt);
-                for (final ReferentChangeListener l : this.referentsListener.getNonNull(null))
+                for (final ReferentChangeListener l : this.referentsListener.getReadOnly(null))
                     l.referentChange(evt);
             }
             this.getGraph().fireModification(evt);
@@ -1683,6 +1686,114 @@ public final class SQLRowValues extends SQLRowAccessor {
         return insert(t, sql, null).getCount();
     }
 
+    /**
+     * Insert rows using one JDBC batch. Much faster than calling {@link #insert()} on each one
+     * since neither the new IDs nor the new rows are fetched, but graphs aren't supported : the
+     * rows must be of the same table, have the same fields and their foreign keys must be IDs or
+     * rows with an ID. If the table is ordered, the rows are added at the end in the list order.
+     * 
+     * @param vals the rows to insert.
+     * @return the insertion count.
+     * @throws SQLException if an error occurs while inserting.
+     * @throws IllegalArgumentException if the rows cannot be inserted in one batch.
+     */
+    public static final int insertBatch(final List<SQLRowValues> vals) throws SQLException {
+        if (vals.isEmpty())
+            return 0;
+        final SQLTable t = vals.get(0).getTable();
+        final Set<String> fields = vals.get(0).getFields();
+        for (final SQLRowValues v : vals) {
+            if (v.getTable() != t || !v.getFields().equals(fields))
+                throw new IllegalArgumentException("Rows not of the same table or not with the same fields : " + v);
+        }
+        final List<String> fieldsNames = new ArrayList<String>(fields);
+        for (final SQLField pk : t.getPrimaryKeys())
+            fieldsNames.remove(pk.getName());
+        final SQLField order = t.getOrderField();
+        if (order != null)
+            fieldsNames.remove(order.getName());
+        final int valuesCount = fieldsNames.size();
+        // same values for all rows
+        final List<Object> metadata = new ArrayList<Object>();
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        final Object user = getUser();
+        for (final SQLField f : Arrays.asList(t.getCreationUserField(), t.getModifUserField())) {
+            if (f != null && user != SQL_DEFAULT && !fieldsNames.contains(f.getName())) {
+                fieldsNames.add(f.getName());
+                metadata.add(user);
+            }
+        }
+        for (final SQLField f : Arrays.asList(t.getCreationDateField(), t.getModifDateField())) {
+            if (f != null && !fieldsNames.contains(f.getName())) {
+                fieldsNames.add(f.getName());
+                metadata.add(now);
+            }
+        }
+        final String questionMarks = CollectionUtils.join(Collections.nCopies(fieldsNames.size(), "?"), ", ");
+        if (order != null)
+            fieldsNames.add(order.getName());
+
+        final String tableQuoted = t.getSQLName().quote();
+        String req = "INSERT INTO " + tableQuoted + " (" + CollectionUtils.join(fieldsNames, ", ", new ITransformer<String, String>() {
+            public String transformChecked(String input) {
+                return SQLBase.quoteIdentifier(input);
+            }
+        }) + ")";
+        if (order != null) {
+            // like insert(), the order is computed by each statement : no duplicate with
+            // concurrent insertions
+            req += " select " + questionMarks;
+            if (fieldsNames.size() > 1)
+                req += ", ";
+            req += "COALESCE(MAX(" + SQLBase.quoteIdentifier(order.getName()) + "), " + ReOrder.MIN_ORDER + ") + 1 FROM " + tableQuoted;
+        } else {
+            req += " VALUES (" + questionMarks + ")";
+        }
+        final String insertReq = req;
+        final int res = SQLUtils.executeAtomic(t.getDBSystemRoot().getDataSource(), new ConnectionHandlerNoSetup<Integer, SQLException>() {
+            @Override
+            public Integer handle(SQLDataSource ds) throws SQLException {
+                final PreparedStatement pStmt = ds.getConnection().prepareStatement(insertReq);
+                try {
+                    for (final SQLRowValues v : vals) {
+                        int i = 1;
+                        for (final String fieldName : fieldsNames.subList(0, valuesCount)) {
+                            Object value = v.getObject(fieldName);
+                            if (value == SQL_DEFAULT) {
+                                throw new IllegalArgumentException("DEFAULT not supported in a batch : " + v);
+                            } else if (value instanceof SQLRowValues) {
+                                if (!((SQLRowValues) value).hasID())
+                                    throw new IllegalArgumentException("Graphs not supported in a batch : " + v);
+                                value = ((SQLRowValues) value).getIDNumber();
+                            } else if (value instanceof Date) {
+                                // to convert from java.util to java.sql, needed for pg and MS
+                                value = new Timestamp(((Date) value).getTime());
+                            }
+                            // some drivers need the type of null
+                            if (value == null)
+                                pStmt.setNull(i++, t.getField(fieldName).getType().getType());
+                            else
+                                pStmt.setObject(i++, value);
+                        }
+                        for (final Object m : metadata)
+                            pStmt.setObject(i++, m);
+                        pStmt.addBatch();
+                    }
+                    int count = 0;
+                    for (final int c : pStmt.executeBatch()) {
+                        count += c == Statement.SUCCESS_NO_INFO ? 1 : c;
+                    }
+                    return count;
+                } finally {
+                    pStmt.close();
+                }
+            }
+        });
+        // a single event instead of one per row
+        t.fireTableModified(SQLRow.NONEXISTANT_ID);
+        return res;
+    }
+
     // if scalar is null primary keys aren't fetched
     private static final Insertion<?> insert(final SQLTable t, final String sql, final Boolean scalar) throws SQLException {
         final SQLSystem sys = t.getServer().getSQLSystem();
@@ -18,7 +18,6 @@ import org.openconcerto.sql.model.SQLRowValues.ReferentChangeEvent;
 import org.openconcerto.sql.model.SQLRowValues.ReferentChangeListener;
 import org.openconcerto.sql.model.graph.Path;
 import org.openconcerto.sql.utils.SQLUtils;
-import org.openconcerto.utils.CollectionMap;
 import org.openconcerto.utils.CollectionUtils;
 import org.openconcerto.utils.CompareUtils;
 import org.openconcerto.utils.Matrix;
@@ -31,9 +30,11 @@ import org.openconcerto.utils.cc.IdentitySet;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EventObject;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
@@ -447,18 +448,20 @@ public class SQLRowValuesCluster {
     private <T> StopRecurseException rec(final State<T> state, RecursionType recType, final Boolean foreign, final boolean actualForeign) {
         final SQLRowValues current = state.getCurrent();
         final List<SQLRowValues> currentValsPath = state.getValsPath();
-        final CollectionMap<SQLField, SQLRowValues> nextVals;
+        final Map<SQLField, ? extends Collection<SQLRowValues>> nextVals;
         if (actualForeign) {
             final Map<SQLField, SQLRowValues> foreigns = current.getForeignsBySQLField();
-            nextVals = new CollectionMap<SQLField, SQLRowValues>(new ArrayList<SQLRowValues>(), foreigns.size());
-            nextVals.putAll(foreigns);
+            final Map<SQLField, List<SQLRowValues>> m = new HashMap<SQLField, List<SQLRowValues>>(foreigns.size() * 2);
+            for (final Map.Entry<SQLField, SQLRowValues> e : foreigns.entrySet())
+                m.put(e.getKey(), Collections.singletonList(e.getValue()));
+            nextVals = m;
         } else
             nextVals = current.getReferents();
         // predictable and repeatable order
         final List<SQLField> keys = new ArrayList<SQLField>(nextVals.keySet());
         Collections.sort(keys, FIELD_COMPARATOR);
         for (final SQLField f : keys) {
-            for (final SQLRowValues v : nextVals.getNonNull(f)) {
+            for (final SQLRowValues v : nextVals.get(f)) {
                 // avoid infinite loop (don't use equals so that we can go over several equals rows)
                 if (!state.identityContains(v)) {
                     final Path path = new Path(state.getPath());
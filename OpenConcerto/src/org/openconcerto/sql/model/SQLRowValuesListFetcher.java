@@ -17,8 +17,8 @@ import org.openconcerto.sql.model.SQLRowValuesCluster.State;
 import org.openconcerto.sql.model.graph.Link.Direction;
 import org.openconcerto.sql.model.graph.Path;
 import org.openconcerto.sql.model.graph.Step;
-import org.openconcerto.utils.CollectionMap;
 import org.openconcerto.utils.CompareUtils;
+import org.openconcerto.utils.ListMap;
 import org.openconcerto.utils.RTInterruptedException;
 import org.openconcerto.utils.RecursionType;
 import org.openconcerto.utils.Tuple2;
@@ -84,7 +84,7 @@ public class SQLRowValuesListFetcher {
         }, RecursionType.DEPTH_FIRST, false);
 
         // find out needed grafts
-        final CollectionMap<Path, SQLRowValuesListFetcher> grafts = new CollectionMap<Path, SQLRowValuesListFetcher>();
+        final ListMap<Path, SQLRowValuesListFetcher> grafts = new ListMap<Path, SQLRowValuesListFetcher>();
         graph.getGraph().walk(graph, null, new ITransformer<State<Object>, Object>() {
             @Override
             public Path transformChecked(State<Object> input) {
@@ -116,9 +116,9 @@ public class SQLRowValuesListFetcher {
                             if (ungrafted == null || ungrafted.size() == 0) {
                                 // i.e. only one referent and thus graft not necessary
                                 assert rec.descendantPath.length() > 0;
-                                grafts.put(pMinusLast, rec);
+                                grafts.add(pMinusLast, rec);
                             } else {
-                                grafts.putAll(pMinusLast, ungrafted);
+                                grafts.addAll(pMinusLast, ungrafted);
                             }
                         }
                         throw new SQLRowValuesCluster.StopRecurseException().setCompletely(false);
@@ -155,7 +155,7 @@ public class SQLRowValuesListFetcher {
         res.setOrdered(ordered);
 
         // now graft recursively created grafts
-        for (final Entry<Path, Collection<SQLRowValuesListFetcher>> e : grafts.entrySet()) {
+        for (final Entry<Path, List<SQLRowValuesListFetcher>> e : grafts.entrySet()) {
             final Path graftPath = e.getKey();
             final Path refPath = handledPaths.get(graftPath);
             // can be grafted on the main fetcher or on the referent fetchers
@@ -196,9 +196,9 @@ public class SQLRowValuesListFetcher {
         return res;
     }
 
-    static private final CollectionMap<Tuple2<Path, Number>, SQLRowValues> createCollectionMap() {
+    static private final ListMap<Tuple2<Path, Number>, SQLRowValues> createListMap() {
         // we need a List in merge()
-        return new CollectionMap<Tuple2<Path, Number>, SQLRowValues>(new ArrayList<SQLRowValues>(8));
+        return new ListMap<Tuple2<Path, Number>, SQLRowValues>();
     }
 
     private final SQLRowValues graph;
@@ -780,11 +780,24 @@ public class SQLRowValuesListFetcher {
      *         SQLRowValues passed to the constructor.
      */
     public final List<SQLRowValues> fetch() {
-        return this.fetch(true);
+        return this.fetch(null, true);
     }
 
-    private final List<SQLRowValues> fetch(final boolean merge) {
-        final SQLSelect req = this.getReq();
+    /**
+     * Execute the request transformed by <code>selTransf</code> and then by
+     * <code>reqTransf</code>. This allows to fetch only some rows of a {@link #freeze() frozen}
+     * fetcher.
+     * 
+     * @param reqTransf passed a copy of {@link #getReq()}, can add joins or where but not fields.
+     * @return a list of SQLRowValues, one item per row.
+     * @see #fetch()
+     */
+    public final List<SQLRowValues> fetch(final ITransformer<SQLSelect, SQLSelect> reqTransf) {
+        return this.fetch(reqTransf, true);
+    }
+
+    private final List<SQLRowValues> fetch(final ITransformer<SQLSelect, SQLSelect> reqTransf, final boolean merge) {
+        final SQLSelect req = reqTransf == null ? this.getReq() : reqTransf.transformChecked(new SQLSelect(this.getReq()));
         // getName() would take 5% of ResultSetHandler.handle()
         final List<String> selectFields = new ArrayList<String>(req.getSelectFields().size());
         for (final SQLField f : req.getSelectFields())
@@ -823,16 +836,16 @@ public class SQLRowValuesListFetcher {
                 final Set<Number> ids = new HashSet<Number>();
                 // byRows is common to all grafts to support CPI -> LOCAL -> BATIMENT and RECEPTEUR
                 // -> LOCAL -> BATIMENT (ie avoid duplicate LOCAL)
-                // CollectionMap since the same row can be in multiple index of merged, e.g. when
+                // ListMap since the same row can be in multiple index of merged, e.g. when
                 // fetching *BATIMENT* -> SITE each site will be repeated as many times as it has
                 // children and if we want their DOSSIER they must be grafted on each line.
-                final CollectionMap<Tuple2<Path, Number>, SQLRowValues> byRows = createCollectionMap();
+                final ListMap<Tuple2<Path, Number>, SQLRowValues> byRows = createListMap();
                 for (final SQLRowValues vals : merged) {
                     final SQLRowValues graftPlaceVals = vals.followPath(graftPlace);
                     // happens when grafting on optional row
                     if (graftPlaceVals != null) {
                         ids.add(graftPlaceVals.getIDNumber());
-                        byRows.put(Tuple2.create(mapPath, graftPlaceVals.getIDNumber()), graftPlaceVals);
+                        byRows.add(Tuple2.create(mapPath, graftPlaceVals.getIDNumber()), graftPlaceVals);
                     }
                 }
                 assert ids.size() == byRows.size();
@@ -845,7 +858,7 @@ public class SQLRowValuesListFetcher {
                     final SQLSelect toRestore = graft.frozen;
                     graft.frozen = new SQLSelect(graft.getReq()).andWhere(new Where(graft.getGraph().getTable().getKey(), ids));
                     // don't merge then...
-                    final List<SQLRowValues> referentVals = graft.fetch(false);
+                    final List<SQLRowValues> referentVals = graft.fetch(null, false);
                     graft.frozen = toRestore;
                     // ...but now
                     this.merge(merged, referentVals, byRows, descendantPath);
@@ -955,12 +968,12 @@ public class SQLRowValuesListFetcher {
      * @param descendantPath the path to merge.
      * @return the merged and grafted values.
      */
-    private final List<SQLRowValues> merge(final List<SQLRowValues> tree, final List<SQLRowValues> graft, final CollectionMap<Tuple2<Path, Number>, SQLRowValues> graftPlaceRows, Path descendantPath) {
+    private final List<SQLRowValues> merge(final List<SQLRowValues> tree, final List<SQLRowValues> graft, final ListMap<Tuple2<Path, Number>, SQLRowValues> graftPlaceRows, Path descendantPath) {
         final boolean isGraft = graftPlaceRows != null;
         assert (tree != graft) == isGraft : "Trying to graft onto itself";
         final List<SQLRowValues> res = isGraft ? tree : new ArrayList<SQLRowValues>();
         // so that every graft is actually grafted onto the tree
-        final CollectionMap<Tuple2<Path, Number>, SQLRowValues> map = isGraft ? graftPlaceRows : createCollectionMap();
+        final ListMap<Tuple2<Path, Number>, SQLRowValues> map = isGraft ? graftPlaceRows : createListMap();
 
         final int stop = descendantPath.length();
         for (final SQLRowValues v : graft) {
@@ -973,12 +986,12 @@ public class SQLRowValuesListFetcher {
                     final Tuple2<Path, Number> row = Tuple2.create(subPath, desc.getIDNumber());
                     if (map.containsKey(row)) {
                         doAdd = false;
-                        assert ((List<SQLRowValues>) map.getNonNull(row)).get(0).getFields().containsAll(desc.getFields()) : "Discarding an SQLRowValues with more fields : " + desc;
+                        assert map.get(row).get(0).getFields().containsAll(desc.getFields()) : "Discarding an SQLRowValues with more fields : " + desc;
                         // previous being null can happen when 2 grafted paths share some steps at
                         // the start, e.g. SOURCE -> LOCAL and CPI -> LOCAL with a LOCAL having a
                         // SOURCE but no CPI
                         if (previous != null) {
-                            final List<SQLRowValues> destinationRows = (List<SQLRowValues>) map.getNonNull(row);
+                            final List<SQLRowValues> destinationRows = map.get(row);
                             final int destinationSize = destinationRows.size();
                             assert destinationSize > 0 : "Map contains row but have no corresponding value: " + row;
                             final String ffName = descendantPath.getSingleStep(i).getName();
@@ -995,15 +1008,15 @@ public class SQLRowValuesListFetcher {
                                     if (descCopy != null) {
                                         final Tuple2<Path, Number> rowCopy = Tuple2.create(descendantPath.subPath(0, k), descCopy.getIDNumber());
                                         assert map.containsKey(rowCopy) : "Since we already iterated with i";
-                                        map.put(rowCopy, descCopy);
+                                        map.add(rowCopy, descCopy);
                                     }
                                 }
                             }
-                            // don't call map.put() it has already been handled below
+                            // don't call map.add() it has already been handled below
                             previous.put(ffName, destinationRows.get(0));
                         }
                     } else {
-                        map.put(row, desc);
+                        map.add(row, desc);
                     }
                     previous = desc;
                 }
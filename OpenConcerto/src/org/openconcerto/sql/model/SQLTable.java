@@ -23,10 +23,10 @@ import org.openconcerto.sql.model.graph.TablesMap;
 import org.openconcerto.sql.request.UpdateBuilder;
 import org.openconcerto.sql.utils.ChangeTable;
 import org.openconcerto.sql.utils.SQLCreateMoveableTable;
-import org.openconcerto.utils.CollectionMap;
 import org.openconcerto.utils.CollectionUtils;
 import org.openconcerto.utils.CompareUtils;
 import org.openconcerto.utils.ExceptionUtils;
+import org.openconcerto.utils.SetMap;
 import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.Tuple3;
 import org.openconcerto.utils.cc.CopyOnWriteMap;
@@ -1492,12 +1492,12 @@ public final class SQLTable extends SQLIdentifier implements SQLData, TableRef {
      * @return the indexes mapped by column names.
      * @throws SQLException if an error occurs.
      */
-    public final CollectionMap<String, Index> getIndexesByField() throws SQLException {
+    public final SetMap<String, Index> getIndexesByField() throws SQLException {
         final List<Index> indexes = this.getIndexes();
-        final CollectionMap<String, Index> res = new CollectionMap<String, Index>(new HashSet<Index>(4), indexes.size());
+        final SetMap<String, Index> res = new SetMap<String, Index>(indexes.size());
         for (final Index i : indexes)
             for (final String col : i.getCols())
-                res.put(col, i);
+                res.add(col, i);
         return res;
     }
 
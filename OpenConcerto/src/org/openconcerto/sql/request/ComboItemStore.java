@@ -0,0 +1,367 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.request;
+
+import org.openconcerto.sql.Log;
+import org.openconcerto.sql.model.SQLRow;
+import org.openconcerto.sql.model.SQLRowValues;
+import org.openconcerto.sql.model.SQLRowValuesCluster.State;
+import org.openconcerto.sql.model.SQLRowValuesListFetcher;
+import org.openconcerto.sql.model.SQLSelect;
+import org.openconcerto.sql.model.SQLTable;
+import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableModifiedListener;
+import org.openconcerto.sql.model.TableRef;
+import org.openconcerto.sql.model.Where;
+import org.openconcerto.sql.model.graph.Path;
+import org.openconcerto.sql.sqlobject.IComboSelectionItem;
+import org.openconcerto.utils.HashSetOfInt;
+import org.openconcerto.utils.RTInterruptedException;
+import org.openconcerto.utils.cc.ITransformer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * The items of the {@link ComboSQLRequest} sharing the same fetcher. Instead of discarding all
+ * items when a table changes, the modified rows are recorded and only those are fetched the next
+ * time the items are needed.
+ */
+final class ComboItemStore {
+
+    private static final int MAX_STORES = 32;
+
+    // access order, the least recently used store is discarded
+    private static final Map<Object, ComboItemStore> stores = new LinkedHashMap<Object, ComboItemStore>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Entry<Object, ComboItemStore> eldest) {
+            final boolean res = size() > MAX_STORES;
+            if (res)
+                eldest.getValue().dispose();
+            return res;
+        }
+    };
+
+    // statistics
+    private static int hitCount = 0;
+    private static int missCount = 0;
+    private static int refreshCount = 0;
+    private static int refreshedRowCount = 0;
+    private static long refreshTime = 0;
+    private static long fetchTime = 0;
+
+    static ComboItemStore get(final Object key, final ComboSQLRequest req, final SQLRowValuesListFetcher fetcher) {
+        synchronized (stores) {
+            ComboItemStore res = stores.get(key);
+            if (res == null) {
+                res = new ComboItemStore(req, fetcher);
+                stores.put(key, res);
+            }
+            return res;
+        }
+    }
+
+    static synchronized String getStatistics() {
+        final int stored;
+        synchronized (stores) {
+            stored = stores.size();
+        }
+        return stored + " stores, " + hitCount + " hits, " + missCount + " misses (" + fetchTime + " ms), " + refreshCount + " refreshes of " + refreshedRowCount + " rows (" + refreshTime
+                + " ms)";
+    }
+
+    private static synchronized void hit() {
+        hitCount++;
+    }
+
+    private static synchronized void miss(final long time) {
+        missCount++;
+        fetchTime += time;
+    }
+
+    private static synchronized void refresh(final int rows, final long time) {
+        refreshCount++;
+        refreshedRowCount += rows;
+        refreshTime += time;
+    }
+
+    private static final class Item {
+        private final IComboSelectionItem item;
+        @SuppressWarnings("rawtypes")
+        private final Comparable[] order;
+
+        @SuppressWarnings("rawtypes")
+        public Item(IComboSelectionItem item, Comparable[] order) {
+            this.item = item;
+            this.order = order;
+        }
+
+        public final int getID() {
+            return this.item.getId();
+        }
+    }
+
+    // same as the request : ORDER of each table of getOrder(), undefined order is by ID
+    private static final Comparator<Item> ORDER = new Comparator<Item>() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public int compare(Item i1, Item i2) {
+            for (int i = 0; i < i1.order.length; i++) {
+                final Object o1 = i1.order[i];
+                final Object o2 = i2.order[i];
+                if (o1 != o2) {
+                    // nulls last
+                    if (o1 == null)
+                        return 1;
+                    else if (o2 == null)
+                        return -1;
+                    final int res = i1.order[i].compareTo(o2);
+                    if (res != 0)
+                        return res;
+                }
+            }
+            final int id1 = i1.getID();
+            final int id2 = i2.getID();
+            return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+        }
+    };
+
+    // to create items and to know how to sort them
+    private final ComboSQLRequest req;
+    private final SQLRowValuesListFetcher fetcher;
+    private final SQLTable primaryTable;
+    private final List<Path> orderPaths;
+    // non-empty paths of the graph by destination table
+    private final Map<SQLTable, List<Path>> paths;
+    private final Set<SQLTable> tables;
+    private final SQLTableModifiedListener listener;
+
+    // modifications not yet applied, its own lock to never block the thread firing
+    private final Object pendingLock = new Object();
+    private boolean pendingAll;
+    private final Map<SQLTable, Set<Integer>> pendingIDs;
+
+    // items sorted by ORDER, null until fetched
+    private List<Item> items;
+    private final Map<Integer, Item> itemsByID;
+    private List<IComboSelectionItem> comboItems;
+    // false if a row is returned more than once (e.g. joins in a select transformer)
+    private boolean incremental;
+
+    private ComboItemStore(final ComboSQLRequest req, final SQLRowValuesListFetcher fetcher) {
+        // don't be affected by further modifications
+        this.req = new ComboSQLRequest(req);
+        this.fetcher = fetcher;
+        this.primaryTable = fetcher.getGraph().getTable();
+        this.orderPaths = new ArrayList<Path>(this.req.getOrder());
+        this.paths = new HashMap<SQLTable, List<Path>>();
+        fetcher.getGraph().getGraph().walk(fetcher.getGraph(), null, new ITransformer<State<Object>, Object>() {
+            @Override
+            public Object transformChecked(State<Object> input) {
+                final Path p = input.getPath();
+                if (p.length() > 0) {
+                    List<Path> l = ComboItemStore.this.paths.get(p.getLast());
+                    if (l == null) {
+                        l = new ArrayList<Path>(2);
+                        ComboItemStore.this.paths.put(p.getLast(), l);
+                    }
+                    l.add(p);
+                }
+                return null;
+            }
+        });
+        this.pendingAll = true;
+        this.pendingIDs = new HashMap<SQLTable, Set<Integer>>();
+        this.items = null;
+        this.itemsByID = new HashMap<Integer, Item>();
+        this.comboItems = null;
+        this.incremental = true;
+
+        this.listener = new SQLTableModifiedListener() {
+            @Override
+            public void tableModified(SQLTableEvent evt) {
+                rowModified(evt.getTable(), evt.getId());
+            }
+        };
+        // listen before fetching so that no change can be missed
+        this.tables = req.getTables();
+        for (final SQLTable t : this.tables)
+            t.addTableModifiedListener(this.listener);
+    }
+
+    private void dispose() {
+        for (final SQLTable t : this.tables)
+            t.removeTableModifiedListener(this.listener);
+    }
+
+    private void rowModified(final SQLTable t, final int id) {
+        synchronized (this.pendingLock) {
+            // tables only used in the where can change which rows are displayed
+            if (this.pendingAll || id < SQLRow.MIN_VALID_ID || (t != this.primaryTable && !this.paths.containsKey(t))) {
+                this.pendingAll = true;
+            } else {
+                Set<Integer> ids = this.pendingIDs.get(t);
+                if (ids == null) {
+                    ids = new HashSet<Integer>();
+                    this.pendingIDs.put(t, ids);
+                }
+                ids.add(id);
+            }
+        }
+    }
+
+    /**
+     * The items, fetching only the rows modified since the last call.
+     * 
+     * @param readCache <code>false</code> to fetch all the rows.
+     * @return the items, not modifiable.
+     */
+    synchronized List<IComboSelectionItem> getItems(final boolean readCache) {
+        final boolean all;
+        final Map<SQLTable, Set<Integer>> modified;
+        synchronized (this.pendingLock) {
+            all = !readCache || this.pendingAll || this.items == null || (!this.incremental && !this.pendingIDs.isEmpty());
+            modified = new HashMap<SQLTable, Set<Integer>>(this.pendingIDs);
+            this.pendingAll = false;
+            this.pendingIDs.clear();
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            if (all) {
+                this.fetchAll();
+                miss(System.currentTimeMillis() - start);
+            } else if (modified.isEmpty()) {
+                hit();
+            } else {
+                final int rows = this.fetch(modified);
+                final long time = System.currentTimeMillis() - start;
+                refresh(rows, time);
+                Log.get().fine("refreshed " + rows + " rows of " + this.primaryTable + " in " + time + " ms");
+            }
+        } catch (RuntimeException e) {
+            // retry next time
+            synchronized (this.pendingLock) {
+                this.pendingAll = true;
+            }
+            throw e;
+        }
+        return this.comboItems;
+    }
+
+    private void fetchAll() {
+        final List<SQLRowValues> rows = this.fetcher.fetch();
+        final List<Item> res = new ArrayList<Item>(rows.size());
+        this.itemsByID.clear();
+        this.incremental = true;
+        for (final SQLRowValues vals : rows) {
+            checkInterrupted();
+            final Item item = this.createItem(vals);
+            res.add(item);
+            if (this.itemsByID.put(item.getID(), item) != null)
+                this.incremental = false;
+        }
+        if (this.incremental)
+            Collections.sort(res, ORDER);
+        else
+            Log.get().log(Level.FINE, "rows of " + this.primaryTable + " are not unique, cannot update incrementally");
+        this.setItems(res);
+    }
+
+    private int fetch(final Map<SQLTable, Set<Integer>> modified) {
+        final Set<Integer> primaryIDs = modified.get(this.primaryTable);
+        final List<SQLRowValues> rows = this.fetcher.fetch(new ITransformer<SQLSelect, SQLSelect>() {
+            @Override
+            public SQLSelect transformChecked(SQLSelect sel) {
+                final List<Where> wheres = new ArrayList<Where>();
+                if (primaryIDs != null)
+                    wheres.add(new Where(sel.getTableRef(ComboItemStore.this.primaryTable.getName()).getKey(), primaryIDs));
+                // e.g. a modified ADRESSE changes the label of all CLIENT pointing to it
+                for (final Entry<SQLTable, Set<Integer>> e : modified.entrySet()) {
+                    final List<Path> l = ComboItemStore.this.paths.get(e.getKey());
+                    if (l != null) {
+                        for (final Path p : l) {
+                            final TableRef alias = sel.assurePath(ComboItemStore.this.primaryTable.getName(), p);
+                            wheres.add(new Where(alias.getKey(), e.getValue()));
+                        }
+                    }
+                }
+                return sel.andWhere(Where.or(wheres));
+            }
+        });
+
+        final List<Item> res = new ArrayList<Item>(this.items);
+        final HashSetOfInt fetchedIDs = new HashSetOfInt(rows.size());
+        for (final SQLRowValues vals : rows) {
+            checkInterrupted();
+            final Item item = this.createItem(vals);
+            fetchedIDs.add(item.getID());
+            final Item old = this.itemsByID.put(item.getID(), item);
+            if (old != null)
+                res.remove(Collections.binarySearch(res, old, ORDER));
+            final int index = Collections.binarySearch(res, item, ORDER);
+            assert index < 0 : "Duplicate " + item.getID();
+            res.add(-index - 1, item);
+        }
+        // archived, deleted or no longer matching the where
+        if (primaryIDs != null) {
+            for (final Integer id : primaryIDs) {
+                if (!fetchedIDs.contains(id.intValue())) {
+                    final Item old = this.itemsByID.remove(id);
+                    if (old != null)
+                        res.remove(Collections.binarySearch(res, old, ORDER));
+                }
+            }
+        }
+        this.setItems(res);
+        return rows.size();
+    }
+
+    private void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted())
+            throw new RTInterruptedException("interrupted in fill");
+    }
+
+    @SuppressWarnings("rawtypes")
+    private Item createItem(final SQLRowValues vals) {
+        final Comparable[] order = new Comparable[this.orderPaths.size()];
+        for (int i = 0; i < order.length; i++) {
+            final SQLRowValues orderVals = vals.followPath(this.orderPaths.get(i));
+            if (orderVals != null && orderVals.getTable().isOrdered())
+                order[i] = (Comparable) orderVals.getObject(orderVals.getTable().getOrderField().getName());
+        }
+        return new Item(this.req.createItem(vals), order);
+    }
+
+    private void setItems(final List<Item> l) {
+        this.items = l;
+        final List<IComboSelectionItem> res = new ArrayList<IComboSelectionItem>(l.size());
+        for (final Item item : l)
+            res.add(item.item);
+        this.comboItems = Collections.unmodifiableList(res);
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + " for " + this.primaryTable + " with " + (this.items == null ? "no" : this.items.size()) + " items";
+    }
+}
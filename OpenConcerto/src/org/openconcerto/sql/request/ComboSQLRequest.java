@@ -28,10 +28,8 @@ import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.model.graph.Path;
 import org.openconcerto.sql.sqlobject.IComboSelectionItem;
 import org.openconcerto.utils.CollectionUtils;
-import org.openconcerto.utils.RTInterruptedException;
 import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.Tuple3;
-import org.openconcerto.utils.cache.CacheResult;
 import org.openconcerto.utils.cc.IClosure;
 import org.openconcerto.utils.cc.IPredicate;
 import org.openconcerto.utils.cc.ITransformer;
@@ -44,8 +42,6 @@ import java.util.List;
 // final: use setSelectTransf()
 public final class ComboSQLRequest extends FilteredFillSQLRequest {
 
-    static private final SQLCache<CacheKey, List<IComboSelectionItem>> cache = new SQLCache<CacheKey, List<IComboSelectionItem>>(60, -1, "items of " + ComboSQLRequest.class);
-
     // encapsulate all values that can change the result
     private static final class CacheKey extends Tuple3<SQLRowValuesListFetcher, IClosure<IComboSelectionItem>, String> {
         public CacheKey(SQLRowValuesListFetcher a, String fieldSeparator, String undefLabel, IClosure<IComboSelectionItem> c) {
@@ -53,6 +49,15 @@ public final class ComboSQLRequest extends FilteredFillSQLRequest {
         }
     };
 
+    /**
+     * Statistics about the items shared by all requests.
+     * 
+     * @return the number of hits, misses and refreshes.
+     */
+    public static String getItemsStatistics() {
+        return ComboItemStore.getStatistics();
+    }
+
     private static final String SEP_CHILD = " ◄ ";
     private static String SEP_FIELD;
 
@@ -177,30 +182,8 @@ public final class ComboSQLRequest extends FilteredFillSQLRequest {
         final SQLRowValuesListFetcher comboSelect = this.getFetcher(null).freeze();
 
         final CacheKey cacheKey = new CacheKey(comboSelect, this.fieldSeparator, this.undefLabel, this.customizeItem);
-        if (readCache) {
-            final CacheResult<List<IComboSelectionItem>> l = cache.check(cacheKey);
-            if (l.getState() == CacheResult.State.INTERRUPTED)
-                throw new RTInterruptedException("interrupted while waiting for the cache");
-            else if (l.getState() == CacheResult.State.VALID)
-                return l.getRes();
-        }
-
-        try {
-            final List<IComboSelectionItem> result = new ArrayList<IComboSelectionItem>();
-            // SQLRowValuesListFetcher don't cache
-            for (final SQLRowValues vals : comboSelect.fetch()) {
-                if (Thread.currentThread().isInterrupted())
-                    throw new RTInterruptedException("interrupted in fill");
-                result.add(createItem(vals));
-            }
-
-            cache.put(cacheKey, result, this.getTables());
-            return result;
-        } catch (RuntimeException exn) {
-            // don't use finally, otherwise we'll do both put() and rmRunning()
-            cache.removeRunning(cacheKey);
-            throw exn;
-        }
+        // shared by all requests with the same key and kept up to date
+        return ComboItemStore.get(cacheKey, this, comboSelect).getItems(readCache);
     }
 
     @Override
@@ -232,7 +215,7 @@ public final class ComboSQLRequest extends FilteredFillSQLRequest {
         this.clearGraph();
     }
 
-    private final IComboSelectionItem createItem(final SQLRowValues rs) {
+    final IComboSelectionItem createItem(final SQLRowValues rs) {
         final String desc;
         if (this.undefLabel != null && rs.getID() == getPrimaryTable().getUndefinedID())
             desc = this.undefLabel;
@@ -23,30 +23,35 @@ import org.openconcerto.sql.model.SQLRowValuesListFetcher;
 import org.openconcerto.sql.model.SQLSelect;
 import org.openconcerto.sql.model.SQLTable;
 import org.openconcerto.sql.model.SQLTableEvent;
+import org.openconcerto.sql.model.SQLTableEvent.Mode;
 import org.openconcerto.sql.model.SQLTableModifiedListener;
 import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.users.UserManager;
-import org.openconcerto.utils.CollectionMap;
 import org.openconcerto.utils.CompareUtils;
 import org.openconcerto.utils.CompareUtils.Equalizer;
 import org.openconcerto.utils.ExceptionHandler;
+import org.openconcerto.utils.ListMap;
 import org.openconcerto.utils.Tuple2;
 import org.openconcerto.utils.Tuple3;
 import org.openconcerto.utils.cc.IFactory;
 import org.openconcerto.utils.cc.ITransformer;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UserRightsManager {
 
     private static UserRightsManager instance;
-    private static final CollectionMap<String, Tuple2<String, Boolean>> SUPERUSER_RIGHTS = CollectionMap.singleton(null, Tuple2.create((String) null, true));
-    private static final CollectionMap<String, Tuple2<String, Boolean>> NO_RIGHTS = CollectionMap.singleton(null, Tuple2.create((String) null, false));
+    static final ListMap<String, Tuple2<String, Boolean>> SUPERUSER_RIGHTS = ListMap.singleton(null, Tuple2.create((String) null, true));
+    static final ListMap<String, Tuple2<String, Boolean>> NO_RIGHTS = ListMap.singleton(null, Tuple2.create((String) null, false));
 
     public synchronized static UserRightsManager getInstance() {
         if (instance == null) {
@@ -75,14 +80,23 @@ public class UserRightsManager {
     // Gérer un droit avec une classe
     private final Map<String, MacroRight> macroRights;
     // {user -> {code -> [<object, bool>]}}
-    private final Map<Integer, CollectionMap<String, Tuple2<String, Boolean>>> rights;
+    private final Map<Integer, ListMap<String, Tuple2<String, Boolean>>> rights;
+    // {user -> rights of user then of the default user}, read without lock
+    private final Map<Integer, CompiledRights> compiledRights;
+    // {USER_RIGHT id -> user}, to know whose rights to reload
+    private final Map<Integer, Integer> rightsOwner;
+    // incremented by each invalidation, so that a load started before isn't cached
+    private final AtomicInteger modCount;
     private SQLTable table;
-    private final CollectionMap<Integer, RightTuple> javaRights;
+    private final ListMap<Integer, RightTuple> javaRights;
 
     private UserRightsManager() {
         this.macroRights = new HashMap<String, MacroRight>();
-        this.rights = new HashMap<Integer, CollectionMap<String, Tuple2<String, Boolean>>>();
-        this.javaRights = new CollectionMap<Integer, RightTuple>();
+        this.rights = new ConcurrentHashMap<Integer, ListMap<String, Tuple2<String, Boolean>>>();
+        this.compiledRights = new ConcurrentHashMap<Integer, CompiledRights>();
+        this.rightsOwner = new ConcurrentHashMap<Integer, Integer>();
+        this.modCount = new AtomicInteger(0);
+        this.javaRights = new ListMap<Integer, RightTuple>();
         // lazy init, so as to not require a conf
         this.table = null;
         defaultRegister();
@@ -113,8 +127,13 @@ public class UserRightsManager {
      * @param right the right the user should always have.
      */
     public void addRight(Integer userID, RightTuple right) {
-        this.javaRights.put(userID, right);
-        this.rightsInvalid();
+        synchronized (this.javaRights) {
+            this.javaRights.add(userID, right);
+        }
+        if (userID == null)
+            this.rightsInvalid();
+        else
+            this.rightsInvalid(userID);
     }
 
     public final boolean isValid() {
@@ -126,11 +145,28 @@ public class UserRightsManager {
             this.table = Configuration.getInstance().getRoot().findTable("USER_RIGHT");
             if (this.table != null) {
                 this.table.addTableModifiedListener(new SQLTableModifiedListener() {
+                    @Override
+                    public void tableModified(final SQLTableEvent evt) {
+                        userRightModified(evt);
+                    }
+                });
+                // codes are rarely modified
+                this.table.getForeignTable("ID_RIGHT").addTableModifiedListener(new SQLTableModifiedListener() {
                     @Override
                     public void tableModified(final SQLTableEvent evt) {
                         rightsInvalid();
                     }
                 });
+                // SUPERUSER and ADMIN
+                this.table.getForeignTable("ID_USER_COMMON").addTableModifiedListener(new SQLTableModifiedListener() {
+                    @Override
+                    public void tableModified(final SQLTableEvent evt) {
+                        if (evt.getId() >= SQLRow.MIN_VALID_ID)
+                            rightsInvalid(evt.getId());
+                        else
+                            rightsInvalid();
+                    }
+                });
             }
         }
         return this.table;
@@ -180,53 +216,16 @@ public class UserRightsManager {
      * @return <code>true</code> if the right is allowed.
      */
     public final boolean haveRight(final int userID, final String code, final String requestedObject, final Equalizer<? super String> objectMatcher) {
-        final Set<String> unicity = new HashSet<String>();
-        final Boolean userRight = haveRightP(userID, code, requestedObject, objectMatcher, unicity);
-        if (userRight != null)
-            return userRight;
-        final Boolean defaultRight = haveRightP(getDefaultUserId(), code, requestedObject, objectMatcher, unicity);
-        if (defaultRight != null)
-            return defaultRight;
-
-        return false;
+        return getCompiledRights(userID).haveRight(code, requestedObject, objectMatcher);
     }
 
-    private final Boolean haveRightP(final int userID, final String code, final String object, final Equalizer<? super String> objectMatcher, Set<String> unicity) {
-        final CollectionMap<String, Tuple2<String, Boolean>> rightsForUser = getRightsForUser(userID);
-        // super-user
-        if (rightsForUser == SUPERUSER_RIGHTS)
-            return true;
-        if (rightsForUser == NO_RIGHTS)
-            return false;
-
-        if (rightsForUser.containsKey(code)) {
-            for (final Tuple2<String, Boolean> t : rightsForUser.getNonNull(code)) {
-                // as explained in expand() we need unicity for null object, we have it for each
-                // user, but we also need it between userID and undefinedID
-                if (unicity.add(t.get0())) {
-                    // if the object of the right matches the requested object :
-                    // null for the right matches any requested object
-                    // null for the requested object means searching for all objects so we can't let
-                    // objectMatcher match and thus ignore subsequent objects
-                    if (t.get0() == null || (object != null && safeEquals(objectMatcher, t, object)))
-                        return t.get1();
-                    // but null for the requested object means that all right objects must be true
-                    else if (object == null && !t.get1())
-                        return false;
-                }
-            }
-        }
-        return null;
-    }
-
-    private boolean safeEquals(final Equalizer<? super String> objectMatcher, final Tuple2<String, Boolean> t, final String requestedObject) {
-        final String rightObject = t.get0();
+    static private boolean safeEquals(final Equalizer<? super String> objectMatcher, final String rightObject, final boolean haveRight, final String requestedObject) {
         try {
             return objectMatcher.equals(rightObject, requestedObject);
         } catch (Exception e) {
             // if the right could be allowed we don't match (so the row is ignored)
             // if the right could be disallowed we match
-            final boolean res = !t.get1();
+            final boolean res = !haveRight;
             final String desc = !res ? "Row ignored." : "Right denied.";
             Log.get().warning("Couldn't compare " + rightObject + " and " + requestedObject + ". " + desc);
             e.printStackTrace();
@@ -234,25 +233,174 @@ public class UserRightsManager {
         }
     }
 
+    /**
+     * The rights of one code, i.e. the rights of a user followed by the ones of the default user,
+     * with unique objects and stopping at the first <code>null</code> object since the following
+     * ones can never be reached.
+     */
+    static private final class CodeRights {
+        private final String[] objects;
+        private final boolean[] haveRight;
+        // the decision for a null requested object, null if none
+        private final Boolean allObjects;
+        // for CompareUtils.OBJECT_EQ : objects before the first null one and the null one
+        private final Map<String, Boolean> exact;
+        private final Boolean wildcard;
+
+        CodeRights(final List<Tuple2<String, Boolean>> rights) {
+            int size = 0;
+            Boolean allObjects = null;
+            Boolean wildcard = null;
+            final Map<String, Boolean> exact = new HashMap<String, Boolean>();
+            for (final Tuple2<String, Boolean> t : rights) {
+                size++;
+                // null for the requested object means that all right objects must be true
+                if (allObjects == null && (t.get0() == null || !t.get1()))
+                    allObjects = t.get1();
+                if (t.get0() == null) {
+                    wildcard = t.get1();
+                    break;
+                }
+                exact.put(t.get0(), t.get1());
+            }
+            this.objects = new String[size];
+            this.haveRight = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                this.objects[i] = rights.get(i).get0();
+                this.haveRight[i] = rights.get(i).get1();
+            }
+            this.allObjects = allObjects;
+            this.exact = exact.isEmpty() ? Collections.<String, Boolean> emptyMap() : exact;
+            this.wildcard = wildcard;
+        }
+
+        final Boolean haveRight(final String object, final Equalizer<? super String> objectMatcher) {
+            if (object == null) {
+                return this.allObjects;
+            } else if (objectMatcher == CompareUtils.OBJECT_EQ) {
+                final Boolean res = this.exact.get(object);
+                return res != null ? res : this.wildcard;
+            } else {
+                // if the object of the right matches the requested object :
+                // null for the right matches any requested object
+                for (int i = 0; i < this.objects.length; i++) {
+                    if (this.objects[i] == null || safeEquals(objectMatcher, this.objects[i], this.haveRight[i], object))
+                        return this.haveRight[i];
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The rights of a user, immutable.
+     */
+    static final class CompiledRights {
+        private final Map<String, CodeRights> byCode;
+        // when no right of the user matches (the default user is superuser or has no rights)
+        private final boolean fallback;
+
+        CompiledRights(final Map<String, CodeRights> byCode, final boolean fallback) {
+            this.byCode = byCode;
+            this.fallback = fallback;
+        }
+
+        final boolean haveRight(final String code, final String object, final Equalizer<? super String> objectMatcher) {
+            final CodeRights rights = this.byCode.get(code);
+            final Boolean res = rights == null ? null : rights.haveRight(object, objectMatcher);
+            return res != null ? res : this.fallback;
+        }
+    }
+
+    // package-private for UserRightsManagerTest
+    static CompiledRights compile(final ListMap<String, Tuple2<String, Boolean>> userRights, final ListMap<String, Tuple2<String, Boolean>> defaultRights) {
+        // super-user
+        if (userRights == SUPERUSER_RIGHTS)
+            return new CompiledRights(Collections.<String, CodeRights> emptyMap(), true);
+        if (userRights == NO_RIGHTS)
+            return new CompiledRights(Collections.<String, CodeRights> emptyMap(), false);
+        final boolean mergeDefault = defaultRights != SUPERUSER_RIGHTS && defaultRights != NO_RIGHTS;
+        final Set<String> codes = new LinkedHashSet<String>(userRights.keySet());
+        if (mergeDefault)
+            codes.addAll(defaultRights.keySet());
+        final Map<String, CodeRights> byCode = new HashMap<String, CodeRights>(codes.size() * 4 / 3 + 1);
+        final Set<String> unicity = new HashSet<String>();
+        for (final String code : codes) {
+            // as explained in expand() we need unicity for null object, we have it for each
+            // user, but we also need it between userID and undefinedID
+            unicity.clear();
+            final List<Tuple2<String, Boolean>> merged = new ArrayList<Tuple2<String, Boolean>>();
+            for (final Tuple2<String, Boolean> t : userRights.getReadOnly(code)) {
+                if (unicity.add(t.get0()))
+                    merged.add(t);
+            }
+            if (mergeDefault) {
+                for (final Tuple2<String, Boolean> t : defaultRights.getReadOnly(code)) {
+                    if (unicity.add(t.get0()))
+                        merged.add(t);
+                }
+            }
+            byCode.put(code, new CodeRights(merged));
+        }
+        return new CompiledRights(byCode, defaultRights == SUPERUSER_RIGHTS);
+    }
+
+    private CompiledRights getCompiledRights(final int userID) {
+        final CompiledRights res = this.compiledRights.get(userID);
+        if (res != null)
+            return res;
+        final int count = this.modCount.get();
+        final CompiledRights compiled = compile(getRightsForUser(userID), getRightsForUser(getDefaultUserId()));
+        if (this.modCount.get() == count)
+            this.compiledRights.put(userID, compiled);
+        return compiled;
+    }
+
     // if the db change, clear our cache, that way the next method call will query the db again
     private final void rightsInvalid() {
-        synchronized (this.rights) {
-            // MAYBE find out diff, and fire some events
-            // so that eg IListe add/rm appropriate buttons
-            this.rights.clear();
+        // MAYBE find out diff, and fire some events
+        // so that eg IListe add/rm appropriate buttons
+        this.modCount.incrementAndGet();
+        this.rights.clear();
+        this.compiledRights.clear();
+        this.rightsOwner.clear();
+    }
+
+    private final void rightsInvalid(final int userID) {
+        // every user inherits the rights of the default user
+        if (userID == getDefaultUserId()) {
+            this.rightsInvalid();
+        } else {
+            this.modCount.incrementAndGet();
+            this.rights.remove(userID);
+            this.compiledRights.remove(userID);
         }
     }
 
-    private CollectionMap<String, Tuple2<String, Boolean>> getRightsForUser(final int userID) {
-        synchronized (this.rights) {
-            if (this.rights.containsKey(userID))
-                return this.rights.get(userID);
-            else {
-                final CollectionMap<String, Tuple2<String, Boolean>> rightsForUser = loadRightsForUser(userID);
-                this.rights.put(userID, rightsForUser);
-                return rightsForUser;
-            }
+    private final void userRightModified(final SQLTableEvent evt) {
+        if (evt.getId() < SQLRow.MIN_VALID_ID) {
+            this.rightsInvalid();
+            return;
         }
+        // don't read the row, this is called by the thread that modified it (e.g. the EDT)
+        final Integer previousUser = this.rightsOwner.remove(evt.getId());
+        // the user of a new row, of a row that isn't cached or the new user if ID_USER_COMMON
+        // was changed can only be known by reading the row
+        if (previousUser == null || evt.getMode() != Mode.ROW_DELETED && evt.getFieldNames().contains("ID_USER_COMMON"))
+            this.rightsInvalid();
+        else
+            this.rightsInvalid(previousUser);
+    }
+
+    private ListMap<String, Tuple2<String, Boolean>> getRightsForUser(final int userID) {
+        final ListMap<String, Tuple2<String, Boolean>> cached = this.rights.get(userID);
+        if (cached != null)
+            return cached;
+        final int count = this.modCount.get();
+        final ListMap<String, Tuple2<String, Boolean>> rightsForUser = loadRightsForUser(userID);
+        if (this.modCount.get() == count)
+            this.rights.put(userID, rightsForUser);
+        return rightsForUser;
     }
 
     /**
@@ -261,13 +409,13 @@ public class UserRightsManager {
      * @param userID which user.
      * @return the user's rights by CODE.
      */
-    private final CollectionMap<String, Tuple2<String, Boolean>> loadRightsForUser(final int userID) {
+    private final ListMap<String, Tuple2<String, Boolean>> loadRightsForUser(final int userID) {
         try {
             final SQLRow userRow = this.getTable().getForeignTable("ID_USER_COMMON").getRow(userID);
             if (userRow != null && userRow.getBoolean("SUPERUSER"))
                 return SUPERUSER_RIGHTS;
 
-            final CollectionMap<String, Tuple2<String, Boolean>> res = new CollectionMap<String, Tuple2<String, Boolean>>(ArrayList.class);
+            final ListMap<String, Tuple2<String, Boolean>> res = new ListMap<String, Tuple2<String, Boolean>>();
             final Set<Tuple2<String, String>> unicity = new HashSet<Tuple2<String, String>>();
             // only superuser can modify RIGHTs
             expand(res, unicity, TableAllRights.createRight(TableAllRights.CODE_MODIF, this.getTable().getForeignTable("ID_RIGHT"), false));
@@ -275,10 +423,12 @@ public class UserRightsManager {
             expand(res, unicity, TableAllRights.createRight(TableAllRights.CODE, this.getTable(), userRow != null && userRow.getBoolean("ADMIN")));
 
             // java rights have priority over SQL rights
-            for (final RightTuple t : this.javaRights.getNonNull(userID)) {
-                expand(res, unicity, t);
+            final List<RightTuple> javaRights = new ArrayList<RightTuple>();
+            synchronized (this.javaRights) {
+                javaRights.addAll(this.javaRights.getReadOnly(userID));
+                javaRights.addAll(this.javaRights.getReadOnly(null));
             }
-            for (final RightTuple t : this.javaRights.getNonNull(null)) {
+            for (final RightTuple t : javaRights) {
                 expand(res, unicity, t);
             }
 
@@ -297,6 +447,7 @@ public class UserRightsManager {
 
             final List<SQLRowValues> list = sel.fetch();
             for (final SQLRowValues row : list) {
+                this.rightsOwner.put(row.getID(), userID);
                 final SQLRowAccessor right = row.getForeign("ID_RIGHT");
                 if (row.isUndefined()) {
                     Log.get().warning(row.asRow() + " has undef right");
@@ -320,11 +471,11 @@ public class UserRightsManager {
         }
     }
 
-    private final void expand(final CollectionMap<String, Tuple2<String, Boolean>> res, final Set<Tuple2<String, String>> unicity, final RightTuple t) {
+    private final void expand(final ListMap<String, Tuple2<String, Boolean>> res, final Set<Tuple2<String, String>> unicity, final RightTuple t) {
         this.expand(res, unicity, t.get0(), t.get1(), t.get2());
     }
 
-    private final void expand(final CollectionMap<String, Tuple2<String, Boolean>> res, final Set<Tuple2<String, String>> unicity, final String rightCode, final String object, final Boolean haveRight) {
+    private final void expand(final ListMap<String, Tuple2<String, Boolean>> res, final Set<Tuple2<String, String>> unicity, final String rightCode, final String object, final Boolean haveRight) {
         if (haveRight == null)
             throw new IllegalStateException("HAVE_RIGHT cannot be null");
 
@@ -336,7 +487,7 @@ public class UserRightsManager {
             // we need to have unique rights, otherwise simple queries will still work since they
             // will stop at the first match. But for queries with null object we need to traverse
             // all rights.
-            res.put(rightCode, Tuple2.create(object, haveRight));
+            res.add(rightCode, Tuple2.create(object, haveRight));
         }
     }
 
@@ -384,18 +535,17 @@ public class UserRightsManager {
     }
 
     public void preloadRightsForUserId(int userID) {
-        getRightsForUser(getDefaultUserId());
-        getRightsForUser(userID);
+        getCompiledRights(userID);
     }
 
     private final Set<String> getObjectsP(final int userID, final String code, Set<String> unicity) {
-        final CollectionMap<String, Tuple2<String, Boolean>> rightsForUser = getRightsForUser(userID);
+        final ListMap<String, Tuple2<String, Boolean>> rightsForUser = getRightsForUser(userID);
         // don't let it proceed, otherwise it will then load objects for undef
         if (rightsForUser == NO_RIGHTS)
             return null;
         final Set<String> res = new HashSet<String>();
         if (rightsForUser.containsKey(code)) {
-            for (final Tuple2<String, Boolean> t : rightsForUser.getNonNull(code)) {
+            for (final Tuple2<String, Boolean> t : rightsForUser.getReadOnly(code)) {
                 // as usual don't let following rights overwrite preceding ones (ie if userID has
                 // "A false" and undef has "A true", then the second one should be ignored)
                 if (unicity.add(t.get0())) {
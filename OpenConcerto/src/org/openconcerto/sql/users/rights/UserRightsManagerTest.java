@@ -0,0 +1,121 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.sql.users.rights;
+
+import org.openconcerto.sql.users.rights.UserRightsManager.CompiledRights;
+import org.openconcerto.utils.CompareUtils;
+import org.openconcerto.utils.CompareUtils.Equalizer;
+import org.openconcerto.utils.ListMap;
+import org.openconcerto.utils.Tuple2;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compare the compiled rights of {@link UserRightsManager} with the previous algorithm, which
+ * walked the rights of the user then those of the default user for each request. Random right
+ * lists, including superuser and no rights, are checked with all codes and objects, a
+ * <code>null</code> object, and exact and custom matchers.
+ * 
+ * <pre>
+ * java org.openconcerto.sql.users.rights.UserRightsManagerTest
+ * </pre>
+ */
+public class UserRightsManagerTest {
+
+    private static final List<String> CODES = Arrays.asList("C0", "C1", "C2", "C3");
+    private static final List<String> OBJECTS = Arrays.asList(null, "O0", "O1", "O2", "O3", "X");
+
+    public static void main(String[] args) {
+        // O1 matches O1, O2 and O3 (like a pattern)
+        final Equalizer<String> prefixMatcher = new Equalizer<String>() {
+            @Override
+            public boolean equals(String rightObject, String requestedObject) {
+                return requestedObject.charAt(0) == rightObject.charAt(0) && rightObject.compareTo(requestedObject) <= 0;
+            }
+        };
+        final List<Equalizer<? super String>> matchers = Arrays.<Equalizer<? super String>> asList(CompareUtils.OBJECT_EQ, prefixMatcher);
+        final Random r = new Random(3);
+        int count = 0;
+        for (int i = 0; i < 100000; i++) {
+            final ListMap<String, Tuple2<String, Boolean>> userRights = createRights(r);
+            final ListMap<String, Tuple2<String, Boolean>> defaultRights = createRights(r);
+            final CompiledRights compiled = UserRightsManager.compile(userRights, defaultRights);
+            for (final String code : CODES) {
+                for (final String object : OBJECTS) {
+                    for (final Equalizer<? super String> matcher : matchers) {
+                        final boolean expected = haveRight(userRights, defaultRights, code, object, matcher);
+                        if (compiled.haveRight(code, object, matcher) != expected)
+                            throw new IllegalStateException("Expected " + expected + " for " + code + " " + object + " with " + userRights + " then " + defaultRights);
+                        count++;
+                    }
+                }
+            }
+        }
+        System.out.println(count + " rights checked");
+        System.out.println("OK");
+    }
+
+    // unique objects by code, like UserRightsManager.expand()
+    static private ListMap<String, Tuple2<String, Boolean>> createRights(final Random r) {
+        final int kind = r.nextInt(20);
+        if (kind == 0)
+            return UserRightsManager.SUPERUSER_RIGHTS;
+        else if (kind == 1)
+            return UserRightsManager.NO_RIGHTS;
+        final ListMap<String, Tuple2<String, Boolean>> res = new ListMap<String, Tuple2<String, Boolean>>();
+        final Set<String> unicity = new HashSet<String>();
+        final int size = r.nextInt(8);
+        for (int i = 0; i < size; i++) {
+            final String code = CODES.get(r.nextInt(CODES.size() - 1));
+            final String object = r.nextInt(4) == 0 ? null : OBJECTS.get(1 + r.nextInt(4));
+            if (unicity.add(code + ":" + object))
+                res.add(code, Tuple2.create(object, r.nextBoolean()));
+        }
+        return res;
+    }
+
+    // the previous algorithm
+    static private boolean haveRight(final ListMap<String, Tuple2<String, Boolean>> userRights, final ListMap<String, Tuple2<String, Boolean>> defaultRights, final String code, final String object,
+            final Equalizer<? super String> objectMatcher) {
+        final Set<String> unicity = new HashSet<String>();
+        final Boolean userRight = haveRightP(userRights, code, object, objectMatcher, unicity);
+        if (userRight != null)
+            return userRight;
+        final Boolean defaultRight = haveRightP(defaultRights, code, object, objectMatcher, unicity);
+        if (defaultRight != null)
+            return defaultRight;
+        return false;
+    }
+
+    static private Boolean haveRightP(final ListMap<String, Tuple2<String, Boolean>> rightsForUser, final String code, final String object, final Equalizer<? super String> objectMatcher,
+            final Set<String> unicity) {
+        if (rightsForUser == UserRightsManager.SUPERUSER_RIGHTS)
+            return true;
+        if (rightsForUser == UserRightsManager.NO_RIGHTS)
+            return false;
+        for (final Tuple2<String, Boolean> t : rightsForUser.getReadOnly(code)) {
+            if (unicity.add(t.get0())) {
+                if (t.get0() == null || (object != null && objectMatcher.equals(t.get0(), object)))
+                    return t.get1();
+                else if (object == null && !t.get1())
+                    return false;
+            }
+        }
+        return null;
+    }
+}
@@ -22,6 +22,8 @@ import org.openconcerto.ui.VFlowLayout;
 import org.openconcerto.ui.preferences.BackupProps;
 import org.openconcerto.utils.Backup;
 import org.openconcerto.utils.ExceptionHandler;
+import org.openconcerto.utils.IncrementalBackup;
+import org.openconcerto.utils.sync.HashIndex;
 
 import java.awt.Color;
 import java.awt.FlowLayout;
@@ -40,14 +42,19 @@ import java.util.Date;
 import java.util.List;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JSeparator;
+import javax.swing.JSpinner;
 import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import org.jdesktop.swingx.VerticalLayout;
 
@@ -59,6 +66,8 @@ public class BackupPanel extends JPanel implements ActionListener {
     private JTextField textDest = new JTextField();
     private JButton buttonBackup = new JButton("Sauvegarder");
     private JButton buttonBrowse = new JButton("...");
+    private JCheckBox checkIncremental = new JCheckBox("Sauvegarde incrémentale des documents");
+    private JSpinner spinSnapshots = new JSpinner();
 
     DateFormat dateFormat = new SimpleDateFormat("dd MM yyyy");
 
@@ -148,6 +157,26 @@ public class BackupPanel extends JPanel implements ActionListener {
         c.gridwidth = GridBagConstraints.REMAINDER;
         this.add(new JLabel("Pensez à effectuer vos sauvegardes sur différents disques!"), c);
 
+        // Mode de sauvegarde des documents
+        c.gridy++;
+        JPanel panelIncremental = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+        panelIncremental.add(this.checkIncremental);
+        panelIncremental.add(new JLabel("conserver les"));
+        this.spinSnapshots.setModel(new SpinnerNumberModel(props.getSnapshotsToKeep(), 1, 999, 1));
+        panelIncremental.add(this.spinSnapshots);
+        panelIncremental.add(new JLabel("dernières"));
+        this.add(panelIncremental, c);
+        this.checkIncremental.setSelected(props.isIncremental());
+        this.spinSnapshots.setEnabled(props.isIncremental());
+        this.checkIncremental.addActionListener(this);
+        this.spinSnapshots.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                BackupPanel.this.props.setSnapshotsToKeep(((Number) BackupPanel.this.spinSnapshots.getValue()).intValue());
+                BackupPanel.this.props.store();
+            }
+        });
+
         // Progression
         JLabelBold sep = new JLabelBold("Progression de la sauvegarde");
         c.gridy++;
@@ -238,6 +267,11 @@ public class BackupPanel extends JPanel implements ActionListener {
                 props.setDestination(absolutePath);
                 props.store();
             }
+        } else if (e.getSource() == this.checkIncremental) {
+            final boolean incremental = this.checkIncremental.isSelected();
+            this.spinSnapshots.setEnabled(incremental);
+            props.setIncremental(incremental);
+            props.store();
         } else {
             if (e.getSource() == this.buttonBackup) {
                 sauvegarde();
@@ -343,9 +377,39 @@ public class BackupPanel extends JPanel implements ActionListener {
                         });
 
                         // Sauvegarde des documents
-                        if (BackupPanel.this.dirs2save != null) {
-
-                            Backup backup = new Backup(fDest);
+                        if (BackupPanel.this.dirs2save != null && props.isIncremental()) {
+                            // contenus dédupliqués et un manifeste par sauvegarde, commun à tous les
+                            // jours pour partager les contenus
+                            try {
+                                final IncrementalBackup backup = new IncrementalBackup(new File(fTmp, "Snapshots"));
+                                int i = 1;
+                                for (File f : BackupPanel.this.dirs2save) {
+                                    errors += backup.applyTo(f);
+                                    final int tmp = i + 2;
+                                    SwingUtilities.invokeLater(new Runnable() {
+                                        public void run() {
+                                            BackupPanel.this.barDB.setValue(tmp);
+                                        }
+                                    });
+                                    i++;
+                                }
+                                backup.close();
+                                // supprimer les plus anciennes et les contenus qui ne servent plus
+                                backup.purge(props.getSnapshotsToKeep());
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                                errors++;
+                            }
+                        } else if (BackupPanel.this.dirs2save != null) {
+
+                            // empreintes des fichiers sauvegardés, pour ne pas relire ceux inchangés
+                            HashIndex hashIndex = null;
+                            try {
+                                hashIndex = new HashIndex(new File(fDest, ".hashIndex"));
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                            Backup backup = new Backup(fDest, hashIndex);
                             int i = 1;
                             for (File f : BackupPanel.this.dirs2save) {
                                 errors += backup.applyTo(f);
@@ -23,7 +23,7 @@ import org.openconcerto.sql.model.Where;
 import org.openconcerto.sql.model.graph.Path;
 import org.openconcerto.sql.request.BaseFillSQLRequest;
 import org.openconcerto.sql.request.ListSQLRequest;
-import org.openconcerto.utils.CollectionMap;
+import org.openconcerto.utils.ListMap;
 import org.openconcerto.utils.cc.ITransformer;
 
 import java.util.Collection;
@@ -38,16 +38,16 @@ abstract class AbstractUpdateOneRunnable extends UpdateRunnable {
             throw new IllegalArgumentException("id is not valid : " + this.getID());
     }
 
-    protected final CollectionMap<Path, ListSQLLine> getAffectedPaths() {
+    protected final ListMap<Path, ListSQLLine> getAffectedPaths() {
         return this.getSearchQ().getAffectedPaths(this.getTable(), this.getID());
     }
 
-    protected final void updateLines(CollectionMap<Path, ListSQLLine> paths) {
-        for (final Entry<Path, Collection<ListSQLLine>> e : paths.entrySet()) {
+    protected final void updateLines(ListMap<Path, ListSQLLine> paths) {
+        for (final Entry<Path, List<ListSQLLine>> e : paths.entrySet()) {
             // eg SITE.ID_CONTACT_CHEF
             final Path p = e.getKey();
             // eg [SQLRowValues(SITE), SQLRowValues(SITE)]
-            final List<ListSQLLine> lines = (List<ListSQLLine>) e.getValue();
+            final List<ListSQLLine> lines = e.getValue();
             if (!lines.isEmpty()) {
                 // deepCopy() instead of new SQLRowValues() otherwise the used line's graph will be
                 // modified (eg the new instance would be linked to it)
@@ -14,7 +14,7 @@
  package org.openconcerto.sql.view.list;
 
 import org.openconcerto.openoffice.XMLFormatVersion;
-import org.openconcerto.openoffice.spreadsheet.SpreadSheet;
+import org.openconcerto.openoffice.spreadsheet.SpreadSheetWriter;
 import org.openconcerto.sql.Configuration;
 import org.openconcerto.sql.Log;
 import org.openconcerto.sql.element.SQLElement;
@@ -808,7 +808,8 @@ public final class IListe extends JPanel {
     }
 
     public File exporter(File file, final boolean onlySelection, final XMLFormatVersion version) throws IOException {
-        return SpreadSheet.export(getExportModel(onlySelection), file, version);
+        // don't create the whole document in memory, lists can be huge
+        return SpreadSheetWriter.export(getExportModel(onlySelection), file, version);
     }
 
     protected TableModel getExportModel(final boolean onlySelection) {
@@ -25,7 +25,7 @@ import org.openconcerto.sql.users.rights.UserRights;
 import org.openconcerto.sql.users.rights.UserRightsManager;
 import org.openconcerto.sql.view.list.search.SearchQueue;
 import org.openconcerto.sql.view.search.SearchSpec;
-import org.openconcerto.utils.CollectionMap;
+import org.openconcerto.utils.ListMap;
 import org.openconcerto.utils.TableSorter;
 
 import java.beans.PropertyChangeEvent;
@@ -440,7 +440,7 @@ public class ITableModel extends AbstractTableModel {
      * @param id an ID in <code>t</code>.
      * @return all affected lines in the fullList (un-searched).
      */
-    public CollectionMap<ListSQLLine, Path> getAffectedLines(final SQLTable t, final int id) {
+    public ListMap<ListSQLLine, Path> getAffectedLines(final SQLTable t, final int id) {
         return this.getSearchQueue().getAffectedLines(t, id);
     }
 
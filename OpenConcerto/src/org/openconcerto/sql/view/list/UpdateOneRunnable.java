@@ -15,7 +15,7 @@
 
 import org.openconcerto.sql.model.SQLTableEvent;
 import org.openconcerto.sql.model.graph.Path;
-import org.openconcerto.utils.CollectionMap;
+import org.openconcerto.utils.ListMap;
 
 import java.util.Collection;
 
@@ -34,7 +34,7 @@ final class UpdateOneRunnable extends AbstractUpdateOneRunnable {
             if (line == null)
                 this.getReq().fireLineChanged(this.getID(), line, null);
             else {
-                final CollectionMap<Path, ListSQLLine> affectedPaths = this.getAffectedPaths();
+                final ListMap<Path, ListSQLLine> affectedPaths = this.getAffectedPaths();
                 // the line should be in the list (since SQLTableModelLinesSource.get()
                 // returned it), so if not yet part of the list add it.
                 if (affectedPaths.getNonNull(new Path(getTable())).isEmpty())
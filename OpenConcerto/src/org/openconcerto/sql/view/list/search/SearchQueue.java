@@ -23,8 +23,8 @@ import org.openconcerto.sql.view.list.LineListener;
 import org.openconcerto.sql.view.list.ListAccess;
 import org.openconcerto.sql.view.list.ListSQLLine;
 import org.openconcerto.sql.view.search.SearchSpec;
-import org.openconcerto.utils.CollectionMap;
 import org.openconcerto.utils.IFutureTask;
+import org.openconcerto.utils.ListMap;
 import org.openconcerto.utils.RTInterruptedException;
 import org.openconcerto.utils.SleepingQueue;
 import org.openconcerto.utils.cc.IPredicate;
@@ -85,18 +85,18 @@ public final class SearchQueue extends SleepingQueue {
      * @param id the id that has changed.
      * @return the refreshed lines and their changed paths.
      */
-    public CollectionMap<ListSQLLine, Path> getAffectedLines(final SQLTable t, final int id) {
-        return this.execGetAffected(t, id, new CollectionMap<ListSQLLine, Path>(), true);
+    public ListMap<ListSQLLine, Path> getAffectedLines(final SQLTable t, final int id) {
+        return this.execGetAffected(t, id, new ListMap<ListSQLLine, Path>(), true);
     }
 
-    public CollectionMap<Path, ListSQLLine> getAffectedPaths(final SQLTable t, final int id) {
-        return this.execGetAffected(t, id, new CollectionMap<Path, ListSQLLine>(), false);
+    public ListMap<Path, ListSQLLine> getAffectedPaths(final SQLTable t, final int id) {
+        return this.execGetAffected(t, id, new ListMap<Path, ListSQLLine>(), false);
     }
 
-    private <K, V> CollectionMap<K, V> execGetAffected(final SQLTable t, final int id, final CollectionMap<K, V> res, final boolean byLine) {
-        return this.execute(new Callable<CollectionMap<K, V>>() {
+    private <K, V> ListMap<K, V> execGetAffected(final SQLTable t, final int id, final ListMap<K, V> res, final boolean byLine) {
+        return this.execute(new Callable<ListMap<K, V>>() {
             @Override
-            public CollectionMap<K, V> call() throws Exception {
+            public ListMap<K, V> call() throws Exception {
                 return getAffected(t, id, res, byLine);
             }
         });
@@ -120,7 +120,8 @@ public final class SearchQueue extends SleepingQueue {
     }
 
     // must be called from within this queue, as this method use fullList
-    private <K, V> CollectionMap<K, V> getAffected(final SQLTable t, final int id, CollectionMap<K, V> res, boolean byLine) {
+    @SuppressWarnings("unchecked")
+    private <K, V> ListMap<K, V> getAffected(final SQLTable t, final int id, ListMap<K, V> res, boolean byLine) {
         if (id < SQLRow.MIN_VALID_ID)
             throw new IllegalArgumentException("invalid ID: " + id);
         if (!this.fullList.isEmpty()) {
@@ -142,9 +143,9 @@ public final class SearchQueue extends SleepingQueue {
                     if (current != null && current.getID() == id) {
                         // add to the list of paths that have been refreshed
                         if (byLine)
-                            res.put(line, p);
+                            res.add((K) line, (V) p);
                         else
-                            res.put(p, line);
+                            res.add((K) p, (V) line);
                     }
                 }
             }
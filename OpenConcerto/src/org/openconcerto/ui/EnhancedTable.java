@@ -13,6 +13,8 @@
  
  package org.openconcerto.ui;
 
+import org.openconcerto.utils.HashMapOfInt;
+
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Point;
@@ -32,7 +34,8 @@ import javax.swing.table.TableModel;
 
 public class EnhancedTable extends JTable {
     private boolean blockRepaint = false;
-    protected HashMap<Integer, Integer> rowHeights = new HashMap<Integer, Integer>();
+    // row -> height, without boxing since it's called for each row at each paint
+    protected HashMapOfInt rowHeights = new HashMapOfInt();
     private HashMap<Long, Integer> prefferedRowHeights = new HashMap<Long, Integer>();
 
     public EnhancedTable() {
@@ -191,10 +194,10 @@ public class EnhancedTable extends JTable {
         int rowCount = getRowCount();
         int rowsInserted = end - start + 1;
         for (int r = start; r < rowCount; r++) {
-            Integer height = rowHeights.get(Integer.valueOf(r));
-            if (height == null)
+            final int height = rowHeights.get(r, -1);
+            if (height < 0)
                 continue;
-            rowHeights.put(Integer.valueOf(r + rowsInserted), height);
+            rowHeights.put(r + rowsInserted, height);
         }
 
         // 1 or more rows added, so we have to repaint from the first
@@ -239,10 +242,10 @@ public class EnhancedTable extends JTable {
             resetRowHeight(i);
         // Move up row height info - for rows below the last deleted row
         for (int r = end + 1; r < previousRowCount; r++) {
-            Integer height = rowHeights.get(Integer.valueOf(r));
-            if (height == null)
+            final int height = rowHeights.get(r, -1);
+            if (height < 0)
                 continue;
-            rowHeights.put(Integer.valueOf(r - deletedCount), height);
+            rowHeights.put(r - deletedCount, height);
         }
 
         // 1 or more rows added, so we have to repaint from the first
@@ -275,12 +278,12 @@ public class EnhancedTable extends JTable {
             result = super.getRowHeight() + 3;
         } else {
 
-            Integer o = rowHeights.get(Integer.valueOf(row));
-            if (o == null) {
+            final int o = rowHeights.get(row, -1);
+            if (o < 0) {
                 result = getRowHeight() + 3;
             } else {
                 // System.out.println("EnhancedTable.getRowHeight() heights retrieved");
-                result = o.intValue();
+                result = o;
             }
         }
         // System.out.println("EnhancedTable.getRowHeight() of row: " + row + " ->" + result);
@@ -316,7 +319,7 @@ public class EnhancedTable extends JTable {
     public void setRowHeight(int row, int height) {
         // System.out.println("EnhancedTable.setRowHeight(): row:" + row + " to height:" + height);
         if (getRowHeight(row) != height) {
-            rowHeights.put(Integer.valueOf(row), Integer.valueOf(height + 3));
+            rowHeights.put(row, height + 3);
         }
         // rowModel.setSize(row, rowHeight);
         // / super.setRowHeight(row, rowHeight);
@@ -332,7 +335,7 @@ public class EnhancedTable extends JTable {
     }
 
     void resetRowHeight(int row) {
-        rowHeights.remove(Integer.valueOf(row));
+        rowHeights.remove(row);
         // revalidate();
     }
 
@@ -66,6 +66,7 @@ import java.awt.image.ColorConvertOp;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -118,6 +119,10 @@ public class ISearchableCombo<T> extends JPanel implements ValueWrapper<T>, Docu
     private SearchMode modeCompletion = MODE_CONTAINS;
     // Popup de completion
     private ISearchableComboCompletionThread<T> completionThread;
+    // immutable copy of model searched by completionThread, null if the model changed
+    private List<ISearchableComboItem<T>> completionItems;
+    // to refine the previous search
+    private ISearchableComboCompletionThread.Completion<T> lastCompletion;
     protected final ISearchableComboPopup<T> popupCompletion;
     // fullList
     private final DefaultIMutableListModel<ISearchableComboItem<T>> model;
@@ -207,10 +212,16 @@ public class ISearchableCombo<T> extends JPanel implements ValueWrapper<T>, Docu
                 if (e.getIndex0() == -1 && e.getIndex0() == e.getIndex1()) {
                     selectionChanged();
                 } else {
-                    updateValidState();
+                    itemsChanged();
                 }
             }
 
+            private void itemsChanged() {
+                ISearchableCombo.this.completionItems = null;
+                ISearchableCombo.this.lastCompletion = null;
+                updateValidState();
+            }
+
             private void updateValidState() {
                 // otherwise valid state doesn't depend on the list
                 if (getMode().valueMustBeInList()) {
@@ -219,11 +230,11 @@ public class ISearchableCombo<T> extends JPanel implements ValueWrapper<T>, Docu
             }
 
             public void intervalAdded(final ListDataEvent e) {
-                updateValidState();
+                itemsChanged();
             }
 
             public void intervalRemoved(final ListDataEvent e) {
-                updateValidState();
+                itemsChanged();
             }
         });
 
@@ -798,7 +809,10 @@ public class ISearchableCombo<T> extends JPanel implements ValueWrapper<T>, Docu
         if (this.completionThread != null) {
             this.completionThread.stopNow();
         }
-        this.completionThread = new ISearchableComboCompletionThread<T>(this, showAll, t);
+        if (this.completionItems == null) {
+            this.completionItems = Collections.unmodifiableList(new ArrayList<ISearchableComboItem<T>>(this.getModelValues()));
+        }
+        this.completionThread = new ISearchableComboCompletionThread<T>(this, showAll, t, this.completionItems, this.lastCompletion);
         this.completionThread.setPriority(Thread.MIN_PRIORITY);
         this.completionThread.start();
     }
@@ -808,7 +822,9 @@ public class ISearchableCombo<T> extends JPanel implements ValueWrapper<T>, Docu
     }
 
     // called by completionThread in EDT : no need to synch
-    void setMatchingCompletions(final List<ISearchableComboItem<T>> l, final boolean showAll) {
+    void setMatchingCompletions(final List<ISearchableComboItem<T>> l, final boolean showAll, final ISearchableComboCompletionThread.Completion<T> completion) {
+        if (completion != null)
+            this.lastCompletion = completion;
         this.listModel.removeAllElements();
         if (showAll && this.includeEmpty()) {
             this.listModel.addElement(this.emptyItem);
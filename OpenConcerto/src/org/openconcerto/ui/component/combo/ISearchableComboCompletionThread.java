@@ -14,23 +14,63 @@
  package org.openconcerto.ui.component.combo;
 
 import org.openconcerto.ui.component.combo.SearchMode.ComboMatcher;
+import org.openconcerto.utils.ArrayListOfInt;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import javax.swing.SwingUtilities;
 
 public class ISearchableComboCompletionThread<T> extends Thread {
+
+    /**
+     * The result of a search, allowing the next one to only search the matching items if it
+     * {@link ComboMatcher#refines(ComboMatcher) refines} this one.
+     * 
+     * @param <T> type of items.
+     */
+    static final class Completion<T> {
+        private final List<ISearchableComboItem<T>> items;
+        private final SearchMode mode;
+        private final ComboMatcher matcher;
+        // indexes in items of all the matching items before scanned
+        private final int[] matches;
+        private final int scanned;
+
+        Completion(List<ISearchableComboItem<T>> items, SearchMode mode, ComboMatcher matcher, int[] matches, int scanned) {
+            this.items = items;
+            this.mode = mode;
+            this.matcher = matcher;
+            this.matches = matches;
+            this.scanned = scanned;
+        }
+    }
+
     private final ISearchableCombo<T> combo;
     private final boolean showAll;
     private final String t;
+    private final List<ISearchableComboItem<T>> items;
+    private final Completion<T> previous;
     private boolean stopNow;
 
-    public ISearchableComboCompletionThread(final ISearchableCombo<T> combo, final boolean showAll, final String t) {
+    /**
+     * Create a new instance.
+     * 
+     * @param combo the combo.
+     * @param showAll <code>true</code> to display the first items.
+     * @param t the text to search.
+     * @param items the items of <code>combo</code>, mustn't be modified.
+     * @param previous the previous search, can be <code>null</code>.
+     */
+    public ISearchableComboCompletionThread(final ISearchableCombo<T> combo, final boolean showAll, final String t, final List<ISearchableComboItem<T>> items, final Completion<T> previous) {
         this.combo = combo;
         this.showAll = showAll;
         this.t = t;
+        this.items = items;
+        this.previous = previous;
         this.stopNow = false;
     }
 
@@ -52,10 +92,13 @@ public class ISearchableComboCompletionThread<T> extends Thread {
 
     private void computeAutoCompletion() {
         final List<ISearchableComboItem<T>> l;
+        final Completion<T> completion;
         if (!this.showAll) {
-            l = getMatchingValues();
+            l = new ArrayList<ISearchableComboItem<T>>();
+            completion = getMatchingValues(l);
         } else {
             l = getMaxValues();
+            completion = null;
         }
 
         SwingUtilities.invokeLater(new Runnable() {
@@ -63,68 +106,79 @@ public class ISearchableComboCompletionThread<T> extends Thread {
                 if (isStopped()) {
                     return;
                 }
-                getCombo().setMatchingCompletions(l, ISearchableComboCompletionThread.this.showAll);
+                getCombo().setMatchingCompletions(l, ISearchableComboCompletionThread.this.showAll, completion);
             }
         });
 
     }
 
     private List<ISearchableComboItem<T>> getMaxValues() {
-        final List<ISearchableComboItem<T>> allVals = this.getCombo().getModelValues();
+        final List<ISearchableComboItem<T>> allVals = this.items;
         return allVals.subList(0, Math.min(this.getCombo().getMaximumResult(), allVals.size()));
     }
 
-    private List<ISearchableComboItem<T>> getMatchingValues() {
-        final List<ISearchableComboItem<T>> result = new ArrayList<ISearchableComboItem<T>>();
-
-        final String aText = this.t.trim().toLowerCase();
+    /**
+     * Search the matching items.
+     * 
+     * @param result where to add the matching items.
+     * @return the completion to refine, <code>null</code> if stopped or if nothing was searched.
+     */
+    private Completion<T> getMatchingValues(final List<ISearchableComboItem<T>> result) {
+        // Recherche case insensitive et sans accent
+        final String aText = ISearchableComboItem.normalize(this.t.trim());
 
         final int minimumSearch = getCombo().getMinimumSearch();
 
-        if (aText.length() >= minimumSearch) {
-            final List<ISearchableComboItem<T>> cache = getCombo().getModelValues();
-            final ComboMatcher search = getCombo().getCompletionMode().matcher(aText);
-            final int maximumResult = getCombo().getMaximumResult();
-
-            for (int index = 0; index < cache.size(); index++) {
-                final ISearchableComboItem<T> itemO = cache.get(index);
-                final String item = itemO.asString();
+        if (aText.length() < minimumSearch) {
+            return null;
+        }
+        final List<ISearchableComboItem<T>> cache = this.items;
+        final SearchMode mode = getCombo().getCompletionMode();
+        final ComboMatcher search = mode.matcher(aText);
+        final int maximumResult = getCombo().getMaximumResult();
+        // FIXME: mettre dans les prefs removeDuplicate
+        final boolean removeDuplicate = true;
+        final Set<String> added = new HashSet<String>();
+
+        final ArrayListOfInt matches = new ArrayListOfInt();
+        int index = 0;
+        final Completion<T> prev = this.previous;
+        if (prev != null && prev.items == cache && prev.mode == mode && search.refines(prev.matcher)) {
+            // les éléments ne correspondant pas à la recherche précédente ne peuvent correspondre
+            for (int i = 0; i < prev.matches.length; i++) {
                 // On s'arrête au plus vite
-                if (index % 50 == 0) {
-                    if (isStopped()) {
-                        return result;
-                    }
-                }
-                // Recherche case insensitive
-                boolean ok = search.match(item.toLowerCase());
-
-                // FIXME: mettre dans les prefs removeDuplicate
-                boolean removeDuplicate = true;
-                if (ok && removeDuplicate) {
-                    for (int i = 0; i < result.size(); i++) {
-                        if (isStopped()) {
-                            return result;
-                        }
-                        ISearchableComboItem element = result.get(i);
-                        if (element.asString().equalsIgnoreCase(item)) {
-                            ok = false;
-                            break;
-                        }
-                    }
+                if (i % 50 == 0 && isStopped()) {
+                    return null;
                 }
-
-                if (ok) {
-                    result.add(itemO);
-                }
-
-                if (result.size() > maximumResult) {
-                    break;
+                final int matchIndex = prev.matches[i];
+                final ISearchableComboItem<T> itemO = cache.get(matchIndex);
+                if (search.match(itemO.asNormalizedString())) {
+                    matches.add(matchIndex);
+                    if (result.size() <= maximumResult)
+                        add(result, itemO, removeDuplicate, added);
                 }
             }
+            index = prev.scanned;
+        }
 
+        for (; index < cache.size() && result.size() <= maximumResult; index++) {
+            // On s'arrête au plus vite
+            if (index % 50 == 0 && isStopped()) {
+                return null;
+            }
+            final ISearchableComboItem<T> itemO = cache.get(index);
+            if (search.match(itemO.asNormalizedString())) {
+                matches.add(index);
+                add(result, itemO, removeDuplicate, added);
+            }
         }
 
-        return result;
+        return new Completion<T>(cache, mode, search, matches.toArray(), index);
+    }
+
+    private void add(final List<ISearchableComboItem<T>> result, final ISearchableComboItem<T> itemO, final boolean removeDuplicate, final Set<String> added) {
+        if (!removeDuplicate || added.add(itemO.asString().toLowerCase()))
+            result.add(itemO);
     }
 
     static final List<String> cut(final String value) {
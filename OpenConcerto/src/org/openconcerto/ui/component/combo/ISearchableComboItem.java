@@ -13,11 +13,35 @@
  
  package org.openconcerto.ui.component.combo;
 
+import java.text.Normalizer;
+import java.text.Normalizer.Form;
+import java.util.regex.Pattern;
+
 public class ISearchableComboItem<T> {
 
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    /**
+     * The string used to search items : lower-case and without accents.
+     * 
+     * @param s a string, e.g. "Côte".
+     * @return the normalized string, e.g. "cote".
+     */
+    static String normalize(final String s) {
+        boolean ascii = true;
+        for (int i = 0; i < s.length() && ascii; i++) {
+            ascii = s.charAt(i) < 128;
+        }
+        if (ascii)
+            return s.toLowerCase();
+        return DIACRITICS.matcher(Normalizer.normalize(s, Form.NFD)).replaceAll("").toLowerCase();
+    }
+
     private final T val;
     private final VarDesc varDesc;
     private short precision;
+    // computed by the completion thread, String is immutable so no need to synchronize
+    private String normalized;
 
     public ISearchableComboItem(T val, VarDesc o) {
         super();
@@ -28,12 +52,22 @@ public class ISearchableComboItem<T> {
 
     public void setPrecision(short precision) {
         this.precision = precision;
+        this.normalized = null;
     }
 
     public String asString() {
         return this.varDesc.asString(this.precision);
     }
 
+    final String asNormalizedString() {
+        String res = this.normalized;
+        if (res == null) {
+            res = normalize(this.asString());
+            this.normalized = res;
+        }
+        return res;
+    }
+
     public final T getOriginal() {
         return this.val;
     }
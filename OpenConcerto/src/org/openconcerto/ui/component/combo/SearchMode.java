@@ -39,6 +39,18 @@ public interface SearchMode {
 
         // called for each combo item
         public abstract boolean match(String item);
+
+        /**
+         * Whether the items matching this are a subset of those matching <code>previous</code>, in
+         * that case only the previous results will be searched. NOTE : a mode can return matchers
+         * of different kinds depending on the search.
+         * 
+         * @param previous the matcher of the previous search of the same mode.
+         * @return <code>true</code> if this can only match fewer items.
+         */
+        public boolean refines(ComboMatcher previous) {
+            return false;
+        }
     }
 
     // called for each search
@@ -54,36 +66,53 @@ public interface SearchMode {
 
         @Override
         public ComboMatcher matcher(String s) {
-            final List<String> values = ISearchableComboCompletionThread.cut(s);
+            return new DefaultMatcher(s, this.contains);
+        }
+    }
+
+    static final class DefaultMatcher extends ComboMatcher {
+        private final boolean contains;
+        private final List<String> values;
+
+        DefaultMatcher(String s, boolean contains) {
+            super(s);
+            this.contains = contains;
+            this.values = ISearchableComboCompletionThread.cut(s);
+        }
+
+        @Override
+        public boolean match(String item) {
+            final List<String> values = this.values;
             final int stop = values.size();
-            return new ComboMatcher(s) {
-                @Override
-                public boolean match(String item) {
-                    boolean ok = false;
-                    for (int j = 0; j < stop; j++) {
-                        final String lowerCaseValue = values.get(j);
-
-                        if (DefaultSearchMode.this.contains) {
-                            if (item.indexOf(lowerCaseValue) >= 0) {
-                                // ajout a la combo");
-                                ok = true;
-                            } else {
-                                ok = false;
-                                break;
-                            }
-                        } else {
-                            if (item.startsWith(lowerCaseValue)) {
-                                // ajout a la combo");
-                                ok = true;
-                            } else {
-                                ok = false;
-                                break;
-                            }
-                        }
+            boolean ok = false;
+            for (int j = 0; j < stop; j++) {
+                final String lowerCaseValue = values.get(j);
+
+                if (this.contains) {
+                    if (item.indexOf(lowerCaseValue) >= 0) {
+                        // ajout a la combo");
+                        ok = true;
+                    } else {
+                        ok = false;
+                        break;
+                    }
+                } else {
+                    if (item.startsWith(lowerCaseValue)) {
+                        // ajout a la combo");
+                        ok = true;
+                    } else {
+                        ok = false;
+                        break;
                     }
-                    return ok;
                 }
-            };
+            }
+            return ok;
+        }
+
+        @Override
+        public boolean refines(ComboMatcher previous) {
+            // same kind : each word can only be longer and more words can only match fewer items
+            return previous instanceof DefaultMatcher && ((DefaultMatcher) previous).contains == this.contains && this.getSearch().startsWith(previous.getSearch());
         }
     }
 
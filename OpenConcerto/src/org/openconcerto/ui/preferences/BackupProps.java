@@ -21,6 +21,8 @@ public class BackupProps extends AbstractProps {
 
     protected static BackupProps instance;
 
+    public static final int DEFAULT_SNAPSHOTS_TO_KEEP = 30;
+
     protected String getPropsFileName() {
         return "./Configuration/Backup.properties";
     }
@@ -45,6 +47,37 @@ public class BackupProps extends AbstractProps {
         setProperty("IsActive", String.valueOf(b));
     }
 
+    /**
+     * Whether documents are saved as snapshots of their contents rather than copied.
+     * 
+     * @return <code>true</code> to use {@link org.openconcerto.utils.IncrementalBackup}.
+     */
+    public boolean isIncremental() {
+        return Boolean.valueOf(getProperty("Incremental"));
+    }
+
+    public void setIncremental(boolean b) {
+        setProperty("Incremental", String.valueOf(b));
+    }
+
+    /**
+     * How many incremental backups are kept, older ones are purged after each backup.
+     * 
+     * @return the number of snapshots to keep, at least 1.
+     */
+    public int getSnapshotsToKeep() {
+        String value = getProperty("SnapshotsToKeep");
+        if (value != null && value.trim().length() > 0) {
+            return Math.max(1, Integer.valueOf(value.trim()));
+        } else {
+            return DEFAULT_SNAPSHOTS_TO_KEEP;
+        }
+    }
+
+    public void setSnapshotsToKeep(int i) {
+        setProperty("SnapshotsToKeep", String.valueOf(i));
+    }
+
     public String getDestination() {
         return getProperty("Destination");
     }
@@ -112,6 +112,16 @@ public class ArrayListOfInt {
         return indexOf(o) >= 0;
     }
 
+    /**
+     * Returns <tt>true</tt> if this list contains the specified element, without boxing.
+     * 
+     * @param o element whose presence in this list is to be tested
+     * @return <tt>true</tt> if this list contains the specified element
+     */
+    public boolean contains(int o) {
+        return indexOf(o) >= 0;
+    }
+
     /**
      * Returns the index of the first occurrence of the specified element in this list, or -1 if
      * this list does not contain the element. More formally, returns the lowest index <tt>i</tt>
@@ -119,9 +129,20 @@ public class ArrayListOfInt {
      * if there is no such index.
      */
     public int indexOf(Object o) {
+        return o instanceof Integer ? indexOf(((Integer) o).intValue()) : -1;
+    }
+
+    /**
+     * Returns the index of the first occurrence of the specified element in this list, or -1 if
+     * this list does not contain the element.
+     * 
+     * @param o the element to search.
+     * @return the lowest index of <code>o</code>, or -1.
+     */
+    public int indexOf(int o) {
 
         for (int i = 0; i < size; i++)
-            if (o.equals(elementData[i]))
+            if (elementData[i] == o)
                 return i;
 
         return -1;
@@ -134,9 +155,20 @@ public class ArrayListOfInt {
      * there is no such index.
      */
     public int lastIndexOf(Object o) {
+        return o instanceof Integer ? lastIndexOf(((Integer) o).intValue()) : -1;
+    }
+
+    /**
+     * Returns the index of the last occurrence of the specified element in this list, or -1 if this
+     * list does not contain the element.
+     * 
+     * @param o the element to search.
+     * @return the highest index of <code>o</code>, or -1.
+     */
+    public int lastIndexOf(int o) {
 
         for (int i = size - 1; i >= 0; i--)
-            if (o.equals(elementData[i]))
+            if (elementData[i] == o)
                 return i;
 
         return -1;
@@ -13,15 +13,16 @@
  
  package org.openconcerto.utils;
 
+import org.openconcerto.utils.sync.HashIndex;
+import org.openconcerto.utils.sync.HashWriter;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,9 +36,23 @@ public class Backup {
     }
 
     private final File dest;
+    private final HashIndex hashIndex;
 
     public Backup(File dest) {
+        this(dest, null);
+    }
+
+    /**
+     * Crée une sauvegarde qui compare le contenu des fichiers de même taille mais de date
+     * différente, un fichier identique n'est alors pas recopié.
+     * 
+     * @param dest le répertoire de destination.
+     * @param hashIndex les empreintes des fichiers, évite de relire les fichiers inchangés, peut
+     *        être <code>null</code>.
+     */
+    public Backup(File dest, HashIndex hashIndex) {
         this.dest = dest;
+        this.hashIndex = hashIndex;
     }
 
     static final int bufferSize = 512 * 1024;
@@ -66,6 +81,8 @@ public class Backup {
             e1.printStackTrace();
         }
 
+        // l'empreinte de la copie est calculée au passage
+        final MessageDigest digest = this.hashIndex == null ? null : HashWriter.createDigest("SHA-256");
         try {
             FileOutputStream bufOut = new FileOutputStream(destFile);
             FileInputStream bufIn = new FileInputStream(sourceFile);
@@ -76,6 +93,8 @@ public class Backup {
                 int nbLecture;
                 while ((nbLecture = bufIn.read(buffer)) != -1) {
                     bufOut.write(buffer, 0, nbLecture);
+                    if (digest != null)
+                        digest.update(buffer, 0, nbLecture);
                 }
 
             } catch (IOException e) {
@@ -102,6 +121,8 @@ public class Backup {
         }
 
         destFile.setLastModified(sourceFile.lastModified());
+        if (digest != null && failed == 0)
+            this.hashIndex.put(destFile, digest.digest());
         return failed;
     }
 
@@ -138,25 +159,16 @@ public class Backup {
                         applyTo(origine, f);
                     } else {
                         if (f2.exists()) {
-                            // On copie si la date de modification ou la taille sont differente
-                            boolean dateModif = f.lastModified() == f2.lastModified();
-                            if (!dateModif || f.length() != f2.length()) {
+                            // On copie si la taille est différente
+                            if (f.length() != f2.length()) {
                                 failed += copy(f, f2);
-                            } else {
-                                // Sinon si la taille est égale on vérifie si le fichier est le meme
-                                if (!dateModif && f.length() == f2.length()) {
-                                    String MD5f = getMD5(f);
-                                    String MD5f2 = getMD5(f2);
-                                    boolean md5 = MD5f.equalsIgnoreCase(MD5f2);
-                                    if (!(MD5f.length() > 0 && MD5f2.length() > 0)) {
-                                        if (md5) {
-                                            f2.setLastModified(f.lastModified());
-                                        } else {
-                                            failed += copy(f, f2);
-                                        }
-                                    } else {
-                                        failed += copy(f, f2);
-                                    }
+                            } else if (f.lastModified() != f2.lastModified()) {
+                                // Sinon si seule la date est différente on vérifie si le fichier
+                                // est le même
+                                if (this.hashIndex != null && isSameContent(f, f2)) {
+                                    f2.setLastModified(f.lastModified());
+                                } else {
+                                    failed += copy(f, f2);
                                 }
                             }
                         } else {
@@ -193,57 +205,22 @@ public class Backup {
         return new File(this.dest, s2);
     }
 
-    /**
-     * 
-     * @param f File
-     * @return the md5 of the File
-     */
-    private String getMD5(File f) {
-        MessageDigest digest;
-        String output = "";
-        InputStream is;
+    private boolean isSameContent(File f, File f2) {
         try {
-            is = new FileInputStream(f);
+            return Arrays.equals(this.hashIndex.getHash(f), this.hashIndex.getHash(f2));
+        } catch (IOException e) {
+            getLogger().log(Level.INFO, "Unable to compare " + f + " and " + f2, e);
+            return false;
+        }
+    }
 
+    public void close() {
+        if (this.hashIndex != null) {
             try {
-                digest = MessageDigest.getInstance("MD5");
-
-                is = new FileInputStream(f);
-                byte buffer[] = new byte[512 * 1024];
-                int read = 0;
-
-                while ((read = is.read(buffer)) > 0) {
-                    digest.update(buffer, 0, read);
-                }
-                byte[] md5sum = digest.digest();
-                BigInteger bigInt = new BigInteger(1, md5sum);
-                output = bigInt.toString(16);
-                // System.out.println("MD5: " + output);
-
-                is.close();
+                this.hashIndex.save();
             } catch (IOException e) {
-                getLogger().log(Level.INFO, "Unable to process file for MD5. " + f);
-                throw new RuntimeException("Unable to process file for MD5", e);
-            } catch (NoSuchAlgorithmException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            } finally {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    getLogger().log(Level.INFO, "Unable to close file at the end of MD5. " + f);
-                    e.printStackTrace();
-                }
+                getLogger().log(Level.WARNING, "Unable to save the hash index", e);
             }
-        } catch (FileNotFoundException e1) {
-            getLogger().log(Level.INFO, "File not found for MD5. " + f);
-            e1.printStackTrace();
         }
-
-        return output;
-
-    }
-
-    public void close() {
     }
 }
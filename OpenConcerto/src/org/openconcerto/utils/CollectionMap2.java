@@ -149,6 +149,19 @@ public abstract class CollectionMap2<K, C extends Collection<V>, V> extends Hash
         return this.get(key, !this.isEmptyCollSameAsNoColl(), true);
     }
 
+    /**
+     * A read-only view of the collection mapped to the passed key. Contrary to
+     * {@link #getNonNull(Object)} nothing is created, so this is the method to use to iterate.
+     * 
+     * @param key the key.
+     * @return an unmodifiable view of the mapped collection, or an empty collection if
+     *         <code>key</code> isn't mapped or is mapped to <code>null</code>.
+     */
+    public Collection<V> getReadOnly(Object key) {
+        final C res = super.get(key);
+        return res == null ? Collections.<V> emptySet() : Collections.unmodifiableCollection(res);
+    }
+
     @Override
     public Set<Map.Entry<K, C>> entrySet() {
         if (getMode() == Mode.NULL_FORBIDDEN) {
@@ -266,7 +279,12 @@ public abstract class CollectionMap2<K, C extends Collection<V>, V> extends Hash
     // ** add/remove collection
 
     public final void add(K k, V v) {
-        this.addAll(k, Collections.singleton(v));
+        // avoid the singleton and the lookups of addAll() for the most common case
+        final C currentColl = super.get(k);
+        if (currentColl != null)
+            currentColl.add(v);
+        else
+            this.addAll(k, Collections.singleton(v));
     }
 
     public final void addAll(K k, Collection<? extends V> v) {
@@ -296,6 +314,30 @@ public abstract class CollectionMap2<K, C extends Collection<V>, V> extends Hash
         this.removeAll(k, v, null);
     }
 
+    /**
+     * Remove one item from the collection mapped to the passed key. Like
+     * {@link #removeAll(Object, Collection)} the key is removed if its collection becomes empty, but
+     * no collection is created and the item is compared by the collection itself (e.g. an identity
+     * set compares with <code>==</code>).
+     * 
+     * @param k the key.
+     * @param v the item to remove.
+     * @return <code>true</code> if <code>v</code> was removed.
+     */
+    public final boolean removeOne(K k, V v) {
+        final C currentColl = super.get(k);
+        if (currentColl == null) {
+            if (getMode() == Mode.NULL_MEANS_ALL && this.containsKey(k))
+                throw new IllegalStateException("Cannot remove from all for " + toStr(k));
+            return false;
+        }
+        if (!currentColl.remove(v))
+            return false;
+        if (currentColl.isEmpty())
+            this.remove(k);
+        return true;
+    }
+
     private final void removeAll(K k, Collection<? extends V> v, final Iterator<Map.Entry<K, C>> iter) {
         boolean removeK = false;
         if (getMode() == Mode.NULL_MEANS_ALL) {
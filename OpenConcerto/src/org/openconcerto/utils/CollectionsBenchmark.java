@@ -0,0 +1,193 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils;
+
+import org.openconcerto.utils.cc.IFactory;
+import org.openconcerto.utils.cc.LinkedIdentitySet;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compare the throughput, the allocated and the retained memory of {@link CollectionMap} with
+ * {@link ListMap} and {@link ListMapOfInt}, of boxed maps with {@link HashMapOfInt}, and of many
+ * small {@link CollectionMap} with {@link SetMap#create(int, IFactory)} (like the referents of
+ * each SQLRowValues).
+ * 
+ * <pre>
+ * java org.openconcerto.utils.CollectionsBenchmark [entryCount]
+ * </pre>
+ */
+public class CollectionsBenchmark {
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        // ~4 values per key
+        final int[] keys = new int[count];
+        final Random r = new Random(11);
+        for (int i = 0; i < count; i++)
+            keys[i] = r.nextInt(count / 4);
+
+        for (int i = 0; i < 3; i++) {
+            long mem = usedMemory();
+            long alloc = allocatedMemory();
+            long t = System.nanoTime();
+            final CollectionMap<Integer, String> cm = new CollectionMap<Integer, String>(new ArrayList<String>(8));
+            for (final int k : keys)
+                cm.put(k, "v");
+            int sum = 0;
+            for (final int k : keys)
+                sum += ((List<String>) cm.getNonNull(k)).size();
+            print("CollectionMap ", count, System.nanoTime() - t, allocatedMemory() - alloc, usedMemory() - mem, sum + cm.size());
+
+            mem = usedMemory();
+            alloc = allocatedMemory();
+            t = System.nanoTime();
+            final ListMap<Integer, String> lm = new ListMap<Integer, String>();
+            for (final int k : keys)
+                lm.add(k, "v");
+            sum = 0;
+            for (final int k : keys)
+                sum += lm.getReadOnly(k).size();
+            print("ListMap       ", count, System.nanoTime() - t, allocatedMemory() - alloc, usedMemory() - mem, sum + lm.size());
+
+            mem = usedMemory();
+            alloc = allocatedMemory();
+            t = System.nanoTime();
+            final ListMapOfInt<String> lmi = new ListMapOfInt<String>();
+            for (final int k : keys)
+                lmi.add(k, "v");
+            sum = 0;
+            for (final int k : keys)
+                sum += lmi.getReadOnly(k).size();
+            print("ListMapOfInt  ", count, System.nanoTime() - t, allocatedMemory() - alloc, usedMemory() - mem, sum + lmi.size());
+
+            mem = usedMemory();
+            alloc = allocatedMemory();
+            t = System.nanoTime();
+            final Map<Integer, Integer> boxed = new HashMap<Integer, Integer>();
+            for (final int k : keys)
+                boxed.put(k, k + 1);
+            sum = 0;
+            for (int k = 0; k < count; k++) {
+                final Integer v = boxed.get(k);
+                if (v != null)
+                    sum += v.intValue();
+            }
+            print("HashMap       ", count, System.nanoTime() - t, allocatedMemory() - alloc, usedMemory() - mem, sum + boxed.size());
+
+            mem = usedMemory();
+            alloc = allocatedMemory();
+            t = System.nanoTime();
+            final HashMapOfInt prim = new HashMapOfInt();
+            for (final int k : keys)
+                prim.put(k, k + 1);
+            sum = 0;
+            for (int k = 0; k < count; k++) {
+                final int v = prim.get(k, -1);
+                if (v >= 0)
+                    sum += v;
+            }
+            print("HashMapOfInt  ", count, System.nanoTime() - t, allocatedMemory() - alloc, usedMemory() - mem, sum + prim.size());
+
+            // one small map per row, 2 keys, with a removal
+            final int mapCount = count / 4;
+            mem = usedMemory();
+            alloc = allocatedMemory();
+            t = System.nanoTime();
+            final List<CollectionMap<Integer, Object>> cms = new ArrayList<CollectionMap<Integer, Object>>(mapCount);
+            for (int j = 0; j < mapCount; j++) {
+                final CollectionMap<Integer, Object> m = new CollectionMap<Integer, Object>(4) {
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public Collection<Object> createCollection(Collection coll) {
+                        return coll == null ? new LinkedIdentitySet<Object>() : new LinkedIdentitySet<Object>(coll);
+                    }
+                };
+                fillSmall(m, j);
+                m.remove(j % 2, ITEMS[0]);
+                cms.add(m);
+            }
+            sum = 0;
+            for (final CollectionMap<Integer, Object> m : cms)
+                sum += m.getNonNull(0).size() + m.getNonNull(1).size();
+            print("small CollectionMap", mapCount, System.nanoTime() - t, allocatedMemory() - alloc, usedMemory() - mem, sum);
+
+            mem = usedMemory();
+            alloc = allocatedMemory();
+            t = System.nanoTime();
+            final List<SetMap<Integer, Object>> sms = new ArrayList<SetMap<Integer, Object>>(mapCount);
+            for (int j = 0; j < mapCount; j++) {
+                final SetMap<Integer, Object> m = SetMap.create(4, IDENTITY_SETS);
+                for (int k = 0; k < ITEMS.length; k++)
+                    m.add(k % 2, ITEMS[(j + k) % ITEMS.length]);
+                m.removeOne(j % 2, ITEMS[0]);
+                sms.add(m);
+            }
+            sum = 0;
+            for (final SetMap<Integer, Object> m : sms)
+                sum += m.getReadOnly(0).size() + m.getReadOnly(1).size();
+            print("small SetMap       ", mapCount, System.nanoTime() - t, allocatedMemory() - alloc, usedMemory() - mem, sum);
+
+            // keep the structures alive until they're measured
+            keepAlive(cm, lm, lmi, boxed, prim, cms, sms);
+        }
+    }
+
+    private static final Object[] ITEMS = { new Object(), new Object(), new Object() };
+    private static final IFactory<Set<Object>> IDENTITY_SETS = new IFactory<Set<Object>>() {
+        @Override
+        public Set<Object> createChecked() {
+            return new LinkedIdentitySet<Object>();
+        }
+    };
+
+    private static void fillSmall(final CollectionMap<Integer, Object> m, final int j) {
+        for (int k = 0; k < ITEMS.length; k++)
+            m.put(k % 2, ITEMS[(j + k) % ITEMS.length]);
+    }
+
+    private static Object lastKept;
+
+    private static void keepAlive(final Object... o) {
+        lastKept = o;
+    }
+
+    private static long usedMemory() {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // bytes allocated by this thread, -1 if the VM can't tell
+    private static long allocatedMemory() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        else
+            return -1;
+    }
+
+    private static void print(final String name, final int count, final long nanos, final long allocated, final long bytes, final int check) {
+        System.out.println(name + " " + (nanos / 1000000) + "ms, " + (count * 1000000000L / Math.max(1, nanos)) + " ops/s, " + (allocated / 1024) + " KB allocated, " + (bytes / 1024) + " KB retained (" + check + ")");
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map from int to int, without boxing. Open addressing with linear probing, removals shift the
+ * following entries back so there's no tombstones. Not thread-safe.
+ * 
+ * @see HashSetOfInt
+ */
+public class HashMapOfInt {
+
+    private static final int MIN_CAPACITY = 8;
+
+    static int hash(final int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int tableSize(final int expectedSize) {
+        // load factor of 0.5
+        int res = MIN_CAPACITY;
+        while (res < 2 * expectedSize)
+            res <<= 1;
+        return res;
+    }
+
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public HashMapOfInt() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * Create a new map.
+     * 
+     * @param expectedSize the number of entries which won't need a resize.
+     */
+    public HashMapOfInt(final int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size : " + expectedSize);
+        this.allocate(tableSize(expectedSize));
+        this.size = 0;
+    }
+
+    private void allocate(final int capacity) {
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.used = new boolean[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public final int size() {
+        return this.size;
+    }
+
+    public final boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // the slot of key, or -1
+    private int getSlot(final int key) {
+        int i = hash(key) & this.mask;
+        while (this.used[i]) {
+            if (this.keys[i] == key)
+                return i;
+            i = (i + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    public final boolean containsKey(final int key) {
+        return this.getSlot(key) >= 0;
+    }
+
+    /**
+     * The value mapped to a key.
+     * 
+     * @param key the key.
+     * @param missing what to return if <code>key</code> isn't mapped.
+     * @return the value of <code>key</code>, or <code>missing</code>.
+     */
+    public final int get(final int key, final int missing) {
+        final int slot = this.getSlot(key);
+        return slot < 0 ? missing : this.values[slot];
+    }
+
+    /**
+     * Map a key to a value.
+     * 
+     * @param key the key.
+     * @param value the value.
+     * @return <code>true</code> if <code>key</code> wasn't already mapped.
+     */
+    public final boolean put(final int key, final int value) {
+        int i = hash(key) & this.mask;
+        while (this.used[i]) {
+            if (this.keys[i] == key) {
+                this.values[i] = value;
+                return false;
+            }
+            i = (i + 1) & this.mask;
+        }
+        this.used[i] = true;
+        this.keys[i] = key;
+        this.values[i] = value;
+        if (++this.size * 2 > this.keys.length)
+            this.resize(this.keys.length * 2);
+        return true;
+    }
+
+    /**
+     * Add to the value of a key.
+     * 
+     * @param key the key.
+     * @param delta what to add, the value being 0 if <code>key</code> isn't mapped.
+     * @return the new value.
+     */
+    public final int add(final int key, final int delta) {
+        final int slot = this.getSlot(key);
+        if (slot < 0) {
+            this.put(key, delta);
+            return delta;
+        } else {
+            return this.values[slot] += delta;
+        }
+    }
+
+    /**
+     * Remove a key.
+     * 
+     * @param key the key.
+     * @return <code>true</code> if <code>key</code> was mapped.
+     */
+    public final boolean remove(final int key) {
+        int gap = this.getSlot(key);
+        if (gap < 0)
+            return false;
+        // move back the entries that would no longer be reachable
+        int i = gap;
+        while (true) {
+            i = (i + 1) & this.mask;
+            if (!this.used[i])
+                break;
+            final int home = hash(this.keys[i]) & this.mask;
+            if (((gap - home) & this.mask) < ((i - home) & this.mask)) {
+                this.keys[gap] = this.keys[i];
+                this.values[gap] = this.values[i];
+                gap = i;
+            }
+        }
+        this.used[gap] = false;
+        this.size--;
+        return true;
+    }
+
+    public final void clear() {
+        Arrays.fill(this.used, false);
+        this.size = 0;
+    }
+
+    private void resize(final int capacity) {
+        final int[] oldKeys = this.keys;
+        final int[] oldValues = this.values;
+        final boolean[] oldUsed = this.used;
+        this.allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldUsed[j]) {
+                int i = hash(oldKeys[j]) & this.mask;
+                while (this.used[i])
+                    i = (i + 1) & this.mask;
+                this.used[i] = true;
+                this.keys[i] = oldKeys[j];
+                this.values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * The keys of this map.
+     * 
+     * @return a new array with the keys, in no particular order.
+     */
+    public final int[] keys() {
+        final int[] res = new int[this.size];
+        int index = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.used[i])
+                res[index++] = this.keys[i];
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(this.size * 8 + 2);
+        sb.append('{');
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.used[i]) {
+                if (sb.length() > 1)
+                    sb.append(", ");
+                sb.append(this.keys[i]).append('=').append(this.values[i]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
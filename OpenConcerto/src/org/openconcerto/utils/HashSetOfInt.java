@@ -0,0 +1,165 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A set of int, without boxing. Same hashing as {@link HashMapOfInt}. Not thread-safe.
+ */
+public class HashSetOfInt {
+
+    private int[] keys;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public HashSetOfInt() {
+        this(4);
+    }
+
+    /**
+     * Create a new set.
+     * 
+     * @param expectedSize the number of items which won't need a resize.
+     */
+    public HashSetOfInt(final int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size : " + expectedSize);
+        this.allocate(HashMapOfInt.tableSize(expectedSize));
+        this.size = 0;
+    }
+
+    public HashSetOfInt(final Collection<? extends Number> c) {
+        this(c.size());
+        for (final Number n : c)
+            this.add(n.intValue());
+    }
+
+    private void allocate(final int capacity) {
+        this.keys = new int[capacity];
+        this.used = new boolean[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public final int size() {
+        return this.size;
+    }
+
+    public final boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    private int getSlot(final int key) {
+        int i = HashMapOfInt.hash(key) & this.mask;
+        while (this.used[i]) {
+            if (this.keys[i] == key)
+                return i;
+            i = (i + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    public final boolean contains(final int key) {
+        return this.getSlot(key) >= 0;
+    }
+
+    /**
+     * Add an item.
+     * 
+     * @param key the item.
+     * @return <code>true</code> if this set didn't already contain <code>key</code>.
+     */
+    public final boolean add(final int key) {
+        int i = HashMapOfInt.hash(key) & this.mask;
+        while (this.used[i]) {
+            if (this.keys[i] == key)
+                return false;
+            i = (i + 1) & this.mask;
+        }
+        this.used[i] = true;
+        this.keys[i] = key;
+        if (++this.size * 2 > this.keys.length)
+            this.resize(this.keys.length * 2);
+        return true;
+    }
+
+    /**
+     * Remove an item.
+     * 
+     * @param key the item.
+     * @return <code>true</code> if this set contained <code>key</code>.
+     */
+    public final boolean remove(final int key) {
+        int gap = this.getSlot(key);
+        if (gap < 0)
+            return false;
+        // see HashMapOfInt.remove()
+        int i = gap;
+        while (true) {
+            i = (i + 1) & this.mask;
+            if (!this.used[i])
+                break;
+            final int home = HashMapOfInt.hash(this.keys[i]) & this.mask;
+            if (((gap - home) & this.mask) < ((i - home) & this.mask)) {
+                this.keys[gap] = this.keys[i];
+                gap = i;
+            }
+        }
+        this.used[gap] = false;
+        this.size--;
+        return true;
+    }
+
+    public final void clear() {
+        Arrays.fill(this.used, false);
+        this.size = 0;
+    }
+
+    private void resize(final int capacity) {
+        final int[] oldKeys = this.keys;
+        final boolean[] oldUsed = this.used;
+        this.allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldUsed[j]) {
+                int i = HashMapOfInt.hash(oldKeys[j]) & this.mask;
+                while (this.used[i])
+                    i = (i + 1) & this.mask;
+                this.used[i] = true;
+                this.keys[i] = oldKeys[j];
+            }
+        }
+    }
+
+    /**
+     * The items of this set.
+     * 
+     * @return a new array with the items, in no particular order.
+     */
+    public final int[] toArray() {
+        final int[] res = new int[this.size];
+        int index = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.used[i])
+                res[index++] = this.keys[i];
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(this.toArray());
+    }
+}
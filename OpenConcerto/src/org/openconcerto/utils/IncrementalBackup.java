@@ -0,0 +1,555 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils;
+
+import org.openconcerto.utils.sync.HashWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * An incremental backup to a local directory. Contrary to {@link Backup} files aren't mirrored :
+ * their content is stored once in <code>objects/</code>, named after its SHA-256, so identical
+ * documents in different folders or in different backups take no more space. Each backup writes a
+ * manifest in <code>snapshots/</code> listing the path, size, date and hash of every file. A file
+ * whose size and date are the same as in the previous manifest isn't read at all. Files are
+ * hashed and copied in parallel, and {@link #restore(String, File)} checks the hash of each
+ * restored file.
+ * 
+ * <pre>
+ * java org.openconcerto.utils.IncrementalBackup backup destDir dir...
+ * java org.openconcerto.utils.IncrementalBackup restore destDir snapshot|latest restoreDir
+ * java org.openconcerto.utils.IncrementalBackup verify destDir [snapshot]
+ * java org.openconcerto.utils.IncrementalBackup purge destDir snapshotsToKeep
+ * </pre>
+ * 
+ * @see #applyTo(File)
+ * @see #close()
+ */
+public class IncrementalBackup {
+
+    private static final String OBJECTS_NAME = "objects";
+    private static final String SNAPSHOTS_NAME = "snapshots";
+    private static final String MANIFEST_EXT = ".manifest";
+    private static final String HEADER = "# OpenConcerto backup 1 ";
+    private static final String DIR_HASH = "-";
+    // the date of a file modified recently can stay the same after another modification
+    private static final long RACY_DELAY = 2000;
+
+    private static final class Entry {
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+
+        Entry(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        final boolean isDirectory() {
+            return this.hash.equals(DIR_HASH);
+        }
+    }
+
+    private static final class Manifest {
+        private final long start;
+        private final SortedMap<String, Entry> entries;
+
+        Manifest(long start, SortedMap<String, Entry> entries) {
+            this.start = start;
+            this.entries = entries;
+        }
+    }
+
+    private final File dest;
+    private final File objectsDir;
+    private final File snapshotsDir;
+    private final long start;
+    private final Manifest previous;
+    private final Map<String, Entry> current;
+    private final AtomicInteger readCount, unchangedCount, dedupCount;
+    private final AtomicLong copiedBytes;
+    private ExecutorService exec;
+
+    /**
+     * Create a new backup, the previous manifest being loaded to find unchanged files.
+     * 
+     * @param dest the backup directory.
+     * @throws IOException if <code>dest</code> cannot be created or the previous manifest read.
+     */
+    public IncrementalBackup(final File dest) throws IOException {
+        this.dest = FileUtils.mkdir_p(dest);
+        this.objectsDir = FileUtils.mkdir_p(new File(dest, OBJECTS_NAME));
+        this.snapshotsDir = FileUtils.mkdir_p(new File(dest, SNAPSHOTS_NAME));
+        this.start = System.currentTimeMillis();
+        final List<String> snapshots = this.getSnapshots();
+        this.previous = snapshots.isEmpty() ? null : this.readManifest(snapshots.get(snapshots.size() - 1));
+        this.current = new ConcurrentHashMap<String, Entry>();
+        this.readCount = new AtomicInteger();
+        this.unchangedCount = new AtomicInteger();
+        this.dedupCount = new AtomicInteger();
+        this.copiedBytes = new AtomicLong();
+        this.exec = null;
+    }
+
+    public final File getDestination() {
+        return this.dest;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (this.exec == null) {
+            // disks are faster with a few concurrent requests, and hashing uses the CPU
+            final int count = Math.max(2, Runtime.getRuntime().availableProcessors());
+            this.exec = new ThreadPoolExecutor(count, count, 5L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(IncrementalBackup.class.getSimpleName() + " ", true));
+            ((ThreadPoolExecutor) this.exec).allowCoreThreadTimeOut(true);
+        }
+        return this.exec;
+    }
+
+    // ** backup
+
+    /**
+     * Add a directory to this backup. Its files are stored under its name, e.g.
+     * <code>/home/Documents/a.pdf</code> is stored as <code>Documents/a.pdf</code>.
+     * 
+     * @param dir the directory to save.
+     * @return the number of errors.
+     */
+    public int applyTo(final File dir) {
+        Backup.getLogger().log(Level.INFO, "Incremental backup from " + dir + " to " + this.dest);
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        int failed = this.applyTo(dir, dir, futures);
+        for (final Future<Boolean> f : futures) {
+            if (!get(f))
+                failed++;
+        }
+        return failed;
+    }
+
+    private int applyTo(final File origine, final File dir, final List<Future<Boolean>> futures) {
+        final File[] list = dir.listFiles();
+        if (list == null) {
+            Backup.getLogger().log(Level.SEVERE, "Unable to list " + dir);
+            return 1;
+        }
+        this.current.put(getPath(origine, dir), new Entry(DIR_HASH, 0, dir.lastModified()));
+        int failed = 0;
+        for (final File f : list) {
+            if (f.isDirectory()) {
+                failed += this.applyTo(origine, f, futures);
+            } else {
+                final String path = getPath(origine, f);
+                final long size = f.length();
+                final long lastModified = f.lastModified();
+                final Entry prev = this.previous == null ? null : this.previous.entries.get(path);
+                if (prev != null && !prev.isDirectory() && prev.size == size && prev.lastModified == lastModified && lastModified < this.previous.start - RACY_DELAY
+                        && this.getObject(prev.hash).exists()) {
+                    this.current.put(path, prev);
+                    this.unchangedCount.incrementAndGet();
+                } else {
+                    futures.add(this.getExecutor().submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return store(f, path, size, lastModified);
+                        }
+                    }));
+                }
+            }
+        }
+        return failed;
+    }
+
+    // same path as Backup.getFile()
+    private static String getPath(final File origine, final File f) {
+        final File base = (origine.getParentFile() == null) ? origine : origine.getParentFile();
+        return base.toURI().relativize(f.toURI()).getPath();
+    }
+
+    private File getObject(final String hash) {
+        // avoid too many files in one directory
+        return new File(new File(this.objectsDir, hash.substring(0, 2)), hash);
+    }
+
+    // copy and hash in one pass, then discard the copy if the content is already stored
+    private boolean store(final File f, final String path, final long size, final long lastModified) {
+        this.readCount.incrementAndGet();
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("object", ".tmp", this.objectsDir);
+            final MessageDigest digest = HashWriter.createDigest("SHA-256");
+            final long copied = copy(f, tmp, digest);
+            final String hash = toHex(digest.digest());
+            final File obj = this.getObject(hash);
+            if (obj.exists()) {
+                this.dedupCount.incrementAndGet();
+            } else {
+                obj.getParentFile().mkdirs();
+                // another thread might have stored the same content
+                if (!tmp.renameTo(obj) && !obj.exists())
+                    throw new IOException("cannot rename " + tmp + " to " + obj);
+                this.copiedBytes.addAndGet(copied);
+            }
+            // if the file changed during the copy, make sure it will be read next time
+            final boolean changed = copied != size || f.lastModified() != lastModified;
+            this.current.put(path, new Entry(hash, copied, changed ? 0 : lastModified));
+            return true;
+        } catch (IOException e) {
+            Backup.getLogger().log(Level.SEVERE, "Copy Failed for file : " + f, e);
+            return false;
+        } finally {
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    static private long copy(final File src, final File dest, final MessageDigest digest) throws IOException {
+        final FileInputStream in = new FileInputStream(src);
+        try {
+            final OutputStream out = new FileOutputStream(dest);
+            try {
+                final byte[] buffer = new byte[Backup.bufferSize];
+                long res = 0;
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                    digest.update(buffer, 0, count);
+                    res += count;
+                }
+                return res;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the manifest of this backup. Only files that were successfully stored are in it.
+     * 
+     * @return the name of the new snapshot.
+     * @throws IOException if the manifest cannot be written.
+     */
+    public String close() throws IOException {
+        synchronized (this) {
+            if (this.exec != null) {
+                this.exec.shutdown();
+                this.exec = null;
+            }
+        }
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(this.start));
+        // multiple backups in the same second
+        int i = 1;
+        while (new File(this.snapshotsDir, name + MANIFEST_EXT).exists())
+            name = name.substring(0, 15) + "-" + i++;
+        final File f = new File(this.snapshotsDir, name + MANIFEST_EXT);
+        final File tmp = new File(this.snapshotsDir, name + MANIFEST_EXT + ".tmp");
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            out.write(HEADER + this.start + "\n");
+            for (final Map.Entry<String, Entry> e : new TreeMap<String, Entry>(this.current).entrySet()) {
+                final Entry entry = e.getValue();
+                out.write(entry.hash + "\t" + entry.size + "\t" + entry.lastModified + "\t" + e.getKey() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f))
+            throw new IOException("cannot rename " + tmp + " to " + f);
+        Backup.getLogger().log(Level.INFO,
+                "Snapshot " + name + " : " + this.current.size() + " entries, " + this.unchangedCount.get() + " unchanged files, " + this.readCount.get() + " files read of which "
+                        + this.dedupCount.get() + " were already stored, " + this.copiedBytes.get() / 1024 + " KB copied");
+        return name;
+    }
+
+    // ** snapshots
+
+    /**
+     * The snapshots of this backup.
+     * 
+     * @return the names of the snapshots, oldest first.
+     */
+    public final List<String> getSnapshots() {
+        final List<String> res = new ArrayList<String>();
+        final String[] names = this.snapshotsDir.list();
+        if (names != null) {
+            for (final String name : names) {
+                if (name.endsWith(MANIFEST_EXT))
+                    res.add(name.substring(0, name.length() - MANIFEST_EXT.length()));
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    private Manifest readManifest(final String snapshot) throws IOException {
+        final File f = new File(this.snapshotsDir, snapshot + MANIFEST_EXT);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            final String header = in.readLine();
+            if (header == null || !header.startsWith(HEADER))
+                throw new IOException("Not a manifest : " + f);
+            final long start = Long.parseLong(header.substring(HEADER.length()));
+            final SortedMap<String, Entry> entries = new TreeMap<String, Entry>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] parts = line.split("\t", 4);
+                if (parts.length != 4)
+                    throw new IOException("Invalid line in " + f + " : " + line);
+                entries.put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+            }
+            return new Manifest(start, entries);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid manifest : " + f, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private String resolve(final String snapshot) {
+        if (!"latest".equals(snapshot))
+            return snapshot;
+        final List<String> snapshots = this.getSnapshots();
+        if (snapshots.isEmpty())
+            throw new IllegalStateException("No snapshot in " + this.dest);
+        return snapshots.get(snapshots.size() - 1);
+    }
+
+    /**
+     * Restore a snapshot. Each file is checked against the hash in the manifest, a file that
+     * doesn't match is deleted.
+     * 
+     * @param snapshot the name of the snapshot, or "latest".
+     * @param dir where to restore, e.g. with <code>/tmp</code> the backup of
+     *        <code>/home/Documents</code> is restored to <code>/tmp/Documents</code>.
+     * @return the number of errors.
+     * @throws IOException if the manifest cannot be read or <code>dir</code> created.
+     */
+    public int restore(final String snapshot, final File dir) throws IOException {
+        final Manifest manifest = this.readManifest(this.resolve(snapshot));
+        FileUtils.mkdir_p(dir);
+        int failed = 0;
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        final Map<File, Long> dirs = new HashMap<File, Long>();
+        for (final Map.Entry<String, Entry> e : manifest.entries.entrySet()) {
+            final Entry entry = e.getValue();
+            if (Arrays.asList(e.getKey().split("/")).contains("..")) {
+                Backup.getLogger().log(Level.SEVERE, "Invalid path : " + e.getKey());
+                failed++;
+                continue;
+            }
+            final File f = new File(dir, e.getKey());
+            if (entry.isDirectory()) {
+                // manifest is sorted so parents are created first
+                if (!f.isDirectory() && !f.mkdirs()) {
+                    Backup.getLogger().log(Level.SEVERE, "Unable to create " + f);
+                    failed++;
+                }
+                dirs.put(f, entry.lastModified);
+            } else {
+                futures.add(this.getExecutor().submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return restore(entry, f);
+                    }
+                }));
+            }
+        }
+        for (final Future<Boolean> f : futures) {
+            if (!get(f))
+                failed++;
+        }
+        // after the files since creating them changes the date of their directory
+        for (final Map.Entry<File, Long> e : dirs.entrySet()) {
+            e.getKey().setLastModified(e.getValue());
+        }
+        return failed;
+    }
+
+    private boolean restore(final Entry entry, final File f) {
+        try {
+            final MessageDigest digest = HashWriter.createDigest("SHA-256");
+            copy(this.getObject(entry.hash), f, digest);
+            if (!toHex(digest.digest()).equals(entry.hash)) {
+                Backup.getLogger().log(Level.SEVERE, "Corrupted backup for " + f);
+                f.delete();
+                return false;
+            }
+            if (entry.lastModified > 0)
+                f.setLastModified(entry.lastModified);
+            return true;
+        } catch (IOException e) {
+            Backup.getLogger().log(Level.SEVERE, "Unable to restore " + f, e);
+            return false;
+        }
+    }
+
+    /**
+     * Check that the content of each file of a snapshot is present and intact.
+     * 
+     * @param snapshot the name of the snapshot, or "latest".
+     * @return the number of missing or corrupted files.
+     * @throws IOException if the manifest cannot be read.
+     */
+    public int verify(final String snapshot) throws IOException {
+        final Manifest manifest = this.readManifest(this.resolve(snapshot));
+        final Set<String> hashes = new HashSet<String>();
+        for (final Entry entry : manifest.entries.values()) {
+            if (!entry.isDirectory())
+                hashes.add(entry.hash);
+        }
+        final Map<String, Future<Boolean>> futures = new HashMap<String, Future<Boolean>>();
+        for (final String hash : hashes) {
+            futures.put(hash, this.getExecutor().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        return toHex(new HashWriter(getObject(hash)).writeHash(null, null)).equals(hash);
+                    } catch (IOException e) {
+                        return false;
+                    }
+                }
+            }));
+        }
+        final Set<String> corrupted = new HashSet<String>();
+        for (final Map.Entry<String, Future<Boolean>> e : futures.entrySet()) {
+            if (!get(e.getValue()))
+                corrupted.add(e.getKey());
+        }
+        int failed = 0;
+        for (final Map.Entry<String, Entry> e : manifest.entries.entrySet()) {
+            if (corrupted.contains(e.getValue().hash)) {
+                Backup.getLogger().log(Level.SEVERE, "Missing or corrupted backup for " + e.getKey());
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Delete the oldest snapshots and the contents no longer referenced.
+     * 
+     * @param keep the number of snapshots to keep.
+     * @return the number of deleted contents.
+     * @throws IOException if a manifest cannot be read.
+     */
+    public int purge(final int keep) throws IOException {
+        if (keep < 1)
+            throw new IllegalArgumentException("At least one snapshot must be kept");
+        final List<String> snapshots = this.getSnapshots();
+        for (final String s : snapshots.subList(0, Math.max(0, snapshots.size() - keep))) {
+            FileUtils.rm(new File(this.snapshotsDir, s + MANIFEST_EXT));
+        }
+        final Set<String> used = new HashSet<String>();
+        for (final String s : this.getSnapshots()) {
+            for (final Entry entry : this.readManifest(s).entries.values())
+                used.add(entry.hash);
+        }
+        // the contents being stored by this instance
+        for (final Entry entry : this.current.values())
+            used.add(entry.hash);
+        int res = 0;
+        final File[] subDirs = this.objectsDir.listFiles();
+        if (subDirs != null) {
+            for (final File subDir : subDirs) {
+                final File[] objects = subDir.listFiles();
+                if (objects != null) {
+                    for (final File obj : objects) {
+                        if (!used.contains(obj.getName()) && obj.delete())
+                            res++;
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    static private boolean get(final Future<Boolean> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new RTInterruptedException(e);
+        } catch (ExecutionException e) {
+            Backup.getLogger().log(Level.SEVERE, "Task failed", e.getCause());
+            return false;
+        }
+    }
+
+    private static String toHex(final byte[] hash) {
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (final byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage : backup|restore|verify|purge destDir ...");
+            System.exit(2);
+        }
+        final IncrementalBackup backup = new IncrementalBackup(new File(args[1]));
+        final String action = args[0];
+        int failed = 0;
+        if (action.equals("backup")) {
+            for (int i = 2; i < args.length; i++)
+                failed += backup.applyTo(new File(args[i]));
+            System.out.println("Snapshot " + backup.close());
+        } else if (action.equals("restore")) {
+            failed = backup.restore(args[2], new File(args[3]));
+        } else if (action.equals("verify")) {
+            failed = backup.verify(args.length > 2 ? args[2] : "latest");
+        } else if (action.equals("purge")) {
+            System.out.println(backup.purge(Integer.parseInt(args[2])) + " contents deleted");
+        } else {
+            throw new IllegalArgumentException("Unknown action : " + action);
+        }
+        System.out.println(failed + " error(s)");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
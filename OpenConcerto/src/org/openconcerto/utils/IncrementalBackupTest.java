@@ -0,0 +1,176 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils;
+
+import org.openconcerto.utils.sync.HashWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Back up, verify and restore a directory tree with {@link IncrementalBackup} : identical files
+ * are stored once, restored trees are identical to the saved ones, purge keeps the contents of the
+ * remaining snapshots, and a corrupted content is detected by verify and restore.
+ * 
+ * <pre>
+ * java org.openconcerto.utils.IncrementalBackupTest
+ * </pre>
+ */
+public class IncrementalBackupTest {
+
+    public static void main(String[] args) throws Exception {
+        final File base = FileUtils.createTempDir("incrementalBackupTest");
+        try {
+            final File docs = new File(base, "Documents");
+            createTree(docs, new Random(1), 2);
+            // same content in another folder
+            FileUtils.copyFile(new File(docs, "f0.bin"), new File(new File(docs, "d0"), "copy.bin"));
+            final File dest = new File(base, "backup");
+
+            IncrementalBackup backup = new IncrementalBackup(dest);
+            check(backup.applyTo(docs) == 0, "backup failed");
+            final String first = backup.close();
+            check(backup.verify(first) == 0, "verify failed");
+            check(countObjects(dest) == countFiles(docs) - 1, countObjects(dest) + " contents for " + countFiles(docs) + " files with a duplicate");
+            restore(backup, first, new File(base, "restore1"), docs);
+
+            // the second backup only adds the modified contents
+            modify(docs, new Random(2));
+            final int before = countObjects(dest);
+            backup = new IncrementalBackup(dest);
+            check(backup.applyTo(docs) == 0, "second backup failed");
+            final String second = backup.close();
+            check(!second.equals(first), "same snapshot name");
+            check(backup.getSnapshots().equals(Arrays.asList(first, second)), "snapshots : " + backup.getSnapshots());
+            check(countObjects(dest) > before && countObjects(dest) < before + countFiles(docs), (countObjects(dest) - before) + " new contents");
+            restore(backup, "latest", new File(base, "restore2"), docs);
+
+            // the first snapshot is still complete
+            final File restore1 = new File(base, "restore1bis");
+            check(backup.restore(first, restore1) == 0, "restore of the first snapshot failed");
+            checkSame(new File(new File(base, "restore1"), docs.getName()), new File(restore1, docs.getName()));
+
+            // only the contents of the remaining snapshot are kept
+            check(backup.purge(1) > 0, "nothing purged");
+            check(backup.getSnapshots().equals(Arrays.asList(second)), "snapshots after purge : " + backup.getSnapshots());
+            check(backup.verify(second) == 0, "verify after purge failed");
+            restore(backup, second, new File(base, "restore3"), docs);
+
+            // corruption
+            final File obj = getAnObject(dest);
+            final RandomAccessFile out = new RandomAccessFile(obj, "rw");
+            try {
+                out.write(out.read() + 1);
+            } finally {
+                out.close();
+            }
+            check(backup.verify(second) > 0, "corruption not detected by verify");
+            check(backup.restore(second, new File(base, "restore4")) > 0, "corruption not detected by restore");
+
+            System.out.println("OK");
+        } finally {
+            FileUtils.rm_R(base);
+        }
+    }
+
+    static private void check(final boolean b, final String msg) {
+        if (!b)
+            throw new IllegalStateException(msg);
+    }
+
+    static private void restore(final IncrementalBackup backup, final String snapshot, final File dir, final File expected) throws Exception {
+        check(backup.restore(snapshot, dir) == 0, "restore of " + snapshot + " failed");
+        checkSame(expected, new File(dir, expected.getName()));
+    }
+
+    static private void createTree(final File dir, final Random r, final int depth) throws IOException {
+        FileUtils.mkdir_p(dir);
+        for (int i = 0; i < 8; i++) {
+            final byte[] b = new byte[r.nextInt(10) == 0 ? 100000 + r.nextInt(200000) : r.nextInt(5000)];
+            r.nextBytes(b);
+            final File f = new File(dir, "f" + i + ".bin");
+            final FileOutputStream out = new FileOutputStream(f);
+            try {
+                out.write(b);
+            } finally {
+                out.close();
+            }
+            // old enough to be skipped by the next backup
+            f.setLastModified(System.currentTimeMillis() - 3600 * 1000);
+        }
+        if (depth > 0) {
+            for (int i = 0; i < 3; i++)
+                createTree(new File(dir, "d" + i), r, depth - 1);
+        }
+    }
+
+    // change a byte in one file out of 4, keeping at least one unchanged file per directory
+    static private void modify(final File dir, final Random r) throws IOException {
+        for (final File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                modify(f, r);
+            } else if (r.nextInt(4) == 0 && !f.getName().equals("f0.bin")) {
+                final RandomAccessFile out = new RandomAccessFile(f, "rw");
+                try {
+                    out.seek(out.length() / 2);
+                    out.write(r.nextInt());
+                } finally {
+                    out.close();
+                }
+                // the size doesn't change, make sure the date does
+                f.setLastModified(System.currentTimeMillis() - 60000);
+            }
+        }
+    }
+
+    static private int countFiles(final File dir) {
+        int res = 0;
+        for (final File f : dir.listFiles())
+            res += f.isDirectory() ? countFiles(f) : 1;
+        return res;
+    }
+
+    static private int countObjects(final File dest) {
+        return countFiles(new File(dest, "objects"));
+    }
+
+    static private File getAnObject(final File dest) {
+        for (final File subDir : new File(dest, "objects").listFiles()) {
+            final File[] objects = subDir.listFiles();
+            if (objects != null && objects.length > 0)
+                return objects[0];
+        }
+        throw new IllegalStateException("No content in " + dest);
+    }
+
+    static private void checkSame(final File expected, final File actual) throws Exception {
+        final Set<String> names = new HashSet<String>(Arrays.asList(actual.list()));
+        for (final File f : expected.listFiles()) {
+            final File other = new File(actual, f.getName());
+            if (f.isDirectory())
+                checkSame(f, other);
+            else if (!other.isFile() || !Arrays.equals(HashWriter.getHash(f), HashWriter.getHash(other)))
+                throw new IllegalStateException("Different content : " + other);
+            names.remove(f.getName());
+        }
+        if (!names.isEmpty())
+            throw new IllegalStateException("Unexpected files in " + actual + " : " + names);
+    }
+}
@@ -13,21 +13,61 @@
  
  package org.openconcerto.utils;
 
+import org.openconcerto.utils.cc.IFactory;
+
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 public class ListMap<K, V> extends CollectionMap2<K, List<V>, V> {
 
+    public static <K, V> ListMap<K, V> singleton(K key, V value) {
+        final ListMap<K, V> res = new ListMap<K, V>(1);
+        res.add(key, value);
+        return res;
+    }
+
+    /**
+     * Create a map whose lists are created by the passed factory, e.g. to use {@link java.util.LinkedList}.
+     * Contrary to {@link CollectionMap} there's no reflection nor cloning for each new key.
+     * 
+     * @param <K> type of keys.
+     * @param <V> type of items.
+     * @param initialCapacity the initial capacity.
+     * @param factory creates empty lists.
+     * @return a new map.
+     */
+    public static <K, V> ListMap<K, V> create(final int initialCapacity, final IFactory<? extends List<V>> factory) {
+        return new ListMap<K, V>(initialCapacity) {
+            @Override
+            protected List<V> createCollection(Collection<? extends V> v) {
+                final List<V> res = factory.createChecked();
+                res.addAll(v);
+                return res;
+            }
+        };
+    }
+
     public ListMap() {
         super();
     }
 
+    public ListMap(int initialCapacity) {
+        super(initialCapacity);
+    }
+
     public ListMap(Map<? extends K, ? extends Collection<? extends V>> m) {
         super(m);
     }
 
+    @Override
+    public List<V> getReadOnly(Object key) {
+        final List<V> res = this.get(key);
+        return res == null ? Collections.<V> emptyList() : Collections.unmodifiableList(res);
+    }
+
     @Override
     protected List<V> createCollection(Collection<? extends V> v) {
         return new ArrayList<V>(v);
@@ -0,0 +1,208 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A multimap from int to lists, e.g. rows grouped by a foreign key, without boxing the keys. Same
+ * hashing as {@link HashMapOfInt}. Not thread-safe.
+ * 
+ * @param <V> type of items.
+ * @see ListMap
+ */
+public class ListMapOfInt<V> {
+
+    private int[] keys;
+    private List<V>[] values;
+    private int mask;
+    private int size;
+
+    public ListMapOfInt() {
+        this(4);
+    }
+
+    /**
+     * Create a new map.
+     * 
+     * @param expectedSize the number of keys which won't need a resize.
+     */
+    public ListMapOfInt(final int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size : " + expectedSize);
+        this.allocate(HashMapOfInt.tableSize(expectedSize));
+        this.size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(final int capacity) {
+        this.keys = new int[capacity];
+        // a null list means an empty slot
+        this.values = (List<V>[]) new List<?>[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * The number of keys.
+     * 
+     * @return the number of keys.
+     */
+    public final int size() {
+        return this.size;
+    }
+
+    public final boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // the slot of key, or -1
+    private int getSlot(final int key) {
+        int i = HashMapOfInt.hash(key) & this.mask;
+        while (this.values[i] != null) {
+            if (this.keys[i] == key)
+                return i;
+            i = (i + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    public final boolean containsKey(final int key) {
+        return this.getSlot(key) >= 0;
+    }
+
+    /**
+     * A read-only view of the list mapped to the passed key. Nothing is created or copied, so this
+     * is the method to use to iterate.
+     * 
+     * @param key the key.
+     * @return an unmodifiable view of the mapped list, empty if <code>key</code> isn't mapped.
+     */
+    public final List<V> getReadOnly(final int key) {
+        final int slot = this.getSlot(key);
+        return slot < 0 ? Collections.<V> emptyList() : Collections.unmodifiableList(this.values[slot]);
+    }
+
+    // the list of key, created if necessary
+    private List<V> getList(final int key, final int expectedSize) {
+        int i = HashMapOfInt.hash(key) & this.mask;
+        while (this.values[i] != null) {
+            if (this.keys[i] == key)
+                return this.values[i];
+            i = (i + 1) & this.mask;
+        }
+        final List<V> res = new ArrayList<V>(Math.max(4, expectedSize));
+        this.keys[i] = key;
+        this.values[i] = res;
+        if (++this.size * 2 > this.keys.length)
+            this.resize(this.keys.length * 2);
+        return res;
+    }
+
+    /**
+     * Add an item at the end of the list of a key.
+     * 
+     * @param key the key.
+     * @param v the item to add.
+     */
+    public final void add(final int key, final V v) {
+        this.getList(key, 1).add(v);
+    }
+
+    public final void addAll(final int key, final Collection<? extends V> c) {
+        if (!c.isEmpty())
+            this.getList(key, c.size()).addAll(c);
+    }
+
+    /**
+     * Remove a key.
+     * 
+     * @param key the key.
+     * @return the list that was mapped to <code>key</code>, <code>null</code> if none.
+     */
+    public final List<V> remove(final int key) {
+        int gap = this.getSlot(key);
+        if (gap < 0)
+            return null;
+        final List<V> res = this.values[gap];
+        // move back the entries that would no longer be reachable
+        int i = gap;
+        while (true) {
+            i = (i + 1) & this.mask;
+            if (this.values[i] == null)
+                break;
+            final int home = HashMapOfInt.hash(this.keys[i]) & this.mask;
+            if (((gap - home) & this.mask) < ((i - home) & this.mask)) {
+                this.keys[gap] = this.keys[i];
+                this.values[gap] = this.values[i];
+                gap = i;
+            }
+        }
+        this.values[gap] = null;
+        this.size--;
+        return res;
+    }
+
+    public final void clear() {
+        Arrays.fill(this.values, null);
+        this.size = 0;
+    }
+
+    private void resize(final int capacity) {
+        final int[] oldKeys = this.keys;
+        final List<V>[] oldValues = this.values;
+        this.allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = HashMapOfInt.hash(oldKeys[j]) & this.mask;
+                while (this.values[i] != null)
+                    i = (i + 1) & this.mask;
+                this.keys[i] = oldKeys[j];
+                this.values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * The keys of this map.
+     * 
+     * @return a new array with the keys, in no particular order.
+     */
+    public final int[] keys() {
+        final int[] res = new int[this.size];
+        int index = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.values[i] != null)
+                res[index++] = this.keys[i];
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(this.size * 16 + 2);
+        sb.append('{');
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.values[i] != null) {
+                if (sb.length() > 1)
+                    sb.append(", ");
+                sb.append(this.keys[i]).append('=').append(this.values[i]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A zip held in memory, indexed by its central directory. Unlike {@link java.util.zip.ZipFile}
+ * the compressed bytes of each entry can be accessed, so that they can be copied to another zip
+ * without inflating and deflating them (see {@link RawZipWriter#zipRaw(String, Entry)}), and
+ * unlike {@link java.util.zip.ZipInputStream} nothing is inflated until asked for. Instances are
+ * immutable and thus thread-safe.
+ * <p>
+ * Zip64, encrypted entries and compression methods other than stored and deflated aren't
+ * supported : a {@link ZipException} is thrown by the constructor, the caller can then fall back
+ * on {@link ZippedFilesProcessor}.
+ * </p>
+ */
+public final class RawZipFile {
+
+    static final int LOCAL_SIG = 0x04034b50;
+    static final int CENTRAL_SIG = 0x02014b50;
+    static final int END_SIG = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+    static final int FLAG_ENCRYPTED = 1;
+    static final int FLAG_UTF8 = 1 << 11;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int getShort(final byte[] b, final int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    static final long getInt(final byte[] b, final int off) {
+        return (getShort(b, off) | (long) getShort(b, off + 2) << 16) & 0xffffffffL;
+    }
+
+    /**
+     * Read a zip file.
+     * 
+     * @param f the zip.
+     * @return the indexed zip.
+     * @throws ZipException if <code>f</code> isn't a supported zip.
+     * @throws IOException if <code>f</code> couldn't be read.
+     */
+    public static RawZipFile read(final File f) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            final long length = raf.length();
+            if (length > Integer.MAX_VALUE)
+                throw new ZipException("Too large : " + f);
+            final byte[] bytes = new byte[(int) length];
+            raf.readFully(bytes);
+            return new RawZipFile(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The content of a zip entry.
+     */
+    public static final class Entry {
+        private final RawZipFile zip;
+        private final String name;
+        private final int method;
+        private final long dosTime;
+        private final long crc;
+        private final int compressedSize;
+        private final int size;
+        private final int dataOffset;
+
+        Entry(RawZipFile zip, String name, int method, long dosTime, long crc, int compressedSize, int size, int dataOffset) {
+            this.zip = zip;
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.dataOffset = dataOffset;
+        }
+
+        public final String getName() {
+            return this.name;
+        }
+
+        /**
+         * The compression method.
+         * 
+         * @return either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+         */
+        public final int getMethod() {
+            return this.method;
+        }
+
+        public final boolean isCompressed() {
+            return this.method == ZipEntry.DEFLATED;
+        }
+
+        public final boolean isDirectory() {
+            return this.name.endsWith("/");
+        }
+
+        /**
+         * The modification time and date in MS-DOS format.
+         * 
+         * @return the DOS time.
+         */
+        final long getDosTime() {
+            return this.dosTime;
+        }
+
+        public final long getCrc() {
+            return this.crc;
+        }
+
+        public final int getCompressedSize() {
+            return this.compressedSize;
+        }
+
+        public final int getSize() {
+            return this.size;
+        }
+
+        /**
+         * Write the bytes as they are stored in the zip, i.e. without inflating them.
+         * 
+         * @param out where to write.
+         * @throws IOException if an error occurs while writing.
+         */
+        public final void writeRaw(final OutputStream out) throws IOException {
+            out.write(this.zip.bytes, this.dataOffset, this.compressedSize);
+        }
+
+        /**
+         * Inflate the entry.
+         * 
+         * @return the uncompressed bytes.
+         * @throws ZipException if the data is corrupted.
+         */
+        public final byte[] getBytes() throws ZipException {
+            final byte[] res;
+            if (this.method == ZipEntry.STORED) {
+                res = new byte[this.size];
+                System.arraycopy(this.zip.bytes, this.dataOffset, res, 0, this.size);
+            } else {
+                res = new byte[this.size];
+                final Inflater inf = new Inflater(true);
+                try {
+                    // nowrap needs an extra byte, there's always at least the central directory
+                    // after the data
+                    inf.setInput(this.zip.bytes, this.dataOffset, this.compressedSize + 1);
+                    int count = 0;
+                    while (count < this.size && !inf.finished()) {
+                        final int read = inf.inflate(res, count, this.size - count);
+                        if (read == 0 && (inf.needsInput() || inf.needsDictionary()))
+                            throw new ZipException("Truncated data for " + this.name);
+                        count += read;
+                    }
+                    if (count != this.size)
+                        throw new ZipException("Wrong size for " + this.name + " : " + count + " != " + this.size);
+                } catch (DataFormatException e) {
+                    final ZipException exn = new ZipException("Invalid data for " + this.name);
+                    exn.initCause(e);
+                    throw exn;
+                } finally {
+                    inf.end();
+                }
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(res);
+            if (crc.getValue() != this.crc)
+                throw new ZipException("Wrong CRC for " + this.name);
+            return res;
+        }
+
+        public final InputStream getInputStream() throws ZipException {
+            return new ByteArrayInputStream(this.getBytes());
+        }
+
+        @Override
+        public String toString() {
+            return this.getClass().getSimpleName() + " " + this.getName() + " " + this.getCompressedSize() + "/" + this.getSize();
+        }
+    }
+
+    private final byte[] bytes;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Index the passed zip. <code>bytes</code> is not copied and thus must not be modified
+     * afterwards.
+     * 
+     * @param bytes the whole zip.
+     * @throws ZipException if <code>bytes</code> isn't a supported zip.
+     */
+    public RawZipFile(final byte[] bytes) throws ZipException {
+        this.bytes = bytes;
+        final int end = findEnd(bytes);
+        final int count = getShort(bytes, end + 10);
+        if (getShort(bytes, end + 8) != count || getShort(bytes, end + 4) != 0)
+            throw new ZipException("Multi-disk zip");
+        final long cdOffset = getInt(bytes, end + 16);
+        if (count == 0xffff || cdOffset == 0xffffffffL)
+            throw new ZipException("Zip64 unsupported");
+        if (cdOffset + getInt(bytes, end + 12) > end)
+            throw new ZipException("Invalid central directory offset");
+
+        final Map<String, Entry> m = new LinkedHashMap<String, Entry>(count * 2);
+        int p = (int) cdOffset;
+        for (int i = 0; i < count; i++) {
+            if (p + CENTRAL_HEADER_SIZE > end || getInt(bytes, p) != CENTRAL_SIG)
+                throw new ZipException("Invalid central directory at " + p);
+            final int flags = getShort(bytes, p + 8);
+            if ((flags & FLAG_ENCRYPTED) != 0)
+                throw new ZipException("Encrypted entry at " + p);
+            final int method = getShort(bytes, p + 10);
+            if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+                throw new ZipException("Unsupported compression method : " + method);
+            final long dosTime = getInt(bytes, p + 12);
+            final long crc = getInt(bytes, p + 16);
+            final long compressedSize = getInt(bytes, p + 20);
+            final long size = getInt(bytes, p + 24);
+            final int nameLength = getShort(bytes, p + 28);
+            final int extraLength = getShort(bytes, p + 30);
+            final int commentLength = getShort(bytes, p + 32);
+            final long localOffset = getInt(bytes, p + 42);
+            if (compressedSize > Integer.MAX_VALUE || size > Integer.MAX_VALUE || localOffset + LOCAL_HEADER_SIZE > cdOffset)
+                throw new ZipException("Invalid sizes at " + p);
+            // like ZipInputStream, always use UTF-8
+            final String name = new String(bytes, p + CENTRAL_HEADER_SIZE, nameLength, UTF8);
+
+            // the local extra field can differ from the central one
+            final int local = (int) localOffset;
+            if (getInt(bytes, local) != LOCAL_SIG)
+                throw new ZipException("Invalid local header for " + name);
+            final int dataOffset = local + LOCAL_HEADER_SIZE + getShort(bytes, local + 26) + getShort(bytes, local + 28);
+            if (dataOffset + compressedSize > cdOffset)
+                throw new ZipException("Invalid data offset for " + name);
+            m.put(name, new Entry(this, name, method, dosTime, crc, (int) compressedSize, (int) size, dataOffset));
+
+            p += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        this.entries = Collections.unmodifiableMap(m);
+    }
+
+    private static int findEnd(final byte[] bytes) throws ZipException {
+        // the end record is followed by a comment of at most 64KB
+        final int min = Math.max(0, bytes.length - END_SIZE - 0xffff);
+        for (int i = bytes.length - END_SIZE; i >= min; i--) {
+            if (getInt(bytes, i) == END_SIG && i + END_SIZE + getShort(bytes, i + 20) == bytes.length)
+                return i;
+        }
+        throw new ZipException("No end of central directory record");
+    }
+
+    /**
+     * The entries in central directory order.
+     * 
+     * @return all entries.
+     */
+    public final List<Entry> getEntries() {
+        return new ArrayList<Entry>(this.entries.values());
+    }
+
+    public final Entry getEntry(final String name) {
+        return this.entries.get(name);
+    }
+
+    public final int getSize() {
+        return this.bytes.length;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Write a zip, allowing to copy entries of a {@link RawZipFile} without recompressing them. Every
+ * entry is written at once with its sizes and CRC in the local header, so the output is readable
+ * by {@link java.util.zip.ZipInputStream} as well as by {@link java.util.zip.ZipFile}.
+ * 
+ * @see Zip
+ */
+public final class RawZipWriter {
+
+    private static final int VERSION = 20;
+
+    static long toDosTime(final long time) {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        final int year = cal.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return ((long) year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16 | cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5
+                | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    private static final class CentralEntry {
+        private final byte[] name;
+        private final int flags;
+        private final int method;
+        private final long dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+
+        CentralEntry(byte[] name, int flags, int method, long dosTime, long crc, long compressedSize, long size, long offset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    private final OutputStream out;
+    private final long dosTime;
+    private final List<CentralEntry> entries;
+    private final Set<String> names;
+    private final byte[] header;
+    private long written;
+    private boolean entryOpen;
+
+    public RawZipWriter(final OutputStream out) {
+        this.out = out;
+        this.dosTime = toDosTime(System.currentTimeMillis());
+        this.entries = new ArrayList<CentralEntry>();
+        this.names = new HashSet<String>();
+        this.header = new byte[RawZipFile.CENTRAL_HEADER_SIZE];
+        this.written = 0;
+        this.entryOpen = false;
+    }
+
+    private void putShort(final int off, final int v) {
+        this.header[off] = (byte) v;
+        this.header[off + 1] = (byte) (v >>> 8);
+    }
+
+    private void putInt(final int off, final long v) {
+        this.putShort(off, (int) (v & 0xffff));
+        this.putShort(off + 2, (int) ((v >>> 16) & 0xffff));
+    }
+
+    private void write(final byte[] b, final int off, final int len) throws IOException {
+        this.out.write(b, off, len);
+        this.written += len;
+    }
+
+    private void writeLocalHeader(final String name, final int method, final long dosTime, final long crc, final long compressedSize, final long size) throws IOException {
+        if (this.entryOpen)
+            throw new IllegalStateException("Previous entry not closed");
+        if (!this.names.add(name))
+            throw new ZipException("duplicate entry: " + name);
+        if (compressedSize > 0xffffffffL || size > 0xffffffffL || this.written > 0xffffffffL)
+            throw new ZipException("Zip64 unsupported");
+        final byte[] nameBytes = name.getBytes(RawZipFile.UTF8);
+        final int flags = nameBytes.length == name.length() ? 0 : RawZipFile.FLAG_UTF8;
+        this.entries.add(new CentralEntry(nameBytes, flags, method, dosTime, crc, compressedSize, size, this.written));
+
+        this.putInt(0, RawZipFile.LOCAL_SIG);
+        this.putShort(4, VERSION);
+        this.putShort(6, flags);
+        this.putShort(8, method);
+        this.putInt(10, dosTime);
+        this.putInt(14, crc);
+        this.putInt(18, compressedSize);
+        this.putInt(22, size);
+        this.putShort(26, nameBytes.length);
+        this.putShort(28, 0);
+        this.write(this.header, 0, RawZipFile.LOCAL_HEADER_SIZE);
+        this.write(nameBytes, 0, nameBytes.length);
+    }
+
+    /**
+     * Copy an entry of another zip, without inflating it.
+     * 
+     * @param name the name of the entry in this zip.
+     * @param entry the entry to copy.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void zipRaw(final String name, final RawZipFile.Entry entry) throws IOException {
+        this.writeLocalHeader(name, entry.getMethod(), entry.getDosTime(), entry.getCrc(), entry.getCompressedSize(), entry.getSize());
+        entry.writeRaw(this.out);
+        this.written += entry.getCompressedSize();
+    }
+
+    /**
+     * Add an entry.
+     * 
+     * @param name the name of the entry.
+     * @param data the content.
+     * @param compressed <code>true</code> to deflate <code>data</code>.
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void zip(final String name, final byte[] data, final boolean compressed) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        if (compressed) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                final DeflaterOutputStream deflaterOut = new DeflaterOutputStream(bytes, deflater);
+                deflaterOut.write(data);
+                deflaterOut.finish();
+            } finally {
+                deflater.end();
+            }
+            this.writeLocalHeader(name, ZipEntry.DEFLATED, this.dosTime, crc.getValue(), bytes.size(), data.length);
+            bytes.writeTo(this.out);
+            this.written += bytes.size();
+        } else {
+            this.writeLocalHeader(name, ZipEntry.STORED, this.dosTime, crc.getValue(), data.length, data.length);
+            this.write(data, 0, data.length);
+        }
+    }
+
+    /**
+     * Create a compressed entry. The data is deflated in memory and written when the returned
+     * stream is closed, no other entry can be added before that.
+     * 
+     * @param name the name of the entry.
+     * @return a stream to write the content of the entry.
+     */
+    public final OutputStream createEntry(final String name) {
+        if (this.entryOpen)
+            throw new IllegalStateException("Previous entry not closed");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final CRC32 crc = new CRC32();
+        this.entryOpen = true;
+        return new DeflaterOutputStream(bytes, deflater) {
+            private long size = 0;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                this.write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                super.write(b, off, len);
+                crc.update(b, off, len);
+                this.size += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (this.closed)
+                    return;
+                this.closed = true;
+                try {
+                    this.finish();
+                } finally {
+                    deflater.end();
+                }
+                RawZipWriter.this.entryOpen = false;
+                writeLocalHeader(name, ZipEntry.DEFLATED, RawZipWriter.this.dosTime, crc.getValue(), bytes.size(), this.size);
+                bytes.writeTo(RawZipWriter.this.out);
+                RawZipWriter.this.written += bytes.size();
+            }
+        };
+    }
+
+    /**
+     * Write the central directory and close the underlying stream.
+     * 
+     * @throws IOException if an error occurs while writing.
+     */
+    public final void close() throws IOException {
+        if (this.entryOpen)
+            throw new IllegalStateException("Last entry not closed");
+        if (this.entries.size() > 0xffff)
+            throw new ZipException("Zip64 unsupported");
+        final long cdOffset = this.written;
+        for (final CentralEntry e : this.entries) {
+            this.putInt(0, RawZipFile.CENTRAL_SIG);
+            this.putShort(4, VERSION);
+            this.putShort(6, VERSION);
+            this.putShort(8, e.flags);
+            this.putShort(10, e.method);
+            this.putInt(12, e.dosTime);
+            this.putInt(16, e.crc);
+            this.putInt(20, e.compressedSize);
+            this.putInt(24, e.size);
+            this.putShort(28, e.name.length);
+            // extra, comment, disk, attributes
+            for (int i = 30; i < 42; i++)
+                this.header[i] = 0;
+            this.putInt(42, e.offset);
+            this.write(this.header, 0, RawZipFile.CENTRAL_HEADER_SIZE);
+            this.write(e.name, 0, e.name.length);
+        }
+        final long cdSize = this.written - cdOffset;
+        if (cdOffset > 0xffffffffL)
+            throw new ZipException("Zip64 unsupported");
+        this.putInt(0, RawZipFile.END_SIG);
+        this.putShort(4, 0);
+        this.putShort(6, 0);
+        this.putShort(8, this.entries.size());
+        this.putShort(10, this.entries.size());
+        this.putInt(12, cdSize);
+        this.putInt(16, cdOffset);
+        this.putShort(20, 0);
+        this.write(this.header, 0, RawZipFile.END_SIZE);
+        this.out.close();
+    }
+}
@@ -13,13 +13,37 @@
  
  package org.openconcerto.utils;
 
+import org.openconcerto.utils.cc.IFactory;
+
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 public class SetMap<K, V> extends CollectionMap2<K, Set<V>, V> {
 
+    /**
+     * Create a map whose sets are created by the passed factory, e.g. to use identity or linked
+     * sets. Contrary to {@link CollectionMap} there's no reflection nor cloning for each new key.
+     * 
+     * @param <K> type of keys.
+     * @param <V> type of items.
+     * @param initialCapacity the initial capacity.
+     * @param factory creates empty sets.
+     * @return a new map.
+     */
+    public static <K, V> SetMap<K, V> create(final int initialCapacity, final IFactory<? extends Set<V>> factory) {
+        return new SetMap<K, V>(initialCapacity) {
+            @Override
+            protected Set<V> createCollection(Collection<? extends V> v) {
+                final Set<V> res = factory.createChecked();
+                res.addAll(v);
+                return res;
+            }
+        };
+    }
+
     public SetMap() {
         super();
     }
@@ -44,6 +68,12 @@ public class SetMap<K, V> extends CollectionMap2<K, Set<V>, V> {
         super(mode);
     }
 
+    @Override
+    public Set<V> getReadOnly(Object key) {
+        final Set<V> res = this.get(key);
+        return res == null ? Collections.<V> emptySet() : Collections.unmodifiableSet(res);
+    }
+
     @Override
     protected Set<V> createCollection(Collection<? extends V> v) {
         return new HashSet<V>(v);
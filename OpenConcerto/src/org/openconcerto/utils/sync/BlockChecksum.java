@@ -0,0 +1,59 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.sync;
+
+import java.security.MessageDigest;
+
+/**
+ * A rolling checksum whose window is kept in a circular buffer : {@link #roll(byte)} only
+ * overwrites the oldest byte, and the window can be passed to a strong digest without shifting or
+ * copying it.
+ */
+public class BlockChecksum extends RollingChecksum32 {
+
+    public BlockChecksum() {
+        super();
+    }
+
+    /**
+     * The length of the window, i.e. the length passed to {@link #check(byte[], int, int)}.
+     * 
+     * @return the length of the window.
+     */
+    public final int getLength() {
+        return this.l;
+    }
+
+    /**
+     * Update the passed digest with the bytes of the window, oldest first.
+     * 
+     * @param md the digest to update.
+     */
+    public final void updateDigest(final MessageDigest md) {
+        md.update(this.block, this.k, this.l - this.k);
+        md.update(this.block, 0, this.k);
+    }
+
+    /**
+     * Copy the bytes of the window, oldest first.
+     * 
+     * @param dst where to copy, must have room for {@link #getLength()} bytes.
+     * @param off where to start in <code>dst</code>.
+     */
+    public final void copyWindow(final byte[] dst, final int off) {
+        final int end = this.l - this.k;
+        System.arraycopy(this.block, this.k, dst, off, end);
+        System.arraycopy(this.block, 0, dst, off + end, this.k);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.sync;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * The block hashes of a file (as written by {@link HashWriter#saveHash(java.io.File)}), indexed by
+ * weak checksum in an open addressing table of primitives. All blocks are kept, even those with
+ * the same weak checksum.
+ */
+public final class BlockIndex {
+
+    /**
+     * The length of the strong hash of each block (MD5).
+     */
+    public static final int STRONG_LENGTH = 16;
+
+    /**
+     * Read the block hashes : for each block its weak checksum then its strong hash.
+     * 
+     * @param in the stream to read from.
+     * @param fileSize the size of the hashed file.
+     * @param blockSize the size of the blocks.
+     * @return the index.
+     * @throws IOException if an error occurs while reading.
+     */
+    public static BlockIndex read(final DataInputStream in, final int fileSize, final int blockSize) throws IOException {
+        final int count = getBlockCount(fileSize, blockSize);
+        final int[] weak = new int[count];
+        final byte[] strong = new byte[count * STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        return new BlockIndex(fileSize, blockSize, weak, strong);
+    }
+
+    static int getBlockCount(final int fileSize, final int blockSize) {
+        return (int) (((long) fileSize + blockSize - 1) / blockSize);
+    }
+
+    private final int fileSize;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[] strong;
+    // block + 1, 0 for an empty slot
+    private final int[] table;
+    private final int shift;
+    // 16 bits per block, small enough to stay in the CPU cache, most lookups stop here
+    private final long[] filter;
+    private final int filterShift;
+
+    /**
+     * Create a new index.
+     * 
+     * @param fileSize the size of the hashed file.
+     * @param blockSize the size of the blocks.
+     * @param weak the weak checksum of each block, not copied.
+     * @param strong the strong hash of each block, {@link #STRONG_LENGTH} bytes per block, not
+     *        copied.
+     */
+    public BlockIndex(final int fileSize, final int blockSize, final int[] weak, final byte[] strong) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Invalid block size : " + blockSize);
+        final int count = getBlockCount(fileSize, blockSize);
+        if (weak.length != count || strong.length != count * STRONG_LENGTH)
+            throw new IllegalArgumentException("Wrong number of blocks for " + fileSize + " bytes : " + weak.length);
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+
+        // at most half full
+        int bits = 1;
+        while ((1 << bits) < count * 2)
+            bits++;
+        this.shift = 32 - bits;
+        this.table = new int[1 << bits];
+        final int filterBits = Math.max(bits + 3, 6);
+        this.filterShift = 32 - filterBits;
+        this.filter = new long[1 << (filterBits - 6)];
+        final int mask = this.table.length - 1;
+        for (int i = 0; i < count; i++) {
+            final int bit = (weak[i] * 0x9E3779B9) >>> this.filterShift;
+            this.filter[bit >>> 6] |= 1L << bit;
+            int slot = this.firstSlot(weak[i]);
+            while (this.table[slot] != 0)
+                slot = (slot + 1) & mask;
+            this.table[slot] = i + 1;
+        }
+    }
+
+    public final int getFileSize() {
+        return this.fileSize;
+    }
+
+    public final int getBlockSize() {
+        return this.blockSize;
+    }
+
+    public final int getBlockCount() {
+        return this.weak.length;
+    }
+
+    public final int getBlockOffset(final int block) {
+        return block * this.blockSize;
+    }
+
+    /**
+     * The length of a block, only the last one can be shorter than the block size.
+     * 
+     * @param block the index of the block.
+     * @return its length.
+     */
+    public final int getBlockLength(final int block) {
+        return Math.min(this.blockSize, this.fileSize - this.getBlockOffset(block));
+    }
+
+    public final int getWeak(final int block) {
+        return this.weak[block];
+    }
+
+    // * lookup : if (mayContain(w)) for (int slot = firstSlot(w); (b = getBlock(slot)) >= 0;
+    // slot = nextSlot(slot))
+
+    /**
+     * Whether a block may have the passed weak checksum.
+     * 
+     * @param weakSum a weak checksum.
+     * @return <code>false</code> if no block has <code>weakSum</code>.
+     */
+    final boolean mayContain(final int weakSum) {
+        final int bit = (weakSum * 0x9E3779B9) >>> this.filterShift;
+        return (this.filter[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    final int firstSlot(final int weakSum) {
+        // Fibonacci hashing, the low bits of the checksum are too regular
+        return (weakSum * 0x9E3779B9) >>> this.shift;
+    }
+
+    final int nextSlot(final int slot) {
+        return (slot + 1) & (this.table.length - 1);
+    }
+
+    /**
+     * The block in a slot.
+     * 
+     * @param slot a slot.
+     * @return the block, -1 if the slot is empty.
+     */
+    final int getBlock(final int slot) {
+        return this.table[slot] - 1;
+    }
+
+    /**
+     * Whether a block has the passed strong hash.
+     * 
+     * @param block the index of the block.
+     * @param digest a strong hash.
+     * @return <code>true</code> if <code>digest</code> is the hash of <code>block</code>.
+     */
+    public final boolean strongEquals(final int block, final byte[] digest) {
+        final int off = block * STRONG_LENGTH;
+        for (int i = 0; i < STRONG_LENGTH; i++) {
+            if (this.strong[off + i] != digest[i])
+                return false;
+        }
+        return true;
+    }
+
+    static MessageDigest createStrongDigest() {
+        return HashWriter.createDigest("MD5");
+    }
+}
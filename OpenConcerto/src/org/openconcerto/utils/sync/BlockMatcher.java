@@ -0,0 +1,207 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Find in a local file the blocks of a remote file, rsync style : a window of one block slides
+ * over the local file, its weak checksum is rolled one byte at a time and looked up in a
+ * {@link BlockIndex}, and only when the weak checksum is known the strong hash of the window is
+ * computed. After a match the window jumps to the next block. The short last block of the remote
+ * file is looked for at the end of the local file.
+ */
+public final class BlockMatcher {
+
+    /**
+     * Receive the matches.
+     */
+    public static interface Handler {
+        /**
+         * A block of the remote file was found in the local file. Called once per remote block
+         * for the same local offset if the remote file has identical blocks, and with increasing
+         * <code>localOffset</code>.
+         * 
+         * @param localOffset where the block starts in the local file.
+         * @param block the index of the block in the remote file.
+         * @throws IOException if the handler fails, the match is aborted.
+         */
+        void blockFound(int localOffset, int block) throws IOException;
+    }
+
+    // files are read sequentially in big chunks
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    // sequential reading of a channel
+    private static final class Input {
+        private final FileChannel channel;
+        private final byte[] buffer;
+        private final ByteBuffer bb;
+        private int pos, limit;
+
+        Input(final FileChannel channel) {
+            this.channel = channel;
+            this.buffer = new byte[READ_BUFFER_SIZE];
+            this.bb = ByteBuffer.wrap(this.buffer);
+            this.pos = 0;
+            this.limit = 0;
+        }
+
+        private boolean fill() throws IOException {
+            this.bb.clear();
+            int read;
+            do {
+                read = this.channel.read(this.bb);
+            } while (read == 0);
+            this.pos = 0;
+            this.limit = Math.max(0, this.bb.position());
+            return read > 0;
+        }
+
+        final int read() throws IOException {
+            if (this.pos == this.limit && !this.fill())
+                return -1;
+            return this.buffer[this.pos++] & 0xff;
+        }
+
+        final int read(final byte[] dst, final int len) throws IOException {
+            int count = 0;
+            while (count < len) {
+                if (this.pos == this.limit && !this.fill())
+                    break;
+                final int n = Math.min(len - count, this.limit - this.pos);
+                System.arraycopy(this.buffer, this.pos, dst, count, n);
+                this.pos += n;
+                count += n;
+            }
+            return count;
+        }
+    }
+
+    private final BlockIndex index;
+    private final BlockChecksum checksum;
+    private final MessageDigest strongDigest;
+
+    public BlockMatcher(final BlockIndex index) {
+        this.index = index;
+        this.checksum = new BlockChecksum();
+        this.strongDigest = BlockIndex.createStrongDigest();
+    }
+
+    /**
+     * Find the blocks of the index in the passed file.
+     * 
+     * @param f the local file.
+     * @param h the handler of matches.
+     * @throws IOException if an error occurs while reading or if <code>h</code> fails.
+     */
+    public final void match(final File f, final Handler h) throws IOException {
+        final FileInputStream ins = new FileInputStream(f);
+        try {
+            this.match(ins.getChannel(), h);
+        } finally {
+            ins.close();
+        }
+    }
+
+    /**
+     * Find the blocks of the index in the passed channel.
+     * 
+     * @param channel the local file.
+     * @param h the handler of matches.
+     * @throws IOException if an error occurs while reading or if <code>h</code> fails.
+     */
+    public final void match(final FileChannel channel, final Handler h) throws IOException {
+        final long length = channel.size();
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("File too large : " + length);
+        if (this.index.getBlockCount() == 0)
+            return;
+        channel.position(0);
+        final int blockSize = this.index.getBlockSize();
+        final Input in = new Input(channel);
+        final byte[] window = new byte[blockSize];
+        // end of the last match, matches mustn't overlap
+        int matchEnd = 0;
+        // don't bother if no remote block has a full length
+        if (this.index.getFileSize() >= blockSize && in.read(window, blockSize) == blockSize) {
+            final BlockChecksum sum = this.checksum;
+            sum.check(window, 0, blockSize);
+            int pos = 0;
+            while (true) {
+                if (this.find(sum.getValue(), pos, blockSize, h)) {
+                    pos += blockSize;
+                    matchEnd = pos;
+                    if (in.read(window, blockSize) < blockSize)
+                        break;
+                    sum.check(window, 0, blockSize);
+                } else {
+                    final int v = in.read();
+                    if (v < 0)
+                        break;
+                    sum.roll((byte) v);
+                    pos++;
+                }
+            }
+        }
+
+        // the last block
+        final int last = this.index.getBlockCount() - 1;
+        final int lastLength = this.index.getBlockLength(last);
+        final long lastStart = length - lastLength;
+        if (lastLength < blockSize && lastStart >= matchEnd) {
+            final ByteBuffer bb = ByteBuffer.wrap(window, 0, lastLength);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, lastStart + bb.position()) < 0)
+                    return;
+            }
+            this.checksum.check(window, 0, lastLength);
+            if (this.checksum.getValue() == this.index.getWeak(last)) {
+                this.strongDigest.reset();
+                this.strongDigest.update(window, 0, lastLength);
+                if (this.index.strongEquals(last, this.strongDigest.digest()))
+                    h.blockFound((int) lastStart, last);
+            }
+        }
+    }
+
+    private boolean find(final int weakSum, final int pos, final int blockSize, final Handler h) throws IOException {
+        final BlockIndex index = this.index;
+        if (!index.mayContain(weakSum))
+            return false;
+        byte[] strong = null;
+        boolean found = false;
+        int block;
+        for (int slot = index.firstSlot(weakSum); (block = index.getBlock(slot)) >= 0; slot = index.nextSlot(slot)) {
+            if (index.getWeak(block) != weakSum || index.getBlockLength(block) != blockSize)
+                continue;
+            // only compute the strong hash on a weak hit
+            if (strong == null) {
+                this.strongDigest.reset();
+                this.checksum.updateDigest(this.strongDigest);
+                strong = this.strongDigest.digest();
+            }
+            if (index.strongEquals(block, strong)) {
+                found = true;
+                h.blockFound(pos, block);
+            }
+        }
+        return found;
+    }
+}
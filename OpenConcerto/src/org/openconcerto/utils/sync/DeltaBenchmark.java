@@ -0,0 +1,162 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compare the throughput of {@link BlockMatcher} with the previous delta loop of
+ * {@link SyncClient} (one {@link System#arraycopy(Object, int, Object, int, int)} per byte and
+ * boxed maps).
+ * 
+ * <pre>
+ * java org.openconcerto.utils.sync.DeltaBenchmark [sizeInMB [blockSize]]
+ * </pre>
+ */
+public class DeltaBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 16) * 1024 * 1024;
+        final int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : HashWriter.blockSize;
+
+        final File remote = File.createTempFile("delta", ".remote");
+        final File local = File.createTempFile("delta", ".local");
+        final File other = File.createTempFile("delta", ".other");
+        final File hash = File.createTempFile("delta", ".hash");
+        try {
+            createFiles(remote, local, size);
+            // nothing in common : only rolling and lookups
+            final byte[] bytes = new byte[size];
+            new Random(11).nextBytes(bytes);
+            write(other, bytes, 0, size);
+            new HashWriter(remote, blockSize).saveHash(hash);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hash)));
+            final BlockIndex index;
+            try {
+                index = BlockIndex.read(in, in.readInt(), blockSize);
+            } finally {
+                in.close();
+            }
+
+            for (int i = 0; i < 3; i++) {
+                for (final File f : new File[] { local, other }) {
+                    System.out.println(f == local ? "Modified file" : "Unrelated file");
+                    long t = System.nanoTime();
+                    final int[] count = new int[1];
+                    new BlockMatcher(index).match(f, new BlockMatcher.Handler() {
+                        @Override
+                        public void blockFound(int localOffset, int block) {
+                            count[0]++;
+                        }
+                    });
+                    print("BlockMatcher", size, System.nanoTime() - t, count[0], index.getBlockCount());
+
+                    t = System.nanoTime();
+                    final int legacyCount = legacyMatch(f, index);
+                    print("legacy      ", size, System.nanoTime() - t, legacyCount, index.getBlockCount());
+                }
+            }
+        } finally {
+            remote.delete();
+            local.delete();
+            other.delete();
+            hash.delete();
+        }
+    }
+
+    private static void print(final String name, final int size, final long nanos, final int found, final int count) {
+        final long ms = nanos / 1000000;
+        System.out.println(name + " : " + ms + " ms, " + (size / 1024 / 1024 * 1000 / Math.max(1, ms)) + " MB/s, " + found + " / " + count + " blocks found");
+    }
+
+    // the remote file with small changes every 64KB
+    private static void createFiles(final File remote, final File local, final int size) throws IOException {
+        final Random r = new Random(7);
+        final byte[] bytes = new byte[size];
+        r.nextBytes(bytes);
+        write(remote, bytes, 0, size);
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(local));
+        try {
+            for (int off = 0; off < size; off += 64 * 1024) {
+                final int len = Math.min(64 * 1024, size - off);
+                out.write(bytes, off, len);
+                // insert a few bytes
+                out.write(r.nextInt(256));
+                out.write(r.nextInt(256));
+                out.write(r.nextInt(256));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void write(final File f, final byte[] bytes, final int off, final int len) throws IOException {
+        final OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(bytes, off, len);
+        } finally {
+            out.close();
+        }
+    }
+
+    // the loop of SyncClient.sendFile() before BlockMatcher
+    private static int legacyMatch(final File local, final BlockIndex index) throws Exception {
+        final int blockSize = index.getBlockSize();
+        final HashMap<Integer, byte[]> map = new HashMap<Integer, byte[]>(index.getBlockCount() * 2 + 1);
+        final HashMap<Integer, Integer> mapBlock = new HashMap<Integer, Integer>(index.getBlockCount() * 2 + 1);
+        for (int i = 0; i < index.getBlockCount(); i++) {
+            final byte[] b = new byte[BlockIndex.STRONG_LENGTH];
+            final int r32 = index.getWeak(i);
+            map.put(r32, b);
+            mapBlock.put(r32, i);
+        }
+        int found = 0;
+        final RollingChecksum32 checksum = new RollingChecksum32();
+        final byte[] buffer = new byte[blockSize];
+        final BufferedInputStream fb = new BufferedInputStream(new FileInputStream(local));
+        try {
+            final int read = fb.read(buffer);
+            checksum.check(buffer, 0, read);
+            int v = 0;
+            final MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+            do {
+                final int r32 = checksum.getValue();
+                final byte[] md5 = map.get(r32);
+                if (md5 != null) {
+                    md5Digest.reset();
+                    md5Digest.update(buffer);
+                    if (index.strongEquals(mapBlock.get(r32), md5Digest.digest()))
+                        found++;
+                }
+                v = fb.read();
+                System.arraycopy(buffer, 1, buffer, 0, buffer.length - 1);
+                buffer[buffer.length - 1] = (byte) v;
+                checksum.roll((byte) v);
+            } while (v >= 0);
+        } finally {
+            fb.close();
+        }
+        return found;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.sync;
+
+import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.Log;
+import org.openconcerto.utils.ThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * A persistent cache of file hashes, so that unchanged files are not read again. The SHA-256 of a
+ * file is kept by path, size and modification date. The block hashes (see
+ * {@link HashWriter#saveHash(File)}) are kept in files named after the SHA-256 and the block size,
+ * so files with the same content share them. Can be used by several threads, {@link #save()} must
+ * be called to persist the changes.
+ */
+public final class HashIndex {
+
+    private static final String INDEX_NAME = "index";
+    private static final String BLOCKS_NAME = "blocks";
+    private static final int VERSION = 1;
+    // the date of a file modified recently can stay the same after another modification
+    private static final long RACY_DELAY = 2000;
+
+    private static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final byte[] hash;
+
+        Entry(long size, long lastModified, byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private final File dir;
+    private final File blocksDir;
+    private final Map<String, Entry> entries;
+    private boolean modified;
+    private ExecutorService exec;
+
+    /**
+     * Create a new index, loading the one in <code>dir</code> if any.
+     * 
+     * @param dir the directory of the index.
+     * @throws IOException if <code>dir</code> cannot be created.
+     */
+    public HashIndex(final File dir) throws IOException {
+        this.dir = FileUtils.mkdir_p(dir);
+        this.blocksDir = FileUtils.mkdir_p(new File(dir, BLOCKS_NAME));
+        this.entries = new HashMap<String, Entry>();
+        this.modified = false;
+        this.exec = null;
+        this.load();
+    }
+
+    private void load() {
+        final File f = new File(this.dir, INDEX_NAME);
+        if (!f.exists())
+            return;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                if (in.readInt() != VERSION)
+                    return;
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String path = in.readUTF();
+                    final long size = in.readLong();
+                    final long lastModified = in.readLong();
+                    final byte[] hash = new byte[32];
+                    in.readFully(hash);
+                    this.entries.put(path, new Entry(size, lastModified, hash));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // only a cache
+            Log.get().log(Level.WARNING, "Couldn't read hash index " + f, e);
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Write the index if it was modified.
+     * 
+     * @throws IOException if the index cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!this.modified)
+            return;
+        final File f = new File(this.dir, INDEX_NAME);
+        final File tmp = new File(this.dir, INDEX_NAME + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(this.entries.size());
+            for (final Map.Entry<String, Entry> e : this.entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().lastModified);
+                out.write(e.getValue().hash);
+            }
+        } finally {
+            out.close();
+        }
+        FileUtils.rm(f);
+        if (!tmp.renameTo(f))
+            throw new IOException("cannot rename " + tmp + " to " + f);
+        this.modified = false;
+    }
+
+    /**
+     * The SHA-256 of a file, only computed if the file changed since the last call.
+     * 
+     * @param f a file.
+     * @return its SHA-256.
+     * @throws IOException if the file cannot be read.
+     */
+    public byte[] getHash(final File f) throws IOException {
+        final long size = f.length();
+        final long lastModified = f.lastModified();
+        final byte[] cached = this.get(f, size, lastModified);
+        if (cached != null)
+            return cached;
+        final byte[] res = new HashWriter(f).writeHash(null, null);
+        this.put(f, size, lastModified, res);
+        return res;
+    }
+
+    /**
+     * Record the hash of a file that was just written, e.g. after a copy or after a download
+     * whose hash was checked.
+     * 
+     * @param f the file.
+     * @param hash its SHA-256.
+     */
+    public void put(final File f, final byte[] hash) {
+        this.put(f, f.length(), f.lastModified(), hash);
+    }
+
+    private synchronized byte[] get(final File f, final long size, final long lastModified) {
+        final Entry e = this.entries.get(f.getAbsolutePath());
+        if (e != null && e.size == size && e.lastModified == lastModified)
+            return e.hash.clone();
+        return null;
+    }
+
+    // size and lastModified must be read before the hash was computed
+    private synchronized void put(final File f, final long size, final long lastModified, final byte[] hash) {
+        if (hash.length != 32)
+            throw new IllegalArgumentException("Not a SHA-256 : " + hash.length + " bytes");
+        final String key = f.getAbsolutePath();
+        if (lastModified == 0 || lastModified > System.currentTimeMillis() - RACY_DELAY || f.length() != size || f.lastModified() != lastModified) {
+            // changed while hashing or might change without its date changing
+            if (this.entries.remove(key) != null)
+                this.modified = true;
+        } else {
+            this.entries.put(key, new Entry(size, lastModified, hash.clone()));
+            this.modified = true;
+        }
+    }
+
+    /**
+     * The block hashes of a file, in the format of {@link HashWriter#saveHash(File)}. Only
+     * computed if the file changed since the last call, large files are hashed in parallel.
+     * 
+     * @param f a file.
+     * @param blockSize the size of the blocks.
+     * @return a file with the block hashes of <code>f</code>, shouldn't be modified.
+     * @throws IOException if the file cannot be read or the hashes written.
+     */
+    public File getBlockHashes(final File f, final int blockSize) throws IOException {
+        final long size = f.length();
+        final long lastModified = f.lastModified();
+        final byte[] cached = this.get(f, size, lastModified);
+        if (cached != null) {
+            final File res = this.getBlocksFile(cached, blockSize);
+            if (res.exists())
+                return res;
+        }
+
+        final File tmp = File.createTempFile("hash", ".tmp", this.blocksDir);
+        try {
+            final byte[] hash;
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                hash = new HashWriter(f, blockSize).writeHash(out, this.getExecutor());
+            } finally {
+                out.close();
+            }
+            this.put(f, size, lastModified, hash);
+            final File res = this.getBlocksFile(hash, blockSize);
+            synchronized (this) {
+                // another file with the same content might have been hashed
+                if (!res.exists() && !tmp.renameTo(res))
+                    throw new IOException("cannot rename " + tmp + " to " + res);
+            }
+            return res;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * The block hashes of a file.
+     * 
+     * @param f a file.
+     * @param blockSize the size of the blocks.
+     * @return the index of the blocks of <code>f</code>.
+     * @throws IOException if the file cannot be read or the hashes written.
+     * @see #getBlockHashes(File, int)
+     */
+    public BlockIndex getBlockIndex(final File f, final int blockSize) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.getBlockHashes(f, blockSize))));
+        try {
+            return BlockIndex.read(in, in.readInt(), blockSize);
+        } finally {
+            in.close();
+        }
+    }
+
+    private File getBlocksFile(final byte[] hash, final int blockSize) {
+        return new File(this.blocksDir, toHex(hash) + '-' + blockSize);
+    }
+
+    private static String toHex(final byte[] hash) {
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (final byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Remove the entries of the files that were deleted or modified, and the block hashes no
+     * longer used.
+     * 
+     * @return the number of removed entries.
+     */
+    public synchronized int purge() {
+        int res = 0;
+        final Set<String> used = new HashSet<String>();
+        final Iterator<Map.Entry<String, Entry>> iter = this.entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<String, Entry> e = iter.next();
+            final File f = new File(e.getKey());
+            if (f.length() != e.getValue().size || f.lastModified() != e.getValue().lastModified) {
+                iter.remove();
+                res++;
+            } else {
+                used.add(toHex(e.getValue().hash));
+            }
+        }
+        if (res > 0)
+            this.modified = true;
+        final File[] blocks = this.blocksDir.listFiles();
+        if (blocks != null) {
+            for (final File b : blocks) {
+                // temporary files are being written
+                final int dash = b.getName().indexOf('-');
+                if (dash > 0 && !used.contains(b.getName().substring(0, dash)))
+                    b.delete();
+            }
+        }
+        return res;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (this.exec == null) {
+            final int count = Runtime.getRuntime().availableProcessors();
+            this.exec = new ThreadPoolExecutor(count, count, 5L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(HashIndex.class.getSimpleName() + " ", true));
+            ((ThreadPoolExecutor) this.exec).allowCoreThreadTimeOut(true);
+        }
+        return this.exec;
+    }
+}
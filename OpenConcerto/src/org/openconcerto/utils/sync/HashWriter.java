@@ -13,20 +13,57 @@
  
  package org.openconcerto.utils.sync;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class HashWriter {
+    /**
+     * The default block size, also used by the server to answer /getHash.
+     */
     public static int blockSize = 1024;
+    // for whole file hashes
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // for parallel hashing
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
     private File in;
+    private final int hashBlockSize;
 
     public HashWriter(File inputFile) {
+        this(inputFile, blockSize);
+    }
+
+    /**
+     * Create a writer with a specific block size. Small blocks find more matches in a modified
+     * file but cost 20 bytes each in the hash file, large blocks are better for big files.
+     * 
+     * @param inputFile the file to hash.
+     * @param hashBlockSize the size of the blocks.
+     */
+    public HashWriter(File inputFile, int hashBlockSize) {
+        if (hashBlockSize <= 0)
+            throw new IllegalArgumentException("Invalid block size : " + hashBlockSize);
         this.in = inputFile;
+        this.hashBlockSize = hashBlockSize;
+    }
+
+    public final int getBlockSize() {
+        return this.hashBlockSize;
     }
 
     public void saveHash(File outputFile) {
@@ -35,48 +72,149 @@ public class HashWriter {
                 new File(outputFile.getParent()).mkdirs();
             }
             DataOutputStream bOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
-            bOut.writeInt((int) this.in.length());
-            System.out.println("FileSize:" + this.in.length());
-            MessageDigest hashSum = MessageDigest.getInstance("SHA-256");
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            BufferedInputStream fb = new BufferedInputStream(new FileInputStream(in));
-            RollingChecksum32 r32 = new RollingChecksum32();
-            byte[] buffer = new byte[blockSize];
-
-            int readSize = fb.read(buffer);
-            while (readSize > 0) {
-                // Update
-                r32.check(buffer, 0, readSize);
-                md5.reset();
-                md5.update(buffer, 0, readSize);
-                hashSum.update(buffer, 0, readSize);
-                // read
-                readSize = fb.read(buffer);
-                // System.out.print(r32.getValue() + " : ");
-                final byte[] engineDigest = md5.digest();
-
-                // System.out.println(Base64.encodeBytes(engineDigest));
-                bOut.writeInt(r32.getValue());
-                bOut.write(engineDigest);
+            try {
+                System.out.println("FileSize:" + this.in.length());
+                writeHash(bOut, null);
+            } finally {
+                bOut.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+
+        }
+    }
 
+    /**
+     * Hash the file. <code>out</code> receives the same data as the file written by
+     * {@link #saveHash(File)} : the size of the file, the weak checksum and the MD5 of each block,
+     * then the SHA-256 of the file. If an executor is passed, the blocks of a large file are hashed
+     * by its threads over memory mapped chunks while the current thread computes the SHA-256.
+     * NOTE : the chunks are unmapped by the garbage collector, until then the file cannot be
+     * deleted on Windows.
+     * 
+     * @param out where to write the hashes, <code>null</code> to only compute the SHA-256.
+     * @param exec the executor for the block hashes, <code>null</code> to hash in the current
+     *        thread.
+     * @return the SHA-256 of the file.
+     * @throws IOException if the file cannot be read or the hashes written.
+     */
+    public byte[] writeHash(final DataOutputStream out, final ExecutorService exec) throws IOException {
+        final MessageDigest hashSum = createDigest("SHA-256");
+        final FileInputStream ins = new FileInputStream(this.in);
+        try {
+            final FileChannel channel = ins.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large : " + size);
+            if (out != null)
+                out.writeInt((int) size);
+            // the chunks must be made of complete blocks
+            final int chunkSize = Math.max(1, CHUNK_SIZE / this.hashBlockSize) * this.hashBlockSize;
+            if (out == null || exec == null || size <= chunkSize) {
+                final ByteBuffer buffer = ByteBuffer.allocate(Math.max(1, BUFFER_SIZE / this.hashBlockSize) * this.hashBlockSize);
+                while (true) {
+                    buffer.clear();
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                        // the blocks must be complete, read() can return less
+                    }
+                    buffer.flip();
+                    if (!buffer.hasRemaining())
+                        break;
+                    hashSum.update(buffer.array(), 0, buffer.limit());
+                    if (out != null)
+                        hashBlocks(buffer, this.hashBlockSize).write(out);
+                }
+            } else {
+                final List<Future<BlockHashes>> futures = new ArrayList<Future<BlockHashes>>();
+                try {
+                    for (long offset = 0; offset < size; offset += chunkSize) {
+                        final ByteBuffer chunk = channel.map(MapMode.READ_ONLY, offset, Math.min(chunkSize, size - offset));
+                        final ByteBuffer blocks = chunk.duplicate();
+                        futures.add(exec.submit(new Callable<BlockHashes>() {
+                            @Override
+                            public BlockHashes call() {
+                                return hashBlocks(blocks, HashWriter.this.hashBlockSize);
+                            }
+                        }));
+                        hashSum.update(chunk);
+                    }
+                    for (final Future<BlockHashes> f : futures) {
+                        f.get().write(out);
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while hashing " + this.in, e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Couldn't hash " + this.in, e.getCause());
+                } finally {
+                    for (final Future<BlockHashes> f : futures) {
+                        f.cancel(true);
+                    }
+                }
             }
+        } finally {
+            ins.close();
+        }
+        final byte[] fileHash = hashSum.digest();
+        if (out != null)
+            out.write(fileHash);
+        return fileHash;
+    }
 
-            byte[] fileHash = new byte[hashSum.getDigestLength()];
-            fileHash = hashSum.digest();
-            bOut.write(fileHash);
-            bOut.close();
+    // the weak checksums and MD5 of consecutive blocks
+    private static final class BlockHashes {
+        private final int[] weak;
+        private final byte[] strong;
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        BlockHashes(final int count) {
+            this.weak = new int[count];
+            this.strong = new byte[count * BlockIndex.STRONG_LENGTH];
+        }
 
+        void write(final DataOutputStream out) throws IOException {
+            for (int i = 0; i < this.weak.length; i++) {
+                out.writeInt(this.weak[i]);
+                out.write(this.strong, i * BlockIndex.STRONG_LENGTH, BlockIndex.STRONG_LENGTH);
+            }
+        }
+    }
+
+    static BlockHashes hashBlocks(final ByteBuffer buffer, final int blockSize) {
+        final BlockHashes res = new BlockHashes((buffer.remaining() + blockSize - 1) / blockSize);
+        final RollingChecksum32 r32 = new RollingChecksum32();
+        final MessageDigest md5 = BlockIndex.createStrongDigest();
+        final byte[] block = new byte[blockSize];
+        for (int i = 0; buffer.hasRemaining(); i++) {
+            final int length = Math.min(blockSize, buffer.remaining());
+            buffer.get(block, 0, length);
+            r32.check(block, 0, length);
+            res.weak[i] = r32.getValue();
+            md5.reset();
+            md5.update(block, 0, length);
+            System.arraycopy(md5.digest(), 0, res.strong, i * BlockIndex.STRONG_LENGTH, BlockIndex.STRONG_LENGTH);
+        }
+        return res;
+    }
+
+    /**
+     * Create a digest for an algorithm that must be available on all platforms.
+     * 
+     * @param algorithm e.g. "SHA-256".
+     * @return a new digest.
+     */
+    public static MessageDigest createDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // always available
+            throw new IllegalStateException(e);
         }
     }
 
     public static byte[] getHash(File f) throws Exception {
         MessageDigest hashSum = MessageDigest.getInstance("SHA-256");
 
-        final BufferedInputStream fb = new BufferedInputStream(new FileInputStream(f));
-        byte[] buffer = new byte[blockSize];
+        final FileInputStream fb = new FileInputStream(f);
+        byte[] buffer = new byte[BUFFER_SIZE];
         int readSize = fb.read(buffer);
         while (readSize > 0) {
             // Update
@@ -0,0 +1,286 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.sync;
+
+import org.openconcerto.utils.Base64;
+import org.openconcerto.utils.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the synchronization server, serving a local directory to {@link SyncClient}. It
+ * answers /getDir, /getHash, /getFile and /putFile with the formats the client expects, ignores
+ * tokens, and counts requests and client connections to check that they're kept alive.
+ * 
+ * @see SyncClientTest
+ */
+public class LocalSyncServer {
+
+    private static final String[] COMMANDS = { "/getDir", "/getHash", "/getFile", "/putFile" };
+
+    private final File root;
+    private final HttpServer server;
+    private final ExecutorService exec;
+    private final AtomicInteger requests;
+    private final Set<Integer> clientPorts;
+    private volatile int latency;
+
+    /**
+     * Create a server listening on a free port of the loopback interface.
+     * 
+     * @param root the served directory.
+     * @throws IOException if the server cannot be created.
+     */
+    public LocalSyncServer(final File root) throws IOException {
+        this.root = root;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 50);
+        for (final String command : COMMANDS) {
+            this.server.createContext(command, new HttpHandler() {
+                @Override
+                public void handle(HttpExchange ex) throws IOException {
+                    try {
+                        LocalSyncServer.this.handle(command, ex);
+                    } catch (Exception e) {
+                        Logger.getLogger(LocalSyncServer.class.getName()).log(Level.WARNING, "Error for " + command, e);
+                        ex.sendResponseHeaders(500, -1);
+                    } finally {
+                        ex.close();
+                    }
+                }
+            });
+        }
+        this.exec = Executors.newFixedThreadPool(16);
+        this.server.setExecutor(this.exec);
+        this.requests = new AtomicInteger();
+        this.clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+        this.latency = 0;
+    }
+
+    public final File getRoot() {
+        return this.root;
+    }
+
+    /**
+     * The URL to pass to {@link SyncClient#SyncClient(String)}.
+     * 
+     * @return the base URL, e.g. "http://127.0.0.1:1234".
+     */
+    public final String getURL() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * Simulate a remote server.
+     * 
+     * @param latency the time in milliseconds spent before answering each request.
+     */
+    public final void setLatency(final int latency) {
+        this.latency = latency;
+    }
+
+    public final int getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * The number of client connections.
+     * 
+     * @return the number of different client ports since the last {@link #resetCounts()}.
+     */
+    public final int getConnectionCount() {
+        return this.clientPorts.size();
+    }
+
+    public final void resetCounts() {
+        this.requests.set(0);
+        this.clientPorts.clear();
+    }
+
+    public final void start() {
+        this.server.start();
+    }
+
+    public final void stop() {
+        this.server.stop(0);
+        this.exec.shutdown();
+    }
+
+    private File getFile(final String remotePath, final String remoteName) {
+        final File dir = new File(this.root, remotePath);
+        return remoteName == null ? dir : new File(dir, remoteName);
+    }
+
+    private void handle(final String command, final HttpExchange ex) throws Exception {
+        this.requests.incrementAndGet();
+        this.clientPorts.add(ex.getRemoteAddress().getPort());
+        if (this.latency > 0)
+            Thread.sleep(this.latency);
+
+        if (command.equals("/putFile")) {
+            this.putFile(ex);
+            return;
+        }
+        final Map<String, String> form = readForm(ex.getRequestBody());
+        final File f = this.getFile(form.get("rp"), form.get("rn"));
+        if (command.equals("/getDir")) {
+            if (!f.isDirectory()) {
+                sendNotFound(ex);
+                return;
+            }
+            final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bOut);
+            final File[] files = f.listFiles();
+            out.writeInt(files.length);
+            for (final File child : files) {
+                out.writeUTF(child.getName());
+                out.writeInt(child.isDirectory() ? -1 : (int) child.length());
+                out.writeLong(child.lastModified());
+                if (!child.isDirectory())
+                    out.write(HashWriter.getHash(child));
+            }
+            out.close();
+            send(ex, bOut.toByteArray());
+        } else if (!f.isFile()) {
+            sendNotFound(ex);
+        } else if (command.equals("/getHash")) {
+            if ("true".equals(form.get("shaOnly"))) {
+                final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(bOut);
+                out.writeInt((int) f.length());
+                out.write(HashWriter.getHash(f));
+                out.close();
+                send(ex, bOut.toByteArray());
+            } else {
+                final File hashFile = File.createTempFile("hash", ".hash");
+                try {
+                    new HashWriter(f).saveHash(hashFile);
+                    send(ex, FileUtils.readBytes(hashFile));
+                } finally {
+                    hashFile.delete();
+                }
+            }
+        } else {
+            // /getFile : the requested ranges, gzipped
+            final DataInputStream ranges = new DataInputStream(new ByteArrayInputStream(Base64.decode(form.get("ra"))));
+            final int count = ranges.readInt();
+            final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            final GZIPOutputStream out = new GZIPOutputStream(bOut);
+            final RandomAccessFile in = new RandomAccessFile(f, "r");
+            try {
+                for (int i = 0; i < count; i++) {
+                    final int start = ranges.readInt();
+                    final byte[] b = new byte[ranges.readInt() - start];
+                    in.seek(start);
+                    in.readFully(b);
+                    out.write(b);
+                }
+            } finally {
+                in.close();
+            }
+            out.close();
+            send(ex, bOut.toByteArray());
+        }
+    }
+
+    // the new content is made of moved blocks of the current file and of the sent ranges
+    private void putFile(final HttpExchange ex) throws Exception {
+        final DataInputStream in = new DataInputStream(new GZIPInputStream(ex.getRequestBody()));
+        final String remotePath = in.readUTF();
+        final String remoteName = in.readUTF();
+        // token
+        in.readUTF();
+        in.readFully(new byte[32]);
+        final byte[] newContent = new byte[in.readInt()];
+        final File f = this.getFile(remotePath, remoteName);
+        final byte[] oldContent = f.isFile() ? FileUtils.readBytes(f) : new byte[0];
+        final int moveCount = in.readInt();
+        for (int i = 0; i < moveCount; i++) {
+            final int from = in.readInt();
+            final int to = in.readInt();
+            System.arraycopy(oldContent, from, newContent, to, in.readInt());
+        }
+        final int rangeCount = in.readInt();
+        for (int i = 0; i < rangeCount; i++) {
+            final int start = in.readInt();
+            in.readFully(newContent, start, in.readInt() - start);
+        }
+        readAll(in);
+        FileUtils.mkdir_p(f.getParentFile());
+        final FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(newContent);
+        } finally {
+            out.close();
+        }
+        send(ex, HashWriter.getHash(f));
+    }
+
+    static private Map<String, String> readForm(final InputStream in) throws IOException {
+        final Map<String, String> res = new HashMap<String, String>();
+        for (final String param : new String(readAll(in), "UTF-8").split("&")) {
+            final int index = param.indexOf('=');
+            if (index > 0)
+                res.put(URLDecoder.decode(param.substring(0, index), "UTF-8"), URLDecoder.decode(param.substring(index + 1), "UTF-8"));
+        }
+        return res;
+    }
+
+    static private byte[] readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        StreamUtils.copy(in, res);
+        return res.toByteArray();
+    }
+
+    static private void send(final HttpExchange ex, final byte[] b) throws IOException {
+        send(ex, 200, b);
+    }
+
+    static private void sendNotFound(final HttpExchange ex) throws IOException {
+        send(ex, 404, "Not found".getBytes("UTF-8"));
+    }
+
+    static private void send(final HttpExchange ex, final int code, final byte[] b) throws IOException {
+        ex.sendResponseHeaders(code, b.length);
+        final OutputStream out = ex.getResponseBody();
+        out.write(b);
+        out.close();
+    }
+}
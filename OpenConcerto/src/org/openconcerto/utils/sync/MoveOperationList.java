@@ -28,7 +28,8 @@ public class MoveOperationList {
     public void add(MoveOperation o) {
         if (list.size() > 0) {
             MoveOperation last = list.get(this.list.size() - 1);
-            if (o.getFrom() == last.getFrom() + last.getLength()) {
+            // merge only if both the source and the destination are contiguous
+            if (o.getFrom() == last.getFrom() + last.getLength() && o.getTo() == last.getTo() + last.getLength()) {
                 last.setLength(o.getLength() + last.getLength());
             } else {
                 list.add(o);
@@ -124,7 +124,9 @@ public class RollingChecksum32 {
      * @param len The length of the block to read.
      */
     public void check(byte[] buf, int off, int len) {
-        block = new byte[len];
+        // reuse the block, this is called for each block of a file
+        if (block == null || block.length != len)
+            block = new byte[len];
         System.arraycopy(buf, off, block, 0, len);
         reset();
         l = block.length;
@@ -15,6 +15,7 @@
 
 import org.openconcerto.utils.Base64;
 import org.openconcerto.utils.FileUtils;
+import org.openconcerto.utils.ThreadFactory;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -22,26 +23,36 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -50,14 +61,20 @@ import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSession;
 
 public class SyncClient {
-    private long byteSent;
-    private long byteReceived;
-    private long byteSyncDownload;
-    private long byteSyncUpload;
-    private long filesSyncDownload;
-    private long filesSyncUpload;
+    /**
+     * Suffix of a partially downloaded file, the next download of the file resumes from it.
+     */
+    public static final String PART_SUFFIX = ".syncpart";
+
+    private final AtomicLong byteSent = new AtomicLong();
+    private final AtomicLong byteReceived = new AtomicLong();
+    private final AtomicLong byteSyncDownload = new AtomicLong();
+    private final AtomicLong byteSyncUpload = new AtomicLong();
+    private final AtomicLong filesSyncDownload = new AtomicLong();
+    private final AtomicLong filesSyncUpload = new AtomicLong();
     private String baseUrl = "http://127.0.0.1:80";
     private boolean verifyHost = true;
+    private int threadCount = 1;
 
     /**
      * @param args
@@ -157,19 +174,138 @@ public class SyncClient {
     }
 
     private void sendDirectory(File localDir, String remotePath) throws Exception {
+        sendDirectory(localDir, remotePath, null);
+    }
+
+    /**
+     * Send recursively a directory. The remote files of each directory are listed with their hash
+     * in one request, so unchanged and new files don't need a request to get their hash. The files
+     * are sent by {@link #setThreadCount(int)} threads.
+     * 
+     * @param localDir the directory to send.
+     * @param remotePath the remote directory.
+     * @param token the token, can be <code>null</code>.
+     * @throws Exception if a file cannot be sent, with more than one thread the other files are
+     *         still sent.
+     */
+    public void sendDirectory(File localDir, String remotePath, String token) throws Exception {
+        final Transfers transfers = new Transfers();
+        try {
+            sendDirectory(localDir, remotePath, token, transfers);
+            transfers.await();
+        } finally {
+            transfers.shutdown();
+            saveLocalHashes();
+        }
+    }
+
+    private void sendDirectory(File localDir, String remotePath, final String token, final Transfers transfers) throws Exception {
         if (!remotePath.endsWith("/")) {
             remotePath += "/";
         }
+        final String dirPath = remotePath;
+        // the remote files, null if they cannot be listed
+        Map<String, FileProperty> remoteFiles;
+        try {
+            final List<FileProperty> list = getList(dirPath, token);
+            remoteFiles = new HashMap<String, FileProperty>(list.size() * 2);
+            for (final FileProperty fp : list) {
+                remoteFiles.put(fp.getName(), fp);
+            }
+        } catch (FileNotFoundException e) {
+            // new directory
+            remoteFiles = Collections.emptyMap();
+        } catch (IOException e) {
+            remoteFiles = null;
+        }
+        final Map<String, FileProperty> remote = remoteFiles;
         File[] fl = localDir.listFiles();
+        if (fl == null) {
+            throw new IOException("cannot list " + localDir.getAbsolutePath());
+        }
         for (int i = 0; i < fl.length; i++) {
-            File file = fl[i];
+            final File file = fl[i];
             if (file.isDirectory()) {
-                sendDirectory(file, remotePath + file.getName());
+                sendDirectory(file, dirPath + file.getName(), token, transfers);
+            } else if (!file.getName().endsWith(PART_SUFFIX)) {
+                transfers.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        sendFile(file, dirPath, file.getName(), token, remote != null, remote == null ? null : remote.get(file.getName()));
+                        return null;
+                    }
+                });
+            }
+        }
+
+    }
+
+    /**
+     * The number of files transferred at the same time by
+     * {@link #sendDirectory(File, String, String)} and
+     * {@link #retrieveDirectory(File, String, String)}, 1 by default. NOTE : the JVM keeps at most
+     * <code>http.maxConnections</code> (5 by default) idle connections per server, the others are
+     * closed after each request.
+     * 
+     * @param threadCount the number of threads.
+     */
+    public final void setThreadCount(final int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("Invalid thread count : " + threadCount);
+        this.threadCount = threadCount;
+    }
+
+    // the transfers of a directory, in the current thread or in a bounded pool
+    private final class Transfers {
+        private final ExecutorService exec;
+        private final List<Future<?>> futures;
+
+        Transfers() {
+            final int count = SyncClient.this.threadCount;
+            if (count == 1) {
+                this.exec = null;
+            } else {
+                // bounded queue : the directory walk runs the transfers itself when it is too far
+                // ahead
+                this.exec = new ThreadPoolExecutor(count, count, 1L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(count * 4), new ThreadFactory(SyncClient.class.getSimpleName() + " ", true),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+            }
+            this.futures = new ArrayList<Future<?>>();
+        }
+
+        void submit(Callable<?> c) throws Exception {
+            if (this.exec == null) {
+                c.call();
             } else {
-                sendFile(file, remotePath, file.getName());
+                this.futures.add(this.exec.submit(c));
             }
         }
 
+        // wait for all transfers, then throw the first failure
+        void await() throws Exception {
+            Throwable first = null;
+            for (final Future<?> f : this.futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (first == null) {
+                        first = e.getCause();
+                    } else {
+                        e.getCause().printStackTrace();
+                    }
+                }
+            }
+            this.futures.clear();
+            if (first instanceof Exception)
+                throw (Exception) first;
+            else if (first != null)
+                throw (Error) first;
+        }
+
+        void shutdown() {
+            if (this.exec != null)
+                this.exec.shutdownNow();
+        }
     }
 
     public SyncClient() {
@@ -209,30 +345,54 @@ public class SyncClient {
     public void dumpStat() {
         System.out.println("SyncClient statistics");
         System.out.println("Download:");
-        System.out.println("- files received: " + this.filesSyncDownload);
-        System.out.println("- bytes sync'ed :" + this.byteSyncDownload);
-        System.out.print("- bytes received: " + this.byteReceived);
-        if (this.byteSyncDownload > 0) {
-            System.out.println(" (" + ((100f * this.byteReceived) / this.byteSyncDownload) + "%)");
+        System.out.println("- files received: " + this.filesSyncDownload.get());
+        System.out.println("- bytes sync'ed :" + this.byteSyncDownload.get());
+        System.out.print("- bytes received: " + this.byteReceived.get());
+        if (this.byteSyncDownload.get() > 0) {
+            System.out.println(" (" + ((100f * this.byteReceived.get()) / this.byteSyncDownload.get()) + "%)");
         } else {
             System.out.println();
         }
 
         System.out.println("Upload:");
-        System.out.println("- files sent: " + this.filesSyncUpload);
-        System.out.println("- bytes sync'ed :" + this.byteSyncUpload);
-        System.out.print("- bytes sent: " + this.byteSent);
-        if (this.byteSyncUpload > 0) {
-            System.out.println(" (" + ((100f * this.byteSent) / this.byteSyncUpload) + "%)");
+        System.out.println("- files sent: " + this.filesSyncUpload.get());
+        System.out.println("- bytes sync'ed :" + this.byteSyncUpload.get());
+        System.out.print("- bytes sent: " + this.byteSent.get());
+        if (this.byteSyncUpload.get() > 0) {
+            System.out.println(" (" + ((100f * this.byteSent.get()) / this.byteSyncUpload.get()) + "%)");
         } else {
             System.out.println();
         }
     }
 
     private File localHashDirectory;
+    private HashIndex localHashIndex;
+
+    /**
+     * Keep the hashes of the local files in the passed directory, so that the unchanged files are
+     * not read again to know if they must be transferred.
+     * 
+     * @param file the directory of the {@link HashIndex}, <code>null</code> to always read the
+     *        files.
+     * @throws IOException if the directory cannot be created.
+     */
+    public void setLocalHashDirectory(File file) throws IOException {
+        this.localHashIndex = file == null ? null : new HashIndex(file);
+        this.localHashDirectory = file;
+    }
+
+    public final File getLocalHashDirectory() {
+        return this.localHashDirectory;
+    }
 
-    private void setLocalHashDirectory(File file) {
-        localHashDirectory = file;
+    private byte[] getLocalHash(File f) throws Exception {
+        final HashIndex index = this.localHashIndex;
+        return index == null ? HashWriter.getHash(f) : index.getHash(f);
+    }
+
+    private void saveLocalHashes() throws IOException {
+        if (this.localHashIndex != null)
+            this.localHashIndex.save();
     }
 
     public void sendFile(File localFile, String remotePath, String remoteName) throws Exception {
@@ -240,13 +400,46 @@ public class SyncClient {
     }
 
     public void sendFile(File localFile, String remotePath, String remoteName, String token) throws Exception {
+        try {
+            sendFile(localFile, remotePath, remoteName, token, false, null);
+        } finally {
+            saveLocalHashes();
+        }
+    }
+
+    /**
+     * Send a file.
+     * 
+     * @param listed <code>true</code> if the remote directory was listed, i.e. <code>remote</code>
+     *        is known.
+     * @param remote the remote file as listed, <code>null</code> if it does not exist.
+     */
+    private void sendFile(File localFile, String remotePath, String remoteName, String token, boolean listed, FileProperty remote) throws Exception {
         if (localFile == null) {
             throw new IllegalArgumentException("null file");
         }
         if (!localFile.exists()) {
             throw new IllegalArgumentException(localFile.getAbsolutePath() + " does not exist");
         }
-        this.filesSyncUpload++;
+        this.filesSyncUpload.incrementAndGet();
+        byte[] localFileHash = null;
+        int localFileSize = (int) localFile.length();
+        final RangeList rangesOk = new RangeList(localFileSize);
+        final MoveOperationList moves = new MoveOperationList();
+        this.byteSyncUpload.addAndGet(localFileSize);
+        if (listed && (remote == null || !remote.isDirectory())) {
+            if (remote == null) {
+                // new file, no need to ask for its hash
+                sendDelta(localFile, remotePath, remoteName, moves, rangesOk.getUnusedRanges(), getLocalHash(localFile), token);
+                return;
+            } else if (remote.getSize() == localFileSize) {
+                localFileHash = getLocalHash(localFile);
+                if (HashWriter.compareHash(localFileHash, remote.getSha256())) {
+                    // Already in sync
+                    return;
+                }
+            }
+        }
 
         // Construct data
         String data = URLEncoder.encode("rp", "UTF-8") + "=" + URLEncoder.encode(remotePath, "UTF-8");
@@ -254,48 +447,25 @@ public class SyncClient {
         if (token != null) {
             data += "&" + URLEncoder.encode("tk", "UTF-8") + "=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
         // Send data
-        URLConnection conn = getConnection(this.baseUrl + "/getHash");
-        conn.setDoOutput(true);
-        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-        wr.write(data);
-        wr.flush();
-        wr.close();
-        byte[] localFileHash = null;
-        int localFileSize = (int) localFile.length();
-        RangeList rangesOk = new RangeList(localFileSize);
-        MoveOperationList moves = new MoveOperationList();
-        this.byteSyncUpload = localFileSize;
+        final URLConnection conn = post("/getHash", data);
         try {
             // Get the response
             DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
             int remoteFileSize = in.readInt();
-            this.byteReceived += 4;
-
-            final float a = (float) remoteFileSize / HashWriter.blockSize;
-
-            int nb = (int) Math.ceil(a);
+            this.byteReceived.addAndGet(4);
 
-            HashMap<Integer, byte[]> map = new HashMap<Integer, byte[]>(nb * 2 + 1);
-            HashMap<Integer, Integer> mapBlock = new HashMap<Integer, Integer>(nb * 2 + 1);
-            for (int i = 0; i < nb; i++) {
-                byte[] b = new byte[16];
-                final int r32 = in.readInt();
-                // System.out.print("Known hash " + r32 + " : ");
-                in.read(b);
-                this.byteReceived += 4 + 16;
-
-                map.put(r32, b);
-                mapBlock.put(r32, i);
-            }
+            final BlockIndex index = BlockIndex.read(in, remoteFileSize, HashWriter.blockSize);
+            this.byteReceived.addAndGet(index.getBlockCount() * (4 + BlockIndex.STRONG_LENGTH));
             byte[] remoteFileHash = new byte[32];
-            in.read(remoteFileHash);
-            this.byteReceived += 32;
-            in.close();
+            in.readFully(remoteFileHash);
+            this.byteReceived.addAndGet(32);
+            close(in);
 
             if (localFileSize == remoteFileSize) {
-                localFileHash = HashWriter.getHash(localFile);
+                if (localFileHash == null) {
+                    localFileHash = getLocalHash(localFile);
+                }
                 if (HashWriter.compareHash(localFileHash, remoteFileHash)) {
 
                     // Already in sync
@@ -304,60 +474,28 @@ public class SyncClient {
             }
 
             // compare delta
-            RollingChecksum32 checksum = new RollingChecksum32();
-            byte[] buffer = new byte[HashWriter.blockSize];
-
-            BufferedInputStream fb = new BufferedInputStream(new FileInputStream(localFile));
-            final int read = fb.read(buffer);
-            this.byteReceived += read;
-            checksum.check(buffer, 0, read);
-            int v = 0;
-            int start = 0;
-
-            MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-
-            do {
-
-                int r32 = checksum.getValue();
-
-                byte[] md5 = map.get(r32);
-                if (md5 != null) {
-                    // local block maybe exists in the remote file
-                    // let's check if true with md5
-                    md5Digest.reset();
-                    md5Digest.update(buffer);
-                    byte[] localMd5 = md5Digest.digest();
-                    if (HashWriter.compareHash(md5, localMd5)) {
-
-                        // Block found!!!
-                        // Copy block to: mapBlock.get(r32)*blockSize;
-                        int offset = mapBlock.get(r32) * HashWriter.blockSize;
-                        //
-                        MoveOperation m = new MoveOperation(offset, start, HashWriter.blockSize);
-                        moves.add(m);
-                        //
-                        rangesOk.add(new Range(start, start + HashWriter.blockSize));
-                    }
-
+            new BlockMatcher(index).match(localFile, new BlockMatcher.Handler() {
+                private int lastOffset = -1;
+
+                @Override
+                public void blockFound(int localOffset, int block) {
+                    // identical remote blocks, one is enough
+                    if (localOffset == this.lastOffset)
+                        return;
+                    this.lastOffset = localOffset;
+                    final int length = index.getBlockLength(block);
+                    // Block found!!! Copy block from its remote offset
+                    moves.add(new MoveOperation(index.getBlockOffset(block), localOffset, length));
+                    rangesOk.add(new Range(localOffset, localOffset + length));
                 }
-
-                // read
-                v = fb.read();
-
-                start++;
-                // Update
-                System.arraycopy(buffer, 1, buffer, 0, buffer.length - 1);
-                buffer[buffer.length - 1] = (byte) v;
-                checksum.roll((byte) v);
-
-            } while (v >= 0);
-            fb.close();
+            });
 
         } catch (FileNotFoundException e) {
             // System.out.println("Sending the complete file");
+            closeError(conn);
         }
         if (localFileHash == null) {
-            localFileHash = HashWriter.getHash(localFile);
+            localFileHash = getLocalHash(localFile);
         }
 
         sendDelta(localFile, remotePath, remoteName, moves, rangesOk.getUnusedRanges(), localFileHash, token);
@@ -375,13 +513,13 @@ public class SyncClient {
         final DataOutputStream wr = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(conn.getOutputStream())) {
             @Override
             public synchronized void write(byte[] b, int off, int len) throws IOException {
-                SyncClient.this.byteSent += len;
+                SyncClient.this.byteSent.addAndGet(len);
                 super.write(b, off, len);
             }
 
             @Override
             public synchronized void write(int b) throws IOException {
-                SyncClient.this.byteSent++;
+                SyncClient.this.byteSent.incrementAndGet();
                 super.write(b);
             }
         });
@@ -397,46 +535,81 @@ public class SyncClient {
         // Delta
         wr.writeInt(rangesToSend.size());
         RandomAccessFile rIn = new RandomAccessFile(localFile, "r");
+        try {
+            // ranges can be as large as the file, don't load them in memory
+            final byte[] buffer = new byte[64 * 1024];
+            for (Range r : rangesToSend) {
+                rIn.seek(r.getStart());
+                wr.writeInt(r.getStart());
+                wr.writeInt(r.getStop());
+                int remaining = r.getStop() - r.getStart();
+                while (remaining > 0) {
+                    final int count = Math.min(remaining, buffer.length);
+                    rIn.readFully(buffer, 0, count);
+                    wr.write(buffer, 0, count);
+                    remaining -= count;
+                }
+                // System.out.println("SyncClient.sendDelta() : " + r.getStart() + "-" + r.getStop()
+                // + " " + buffer.length);
 
-        for (Range r : rangesToSend) {
-            rIn.seek(r.getStart());
-            byte[] buffer = new byte[r.getStop() - r.getStart()];
-            rIn.readFully(buffer);
-
-            wr.writeInt(r.getStart());
-            wr.writeInt(r.getStop());
-            wr.write(buffer);
-            // System.out.println("SyncClient.sendDelta() : " + r.getStart() + "-" + r.getStop() +
-            // " " + buffer.length);
-
+            }
+        } finally {
+            rIn.close();
         }
-        rIn.close();
         wr.flush();
         wr.close();
 
         // Reading data is mandatory
         DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
-        this.byteReceived += 32;
+        this.byteReceived.addAndGet(32);
         byte[] rHash = new byte[32];
-        in.read(rHash);
-        in.close();
+        in.readFully(rHash);
+        close(in);
         if (!HashWriter.compareHash(localFileHash, rHash)) {
             throw new IllegalStateException("Hash error");
         }
 
     }
 
+    /**
+     * Retrieve recursively a directory. The files are retrieved by {@link #setThreadCount(int)}
+     * threads.
+     * 
+     * @param dir the local directory.
+     * @param remotePath the remote directory.
+     * @param token the token, can be <code>null</code>.
+     * @throws Exception if a file cannot be retrieved, with more than one thread the other files
+     *         are still retrieved.
+     */
     public void retrieveDirectory(File dir, String remotePath, String token) throws Exception {
+        FileUtils.mkdir_p(dir);
+        final Transfers transfers = new Transfers();
+        try {
+            retrieveDirectory(dir, remotePath, token, transfers);
+            transfers.await();
+        } finally {
+            transfers.shutdown();
+            saveLocalHashes();
+        }
+    }
+
+    private void retrieveDirectory(final File dir, final String remotePath, final String token, final Transfers transfers) throws Exception {
         ArrayList<FileProperty> list = getList(remotePath, token);
         // Check locally
         for (int i = 0; i < list.size(); i++) {
             final FileProperty fp = list.get(i);
             if (!fp.isDirectory()) {
-                retrieveFile(dir, remotePath, fp.getName(), fp.getSize(), fp.getSha256(), token);
+                transfers.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        retrieveFile(dir, remotePath, fp.getName(), fp.getSize(), fp.getSha256(), token);
+                        return null;
+                    }
+                });
             } else {
                 final File dir2 = new File(dir, fp.getName());
                 dir2.mkdirs();
-                retrieveDirectory(dir2, remotePath + "/" + fp.getName(), token);
+                retrieveDirectory(dir2, remotePath + "/" + fp.getName(), token, transfers);
             }
         }
 
@@ -492,36 +665,36 @@ public class SyncClient {
         if (token != null) {
             data += "&tk=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
         // Send data
-        URLConnection conn = getConnection(baseUrl + "/getDir");
-        conn.setDoOutput(true);
-        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-        wr.write(data);
-        wr.flush();
-        wr.close();
+        final URLConnection conn = post("/getDir", data);
 
         // Get the response ASAP in order to not block the server while computing locally hash256
-        DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+        } catch (FileNotFoundException e) {
+            closeError(conn);
+            throw e;
+        }
         int fileCount = in.readInt();
-        this.byteReceived += 4;
+        this.byteReceived.addAndGet(4);
         ArrayList<FileProperty> list = new ArrayList<FileProperty>();
         for (int i = 0; i < fileCount; i++) {
             final String fileName = in.readUTF();
-            this.byteReceived += fileName.getBytes().length;
+            this.byteReceived.addAndGet(fileName.getBytes().length);
             final int fileSize = in.readInt();
-            this.byteReceived += 4;
+            this.byteReceived.addAndGet(4);
             final long fileDate = in.readLong();
-            this.byteReceived += 8;
+            this.byteReceived.addAndGet(8);
             final byte[] sha256 = new byte[32];
             if (fileSize >= 0) {
-                in.read(sha256);
-                this.byteReceived += 32;
+                in.readFully(sha256);
+                this.byteReceived.addAndGet(32);
             }
             FileProperty fp = new FileProperty(fileName, fileSize, fileDate, sha256);
             list.add(fp);
         }
-        in.close();
+        close(in);
         return list;
     }
 
@@ -539,40 +712,40 @@ public class SyncClient {
         if (token != null) {
             data += "&tk=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
         // Send data
-        URLConnection conn = getConnection(this.baseUrl + "/getHash");
-        conn.setDoOutput(true);
-        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-        wr.write(data);
-        wr.flush();
-        wr.close();
+        final URLConnection conn = post("/getHash", data);
 
         // Get the response
 
-        DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+        } catch (FileNotFoundException e) {
+            closeError(conn);
+            throw e;
+        }
         int fileSize = in.readInt();
-        this.byteReceived += 4;
+        this.byteReceived.addAndGet(4);
 
         byte[] fileHash = new byte[32];
-        in.read(fileHash);
-        this.byteReceived += 32;
-        in.close();
+        in.readFully(fileHash);
+        this.byteReceived.addAndGet(32);
+        close(in);
 
-        retrieveFile(dir, remotePath, remoteName, fileSize, fileHash, token);
+        try {
+            retrieveFile(dir, remotePath, remoteName, fileSize, fileHash, token);
+        } finally {
+            saveLocalHashes();
+        }
 
     }
 
     private void retrieveFile(File dir, String remotePath, String remoteName, int fileSize, byte[] fileHash, String token) throws IOException, Exception {
-        this.filesSyncDownload++;
-        this.byteSyncDownload += fileSize;
+        this.filesSyncDownload.incrementAndGet();
+        this.byteSyncDownload.addAndGet(fileSize);
         File localFile = resolveFile(dir, remoteName);
         if (!localFile.exists()) {
-            downloadFile(localFile, remotePath, remoteName, fileSize, token);
-            byte[] fileLocalHash = HashWriter.getHash(localFile);
-            if (!HashWriter.compareHash(fileHash, fileLocalHash)) {
-                throw new IllegalStateException("Full download failed. Hash error");
-            }
+            downloadFile(localFile, remotePath, remoteName, fileSize, fileHash, token);
         } else {
             boolean needToResync = false;
             // File exists
@@ -581,21 +754,18 @@ public class SyncClient {
                 needToResync = true;
             } else {
                 // 2 - check hash sha256
-                byte[] fileLocalHash = HashWriter.getHash(localFile);
+                byte[] fileLocalHash = getLocalHash(localFile);
                 if (!HashWriter.compareHash(fileHash, fileLocalHash)) {
                     needToResync = true;
                 }
             }
 
             if (needToResync) {
-                if (localFile.length() > HashWriter.blockSize) {
+                // resume an interrupted download rather than starting a delta
+                if (localFile.length() > HashWriter.blockSize && !getPartFile(localFile).exists()) {
                     retrieveFileWithDelta(localFile, remotePath, remoteName, token);
                 } else {
-                    downloadFile(localFile, remotePath, remoteName, fileSize, token);
-                    byte[] fileLocalHash = HashWriter.getHash(localFile);
-                    if (!HashWriter.compareHash(fileHash, fileLocalHash)) {
-                        throw new IllegalStateException("Full download failed. Hash error");
-                    }
+                    downloadFile(localFile, remotePath, remoteName, fileSize, fileHash, token);
                 }
             }
 
@@ -614,113 +784,82 @@ public class SyncClient {
         if (token != null) {
             data += "&tk=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
         // Send data
-        URLConnection conn = getConnection(this.baseUrl + "/getHash");
-        conn.setDoOutput(true);
-        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-        wr.write(data);
-        wr.flush();
-        wr.close();
+        final URLConnection conn = post("/getHash", data);
 
         // Get the response
         DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
         int fileSize = in.readInt();
-        this.byteReceived += 4;
-        this.byteSyncDownload = fileSize;
-
-        final float a = (float) fileSize / HashWriter.blockSize;
-
-        int nb = (int) Math.ceil(a);
-
-        HashMap<Integer, byte[]> map = new HashMap<Integer, byte[]>(nb * 2 + 1);
-        HashMap<Integer, Integer> mapBlock = new HashMap<Integer, Integer>(nb * 2 + 1);
-        for (int i = 0; i < nb; i++) {
-            byte[] b = new byte[16];
-            final int r32 = in.readInt();
-            // System.out.print("Known hash " + r32 + " : ");
-            in.read(b);
-            this.byteReceived += 4 + 16;
+        this.byteReceived.addAndGet(4);
 
-            map.put(r32, b);
-            mapBlock.put(r32, i);
-        }
+        final BlockIndex index = BlockIndex.read(in, fileSize, HashWriter.blockSize);
+        this.byteReceived.addAndGet(index.getBlockCount() * (4 + BlockIndex.STRONG_LENGTH));
         byte[] fileHash = new byte[32];
-        in.read(fileHash);
-        this.byteReceived += 32;
-        in.close();
+        in.readFully(fileHash);
+        this.byteReceived.addAndGet(32);
+        close(in);
 
         // create the new file
         File newFile = createEmptyFile(localFile.getParentFile(), fileSize);
         RandomAccessFile rNewFile = new RandomAccessFile(newFile, "rw");
-        // compare delta
-        RollingChecksum32 checksum = new RollingChecksum32();
-        byte[] buffer = new byte[HashWriter.blockSize];
-
-        BufferedInputStream fb = new BufferedInputStream(new FileInputStream(localFile));
-        final int read = fb.read(buffer);
-        checksum.check(buffer, 0, read);
-        int v = 0;
-        int start = 0;
-        int end = read;
-        MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-        RangeList rangesOk = new RangeList(fileSize);
-        do {
-
-            int r32 = checksum.getValue();
-
-            byte[] md5 = map.get(r32);
-            if (md5 != null) {
-                // local block maybe exists in the remote file
-                // let's check if true with md5
-                md5Digest.reset();
-                md5Digest.update(buffer);
-                byte[] localMd5 = md5Digest.digest();
-                if (HashWriter.compareHash(md5, localMd5)) {
-
-                    // Block found!!!
-                    // Copy block to: mapBlock.get(r32)*blockSize;
-                    int offset = mapBlock.get(r32) * HashWriter.blockSize;
-                    //
-                    rNewFile.seek(offset);
-                    rNewFile.write(buffer);
-                    //
-                    rangesOk.add(new Range(offset, offset + HashWriter.blockSize));
+        // compare delta, copying found blocks to the new file
+        final FileChannel newChannel = rNewFile.getChannel();
+        final RandomAccessFile rLocalFile = new RandomAccessFile(localFile, "r");
+        final FileChannel localChannel = rLocalFile.getChannel();
+        final boolean[] found = new boolean[index.getBlockCount()];
+        final ByteBuffer buffer = ByteBuffer.allocate(index.getBlockSize());
+        try {
+            new BlockMatcher(index).match(localFile, new BlockMatcher.Handler() {
+                @Override
+                public void blockFound(int localOffset, int block) throws IOException {
+                    if (found[block])
+                        return;
+                    found[block] = true;
+                    final int length = index.getBlockLength(block);
+                    buffer.clear();
+                    buffer.limit(length);
+                    while (buffer.hasRemaining()) {
+                        if (localChannel.read(buffer, localOffset + buffer.position()) < 0)
+                            throw new IOException("Local file truncated");
+                    }
+                    buffer.flip();
+                    final int offset = index.getBlockOffset(block);
+                    while (buffer.hasRemaining())
+                        newChannel.write(buffer, offset + buffer.position());
                 }
-
+            });
+        } finally {
+            rLocalFile.close();
+        }
+        // ranges must be added in order
+        final RangeList rangesOk = new RangeList(fileSize);
+        for (int i = 0; i < found.length; i++) {
+            if (found[i]) {
+                final int offset = index.getBlockOffset(i);
+                rangesOk.add(new Range(offset, offset + index.getBlockLength(i)));
             }
-
-            // read
-            v = fb.read();
-            start++;
-            // Update
-            System.arraycopy(buffer, 1, buffer, 0, buffer.length - 1);
-            buffer[buffer.length - 1] = (byte) v;
-            checksum.roll((byte) v);
-            end++;
-        } while (v >= 0);
-        fb.close();
-        rangesOk.dump();
+        }
 
         // DOwnload missing parts
         final List<Range> unusedRanges = rangesOk.getUnusedRanges();
         DataInputStream zIn = getContent(remotePath, remoteName, unusedRanges, token);
 
-        BufferedOutputStream fOut = new BufferedOutputStream(new FileOutputStream(localFile));
-
+        final byte[] b = new byte[64 * 1024];
         final int size = unusedRanges.size();
         for (int i = 0; i < size; i++) {
             Range range = unusedRanges.get(i);
             rNewFile.seek(range.getStart());
-            byte[] b = new byte[(int) range.size()];
-            zIn.readFully(b);
-
-            rNewFile.write(b);
+            int remaining = range.getStop() - range.getStart();
+            while (remaining > 0) {
+                final int count = Math.min(remaining, b.length);
+                zIn.readFully(b, 0, count);
+                rNewFile.write(b, 0, count);
+                remaining -= count;
+            }
 
         }
 
-        fOut.close();
-        zIn.close();
+        close(zIn);
 
         rNewFile.close();
 
@@ -748,24 +887,58 @@ public class SyncClient {
         return newFile;
     }
 
-    private void downloadFile(File localFile, String remotePath, String remoteName, int fileSize, String token) throws IOException {
-        List<Range> list = new ArrayList<Range>(1);
-        list.add(new Range(0, fileSize));
+    private File getPartFile(File localFile) {
+        return new File(localFile.getParentFile(), localFile.getName() + PART_SUFFIX);
+    }
 
-        DataInputStream zIn = getContent(remotePath, remoteName, list, token);
+    /**
+     * Download a whole file. The bytes are appended to a part file, so that if the transfer is
+     * interrupted the next download only asks for the missing end of the file.
+     */
+    private void downloadFile(File localFile, String remotePath, String remoteName, int fileSize, byte[] fileHash, String token) throws Exception {
+        final File partFile = getPartFile(localFile);
+        long partSize = partFile.length();
+        if (partSize > fileSize) {
+            FileUtils.rm(partFile);
+            partSize = 0;
+        }
+        if (partSize < fileSize || fileSize == 0) {
+            List<Range> list = new ArrayList<Range>(1);
+            list.add(new Range((int) partSize, fileSize));
 
-        BufferedOutputStream fOut = new BufferedOutputStream(new FileOutputStream(localFile));
-        StreamUtils.copy(zIn, fOut);
-        fOut.close();
-        zIn.close();
+            DataInputStream zIn = getContent(remotePath, remoteName, list, token);
+            try {
+                BufferedOutputStream fOut = new BufferedOutputStream(new FileOutputStream(partFile, true));
+                try {
+                    StreamUtils.copy(zIn, fOut);
+                } finally {
+                    fOut.close();
+                }
+            } finally {
+                close(zIn);
+            }
+        }
 
+        byte[] fileLocalHash = HashWriter.getHash(partFile);
+        if (!HashWriter.compareHash(fileHash, fileLocalHash)) {
+            FileUtils.rm(partFile);
+            if (partSize == 0) {
+                throw new IllegalStateException("Full download failed. Hash error");
+            }
+            // the part was from another version of the file
+            downloadFile(localFile, remotePath, remoteName, fileSize, fileHash, token);
+            return;
+        }
+        FileUtils.rm(localFile);
+        final String error = FileUtils.mv(partFile, localFile);
+        if (error != null) {
+            throw new IOException("cannot rename " + partFile + " : " + error);
+        }
     }
 
     private DataInputStream getContent(String remotePath, String remoteName, List<Range> list, String token) throws MalformedURLException, IOException, UnsupportedEncodingException {
-        URLConnection conn = getConnection(this.baseUrl + "/getFile");
-        conn.setDoOutput(true);
-
-        final ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
+        // the format of the ranges is imposed by the server
+        final ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream(4 + list.size() * 8);
         final DataOutputStream wr = new DataOutputStream(bOutputStream);
         wr.writeInt(list.size());
         for (Range range : list) {
@@ -781,21 +954,19 @@ public class SyncClient {
         if (token != null) {
             data += "&tk=" + URLEncoder.encode(token, "UTF-8");
         }
-        this.byteSent += data.getBytes().length;
-        OutputStreamWriter osw = new OutputStreamWriter(conn.getOutputStream());
-        osw.write(data);
-        osw.flush();
-        osw.close();
+        final URLConnection conn = post("/getFile", data);
 
-        final InputStream inputStream = new BufferedInputStream(conn.getInputStream()) {
+        final InputStream inputStream = new BufferedInputStream(conn.getInputStream(), 64 * 1024) {
             @Override
             public synchronized int read(byte[] b, int off, int len) throws IOException {
-                byteReceived += len;
-                return super.read(b, off, len);
+                final int read = super.read(b, off, len);
+                if (read > 0)
+                    SyncClient.this.byteReceived.addAndGet(read);
+                return read;
             }
         };
         // System.out.println("SyncClient.downloadFile() " + inputStream.available());
-        GZIPInputStream zIn = new GZIPInputStream(inputStream);
+        GZIPInputStream zIn = new GZIPInputStream(inputStream, 64 * 1024);
         return new DataInputStream(zIn);
     }
 
@@ -817,12 +988,12 @@ public class SyncClient {
     }
 
     public void clearStat() {
-        byteSent = 0;
-        byteReceived = 0;
-        byteSyncDownload = 0;
-        byteSyncUpload = 0;
-        filesSyncDownload = 0;
-        filesSyncUpload = 0;
+        this.byteSent.set(0);
+        this.byteReceived.set(0);
+        this.byteSyncDownload.set(0);
+        this.byteSyncUpload.set(0);
+        this.filesSyncDownload.set(0);
+        this.filesSyncUpload.set(0);
     }
 
     public static final HostnameVerifier HostnameNonVerifier = new HostnameVerifier() {
@@ -832,6 +1003,44 @@ public class SyncClient {
         }
     };
 
+    // post a form, the connection is kept alive if the response is then read with close()
+    private URLConnection post(String path, String data) throws IOException {
+        final byte[] bytes = data.getBytes("UTF-8");
+        this.byteSent.addAndGet(bytes.length);
+        final URLConnection conn = getConnection(this.baseUrl + path);
+        conn.setDoOutput(true);
+        // not in streaming mode : the form is small and is then sent with the headers, otherwise
+        // on a kept alive connection the body waits for the acknowledgement of the headers
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        final OutputStream out = conn.getOutputStream();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return conn;
+    }
+
+    // read the rest of the response, otherwise the connection cannot be reused
+    private static void close(InputStream in) throws IOException {
+        try {
+            final byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                // skip
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void closeError(URLConnection conn) throws IOException {
+        if (conn instanceof HttpURLConnection) {
+            final InputStream error = ((HttpURLConnection) conn).getErrorStream();
+            if (error != null)
+                close(error);
+        }
+    }
+
     URLConnection getConnection(String strUrl) throws IOException {
         URL url = new URL(strUrl);
         URLConnection conn = url.openConnection();
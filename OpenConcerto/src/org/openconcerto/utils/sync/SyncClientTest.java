@@ -0,0 +1,189 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ * 
+ * Copyright 2011 OpenConcerto, by ILM Informatique. All rights reserved.
+ * 
+ * The contents of this file are subject to the terms of the GNU General Public License Version 3
+ * only ("GPL"). You may not use this file except in compliance with the License. You can obtain a
+ * copy of the License at http://www.gnu.org/licenses/gpl-3.0.html See the License for the specific
+ * language governing permissions and limitations under the License.
+ * 
+ * When distributing the software, include this License Header Notice in each file.
+ */
+ 
+ package org.openconcerto.utils.sync;
+
+import org.openconcerto.utils.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Send and retrieve a directory tree with {@link SyncClient} against a {@link LocalSyncServer},
+ * with several threads : new, unchanged and modified trees, an interrupted download and a stale
+ * part file. Each step checks that both trees are identical, and that connections are reused.
+ * 
+ * <pre>
+ * java org.openconcerto.utils.sync.SyncClientTest [threadCount [latencyInMs]]
+ * </pre>
+ */
+public class SyncClientTest {
+
+    public static void main(String[] args) throws Exception {
+        final int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int latency = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        // otherwise HttpURLConnection keeps at most 5 idle connections per host
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(5, threadCount)));
+
+        final File base = FileUtils.createTempDir("syncTest");
+        final LocalSyncServer server = new LocalSyncServer(new File(base, "server"));
+        server.setLatency(latency);
+        server.start();
+        try {
+            final File local = new File(base, "local");
+            final int dirCount = createTree(local, new Random(1), 2);
+            final File remote = new File(server.getRoot(), "backup");
+            final SyncClient c = new SyncClient(server.getURL());
+            c.setThreadCount(threadCount);
+
+            long start = step(server, c);
+            c.sendDirectory(local, "/backup", null);
+            end("send new", server, start);
+            checkSame(local, remote);
+            checkReused(server);
+
+            start = step(server, c);
+            c.sendDirectory(local, "/backup", null);
+            end("send unchanged", server, start);
+            // only one listing per directory
+            if (server.getRequestCount() != dirCount)
+                throw new IllegalStateException(server.getRequestCount() + " requests for " + dirCount + " unchanged directories");
+
+            modify(local, new Random(2));
+            start = step(server, c);
+            c.sendDirectory(local, "/backup", null);
+            end("send modified", server, start);
+            checkSame(local, remote);
+
+            final File copy = new File(base, "copy");
+            start = step(server, c);
+            c.retrieveDirectory(copy, "/backup/", null);
+            end("retrieve new", server, start);
+            checkSame(remote, copy);
+            checkReused(server);
+
+            modify(remote, new Random(3));
+            start = step(server, c);
+            c.retrieveDirectory(copy, "/backup/", null);
+            end("retrieve modified", server, start);
+            checkSame(remote, copy);
+
+            // interrupted download : the first half is in the part file
+            final File big = new File(remote, "big.bin");
+            final byte[] content = new byte[400000];
+            new Random(5).nextBytes(content);
+            write(big, content, content.length);
+            final File copied = new File(copy, big.getName());
+            final File part = new File(copy, big.getName() + SyncClient.PART_SUFFIX);
+            write(part, content, content.length / 2);
+            start = step(server, c);
+            c.retrieveDirectory(copy, "/backup/", null);
+            end("resume", server, start);
+            checkSame(remote, copy);
+            if (part.exists())
+                throw new IllegalStateException("Part file left : " + part);
+
+            // part file of another version
+            copied.delete();
+            write(part, new byte[1000], 1000);
+            start = step(server, c);
+            c.retrieveDirectory(copy, "/backup/", null);
+            end("stale part", server, start);
+            checkSame(remote, copy);
+            if (part.exists())
+                throw new IllegalStateException("Part file left : " + part);
+
+            System.out.println("OK");
+        } finally {
+            server.stop();
+            FileUtils.rm_R(base);
+        }
+    }
+
+    static private long step(final LocalSyncServer server, final SyncClient c) {
+        server.resetCounts();
+        c.clearStat();
+        return System.currentTimeMillis();
+    }
+
+    static private void end(final String name, final LocalSyncServer server, final long start) {
+        System.out.println(name + " : " + (System.currentTimeMillis() - start) + " ms, " + server.getRequestCount() + " requests on " + server.getConnectionCount() + " connections");
+    }
+
+    static private void checkReused(final LocalSyncServer server) {
+        if (server.getConnectionCount() >= server.getRequestCount())
+            throw new IllegalStateException("Connections not reused : " + server.getRequestCount() + " requests on " + server.getConnectionCount() + " connections");
+    }
+
+    // return the number of directories
+    static private int createTree(final File dir, final Random r, final int depth) throws IOException {
+        FileUtils.mkdir_p(dir);
+        for (int i = 0; i < 12; i++) {
+            final byte[] b = new byte[r.nextInt(10) == 0 ? 200000 + r.nextInt(300000) : r.nextInt(5000)];
+            r.nextBytes(b);
+            write(new File(dir, "f" + i + ".bin"), b, b.length);
+        }
+        int res = 1;
+        if (depth > 0) {
+            for (int i = 0; i < 3; i++)
+                res += createTree(new File(dir, "d" + i), r, depth - 1);
+        }
+        return res;
+    }
+
+    static private void write(final File f, final byte[] b, final int length) throws IOException {
+        final FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(b, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    // change a byte in one file out of 8
+    static private void modify(final File dir, final Random r) throws IOException {
+        for (final File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                modify(f, r);
+            } else if (r.nextInt(8) == 0) {
+                final RandomAccessFile out = new RandomAccessFile(f, "rw");
+                try {
+                    out.seek(out.length() / 2);
+                    out.write(r.nextInt());
+                } finally {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    static private void checkSame(final File expected, final File actual) throws Exception {
+        final Set<String> names = new HashSet<String>(Arrays.asList(actual.list()));
+        for (final File f : expected.listFiles()) {
+            final File other = new File(actual, f.getName());
+            if (f.isDirectory())
+                checkSame(f, other);
+            else if (!other.isFile() || !Arrays.equals(HashWriter.getHash(f), HashWriter.getHash(other)))
+                throw new IllegalStateException("Different content : " + other);
+            names.remove(f.getName());
+        }
+        if (!names.isEmpty())
+            throw new IllegalStateException("Unexpected files in " + actual + " : " + names);
+    }
+}